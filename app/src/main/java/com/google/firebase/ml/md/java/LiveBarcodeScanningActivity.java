@@ -37,6 +37,7 @@ import com.google.firebase.ml.md.java.barcodedetection.BarcodeProcessor;
 import com.google.firebase.ml.md.java.barcodedetection.BarcodeResultFragment;
 import com.google.firebase.ml.md.java.camera.CameraSource;
 import com.google.firebase.ml.md.java.camera.CameraSourcePreview;
+import com.google.firebase.ml.md.java.camera.PerformanceHudView;
 import com.google.firebase.ml.md.java.settings.SettingsActivity;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -49,6 +50,7 @@ public class LiveBarcodeScanningActivity extends AppCompatActivity implements On
   private CameraSource cameraSource;
   private CameraSourcePreview preview;
   private GraphicOverlay graphicOverlay;
+  private PerformanceHudView performanceHud;
   private View settingsButton;
   private View flashButton;
   private Chip promptChip;
@@ -65,6 +67,7 @@ public class LiveBarcodeScanningActivity extends AppCompatActivity implements On
     graphicOverlay = findViewById(R.id.camera_preview_graphic_overlay);
     graphicOverlay.setOnClickListener(this);
     cameraSource = new CameraSource(graphicOverlay);
+    performanceHud = findViewById(R.id.performance_hud);
 
     promptChip = findViewById(R.id.bottom_prompt_chip);
     promptChipAnimator =
@@ -87,8 +90,10 @@ public class LiveBarcodeScanningActivity extends AppCompatActivity implements On
     workflowModel.markCameraFrozen();
     settingsButton.setEnabled(true);
     currentWorkflowState = WorkflowState.NOT_STARTED;
-    cameraSource.setFrameProcessor(new BarcodeProcessor(graphicOverlay, workflowModel));
+    cameraSource.setFrameProcessor(
+        new BarcodeProcessor(graphicOverlay, workflowModel, cameraSource));
     workflowModel.setWorkflowState(WorkflowState.DETECTING);
+    performanceHud.start(cameraSource);
   }
 
   @Override
@@ -100,6 +105,7 @@ public class LiveBarcodeScanningActivity extends AppCompatActivity implements On
   @Override
   protected void onPause() {
     super.onPause();
+    performanceHud.stop();
     currentWorkflowState = WorkflowState.NOT_STARTED;
     stopCameraPreview();
   }
@@ -179,6 +185,11 @@ public class LiveBarcodeScanningActivity extends AppCompatActivity implements On
               promptChip.setText(R.string.prompt_point_at_a_barcode);
               startCameraPreview();
               break;
+            case ZOOMING:
+              promptChip.setVisibility(View.VISIBLE);
+              promptChip.setText(R.string.prompt_hold_camera_steady);
+              startCameraPreview();
+              break;
             case CONFIRMING:
               promptChip.setVisibility(View.VISIBLE);
               promptChip.setText(R.string.prompt_move_camera_closer);
@@ -40,11 +40,17 @@ import com.google.android.material.floatingactionbutton.ExtendedFloatingActionBu
 import com.google.common.base.Objects;
 import com.google.common.collect.ImmutableList;
 import com.google.firebase.ml.md.R;
+import com.google.firebase.ml.md.java.barcodedetection.BarcodeField;
+import com.google.firebase.ml.md.java.barcodedetection.BarcodeProcessor;
+import com.google.firebase.ml.md.java.barcodedetection.BarcodeResultFragment;
+import com.google.firebase.ml.md.java.camera.CompositeFrameProcessor;
+import com.google.firebase.ml.md.java.camera.FrameProcessor;
 import com.google.firebase.ml.md.java.camera.GraphicOverlay;
 import com.google.firebase.ml.md.java.camera.WorkflowModel;
 import com.google.firebase.ml.md.java.camera.WorkflowModel.WorkflowState;
 import com.google.firebase.ml.md.java.camera.CameraSource;
 import com.google.firebase.ml.md.java.camera.CameraSourcePreview;
+import com.google.firebase.ml.md.java.camera.PerformanceHudView;
 import com.google.firebase.ml.md.java.objectdetection.MultiObjectProcessor;
 import com.google.firebase.ml.md.java.objectdetection.ProminentObjectProcessor;
 import com.google.firebase.ml.md.java.productsearch.BottomSheetScrimView;
@@ -55,6 +61,7 @@ import com.google.firebase.ml.md.java.productsearch.SearchedObject;
 import com.google.firebase.ml.md.java.settings.PreferenceUtils;
 import com.google.firebase.ml.md.java.settings.SettingsActivity;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 /** Demonstrates the object detection and visual search workflow using camera preview. */
@@ -65,6 +72,7 @@ public class LiveObjectDetectionActivity extends AppCompatActivity implements On
   private CameraSource cameraSource;
   private CameraSourcePreview preview;
   private GraphicOverlay graphicOverlay;
+  private PerformanceHudView performanceHud;
   private View settingsButton;
   private View flashButton;
   private Chip promptChip;
@@ -94,6 +102,7 @@ public class LiveObjectDetectionActivity extends AppCompatActivity implements On
     graphicOverlay = findViewById(R.id.camera_preview_graphic_overlay);
     graphicOverlay.setOnClickListener(this);
     cameraSource = new CameraSource(graphicOverlay);
+    performanceHud = findViewById(R.id.performance_hud);
 
     promptChip = findViewById(R.id.bottom_prompt_chip);
     promptChipAnimator =
@@ -127,16 +136,29 @@ public class LiveObjectDetectionActivity extends AppCompatActivity implements On
     settingsButton.setEnabled(true);
     bottomSheetBehavior.setState(BottomSheetBehavior.STATE_HIDDEN);
     currentWorkflowState = WorkflowState.NOT_STARTED;
-    cameraSource.setFrameProcessor(
-        PreferenceUtils.isMultipleObjectsMode(this)
-            ? new MultiObjectProcessor(graphicOverlay, workflowModel)
-            : new ProminentObjectProcessor(graphicOverlay, workflowModel));
+    cameraSource.setFrameProcessor(createFrameProcessor());
     workflowModel.setWorkflowState(WorkflowState.DETECTING);
+    performanceHud.start(cameraSource);
+  }
+
+  private FrameProcessor createFrameProcessor() {
+    if (!PreferenceUtils.isMultipleObjectsMode(this)) {
+      return new ProminentObjectProcessor(graphicOverlay, workflowModel, cameraSource);
+    }
+    FrameProcessor objectProcessor = new MultiObjectProcessor(graphicOverlay, workflowModel);
+    if (!PreferenceUtils.isBarcodeScanningWithObjectsEnabled(this)) {
+      return objectProcessor;
+    }
+    // Scans barcodes out of the same frames, which the multi-object processor leaves the focus and
+    // zoom of the camera to, unlike the prominent one that focuses on its object.
+    return new CompositeFrameProcessor(
+        objectProcessor, new BarcodeProcessor(graphicOverlay, workflowModel, cameraSource));
   }
 
   @Override
   protected void onPause() {
     super.onPause();
+    performanceHud.stop();
     currentWorkflowState = WorkflowState.NOT_STARTED;
     stopCameraPreview();
   }
@@ -241,7 +263,9 @@ public class LiveObjectDetectionActivity extends AppCompatActivity implements On
           @Override
           public void onSlide(@NonNull View bottomSheet, float slideOffset) {
             SearchedObject searchedObject = workflowModel.searchedObject.getValue();
-            if (searchedObject == null || Float.isNaN(slideOffset)) {
+            if (searchedObject == null
+                || objectThumbnailForBottomSheet == null
+                || Float.isNaN(slideOffset)) {
               return;
             }
 
@@ -317,6 +341,19 @@ public class LiveObjectDetectionActivity extends AppCompatActivity implements On
             bottomSheetBehavior.setState(BottomSheetBehavior.STATE_COLLAPSED);
           }
         });
+
+    // Observes the barcode scanned along with the objects, if happens, show it over the frozen
+    // preview, which the dismissal of the result restarts.
+    workflowModel.detectedBarcode.observe(
+        this,
+        barcode -> {
+          if (barcode != null) {
+            stopCameraPreview();
+            ArrayList<BarcodeField> barcodeFieldList = new ArrayList<>();
+            barcodeFieldList.add(new BarcodeField("Raw Value", barcode.getRawValue()));
+            BarcodeResultFragment.show(getSupportFragmentManager(), barcodeFieldList);
+          }
+        });
   }
 
   private void stateChangeInAutoSearchMode(WorkflowState workflowState) {
@@ -327,6 +364,7 @@ public class LiveObjectDetectionActivity extends AppCompatActivity implements On
     switch (workflowState) {
       case DETECTING:
       case DETECTED:
+      case ZOOMING:
       case CONFIRMING:
         promptChip.setVisibility(View.VISIBLE);
         promptChip.setText(
@@ -370,6 +408,7 @@ public class LiveObjectDetectionActivity extends AppCompatActivity implements On
     switch (workflowState) {
       case DETECTING:
       case DETECTED:
+      case ZOOMING:
       case CONFIRMING:
         promptChip.setVisibility(View.VISIBLE);
         promptChip.setText(R.string.prompt_point_at_an_object);
@@ -31,6 +31,8 @@ import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.google.firebase.ml.md.R;
+import com.google.firebase.ml.md.java.camera.CameraCapabilityStore;
+import com.google.firebase.ml.md.java.camera.DetectorPool;
 
 /** Entry activity to select the detection mode. */
 public class MainActivity extends AppCompatActivity {
@@ -67,6 +69,12 @@ public class MainActivity extends AppCompatActivity {
     super.onResume();
     if (!Utils.allPermissionsGranted(this)) {
       Utils.requestRuntimePermissions(this);
+    } else {
+      // Probes the camera ahead of the first camera start, while nothing else uses the camera.
+      CameraCapabilityStore.load(this);
+      // Loads the detector models ahead of the first detection, so the live screens start detecting
+      // right away.
+      DetectorPool.getInstance().warmUp(this);
     }
   }
 
@@ -43,8 +43,8 @@ import com.google.android.material.bottomsheet.BottomSheetBehavior;
 import com.google.android.material.chip.Chip;
 import com.google.common.collect.ImmutableList;
 import com.google.firebase.ml.md.R;
+import com.google.firebase.ml.md.java.camera.DetectorPool;
 import com.google.firebase.ml.md.java.productsearch.BottomSheetScrimView;
-import com.google.firebase.ml.vision.FirebaseVision;
 import com.google.firebase.ml.vision.common.FirebaseVisionImage;
 import com.google.firebase.ml.vision.objects.FirebaseVisionObject;
 import com.google.firebase.ml.vision.objects.FirebaseVisionObjectDetector;
@@ -87,7 +87,7 @@ public class StaticObjectDetectionActivity extends AppCompatActivity
   private int detectedObjectNum = 0;
   private int currentSelectedObjectIndex = 0;
 
-  private FirebaseVisionObjectDetector detector;
+  private DetectorPool.Lease<FirebaseVisionObjectDetector> detector;
   private SearchEngine searchEngine;
 
   @Override
@@ -119,12 +119,12 @@ public class StaticObjectDetectionActivity extends AppCompatActivity
     findViewById(R.id.photo_library_button).setOnClickListener(this);
 
     detector =
-        FirebaseVision.getInstance()
-            .getOnDeviceObjectDetector(
-                new FirebaseVisionObjectDetectorOptions.Builder()
-                    .setDetectorMode(FirebaseVisionObjectDetectorOptions.SINGLE_IMAGE_MODE)
-                    .enableMultipleObjects()
-                    .build());
+        DetectorPool.getInstance()
+            .acquireObjectDetector(
+                this,
+                FirebaseVisionObjectDetectorOptions.SINGLE_IMAGE_MODE,
+                /* multipleObjects= */ true,
+                /* classification= */ false);
     if (getIntent().getData() != null) {
       detectObjects(getIntent().getData());
     }
@@ -133,11 +133,7 @@ public class StaticObjectDetectionActivity extends AppCompatActivity
   @Override
   protected void onDestroy() {
     super.onDestroy();
-    try {
-      detector.close();
-    } catch (IOException e) {
-      Log.e(TAG, "Failed to close the detector!", e);
-    }
+    detector.release();
     searchEngine.shutdown();
   }
 
@@ -204,14 +200,15 @@ public class StaticObjectDetectionActivity extends AppCompatActivity
 
           @Override
           public void onSlide(@NonNull View bottomSheet, float slideOffset) {
-            if (Float.isNaN(slideOffset)) {
+            Bitmap objectThumbnail = searchedObjectForBottomSheet.getObjectThumbnail();
+            if (objectThumbnail == null || Float.isNaN(slideOffset)) {
               return;
             }
 
             int collapsedStateHeight =
                 Math.min(bottomSheetBehavior.getPeekHeight(), bottomSheet.getHeight());
             bottomSheetScrimView.updateWithThumbnailTranslate(
-                searchedObjectForBottomSheet.getObjectThumbnail(),
+                objectThumbnail,
                 collapsedStateHeight,
                 slideOffset,
                 bottomSheet);
@@ -249,6 +246,7 @@ public class StaticObjectDetectionActivity extends AppCompatActivity
     loadingView.setVisibility(View.VISIBLE);
     FirebaseVisionImage image = FirebaseVisionImage.fromBitmap(inputBitmap);
     detector
+        .get()
         .processImage(image)
         .addOnSuccessListener(objects -> onObjectsDetected(image, objects))
         .addOnFailureListener(e -> onObjectsDetected(image, ImmutableList.of()));
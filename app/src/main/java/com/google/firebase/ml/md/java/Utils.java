@@ -39,6 +39,7 @@ import android.util.Log;
 import androidx.core.app.ActivityCompat;
 import androidx.exifinterface.media.ExifInterface;
 import com.google.firebase.ml.md.java.camera.CameraSizePair;
+import com.google.firebase.ml.md.java.camera.PreviewSizeSelector;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
@@ -51,12 +52,25 @@ public class Utils {
    * If the absolute difference between aspect ratios is less than this tolerance, they are
    * considered to be the same aspect ratio.
    */
-  public static final float ASPECT_RATIO_TOLERANCE = 0.01f;
+  public static final float ASPECT_RATIO_TOLERANCE = PreviewSizeSelector.ASPECT_RATIO_TOLERANCE;
 
   static final int REQUEST_CODE_PHOTO_LIBRARY = 1;
 
   private static final String TAG = "Utils";
 
+  private static final PreviewSizeSelector.SizeReader<Camera.Size> CAMERA_SIZE_READER =
+      new PreviewSizeSelector.SizeReader<Camera.Size>() {
+        @Override
+        public int getWidth(Camera.Size size) {
+          return size.width;
+        }
+
+        @Override
+        public int getHeight(Camera.Size size) {
+          return size.height;
+        }
+      };
+
   static void requestRuntimePermissions(Activity activity) {
     List<String> allNeededPermissions = new ArrayList<>();
     for (String permission : getRequiredPermissions(activity)) {
@@ -107,23 +121,21 @@ public class Utils {
    * be set to a size that is the same aspect ratio as the preview size we choose. Otherwise, the
    * preview images may be distorted on some devices.
    */
-  public static List<CameraSizePair> generateValidPreviewSizeList(Camera camera) {
-    Camera.Parameters parameters = camera.getParameters();
+  public static List<CameraSizePair> generateValidPreviewSizeList(Camera.Parameters parameters) {
     List<Camera.Size> supportedPreviewSizes = parameters.getSupportedPreviewSizes();
     List<Camera.Size> supportedPictureSizes = parameters.getSupportedPictureSizes();
+    // By pairing with the first picture size of the same aspect ratio, we favor the higher
+    // resolutions. We choose the highest resolution in order to support taking the full resolution
+    // picture later.
+    int[] pictureSizeIndices =
+        PreviewSizeSelector.matchPictureSizes(
+            supportedPreviewSizes, supportedPictureSizes, CAMERA_SIZE_READER);
     List<CameraSizePair> validPreviewSizes = new ArrayList<>();
-    for (Camera.Size previewSize : supportedPreviewSizes) {
-      float previewAspectRatio = (float) previewSize.width / (float) previewSize.height;
-
-      // By looping through the picture sizes in order, we favor the higher resolutions.
-      // We choose the highest resolution in order to support taking the full resolution
-      // picture later.
-      for (Camera.Size pictureSize : supportedPictureSizes) {
-        float pictureAspectRatio = (float) pictureSize.width / (float) pictureSize.height;
-        if (Math.abs(previewAspectRatio - pictureAspectRatio) < ASPECT_RATIO_TOLERANCE) {
-          validPreviewSizes.add(new CameraSizePair(previewSize, pictureSize));
-          break;
-        }
+    for (int i = 0; i < pictureSizeIndices.length; i++) {
+      if (pictureSizeIndices[i] >= 0) {
+        validPreviewSizes.add(
+            new CameraSizePair(
+                supportedPreviewSizes.get(i), supportedPictureSizes.get(pictureSizeIndices[i])));
       }
     }
 
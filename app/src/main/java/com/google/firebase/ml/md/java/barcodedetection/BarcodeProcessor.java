@@ -17,12 +17,18 @@
 package com.google.firebase.ml.md.java.barcodedetection;
 
 import android.animation.ValueAnimator;
+import android.graphics.Rect;
 import android.graphics.RectF;
+import android.os.SystemClock;
 import android.util.Log;
+import androidx.annotation.GuardedBy;
 import androidx.annotation.MainThread;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
 import com.google.android.gms.tasks.Task;
 import com.google.firebase.ml.md.java.camera.CameraReticleAnimator;
-import com.google.firebase.ml.vision.FirebaseVision;
+import com.google.firebase.ml.md.java.camera.CameraSource;
+import com.google.firebase.ml.md.java.camera.DetectorPool;
 import com.google.firebase.ml.vision.barcode.FirebaseVisionBarcode;
 import com.google.firebase.ml.vision.barcode.FirebaseVisionBarcodeDetector;
 import com.google.firebase.ml.vision.common.FirebaseVisionImage;
@@ -31,7 +37,8 @@ import com.google.firebase.ml.md.java.camera.WorkflowModel;
 import com.google.firebase.ml.md.java.camera.WorkflowModel.WorkflowState;
 import com.google.firebase.ml.md.java.camera.FrameProcessorBase;
 import com.google.firebase.ml.md.java.settings.PreferenceUtils;
-import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.List;
 
 /** A processor to run the barcode detector. */
@@ -39,73 +46,253 @@ public class BarcodeProcessor extends FrameProcessorBase<List<FirebaseVisionBarc
 
   private static final String TAG = "BarcodeProcessor";
 
-  private final FirebaseVisionBarcodeDetector detector =
-      FirebaseVision.getInstance().getVisionBarcodeDetector();
+  /** Fraction of the reticle box size added on each side, so barcodes sticking out get read too. */
+  private static final float DETECTION_REGION_PADDING = 0.1f;
+
+  /** Farthest the camera zooms in on a barcode that is too small, beyond that it loses detail. */
+  private static final float MAX_ZOOM_RATIO = 3f;
+
+  /** Most a single zoom step scales the barcode by, so it doesn't leave the reticle or focus. */
+  private static final float MAX_ZOOM_STEP = 1.5f;
+
+  /** Time the focus gets to settle after a zoom step, before the barcode is measured again. */
+  private static final long ZOOM_STEP_INTERVAL_MS = 400;
+
+  /** Time without a barcode in the reticle after which the camera zooms back out. */
+  private static final long ZOOM_RESET_DELAY_MS = 2000;
+
+  private final DetectorPool.Lease<FirebaseVisionBarcodeDetector> detector;
   private final WorkflowModel workflowModel;
+  private final CameraSource cameraSource;
   private final CameraReticleAnimator cameraReticleAnimator;
+  // Kept for every frame without a barcode rather than recreated, made once the overlay is laid out
+  // as it sizes itself to the reticle box.
+  @Nullable private BarcodeReticleGraphic reticleGraphic;
+  // The layer of the overlay this processor draws on, next to those of any other processors.
+  private final GraphicOverlay.Layer layer;
+  // Only used on the main thread, to lay out the graphics of a frame before they replace the last.
+  private final List<GraphicOverlay.Graphic> graphics = new ArrayList<>();
+
+  private final boolean detectionRegionEnabled;
+  // Computed on the first frame after every layout of the overlay, rather than for every frame.
+  @Nullable private volatile ReticleRegions reticleRegions;
+
+  // The publishers that ran, kept for the results of the next frames.
+  @GuardedBy("idlePublishers")
+  private final ArrayDeque<ResultsPublisher> idlePublishers = new ArrayDeque<>();
+
+  private long lastZoomStepMs;
+  private long lastBarcodeMs;
+
+  /** Publishes the results of a frame on the main thread, and is recycled once it did. */
+  private class ResultsPublisher implements Runnable {
+    @Nullable FirebaseVisionBarcode barcodeInCenter;
+    float sizeProgress;
+    boolean zooming;
+    @Nullable GraphicOverlay graphicOverlay;
+
+    @MainThread
+    @Override
+    public void run() {
+      publishResults(barcodeInCenter, sizeProgress, zooming, graphicOverlay);
+      barcodeInCenter = null;
+      graphicOverlay = null;
+      synchronized (idlePublishers) {
+        idlePublishers.add(this);
+      }
+    }
+  }
 
-  public BarcodeProcessor(GraphicOverlay graphicOverlay, WorkflowModel workflowModel) {
+  /** The regions of the preview that the reticle box covers, for one layout of the overlay. */
+  private static class ReticleRegions {
+    final int layoutVersion;
+    // Null as long as the preview size isn't known yet.
+    @Nullable final Rect focusRegion;
+    @Nullable final Rect detectionRegion;
+
+    ReticleRegions(GraphicOverlay graphicOverlay, int layoutVersion) {
+      this.layoutVersion = layoutVersion;
+      RectF box = PreferenceUtils.getBarcodeReticleBox(graphicOverlay);
+      focusRegion = graphicOverlay.translateRectToPreview(box);
+      box.inset(-box.width() * DETECTION_REGION_PADDING, -box.height() * DETECTION_REGION_PADDING);
+      detectionRegion = graphicOverlay.translateRectToPreview(box);
+    }
+  }
+
+  public BarcodeProcessor(
+      GraphicOverlay graphicOverlay, WorkflowModel workflowModel, CameraSource cameraSource) {
+    super(graphicOverlay.getContext());
     this.workflowModel = workflowModel;
+    this.cameraSource = cameraSource;
+    this.layer = graphicOverlay.addLayer();
     this.cameraReticleAnimator = new CameraReticleAnimator(graphicOverlay);
+    this.detector = DetectorPool.getInstance().acquireBarcodeDetector(graphicOverlay.getContext());
+    this.detectionRegionEnabled =
+        PreferenceUtils.isBarcodeDetectionRegionEnabled(graphicOverlay.getContext());
+  }
+
+  /** Limits the detection to the reticle box, only a barcode covering its center gets picked. */
+  @Nullable
+  @Override
+  protected Rect getDetectionRegion(GraphicOverlay graphicOverlay) {
+    return detectionRegionEnabled ? getReticleRegions(graphicOverlay).detectionRegion : null;
+  }
+
+  private ReticleRegions getReticleRegions(GraphicOverlay graphicOverlay) {
+    int layoutVersion = graphicOverlay.getLayoutVersion();
+    ReticleRegions regions = reticleRegions;
+    if (regions == null || regions.layoutVersion != layoutVersion) {
+      regions = new ReticleRegions(graphicOverlay, layoutVersion);
+      reticleRegions = regions;
+    }
+    return regions;
   }
 
   @Override
   protected Task<List<FirebaseVisionBarcode>> detectInImage(FirebaseVisionImage image) {
-    return detector.detectInImage(image);
+    return detector.get().detectInImage(image);
   }
 
-  @MainThread
+  @WorkerThread
+  @Nullable
   @Override
-  protected void onSuccess(
+  protected Runnable onResults(
       FirebaseVisionImage image,
       List<FirebaseVisionBarcode> results,
+      @Nullable Rect detectionRegion,
       GraphicOverlay graphicOverlay) {
     if (!workflowModel.isCameraLive()) {
-      return;
+      return null;
     }
 
     Log.d(TAG, "Barcode result size: " + results.size());
 
-    // Picks the barcode, if exists, that covers the center of graphic overlay.
-    FirebaseVisionBarcode barcodeInCenter = null;
+    // Focuses and meters on the reticle rather than on whatever fills most of the frame, so the
+    // barcode the user points at is sharp and readable from the first frames on.
+    cameraSource.setFocusRegion(getReticleRegions(graphicOverlay).focusRegion);
+
+    FirebaseVisionBarcode barcodeInCenter =
+        findBarcodeInCenter(results, detectionRegion, graphicOverlay);
+    float sizeProgress =
+        barcodeInCenter != null
+            ? PreferenceUtils.getProgressToMeetBarcodeSizeRequirement(
+                graphicOverlay, barcodeInCenter)
+            : 0;
+    // Barcode in the camera view is too small, so zoom in on it as long as the camera can.
+    boolean zooming = barcodeInCenter != null && sizeProgress < 1 && zoomIn(sizeProgress);
+    if (barcodeInCenter != null) {
+      lastBarcodeMs = SystemClock.elapsedRealtime();
+    } else if (cameraSource.getZoomRatio() > 1f
+        && SystemClock.elapsedRealtime() - lastBarcodeMs > ZOOM_RESET_DELAY_MS) {
+      // The barcode is gone, so the next one may not fit the zoomed in view.
+      cameraSource.setZoomRatio(1f);
+    }
+    ResultsPublisher publisher;
+    synchronized (idlePublishers) {
+      publisher = idlePublishers.poll();
+    }
+    if (publisher == null) {
+      publisher = new ResultsPublisher();
+    }
+    publisher.barcodeInCenter = barcodeInCenter;
+    publisher.sizeProgress = sizeProgress;
+    publisher.zooming = zooming;
+    publisher.graphicOverlay = graphicOverlay;
+    return publisher;
+  }
+
+  /** Picks the barcode, if exists, that covers the center of graphic overlay. */
+  @Nullable
+  private static FirebaseVisionBarcode findBarcodeInCenter(
+      List<FirebaseVisionBarcode> results,
+      @Nullable Rect detectionRegion,
+      GraphicOverlay graphicOverlay) {
     for (FirebaseVisionBarcode barcode : results) {
-      RectF box = graphicOverlay.translateRect(barcode.getBoundingBox());
+      Rect boundingBox = toFrameCoordinates(barcode.getBoundingBox(), detectionRegion);
+      RectF box = graphicOverlay.translateRect(boundingBox);
       if (box.contains(graphicOverlay.getWidth() / 2f, graphicOverlay.getHeight() / 2f)) {
-        barcodeInCenter = barcode;
-        break;
+        return barcode;
       }
     }
+    return null;
+  }
+
+  @MainThread
+  private void publishResults(
+      @Nullable FirebaseVisionBarcode barcodeInCenter,
+      float sizeProgress,
+      boolean zooming,
+      GraphicOverlay graphicOverlay) {
+    if (!workflowModel.isCameraLive()) {
+      return;
+    }
 
-    graphicOverlay.clear();
+    graphics.clear();
     if (barcodeInCenter == null) {
       cameraReticleAnimator.start();
-      graphicOverlay.add(new BarcodeReticleGraphic(graphicOverlay, cameraReticleAnimator));
-      workflowModel.setWorkflowState(WorkflowState.DETECTING);
+      if (reticleGraphic == null) {
+        reticleGraphic = new BarcodeReticleGraphic(graphicOverlay, cameraReticleAnimator);
+      }
+      graphics.add(reticleGraphic);
+      workflowModel.proposeWorkflowState(this, WorkflowState.DETECTING);
 
     } else {
       cameraReticleAnimator.cancel();
-      float sizeProgress =
-          PreferenceUtils.getProgressToMeetBarcodeSizeRequirement(graphicOverlay, barcodeInCenter);
       if (sizeProgress < 1) {
-        // Barcode in the camera view is too small, so prompt user to move camera closer.
-        graphicOverlay.add(new BarcodeConfirmingGraphic(graphicOverlay, barcodeInCenter));
-        workflowModel.setWorkflowState(WorkflowState.CONFIRMING);
+        // Barcode in the camera view is too small, so prompt user to move camera closer once the
+        // camera can't zoom in any further.
+        graphics.add(new BarcodeConfirmingGraphic(graphicOverlay, barcodeInCenter));
+        workflowModel.proposeWorkflowState(
+            this, zooming ? WorkflowState.ZOOMING : WorkflowState.CONFIRMING);
 
       } else {
         // Barcode size in the camera view is sufficient.
         if (PreferenceUtils.shouldDelayLoadingBarcodeResult(graphicOverlay.getContext())) {
           ValueAnimator loadingAnimator = createLoadingAnimator(graphicOverlay, barcodeInCenter);
           loadingAnimator.start();
-          graphicOverlay.add(new BarcodeLoadingGraphic(graphicOverlay, loadingAnimator));
-          workflowModel.setWorkflowState(WorkflowState.SEARCHING);
+          graphics.add(new BarcodeLoadingGraphic(graphicOverlay, loadingAnimator));
+          workflowModel.proposeWorkflowState(this, WorkflowState.SEARCHING);
 
         } else {
-          workflowModel.setWorkflowState(WorkflowState.DETECTED);
+          workflowModel.proposeWorkflowState(this, WorkflowState.DETECTED);
           workflowModel.detectedBarcode.setValue(barcodeInCenter);
         }
       }
     }
-    graphicOverlay.invalidate();
+    layer.setGraphics(graphics);
+  }
+
+  /**
+   * Zooms in on a barcode that is too small by a step, or waits for the last step to settle.
+   *
+   * @return false if the camera can't zoom in any further.
+   */
+  private boolean zoomIn(float sizeProgress) {
+    float zoomRatio = cameraSource.getZoomRatio();
+    float maxZoomRatio = Math.min(MAX_ZOOM_RATIO, cameraSource.getMaxZoomRatio());
+    if (zoomRatio >= maxZoomRatio) {
+      return false;
+    }
+    long nowMs = SystemClock.elapsedRealtime();
+    if (nowMs - lastZoomStepMs < ZOOM_STEP_INTERVAL_MS) {
+      return true;
+    }
+    // The barcode grows along with the zoom, so zooming in by the inverse of the progress makes it
+    // just large enough.
+    float zoomStep = Math.min(MAX_ZOOM_STEP, 1f / Math.max(sizeProgress, 1f / MAX_ZOOM_STEP));
+    float newZoomRatio = cameraSource.setZoomRatio(Math.min(maxZoomRatio, zoomRatio * zoomStep));
+    lastZoomStepMs = nowMs;
+    return newZoomRatio > zoomRatio;
+  }
+
+  /** Maps a box relative to the detection region back to the coordinates of the whole frame. */
+  private static Rect toFrameCoordinates(Rect box, @Nullable Rect detectionRegion) {
+    if (detectionRegion == null) {
+      return box;
+    }
+    Rect frameBox = new Rect(box);
+    frameBox.offset(detectionRegion.left, detectionRegion.top);
+    return frameBox;
   }
 
   private ValueAnimator createLoadingAnimator(
@@ -116,8 +303,8 @@ public class BarcodeProcessor extends FrameProcessorBase<List<FirebaseVisionBarc
     loadingAnimator.addUpdateListener(
         animation -> {
           if (Float.compare((float) loadingAnimator.getAnimatedValue(), endProgress) >= 0) {
-            graphicOverlay.clear();
-            workflowModel.setWorkflowState(WorkflowState.SEARCHED);
+            layer.clear();
+            workflowModel.proposeWorkflowState(this, WorkflowState.SEARCHED);
             workflowModel.detectedBarcode.setValue(barcode);
           } else {
             graphicOverlay.invalidate();
@@ -133,10 +320,8 @@ public class BarcodeProcessor extends FrameProcessorBase<List<FirebaseVisionBarc
 
   @Override
   public void stop() {
-    try {
-      detector.close();
-    } catch (IOException e) {
-      Log.e(TAG, "Failed to close barcode detector!", e);
-    }
+    super.stop();
+    detector.release();
+    layer.remove();
   }
 }
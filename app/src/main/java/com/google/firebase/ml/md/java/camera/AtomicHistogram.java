@@ -0,0 +1,148 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.java.camera;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations in buckets of powers of two microseconds, which any number of threads
+ * record into at once without locking or allocating.
+ *
+ * <p>Unlike {@link LatencyHistogram}, it counts every sample since it was created rather than a
+ * window of the recent ones, so readers compare two snapshots to get the samples in between.
+ */
+public final class AtomicHistogram {
+
+  /**
+   * Bucket {@code i} counts the durations under {@code 2^i} microseconds that don't fit a lower
+   * bucket, the last one counts everything from about 8 seconds on.
+   */
+  static final int BUCKET_COUNT = 25;
+
+  private final AtomicLongArray bucketCounts = new AtomicLongArray(BUCKET_COUNT);
+  private final AtomicLong totalNs = new AtomicLong();
+  private final AtomicLong maxNs = new AtomicLong();
+
+  void record(long durationNs) {
+    durationNs = Math.max(durationNs, 0);
+    long durationUs = durationNs / 1000;
+    int bucket = Math.min(64 - Long.numberOfLeadingZeros(durationUs), BUCKET_COUNT - 1);
+    bucketCounts.incrementAndGet(bucket);
+    totalNs.addAndGet(durationNs);
+    long max = maxNs.get();
+    while (durationNs > max && !maxNs.compareAndSet(max, durationNs)) {
+      max = maxNs.get();
+    }
+  }
+
+  /**
+   * Returns a copy of the counts. Samples recorded while it's taken may be in some of its numbers
+   * but not in the others yet.
+   */
+  Snapshot snapshot() {
+    long[] counts = new long[BUCKET_COUNT];
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      counts[i] = bucketCounts.get(i);
+    }
+    return new Snapshot(counts, totalNs.get(), maxNs.get());
+  }
+
+  /** A point in time copy of the counts of a histogram. */
+  public static final class Snapshot {
+    private final long[] bucketCounts;
+    private final long count;
+    private final long totalNs;
+    private final long maxNs;
+
+    private Snapshot(long[] bucketCounts, long totalNs, long maxNs) {
+      this.bucketCounts = bucketCounts;
+      long count = 0;
+      for (long bucketCount : bucketCounts) {
+        count += bucketCount;
+      }
+      this.count = count;
+      this.totalNs = totalNs;
+      this.maxNs = maxNs;
+    }
+
+    /** Number of samples recorded. */
+    public long getCount() {
+      return count;
+    }
+
+    /** Sum of the samples in milliseconds. */
+    public float getTotalMs() {
+      return totalNs / 1e6f;
+    }
+
+    /** Average of the samples in milliseconds, or 0 if there's none. */
+    public float getMeanMs() {
+      return count > 0 ? totalNs / 1e6f / count : 0;
+    }
+
+    /** Longest sample in milliseconds. */
+    public float getMaxMs() {
+      return maxNs / 1e6f;
+    }
+
+    /**
+     * Returns the duration in milliseconds that the given fraction of the samples stay within,
+     * rounded up to the upper bound of its bucket, or 0 if there's no sample.
+     */
+    public float getPercentileMs(float fraction) {
+      if (count == 0) {
+        return 0;
+      }
+      long rank = Math.max(1, (long) Math.ceil(fraction * count));
+      long cumulativeCount = 0;
+      for (int bucket = 0; bucket < BUCKET_COUNT - 1; bucket++) {
+        cumulativeCount += bucketCounts[bucket];
+        if (cumulativeCount >= rank) {
+          return (1L << bucket) / 1e3f;
+        }
+      }
+      return getMaxMs();
+    }
+
+    /**
+     * Returns the samples recorded since the given earlier snapshot of the same histogram. Its
+     * longest sample is still the longest of all the samples.
+     */
+    public Snapshot since(Snapshot earlier) {
+      long[] counts = new long[BUCKET_COUNT];
+      for (int i = 0; i < BUCKET_COUNT; i++) {
+        counts[i] = bucketCounts[i] - earlier.bucketCounts[i];
+      }
+      return new Snapshot(counts, totalNs - earlier.totalNs, maxNs);
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          Locale.US,
+          "count=%d, meanMs=%.2f, p50Ms=%.2f, p90Ms=%.2f, p99Ms=%.2f, maxMs=%.2f",
+          count,
+          getMeanMs(),
+          getPercentileMs(0.5f),
+          getPercentileMs(0.9f),
+          getPercentileMs(0.99f),
+          getMaxMs());
+    }
+  }
+}
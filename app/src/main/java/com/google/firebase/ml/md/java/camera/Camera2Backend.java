@@ -0,0 +1,748 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.java.camera;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.params.MeteringRectangle;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Range;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+import androidx.annotation.GuardedBy;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+import com.google.android.gms.common.images.Size;
+import com.google.firebase.ml.md.java.settings.PreferenceUtils;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Streams the preview frames of the back camera through the camera2 API.
+ *
+ * <p>The camera renders the preview straight to the display surface and writes the frames for
+ * detection into an {@link ImageReader}. The only copy of a frame is the one from the image into an
+ * NV21 buffer, after which the image goes straight back to the camera, so the detection pipeline
+ * never holds up the preview.
+ */
+@RequiresApi(Build.VERSION_CODES.LOLLIPOP)
+class Camera2Backend implements CameraBackend {
+
+  private static final String TAG = "Camera2Backend";
+
+  /**
+   * Images the reader holds, the one being copied out and the one the camera fills next. {@link
+   * ImageReader#acquireLatestImage()} needs at least two.
+   */
+  private static final int MAX_READER_IMAGES = 2;
+
+  private static final long CAMERA_TIMEOUT_MS = 2500;
+
+  private final Context context;
+  private final GraphicOverlay graphicOverlay;
+  private final CameraManager cameraManager;
+  private final FrameBufferRecycler frameBuffers = new FrameBufferRecycler();
+
+  @GuardedBy("this")
+  @Nullable
+  private HandlerThread cameraThread;
+
+  @GuardedBy("this")
+  @Nullable
+  private Handler cameraHandler;
+
+  @GuardedBy("this")
+  @Nullable
+  private CameraDevice cameraDevice;
+
+  @GuardedBy("this")
+  @Nullable
+  private CameraCaptureSession captureSession;
+
+  @GuardedBy("this")
+  @Nullable
+  private ImageReader imageReader;
+
+  @GuardedBy("this")
+  @Nullable
+  private CaptureRequest.Builder requestBuilder;
+
+  @GuardedBy("this")
+  @Nullable
+  private Range<Integer>[] fpsRanges;
+
+  @GuardedBy("this")
+  @Nullable
+  private Range<Integer> fpsRange;
+
+  @GuardedBy("this")
+  @Nullable
+  private Size previewSize;
+
+  @GuardedBy("this")
+  private int minFrameBufferDepth = CameraSource.DEFAULT_MIN_FRAME_BUFFER_DEPTH;
+
+  @GuardedBy("this")
+  private int maxFrameBufferDepth = CameraSource.DEFAULT_MAX_FRAME_BUFFER_DEPTH;
+
+  @GuardedBy("this")
+  @Nullable
+  private CameraSizePair requestedSizePair;
+
+  /** The size of the active pixel array of the sensor, which zoom and regions are relative to. */
+  @GuardedBy("this")
+  @Nullable
+  private Rect activeArraySize;
+
+  @GuardedBy("this")
+  private float maxZoomRatio = 1f;
+
+  @GuardedBy("this")
+  private boolean focusRegionsSupported;
+
+  @GuardedBy("this")
+  private boolean meteringRegionsSupported;
+
+  @GuardedBy("this")
+  private float zoomRatio = 1f;
+
+  /** Kept to be mapped again onto the sensor when the zoom changes. */
+  @GuardedBy("this")
+  @Nullable
+  private Rect focusRegion;
+
+  /** Read on the camera thread, which only runs once the fields above have been set up. */
+  @Nullable private volatile FrameListener listener;
+
+  @Nullable private volatile FrameMetadata frameMetadata;
+
+  Camera2Backend(GraphicOverlay graphicOverlay) {
+    this.context = graphicOverlay.getContext();
+    this.graphicOverlay = graphicOverlay;
+    this.cameraManager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+  }
+
+  @Override
+  public synchronized void start(SurfaceHolder surfaceHolder, FrameListener listener)
+      throws IOException {
+    if (cameraDevice != null) {
+      return;
+    }
+
+    cameraThread = new HandlerThread(TAG);
+    cameraThread.start();
+    cameraHandler = new Handler(cameraThread.getLooper());
+    try {
+      openCamera(surfaceHolder, listener);
+    } catch (CameraAccessException | RuntimeException e) {
+      stop();
+      throw new IOException("Failed to start the camera.", e);
+    } catch (IOException e) {
+      stop();
+      throw e;
+    }
+  }
+
+  @GuardedBy("this")
+  private void openCamera(SurfaceHolder surfaceHolder, FrameListener listener)
+      throws CameraAccessException, IOException {
+    String cameraId = findBackCameraId();
+    CameraCharacteristics characteristics = cameraManager.getCameraCharacteristics(cameraId);
+    StreamConfigurationMap configurationMap =
+        characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+    CameraSizePair sizePair = selectSizePair(configurationMap);
+    if (sizePair == null) {
+      throw new IOException("Could not find suitable preview size.");
+    }
+    previewSize = sizePair.preview;
+    Log.v(TAG, "Camera preview size: " + previewSize);
+
+    Integer sensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+    int angle =
+        CameraSource.getFrameRotationDegrees(
+            context, sensorOrientation != null ? sensorOrientation : 0);
+    // This corresponds to the rotation constants in FirebaseVisionImageMetadata.
+    frameMetadata = new FrameMetadata(previewSize.getWidth(), previewSize.getHeight(), angle / 90);
+    frameBuffers.reset(
+        previewSize.getWidth() * previewSize.getHeight() * 3 / 2,
+        minFrameBufferDepth,
+        maxFrameBufferDepth);
+
+    fpsRanges = characteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+    fpsRange = selectFpsRange(fpsRanges, CameraSource.REQUESTED_CAMERA_FPS);
+    if (fpsRange == null) {
+      throw new IOException("Could not find suitable preview frames per second range.");
+    }
+
+    imageReader =
+        ImageReader.newInstance(
+            previewSize.getWidth(),
+            previewSize.getHeight(),
+            ImageFormat.YUV_420_888,
+            MAX_READER_IMAGES);
+    imageReader.setOnImageAvailableListener(this::onImageAvailable, cameraHandler);
+    surfaceHolder.setFixedSize(previewSize.getWidth(), previewSize.getHeight());
+    Surface previewSurface = surfaceHolder.getSurface();
+    Surface frameSurface = imageReader.getSurface();
+
+    cameraDevice = awaitCameraDevice(cameraId);
+    captureSession =
+        awaitCaptureSession(cameraDevice, Arrays.asList(previewSurface, frameSurface));
+
+    requestBuilder = cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+    requestBuilder.addTarget(previewSurface);
+    requestBuilder.addTarget(frameSurface);
+    int[] afModes = characteristics.get(CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES);
+    if (contains(afModes, CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_VIDEO)) {
+      requestBuilder.set(
+          CaptureRequest.CONTROL_AF_MODE, CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_VIDEO);
+    } else {
+      Log.i(TAG, "Camera auto focus is not supported on this device.");
+    }
+    requestBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, fpsRange);
+
+    activeArraySize = characteristics.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
+    Float maxDigitalZoom =
+        characteristics.get(CameraCharacteristics.SCALER_AVAILABLE_MAX_DIGITAL_ZOOM);
+    maxZoomRatio = activeArraySize != null && maxDigitalZoom != null ? maxDigitalZoom : 1f;
+    zoomRatio = 1f;
+    focusRegion = null;
+    Integer maxFocusRegions = characteristics.get(CameraCharacteristics.CONTROL_MAX_REGIONS_AF);
+    focusRegionsSupported =
+        activeArraySize != null && maxFocusRegions != null && maxFocusRegions > 0;
+    Integer maxMeteringRegions = characteristics.get(CameraCharacteristics.CONTROL_MAX_REGIONS_AE);
+    meteringRegionsSupported =
+        activeArraySize != null && maxMeteringRegions != null && maxMeteringRegions > 0;
+
+    this.listener = listener;
+    captureSession.setRepeatingRequest(requestBuilder.build(), null, cameraHandler);
+    listener.onFrameRateChanged(fpsRange.getUpper());
+  }
+
+  @Override
+  public void stop() {
+    HandlerThread cameraThread;
+    synchronized (this) {
+      listener = null;
+      if (captureSession != null) {
+        captureSession.close();
+        captureSession = null;
+      }
+      if (cameraDevice != null) {
+        cameraDevice.close();
+        cameraDevice = null;
+      }
+      if (imageReader != null) {
+        imageReader.close();
+        imageReader = null;
+      }
+      requestBuilder = null;
+      fpsRanges = null;
+      fpsRange = null;
+      maxZoomRatio = 1f;
+      cameraThread = this.cameraThread;
+      this.cameraThread = null;
+      cameraHandler = null;
+    }
+
+    if (cameraThread != null) {
+      // The camera thread may be waiting for the lock in requestFrameRate(), so lets it finish up
+      // on its own rather than joining it.
+      cameraThread.quitSafely();
+    }
+    frameBuffers.clear();
+  }
+
+  @Nullable
+  @Override
+  public synchronized Size getPreviewSize() {
+    return previewSize;
+  }
+
+  @Override
+  public synchronized void requestFrameRate(float frameRate) {
+    if (requestBuilder == null || listener == null) {
+      return;
+    }
+    Range<Integer> range = selectFpsRange(fpsRanges, frameRate);
+    if (range == null || range.equals(fpsRange)) {
+      return;
+    }
+    requestBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, range);
+    if (!updateRepeatingRequest()) {
+      requestBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, fpsRange);
+      return;
+    }
+    fpsRange = range;
+    Log.d(TAG, "Updated the preview fps range to " + range);
+    listener.onFrameRateChanged(range.getUpper());
+  }
+
+  @Override
+  public synchronized void setTorchEnabled(boolean enabled) {
+    if (requestBuilder == null) {
+      return;
+    }
+    requestBuilder.set(
+        CaptureRequest.FLASH_MODE,
+        enabled ? CameraMetadata.FLASH_MODE_TORCH : CameraMetadata.FLASH_MODE_OFF);
+    updateRepeatingRequest();
+  }
+
+  @Override
+  public synchronized void setFrameBufferDepth(int minDepth, int maxDepth) {
+    minFrameBufferDepth = minDepth;
+    maxFrameBufferDepth = maxDepth;
+  }
+
+  @Override
+  public synchronized void setPreviewSizePair(@Nullable CameraSizePair sizePair) {
+    requestedSizePair = sizePair;
+  }
+
+  @Override
+  public synchronized void setFocusRegion(@Nullable Rect uprightRegion) {
+    if (requestBuilder == null || (!focusRegionsSupported && !meteringRegionsSupported)) {
+      return;
+    }
+    focusRegion = uprightRegion;
+    setRegions(uprightRegion);
+    updateRepeatingRequest();
+  }
+
+  /** Sets the focus and metering regions of the requests, without updating the running one. */
+  @GuardedBy("this")
+  private void setRegions(@Nullable Rect uprightRegion) {
+    FrameMetadata metadata = frameMetadata;
+    CropRegion frameRegion =
+        uprightRegion != null && metadata != null
+            ? CropRegion.fromUprightRegion(uprightRegion, metadata)
+            : null;
+    MeteringRectangle[] regions = null;
+    if (frameRegion != null) {
+      regions =
+          new MeteringRectangle[] {
+            new MeteringRectangle(
+                toSensorRect(frameRegion, metadata), MeteringRectangle.METERING_WEIGHT_MAX)
+          };
+    }
+    if (focusRegionsSupported) {
+      requestBuilder.set(CaptureRequest.CONTROL_AF_REGIONS, regions);
+    }
+    if (meteringRegionsSupported) {
+      requestBuilder.set(CaptureRequest.CONTROL_AE_REGIONS, regions);
+    }
+  }
+
+  /**
+   * Maps a region of the frame onto the active array of the sensor. The frames are the zoomed in
+   * crop of the sensor scaled down to the frame size, and cropped to its aspect ratio.
+   */
+  @GuardedBy("this")
+  private Rect toSensorRect(CropRegion frameRegion, FrameMetadata metadata) {
+    Rect cropRegion = getCropRegion(zoomRatio);
+    float scale =
+        Math.min(
+            (float) cropRegion.width() / metadata.width,
+            (float) cropRegion.height() / metadata.height);
+    float left = cropRegion.left + (cropRegion.width() - metadata.width * scale) / 2;
+    float top = cropRegion.top + (cropRegion.height() - metadata.height * scale) / 2;
+    return new Rect(
+        Math.round(left + frameRegion.left * scale),
+        Math.round(top + frameRegion.top * scale),
+        Math.round(left + (frameRegion.left + frameRegion.width) * scale),
+        Math.round(top + (frameRegion.top + frameRegion.height) * scale));
+  }
+
+  /** Returns the centered crop of the active array the sensor is zoomed in to. */
+  @GuardedBy("this")
+  private Rect getCropRegion(float zoomRatio) {
+    int width = Math.round(activeArraySize.width() / zoomRatio);
+    int height = Math.round(activeArraySize.height() / zoomRatio);
+    int left = (activeArraySize.width() - width) / 2;
+    int top = (activeArraySize.height() - height) / 2;
+    return new Rect(left, top, left + width, top + height);
+  }
+
+  @Override
+  public synchronized float setZoomRatio(float zoomRatio) {
+    if (requestBuilder == null || activeArraySize == null) {
+      return 1f;
+    }
+    float newZoomRatio = Math.max(1f, Math.min(zoomRatio, maxZoomRatio));
+    if (newZoomRatio == this.zoomRatio) {
+      return newZoomRatio;
+    }
+    float oldZoomRatio = this.zoomRatio;
+    this.zoomRatio = newZoomRatio;
+    requestBuilder.set(CaptureRequest.SCALER_CROP_REGION, getCropRegion(newZoomRatio));
+    // The regions are relative to the sensor, so they move along with the crop.
+    setRegions(focusRegion);
+    if (!updateRepeatingRequest()) {
+      this.zoomRatio = oldZoomRatio;
+      requestBuilder.set(CaptureRequest.SCALER_CROP_REGION, getCropRegion(oldZoomRatio));
+      setRegions(focusRegion);
+    }
+    return this.zoomRatio;
+  }
+
+  @Override
+  public synchronized float getMaxZoomRatio() {
+    return maxZoomRatio;
+  }
+
+  @GuardedBy("this")
+  private boolean updateRepeatingRequest() {
+    if (captureSession == null || requestBuilder == null) {
+      return false;
+    }
+    try {
+      captureSession.setRepeatingRequest(requestBuilder.build(), null, cameraHandler);
+      return true;
+    } catch (CameraAccessException | IllegalStateException e) {
+      Log.w(TAG, "Failed to update the capture request", e);
+      return false;
+    }
+  }
+
+  private String findBackCameraId() throws CameraAccessException, IOException {
+    for (String cameraId : cameraManager.getCameraIdList()) {
+      Integer facing =
+          cameraManager.getCameraCharacteristics(cameraId).get(CameraCharacteristics.LENS_FACING);
+      if (facing != null && facing == CameraMetadata.LENS_FACING_BACK) {
+        return cameraId;
+      }
+    }
+    throw new IOException("There is no back-facing camera.");
+  }
+
+  @SuppressLint("MissingPermission")
+  @GuardedBy("this")
+  private CameraDevice awaitCameraDevice(String cameraId)
+      throws CameraAccessException, IOException {
+    PendingResult<CameraDevice> result = new PendingResult<>();
+    cameraManager.openCamera(
+        cameraId,
+        new CameraDevice.StateCallback() {
+          @Override
+          public void onOpened(CameraDevice camera) {
+            if (!result.set(camera)) {
+              camera.close();
+            }
+          }
+
+          @Override
+          public void onDisconnected(CameraDevice camera) {
+            camera.close();
+            result.set(null);
+          }
+
+          @Override
+          public void onError(CameraDevice camera, int error) {
+            Log.e(TAG, "Camera error: " + error);
+            camera.close();
+            result.set(null);
+          }
+        },
+        cameraHandler);
+    CameraDevice camera = result.await("open the camera");
+    if (camera == null) {
+      throw new IOException("Failed to open the camera.");
+    }
+    return camera;
+  }
+
+  @GuardedBy("this")
+  private CameraCaptureSession awaitCaptureSession(CameraDevice camera, List<Surface> outputs)
+      throws CameraAccessException, IOException {
+    PendingResult<CameraCaptureSession> result = new PendingResult<>();
+    camera.createCaptureSession(
+        outputs,
+        new CameraCaptureSession.StateCallback() {
+          @Override
+          public void onConfigured(CameraCaptureSession session) {
+            if (!result.set(session)) {
+              session.close();
+            }
+          }
+
+          @Override
+          public void onConfigureFailed(CameraCaptureSession session) {
+            result.set(null);
+          }
+        },
+        cameraHandler);
+    CameraCaptureSession session = result.await("configure the camera");
+    if (session == null) {
+      throw new IOException("Failed to configure the camera.");
+    }
+    return session;
+  }
+
+  /**
+   * Selects the preview size among the ones both the display surface and the image reader support,
+   * giving priority to the one specified by the user and then to the requested one.
+   */
+  @GuardedBy("this")
+  @Nullable
+  private CameraSizePair selectSizePair(@Nullable StreamConfigurationMap configurationMap) {
+    if (configurationMap == null) {
+      return null;
+    }
+    List<android.util.Size> previewSizes =
+        Arrays.asList(configurationMap.getOutputSizes(SurfaceHolder.class));
+    List<CameraSizePair> validSizes = new ArrayList<>();
+    for (android.util.Size size : configurationMap.getOutputSizes(ImageFormat.YUV_420_888)) {
+      if (previewSizes.contains(size)) {
+        validSizes.add(new CameraSizePair(new Size(size.getWidth(), size.getHeight()), null));
+      }
+    }
+
+    CameraSizePair sizePair =
+        CameraSource.findSizePair(validSizes, PreferenceUtils.getUserSpecifiedPreviewSize(context));
+    if (sizePair == null) {
+      sizePair = CameraSource.findSizePair(validSizes, requestedSizePair);
+    }
+    if (sizePair != null) {
+      return sizePair;
+    }
+    return CameraSource.selectSizePair(
+        validSizes, CameraSource.getDisplayAspectRatioInLandscape(graphicOverlay));
+  }
+
+  /**
+   * Selects the most suitable frames per second range, the same way as the legacy camera does: by
+   * minimizing the sum of the differences between the desired value and the bounds of the range.
+   */
+  @Nullable
+  private static Range<Integer> selectFpsRange(
+      @Nullable Range<Integer>[] ranges, float desiredFps) {
+    if (ranges == null) {
+      return null;
+    }
+    Range<Integer> selectedRange = null;
+    float minDiff = Float.MAX_VALUE;
+    for (Range<Integer> range : ranges) {
+      float diff =
+          Math.abs(desiredFps - range.getLower()) + Math.abs(desiredFps - range.getUpper());
+      if (diff < minDiff) {
+        selectedRange = range;
+        minDiff = diff;
+      }
+    }
+    return selectedRange;
+  }
+
+  private static boolean contains(@Nullable int[] values, int value) {
+    if (values != null) {
+      for (int v : values) {
+        if (v == value) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /** Copies the latest image into a frame buffer and hands it over, on the camera thread. */
+  private void onImageAvailable(ImageReader reader) {
+    Image image;
+    try {
+      image = reader.acquireLatestImage();
+    } catch (IllegalStateException e) {
+      // The reader has been closed by stop().
+      return;
+    }
+    if (image == null) {
+      return;
+    }
+
+    SharedFrame frame = null;
+    try {
+      FrameListener listener = this.listener;
+      FrameMetadata metadata = frameMetadata;
+      if (listener == null || metadata == null || !listener.admitFrame()) {
+        return;
+      }
+      frame = frameBuffers.obtainFrame(metadata);
+      if (frame == null) {
+        Log.d(TAG, "Skipping frame. The pipeline holds all the frame buffers.");
+        return;
+      }
+      copyToNv21(image, frame.data.array());
+      image.close();
+      image = null;
+      listener.onFrame(frame);
+      frame = null;
+    } catch (IllegalStateException e) {
+      // The image has been closed along with the reader.
+      Log.d(TAG, "Skipping frame. The camera has been closed.");
+    } finally {
+      if (image != null) {
+        image.close();
+      }
+      if (frame != null) {
+        frame.release();
+      }
+    }
+  }
+
+  /** Copies a YUV_420_888 image into an NV21 array, with the rows packed tight. */
+  private static void copyToNv21(Image image, byte[] nv21) {
+    int width = image.getWidth();
+    int height = image.getHeight();
+    Image.Plane[] planes = image.getPlanes();
+    int ySize = width * height;
+
+    if (areUvPlanesNv21(planes, width, height)) {
+      // The camera already wrote the frame in NV21, so the planes can be copied in bulk: all of
+      // the Y plane, then the first V value followed by the whole U plane, which the V plane
+      // overlaps one byte ahead of.
+      planes[0].getBuffer().get(nv21, 0, ySize);
+      ByteBuffer uBuffer = planes[1].getBuffer();
+      ByteBuffer vBuffer = planes[2].getBuffer();
+      vBuffer.get(nv21, ySize, 1);
+      uBuffer.get(nv21, ySize + 1, 2 * ySize / 4 - 1);
+      return;
+    }
+
+    copyPlane(planes[0], width, height, nv21, 0, 1);
+    copyPlane(planes[1], width / 2, height / 2, nv21, ySize + 1, 2);
+    copyPlane(planes[2], width / 2, height / 2, nv21, ySize, 2);
+  }
+
+  /** Checks whether the U and V planes are laid out as the interleaved chroma plane of NV21. */
+  private static boolean areUvPlanesNv21(Image.Plane[] planes, int width, int height) {
+    if (planes[0].getRowStride() != width
+        || planes[1].getRowStride() != width
+        || planes[2].getRowStride() != width
+        || planes[1].getPixelStride() != 2
+        || planes[2].getPixelStride() != 2) {
+      return false;
+    }
+    int imageSize = width * height;
+    ByteBuffer uBuffer = planes[1].getBuffer();
+    ByteBuffer vBuffer = planes[2].getBuffer();
+    if (uBuffer.remaining() < imageSize / 2 - 1 || vBuffer.remaining() < 1) {
+      return false;
+    }
+
+    // Checks whether the V plane starts one byte before the U plane, by writing through the V
+    // plane into the U plane and restoring the byte afterwards.
+    byte vBufferSecondPixel = vBuffer.get(vBuffer.position() + 1);
+    byte changed = (byte) ~vBufferSecondPixel;
+    try {
+      vBuffer.put(vBuffer.position() + 1, changed);
+    } catch (ReadOnlyBufferException e) {
+      return false;
+    }
+    boolean overlapping = uBuffer.get(uBuffer.position()) == changed;
+    vBuffer.put(vBuffer.position() + 1, vBufferSecondPixel);
+    return overlapping;
+  }
+
+  /**
+   * Copies a plane honoring its row and pixel strides, writing a value every {@code outputStride}
+   * bytes from {@code offset} on.
+   */
+  private static void copyPlane(
+      Image.Plane plane, int width, int height, byte[] out, int offset, int outputStride) {
+    ByteBuffer buffer = plane.getBuffer();
+    int start = buffer.position();
+    int rowStride = plane.getRowStride();
+    int pixelStride = plane.getPixelStride();
+    int outputIndex = offset;
+    for (int row = 0; row < height; row++) {
+      int inputIndex = start + row * rowStride;
+      if (pixelStride == 1 && outputStride == 1) {
+        buffer.position(inputIndex);
+        buffer.get(out, outputIndex, width);
+        outputIndex += width;
+      } else {
+        for (int col = 0; col < width; col++) {
+          out[outputIndex] = buffer.get(inputIndex);
+          inputIndex += pixelStride;
+          outputIndex += outputStride;
+        }
+      }
+    }
+  }
+
+  /** Hands the result of an asynchronous camera call over to the thread waiting for it. */
+  private static class PendingResult<T> {
+
+    @Nullable private T result;
+    private boolean done;
+    private boolean abandoned;
+
+    /**
+     * Sets the result, unless the waiting thread has given up on it already, in which case the
+     * caller disposes of it.
+     *
+     * @return whether the result has been handed over.
+     */
+    synchronized boolean set(@Nullable T result) {
+      if (abandoned || done) {
+        return false;
+      }
+      this.result = result;
+      done = true;
+      notifyAll();
+      return true;
+    }
+
+    @Nullable
+    synchronized T await(String operation) throws IOException {
+      long deadlineMs = SystemClock.elapsedRealtime() + CAMERA_TIMEOUT_MS;
+      while (!done) {
+        long remainingMs = deadlineMs - SystemClock.elapsedRealtime();
+        if (remainingMs <= 0) {
+          abandoned = true;
+          throw new IOException("Timed out waiting to " + operation + ".");
+        }
+        try {
+          wait(remainingMs);
+        } catch (InterruptedException e) {
+          abandoned = true;
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted while waiting to " + operation + ".", e);
+        }
+      }
+      return result;
+    }
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.java.camera;
+
+import android.graphics.Rect;
+import android.view.SurfaceHolder;
+import androidx.annotation.Nullable;
+import com.google.android.gms.common.images.Size;
+import java.io.IOException;
+
+/**
+ * The source of the preview frames of a {@link CameraSource}, one per camera API.
+ *
+ * <p>A backend owns the camera and the frame buffers. It hands frames over as NV21 {@link
+ * SharedFrame}s, and takes the buffer of a frame back once its last reference is released.
+ */
+interface CameraBackend {
+
+  /** Receives the frames of a started backend, on a thread of the backend. */
+  interface FrameListener {
+
+    /**
+     * Returns whether the frame the camera just delivered is wanted, asked before any work is spent
+     * on it.
+     */
+    boolean admitFrame();
+
+    /** Hands an admitted frame over, along with the reference to it. */
+    void onFrame(SharedFrame frame);
+
+    /** Called once the camera streams at a new frame rate, including when it starts streaming. */
+    void onFrameRateChanged(float frameRate);
+  }
+
+  /**
+   * Opens the camera, shows its preview on the given surface and starts streaming frames to the
+   * listener.
+   *
+   * @throws IOException if the camera can't be opened or configured.
+   */
+  void start(SurfaceHolder surfaceHolder, FrameListener listener) throws IOException;
+
+  /** Stops streaming and closes the camera, the backend may be started again afterwards. */
+  void stop();
+
+  /** Returns the size of the frames, or null if the backend hasn't been started yet. */
+  @Nullable
+  Size getPreviewSize();
+
+  /** Switches the camera to the supported frame rate closest to the given one, if any. */
+  void requestFrameRate(float frameRate);
+
+  void setTorchEnabled(boolean enabled);
+
+  /** See {@link CameraSource#setFrameBufferDepth(int, int)}, takes effect on the next start. */
+  void setFrameBufferDepth(int minDepth, int maxDepth);
+
+  /**
+   * Sets the preview size to use instead of the one the backend would pick, if the camera supports
+   * it, or null to let the backend pick. The size the user specified in the settings still takes
+   * priority. Takes effect on the next start.
+   */
+  void setPreviewSizePair(@Nullable CameraSizePair sizePair);
+
+  /**
+   * Makes the running camera focus and meter on the given region of the upright frame, or across
+   * the whole frame if null, as far as the camera supports regions.
+   */
+  void setFocusRegion(@Nullable Rect uprightRegion);
+
+  /**
+   * Zooms the running camera to the supported ratio closest to the given one without going over it,
+   * 1 being the full field of view.
+   *
+   * @return the ratio the camera zoomed to, 1 if it isn't running or can't zoom.
+   */
+  float setZoomRatio(float zoomRatio);
+
+  /** Returns the largest ratio the running camera zooms to, 1 if it isn't running or can't zoom. */
+  float getMaxZoomRatio();
+}
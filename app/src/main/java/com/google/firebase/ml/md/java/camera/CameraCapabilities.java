@@ -0,0 +1,130 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.java.camera;
+
+import android.hardware.Camera;
+import android.hardware.Camera.CameraInfo;
+import com.google.android.gms.common.images.Size;
+import com.google.common.collect.ImmutableList;
+import com.google.firebase.ml.md.java.Utils;
+import java.util.List;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The capabilities of the back camera that the app picks its camera settings from, as probed once
+ * and then served from {@link CameraCapabilityStore}.
+ */
+public class CameraCapabilities {
+
+  /** The preview sizes, each with a picture size of the same aspect ratio if there's one. */
+  public final List<CameraSizePair> previewSizePairs;
+
+  /** The supported preview frames per second ranges, scaled by 1000 as the camera API has them. */
+  final List<int[]> previewFpsRanges;
+
+  final List<String> focusModes;
+
+  /** The clockwise angle the camera sensor is mounted at, relative to the natural orientation. */
+  final int sensorOrientation;
+
+  private CameraCapabilities(
+      List<CameraSizePair> previewSizePairs,
+      List<int[]> previewFpsRanges,
+      List<String> focusModes,
+      int sensorOrientation) {
+    this.previewSizePairs = previewSizePairs;
+    this.previewFpsRanges = previewFpsRanges;
+    this.focusModes = focusModes;
+    this.sensorOrientation = sensorOrientation;
+  }
+
+  /** Reads the capabilities of the given open back camera from its parameters. */
+  static CameraCapabilities fromCamera(Camera.Parameters parameters) {
+    CameraInfo cameraInfo = new CameraInfo();
+    Camera.getCameraInfo(CameraSource.CAMERA_FACING_BACK, cameraInfo);
+    return new CameraCapabilities(
+        ImmutableList.copyOf(Utils.generateValidPreviewSizeList(parameters)),
+        ImmutableList.copyOf(parameters.getSupportedPreviewFpsRange()),
+        ImmutableList.copyOf(parameters.getSupportedFocusModes()),
+        cameraInfo.orientation);
+  }
+
+  static CameraCapabilities fromJson(JSONObject json) throws JSONException {
+    ImmutableList.Builder<CameraSizePair> previewSizePairs = ImmutableList.builder();
+    JSONArray sizePairsJson = json.getJSONArray("previewSizePairs");
+    for (int i = 0; i < sizePairsJson.length(); i++) {
+      JSONObject sizePairJson = sizePairsJson.getJSONObject(i);
+      previewSizePairs.add(
+          new CameraSizePair(
+              Size.parseSize(sizePairJson.getString("preview")),
+              sizePairJson.has("picture")
+                  ? Size.parseSize(sizePairJson.getString("picture"))
+                  : null));
+    }
+
+    ImmutableList.Builder<int[]> previewFpsRanges = ImmutableList.builder();
+    JSONArray fpsRangesJson = json.getJSONArray("previewFpsRanges");
+    for (int i = 0; i < fpsRangesJson.length(); i++) {
+      JSONArray fpsRangeJson = fpsRangesJson.getJSONArray(i);
+      previewFpsRanges.add(new int[] {fpsRangeJson.getInt(0), fpsRangeJson.getInt(1)});
+    }
+
+    ImmutableList.Builder<String> focusModes = ImmutableList.builder();
+    JSONArray focusModesJson = json.getJSONArray("focusModes");
+    for (int i = 0; i < focusModesJson.length(); i++) {
+      focusModes.add(focusModesJson.getString(i));
+    }
+
+    return new CameraCapabilities(
+        previewSizePairs.build(),
+        previewFpsRanges.build(),
+        focusModes.build(),
+        json.getInt("sensorOrientation"));
+  }
+
+  JSONObject toJson() throws JSONException {
+    JSONArray sizePairsJson = new JSONArray();
+    for (CameraSizePair sizePair : previewSizePairs) {
+      JSONObject sizePairJson = new JSONObject().put("preview", sizePair.preview.toString());
+      if (sizePair.picture != null) {
+        sizePairJson.put("picture", sizePair.picture.toString());
+      }
+      sizePairsJson.put(sizePairJson);
+    }
+
+    JSONArray fpsRangesJson = new JSONArray();
+    for (int[] fpsRange : previewFpsRanges) {
+      fpsRangesJson.put(
+          new JSONArray()
+              .put(fpsRange[Camera.Parameters.PREVIEW_FPS_MIN_INDEX])
+              .put(fpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]));
+    }
+
+    JSONArray focusModesJson = new JSONArray();
+    for (String focusMode : focusModes) {
+      focusModesJson.put(focusMode);
+    }
+
+    return new JSONObject()
+        .put("previewSizePairs", sizePairsJson)
+        .put("previewFpsRanges", fpsRangesJson)
+        .put("focusModes", focusModesJson)
+        .put("sensorOrientation", sensorOrientation);
+  }
+}
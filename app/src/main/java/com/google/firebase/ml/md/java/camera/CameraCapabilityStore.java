@@ -0,0 +1,162 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.java.camera;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.hardware.Camera;
+import android.os.Build;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Keeps the {@link CameraCapabilities} of the device, so that the camera is probed once rather than
+ * on every camera start and every time the settings are opened.
+ *
+ * <p>The capabilities are persisted along with the fingerprint of the device and OS build they
+ * were probed on, and probed again once that changes. Probing opens the camera, so it happens in
+ * the background, and the camera is opened through {@link #openBackCamera()} so that a camera start
+ * waits for a probe in progress rather than failing to connect.
+ */
+public final class CameraCapabilityStore {
+
+  private static final String TAG = "CameraCapabilityStore";
+
+  private static final String PREFERENCES_NAME = "camera_capabilities";
+  private static final String KEY_BUILD_FINGERPRINT = "build_fingerprint";
+  private static final String KEY_CAPABILITIES = "capabilities";
+
+  /** Only one client of the app can have the camera open at a time. */
+  private static final Object cameraLock = new Object();
+
+  private static final ExecutorService probeExecutor = Executors.newSingleThreadExecutor();
+
+  @Nullable private static volatile CameraCapabilities capabilities;
+
+  private CameraCapabilityStore() {}
+
+  /**
+   * Returns the capabilities of the back camera, probing the camera in the background if they
+   * aren't known yet. The task fails if there's no back camera or it can't be opened.
+   */
+  public static Task<CameraCapabilities> load(Context context) {
+    Context appContext = context.getApplicationContext();
+    CameraCapabilities cached = getCached(appContext);
+    if (cached != null) {
+      return Tasks.forResult(cached);
+    }
+    return Tasks.call(probeExecutor, () -> probe(appContext));
+  }
+
+  /** Returns the capabilities of the back camera if they are known, without touching the camera. */
+  @Nullable
+  static CameraCapabilities getCached(Context context) {
+    CameraCapabilities cached = capabilities;
+    if (cached != null) {
+      return cached;
+    }
+    SharedPreferences preferences = getPreferences(context);
+    String json = preferences.getString(KEY_CAPABILITIES, null);
+    String buildFingerprint = preferences.getString(KEY_BUILD_FINGERPRINT, null);
+    if (json == null || !Build.FINGERPRINT.equals(buildFingerprint)) {
+      return null;
+    }
+    try {
+      cached = CameraCapabilities.fromJson(new JSONObject(json));
+    } catch (JSONException e) {
+      Log.w(TAG, "Discarding unreadable camera capabilities.", e);
+      return null;
+    }
+    capabilities = cached;
+    return cached;
+  }
+
+  /**
+   * Returns the capabilities of the given back camera, from the store if they are known already or
+   * else read from the parameters of the camera and stored.
+   */
+  static CameraCapabilities getOrCreate(Context context, Camera.Parameters parameters) {
+    CameraCapabilities cached = getCached(context);
+    if (cached != null) {
+      return cached;
+    }
+    CameraCapabilities probed = CameraCapabilities.fromCamera(parameters);
+    save(context, probed);
+    return probed;
+  }
+
+  /**
+   * Opens the back camera, after waiting for a probe in progress to release it.
+   *
+   * @throws IOException if there's no back camera.
+   */
+  static Camera openBackCamera() throws IOException {
+    Camera camera;
+    synchronized (cameraLock) {
+      camera = Camera.open();
+    }
+    if (camera == null) {
+      throw new IOException("There is no back-facing camera.");
+    }
+    return camera;
+  }
+
+  private static CameraCapabilities probe(Context context) throws IOException {
+    synchronized (cameraLock) {
+      // Another caller may have probed the camera while this one waited.
+      CameraCapabilities cached = getCached(context);
+      if (cached != null) {
+        return cached;
+      }
+      Camera camera = Camera.open();
+      if (camera == null) {
+        throw new IOException("There is no back-facing camera.");
+      }
+      try {
+        CameraCapabilities probed = CameraCapabilities.fromCamera(camera.getParameters());
+        save(context, probed);
+        return probed;
+      } finally {
+        camera.release();
+      }
+    }
+  }
+
+  private static void save(Context context, CameraCapabilities probed) {
+    capabilities = probed;
+    try {
+      getPreferences(context)
+          .edit()
+          .putString(KEY_BUILD_FINGERPRINT, Build.FINGERPRINT)
+          .putString(KEY_CAPABILITIES, probed.toJson().toString())
+          .apply();
+    } catch (JSONException e) {
+      Log.w(TAG, "Failed to persist the camera capabilities.", e);
+    }
+  }
+
+  private static SharedPreferences getPreferences(Context context) {
+    return context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+  }
+}
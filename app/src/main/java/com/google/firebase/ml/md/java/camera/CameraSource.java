@@ -17,24 +17,27 @@
 package com.google.firebase.ml.md.java.camera;
 
 import android.content.Context;
-import android.graphics.ImageFormat;
+import android.graphics.Rect;
 import android.hardware.Camera;
 import android.hardware.Camera.CameraInfo;
-import android.hardware.Camera.Parameters;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Surface;
 import android.view.SurfaceHolder;
 import android.view.WindowManager;
+import androidx.annotation.Nullable;
 import com.google.android.gms.common.images.Size;
+import com.google.common.base.Objects;
 import com.google.firebase.ml.md.R;
 import com.google.firebase.ml.md.java.Utils;
 import com.google.firebase.ml.md.java.settings.PreferenceUtils;
-import com.google.firebase.ml.vision.common.FirebaseVisionImageMetadata;
+import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.util.IdentityHashMap;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 
 /**
  * Manages the camera and allows UI updates on top of it (e.g. overlaying extra Graphics). This
@@ -51,17 +54,39 @@ public class CameraSource {
 
   private static final String TAG = "CameraSource";
 
-  private static final int IMAGE_FORMAT = ImageFormat.NV21;
-  private static final int MIN_CAMERA_PREVIEW_WIDTH = 400;
-  private static final int MAX_CAMERA_PREVIEW_WIDTH = 1300;
-  private static final int DEFAULT_REQUESTED_CAMERA_PREVIEW_WIDTH = 640;
-  private static final int DEFAULT_REQUESTED_CAMERA_PREVIEW_HEIGHT = 360;
-  private static final float REQUESTED_CAMERA_FPS = 30.0f;
+  private static final PreviewSizeSelector.SizeReader<CameraSizePair> PREVIEW_SIZE_READER =
+      new PreviewSizeSelector.SizeReader<CameraSizePair>() {
+        @Override
+        public int getWidth(CameraSizePair sizePair) {
+          return sizePair.preview.getWidth();
+        }
+
+        @Override
+        public int getHeight(CameraSizePair sizePair) {
+          return sizePair.preview.getHeight();
+        }
+      };
+  static final float REQUESTED_CAMERA_FPS = 30.0f;
+  static final int DEFAULT_MIN_FRAME_BUFFER_DEPTH = 4;
+  static final int DEFAULT_MAX_FRAME_BUFFER_DEPTH = 8;
+  private static final String FLIGHT_RECORDER_DIR_NAME = "flight_recorder";
 
-  private Camera camera;
-  @FirebaseVisionImageMetadata.Rotation private int rotation;
+  /** Time the camera runs at each preview size while calibrating, long enough for the estimates. */
+  private static final long CALIBRATION_STEP_MS = 4000;
 
-  private Size previewSize;
+  /** Time at the start of each step the detections aren't counted in, as the camera restarts. */
+  private static final long CALIBRATION_SETTLE_MS = 1000;
+
+  private static final float CALIBRATION_LATENCY_PERCENTILE = 0.95f;
+
+  /**
+   * Shortest time between two updates of the focus region, as every update restarts the focus sweep
+   * on some cameras.
+   */
+  private static final long FOCUS_REGION_UPDATE_INTERVAL_MS = 500;
+
+  /** The backend of the running camera, a new one is created from the settings on every start. */
+  @Nullable private volatile CameraBackend backend;
 
   /**
    * Dedicated thread and associated runnable for calling into the detector with frames, as the
@@ -73,23 +98,64 @@ public class CameraSource {
   private final Object processorLock = new Object();
   private FrameProcessor frameProcessor;
 
-  /**
-   * Map to convert between a byte array, received from the camera, and its associated byte buffer.
-   * We use byte buffers internally because this is a more efficient way to call into native code
-   * later (avoids a potential copy).
-   *
-   * <p><b>Note:</b> uses IdentityHashMap here instead of HashMap because the behavior of an array's
-   * equals, hashCode and toString methods is both useless and unexpected. IdentityHashMap enforces
-   * identity ('==') check on the keys.
-   */
-  private final Map<byte[], ByteBuffer> bytesToByteBuffer = new IdentityHashMap<>();
+  /** Names the type of the frame processor, read without the processor lock. */
+  @Nullable private volatile String frameProcessorName;
+
+  private int minFrameBufferDepth = DEFAULT_MIN_FRAME_BUFFER_DEPTH;
+  private int maxFrameBufferDepth = DEFAULT_MAX_FRAME_BUFFER_DEPTH;
+
+  /** Paces the preview frame rate and the frames handed to the processor to its latency. */
+  private final FrameScheduler frameScheduler = new FrameScheduler(REQUESTED_CAMERA_FPS);
+
+  /** Keeps the recent frames and pipeline events, to be dumped when the pipeline stalls. */
+  private final FlightRecorder flightRecorder = FlightRecorder.getInstance();
+
+  private final PipelineMetrics metrics = PipelineMetrics.getInstance();
+
+  // To restart the camera at each candidate preview size while calibrating, on the main thread.
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  @Nullable private SurfaceHolder surfaceHolder;
+  @Nullable private CalibrationRun calibrationRun;
+
+  // The focus region and zoom of the running camera, both reset on every start.
+  @Nullable private Rect focusRegion;
+  private long focusRegionUpdateMs;
+  private float zoomRatio = 1f;
 
   private final Context context;
   private final GraphicOverlay graphicOverlay;
+  @Nullable private final CameraBackend backendOverride;
 
   public CameraSource(GraphicOverlay graphicOverlay) {
+    this(graphicOverlay, /* backendOverride= */ null);
+  }
+
+  /**
+   * Creates a camera source that streams from the given backend, or from the one picked in the
+   * settings if it's null.
+   */
+  CameraSource(GraphicOverlay graphicOverlay, @Nullable CameraBackend backendOverride) {
     this.context = graphicOverlay.getContext();
     this.graphicOverlay = graphicOverlay;
+    this.backendOverride = backendOverride;
+
+    // Kept where it can be pulled off a device without root, when there's external storage.
+    File filesDir = context.getExternalFilesDir(null);
+    File flightRecorderDir =
+        new File(filesDir != null ? filesDir : context.getFilesDir(), FLIGHT_RECORDER_DIR_NAME);
+    flightRecorder.setDumpDirectory(
+        flightRecorderDir,
+        new FlightRecorder.DumpListener() {
+          @Override
+          public void onDumpWritten(File indexFile) {
+            Log.w(TAG, "Wrote the flight recorder dump " + indexFile);
+          }
+
+          @Override
+          public void onDumpFailed(IOException e) {
+            Log.e(TAG, "Failed to write the flight recorder dump.", e);
+          }
+        });
   }
 
   /**
@@ -100,17 +166,45 @@ public class CameraSource {
    * @throws IOException if the supplied surface holder could not be used as the preview display.
    */
   synchronized void start(SurfaceHolder surfaceHolder) throws IOException {
-    if (camera != null) {
+    if (backend != null) {
       return;
     }
 
-    camera = createCamera();
-    camera.setPreviewDisplay(surfaceHolder);
-    camera.startPreview();
+    startBackend(surfaceHolder);
+    startCalibrationIfNeeded();
+  }
 
-    processingThread = new Thread(processingRunnable);
+  private synchronized void startBackend(SurfaceHolder surfaceHolder) throws IOException {
+    CameraBackend backend = createBackend();
+    backend.setFrameBufferDepth(minFrameBufferDepth, maxFrameBufferDepth);
+    if (calibrationRun != null) {
+      backend.setPreviewSizePair(calibrationRun.getSizePair());
+      frameScheduler.setInitialFrameIntervalMs(0);
+    } else {
+      String calibrationKey = getCalibrationKey();
+      PreviewCalibration.Result calibration =
+          calibrationKey != null ? PreviewCalibration.load(context, calibrationKey) : null;
+      backend.setPreviewSizePair(calibration != null ? calibration.sizePair : null);
+      frameScheduler.setInitialFrameIntervalMs(
+          calibration != null ? calibration.getFrameIntervalMs() : 0);
+    }
+    frameScheduler.reset(REQUESTED_CAMERA_FPS);
+    focusRegion = null;
+    focusRegionUpdateMs = 0;
+    zoomRatio = 1f;
     processingRunnable.setActive(true);
+    this.backend = backend;
+    try {
+      backend.start(surfaceHolder, processingRunnable);
+    } catch (IOException | RuntimeException e) {
+      this.backend = null;
+      processingRunnable.setActive(false);
+      throw e;
+    }
+
+    processingThread = new Thread(processingRunnable);
     processingThread.start();
+    this.surfaceHolder = surfaceHolder;
   }
 
   /**
@@ -122,6 +216,16 @@ public class CameraSource {
    * resources of the underlying detector.
    */
   synchronized void stop() {
+    if (calibrationRun != null) {
+      Log.i(TAG, "Preview size calibration interrupted, it starts over on the next start.");
+      mainHandler.removeCallbacks(calibrationRun);
+      calibrationRun = null;
+    }
+    stopBackend();
+  }
+
+  private synchronized void stopBackend() {
+    surfaceHolder = null;
     processingRunnable.setActive(false);
     if (processingThread != null) {
       try {
@@ -134,20 +238,12 @@ public class CameraSource {
       processingThread = null;
     }
 
-    if (camera != null) {
-      camera.stopPreview();
-      camera.setPreviewCallbackWithBuffer(null);
-      try {
-        camera.setPreviewDisplay(/* holder= */ null);
-      } catch (Exception e) {
-        Log.e(TAG, "Failed to clear camera preview: " + e);
-      }
-      camera.release();
-      camera = null;
+    CameraBackend backend = this.backend;
+    if (backend != null) {
+      backend.stop();
+      this.backend = null;
     }
-
-    // Release the reference to any image buffers, since these will no longer be in use.
-    bytesToByteBuffer.clear();
+    processingRunnable.clearPendingFrame();
   }
 
   /** Stops the camera and releases the resources of the camera and underlying detector. */
@@ -169,117 +265,151 @@ public class CameraSource {
       }
       frameProcessor = processor;
     }
+    frameProcessorName = processor.getClass().getName();
   }
 
-  public void updateFlashMode(String flashMode) {
-    Camera.Parameters parameters = camera.getParameters();
-    parameters.setFlashMode(flashMode);
-    camera.setParameters(parameters);
+  /**
+   * Sets the range the number of preview buffers adapts within, based on how long the frame
+   * processor holds onto frames. Takes effect the next time the camera is started.
+   *
+   * @param minDepth the number of buffers allocated up front, must be at least 3.
+   * @param maxDepth the number of buffers the pool never grows beyond, must be at most 255.
+   */
+  public synchronized void setFrameBufferDepth(int minDepth, int maxDepth) {
+    FrameBufferPool.checkDepthRange(minDepth, maxDepth);
+    minFrameBufferDepth = minDepth;
+    maxFrameBufferDepth = maxDepth;
   }
 
-  /** Returns the preview size that is currently in use by the underlying camera. */
-  Size getPreviewSize() {
-    return previewSize;
+  public void updateFlashMode(String flashMode) {
+    CameraBackend backend = this.backend;
+    if (backend != null) {
+      backend.setTorchEnabled(Camera.Parameters.FLASH_MODE_TORCH.equals(flashMode));
+    }
   }
 
   /**
-   * Opens the camera and applies the user settings.
-   *
-   * @throws IOException if camera cannot be found or preview cannot be processed.
+   * Makes the camera focus and meter on the given region of the upright preview frame, or across
+   * the whole frame if null, as far as the camera supports regions. Updates that come sooner than
+   * {@link #FOCUS_REGION_UPDATE_INTERVAL_MS} after the last one are dropped, so the region of a
+   * tracked object can be passed in for every frame.
    */
-  private Camera createCamera() throws IOException {
-    Camera camera = Camera.open();
-    if (camera == null) {
-      throw new IOException("There is no back-facing camera.");
+  public synchronized void setFocusRegion(@Nullable Rect uprightRegion) {
+    CameraBackend backend = this.backend;
+    if (backend == null || Objects.equal(focusRegion, uprightRegion)) {
+      return;
     }
+    long nowMs = SystemClock.elapsedRealtime();
+    if (nowMs - focusRegionUpdateMs < FOCUS_REGION_UPDATE_INTERVAL_MS) {
+      return;
+    }
+    focusRegion = uprightRegion != null ? new Rect(uprightRegion) : null;
+    focusRegionUpdateMs = nowMs;
+    backend.setFocusRegion(focusRegion);
+  }
 
-    Camera.Parameters parameters = camera.getParameters();
-    setPreviewAndPictureSize(camera, parameters);
-    setRotation(camera, parameters);
-
-    int[] previewFpsRange = selectPreviewFpsRange(camera);
-    if (previewFpsRange == null) {
-      throw new IOException("Could not find suitable preview frames per second range.");
+  /**
+   * Zooms the camera to the supported ratio closest to the given one without going over it, 1 being
+   * the full field of view, and returns the ratio it zoomed to.
+   */
+  public synchronized float setZoomRatio(float zoomRatio) {
+    CameraBackend backend = this.backend;
+    if (backend != null) {
+      this.zoomRatio = backend.setZoomRatio(zoomRatio);
     }
-    parameters.setPreviewFpsRange(
-        previewFpsRange[Camera.Parameters.PREVIEW_FPS_MIN_INDEX],
-        previewFpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]);
+    return this.zoomRatio;
+  }
 
-    parameters.setPreviewFormat(IMAGE_FORMAT);
+  /** Returns the zoom ratio of the running camera, which is back to 1 on every start. */
+  public synchronized float getZoomRatio() {
+    return zoomRatio;
+  }
 
-    if (parameters
-        .getSupportedFocusModes()
-        .contains(Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO)) {
-      parameters.setFocusMode(Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO);
-    } else {
-      Log.i(TAG, "Camera auto focus is not supported on this device.");
-    }
-
-    camera.setParameters(parameters);
-
-    camera.setPreviewCallbackWithBuffer(processingRunnable::setNextFrame);
-
-    // Four frame buffers are needed for working with the camera:
-    //
-    //   one for the frame that is currently being executed upon in doing detection
-    //   one for the next pending frame to process immediately upon completing detection
-    //   two for the frames that the camera uses to populate future preview images
-    //
-    // Through trial and error it appears that two free buffers, in addition to the two buffers
-    // used in this code, are needed for the camera to work properly. Perhaps the camera has one
-    // thread for acquiring images, and another thread for calling into user code. If only three
-    // buffers are used, then the camera will spew thousands of warning messages when detection
-    // takes a non-trivial amount of time.
-    camera.addCallbackBuffer(createPreviewBuffer(previewSize));
-    camera.addCallbackBuffer(createPreviewBuffer(previewSize));
-    camera.addCallbackBuffer(createPreviewBuffer(previewSize));
-    camera.addCallbackBuffer(createPreviewBuffer(previewSize));
-
-    return camera;
+  public float getMaxZoomRatio() {
+    CameraBackend backend = this.backend;
+    return backend != null ? backend.getMaxZoomRatio() : 1f;
   }
 
-  private void setPreviewAndPictureSize(Camera camera, Parameters parameters) throws IOException {
-    // Gives priority to the preview size specified by the user if exists.
-    CameraSizePair sizePair = PreferenceUtils.getUserSpecifiedPreviewSize(context);
-    if (sizePair == null) {
-      // Camera preview size is based on the landscape mode, so we need to also use the aspect
-      // ration of display in the same mode for comparison.
-      float displayAspectRatioInLandscape;
-      if (Utils.isPortraitMode(graphicOverlay.getContext())) {
-        displayAspectRatioInLandscape =
-            (float) graphicOverlay.getHeight() / graphicOverlay.getWidth();
-      } else {
-        displayAspectRatioInLandscape =
-            (float) graphicOverlay.getWidth() / graphicOverlay.getHeight();
-      }
-      sizePair = selectSizePair(camera, displayAspectRatioInLandscape);
+  /** Returns the preview size that is currently in use by the underlying camera. */
+  @Nullable
+  Size getPreviewSize() {
+    CameraBackend backend = this.backend;
+    return backend != null ? backend.getPreviewSize() : null;
+  }
+
+  /**
+   * Starts calibrating the preview size if the running frame processor hasn't been calibrated on
+   * the running camera backend yet, and the preview size is up to the app to pick.
+   */
+  private synchronized void startCalibrationIfNeeded() {
+    CameraBackend backend = this.backend;
+    String calibrationKey = getCalibrationKey();
+    if (calibrationRun != null
+        || calibrationKey == null
+        || !(backend instanceof LegacyCameraBackend || backend instanceof Camera2Backend)
+        || !PreferenceUtils.isPreviewSizeCalibrationEnabled(context)
+        || PreferenceUtils.getUserSpecifiedPreviewSize(context) != null
+        || PreviewCalibration.load(context, calibrationKey) != null) {
+      return;
     }
-    if (sizePair == null) {
-      throw new IOException("Could not find suitable preview size.");
+    // Probed when the camera first opened, or in the background by the main screen.
+    CameraCapabilities capabilities = CameraCapabilityStore.getCached(context);
+    if (capabilities == null) {
+      return;
+    }
+    List<CameraSizePair> candidates =
+        PreviewCalibration.selectCandidates(
+            capabilities.previewSizePairs, getDisplayAspectRatioInLandscape(graphicOverlay));
+    if (candidates.size() < 2) {
+      return;
     }
+    Log.i(TAG, "Calibrating the preview size for " + calibrationKey + " among " + candidates);
+    calibrationRun = new CalibrationRun(calibrationKey, candidates);
+    // The size picked for the display runs first, which warms the detector up.
+    mainHandler.postDelayed(calibrationRun, CALIBRATION_STEP_MS);
+  }
 
-    previewSize = sizePair.preview;
-    Log.v(TAG, "Camera preview size: " + previewSize);
-    parameters.setPreviewSize(previewSize.getWidth(), previewSize.getHeight());
-    PreferenceUtils.saveStringPreference(
-        context, R.string.pref_key_rear_camera_preview_size, previewSize.toString());
+  /** Returns the key the calibration of the current processor and backend is kept under. */
+  @Nullable
+  private String getCalibrationKey() {
+    String processorName = frameProcessorName;
+    if (processorName == null) {
+      return null;
+    }
+    return processorName + "/" + PreferenceUtils.getCameraBackend(context);
+  }
 
-    Size pictureSize = sizePair.picture;
-    if (pictureSize != null) {
-      Log.v(TAG, "Camera picture size: " + pictureSize);
-      parameters.setPictureSize(pictureSize.getWidth(), pictureSize.getHeight());
-      PreferenceUtils.saveStringPreference(
-          context, R.string.pref_key_rear_camera_picture_size, pictureSize.toString());
+  /**
+   * Returns the backend override if there's one, or else creates the backend picked in the
+   * settings, falling back to the legacy one where needed.
+   */
+  private CameraBackend createBackend() {
+    if (backendOverride != null) {
+      return backendOverride;
+    }
+    String backend = PreferenceUtils.getCameraBackend(context);
+    if (backend.equals(context.getString(R.string.pref_entry_value_camera_backend_camera2))) {
+      if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+        return new Camera2Backend(graphicOverlay);
+      }
+      Log.w(TAG, "Camera2 is not available on this device, using the legacy camera instead.");
+    } else if (backend.equals(
+        context.getString(R.string.pref_entry_value_camera_backend_synthetic))) {
+      return new SyntheticCameraBackend(context);
+    } else if (backend.equals(context.getString(R.string.pref_entry_value_camera_backend_replay))) {
+      return new ReplayCameraBackend(context, FrameReplayer.Pacing.REAL_TIME);
+    } else if (backend.equals(
+        context.getString(R.string.pref_entry_value_camera_backend_replay_unpaced))) {
+      return new ReplayCameraBackend(context, FrameReplayer.Pacing.AS_FAST_AS_POSSIBLE);
     }
+    return new LegacyCameraBackend(graphicOverlay);
   }
 
   /**
-   * Calculates the correct rotation for the given camera id and sets the rotation in the
-   * parameters. It also sets the camera's display orientation and rotation.
-   *
-   * @param parameters the camera parameters for which to set the rotation.
+   * Returns the clockwise angle in degrees the frames of a camera with the given sensor orientation
+   * need to be rotated by to appear upright on the display.
    */
-  private void setRotation(Camera camera, Camera.Parameters parameters) {
+  static int getFrameRotationDegrees(Context context, int sensorOrientation) {
     WindowManager windowManager = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
     int deviceRotation = windowManager.getDefaultDisplay().getRotation();
     int degrees = 0;
@@ -299,133 +429,176 @@ public class CameraSource {
       default:
         Log.e(TAG, "Bad device rotation value: " + deviceRotation);
     }
-
-    CameraInfo cameraInfo = new CameraInfo();
-    Camera.getCameraInfo(CAMERA_FACING_BACK, cameraInfo);
-    int angle = (cameraInfo.orientation - degrees + 360) % 360;
-    // This corresponds to the rotation constants in FirebaseVisionImageMetadata.
-    this.rotation = angle / 90;
-    camera.setDisplayOrientation(angle);
-    parameters.setRotation(angle);
+    return (sensorOrientation - degrees + 360) % 360;
   }
 
   /**
-   * Creates one buffer for the camera preview callback. The size of the buffer is based off of the
-   * camera preview size and the format of the camera image.
-   *
-   * @return a new preview buffer of the appropriate size for the current camera settings.
+   * Returns the aspect ratio of the overlay in landscape mode, the one camera preview sizes are
+   * given in.
    */
-  private byte[] createPreviewBuffer(Size previewSize) {
-    int bitsPerPixel = ImageFormat.getBitsPerPixel(IMAGE_FORMAT);
-    long sizeInBits = (long) previewSize.getHeight() * previewSize.getWidth() * bitsPerPixel;
-    int bufferSize = (int) Math.ceil(sizeInBits / 8.0d) + 1;
-
-    // Creating the byte array this way and wrapping it, as opposed to using .allocate(),
-    // should guarantee that there will be an array to work with.
-    byte[] byteArray = new byte[bufferSize];
-    ByteBuffer byteBuffer = ByteBuffer.wrap(byteArray);
-    if (!byteBuffer.hasArray() || (byteBuffer.array() != byteArray)) {
-      // This should never happen. If it does, then we wouldn't be passing the preview content to
-      // the underlying detector later.
-      throw new IllegalStateException("Failed to create valid buffer for camera source.");
-    }
-
-    bytesToByteBuffer.put(byteArray, byteBuffer);
-    return byteArray;
+  static float getDisplayAspectRatioInLandscape(GraphicOverlay graphicOverlay) {
+    if (Utils.isPortraitMode(graphicOverlay.getContext())) {
+      return (float) graphicOverlay.getHeight() / graphicOverlay.getWidth();
+    } else {
+      return (float) graphicOverlay.getWidth() / graphicOverlay.getHeight();
+    }
   }
 
   /**
    * Selects the most suitable preview and picture size, given the display aspect ratio in landscape
-   * mode.
-   *
-   * <p>It's firstly trying to pick the one that has closest aspect ratio to display view with its
-   * width be in the specified range [{@link #MIN_CAMERA_PREVIEW_WIDTH}, {@link
-   * #MAX_CAMERA_PREVIEW_WIDTH}]. If there're multiple candidates, choose the one having longest
-   * width.
-   *
-   * <p>If the above looking up failed, chooses the one that has the minimum sum of the differences
-   * between the desired values and the actual values for width and height.
+   * mode, see {@link PreviewSizeSelector#selectPreviewSize}.
    *
    * <p>Even though we only need to find the preview size, it's necessary to find both the preview
    * size and the picture size of the camera together, because these need to have the same aspect
    * ratio. On some hardware, if you would only set the preview size, you will get a distorted
    * image.
    *
-   * @param camera the camera to select a preview size from
+   * @param validPreviewSizes the size pairs supported by the camera
    * @return the selected preview and picture size pair
    */
-  private static CameraSizePair selectSizePair(Camera camera, float displayAspectRatioInLandscape) {
-    List<CameraSizePair> validPreviewSizes = Utils.generateValidPreviewSizeList(camera);
-
-    CameraSizePair selectedPair = null;
-    // Picks the preview size that has closest aspect ratio to display view.
-    float minAspectRatioDiff = Float.MAX_VALUE;
-    for (CameraSizePair sizePair : validPreviewSizes) {
-      Size previewSize = sizePair.preview;
-      if (previewSize.getWidth() < MIN_CAMERA_PREVIEW_WIDTH
-          || previewSize.getWidth() > MAX_CAMERA_PREVIEW_WIDTH) {
-        continue;
+  @Nullable
+  static CameraSizePair selectSizePair(
+      List<CameraSizePair> validPreviewSizes, float displayAspectRatioInLandscape) {
+    int selectedIndex =
+        PreviewSizeSelector.selectPreviewSize(
+            validPreviewSizes, PREVIEW_SIZE_READER, displayAspectRatioInLandscape);
+    return selectedIndex >= 0 ? validPreviewSizes.get(selectedIndex) : null;
+  }
+
+  /** Returns the size pair with the same preview size as the given one among the given pairs. */
+  @Nullable
+  static CameraSizePair findSizePair(
+      List<CameraSizePair> sizePairs, @Nullable CameraSizePair sizePair) {
+    if (sizePair == null) {
+      return null;
+    }
+    for (CameraSizePair candidate : sizePairs) {
+      if (candidate.preview.equals(sizePair.preview)) {
+        return candidate;
       }
+    }
+    return null;
+  }
+
+  /**
+   * Runs the camera at each candidate preview size in turn, measures how the frame processor does
+   * at each one, and keeps the best size for the processor, see {@link PreviewCalibration}. Runs on
+   * the main thread, like the starts and stops of the camera source.
+   */
+  private class CalibrationRun implements Runnable {
+
+    private final String key;
+    private final List<CameraSizePair> candidates;
+    private final List<PreviewCalibration.Result> results = new ArrayList<>();
+
+    /** The candidate the camera runs at, -1 while it still runs at the size picked at first. */
+    private int candidateIndex = -1;
 
-      float previewAspectRatio = (float) previewSize.getWidth() / previewSize.getHeight();
-      float aspectRatioDiff = Math.abs(displayAspectRatioInLandscape - previewAspectRatio);
-      if (Math.abs(aspectRatioDiff - minAspectRatioDiff) < Utils.ASPECT_RATIO_TOLERANCE) {
-        if (selectedPair == null || selectedPair.preview.getWidth() < sizePair.preview.getWidth()) {
-          selectedPair = sizePair;
+    // Whether the detections at the current candidate are being counted, and from when on.
+    private boolean isWindowOpen;
+    private long windowStartMs;
+    private long windowStartDetectionCount;
+
+    CalibrationRun(String key, List<CameraSizePair> candidates) {
+      this.key = key;
+      this.candidates = candidates;
+    }
+
+    @Nullable
+    CameraSizePair getSizePair() {
+      return candidateIndex >= 0 ? candidates.get(candidateIndex) : null;
+    }
+
+    @Override
+    public void run() {
+      if (candidateIndex >= 0 && !isWindowOpen) {
+        openWindow();
+        mainHandler.postDelayed(this, CALIBRATION_STEP_MS - CALIBRATION_SETTLE_MS);
+        return;
+      }
+      // Measured before taking the camera source lock, as releasing the camera source takes the
+      // processor lock first.
+      PreviewCalibration.Result result = candidateIndex >= 0 ? measure() : null;
+      synchronized (CameraSource.this) {
+        if (calibrationRun != this) {
+          return;
+        }
+        if (result != null) {
+          Log.i(TAG, "Preview size calibration step: " + result);
+          results.add(result);
+        }
+        candidateIndex++;
+        isWindowOpen = false;
+        if (candidateIndex < candidates.size()) {
+          mainHandler.postDelayed(this, CALIBRATION_SETTLE_MS);
+        } else {
+          finish();
         }
-      } else if (aspectRatioDiff < minAspectRatioDiff) {
-        minAspectRatioDiff = aspectRatioDiff;
-        selectedPair = sizePair;
+        restartBackend();
       }
     }
 
-    if (selectedPair == null) {
-      // Picks the one that has the minimum sum of the differences between the desired values and
-      // the actual values for width and height.
-      int minDiff = Integer.MAX_VALUE;
-      for (CameraSizePair sizePair : validPreviewSizes) {
-        Size size = sizePair.preview;
-        int diff =
-            Math.abs(size.getWidth() - CameraSource.DEFAULT_REQUESTED_CAMERA_PREVIEW_WIDTH)
-                + Math.abs(size.getHeight() - CameraSource.DEFAULT_REQUESTED_CAMERA_PREVIEW_HEIGHT);
-        if (diff < minDiff) {
-          selectedPair = sizePair;
-          minDiff = diff;
-        }
+    /** Starts counting the detections once the camera runs at the candidate. */
+    private void openWindow() {
+      synchronized (processorLock) {
+        windowStartDetectionCount = frameProcessor.getCompletedDetectionCount();
       }
+      windowStartMs = SystemClock.elapsedRealtime();
+      isWindowOpen = true;
     }
 
-    return selectedPair;
-  }
+    /** Measures the detections completed since the window opened, rather than an estimate. */
+    private PreviewCalibration.Result measure() {
+      long detectionCount;
+      long latencyMs;
+      synchronized (processorLock) {
+        detectionCount = frameProcessor.getCompletedDetectionCount() - windowStartDetectionCount;
+        latencyMs = frameProcessor.getLatencyPercentileMs(CALIBRATION_LATENCY_PERCENTILE);
+      }
+      long windowMs = SystemClock.elapsedRealtime() - windowStartMs;
+      float framesPerSecond =
+          detectionCount > 0 && windowMs > 0
+              ? Math.min(REQUESTED_CAMERA_FPS, detectionCount * 1000f / windowMs)
+              : 0;
+      // The backend falls back to a size of its own if the camera doesn't support the candidate.
+      CameraSizePair candidate = candidates.get(candidateIndex);
+      Size previewSize = getPreviewSize();
+      CameraSizePair sizePair =
+          previewSize == null || previewSize.equals(candidate.preview)
+              ? candidate
+              : new CameraSizePair(previewSize, null);
+      return new PreviewCalibration.Result(sizePair, framesPerSecond, latencyMs);
+    }
 
-  /**
-   * Selects the most suitable preview frames per second range.
-   *
-   * @param camera the camera to select a frames per second range from
-   * @return the selected preview frames per second range
-   */
-  private static int[] selectPreviewFpsRange(Camera camera) {
-    // The camera API uses integers scaled by a factor of 1000 instead of floating-point frame
-    // rates.
-    int desiredPreviewFpsScaled = (int) (REQUESTED_CAMERA_FPS * 1000f);
-
-    // The method for selecting the best range is to minimize the sum of the differences between
-    // the desired value and the upper and lower bounds of the range.  This may select a range
-    // that the desired value is outside of, but this is often preferred.  For example, if the
-    // desired frame rate is 29.97, the range (30, 30) is probably more desirable than the
-    // range (15, 30).
-    int[] selectedFpsRange = null;
-    int minDiff = Integer.MAX_VALUE;
-    for (int[] range : camera.getParameters().getSupportedPreviewFpsRange()) {
-      int deltaMin = desiredPreviewFpsScaled - range[Camera.Parameters.PREVIEW_FPS_MIN_INDEX];
-      int deltaMax = desiredPreviewFpsScaled - range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX];
-      int diff = Math.abs(deltaMin) + Math.abs(deltaMax);
-      if (diff < minDiff) {
-        selectedFpsRange = range;
-        minDiff = diff;
+    private void finish() {
+      calibrationRun = null;
+      PreviewCalibration.Result best = PreviewCalibration.selectBest(results);
+      if (best == null) {
+        Log.w(TAG, "Preview size calibration got no estimate, it starts over on the next start.");
+        return;
+      }
+      Log.i(TAG, "Calibrated the preview size for " + key + ": " + best);
+      PreviewCalibration.save(context, key, best);
+    }
+
+    /** Restarts the camera at the current candidate, or at the calibrated size once finished. */
+    private void restartBackend() {
+      SurfaceHolder surfaceHolder = CameraSource.this.surfaceHolder;
+      if (surfaceHolder == null) {
+        return;
       }
+      stopBackend();
+      try {
+        startBackend(surfaceHolder);
+      } catch (IOException | RuntimeException e) {
+        Log.e(TAG, "Failed to restart the camera while calibrating the preview size.", e);
+        mainHandler.removeCallbacks(this);
+        calibrationRun = null;
+        return;
+      }
+      graphicOverlay.setCameraInfo(CameraSource.this);
+      graphicOverlay.clear();
     }
-    return selectedFpsRange;
   }
 
   /**
@@ -438,14 +611,22 @@ public class CameraSource {
    * associated processing is done for the previous frame, detection on the mostly recently received
    * frame will immediately start on the same thread.
    */
-  private class FrameProcessingRunnable implements Runnable {
+  private class FrameProcessingRunnable implements Runnable, CameraBackend.FrameListener {
 
     // This lock guards all of the member variables below.
     private final Object lock = new Object();
     private boolean active = true;
 
     // These pending variables hold the state associated with the new frame awaiting processing.
-    private ByteBuffer pendingFrameData;
+    private SharedFrame pendingFrame;
+    private long pendingFrameNumber;
+    private long pendingFrameTimeNs;
+
+    // When the camera started on its latest frame, only touched on the thread frames come in on.
+    private long admittedFrameTimeNs;
+
+    private long droppedFrameCount;
+    private long receivedFrameCount;
 
     FrameProcessingRunnable() {}
 
@@ -457,27 +638,60 @@ public class CameraSource {
       }
     }
 
-    /**
-     * Sets the frame data received from the camera. This adds the previous unused frame buffer (if
-     * present) back to the camera, and keeps a pending reference to the frame data for future use.
-     */
-    @SuppressWarnings("ByteBufferBackingArray")
-    void setNextFrame(byte[] data, Camera camera) {
+    /** Releases the frame left pending when the camera stopped, and logs the frames dropped. */
+    void clearPendingFrame() {
       synchronized (lock) {
-        if (pendingFrameData != null) {
-          camera.addCallbackBuffer(pendingFrameData.array());
-          pendingFrameData = null;
+        if (pendingFrame != null) {
+          pendingFrame.release();
+          pendingFrame = null;
         }
+        Log.d(TAG, "Dropped " + droppedFrameCount + " frames the processor couldn't keep up with");
+        Log.d(TAG, "Pipeline metrics so far:\n" + metrics.snapshot());
+        droppedFrameCount = 0;
+      }
+    }
 
-        if (!bytesToByteBuffer.containsKey(data)) {
-          Log.d(
-              TAG,
-              "Skipping frame. Could not find ByteBuffer associated with the image "
-                  + "data from the camera.");
+    @Override
+    public boolean admitFrame() {
+      admittedFrameTimeNs = System.nanoTime();
+      float previewFps = frameScheduler.pollPreviewFrameRateChange(SystemClock.elapsedRealtime());
+      CameraBackend backend = CameraSource.this.backend;
+      if (previewFps > 0 && backend != null) {
+        backend.requestFrameRate(previewFps);
+      }
+      return frameScheduler.admitFrame();
+    }
+
+    @Override
+    public void onFrameRateChanged(float frameRate) {
+      frameScheduler.onCameraFrameRateChanged(frameRate);
+    }
+
+    /**
+     * Sets the frame received from the camera. This releases the previous unused frame (if present)
+     * back to the camera, and keeps a pending reference to the frame for future use.
+     */
+    @Override
+    public void onFrame(SharedFrame frame) {
+      synchronized (lock) {
+        if (!active) {
+          frame.release();
           return;
         }
-
-        pendingFrameData = bytesToByteBuffer.get(data);
+        if (pendingFrame != null) {
+          pendingFrame.release();
+          droppedFrameCount++;
+          metrics.increment(PipelineMetrics.Counter.FRAME_DROPPED);
+          flightRecorder.recordEvent(
+              FlightRecorder.Stage.FRAME_DROPPED, pendingFrameNumber, /* value= */ 0);
+        }
+        pendingFrame = frame;
+        pendingFrameNumber = receivedFrameCount++;
+        pendingFrameTimeNs = System.nanoTime();
+        metrics.recordDuration(
+            PipelineMetrics.Stage.CAMERA_TO_PENDING, pendingFrameTimeNs - admittedFrameTimeNs);
+        flightRecorder.recordEvent(
+            FlightRecorder.Stage.FRAME_RECEIVED, pendingFrameNumber, /* value= */ 0);
 
         // Notify the processor thread if it is waiting on the next frame (see below).
         lock.notifyAll();
@@ -497,14 +711,15 @@ public class CameraSource {
      * <p>If you find that this is using more CPU than you'd like, you should probably decrease the
      * FPS setting above to allow for some idle time in between frames.
      */
-    @SuppressWarnings({"GuardedBy", "ByteBufferBackingArray"})
+    @SuppressWarnings("GuardedBy")
     @Override
     public void run() {
-      ByteBuffer data;
+      SharedFrame frame;
+      long frameNumber;
 
       while (true) {
         synchronized (lock) {
-          while (active && (pendingFrameData == null)) {
+          while (active && (pendingFrame == null)) {
             try {
               // Wait for the next frame to be received from the camera, since we don't have it yet.
               lock.wait();
@@ -521,23 +736,35 @@ public class CameraSource {
             return;
           }
 
-          // Hold onto the frame data locally, so that we can use this for detection
-          // below.  We need to clear pendingFrameData to ensure that this buffer isn't
-          // recycled back to the camera before we are done using that data.
-          data = pendingFrameData;
-          pendingFrameData = null;
+          // Hold onto the frame locally, so that we can use this for detection below.  We need to
+          // clear pendingFrame to ensure that this frame isn't released back to the camera before
+          // we are done using that data.
+          frame = pendingFrame;
+          frameNumber = pendingFrameNumber;
+          pendingFrame = null;
+          metrics.recordDuration(
+              PipelineMetrics.Stage.QUEUE_WAIT, System.nanoTime() - pendingFrameTimeNs);
         }
 
+        // The buffer goes back to the camera once the processor releases the frame as well, which
+        // may be long after this iteration if it retains the frame for detection.
         try {
+          flightRecorder.recordFrame(frame, frameNumber);
+          flightRecorder.recordEvent(
+              FlightRecorder.Stage.PROCESS_STARTED, frameNumber, /* value= */ 0);
+          long startMs = SystemClock.elapsedRealtime();
           synchronized (processorLock) {
-            FrameMetadata frameMetadata =
-                new FrameMetadata(previewSize.getWidth(), previewSize.getHeight(), rotation);
-            frameProcessor.process(data, frameMetadata, graphicOverlay);
+            frameProcessor.process(frame, graphicOverlay);
+            frameScheduler.update(frameProcessor.getSustainableFrameIntervalMs());
           }
+          flightRecorder.recordLatency(
+              FlightRecorder.Stage.PROCESS_FINISHED,
+              frameNumber,
+              SystemClock.elapsedRealtime() - startMs);
         } catch (Exception t) {
           Log.e(TAG, "Exception thrown from receiver.", t);
         } finally {
-          camera.addCallbackBuffer(data.array());
+          frame.release();
         }
       }
     }
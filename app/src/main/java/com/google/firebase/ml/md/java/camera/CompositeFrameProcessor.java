@@ -0,0 +1,95 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.ml.md.java.camera;
+
+import android.util.Log;
+import com.google.common.collect.ImmutableList;
+import java.util.List;
+
+/**
+ * Shares every camera frame between several frame processors, e.g. to scan barcodes and detect
+ * objects out of a single camera session instead of reopening the camera to switch between them.
+ *
+ * <p>Each child keeps its own in-flight detection and drops the frames it cannot keep up with on
+ * its own, so a slow detector does not hold back a fast one. Children retain the frames they hold
+ * onto, and the camera gets a buffer back only once every child is done with it.
+ *
+ * <p>The children are handed the same {@link GraphicOverlay}, and each draws on a {@link
+ * GraphicOverlay.Layer} of its own, so one child replacing its graphics leaves those of the
+ * others. They share the {@link WorkflowModel} as well, and propose their states to it rather than
+ * set them, so the state of the child furthest along the workflow is the one shown.
+ */
+public class CompositeFrameProcessor implements FrameProcessor {
+
+  private static final String TAG = "CompositeProcessor";
+
+  private final List<FrameProcessor> processors;
+
+  public CompositeFrameProcessor(FrameProcessor... processors) {
+    this.processors = ImmutableList.copyOf(processors);
+  }
+
+  @Override
+  public void process(SharedFrame frame, GraphicOverlay graphicOverlay) {
+    for (int i = 0; i < processors.size(); i++) {
+      FrameProcessor processor = processors.get(i);
+      try {
+        processor.process(frame, graphicOverlay);
+      } catch (RuntimeException e) {
+        // Keeps feeding the other processors, one failing detector shouldn't starve the rest.
+        Log.e(TAG, "Exception thrown from " + processor.getClass().getSimpleName(), e);
+      }
+    }
+  }
+
+  /** Paced by the slowest processor, the faster ones drop the frames they don't need. */
+  @Override
+  public long getSustainableFrameIntervalMs() {
+    long frameIntervalMs = 0;
+    for (int i = 0; i < processors.size(); i++) {
+      frameIntervalMs =
+          Math.max(frameIntervalMs, processors.get(i).getSustainableFrameIntervalMs());
+    }
+    return frameIntervalMs;
+  }
+
+  /** The results of a frame are complete once the slowest processor is done with it. */
+  @Override
+  public long getLatencyPercentileMs(float fraction) {
+    long latencyMs = 0;
+    for (int i = 0; i < processors.size(); i++) {
+      latencyMs = Math.max(latencyMs, processors.get(i).getLatencyPercentileMs(fraction));
+    }
+    return latencyMs;
+  }
+
+  /** The composite completes a detection each time its slowest processor does. */
+  @Override
+  public long getCompletedDetectionCount() {
+    long detectionCount = Long.MAX_VALUE;
+    for (int i = 0; i < processors.size(); i++) {
+      detectionCount = Math.min(detectionCount, processors.get(i).getCompletedDetectionCount());
+    }
+    return processors.isEmpty() ? 0 : detectionCount;
+  }
+
+  @Override
+  public void stop() {
+    for (int i = 0; i < processors.size(); i++) {
+      processors.get(i).stop();
+    }
+  }
+}
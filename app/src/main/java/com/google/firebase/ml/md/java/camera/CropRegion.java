@@ -0,0 +1,127 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.ml.md.java.camera;
+
+import android.graphics.Rect;
+import androidx.annotation.Nullable;
+import com.google.firebase.ml.vision.common.FirebaseVisionImageMetadata;
+
+/**
+ * A region of a camera frame that detection is limited to, both in the coordinates of the frame
+ * as the camera delivers it and in the coordinates of the upright image the detector reports its
+ * results in.
+ */
+class CropRegion {
+
+  /** Left edge of the region in the camera frame. */
+  final int left;
+  /** Top edge of the region in the camera frame. */
+  final int top;
+  final int width;
+  final int height;
+
+  /** The region in the upright image, results of the cropped frame are relative to its corner. */
+  final Rect uprightRegion;
+
+  private CropRegion(int left, int top, int width, int height, Rect uprightRegion) {
+    this.left = left;
+    this.top = top;
+    this.width = width;
+    this.height = height;
+    this.uprightRegion = uprightRegion;
+  }
+
+  /**
+   * Maps a region of the upright image into the camera frame, widened to the even coordinates the
+   * NV21 format needs to be cropped at.
+   *
+   * @return the region, or null if it doesn't overlap the frame.
+   */
+  @Nullable
+  static CropRegion fromUprightRegion(Rect region, FrameMetadata metadata) {
+    int frameWidth = metadata.width;
+    int frameHeight = metadata.height;
+    Rect frameRegion;
+    switch (metadata.rotation) {
+      case FirebaseVisionImageMetadata.ROTATION_90:
+        frameRegion =
+            new Rect(
+                region.top, frameHeight - region.right, region.bottom, frameHeight - region.left);
+        break;
+      case FirebaseVisionImageMetadata.ROTATION_180:
+        frameRegion =
+            new Rect(
+                frameWidth - region.right,
+                frameHeight - region.bottom,
+                frameWidth - region.left,
+                frameHeight - region.top);
+        break;
+      case FirebaseVisionImageMetadata.ROTATION_270:
+        frameRegion =
+            new Rect(
+                frameWidth - region.bottom, region.left, frameWidth - region.top, region.right);
+        break;
+      default:
+        frameRegion = new Rect(region);
+    }
+
+    // The chroma plane is subsampled in both dimensions, so the region can only start and end at
+    // even coordinates.
+    frameRegion.left &= ~1;
+    frameRegion.top &= ~1;
+    frameRegion.right = (frameRegion.right + 1) & ~1;
+    frameRegion.bottom = (frameRegion.bottom + 1) & ~1;
+    if (!frameRegion.intersect(0, 0, frameWidth & ~1, frameHeight & ~1)) {
+      return null;
+    }
+
+    Rect uprightRegion;
+    switch (metadata.rotation) {
+      case FirebaseVisionImageMetadata.ROTATION_90:
+        uprightRegion =
+            new Rect(
+                frameHeight - frameRegion.bottom,
+                frameRegion.left,
+                frameHeight - frameRegion.top,
+                frameRegion.right);
+        break;
+      case FirebaseVisionImageMetadata.ROTATION_180:
+        uprightRegion =
+            new Rect(
+                frameWidth - frameRegion.right,
+                frameHeight - frameRegion.bottom,
+                frameWidth - frameRegion.left,
+                frameHeight - frameRegion.top);
+        break;
+      case FirebaseVisionImageMetadata.ROTATION_270:
+        uprightRegion =
+            new Rect(
+                frameRegion.top,
+                frameWidth - frameRegion.right,
+                frameRegion.bottom,
+                frameWidth - frameRegion.left);
+        break;
+      default:
+        uprightRegion = new Rect(frameRegion);
+    }
+    return new CropRegion(
+        frameRegion.left,
+        frameRegion.top,
+        frameRegion.width(),
+        frameRegion.height(),
+        uprightRegion);
+  }
+}
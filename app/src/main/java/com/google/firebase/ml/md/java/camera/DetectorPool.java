@@ -0,0 +1,294 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.java.camera;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+import androidx.annotation.NonNull;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.ml.md.java.settings.PreferenceUtils;
+import com.google.firebase.ml.vision.FirebaseVision;
+import com.google.firebase.ml.vision.barcode.FirebaseVisionBarcodeDetector;
+import com.google.firebase.ml.vision.common.FirebaseVisionImage;
+import com.google.firebase.ml.vision.common.FirebaseVisionImageMetadata;
+import com.google.firebase.ml.vision.objects.FirebaseVisionObjectDetector;
+import com.google.firebase.ml.vision.objects.FirebaseVisionObjectDetectorOptions;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps the detectors of the app for as long as the process lives, one for each set of options, so
+ * that the model of a detector is loaded once rather than every time a processor is created, as
+ * happens on every return to a live camera screen.
+ *
+ * <p>Detectors are leased rather than created and closed: a detector stays open while it has
+ * leases, and once idle it's kept until the system runs low on memory. {@link #warmUp} loads the
+ * detectors the live screens are going to use ahead of time, by running a detection on a blank
+ * frame in the background, and records how long that first detection takes as {@link
+ * PipelineMetrics.Stage#DETECTOR_WARM_UP}, to compare with the steady {@link
+ * PipelineMetrics.Stage#DETECTION} latency.
+ *
+ * <p>An object detector in {@link FirebaseVisionObjectDetectorOptions#STREAM_MODE} tracks objects
+ * from one frame to the next, so the blank frame isn't run through the pooled one that the live
+ * screen leases later, but through a throwaway detector of the same options. That still loads the
+ * model and the native code ahead of time, and leaves the pooled detector's tracker untouched.
+ */
+public final class DetectorPool {
+
+  private static final String TAG = "DetectorPool";
+
+  private static final int BARCODE_DETECTOR_KEY = -1;
+
+  /** Size of the blank frame the detectors are warmed up on, the smallest usual preview size. */
+  private static final int WARM_UP_FRAME_WIDTH = 640;
+  private static final int WARM_UP_FRAME_HEIGHT = 480;
+
+  private static final DetectorPool INSTANCE = new DetectorPool();
+
+  private final ExecutorService warmUpExecutor = Executors.newSingleThreadExecutor();
+  // Guarded by this.
+  private final SparseArray<Entry> entries = new SparseArray<>();
+  // The keys of the detector options warmed up already, guarded by this.
+  private final SparseBooleanArray warmedUpKeys = new SparseBooleanArray();
+  private boolean isRegisteredForMemoryTrims;
+
+  private final ComponentCallbacks2 memoryTrimCallbacks =
+      new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+          // Closes the idle detectors once the app is in the background list or the system runs low
+          // on memory, but not merely when the app's UI gets hidden.
+          if (level >= TRIM_MEMORY_BACKGROUND
+              || level == TRIM_MEMORY_RUNNING_LOW
+              || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            evictIdleDetectors();
+          }
+        }
+
+        @Override
+        public void onLowMemory() {
+          evictIdleDetectors();
+        }
+
+        @Override
+        public void onConfigurationChanged(@NonNull Configuration newConfig) {}
+      };
+
+  private DetectorPool() {}
+
+  public static DetectorPool getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Leases the object detector of the given options, creating it if there's none yet.
+   *
+   * @param detectorMode either {@link FirebaseVisionObjectDetectorOptions#STREAM_MODE} or {@link
+   *     FirebaseVisionObjectDetectorOptions#SINGLE_IMAGE_MODE}.
+   */
+  public synchronized Lease<FirebaseVisionObjectDetector> acquireObjectDetector(
+      Context context, int detectorMode, boolean multipleObjects, boolean classification) {
+    registerForMemoryTrims(context);
+    int key = getObjectDetectorKey(detectorMode, multipleObjects, classification);
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      entry = new Entry(createObjectDetector(detectorMode, multipleObjects, classification));
+      entries.put(key, entry);
+    }
+    return new Lease<>(entry);
+  }
+
+  /** Leases the barcode detector, creating it if there's none yet. */
+  public synchronized Lease<FirebaseVisionBarcodeDetector> acquireBarcodeDetector(
+      Context context) {
+    registerForMemoryTrims(context);
+    Entry entry = entries.get(BARCODE_DETECTOR_KEY);
+    if (entry == null) {
+      entry = new Entry(FirebaseVision.getInstance().getVisionBarcodeDetector());
+      entries.put(BARCODE_DETECTOR_KEY, entry);
+    }
+    return new Lease<>(entry);
+  }
+
+  /**
+   * Loads the detectors the live camera screens use with the current settings in the background,
+   * unless they are loaded already.
+   */
+  public void warmUp(Context context) {
+    Context appContext = context.getApplicationContext();
+    boolean multipleObjects = PreferenceUtils.isMultipleObjectsMode(appContext);
+    boolean classification = PreferenceUtils.isClassificationEnabled(appContext);
+    warmUpExecutor.execute(
+        () -> {
+          FirebaseVisionImage image = createBlankImage();
+          int objectDetectorKey =
+              getObjectDetectorKey(
+                  FirebaseVisionObjectDetectorOptions.STREAM_MODE, multipleObjects, classification);
+          if (!isWarmedUp(objectDetectorKey)) {
+            // Tracks objects across frames, so only a throwaway detector sees the blank frame.
+            FirebaseVisionObjectDetector objectDetector =
+                createObjectDetector(
+                    FirebaseVisionObjectDetectorOptions.STREAM_MODE,
+                    multipleObjects,
+                    classification);
+            warmUp(
+                "object detector", objectDetectorKey, () -> objectDetector.processImage(image));
+            close(objectDetector);
+          }
+          if (!isWarmedUp(BARCODE_DETECTOR_KEY)) {
+            // Keeps no state from one frame to the next, so the pooled detector is warmed up.
+            Lease<FirebaseVisionBarcodeDetector> barcodeDetector =
+                acquireBarcodeDetector(appContext);
+            warmUp(
+                "barcode detector",
+                BARCODE_DETECTOR_KEY,
+                () -> barcodeDetector.get().detectInImage(image));
+            barcodeDetector.release();
+          }
+        });
+  }
+
+  private synchronized boolean isWarmedUp(int key) {
+    return warmedUpKeys.get(key);
+  }
+
+  /** Runs the first detection of a detector, and records how long it took. */
+  private void warmUp(String name, int key, Callable<Task<?>> detection) {
+    try {
+      long startNs = System.nanoTime();
+      Tasks.await(detection.call());
+      long durationNs = System.nanoTime() - startNs;
+      synchronized (this) {
+        warmedUpKeys.put(key, true);
+      }
+      PipelineMetrics.getInstance()
+          .recordDuration(PipelineMetrics.Stage.DETECTOR_WARM_UP, durationNs);
+      Log.i(TAG, String.format(Locale.US, "Warmed up the %s in %.1f ms.", name, durationNs / 1e6f));
+    } catch (Exception e) {
+      Log.w(TAG, "Failed to warm up the " + name + ".", e);
+    }
+  }
+
+  private static int getObjectDetectorKey(
+      int detectorMode, boolean multipleObjects, boolean classification) {
+    return (detectorMode << 2) | (multipleObjects ? 2 : 0) | (classification ? 1 : 0);
+  }
+
+  private static FirebaseVisionObjectDetector createObjectDetector(
+      int detectorMode, boolean multipleObjects, boolean classification) {
+    FirebaseVisionObjectDetectorOptions.Builder optionsBuilder =
+        new FirebaseVisionObjectDetectorOptions.Builder().setDetectorMode(detectorMode);
+    if (multipleObjects) {
+      optionsBuilder.enableMultipleObjects();
+    }
+    if (classification) {
+      optionsBuilder.enableClassification();
+    }
+    return FirebaseVision.getInstance().getOnDeviceObjectDetector(optionsBuilder.build());
+  }
+
+  private synchronized void evictIdleDetectors() {
+    for (int i = entries.size() - 1; i >= 0; i--) {
+      Entry entry = entries.valueAt(i);
+      if (entry.leaseCount == 0) {
+        entries.removeAt(i);
+        close(entry.detector);
+      }
+    }
+  }
+
+  private static void close(Closeable detector) {
+    try {
+      detector.close();
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to close a detector!", e);
+    }
+  }
+
+  private synchronized void releaseLease(Entry entry) {
+    entry.leaseCount--;
+  }
+
+  private void registerForMemoryTrims(Context context) {
+    if (!isRegisteredForMemoryTrims) {
+      context.getApplicationContext().registerComponentCallbacks(memoryTrimCallbacks);
+      isRegisteredForMemoryTrims = true;
+    }
+  }
+
+  /** A mid-gray NV21 frame, which the detectors process like any camera frame. */
+  private static FirebaseVisionImage createBlankImage() {
+    byte[] data = new byte[WARM_UP_FRAME_WIDTH * WARM_UP_FRAME_HEIGHT * 3 / 2];
+    Arrays.fill(data, (byte) 0x80);
+    return FirebaseVisionImage.fromByteArray(
+        data,
+        new FirebaseVisionImageMetadata.Builder()
+            .setFormat(FirebaseVisionImageMetadata.IMAGE_FORMAT_NV21)
+            .setWidth(WARM_UP_FRAME_WIDTH)
+            .setHeight(WARM_UP_FRAME_HEIGHT)
+            .setRotation(FirebaseVisionImageMetadata.ROTATION_0)
+            .build());
+  }
+
+  /** A detector of the pool along with the number of its leases. */
+  private static final class Entry {
+    private final Closeable detector;
+    private int leaseCount;
+
+    private Entry(Closeable detector) {
+      this.detector = detector;
+    }
+  }
+
+  /**
+   * A detector leased from the pool, which the holder gives back with {@link #release()} once done
+   * with it rather than closing it.
+   */
+  public static final class Lease<D extends Closeable> {
+    private final Entry entry;
+    private boolean isReleased;
+
+    private Lease(Entry entry) {
+      this.entry = entry;
+      entry.leaseCount++;
+    }
+
+    /** Returns the detector, which may be closed once the lease is released. */
+    @SuppressWarnings("unchecked")
+    public D get() {
+      return (D) entry.detector;
+    }
+
+    /** Gives back the detector, only the first call has any effect. */
+    public void release() {
+      if (!isReleased) {
+        isReleased = true;
+        INSTANCE.releaseLease(entry);
+      }
+    }
+  }
+}
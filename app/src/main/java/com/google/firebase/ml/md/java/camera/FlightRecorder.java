@@ -0,0 +1,483 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.java.camera;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.Nullable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Always-on record of the recent history of the camera pipeline, to find out after the fact what
+ * led up to a stall or a failure.
+ *
+ * <p>The recorder keeps the last few frames, down-sampled, and the last few hundred timestamped
+ * pipeline events in fixed rings, so recording never allocates. When a latency goes over {@link
+ * #SPIKE_THRESHOLD_MS} or a detection fails, it writes the rings to the dump directory: the frames
+ * as raw NV21 one after the other through a memory-mapped file, and a JSON index next to it with
+ * where each frame starts, and the events. Dumps are written on a background thread and spaced out,
+ * and only the most recent ones are kept.
+ */
+final class FlightRecorder {
+
+  /**
+   * The pipeline stages that events are recorded for. The events of the processing loop refer to
+   * frames by the order the camera delivered them in, those of the processor by the order the
+   * processor got them in.
+   */
+  enum Stage {
+    /** The camera delivered a frame to the processing loop. */
+    FRAME_RECEIVED,
+    /** A frame was replaced by a newer one before the processing loop got to it. */
+    FRAME_DROPPED,
+    /** The processing loop handed a frame to the processor. */
+    PROCESS_STARTED,
+    /** The processor returned, with the time it took in milliseconds. */
+    PROCESS_FINISHED,
+    /** A detection started, with the number of times the frame was retried before. */
+    DETECTION_STARTED,
+    /** A detection completed, with its latency in milliseconds. */
+    DETECTION_SUCCEEDED,
+    /** A detection failed, with the time it took in milliseconds. */
+    DETECTION_FAILED,
+    /** A detection was abandoned, with the deadline it missed in milliseconds. */
+    DETECTION_TIMED_OUT,
+    /** A frame skipped detection, the results of an unchanged scene were reused. */
+    RESULTS_REUSED,
+    /** A result arrived after the result of a newer frame and was dropped, with its latency. */
+    RESULTS_STALE,
+    /** Detection paused after a failure, with the pause in milliseconds. */
+    BACKOFF_STARTED,
+    /** Publishing results took the main thread longer than its budget, with the time it took. */
+    PUBLISH_OVER_BUDGET
+  }
+
+  /** Gets told about the dumps written, on the dump thread. */
+  interface DumpListener {
+    void onDumpWritten(File indexFile);
+
+    void onDumpFailed(IOException e);
+  }
+
+  /** Latency from which the recorder dumps its history. */
+  static final long SPIKE_THRESHOLD_MS = 500;
+
+  private static final int FRAME_CAPACITY = 8;
+  private static final int EVENT_CAPACITY = 512;
+
+  /** Frames are down-sampled by whole steps until they fit in a square of this side. */
+  private static final int THUMBNAIL_MAX_SIDE = 160;
+
+  private static final int THUMBNAIL_CAPACITY = THUMBNAIL_MAX_SIDE * THUMBNAIL_MAX_SIDE * 3 / 2;
+
+  private static final long MIN_DUMP_INTERVAL_MS = 30_000;
+  private static final int MAX_DUMP_COUNT = 4;
+  private static final String DUMP_FILE_PREFIX = "flight-";
+  private static final String INDEX_FILE_SUFFIX = ".json";
+  private static final String FRAMES_FILE_SUFFIX = ".nv21";
+
+  private static final FlightRecorder INSTANCE = new FlightRecorder();
+
+  // The ring of the most recent frames.
+  @GuardedBy("this")
+  private final byte[][] thumbnails = new byte[FRAME_CAPACITY][THUMBNAIL_CAPACITY];
+
+  @GuardedBy("this")
+  private final int[] thumbnailWidths = new int[FRAME_CAPACITY];
+
+  @GuardedBy("this")
+  private final int[] thumbnailHeights = new int[FRAME_CAPACITY];
+
+  @GuardedBy("this")
+  private final int[] thumbnailRotations = new int[FRAME_CAPACITY];
+
+  @GuardedBy("this")
+  private final long[] thumbnailFrameNumbers = new long[FRAME_CAPACITY];
+
+  @GuardedBy("this")
+  private final long[] thumbnailTimesNs = new long[FRAME_CAPACITY];
+
+  @GuardedBy("this")
+  private long recordedFrameCount;
+
+  // The ring of the most recent events.
+  @GuardedBy("this")
+  private final long[] eventTimesNs = new long[EVENT_CAPACITY];
+
+  @GuardedBy("this")
+  private final Stage[] eventStages = new Stage[EVENT_CAPACITY];
+
+  @GuardedBy("this")
+  private final long[] eventFrames = new long[EVENT_CAPACITY];
+
+  @GuardedBy("this")
+  private final long[] eventValues = new long[EVENT_CAPACITY];
+
+  @GuardedBy("this")
+  private long recordedEventCount;
+
+  // To write the dumps.
+  @GuardedBy("this")
+  @Nullable
+  private File dumpDirectory;
+
+  @GuardedBy("this")
+  @Nullable
+  private DumpListener dumpListener;
+
+  @GuardedBy("this")
+  @Nullable
+  private ExecutorService dumpExecutor;
+
+  @GuardedBy("this")
+  private long lastDumpTimeNs;
+
+  @GuardedBy("this")
+  private boolean dumped;
+
+  static FlightRecorder getInstance() {
+    return INSTANCE;
+  }
+
+  /** Sets where the dumps go, no dumps are written until it is set. */
+  synchronized void setDumpDirectory(File dumpDirectory, @Nullable DumpListener dumpListener) {
+    this.dumpDirectory = dumpDirectory;
+    this.dumpListener = dumpListener;
+  }
+
+  synchronized void recordEvent(Stage stage, long frame, long value) {
+    int index = (int) (recordedEventCount++ % EVENT_CAPACITY);
+    eventTimesNs[index] = System.nanoTime();
+    eventStages[index] = stage;
+    eventFrames[index] = frame;
+    eventValues[index] = value;
+  }
+
+  /** Records an event with a latency, and dumps the history if the latency is a spike. */
+  void recordLatency(Stage stage, long frame, long latencyMs) {
+    recordEvent(stage, frame, latencyMs);
+    if (latencyMs > SPIKE_THRESHOLD_MS) {
+      dump(stage.name().toLowerCase(Locale.US) + " took " + latencyMs + " ms");
+    }
+  }
+
+  /** Keeps a down-sampled copy of the given NV21 frame, which replaces the oldest one kept. */
+  synchronized void recordFrame(SharedFrame frame, long frameNumber) {
+    FrameMetadata metadata = frame.metadata;
+    int step =
+        Math.max(
+            ceilDiv(metadata.width, THUMBNAIL_MAX_SIDE),
+            ceilDiv(metadata.height, THUMBNAIL_MAX_SIDE));
+    // NV21 needs an even size, the chroma plane is subsampled in both dimensions.
+    int width = metadata.width / step & ~1;
+    int height = metadata.height / step & ~1;
+    int index = (int) (recordedFrameCount++ % FRAME_CAPACITY);
+    downsample(frame.data, metadata.width, metadata.height, step, width, height, thumbnails[index]);
+    thumbnailWidths[index] = width;
+    thumbnailHeights[index] = height;
+    thumbnailRotations[index] = metadata.rotation;
+    thumbnailFrameNumbers[index] = frameNumber;
+    thumbnailTimesNs[index] = System.nanoTime();
+  }
+
+  /**
+   * Writes the recorded history to the dump directory in the background, unless a dump was written
+   * shortly before.
+   */
+  synchronized void dump(String reason) {
+    long nowNs = System.nanoTime();
+    long minDumpIntervalNs = TimeUnit.MILLISECONDS.toNanos(MIN_DUMP_INTERVAL_MS);
+    if (dumpDirectory == null || (dumped && nowNs - lastDumpTimeNs < minDumpIntervalNs)) {
+      return;
+    }
+    dumped = true;
+    lastDumpTimeNs = nowNs;
+
+    Snapshot snapshot = takeSnapshot(reason);
+    File directory = dumpDirectory;
+    DumpListener listener = dumpListener;
+    if (dumpExecutor == null) {
+      dumpExecutor =
+          Executors.newSingleThreadExecutor(
+              runnable -> {
+                Thread thread = new Thread(runnable, "FlightRecorder");
+                thread.setDaemon(true);
+                return thread;
+              });
+    }
+    dumpExecutor.execute(
+        () -> {
+          try {
+            File indexFile = snapshot.writeTo(directory);
+            deleteOldDumps(directory);
+            if (listener != null) {
+              listener.onDumpWritten(indexFile);
+            }
+          } catch (IOException e) {
+            if (listener != null) {
+              listener.onDumpFailed(e);
+            }
+          }
+        });
+  }
+
+  @GuardedBy("this")
+  private Snapshot takeSnapshot(String reason) {
+    int frameCount = (int) Math.min(recordedFrameCount, FRAME_CAPACITY);
+    int eventCount = (int) Math.min(recordedEventCount, EVENT_CAPACITY);
+    Snapshot snapshot = new Snapshot(reason, frameCount, eventCount);
+    for (int i = 0; i < frameCount; i++) {
+      // Oldest first.
+      int index = (int) ((recordedFrameCount - frameCount + i) % FRAME_CAPACITY);
+      int length = thumbnailWidths[index] * thumbnailHeights[index] * 3 / 2;
+      snapshot.thumbnails[i] = Arrays.copyOf(thumbnails[index], length);
+      snapshot.thumbnailWidths[i] = thumbnailWidths[index];
+      snapshot.thumbnailHeights[i] = thumbnailHeights[index];
+      snapshot.thumbnailRotations[i] = thumbnailRotations[index];
+      snapshot.thumbnailFrameNumbers[i] = thumbnailFrameNumbers[index];
+      snapshot.thumbnailTimesNs[i] = thumbnailTimesNs[index];
+    }
+    for (int i = 0; i < eventCount; i++) {
+      int index = (int) ((recordedEventCount - eventCount + i) % EVENT_CAPACITY);
+      snapshot.eventTimesNs[i] = eventTimesNs[index];
+      snapshot.eventStages[i] = eventStages[index];
+      snapshot.eventFrames[i] = eventFrames[index];
+      snapshot.eventValues[i] = eventValues[index];
+    }
+    return snapshot;
+  }
+
+  /** Samples every step-th pixel of both planes of an NV21 frame into a smaller NV21 frame. */
+  private static void downsample(
+      ByteBuffer source,
+      int sourceWidth,
+      int sourceHeight,
+      int step,
+      int width,
+      int height,
+      byte[] thumbnail) {
+    if (source.hasArray()) {
+      // Skips the bounds checks of the buffer accessors, most frames come from heap buffers.
+      downsample(
+          source.array(),
+          source.arrayOffset(),
+          sourceWidth,
+          sourceHeight,
+          step,
+          width,
+          height,
+          thumbnail);
+      return;
+    }
+    int position = 0;
+    for (int y = 0; y < height; y++) {
+      int rowStart = y * step * sourceWidth;
+      for (int x = 0; x < width; x++) {
+        thumbnail[position++] = source.get(rowStart + x * step);
+      }
+    }
+    int chromaStart = sourceWidth * sourceHeight;
+    for (int y = 0; y < height / 2; y++) {
+      int rowStart = chromaStart + y * step * sourceWidth;
+      for (int x = 0; x < width / 2; x++) {
+        int pairStart = rowStart + x * step * 2;
+        thumbnail[position++] = source.get(pairStart);
+        thumbnail[position++] = source.get(pairStart + 1);
+      }
+    }
+  }
+
+  private static void downsample(
+      byte[] source,
+      int sourceOffset,
+      int sourceWidth,
+      int sourceHeight,
+      int step,
+      int width,
+      int height,
+      byte[] thumbnail) {
+    int position = 0;
+    for (int y = 0; y < height; y++) {
+      int sourcePosition = sourceOffset + y * step * sourceWidth;
+      for (int x = 0; x < width; x++, sourcePosition += step) {
+        thumbnail[position++] = source[sourcePosition];
+      }
+    }
+    int chromaStart = sourceOffset + sourceWidth * sourceHeight;
+    for (int y = 0; y < height / 2; y++) {
+      int sourcePosition = chromaStart + y * step * sourceWidth;
+      for (int x = 0; x < width / 2; x++, sourcePosition += step * 2) {
+        thumbnail[position++] = source[sourcePosition];
+        thumbnail[position++] = source[sourcePosition + 1];
+      }
+    }
+  }
+
+  private static int ceilDiv(int dividend, int divisor) {
+    return (dividend + divisor - 1) / divisor;
+  }
+
+  private static void deleteOldDumps(File directory) {
+    File[] indexFiles =
+        directory.listFiles(
+            (dir, name) -> name.startsWith(DUMP_FILE_PREFIX) && name.endsWith(INDEX_FILE_SUFFIX));
+    if (indexFiles == null || indexFiles.length <= MAX_DUMP_COUNT) {
+      return;
+    }
+    // The names start with the time of the dump, so they sort oldest first.
+    Arrays.sort(indexFiles);
+    for (int i = 0; i < indexFiles.length - MAX_DUMP_COUNT; i++) {
+      String indexName = indexFiles[i].getName();
+      String baseName = indexName.substring(0, indexName.length() - INDEX_FILE_SUFFIX.length());
+      new File(directory, baseName + FRAMES_FILE_SUFFIX).delete();
+      indexFiles[i].delete();
+    }
+  }
+
+  /** A copy of the rings taken when a dump is triggered, oldest entries first. */
+  private static class Snapshot {
+    final String reason;
+    final long timeMs = System.currentTimeMillis();
+    final long timeNs = System.nanoTime();
+
+    final byte[][] thumbnails;
+    final int[] thumbnailWidths;
+    final int[] thumbnailHeights;
+    final int[] thumbnailRotations;
+    final long[] thumbnailFrameNumbers;
+    final long[] thumbnailTimesNs;
+
+    final long[] eventTimesNs;
+    final Stage[] eventStages;
+    final long[] eventFrames;
+    final long[] eventValues;
+
+    Snapshot(String reason, int frameCount, int eventCount) {
+      this.reason = reason;
+      thumbnails = new byte[frameCount][];
+      thumbnailWidths = new int[frameCount];
+      thumbnailHeights = new int[frameCount];
+      thumbnailRotations = new int[frameCount];
+      thumbnailFrameNumbers = new long[frameCount];
+      thumbnailTimesNs = new long[frameCount];
+      eventTimesNs = new long[eventCount];
+      eventStages = new Stage[eventCount];
+      eventFrames = new long[eventCount];
+      eventValues = new long[eventCount];
+    }
+
+    /** Writes the frames file and the index file of the dump, and returns the index file. */
+    File writeTo(File directory) throws IOException {
+      if (!directory.isDirectory() && !directory.mkdirs()) {
+        throw new IOException("Could not create the dump directory " + directory);
+      }
+      String baseName = DUMP_FILE_PREFIX + timeMs;
+      File framesFile = new File(directory, baseName + FRAMES_FILE_SUFFIX);
+      File indexFile = new File(directory, baseName + INDEX_FILE_SUFFIX);
+
+      int framesSize = 0;
+      for (byte[] thumbnail : thumbnails) {
+        framesSize += thumbnail.length;
+      }
+      try (RandomAccessFile file = new RandomAccessFile(framesFile, "rw")) {
+        file.setLength(framesSize);
+        MappedByteBuffer frames =
+            file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, framesSize);
+        for (byte[] thumbnail : thumbnails) {
+          frames.put(thumbnail);
+        }
+        frames.force();
+      }
+
+      try (Writer writer =
+          new OutputStreamWriter(new FileOutputStream(indexFile), Charset.forName("UTF-8"))) {
+        writer.write(toJson(framesFile.getName()));
+      }
+      return indexFile;
+    }
+
+    /** Times are relative to the dump, in microseconds, negative for everything recorded. */
+    private String toJson(String framesFileName) {
+      StringBuilder json = new StringBuilder();
+      json.append("{\"reason\":\"").append(escape(reason)).append('"');
+      json.append(",\"timeMs\":").append(timeMs);
+      json.append(",\"format\":\"NV21\"");
+      json.append(",\"framesFile\":\"").append(escape(framesFileName)).append('"');
+      json.append(",\"frames\":[");
+      int offset = 0;
+      for (int i = 0; i < thumbnails.length; i++) {
+        if (i > 0) {
+          json.append(',');
+        }
+        json.append("{\"frame\":").append(thumbnailFrameNumbers[i]);
+        json.append(",\"timeUs\":").append(toRelativeTimeUs(thumbnailTimesNs[i]));
+        json.append(",\"offset\":").append(offset);
+        json.append(",\"length\":").append(thumbnails[i].length);
+        json.append(",\"width\":").append(thumbnailWidths[i]);
+        json.append(",\"height\":").append(thumbnailHeights[i]);
+        json.append(",\"rotation\":").append(thumbnailRotations[i]);
+        json.append('}');
+        offset += thumbnails[i].length;
+      }
+      json.append("],\"events\":[");
+      for (int i = 0; i < eventStages.length; i++) {
+        if (i > 0) {
+          json.append(',');
+        }
+        json.append("{\"timeUs\":").append(toRelativeTimeUs(eventTimesNs[i]));
+        json.append(",\"stage\":\"").append(eventStages[i].name()).append('"');
+        json.append(",\"frame\":").append(eventFrames[i]);
+        json.append(",\"value\":").append(eventValues[i]);
+        json.append('}');
+      }
+      json.append("]}");
+      return json.toString();
+    }
+
+    private long toRelativeTimeUs(long recordedTimeNs) {
+      return TimeUnit.NANOSECONDS.toMicros(recordedTimeNs - timeNs);
+    }
+
+    private static String escape(String value) {
+      StringBuilder escaped = new StringBuilder(value.length());
+      for (int i = 0; i < value.length(); i++) {
+        char c = value.charAt(i);
+        if (c == '"' || c == '\\') {
+          escaped.append('\\').append(c);
+        } else if (c < ' ') {
+          escaped.append(' ');
+        } else {
+          escaped.append(c);
+        }
+      }
+      return escaped.toString();
+    }
+  }
+}
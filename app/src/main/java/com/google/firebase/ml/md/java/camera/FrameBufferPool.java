@@ -0,0 +1,373 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.java.camera;
+
+import android.graphics.ImageFormat;
+import android.hardware.Camera;
+import android.os.SystemClock;
+import android.util.Log;
+import androidx.annotation.GuardedBy;
+import androidx.annotation.Nullable;
+import com.google.android.gms.common.images.Size;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Owns the preview buffers handed to the camera through {@link Camera#addCallbackBuffer(byte[])}.
+ *
+ * <p>Every buffer is allocated one byte larger than a preview frame, and that trailing byte stores
+ * the buffer's slot index. Mapping the array received in a preview callback back to its {@link
+ * FrameBuffer} is therefore a single array read instead of a map lookup.
+ *
+ * <p>The pool keeps track of which buffers are queued in the camera and which are leased to the
+ * processing pipeline. Its depth adapts between the configured minimum and maximum: it grows when
+ * the camera runs out of free buffers or when buffers are held for several frame intervals, and
+ * shrinks back once the pipeline returns them quickly again.
+ */
+class FrameBufferPool {
+
+  private static final String TAG = "FrameBufferPool";
+
+  /**
+   * Number of buffers the camera needs queued on its side to keep delivering frames. Through trial
+   * and error it appears that the camera has one thread acquiring images and another one calling
+   * into user code, and spews warnings when it has fewer than two buffers to work with.
+   */
+  private static final int CAMERA_QUEUE_DEPTH = 2;
+
+  /** The slot index is stored in a single trailing byte, which bounds the depth of the pool. */
+  private static final int MAX_SUPPORTED_DEPTH = 0xFF;
+
+  /** Weight of the latest sample in the exponential moving average of the lease time. */
+  private static final float LEASE_TIME_SMOOTHING_FACTOR = 0.1f;
+
+  /** A preview buffer and the state the pool tracks for it. */
+  static class FrameBuffer {
+    final int index;
+    final byte[] array;
+    final ByteBuffer byteBuffer;
+
+    private boolean leased;
+    private long leasedAtMs;
+
+    private FrameBuffer(int index, int frameSizeInBytes) {
+      this.index = index;
+      // Creating the byte array this way and wrapping it, as opposed to using .allocate(),
+      // should guarantee that there will be an array to work with.
+      this.array = new byte[frameSizeInBytes + 1];
+      this.array[frameSizeInBytes] = (byte) index;
+      this.byteBuffer = ByteBuffer.wrap(array);
+      if (!byteBuffer.hasArray() || (byteBuffer.array() != array)) {
+        // This should never happen. If it does, then we wouldn't be passing the preview content to
+        // the underlying detector later.
+        throw new IllegalStateException("Failed to create valid buffer for camera source.");
+      }
+    }
+  }
+
+  /** A point in time snapshot of the pool accounting. */
+  static class Stats {
+    /** Number of buffers currently owned by the pool. */
+    final int depth;
+    /** Number of buffers currently leased to the processing pipeline. */
+    final int leased;
+    /** Total number of frames leased since the pool was attached to a camera. */
+    final long leaseCount;
+    /** Number of times the camera was left without any free buffer to fill. */
+    final long starvationCount;
+    /** Number of frames that were returned to the camera without even being leased. */
+    final long skippedFrameCount;
+    /** Smoothed time in milliseconds a buffer stays leased before it gets returned. */
+    final float averageLeaseTimeMs;
+
+    private Stats(
+        int depth,
+        int leased,
+        long leaseCount,
+        long starvationCount,
+        long skippedFrameCount,
+        float averageLeaseTimeMs) {
+      this.depth = depth;
+      this.leased = leased;
+      this.leaseCount = leaseCount;
+      this.starvationCount = starvationCount;
+      this.skippedFrameCount = skippedFrameCount;
+      this.averageLeaseTimeMs = averageLeaseTimeMs;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          Locale.US,
+          "depth=%d, leased=%d, leases=%d, starvations=%d, skips=%d, avgLeaseMs=%.1f",
+          depth,
+          leased,
+          leaseCount,
+          starvationCount,
+          skippedFrameCount,
+          averageLeaseTimeMs);
+    }
+  }
+
+  @GuardedBy("this")
+  private int minDepth;
+
+  @GuardedBy("this")
+  private int maxDepth;
+
+  @GuardedBy("this")
+  private FrameBuffer[] slots = new FrameBuffer[0];
+
+  @GuardedBy("this")
+  @Nullable
+  private Camera camera;
+
+  @GuardedBy("this")
+  private int frameSizeInBytes;
+
+  @GuardedBy("this")
+  private float frameIntervalMs;
+
+  @GuardedBy("this")
+  private int depth;
+
+  @GuardedBy("this")
+  private int targetDepth;
+
+  @GuardedBy("this")
+  private int leased;
+
+  @GuardedBy("this")
+  private long leaseCount;
+
+  @GuardedBy("this")
+  private long starvationCount;
+
+  @GuardedBy("this")
+  private long skippedFrameCount;
+
+  @GuardedBy("this")
+  private float averageLeaseTimeMs;
+
+  FrameBufferPool(int minDepth, int maxDepth) {
+    setDepthRange(minDepth, maxDepth);
+  }
+
+  /**
+   * Sets the range the depth of the pool adapts within. Takes effect the next time the pool is
+   * attached to a camera.
+   *
+   * @param minDepth the number of buffers allocated up front, also the floor the pool shrinks to.
+   * @param maxDepth the number of buffers the pool never grows beyond.
+   */
+  synchronized void setDepthRange(int minDepth, int maxDepth) {
+    checkDepthRange(minDepth, maxDepth);
+    this.minDepth = minDepth;
+    this.maxDepth = maxDepth;
+  }
+
+  /** Throws if the pool can't keep the camera supplied within the given depth range. */
+  static void checkDepthRange(int minDepth, int maxDepth) {
+    if (minDepth <= CAMERA_QUEUE_DEPTH
+        || maxDepth < minDepth
+        || maxDepth > MAX_SUPPORTED_DEPTH) {
+      throw new IllegalArgumentException(
+          "Invalid frame buffer pool depth range: [" + minDepth + ", " + maxDepth + "]");
+    }
+  }
+
+  /**
+   * Allocates the initial buffers for frames of the given preview size and queues them into the
+   * camera.
+   *
+   * @param previewFps the maximum preview frame rate, used to express lease times in frames.
+   */
+  synchronized void attach(Camera camera, Size previewSize, float previewFps) {
+    clear();
+    slots = new FrameBuffer[maxDepth];
+    int bitsPerPixel = ImageFormat.getBitsPerPixel(ImageFormat.NV21);
+    long sizeInBits = (long) previewSize.getHeight() * previewSize.getWidth() * bitsPerPixel;
+    this.camera = camera;
+    this.frameSizeInBytes = (int) Math.ceil(sizeInBits / 8.0d);
+    this.targetDepth = minDepth;
+    setFrameRate(previewFps);
+    while (depth < minDepth) {
+      if (!addBufferToCamera()) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * Leases the buffer the camera just filled with the given preview data.
+   *
+   * @return the leased buffer, or null if the data was not allocated by this pool.
+   */
+  @Nullable
+  synchronized FrameBuffer lease(byte[] data) {
+    FrameBuffer buffer = findBuffer(data);
+    if (buffer == null || buffer.leased) {
+      return null;
+    }
+
+    buffer.leased = true;
+    buffer.leasedAtMs = SystemClock.elapsedRealtime();
+    leased++;
+    leaseCount++;
+    if (depth == leased) {
+      // The camera has no buffer left to write the next frame into, so it drops frames until one
+      // is returned. Grows the pool right away instead of waiting for the lease time to catch up.
+      starvationCount++;
+      if (depth < maxDepth) {
+        addBufferToCamera();
+      }
+    }
+    return buffer;
+  }
+
+  /** Hands the buffer the camera just filled straight back to it, skipping the frame. */
+  synchronized void skip(byte[] data) {
+    FrameBuffer buffer = findBuffer(data);
+    if (buffer == null || buffer.leased || camera == null) {
+      return;
+    }
+    skippedFrameCount++;
+    camera.addCallbackBuffer(buffer.array);
+  }
+
+  /** Updates the preview frame rate, used to express lease times in frames. */
+  synchronized void setFrameRate(float previewFps) {
+    frameIntervalMs = 1000f / previewFps;
+  }
+
+  /** Returns a leased buffer to the camera once the last reference to its frame is released. */
+  synchronized void release(FrameBuffer buffer) {
+    returnToCamera(buffer);
+  }
+
+  /** Returns a snapshot of the current pool accounting. */
+  synchronized Stats getStats() {
+    return new Stats(
+        depth,
+        leased,
+        leaseCount,
+        starvationCount,
+        skippedFrameCount,
+        averageLeaseTimeMs);
+  }
+
+  /** Releases all the buffers and resets the accounting. */
+  synchronized void clear() {
+    for (int i = 0; i < slots.length; i++) {
+      slots[i] = null;
+    }
+    camera = null;
+    depth = 0;
+    leased = 0;
+    leaseCount = 0;
+    starvationCount = 0;
+    skippedFrameCount = 0;
+    averageLeaseTimeMs = 0;
+  }
+
+  @GuardedBy("this")
+  private void returnToCamera(FrameBuffer buffer) {
+    if (!buffer.leased || slots[buffer.index] != buffer) {
+      // The buffer belongs to a camera session that has been closed already.
+      return;
+    }
+
+    buffer.leased = false;
+    leased--;
+    long leaseTimeMs = SystemClock.elapsedRealtime() - buffer.leasedAtMs;
+    averageLeaseTimeMs += LEASE_TIME_SMOOTHING_FACTOR * (leaseTimeMs - averageLeaseTimeMs);
+    updateTargetDepth();
+
+    if (depth > targetDepth) {
+      // Retires the buffer instead of handing it back, the camera keeps enough of the others.
+      slots[buffer.index] = null;
+      depth--;
+      Log.d(TAG, "Shrunk frame buffer pool to " + depth);
+      return;
+    }
+
+    if (camera != null) {
+      camera.addCallbackBuffer(buffer.array);
+    }
+    while (depth < targetDepth) {
+      if (!addBufferToCamera()) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * Sizes the pool so that the camera keeps {@link #CAMERA_QUEUE_DEPTH} free buffers while the
+   * pipeline holds onto frames for the measured lease time, plus one for the pending frame.
+   */
+  @GuardedBy("this")
+  private void updateTargetDepth() {
+    int framesInPipeline = Math.max(1, (int) Math.ceil(averageLeaseTimeMs / frameIntervalMs));
+    int desiredDepth =
+        Math.max(CAMERA_QUEUE_DEPTH + 1 + framesInPipeline, CAMERA_QUEUE_DEPTH + leased);
+    targetDepth = Math.max(minDepth, Math.min(maxDepth, desiredDepth));
+  }
+
+  @GuardedBy("this")
+  @Nullable
+  private FrameBuffer findBuffer(byte[] data) {
+    if (data.length != frameSizeInBytes + 1) {
+      return null;
+    }
+    int index = data[frameSizeInBytes] & 0xFF;
+    FrameBuffer buffer = index < slots.length ? slots[index] : null;
+    if (buffer == null || buffer.array != data) {
+      // The camera should never write past the frame, but falls back to an identity scan rather
+      // than losing the buffer if it ever does.
+      buffer = findByIdentity(data);
+    }
+    return buffer;
+  }
+
+  @GuardedBy("this")
+  @Nullable
+  private FrameBuffer findByIdentity(byte[] data) {
+    for (FrameBuffer buffer : slots) {
+      if (buffer != null && buffer.array == data) {
+        data[frameSizeInBytes] = (byte) buffer.index;
+        return buffer;
+      }
+    }
+    return null;
+  }
+
+  @GuardedBy("this")
+  private boolean addBufferToCamera() {
+    if (camera == null) {
+      return false;
+    }
+    for (int i = 0; i < slots.length; i++) {
+      if (slots[i] == null) {
+        slots[i] = new FrameBuffer(i, frameSizeInBytes);
+        depth++;
+        camera.addCallbackBuffer(slots[i].array);
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.java.camera;
+
+import android.util.Log;
+import androidx.annotation.GuardedBy;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Frame buffers for the backends that copy frames out of the camera, rather than have the camera
+ * write into buffers of their own as {@link FrameBufferPool} does.
+ *
+ * <p>A buffer is recycled once the last reference to its frame is released. No more than the
+ * maximum depth is ever allocated, so a pipeline holding onto frames makes the backend skip frames
+ * rather than allocate.
+ */
+class FrameBufferRecycler {
+
+  private static final String TAG = "FrameBufferRecycler";
+
+  @GuardedBy("this")
+  private final ArrayDeque<ByteBuffer> freeBuffers = new ArrayDeque<>();
+
+  @GuardedBy("this")
+  private int frameSizeInBytes;
+
+  @GuardedBy("this")
+  private int maxDepth;
+
+  @GuardedBy("this")
+  private int depth;
+
+  /** Tells the buffers of the current session from those of a session that has been cleared. */
+  @GuardedBy("this")
+  private int generation;
+
+  @GuardedBy("this")
+  private long exhaustedCount;
+
+  // Frames of every session that haven't been released yet.
+  @GuardedBy("this")
+  private int heldFrameCount;
+
+  /** Starts over with buffers for frames of the given size, allocating the minimum up front. */
+  synchronized void reset(int frameSizeInBytes, int minDepth, int maxDepth) {
+    clear();
+    this.frameSizeInBytes = frameSizeInBytes;
+    this.maxDepth = maxDepth;
+    while (depth < minDepth) {
+      freeBuffers.add(allocate());
+    }
+  }
+
+  /** Returns a frame backed by a free buffer, or null if the pipeline holds all of them. */
+  @Nullable
+  synchronized SharedFrame obtainFrame(FrameMetadata metadata) {
+    ByteBuffer buffer = freeBuffers.poll();
+    if (buffer == null) {
+      if (depth >= maxDepth) {
+        exhaustedCount++;
+        return null;
+      }
+      buffer = allocate();
+    }
+    buffer.clear();
+    heldFrameCount++;
+    ByteBuffer frameBuffer = buffer;
+    int frameGeneration = generation;
+    return new SharedFrame(buffer, metadata, () -> recycle(frameBuffer, frameGeneration));
+  }
+
+  /** Drops all the buffers, those still held by the pipeline are dropped once released. */
+  synchronized void clear() {
+    if (depth > 0) {
+      Log.d(TAG, "Used " + depth + " frame buffers, ran out of them " + exhaustedCount + " times");
+    }
+    freeBuffers.clear();
+    depth = 0;
+    exhaustedCount = 0;
+    generation++;
+  }
+
+  /** Returns the number of frames obtained that haven't been released yet, of every session. */
+  @VisibleForTesting
+  synchronized int getHeldFrameCount() {
+    return heldFrameCount;
+  }
+
+  /** Returns the number of buffers allocated in the current session. */
+  @VisibleForTesting
+  synchronized int getDepth() {
+    return depth;
+  }
+
+  private synchronized void recycle(ByteBuffer buffer, int bufferGeneration) {
+    heldFrameCount--;
+    if (bufferGeneration == generation) {
+      freeBuffers.add(buffer);
+    }
+  }
+
+  @GuardedBy("this")
+  private ByteBuffer allocate() {
+    depth++;
+    // Wraps an array rather than allocating directly, so the frame can be filled through it.
+    return ByteBuffer.wrap(new byte[frameSizeInBytes]);
+  }
+}
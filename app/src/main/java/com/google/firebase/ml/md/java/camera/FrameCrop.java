@@ -0,0 +1,198 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.java.camera;
+
+import androidx.annotation.Nullable;
+import java.nio.ByteBuffer;
+
+/**
+ * A box of a camera frame copied out as an upright NV21 image of its own, scaled down to a maximum
+ * width, so that only the pixels of an object are kept and encoded rather than the whole frame
+ * converted to a bitmap first.
+ *
+ * <p>The frame is sampled by nearest neighbor, as the bitmap scaling without filtering did, and
+ * rotated along the way, so the crop comes out the way the detector saw the object.
+ */
+public final class FrameCrop {
+
+  // The rotations of a frame in quarter turns, the values of the rotation constants of
+  // FirebaseVisionImageMetadata, which the benchmarks of the crop can't depend on.
+  private static final int ROTATION_90 = 1;
+  private static final int ROTATION_180 = 2;
+  private static final int ROTATION_270 = 3;
+
+  private final byte[] data;
+  private final int width;
+  private final int height;
+
+  private FrameCrop(byte[] data, int width, int height) {
+    this.data = data;
+    this.width = width;
+    this.height = height;
+  }
+
+  /** The NV21 bytes of the crop, a luma plane followed by an interleaved chroma plane. */
+  public byte[] getData() {
+    return data;
+  }
+
+  /** Width of the crop, always even. */
+  public int getWidth() {
+    return width;
+  }
+
+  /** Height of the crop, always even. */
+  public int getHeight() {
+    return height;
+  }
+
+  /**
+   * Copies the given box of the upright image out of the given NV21 frame.
+   *
+   * @return the crop, or null if the box covers less than a 2x2 block of the frame.
+   */
+  @Nullable
+  static FrameCrop crop(
+      ByteBuffer frame,
+      FrameMetadata metadata,
+      int left,
+      int top,
+      int right,
+      int bottom,
+      int maxWidth) {
+    int frameWidth = metadata.width;
+    int frameHeight = metadata.height;
+    boolean isSideways = metadata.rotation == ROTATION_90 || metadata.rotation == ROTATION_270;
+    int uprightWidth = isSideways ? frameHeight : frameWidth;
+    int uprightHeight = isSideways ? frameWidth : frameHeight;
+    left = Math.max(left, 0);
+    top = Math.max(top, 0);
+    int boxWidth = Math.min(right, uprightWidth) - left;
+    int boxHeight = Math.min(bottom, uprightHeight) - top;
+    int width = boxWidth;
+    int height = boxHeight;
+    if (width > maxWidth) {
+      width = maxWidth;
+      height = (int) ((float) maxWidth / boxWidth * boxHeight);
+    }
+    // The chroma plane is subsampled in both dimensions, so the crop is cut to even sizes.
+    width &= ~1;
+    height &= ~1;
+    if (width < 2 || height < 2) {
+      return null;
+    }
+
+    // Where a pixel of the upright image is in the frame splits into a part that only depends on
+    // its column and one that only depends on its row, so both are worked out once per column and
+    // row rather than for every pixel.
+    int[] lumaColumnOffsets = new int[width];
+    int[] chromaColumnOffsets = new int[width / 2];
+    for (int column = 0; column < width; column++) {
+      int x = left + (int) ((long) column * boxWidth / width);
+      lumaColumnOffsets[column] = lumaOffsetOfColumn(x, metadata);
+      if (column % 2 == 0) {
+        chromaColumnOffsets[column / 2] = chromaOffsetOfColumn(x, metadata);
+      }
+    }
+    int[] lumaRowOffsets = new int[height];
+    int[] chromaRowOffsets = new int[height / 2];
+    for (int row = 0; row < height; row++) {
+      int y = top + (int) ((long) row * boxHeight / height);
+      lumaRowOffsets[row] = lumaOffsetOfRow(y, metadata);
+      if (row % 2 == 0) {
+        chromaRowOffsets[row / 2] = chromaOffsetOfRow(y, metadata);
+      }
+    }
+
+    byte[] data = new byte[width * height * 3 / 2];
+    int lumaStart = frame.position();
+    int index = 0;
+    for (int row = 0; row < height; row++) {
+      int rowStart = lumaStart + lumaRowOffsets[row];
+      for (int column = 0; column < width; column++) {
+        data[index++] = frame.get(rowStart + lumaColumnOffsets[column]);
+      }
+    }
+    // The chroma plane holds a V and a U byte for every 2x2 block of the luma plane.
+    int chromaStart = lumaStart + frameWidth * frameHeight;
+    for (int row = 0; row < height / 2; row++) {
+      int rowStart = chromaStart + chromaRowOffsets[row];
+      for (int column = 0; column < width / 2; column++) {
+        int offset = rowStart + chromaColumnOffsets[column];
+        data[index++] = frame.get(offset);
+        data[index++] = frame.get(offset + 1);
+      }
+    }
+    return new FrameCrop(data, width, height);
+  }
+
+  /** Part of the offset in the luma plane of a pixel of the upright image set by its column. */
+  private static int lumaOffsetOfColumn(int x, FrameMetadata metadata) {
+    switch (metadata.rotation) {
+      case ROTATION_90:
+        return (metadata.height - 1 - x) * metadata.width;
+      case ROTATION_180:
+        return metadata.width - 1 - x;
+      case ROTATION_270:
+        return x * metadata.width;
+      default:
+        return x;
+    }
+  }
+
+  /** Part of the offset in the luma plane of a pixel of the upright image set by its row. */
+  private static int lumaOffsetOfRow(int y, FrameMetadata metadata) {
+    switch (metadata.rotation) {
+      case ROTATION_90:
+        return y;
+      case ROTATION_180:
+        return (metadata.height - 1 - y) * metadata.width;
+      case ROTATION_270:
+        return metadata.width - 1 - y;
+      default:
+        return y * metadata.width;
+    }
+  }
+
+  /** Part of the offset in the chroma plane of a pixel of the upright image set by its column. */
+  private static int chromaOffsetOfColumn(int x, FrameMetadata metadata) {
+    switch (metadata.rotation) {
+      case ROTATION_90:
+        return (metadata.height - 1 - x) / 2 * metadata.width;
+      case ROTATION_180:
+        return (metadata.width - 1 - x) & ~1;
+      case ROTATION_270:
+        return x / 2 * metadata.width;
+      default:
+        return x & ~1;
+    }
+  }
+
+  /** Part of the offset in the chroma plane of a pixel of the upright image set by its row. */
+  private static int chromaOffsetOfRow(int y, FrameMetadata metadata) {
+    switch (metadata.rotation) {
+      case ROTATION_90:
+        return y & ~1;
+      case ROTATION_180:
+        return (metadata.height - 1 - y) / 2 * metadata.width;
+      case ROTATION_270:
+        return (metadata.width - 1 - y) & ~1;
+      default:
+        return y / 2 * metadata.width;
+    }
+  }
+}
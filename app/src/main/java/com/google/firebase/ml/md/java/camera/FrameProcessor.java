@@ -16,13 +16,29 @@
 
 package com.google.firebase.ml.md.java.camera;
 
-import java.nio.ByteBuffer;
-
 /** An interface to process the input camera frame and perform detection on it. */
 public interface FrameProcessor {
 
-  /** Processes the input frame with the underlying detector. */
-  void process(ByteBuffer data, FrameMetadata frameMetadata, GraphicOverlay graphicOverlay);
+  /**
+   * Processes the input frame with the underlying detector. The frame may only be used beyond this
+   * call if the processor retains it, in which case it has to release the frame once it is done.
+   */
+  void process(SharedFrame frame, GraphicOverlay graphicOverlay);
+
+  /**
+   * Returns the shortest interval between frames that the processor can keep up with, estimated
+   * from its recent detections, or 0 if it has no estimate yet.
+   */
+  long getSustainableFrameIntervalMs();
+
+  /**
+   * Returns the latency within which the given fraction of the recent detections completed, or 0
+   * if there's no detection yet.
+   */
+  long getLatencyPercentileMs(float fraction);
+
+  /** Returns the number of detections the processor completed, which only ever goes up. */
+  long getCompletedDetectionCount();
 
   /** Stops the underlying detector and release resources. */
   void stop();
@@ -16,74 +16,956 @@
 
 package com.google.firebase.ml.md.java.camera;
 
+import android.content.Context;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.SystemClock;
 import android.util.Log;
 import androidx.annotation.GuardedBy;
+import androidx.annotation.MainThread;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
 import com.google.android.gms.tasks.Task;
+import com.google.firebase.ml.md.java.settings.PreferenceUtils;
 import com.google.firebase.ml.vision.common.FirebaseVisionImage;
 import com.google.firebase.ml.vision.common.FirebaseVisionImageMetadata;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
-/** Abstract base class of {@link FrameProcessor}. */
+/**
+ * Abstract base class of {@link FrameProcessor}.
+ *
+ * <p>Frames go through two stages: the latest frame waits in the pending stage, which only ever
+ * holds the most recent one, until the in-flight stage has room for it. Up to the configured
+ * number of frames are in flight at once, so the detector can start on the next frame while the
+ * results of the previous one are post-processed and drawn. Results are delivered in frame order: a
+ * result that completes after the one of a newer frame is stale and gets dropped.
+ *
+ * <p>Results are post-processed on a background executor by {@link #onResults}, and only what it
+ * leaves to publish them runs on the main thread. The publishers queued up run one after the other
+ * until the main thread used up its budget for the frame, and the rest wait for the next message,
+ * so that the main thread gets to draw in between however many results come in.
+ *
+ * <p>A detection that fails, or that misses its deadline and gets abandoned, pauses the pipeline
+ * for a backoff that grows with consecutive failures. Detection then resumes with the newest
+ * frame, the failed frame itself is only retried a few times if no newer frame came in since.
+ *
+ * <p>When scene change gating is enabled, frames that show the same scene as the frame of the
+ * latest results skip detection entirely, and get the results of that frame delivered instead.
+ * Results are only reused for a limited time, so that a detection missed on a still scene, like a
+ * barcode read while the camera was still focusing, gets another chance.
+ *
+ * <p>A processor that only cares about part of the frame returns that part from {@link
+ * #getDetectionRegion}, and then only that region of each frame is detected. One that keeps its
+ * graphics moving in between detections passes to the constructor in how many frames one is
+ * detected, and the others are skipped.
+ *
+ * <p>The pipeline settings are read once when the processor is created, which happens every time
+ * the camera starts, rather than for every frame on the camera thread.
+ */
 public abstract class FrameProcessorBase<T> implements FrameProcessor {
 
   private static final String TAG = "FrameProcessorBase";
 
+  /** Time after which a detection that hasn't completed is abandoned. */
+  private static final long DETECTION_DEADLINE_MS = 2000;
+
+  /** Number of times a failed frame is retried at most. */
+  private static final int MAX_RETRY_COUNT = 2;
+
+  /** Pause after the first failure, doubled for every consecutive one up to the maximum. */
+  private static final long INITIAL_BACKOFF_MS = 100;
+
+  private static final long MAX_BACKOFF_MS = 3200;
+
+  /** Number of most recent detections the latency estimate is based on. */
+  private static final int LATENCY_WINDOW_SIZE = 30;
+
+  /** Number of detections needed before the latency estimate is trusted. */
+  private static final int MIN_LATENCY_SAMPLE_COUNT = 5;
+
+  private static final float LATENCY_PERCENTILE = 0.75f;
+
+  /** Time after which the results of an unchanged scene are detected again rather than reused. */
+  private static final long MAX_REUSED_RESULTS_AGE_MS = 500;
+
+  /** Main thread time the publishers get in a row, half a frame at 60 frames per second. */
+  private static final long PUBLISH_BUDGET_NS = TimeUnit.MILLISECONDS.toNanos(8);
+
+  /** Post-processes the results of all the processors by default, one after the other. */
+  private static final Executor defaultPostProcessingExecutor =
+      Executors.newSingleThreadExecutor();
+
+  /** A point in time snapshot of the pipeline accounting. */
+  public static class PipelineStats {
+    /** Number of frames waiting for a detection to start, at most one. */
+    public final int pendingDepth;
+    /** Number of frames being detected. */
+    public final int inFlightDepth;
+    /** Number of results delivered to {@link #onSuccess}. */
+    public final long deliveredResultCount;
+    /** Number of results dropped because the result of a newer frame was delivered first. */
+    public final long staleResultCount;
+    /** Number of frames given up on after their detection failed or timed out. */
+    public final long lostFrameCount;
+    /** Number of detections abandoned because they missed their deadline. */
+    public final long timedOutDetectionCount;
+    /** Number of times a failed frame was submitted again. */
+    public final long retryCount;
+    /** Number of frames that skipped detection, the results of an unchanged scene were reused. */
+    public final long reusedResultCount;
+    /** Number of results whose publishing took the main thread longer than its budget. */
+    public final long overBudgetPublishCount;
+    /** Number of frames skipped because only one in every few frames is detected. */
+    public final long skippedFrameCount;
+
+    private PipelineStats(
+        int pendingDepth,
+        int inFlightDepth,
+        long deliveredResultCount,
+        long staleResultCount,
+        long lostFrameCount,
+        long timedOutDetectionCount,
+        long retryCount,
+        long reusedResultCount,
+        long overBudgetPublishCount,
+        long skippedFrameCount) {
+      this.pendingDepth = pendingDepth;
+      this.inFlightDepth = inFlightDepth;
+      this.deliveredResultCount = deliveredResultCount;
+      this.staleResultCount = staleResultCount;
+      this.lostFrameCount = lostFrameCount;
+      this.timedOutDetectionCount = timedOutDetectionCount;
+      this.retryCount = retryCount;
+      this.reusedResultCount = reusedResultCount;
+      this.overBudgetPublishCount = overBudgetPublishCount;
+      this.skippedFrameCount = skippedFrameCount;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          Locale.US,
+          "pending=%d, inFlight=%d, delivered=%d, stale=%d, lost=%d, timedOut=%d, retries=%d,"
+              + " reused=%d, overBudgetPublishes=%d, skipped=%d",
+          pendingDepth,
+          inFlightDepth,
+          deliveredResultCount,
+          staleResultCount,
+          lostFrameCount,
+          timedOutDetectionCount,
+          retryCount,
+          reusedResultCount,
+          overBudgetPublishCount,
+          skippedFrameCount);
+    }
+  }
+
+  /** A frame submitted to the detector, along with the state needed to recover if it fails. */
+  private class Detection {
+    final SharedFrame frame;
+    final long frameSequence;
+    final long frameTimeNs;
+    @Nullable final Rect detectionRegion;
+    final Runnable watchdog;
+    int retryCount;
+
+    @GuardedBy("FrameProcessorBase.this")
+    boolean completed;
+
+    @GuardedBy("FrameProcessorBase.this")
+    boolean abandoned;
+
+    Detection(
+        SharedFrame frame,
+        long frameSequence,
+        long frameTimeNs,
+        @Nullable Rect detectionRegion,
+        GraphicOverlay graphicOverlay) {
+      this.frame = frame;
+      this.frameSequence = frameSequence;
+      this.frameTimeNs = frameTimeNs;
+      this.detectionRegion = detectionRegion;
+      this.watchdog = () -> onDetectionTimedOut(this, graphicOverlay);
+    }
+  }
+
   // To keep the latest frame and its metadata.
   @GuardedBy("this")
-  private ByteBuffer latestFrame;
+  @Nullable
+  private SharedFrame latestFrame;
 
   @GuardedBy("this")
-  private FrameMetadata latestFrameMetaData;
+  private long latestFrameSequence;
 
-  // To keep the frame and metadata in process.
+  // When the processor got the latest frame, to measure the time up to its results.
   @GuardedBy("this")
-  private ByteBuffer processingFrame;
+  private long latestFrameTimeNs;
 
   @GuardedBy("this")
-  private FrameMetadata processingFrameMetaData;
+  @Nullable
+  private Rect latestFrameDetectionRegion;
+
+  /**
+   * Publishes the post-processed results of a frame on the main thread, recycled once it ran so
+   * that delivering results doesn't allocate.
+   */
+  private static class Publication {
+    long frameSequence;
+    long frameTimeNs;
+    @Nullable SharedFrame frame;
+    @Nullable Runnable publisher;
+  }
+
+  // To keep track of the frames in process and of the order their results are delivered in.
+  @GuardedBy("this")
+  private int framesInFlight;
+
+  @GuardedBy("this")
+  private long nextFrameSequence;
+
+  @GuardedBy("this")
+  private long lastDeliveredFrameSequence = -1;
+
+  // The pipeline settings, as they were when the processor was created.
+  private final int maxFramesInFlight;
+  private final int framesPerDetection;
+  private final boolean directFrameBufferEnabled;
+  private final boolean sceneChangeGatingEnabled;
+
+  @GuardedBy("this")
+  private final LatencyHistogram latencyHistogram = new LatencyHistogram(LATENCY_WINDOW_SIZE);
+
+  // To tell when the camera switches to frames of another size, which the latencies don't carry to.
+  @GuardedBy("this")
+  private int latencyFrameWidth;
+
+  @GuardedBy("this")
+  private int latencyFrameHeight;
+
+  @GuardedBy("this")
+  private long deliveredResultCount;
+
+  @GuardedBy("this")
+  private long staleResultCount;
+
+  // To recover from failed or hung detections.
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+  @GuardedBy("this")
+  private int consecutiveFailureCount;
+
+  @GuardedBy("this")
+  private boolean backingOff;
+
+  // To keep the failed detection during the backoff, in case it gets retried.
+  @GuardedBy("this")
+  @Nullable
+  private Detection failedDetection;
+
+  @GuardedBy("this")
+  private boolean stopped;
+
+  @GuardedBy("this")
+  private long lostFrameCount;
+
+  @GuardedBy("this")
+  private long timedOutDetectionCount;
+
+  @GuardedBy("this")
+  private long retryCount;
+
+  // To skip the detection of frames that show the same scene as the frame of the latest results.
+  @GuardedBy("this")
+  private final SceneChangeDetector sceneChangeDetector = new SceneChangeDetector();
+
+  @GuardedBy("this")
+  private long referenceFrameSequence = Long.MAX_VALUE;
+
+  @GuardedBy("this")
+  @Nullable
+  private T reusableResults;
+
+  @GuardedBy("this")
+  @Nullable
+  private Rect reusableResultsDetectionRegion;
+
+  @GuardedBy("this")
+  private long reusableResultsTimeMs;
+
+  // To keep the newest frame whose reused results wait to be posted to the main thread.
+  @GuardedBy("this")
+  @Nullable
+  private SharedFrame reusedFrame;
+
+  @GuardedBy("this")
+  private long reusedFrameSequence;
+
+  @GuardedBy("this")
+  private long reusedFrameTimeNs;
+
+  @GuardedBy("this")
+  private long reusedResultCount;
+
+  private volatile Executor postProcessingExecutor = defaultPostProcessingExecutor;
+
+  // To publish the post-processed results on the main thread, in frame order.
+  @GuardedBy("this")
+  private final ArrayDeque<Publication> pendingPublications = new ArrayDeque<>();
+
+  @GuardedBy("this")
+  private final ArrayDeque<Publication> idlePublications = new ArrayDeque<>();
+
+  @GuardedBy("this")
+  private boolean publishingPosted;
+
+  private final Runnable publicationsRunner = this::runPublications;
+
+  @GuardedBy("this")
+  private long overBudgetPublishCount;
+
+  @GuardedBy("this")
+  private long skippedFrameCount;
+
+  // Only used on the main thread, the frame of the publisher that is running.
+  @Nullable private SharedFrame publishingFrame;
+
+  // To keep off-heap copies of the frames when direct frame buffers are enabled.
+  private final DirectFrameStagingArea directStagingArea = new DirectFrameStagingArea();
+
+  // To keep the recent detection events, dumped along with the recent frames on a stall.
+  private final FlightRecorder flightRecorder = FlightRecorder.getInstance();
+
+  private final PipelineMetrics metrics = PipelineMetrics.getInstance();
+
+  protected FrameProcessorBase(Context context) {
+    this(context, /* framesPerDetection= */ 1);
+  }
+
+  /**
+   * @param framesPerDetection in how many frames one is detected, 1 to detect every frame.
+   *     Processors that keep their graphics moving in between detections can detect less often,
+   *     and leave the detector idle for the rest.
+   */
+  protected FrameProcessorBase(Context context, int framesPerDetection) {
+    this.maxFramesInFlight = PreferenceUtils.getMaxDetectionsInFlight(context);
+    this.framesPerDetection = Math.max(framesPerDetection, 1);
+    this.directFrameBufferEnabled = PreferenceUtils.isDirectFrameBufferEnabled(context);
+    this.sceneChangeGatingEnabled = PreferenceUtils.isSceneChangeGatingEnabled(context);
+  }
 
   @Override
-  public synchronized void process(
-      ByteBuffer data, FrameMetadata frameMetadata, GraphicOverlay graphicOverlay) {
-    latestFrame = data;
-    latestFrameMetaData = frameMetadata;
-    if (processingFrame == null && processingFrameMetaData == null) {
+  public synchronized void process(SharedFrame frame, GraphicOverlay graphicOverlay) {
+    long frameTimeNs = System.nanoTime();
+    long frameSequence = nextFrameSequence++;
+    if (frame.metadata.width != latencyFrameWidth || frame.metadata.height != latencyFrameHeight) {
+      latencyHistogram.reset();
+      latencyFrameWidth = frame.metadata.width;
+      latencyFrameHeight = frame.metadata.height;
+    }
+    if (frameSequence % framesPerDetection != 0) {
+      skippedFrameCount++;
+      return;
+    }
+    if (isSceneUnchanged(frame, frameSequence)) {
+      reuseResults(frame, frameSequence, frameTimeNs, graphicOverlay);
+      return;
+    }
+    if (latestFrame != null) {
+      // The latest frame is superseded before its detection even started.
+      latestFrame.release();
+      metrics.increment(PipelineMetrics.Counter.FRAME_OVERWRITTEN);
+    }
+    Rect detectionRegion = getDetectionRegion(graphicOverlay);
+    CropRegion cropRegion =
+        detectionRegion != null
+            ? CropRegion.fromUprightRegion(detectionRegion, frame.metadata)
+            : null;
+    if (cropRegion != null) {
+      // Copies only the region to detect in, which also gets the camera its buffer back right away.
+      ByteBuffer stagedData =
+          directStagingArea.stageCrop(
+              frame.data,
+              frame.metadata.width,
+              frame.metadata.height,
+              cropRegion.left,
+              cropRegion.top,
+              cropRegion.width,
+              cropRegion.height);
+      latestFrame =
+          new SharedFrame(
+              stagedData,
+              new FrameMetadata(cropRegion.width, cropRegion.height, frame.metadata.rotation),
+              () -> directStagingArea.recycle(stagedData));
+    } else if (directFrameBufferEnabled) {
+      // Copies the frame rather than retaining it, so the camera gets its buffer back right away.
+      ByteBuffer stagedData = directStagingArea.stage(frame.data);
+      latestFrame =
+          new SharedFrame(
+              stagedData, frame.metadata, () -> directStagingArea.recycle(stagedData));
+    } else {
+      latestFrame = frame.retain();
+    }
+    latestFrameSequence = frameSequence;
+    latestFrameTimeNs = frameTimeNs;
+    latestFrameDetectionRegion = cropRegion != null ? cropRegion.uprightRegion : null;
+    if (framesInFlight < maxFramesInFlight) {
       processLatestFrame(graphicOverlay);
     }
   }
 
+  /** Releases the frames held by the processor, subclasses have to call through when stopped. */
+  @Override
+  public synchronized void stop() {
+    stopped = true;
+    mainHandler.removeCallbacksAndMessages(null);
+    if (failedDetection != null && !failedDetection.abandoned) {
+      failedDetection.frame.release();
+    }
+    failedDetection = null;
+    if (latestFrame != null) {
+      latestFrame.release();
+      latestFrame = null;
+    }
+    if (reusedFrame != null) {
+      reusedFrame.release();
+      reusedFrame = null;
+    }
+    for (Publication publication : pendingPublications) {
+      publication.frame.release();
+      recycle(publication);
+    }
+    pendingPublications.clear();
+    publishingPosted = false;
+  }
+
+  /**
+   * Sets the executor the results are post-processed on, which has to run its tasks one after the
+   * other and in order. The main thread executor brings all of the result handling back onto it.
+   */
+  public void setPostProcessingExecutor(Executor executor) {
+    postProcessingExecutor = executor;
+  }
+
+  /**
+   * Estimated from the latency of the recent detections: with several frames in flight, the
+   * detector works through them one after the other, so each takes a fraction of the latency.
+   */
+  @Override
+  public synchronized long getSustainableFrameIntervalMs() {
+    if (latencyHistogram.getSampleCount() < MIN_LATENCY_SAMPLE_COUNT) {
+      return 0;
+    }
+    return latencyHistogram.getPercentileMs(LATENCY_PERCENTILE) / maxFramesInFlight;
+  }
+
+  @Override
+  public synchronized long getLatencyPercentileMs(float fraction) {
+    return latencyHistogram.getPercentileMs(fraction);
+  }
+
+  /** Counts the stale results along with the delivered ones, as their detections completed too. */
+  @Override
+  public synchronized long getCompletedDetectionCount() {
+    return deliveredResultCount + staleResultCount;
+  }
+
+  /** Returns a snapshot of the current pipeline accounting. */
+  public synchronized PipelineStats getPipelineStats() {
+    return new PipelineStats(
+        latestFrame != null ? 1 : 0,
+        framesInFlight,
+        deliveredResultCount,
+        staleResultCount,
+        lostFrameCount,
+        timedOutDetectionCount,
+        retryCount,
+        reusedResultCount,
+        overBudgetPublishCount,
+        skippedFrameCount);
+  }
+
+  /**
+   * Runs the frame through the scene change gate, and returns whether the frame can skip detection
+   * because results of the same scene are at hand.
+   */
+  @GuardedBy("this")
+  private boolean isSceneUnchanged(SharedFrame frame, long frameSequence) {
+    if (!sceneChangeGatingEnabled) {
+      return false;
+    }
+    if (sceneChangeDetector.hasChanged(frame.data, frame.metadata)) {
+      // Only the results of this frame or a later one describe the new scene.
+      sceneChangeDetector.markReference();
+      referenceFrameSequence = frameSequence;
+      reusableResults = null;
+      return false;
+    }
+    return reusableResults != null
+        && SystemClock.elapsedRealtime() - reusableResultsTimeMs < MAX_REUSED_RESULTS_AGE_MS;
+  }
+
+  /** Posts the reusable results for the given frame, instead of detecting it. */
+  @GuardedBy("this")
+  private void reuseResults(
+      SharedFrame frame, long frameSequence, long frameTimeNs, GraphicOverlay graphicOverlay) {
+    if (latestFrame != null) {
+      // The pending frame shows the same scene, its detection is no longer needed either.
+      latestFrame.release();
+      latestFrame = null;
+      metrics.increment(PipelineMetrics.Counter.FRAME_OVERWRITTEN);
+    }
+    boolean deliveryPosted = reusedFrame != null;
+    if (reusedFrame != null) {
+      // Superseded before the main thread got to it.
+      reusedFrame.release();
+    }
+    reusedFrame = frame.retain();
+    reusedFrameSequence = frameSequence;
+    reusedFrameTimeNs = frameTimeNs;
+    flightRecorder.recordEvent(FlightRecorder.Stage.RESULTS_REUSED, frameSequence, /* value= */ 0);
+    if (!deliveryPosted) {
+      postProcessingExecutor.execute(() -> deliverReusedResults(graphicOverlay));
+    }
+  }
+
+  @WorkerThread
+  private void deliverReusedResults(GraphicOverlay graphicOverlay) {
+    SharedFrame frame;
+    long frameSequence;
+    long frameTimeNs;
+    T results;
+    Rect detectionRegion;
+    synchronized (this) {
+      frame = reusedFrame;
+      results = reusableResults;
+      detectionRegion = reusableResultsDetectionRegion;
+      reusedFrame = null;
+      if (frame == null) {
+        return;
+      }
+      if (stopped || results == null || reusedFrameSequence < lastDeliveredFrameSequence) {
+        // The scene changed in the meantime, or a newer frame got its results delivered already.
+        frame.release();
+        return;
+      }
+      frameSequence = reusedFrameSequence;
+      frameTimeNs = reusedFrameTimeNs;
+      lastDeliveredFrameSequence = frameSequence;
+      reusedResultCount++;
+    }
+    publish(
+        frameSequence,
+        frameTimeNs,
+        frame,
+        postProcess(toImage(frame), results, detectionRegion, frameTimeNs, graphicOverlay));
+  }
+
+  /** Keeps the results of the given frame for reuse, if they describe the current scene. */
+  private synchronized void keepForReuse(
+      long frameSequence, T results, @Nullable Rect detectionRegion) {
+    if (frameSequence >= referenceFrameSequence) {
+      reusableResults = results;
+      reusableResultsDetectionRegion = detectionRegion;
+      reusableResultsTimeMs = SystemClock.elapsedRealtime();
+    }
+  }
+
   private synchronized void processLatestFrame(GraphicOverlay graphicOverlay) {
-    processingFrame = latestFrame;
-    processingFrameMetaData = latestFrameMetaData;
+    if (backingOff || stopped || latestFrame == null) {
+      // Resumes with the latest frame once the backoff is over.
+      return;
+    }
+    SharedFrame frame = latestFrame;
     latestFrame = null;
-    latestFrameMetaData = null;
-    if (processingFrame != null && processingFrameMetaData != null) {
+    startDetection(
+        new Detection(
+            frame,
+            latestFrameSequence,
+            latestFrameTimeNs,
+            latestFrameDetectionRegion,
+            graphicOverlay),
+        graphicOverlay);
+  }
+
+  @GuardedBy("this")
+  private void startDetection(Detection detection, GraphicOverlay graphicOverlay) {
+    framesInFlight++;
+    metrics.adjust(PipelineMetrics.Gauge.FRAMES_IN_FLIGHT, 1);
+    detection.completed = false;
+    SharedFrame frame = detection.frame;
+    FirebaseVisionImage image = toImage(frame);
+    long startMs = SystemClock.elapsedRealtime();
+    long startNs = System.nanoTime();
+    mainHandler.postDelayed(detection.watchdog, DETECTION_DEADLINE_MS);
+    flightRecorder.recordEvent(
+        FlightRecorder.Stage.DETECTION_STARTED, detection.frameSequence, detection.retryCount);
+    Executor executor = postProcessingExecutor;
+    detectInImage(image)
+        .addOnSuccessListener(
+            executor,
+            results -> {
+              if (!markCompleted(detection)) {
+                // The watchdog gave up on this detection already.
+                frame.release();
+                return;
+              }
+              metrics.recordDuration(PipelineMetrics.Stage.DETECTION, System.nanoTime() - startNs);
+              long latencyMs = SystemClock.elapsedRealtime() - startMs;
+              flightRecorder.recordLatency(
+                  FlightRecorder.Stage.DETECTION_SUCCEEDED, detection.frameSequence, latencyMs);
+              boolean delivered = markDelivered(detection.frameSequence, latencyMs);
+              if (delivered) {
+                keepForReuse(detection.frameSequence, results, detection.detectionRegion);
+              }
+              // Starts on the next frame before post-processing the results of this one.
+              onDetectionSucceeded(graphicOverlay);
+              if (delivered) {
+                publish(
+                    detection.frameSequence,
+                    detection.frameTimeNs,
+                    frame,
+                    postProcess(
+                        image,
+                        results,
+                        detection.detectionRegion,
+                        detection.frameTimeNs,
+                        graphicOverlay));
+              } else {
+                frame.release();
+              }
+            })
+        .addOnFailureListener(
+            executor,
+            e -> {
+              if (!markCompleted(detection)) {
+                frame.release();
+                return;
+              }
+              flightRecorder.recordEvent(
+                  FlightRecorder.Stage.DETECTION_FAILED,
+                  detection.frameSequence,
+                  SystemClock.elapsedRealtime() - startMs);
+              flightRecorder.dump("detection failed: " + e);
+              FrameProcessorBase.this.onFailure(e);
+              onDetectionFailed(detection, graphicOverlay);
+            });
+  }
+
+  private FirebaseVisionImage toImage(SharedFrame frame) {
+    PipelineMetrics.beginTrace(PipelineMetrics.Stage.IMAGE_BUILD);
+    long startNs = System.nanoTime();
+    try {
       FirebaseVisionImageMetadata metadata =
           new FirebaseVisionImageMetadata.Builder()
               .setFormat(FirebaseVisionImageMetadata.IMAGE_FORMAT_NV21)
-              .setWidth(processingFrameMetaData.width)
-              .setHeight(processingFrameMetaData.height)
-              .setRotation(processingFrameMetaData.rotation)
+              .setWidth(frame.metadata.width)
+              .setHeight(frame.metadata.height)
+              .setRotation(frame.metadata.rotation)
               .build();
-      FirebaseVisionImage image = FirebaseVisionImage.fromByteBuffer(processingFrame, metadata);
-      long startMs = SystemClock.elapsedRealtime();
-      detectInImage(image)
-          .addOnSuccessListener(
-              results -> {
-                Log.d(TAG, "Latency is: " + (SystemClock.elapsedRealtime() - startMs));
-                FrameProcessorBase.this.onSuccess(image, results, graphicOverlay);
-                processLatestFrame(graphicOverlay);
-              })
-          .addOnFailureListener(FrameProcessorBase.this::onFailure);
+      return FirebaseVisionImage.fromByteBuffer(frame.data, metadata);
+    } finally {
+      metrics.recordDuration(PipelineMetrics.Stage.IMAGE_BUILD, System.nanoTime() - startNs);
+      PipelineMetrics.endTrace();
+    }
+  }
+
+  @WorkerThread
+  @Nullable
+  private Runnable postProcess(
+      FirebaseVisionImage image,
+      T results,
+      @Nullable Rect detectionRegion,
+      long frameTimeNs,
+      GraphicOverlay graphicOverlay) {
+    PipelineMetrics.beginTrace(PipelineMetrics.Stage.POST_PROCESSING);
+    long startNs = System.nanoTime();
+    try {
+      return onResults(image, results, detectionRegion, frameTimeNs, graphicOverlay);
+    } finally {
+      metrics.recordDuration(PipelineMetrics.Stage.POST_PROCESSING, System.nanoTime() - startNs);
+      PipelineMetrics.endTrace();
+    }
+  }
+
+  /**
+   * Queues the publisher of the results of the given frame to run on the main thread, the frame is
+   * released once it ran.
+   */
+  private void publish(
+      long frameSequence, long frameTimeNs, SharedFrame frame, @Nullable Runnable publisher) {
+    synchronized (this) {
+      if (!stopped && publisher != null) {
+        Publication publication = idlePublications.poll();
+        if (publication == null) {
+          publication = new Publication();
+        }
+        publication.frameSequence = frameSequence;
+        publication.frameTimeNs = frameTimeNs;
+        publication.frame = frame;
+        publication.publisher = publisher;
+        pendingPublications.add(publication);
+        if (!publishingPosted) {
+          publishingPosted = true;
+          mainHandler.post(publicationsRunner);
+        }
+        return;
+      }
     }
+    frame.release();
+  }
+
+  /** Runs the queued publishers until the budget is used up, the rest wait for the next message. */
+  @MainThread
+  private void runPublications() {
+    long deadlineNs = System.nanoTime() + PUBLISH_BUDGET_NS;
+    while (true) {
+      SharedFrame frame;
+      Runnable publisher;
+      long frameSequence;
+      long frameTimeNs;
+      synchronized (this) {
+        if (pendingPublications.isEmpty()) {
+          publishingPosted = false;
+          return;
+        }
+        if (System.nanoTime() >= deadlineNs) {
+          mainHandler.post(publicationsRunner);
+          return;
+        }
+        Publication publication = pendingPublications.poll();
+        frame = publication.frame;
+        publisher = publication.publisher;
+        frameSequence = publication.frameSequence;
+        frameTimeNs = publication.frameTimeNs;
+        recycle(publication);
+      }
+      PipelineMetrics.beginTrace(PipelineMetrics.Stage.PUBLISH);
+      long startNs = System.nanoTime();
+      publishingFrame = frame;
+      publisher.run();
+      publishingFrame = null;
+      frame.release();
+      long endNs = System.nanoTime();
+      long publishTimeNs = endNs - startNs;
+      PipelineMetrics.endTrace();
+      metrics.recordDuration(PipelineMetrics.Stage.PUBLISH, publishTimeNs);
+      metrics.recordDuration(PipelineMetrics.Stage.FRAME_TO_RESULT, endNs - frameTimeNs);
+      if (publishTimeNs > PUBLISH_BUDGET_NS) {
+        recordOverBudgetPublish(frameSequence, publishTimeNs);
+      }
+    }
+  }
+
+  @GuardedBy("this")
+  private void recycle(Publication publication) {
+    publication.frame = null;
+    publication.publisher = null;
+    idlePublications.add(publication);
+  }
+
+  private synchronized void recordOverBudgetPublish(long frameSequence, long publishTimeNs) {
+    overBudgetPublishCount++;
+    flightRecorder.recordEvent(
+        FlightRecorder.Stage.PUBLISH_OVER_BUDGET,
+        frameSequence,
+        TimeUnit.NANOSECONDS.toMillis(publishTimeNs));
+  }
+
+  /** Returns whether the detection completed before the watchdog abandoned it. */
+  private synchronized boolean markCompleted(Detection detection) {
+    if (detection.abandoned) {
+      return false;
+    }
+    detection.completed = true;
+    mainHandler.removeCallbacks(detection.watchdog);
+    return true;
+  }
+
+  private void onDetectionTimedOut(Detection detection, GraphicOverlay graphicOverlay) {
+    synchronized (this) {
+      if (detection.completed) {
+        return;
+      }
+      // Native code may still be reading the frame, so the frame is only released once the task
+      // completes after all, if ever.
+      detection.abandoned = true;
+      timedOutDetectionCount++;
+    }
+    flightRecorder.recordEvent(
+        FlightRecorder.Stage.DETECTION_TIMED_OUT, detection.frameSequence, DETECTION_DEADLINE_MS);
+    flightRecorder.dump("detection timed out");
+    onFailure(
+        new TimeoutException(
+            "Detection didn't complete within " + DETECTION_DEADLINE_MS + " ms, abandoned it."));
+    onDetectionFailed(detection, graphicOverlay);
+  }
+
+  private synchronized void onDetectionSucceeded(GraphicOverlay graphicOverlay) {
+    framesInFlight--;
+    metrics.adjust(PipelineMetrics.Gauge.FRAMES_IN_FLIGHT, -1);
+    consecutiveFailureCount = 0;
+    processLatestFrame(graphicOverlay);
+  }
+
+  /** Frees the in-flight slot of the failed detection, and backs off before detecting again. */
+  private synchronized void onDetectionFailed(Detection detection, GraphicOverlay graphicOverlay) {
+    framesInFlight--;
+    metrics.adjust(PipelineMetrics.Gauge.FRAMES_IN_FLIGHT, -1);
+    consecutiveFailureCount++;
+    if (backingOff) {
+      // Backing off from another failure already, only that one gets a chance to be retried.
+      giveUp(detection);
+      return;
+    }
+    long backoffMs =
+        Math.min(INITIAL_BACKOFF_MS << Math.min(consecutiveFailureCount - 1, 16), MAX_BACKOFF_MS);
+    backingOff = true;
+    failedDetection = detection;
+    flightRecorder.recordEvent(
+        FlightRecorder.Stage.BACKOFF_STARTED, detection.frameSequence, backoffMs);
+    Log.w(
+        TAG,
+        "Detection failed " + consecutiveFailureCount + " times in a row, backing off for "
+            + backoffMs + " ms.");
+    mainHandler.postDelayed(() -> resumeAfterBackoff(graphicOverlay), backoffMs);
+  }
+
+  private synchronized void resumeAfterBackoff(GraphicOverlay graphicOverlay) {
+    Detection detection = failedDetection;
+    backingOff = false;
+    failedDetection = null;
+    if (detection == null) {
+      return;
+    }
+    if (!detection.abandoned && detection.retryCount < MAX_RETRY_COUNT && latestFrame == null) {
+      detection.retryCount++;
+      retryCount++;
+      startDetection(detection, graphicOverlay);
+      return;
+    }
+
+    giveUp(detection);
+    processLatestFrame(graphicOverlay);
+  }
+
+  @GuardedBy("this")
+  private void giveUp(Detection detection) {
+    lostFrameCount++;
+    if (!detection.abandoned) {
+      detection.frame.release();
+    }
+  }
+
+  /** Returns whether the result of the given frame is still newer than any delivered so far. */
+  private synchronized boolean markDelivered(long frameSequence, long latencyMs) {
+    latencyHistogram.record(latencyMs);
+    if (frameSequence < lastDeliveredFrameSequence) {
+      staleResultCount++;
+      flightRecorder.recordEvent(FlightRecorder.Stage.RESULTS_STALE, frameSequence, latencyMs);
+      return false;
+    }
+    lastDeliveredFrameSequence = frameSequence;
+    deliveredResultCount++;
+    return true;
+  }
+
+  /**
+   * Returns the region of the upright frame that detection can be limited to, or null to detect in
+   * the whole frame. Called on the camera thread for every frame.
+   */
+  @Nullable
+  protected Rect getDetectionRegion(GraphicOverlay graphicOverlay) {
+    return null;
   }
 
   protected abstract Task<T> detectInImage(FirebaseVisionImage image);
 
-  /** Be called when the detection succeeds. */
-  protected abstract void onSuccess(
-      FirebaseVisionImage image, T results, GraphicOverlay graphicOverlay);
+  /**
+   * Be called on the post-processing executor when the detection succeeds, with the region the
+   * detection was limited to, the results are then relative to the top left corner of the region.
+   * Does the work on the results that doesn't need the main thread, and returns the rest, which
+   * publishes them on the main thread, or null if there's nothing to publish. The image can be used
+   * up to when the publisher ran.
+   *
+   * <p>By default, all of the work is left to {@link #onSuccess} on the main thread.
+   */
+  @WorkerThread
+  @Nullable
+  protected Runnable onResults(
+      FirebaseVisionImage image,
+      T results,
+      @Nullable Rect detectionRegion,
+      GraphicOverlay graphicOverlay) {
+    return () -> onSuccess(image, results, detectionRegion, graphicOverlay);
+  }
+
+  /**
+   * Same as {@link #onResults(FirebaseVisionImage, Object, Rect, GraphicOverlay)}, along with the
+   * {@link System#nanoTime()} the processor got the frame at, for processors that need to know how
+   * old the results are by the time they're drawn.
+   */
+  @WorkerThread
+  @Nullable
+  protected Runnable onResults(
+      FirebaseVisionImage image,
+      T results,
+      @Nullable Rect detectionRegion,
+      long frameTimeNs,
+      GraphicOverlay graphicOverlay) {
+    return onResults(image, results, detectionRegion, graphicOverlay);
+  }
+
+  /** Be called on the main thread when the detection succeeds, unless {@link #onResults} is. */
+  @MainThread
+  protected void onSuccess(FirebaseVisionImage image, T results, GraphicOverlay graphicOverlay) {}
+
+  /**
+   * Be called on the main thread when the detection succeeds, with the region the detection was
+   * limited to, unless {@link #onResults} is. The results are then relative to the top left corner
+   * of the region.
+   */
+  @MainThread
+  protected void onSuccess(
+      FirebaseVisionImage image,
+      T results,
+      @Nullable Rect detectionRegion,
+      GraphicOverlay graphicOverlay) {
+    onSuccess(image, results, graphicOverlay);
+  }
+
+  /**
+   * Copies the given box of the upright image out of the frame whose results are being published,
+   * scaled down to the given width at most, for the results that outlive the frame. Only the
+   * publishers returned by {@link #onResults} can call it, the frame is recycled once they ran.
+   *
+   * @return the crop, or null if the box covers less than a 2x2 block of the frame.
+   */
+  @MainThread
+  @Nullable
+  protected final FrameCrop cropPublishedFrame(Rect box, int maxWidth) {
+    if (publishingFrame == null) {
+      throw new IllegalStateException("No frame is being published.");
+    }
+    return FrameCrop.crop(
+        publishingFrame.data,
+        publishingFrame.metadata,
+        box.left,
+        box.top,
+        box.right,
+        box.bottom,
+        maxWidth);
+  }
 
+  /**
+   * Be called when the detection fails, on the post-processing executor, or on the main thread if
+   * the detection timed out.
+   */
   protected abstract void onFailure(Exception e);
 }
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.java.camera;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A recorded sequence of NV21 frames, read through a memory mapping of the recording file so that
+ * replaying a frame doesn't copy it.
+ *
+ * <p>The file starts with a magic number and a format version, followed by the frames one after
+ * the other. Each frame has a header with its timestamp in microseconds, its width, height and
+ * rotation, and the length of its data, followed by the data itself.
+ */
+class FrameRecording implements Closeable {
+
+  /** "MDFR", for Material Design frame recording. */
+  private static final int MAGIC = 0x4D444652;
+
+  private static final int VERSION = 1;
+  private static final int FILE_HEADER_SIZE = 8;
+  private static final int FRAME_HEADER_SIZE = 24;
+
+  private final RandomAccessFile file;
+  private final ByteBuffer[] frameData;
+  private final FrameMetadata[] frameMetadata;
+  private final long[] timestampsUs;
+
+  private FrameRecording(
+      RandomAccessFile file,
+      ByteBuffer[] frameData,
+      FrameMetadata[] frameMetadata,
+      long[] timestampsUs) {
+    this.file = file;
+    this.frameData = frameData;
+    this.frameMetadata = frameMetadata;
+    this.timestampsUs = timestampsUs;
+  }
+
+  /**
+   * Maps the given recording file and indexes its frames.
+   *
+   * @throws IOException if the file can't be read or isn't a valid recording.
+   */
+  static FrameRecording open(File recordingFile) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(recordingFile, "r");
+    try {
+      long length = file.length();
+      if (length > Integer.MAX_VALUE) {
+        throw new IOException("Frame recording is too large to be mapped: " + recordingFile);
+      }
+      MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+      if (length < FILE_HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+        throw new IOException("Not a frame recording: " + recordingFile);
+      }
+      if (buffer.getInt(4) != VERSION) {
+        throw new IOException("Unsupported frame recording version: " + buffer.getInt(4));
+      }
+
+      List<ByteBuffer> frameData = new ArrayList<>();
+      List<FrameMetadata> frameMetadata = new ArrayList<>();
+      List<Long> timestampsUs = new ArrayList<>();
+      int offset = FILE_HEADER_SIZE;
+      while (offset + FRAME_HEADER_SIZE <= length) {
+        long timestampUs = buffer.getLong(offset);
+        int width = buffer.getInt(offset + 8);
+        int height = buffer.getInt(offset + 12);
+        int rotation = buffer.getInt(offset + 16);
+        int dataLength = buffer.getInt(offset + 20);
+        int dataOffset = offset + FRAME_HEADER_SIZE;
+        if (dataLength < width * height * 3 / 2 || dataOffset + (long) dataLength > length) {
+          throw new IOException("Truncated frame recording: " + recordingFile);
+        }
+
+        ByteBuffer data = buffer.duplicate();
+        data.limit(dataOffset + dataLength);
+        data.position(dataOffset);
+        frameData.add(data.slice().asReadOnlyBuffer());
+        frameMetadata.add(new FrameMetadata(width, height, rotation));
+        timestampsUs.add(timestampUs);
+        offset = dataOffset + dataLength;
+      }
+
+      long[] timestamps = new long[timestampsUs.size()];
+      for (int i = 0; i < timestamps.length; i++) {
+        timestamps[i] = timestampsUs.get(i);
+      }
+      return new FrameRecording(
+          file,
+          frameData.toArray(new ByteBuffer[0]),
+          frameMetadata.toArray(new FrameMetadata[0]),
+          timestamps);
+    } catch (IOException | RuntimeException e) {
+      file.close();
+      throw e;
+    }
+  }
+
+  int getFrameCount() {
+    return frameData.length;
+  }
+
+  /** Returns the data of a frame, a read-only view of the mapping that starts at position 0. */
+  ByteBuffer getData(int index) {
+    return frameData[index].duplicate();
+  }
+
+  FrameMetadata getMetadata(int index) {
+    return frameMetadata[index];
+  }
+
+  long getTimestampUs(int index) {
+    return timestampsUs[index];
+  }
+
+  /** Returns the average interval between the frames, or 0 if there are fewer than two. */
+  long getAverageFrameIntervalUs() {
+    int frameCount = getFrameCount();
+    if (frameCount < 2) {
+      return 0;
+    }
+    return (timestampsUs[frameCount - 1] - timestampsUs[0]) / (frameCount - 1);
+  }
+
+  /** The frames stay readable after closing, the mapping is released once they are unreachable. */
+  @Override
+  public void close() throws IOException {
+    file.close();
+  }
+
+  /** Writes a recording frame by frame, in the format {@link FrameRecording} reads. */
+  static class Writer implements Closeable {
+
+    private final DataOutputStream output;
+    private byte[] scratch = new byte[0];
+
+    Writer(File recordingFile) throws IOException {
+      output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(recordingFile)));
+      output.writeInt(MAGIC);
+      output.writeInt(VERSION);
+    }
+
+    /** Appends an NV21 frame, reading its data from position 0 without moving the position. */
+    void write(long timestampUs, FrameMetadata metadata, ByteBuffer data) throws IOException {
+      int dataLength = metadata.width * metadata.height * 3 / 2;
+      output.writeLong(timestampUs);
+      output.writeInt(metadata.width);
+      output.writeInt(metadata.height);
+      output.writeInt(metadata.rotation);
+      output.writeInt(dataLength);
+      if (data.hasArray()) {
+        output.write(data.array(), data.arrayOffset(), dataLength);
+      } else {
+        if (scratch.length < dataLength) {
+          scratch = new byte[dataLength];
+        }
+        ByteBuffer source = data.duplicate();
+        source.position(0);
+        source.get(scratch, 0, dataLength);
+        output.write(scratch, 0, dataLength);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      output.close();
+    }
+  }
+}
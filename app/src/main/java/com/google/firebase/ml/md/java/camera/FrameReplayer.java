@@ -0,0 +1,163 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.java.camera;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays a {@link FrameRecording} into a frame sink, either paced by the timestamps of the
+ * recording or as fast as the sink takes the frames, and once or in a loop.
+ *
+ * <p>The frames are views of the mapped recording, so replaying copies nothing and the same input
+ * comes out the same on every run. The replayer keeps count of the frames and of the time the sink
+ * spent on them, which gives repeatable throughput and latency numbers for whatever is behind it.
+ */
+class FrameReplayer {
+
+  /** How the frames are spaced in time. */
+  enum Pacing {
+    /** The frames are replayed with the intervals they were recorded with. */
+    REAL_TIME,
+    /** Each frame is replayed as soon as the sink returns from the previous one. */
+    AS_FAST_AS_POSSIBLE
+  }
+
+  /** Receives the replayed frames, on the thread that called {@link #replay}. */
+  interface FrameSink {
+    /**
+     * Called for every replayed frame. The replayer releases its reference once this returns, so a
+     * sink that holds onto the frame retains it first.
+     */
+    void onFrame(SharedFrame frame);
+  }
+
+  private final FrameRecording recording;
+  private final Pacing pacing;
+  private final boolean looping;
+
+  private volatile boolean stopped;
+
+  private long frameCount;
+  private long replayTimeNs;
+  private long totalSinkTimeNs;
+  private long maxSinkTimeNs;
+
+  FrameReplayer(FrameRecording recording, Pacing pacing, boolean looping) {
+    this.recording = recording;
+    this.pacing = pacing;
+    this.looping = looping;
+  }
+
+  /**
+   * Replays the recording into the sink on the calling thread, until the recording ends, or until
+   * {@link #stop} is called or the thread is interrupted when looping.
+   */
+  void replay(FrameSink sink) {
+    int recordedFrameCount = recording.getFrameCount();
+    if (recordedFrameCount == 0) {
+      return;
+    }
+    long firstTimestampUs = recording.getTimestampUs(0);
+    // A loop lasts as long as the recording plus one frame interval, so the last frame of a loop
+    // stays up as long as the others before the first one comes around again.
+    long loopDurationUs =
+        recording.getTimestampUs(recordedFrameCount - 1)
+            - firstTimestampUs
+            + recording.getAverageFrameIntervalUs();
+
+    stopped = false;
+    long startNs = System.nanoTime();
+    long loopStartNs = startNs;
+    try {
+      do {
+        for (int i = 0; i < recordedFrameCount && !stopped; i++) {
+          if (pacing == Pacing.REAL_TIME) {
+            long frameOffsetNs =
+                TimeUnit.MICROSECONDS.toNanos(recording.getTimestampUs(i) - firstTimestampUs);
+            long delayNs = loopStartNs + frameOffsetNs - System.nanoTime();
+            if (delayNs > 0) {
+              TimeUnit.NANOSECONDS.sleep(delayNs);
+            }
+          }
+
+          SharedFrame frame = new SharedFrame(recording.getData(i), recording.getMetadata(i), null);
+          long sinkStartNs = System.nanoTime();
+          try {
+            sink.onFrame(frame);
+          } finally {
+            frame.release();
+          }
+          recordSinkTime(System.nanoTime() - sinkStartNs);
+        }
+        loopStartNs += TimeUnit.MICROSECONDS.toNanos(loopDurationUs);
+      } while (looping && !stopped);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      synchronized (this) {
+        replayTimeNs += System.nanoTime() - startNs;
+      }
+    }
+  }
+
+  /** Makes an ongoing {@link #replay} return after the frame it is currently replaying. */
+  void stop() {
+    stopped = true;
+  }
+
+  private synchronized void recordSinkTime(long sinkTimeNs) {
+    frameCount++;
+    totalSinkTimeNs += sinkTimeNs;
+    maxSinkTimeNs = Math.max(maxSinkTimeNs, sinkTimeNs);
+  }
+
+  synchronized Stats getStats() {
+    return new Stats(frameCount, replayTimeNs, totalSinkTimeNs, maxSinkTimeNs);
+  }
+
+  /** Snapshot of the replay counters, accumulated over all the replays so far. */
+  static class Stats {
+    /** Number of frames handed to the sink. */
+    final long frameCount;
+    /** Frames replayed per second of wall clock time, pacing included. */
+    final float framesPerSecond;
+    /** Average time in milliseconds the sink took per frame. */
+    final float averageFrameTimeMs;
+    /** Longest time in milliseconds the sink took for a single frame. */
+    final float maxFrameTimeMs;
+
+    private Stats(long frameCount, long replayTimeNs, long totalSinkTimeNs, long maxSinkTimeNs) {
+      this.frameCount = frameCount;
+      this.framesPerSecond =
+          replayTimeNs > 0 ? frameCount * (float) TimeUnit.SECONDS.toNanos(1) / replayTimeNs : 0;
+      this.averageFrameTimeMs = frameCount > 0 ? totalSinkTimeNs / 1e6f / frameCount : 0;
+      this.maxFrameTimeMs = maxSinkTimeNs / 1e6f;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          Locale.US,
+          "frames=%d, fps=%.1f, avgFrameMs=%.2f, maxFrameMs=%.2f",
+          frameCount,
+          framesPerSecond,
+          averageFrameTimeMs,
+          maxFrameTimeMs);
+    }
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.ml.md.java.camera;
+
+import androidx.annotation.GuardedBy;
+
+/**
+ * Paces the camera frames to the rate the frame processor can sustain, so that frames it would
+ * drop anyway are neither converted nor delivered.
+ *
+ * <p>Two knobs are turned from the processor's latency: the preview frame rate requested from the
+ * camera, which is kept high enough for the preview to stay smooth, and an admission stride that
+ * only lets every n-th camera frame through to the processor to make up for the rest.
+ */
+class FrameScheduler {
+
+  /** Frames are admitted a bit faster than the processor can sustain so it never waits long. */
+  private static final float FRAME_RATE_HEADROOM = 1.25f;
+
+  /** The preview is displayed at the camera frame rate, so it is never lowered below this. */
+  private static final float MIN_PREVIEW_FRAME_RATE = 15f;
+
+  private static final int MAX_ADMISSION_STRIDE = 8;
+
+  /** Changing the preview frame rate reconfigures the camera, so it is done sparingly. */
+  private static final long MIN_FRAME_RATE_CHANGE_INTERVAL_MS = 5000;
+
+  private static final float MIN_FRAME_RATE_CHANGE_RATIO = 0.2f;
+
+  private final float maxFrameRate;
+
+  @GuardedBy("this")
+  private long initialFrameIntervalMs;
+
+  @GuardedBy("this")
+  private float cameraFrameRate;
+
+  @GuardedBy("this")
+  private float targetFrameRate;
+
+  @GuardedBy("this")
+  private float requestedPreviewFrameRate;
+
+  @GuardedBy("this")
+  private long lastFrameRateChangeMs;
+
+  @GuardedBy("this")
+  private int admissionStride = 1;
+
+  @GuardedBy("this")
+  private int framesSinceAdmission;
+
+  /** @param maxFrameRate the frame rate the camera is asked for when the processor keeps up. */
+  FrameScheduler(float maxFrameRate) {
+    this.maxFrameRate = maxFrameRate;
+    reset(maxFrameRate);
+  }
+
+  /** Starts over for a camera that has just been configured to the given frame rate. */
+  synchronized void reset(float cameraFrameRate) {
+    this.cameraFrameRate = cameraFrameRate;
+    this.targetFrameRate = maxFrameRate;
+    this.requestedPreviewFrameRate = maxFrameRate;
+    this.lastFrameRateChangeMs = 0;
+    this.admissionStride = 1;
+    this.framesSinceAdmission = 0;
+  }
+
+  /**
+   * Sets the frame interval to pace by until the processor has an estimate of its own, like one it
+   * was calibrated with on an earlier run, or 0 to start at the maximum frame rate.
+   */
+  synchronized void setInitialFrameIntervalMs(long frameIntervalMs) {
+    initialFrameIntervalMs = frameIntervalMs;
+  }
+
+  /** Returns whether the frame the camera just delivered should be handed to the processor. */
+  synchronized boolean admitFrame() {
+    if (++framesSinceAdmission < admissionStride) {
+      return false;
+    }
+    framesSinceAdmission = 0;
+    return true;
+  }
+
+  /**
+   * Updates the pacing from the processor's latest estimate.
+   *
+   * @param sustainableFrameIntervalMs see {@link FrameProcessor#getSustainableFrameIntervalMs()}.
+   */
+  synchronized void update(long sustainableFrameIntervalMs) {
+    if (sustainableFrameIntervalMs <= 0) {
+      sustainableFrameIntervalMs = initialFrameIntervalMs;
+    }
+    targetFrameRate =
+        sustainableFrameIntervalMs > 0
+            ? Math.min(maxFrameRate, FRAME_RATE_HEADROOM * 1000f / sustainableFrameIntervalMs)
+            : maxFrameRate;
+    updateAdmissionStride();
+  }
+
+  /**
+   * Returns the preview frame rate to switch the camera to, or 0 if it should stay as it is. A
+   * returned rate counts as requested, whether the camera manages to switch to it or not.
+   */
+  synchronized float pollPreviewFrameRateChange(long nowMs) {
+    float previewFrameRate = Math.max(MIN_PREVIEW_FRAME_RATE, targetFrameRate);
+    float changeRatio =
+        Math.abs(previewFrameRate - requestedPreviewFrameRate) / requestedPreviewFrameRate;
+    if (changeRatio < MIN_FRAME_RATE_CHANGE_RATIO
+        || nowMs - lastFrameRateChangeMs < MIN_FRAME_RATE_CHANGE_INTERVAL_MS) {
+      return 0;
+    }
+    requestedPreviewFrameRate = previewFrameRate;
+    lastFrameRateChangeMs = nowMs;
+    return previewFrameRate;
+  }
+
+  /** Takes the frame rate the camera has been switched to into account. */
+  synchronized void onCameraFrameRateChanged(float cameraFrameRate) {
+    this.cameraFrameRate = cameraFrameRate;
+    updateAdmissionStride();
+  }
+
+  @GuardedBy("this")
+  private void updateAdmissionStride() {
+    int stride = (int) (cameraFrameRate / targetFrameRate);
+    admissionStride = Math.max(1, Math.min(MAX_ADMISSION_STRIDE, stride));
+  }
+}
@@ -21,11 +21,18 @@ import android.graphics.Canvas;
 import android.graphics.Rect;
 import android.graphics.RectF;
 import android.util.AttributeSet;
+import android.view.Choreographer;
 import android.view.View;
+import androidx.annotation.GuardedBy;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 import com.google.android.gms.common.images.Size;
 import com.google.firebase.ml.md.java.Utils;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A view which renders a series of custom graphics to be overlaid on top of an associated preview
@@ -40,18 +47,43 @@ import java.util.List;
  * #translateY(float)} to convert to view coordinate from the preview's coordinate.
  */
 public class GraphicOverlay extends View {
+  private static final Graphic[] NO_GRAPHICS = new Graphic[0];
+
   private final Object lock = new Object();
 
   private int previewWidth;
   private float widthScaleFactor = 1.0f;
   private int previewHeight;
   private float heightScaleFactor = 1.0f;
-  private final List<Graphic> graphics = new ArrayList<>();
+
+  // Bumped whenever the view or the preview changes size, for what is derived from them to be
+  // cached up to the next change.
+  private volatile int layoutVersion;
+
+  // The graphics are double buffered: callers replace the pending graphics of their layers while
+  // the view keeps drawing the last published snapshot, which is never modified and so is read
+  // without taking the lock.
+  @GuardedBy("lock")
+  private final List<Layer> layers = new ArrayList<>();
+
+  // The graphics the overlay itself is given, below those of the layers added to it.
+  private final Layer baseLayer = new Layer();
+
+  // The pending graphics of all the layers in the order they're drawn, gathered for every publish.
+  @GuardedBy("lock")
+  private final List<Graphic> pendingGraphics = new ArrayList<>();
+
+  private volatile Graphic[] graphics = NO_GRAPHICS;
+
+  // Changes to the list are published and drawn once per vsync, however many happened in between.
+  private final Choreographer choreographer = Choreographer.getInstance();
+  private final AtomicBoolean frameScheduled = new AtomicBoolean();
+  private final Choreographer.FrameCallback frameCallback = frameTimeNanos -> publishGraphics();
 
   /**
    * Base class for a custom graphics object to be rendered within the graphic overlay. Subclass
-   * this and implement the {@link Graphic#draw(Canvas)} method to define the graphics element. Add
-   * instances to the overlay using {@link GraphicOverlay#add(Graphic)}.
+   * this and implement the {@link Graphic#draw(Canvas)} method to define the graphics element. Show
+   * instances on the overlay using {@link GraphicOverlay#setGraphics(List)}.
    */
   public abstract static class Graphic {
     protected final GraphicOverlay overlay;
@@ -66,23 +98,144 @@ public class GraphicOverlay extends View {
     protected abstract void draw(Canvas canvas);
   }
 
+  /**
+   * A group of graphics of the overlay that is replaced on its own, so that several frame
+   * processors can draw on the same overlay without wiping out each other's graphics. The layers
+   * are drawn in the order they were added, above the graphics of the overlay itself.
+   */
+  public final class Layer {
+
+    @GuardedBy("lock")
+    private final List<Graphic> graphics = new ArrayList<>();
+
+    private Layer() {
+      synchronized (lock) {
+        layers.add(this);
+      }
+    }
+
+    /** Removes the graphics of the layer, and leaves those of the other layers. */
+    public void clear() {
+      synchronized (lock) {
+        graphics.clear();
+      }
+      scheduleFrame();
+    }
+
+    /**
+     * Replaces the graphics of the layer with the given ones in one step, from any thread. The list
+     * is copied, so the caller can reuse it to build the graphics of the next frame.
+     */
+    public void setGraphics(List<? extends Graphic> graphics) {
+      synchronized (lock) {
+        this.graphics.clear();
+        // Copies element by element, as addAll() would copy the list into a new array first.
+        for (int i = 0; i < graphics.size(); i++) {
+          this.graphics.add(graphics.get(i));
+        }
+      }
+      scheduleFrame();
+    }
+
+    /** Removes the layer along with its graphics from the overlay for good. */
+    public void remove() {
+      synchronized (lock) {
+        layers.remove(this);
+      }
+      scheduleFrame();
+    }
+  }
+
   public GraphicOverlay(Context context, AttributeSet attrs) {
     super(context, attrs);
   }
 
-  /** Removes all graphics from the overlay. */
+  /** Adds a layer of graphics on top of the ones the overlay has, see {@link Layer}. */
+  public Layer addLayer() {
+    return new Layer();
+  }
+
+  /** Removes all graphics from the overlay, those of every layer. */
   public void clear() {
     synchronized (lock) {
-      graphics.clear();
+      for (int i = 0; i < layers.size(); i++) {
+        layers.get(i).graphics.clear();
+      }
     }
-    postInvalidate();
+    scheduleFrame();
   }
 
-  /** Adds a graphic to the overlay. */
+  /**
+   * Adds a graphic to the overlay. Every call can be published on its own, so to replace the
+   * graphics use {@link #setGraphics(List)} instead, which no vsync can catch halfway through.
+   */
   public void add(Graphic graphic) {
     synchronized (lock) {
-      graphics.add(graphic);
+      baseLayer.graphics.add(graphic);
+    }
+    scheduleFrame();
+  }
+
+  /**
+   * Replaces the graphics of the overlay with the given ones in one step, from any thread, and
+   * leaves those of the layers added to it. The list is copied, so the caller can reuse it to build
+   * the graphics of the next frame.
+   */
+  public void setGraphics(List<? extends Graphic> graphics) {
+    baseLayer.setGraphics(graphics);
+  }
+
+  /** Returns the graphics drawn since the last vsync, for the tests to check what got published. */
+  @VisibleForTesting
+  public List<Graphic> getPublishedGraphics() {
+    return Collections.unmodifiableList(Arrays.asList(graphics));
+  }
+
+  private void scheduleFrame() {
+    if (frameScheduled.compareAndSet(false, true)) {
+      choreographer.postFrameCallback(frameCallback);
+    }
+  }
+
+  /** Makes the pending graphics the ones drawn, and redraws the overlay. */
+  private void publishGraphics() {
+    frameScheduled.set(false);
+    synchronized (lock) {
+      pendingGraphics.clear();
+      for (int i = 0; i < layers.size(); i++) {
+        List<Graphic> layerGraphics = layers.get(i).graphics;
+        for (int j = 0; j < layerGraphics.size(); j++) {
+          pendingGraphics.add(layerGraphics.get(j));
+        }
+      }
+      // The graphics are mostly kept and updated in place, so the published list is only replaced
+      // if a different set of graphics is to be shown.
+      if (!isPublished()) {
+        graphics = pendingGraphics.toArray(new Graphic[pendingGraphics.size()]);
+      }
+    }
+    invalidate();
+  }
+
+  @GuardedBy("lock")
+  private boolean isPublished() {
+    Graphic[] publishedGraphics = graphics;
+    if (publishedGraphics.length != pendingGraphics.size()) {
+      return false;
     }
+    for (int i = 0; i < publishedGraphics.length; i++) {
+      if (publishedGraphics[i] != pendingGraphics.get(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  protected void onDetachedFromWindow() {
+    super.onDetachedFromWindow();
+    choreographer.removeFrameCallback(frameCallback);
+    frameScheduled.set(false);
   }
 
   /**
@@ -99,6 +252,21 @@ public class GraphicOverlay extends View {
       previewWidth = previewSize.getWidth();
       previewHeight = previewSize.getHeight();
     }
+    layoutVersion++;
+  }
+
+  @Override
+  protected void onSizeChanged(int width, int height, int oldWidth, int oldHeight) {
+    super.onSizeChanged(width, height, oldWidth, oldHeight);
+    layoutVersion++;
+  }
+
+  /**
+   * Returns a number that changes whenever the overlay is laid out to another size or gets another
+   * preview size, so the regions computed from them can be kept until it does.
+   */
+  public int getLayoutVersion() {
+    return layoutVersion;
   }
 
   public float translateX(float x) {
@@ -114,11 +282,38 @@ public class GraphicOverlay extends View {
    * coordinate system.
    */
   public RectF translateRect(Rect rect) {
-    return new RectF(
-        translateX(rect.left),
-        translateY(rect.top),
-        translateX(rect.right),
-        translateY(rect.bottom));
+    return translateRect(rect, new RectF());
+  }
+
+  /**
+   * Same as {@link #translateRect(Rect)} but writes into {@code out}, so graphics redrawn every
+   * frame can reuse a rect of their own. Returns {@code out}.
+   */
+  public RectF translateRect(Rect rect, RectF out) {
+    return translateRect(rect.left, rect.top, rect.right, rect.bottom, out);
+  }
+
+  /** Same as {@link #translateRect(Rect, RectF)} for a rect given by its edges. */
+  public RectF translateRect(float left, float top, float right, float bottom, RectF out) {
+    out.set(translateX(left), translateY(top), translateX(right), translateY(bottom));
+    return out;
+  }
+
+  /**
+   * Adjusts the {@code rect}'s coordinate from the view coordinate system back to the preview's
+   * coordinate system, rounded outwards, or returns null if the preview size isn't known yet.
+   */
+  @Nullable
+  public Rect translateRectToPreview(RectF rect) {
+    if (previewWidth <= 0 || previewHeight <= 0 || getWidth() <= 0 || getHeight() <= 0) {
+      return null;
+    }
+    float xScale = (float) previewWidth / getWidth();
+    float yScale = (float) previewHeight / getHeight();
+    Rect previewRect = new Rect();
+    new RectF(rect.left * xScale, rect.top * yScale, rect.right * xScale, rect.bottom * yScale)
+        .roundOut(previewRect);
+    return previewRect;
   }
 
   /** Draws the overlay with its associated graphic objects. */
@@ -131,10 +326,14 @@ public class GraphicOverlay extends View {
       heightScaleFactor = (float) getHeight() / previewHeight;
     }
 
-    synchronized (lock) {
-      for (Graphic graphic : graphics) {
-        graphic.draw(canvas);
-      }
+    PipelineMetrics.beginTrace(PipelineMetrics.Stage.OVERLAY_DRAW);
+    long startNs = System.nanoTime();
+    Graphic[] graphics = this.graphics;
+    for (Graphic graphic : graphics) {
+      graphic.draw(canvas);
     }
+    PipelineMetrics.getInstance()
+        .recordDuration(PipelineMetrics.Stage.OVERLAY_DRAW, System.nanoTime() - startNs);
+    PipelineMetrics.endTrace();
   }
 }
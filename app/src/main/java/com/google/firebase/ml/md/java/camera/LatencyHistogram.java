@@ -0,0 +1,88 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.ml.md.java.camera;
+
+import java.util.Arrays;
+
+/**
+ * Histogram of the most recent latency samples, bucketed in fixed-width buckets so that recording
+ * a sample and reading a percentile never allocate.
+ *
+ * <p>Not thread safe, the owner is expected to guard it with its own lock.
+ */
+class LatencyHistogram {
+
+  private static final int BUCKET_WIDTH_MS = 5;
+
+  /** Covers latencies up to a second, the last bucket also counts everything slower. */
+  private static final int BUCKET_COUNT = 200;
+
+  private final int[] bucketCounts = new int[BUCKET_COUNT];
+
+  /** Ring of the bucket indices of the samples in the window, oldest one first. */
+  private final int[] windowBuckets;
+
+  private int nextWindowIndex;
+  private int sampleCount;
+
+  /** @param windowSize the number of most recent samples the histogram keeps track of. */
+  LatencyHistogram(int windowSize) {
+    windowBuckets = new int[windowSize];
+  }
+
+  void record(long latencyMs) {
+    int bucket = (int) Math.min(Math.max(latencyMs, 0) / BUCKET_WIDTH_MS, BUCKET_COUNT - 1);
+    if (sampleCount == windowBuckets.length) {
+      // Evicts the oldest sample from the window.
+      bucketCounts[windowBuckets[nextWindowIndex]]--;
+    } else {
+      sampleCount++;
+    }
+    windowBuckets[nextWindowIndex] = bucket;
+    bucketCounts[bucket]++;
+    nextWindowIndex = (nextWindowIndex + 1) % windowBuckets.length;
+  }
+
+  /** Drops all the samples. */
+  void reset() {
+    Arrays.fill(bucketCounts, 0);
+    nextWindowIndex = 0;
+    sampleCount = 0;
+  }
+
+  int getSampleCount() {
+    return sampleCount;
+  }
+
+  /**
+   * Returns the latency that the given fraction of the samples in the window stay within, rounded
+   * up to the bucket width, or 0 if there's no sample.
+   */
+  long getPercentileMs(float fraction) {
+    if (sampleCount == 0) {
+      return 0;
+    }
+    int rank = Math.max(1, (int) Math.ceil(fraction * sampleCount));
+    int cumulativeCount = 0;
+    for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+      cumulativeCount += bucketCounts[bucket];
+      if (cumulativeCount >= rank) {
+        return (long) (bucket + 1) * BUCKET_WIDTH_MS;
+      }
+    }
+    return (long) BUCKET_COUNT * BUCKET_WIDTH_MS;
+  }
+}
@@ -0,0 +1,421 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.java.camera;
+
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.hardware.Camera;
+import android.hardware.Camera.Parameters;
+import android.util.Log;
+import android.view.SurfaceHolder;
+import androidx.annotation.Nullable;
+import com.google.android.gms.common.images.Size;
+import com.google.firebase.ml.md.java.camera.FrameBufferPool.FrameBuffer;
+import com.google.firebase.ml.md.java.settings.PreferenceUtils;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Streams the preview frames of the back camera through the {@link Camera} API, which the camera
+ * writes straight into the buffers of a {@link FrameBufferPool}.
+ */
+class LegacyCameraBackend implements CameraBackend {
+
+  private static final String TAG = "LegacyCameraBackend";
+
+  private static final int IMAGE_FORMAT = ImageFormat.NV21;
+
+  /** Camera areas span from -1000 to 1000 across the field of view on either axis. */
+  private static final int AREA_BOUND = 1000;
+
+  private static final int AREA_WEIGHT = 1000;
+
+  private final Context context;
+  private final GraphicOverlay graphicOverlay;
+
+  @Nullable private Camera camera;
+  @Nullable private FrameListener listener;
+  @Nullable private Size previewSize;
+  private FrameMetadata frameMetadata;
+  private CameraCapabilities capabilities;
+  @Nullable private CameraSizePair requestedSizePair;
+  private float maxZoomRatio = 1f;
+
+  /**
+   * Pool of the preview buffers handed to the camera, each one wrapped in a byte buffer. We use
+   * byte buffers internally because this is a more efficient way to call into native code later
+   * (avoids a potential copy).
+   */
+  private final FrameBufferPool frameBufferPool =
+      new FrameBufferPool(
+          CameraSource.DEFAULT_MIN_FRAME_BUFFER_DEPTH, CameraSource.DEFAULT_MAX_FRAME_BUFFER_DEPTH);
+
+  LegacyCameraBackend(GraphicOverlay graphicOverlay) {
+    this.context = graphicOverlay.getContext();
+    this.graphicOverlay = graphicOverlay;
+  }
+
+  @Override
+  public synchronized void start(SurfaceHolder surfaceHolder, FrameListener listener)
+      throws IOException {
+    if (camera != null) {
+      return;
+    }
+
+    this.listener = listener;
+    camera = createCamera();
+    try {
+      camera.setPreviewDisplay(surfaceHolder);
+      camera.startPreview();
+    } catch (IOException | RuntimeException e) {
+      stop();
+      throw e;
+    }
+  }
+
+  @Override
+  public synchronized void stop() {
+    if (camera != null) {
+      camera.stopPreview();
+      camera.setPreviewCallbackWithBuffer(null);
+      try {
+        camera.setPreviewDisplay(/* holder= */ null);
+      } catch (Exception e) {
+        Log.e(TAG, "Failed to clear camera preview: " + e);
+      }
+      camera.release();
+      camera = null;
+    }
+    listener = null;
+    maxZoomRatio = 1f;
+
+    // Release the reference to any image buffers, since these will no longer be in use.
+    Log.d(TAG, "Frame buffer pool stats: " + frameBufferPool.getStats());
+    frameBufferPool.clear();
+  }
+
+  @Nullable
+  @Override
+  public synchronized Size getPreviewSize() {
+    return previewSize;
+  }
+
+  /**
+   * Switches the running preview to the frames per second range closest to the given rate, the
+   * frame scheduler makes up for the difference between the two.
+   */
+  @Override
+  public synchronized void requestFrameRate(float frameRate) {
+    if (camera == null || listener == null) {
+      return;
+    }
+    int[] previewFpsRange = selectPreviewFpsRange(capabilities, frameRate);
+    if (previewFpsRange == null) {
+      return;
+    }
+    Camera.Parameters parameters = camera.getParameters();
+    int[] currentPreviewFpsRange = new int[2];
+    parameters.getPreviewFpsRange(currentPreviewFpsRange);
+    if (Arrays.equals(previewFpsRange, currentPreviewFpsRange)) {
+      return;
+    }
+
+    parameters.setPreviewFpsRange(
+        previewFpsRange[Camera.Parameters.PREVIEW_FPS_MIN_INDEX],
+        previewFpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]);
+    try {
+      camera.setParameters(parameters);
+    } catch (RuntimeException e) {
+      Log.w(TAG, "Failed to update the preview fps range to " + frameRate, e);
+      return;
+    }
+    float previewFps = previewFpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX] / 1000f;
+    Log.d(TAG, "Updated the preview fps range to " + Arrays.toString(previewFpsRange));
+    frameBufferPool.setFrameRate(previewFps);
+    listener.onFrameRateChanged(previewFps);
+  }
+
+  @Override
+  public synchronized void setTorchEnabled(boolean enabled) {
+    if (camera == null) {
+      return;
+    }
+    Camera.Parameters parameters = camera.getParameters();
+    parameters.setFlashMode(
+        enabled ? Camera.Parameters.FLASH_MODE_TORCH : Camera.Parameters.FLASH_MODE_OFF);
+    camera.setParameters(parameters);
+  }
+
+  @Override
+  public void setFrameBufferDepth(int minDepth, int maxDepth) {
+    frameBufferPool.setDepthRange(minDepth, maxDepth);
+  }
+
+  @Override
+  public synchronized void setPreviewSizePair(@Nullable CameraSizePair sizePair) {
+    requestedSizePair = sizePair;
+  }
+
+  @Override
+  public synchronized void setFocusRegion(@Nullable Rect uprightRegion) {
+    if (camera == null) {
+      return;
+    }
+    Camera.Parameters parameters = camera.getParameters();
+    boolean focusAreasSupported = parameters.getMaxNumFocusAreas() > 0;
+    boolean meteringAreasSupported = parameters.getMaxNumMeteringAreas() > 0;
+    if (!focusAreasSupported && !meteringAreasSupported) {
+      return;
+    }
+
+    List<Camera.Area> areas = null;
+    CropRegion frameRegion =
+        uprightRegion != null ? CropRegion.fromUprightRegion(uprightRegion, frameMetadata) : null;
+    if (frameRegion != null) {
+      areas = Collections.singletonList(new Camera.Area(toAreaRect(frameRegion), AREA_WEIGHT));
+    }
+    if (focusAreasSupported) {
+      parameters.setFocusAreas(areas);
+    }
+    if (meteringAreasSupported) {
+      parameters.setMeteringAreas(areas);
+    }
+    try {
+      camera.setParameters(parameters);
+    } catch (RuntimeException e) {
+      Log.w(TAG, "Failed to update the focus region to " + uprightRegion, e);
+    }
+  }
+
+  /** Maps a region of the frame to the coordinates of the camera areas. */
+  private Rect toAreaRect(CropRegion frameRegion) {
+    Rect areaRect =
+        new Rect(
+            frameRegion.left * 2 * AREA_BOUND / frameMetadata.width - AREA_BOUND,
+            frameRegion.top * 2 * AREA_BOUND / frameMetadata.height - AREA_BOUND,
+            (frameRegion.left + frameRegion.width) * 2 * AREA_BOUND / frameMetadata.width
+                - AREA_BOUND,
+            (frameRegion.top + frameRegion.height) * 2 * AREA_BOUND / frameMetadata.height
+                - AREA_BOUND);
+    areaRect.intersect(-AREA_BOUND, -AREA_BOUND, AREA_BOUND, AREA_BOUND);
+    return areaRect;
+  }
+
+  /** The zoom ratios of the camera are in hundredths, from no zoom up to the largest one. */
+  @Override
+  public synchronized float setZoomRatio(float zoomRatio) {
+    if (camera == null) {
+      return 1f;
+    }
+    Camera.Parameters parameters = camera.getParameters();
+    if (!parameters.isZoomSupported()) {
+      return 1f;
+    }
+    List<Integer> zoomRatios = parameters.getZoomRatios();
+    int requestedZoomRatio = Math.round(zoomRatio * 100);
+    int zoom = 0;
+    while (zoom < zoomRatios.size() - 1 && zoomRatios.get(zoom + 1) <= requestedZoomRatio) {
+      zoom++;
+    }
+    if (zoom != parameters.getZoom()) {
+      parameters.setZoom(zoom);
+      try {
+        camera.setParameters(parameters);
+      } catch (RuntimeException e) {
+        Log.w(TAG, "Failed to update the zoom ratio to " + zoomRatio, e);
+        return zoomRatios.get(camera.getParameters().getZoom()) / 100f;
+      }
+    }
+    return zoomRatios.get(zoom) / 100f;
+  }
+
+  @Override
+  public synchronized float getMaxZoomRatio() {
+    return maxZoomRatio;
+  }
+
+  /**
+   * Opens the camera and applies the user settings.
+   *
+   * @throws IOException if camera cannot be found or preview cannot be processed.
+   */
+  private Camera createCamera() throws IOException {
+    Camera camera = CameraCapabilityStore.openBackCamera();
+    try {
+      configureCamera(camera);
+    } catch (IOException | RuntimeException e) {
+      camera.release();
+      throw e;
+    }
+    return camera;
+  }
+
+  private void configureCamera(Camera camera) throws IOException {
+    Camera.Parameters parameters = camera.getParameters();
+    // Served from the store after the first start, which saves scanning the sizes on every start.
+    capabilities = CameraCapabilityStore.getOrCreate(context, parameters);
+    setPreviewAndPictureSize(parameters);
+    int rotation = setRotation(camera, parameters);
+    frameMetadata = new FrameMetadata(previewSize.getWidth(), previewSize.getHeight(), rotation);
+
+    int[] previewFpsRange = selectPreviewFpsRange(capabilities, CameraSource.REQUESTED_CAMERA_FPS);
+    if (previewFpsRange == null) {
+      throw new IOException("Could not find suitable preview frames per second range.");
+    }
+    parameters.setPreviewFpsRange(
+        previewFpsRange[Camera.Parameters.PREVIEW_FPS_MIN_INDEX],
+        previewFpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]);
+
+    parameters.setPreviewFormat(IMAGE_FORMAT);
+
+    maxZoomRatio =
+        parameters.isZoomSupported()
+            ? parameters.getZoomRatios().get(parameters.getMaxZoom()) / 100f
+            : 1f;
+
+    if (capabilities.focusModes.contains(Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO)) {
+      parameters.setFocusMode(Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO);
+    } else {
+      Log.i(TAG, "Camera auto focus is not supported on this device.");
+    }
+
+    camera.setParameters(parameters);
+
+    camera.setPreviewCallbackWithBuffer(this::onPreviewFrame);
+
+    // At least four frame buffers are needed for working with the camera:
+    //
+    //   one for the frame that is currently being executed upon in doing detection
+    //   one for the next pending frame to process immediately upon completing detection
+    //   two for the frames that the camera uses to populate future preview images
+    //
+    // The pool grows beyond that when frames are held for longer than the camera takes to fill
+    // its two free buffers, see FrameBufferPool.
+    float previewFps = previewFpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX] / 1000f;
+    frameBufferPool.attach(camera, previewSize, previewFps);
+    listener.onFrameRateChanged(previewFps);
+  }
+
+  private void setPreviewAndPictureSize(Parameters parameters) throws IOException {
+    // Gives priority to the preview size specified by the user if exists, then the requested one.
+    CameraSizePair sizePair = PreferenceUtils.getUserSpecifiedPreviewSize(context);
+    if (sizePair == null) {
+      sizePair = CameraSource.findSizePair(capabilities.previewSizePairs, requestedSizePair);
+    }
+    if (sizePair == null) {
+      sizePair =
+          CameraSource.selectSizePair(
+              capabilities.previewSizePairs,
+              CameraSource.getDisplayAspectRatioInLandscape(graphicOverlay));
+    }
+    if (sizePair == null) {
+      throw new IOException("Could not find suitable preview size.");
+    }
+
+    previewSize = sizePair.preview;
+    Log.v(TAG, "Camera preview size: " + previewSize);
+    parameters.setPreviewSize(previewSize.getWidth(), previewSize.getHeight());
+
+    Size pictureSize = sizePair.picture;
+    if (pictureSize != null) {
+      Log.v(TAG, "Camera picture size: " + pictureSize);
+      parameters.setPictureSize(pictureSize.getWidth(), pictureSize.getHeight());
+    }
+  }
+
+  /**
+   * Calculates the correct rotation for the back camera and sets the rotation in the parameters. It
+   * also sets the camera's display orientation and rotation.
+   *
+   * @param parameters the camera parameters for which to set the rotation.
+   * @return the rotation of the frames, one of the rotation constants in {@link
+   *     com.google.firebase.ml.vision.common.FirebaseVisionImageMetadata}.
+   */
+  private int setRotation(Camera camera, Camera.Parameters parameters) {
+    int angle = CameraSource.getFrameRotationDegrees(context, capabilities.sensorOrientation);
+    camera.setDisplayOrientation(angle);
+    parameters.setRotation(angle);
+    // This corresponds to the rotation constants in FirebaseVisionImageMetadata.
+    return angle / 90;
+  }
+
+  /**
+   * Selects the most suitable preview frames per second range.
+   *
+   * @param capabilities the capabilities of the camera to select a frames per second range from
+   * @param desiredPreviewFps the desired frames per second for the camera preview frames
+   * @return the selected preview frames per second range
+   */
+  @Nullable
+  private static int[] selectPreviewFpsRange(
+      CameraCapabilities capabilities, float desiredPreviewFps) {
+    // The camera API uses integers scaled by a factor of 1000 instead of floating-point frame
+    // rates.
+    int desiredPreviewFpsScaled = (int) (desiredPreviewFps * 1000f);
+
+    // The method for selecting the best range is to minimize the sum of the differences between
+    // the desired value and the upper and lower bounds of the range.  This may select a range
+    // that the desired value is outside of, but this is often preferred.  For example, if the
+    // desired frame rate is 29.97, the range (30, 30) is probably more desirable than the
+    // range (15, 30).
+    int[] selectedFpsRange = null;
+    int minDiff = Integer.MAX_VALUE;
+    for (int[] range : capabilities.previewFpsRanges) {
+      int deltaMin = desiredPreviewFpsScaled - range[Camera.Parameters.PREVIEW_FPS_MIN_INDEX];
+      int deltaMax = desiredPreviewFpsScaled - range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX];
+      int diff = Math.abs(deltaMin) + Math.abs(deltaMax);
+      if (diff < minDiff) {
+        selectedFpsRange = range;
+        minDiff = diff;
+      }
+    }
+    return selectedFpsRange;
+  }
+
+  /** Hands the frame the camera just filled to the listener, or straight back to the camera. */
+  private void onPreviewFrame(byte[] data, Camera camera) {
+    FrameListener listener;
+    synchronized (this) {
+      listener = this.listener;
+    }
+    if (listener == null) {
+      return;
+    }
+    if (!listener.admitFrame()) {
+      // Skips the frame before any work is spent on it, the processor couldn't keep up anyway.
+      frameBufferPool.skip(data);
+      return;
+    }
+
+    FrameBuffer frameBuffer = frameBufferPool.lease(data);
+    if (frameBuffer == null) {
+      Log.d(
+          TAG,
+          "Skipping frame. Could not find ByteBuffer associated with the image "
+              + "data from the camera.");
+      return;
+    }
+    // The buffer goes back to the camera once the last reference to the frame is released, which
+    // may be long after the listener returns if the processor retains the frame for detection.
+    listener.onFrame(
+        new SharedFrame(
+            frameBuffer.byteBuffer, frameMetadata, () -> frameBufferPool.release(frameBuffer)));
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.java.camera;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.AttributeSet;
+import android.view.View;
+import androidx.annotation.Nullable;
+import androidx.appcompat.widget.AppCompatTextView;
+import com.google.android.gms.common.images.Size;
+import com.google.firebase.ml.md.java.settings.PreferenceUtils;
+import java.util.Locale;
+
+/**
+ * Debug overlay that shows the health of the camera pipeline over the live camera view, so it can
+ * be checked without a computer attached: the frame rates of the camera and the detector, the
+ * detection latency, the share of the frames dropped, the frames in flight, the heap in use and the
+ * preview size.
+ *
+ * <p>The numbers are read from {@link PipelineMetrics} once a second, over the second before. The
+ * overlay is only shown when it's enabled in the settings, and does nothing at all otherwise.
+ */
+public class PerformanceHudView extends AppCompatTextView {
+
+  private static final long UPDATE_INTERVAL_MS = 1000;
+
+  private static final long BYTES_PER_MB = 1024 * 1024;
+
+  private final PipelineMetrics metrics = PipelineMetrics.getInstance();
+  private final Runnable updater = this::update;
+
+  @Nullable private CameraSource cameraSource;
+  @Nullable private PipelineMetrics.Snapshot lastSnapshot;
+  private long lastSnapshotTimeMs;
+
+  public PerformanceHudView(Context context, AttributeSet attrs) {
+    super(context, attrs);
+  }
+
+  /** Starts showing the pipeline of the given camera source, if the overlay is enabled. */
+  public void start(CameraSource cameraSource) {
+    stop();
+    if (!PreferenceUtils.isPerformanceHudEnabled(getContext())) {
+      setVisibility(View.GONE);
+      return;
+    }
+    this.cameraSource = cameraSource;
+    lastSnapshot = metrics.snapshot();
+    lastSnapshotTimeMs = SystemClock.elapsedRealtime();
+    setText(null);
+    setVisibility(View.VISIBLE);
+    postDelayed(updater, UPDATE_INTERVAL_MS);
+  }
+
+  /** Stops updating the overlay, until it is started again. */
+  public void stop() {
+    removeCallbacks(updater);
+    cameraSource = null;
+    lastSnapshot = null;
+  }
+
+  @Override
+  protected void onDetachedFromWindow() {
+    super.onDetachedFromWindow();
+    stop();
+  }
+
+  private void update() {
+    CameraSource cameraSource = this.cameraSource;
+    PipelineMetrics.Snapshot lastSnapshot = this.lastSnapshot;
+    if (cameraSource == null || lastSnapshot == null) {
+      return;
+    }
+    PipelineMetrics.Snapshot snapshot = metrics.snapshot();
+    long nowMs = SystemClock.elapsedRealtime();
+    float seconds = Math.max(nowMs - lastSnapshotTimeMs, 1) / 1000f;
+
+    long receivedFrameCount =
+        snapshot.getHistogram(PipelineMetrics.Stage.CAMERA_TO_PENDING).getCount()
+            - lastSnapshot.getHistogram(PipelineMetrics.Stage.CAMERA_TO_PENDING).getCount();
+    long lostFrameCount = getLostFrameCount(snapshot) - getLostFrameCount(lastSnapshot);
+    AtomicHistogram.Snapshot detections =
+        snapshot
+            .getHistogram(PipelineMetrics.Stage.DETECTION)
+            .since(lastSnapshot.getHistogram(PipelineMetrics.Stage.DETECTION));
+    Runtime runtime = Runtime.getRuntime();
+    long usedHeapMb = (runtime.totalMemory() - runtime.freeMemory()) / BYTES_PER_MB;
+    Size previewSize = cameraSource.getPreviewSize();
+
+    setText(
+        String.format(
+            Locale.US,
+            "camera %.1f fps, detector %.1f fps\n"
+                + "latency p50 %.0f, p95 %.0f, p99 %.0f ms\n"
+                + "dropped %.0f%%, in flight %d\n"
+                + "heap %d/%d MB, preview %s",
+            receivedFrameCount / seconds,
+            detections.getCount() / seconds,
+            detections.getPercentileMs(0.5f),
+            detections.getPercentileMs(0.95f),
+            detections.getPercentileMs(0.99f),
+            receivedFrameCount > 0 ? 100f * lostFrameCount / receivedFrameCount : 0,
+            snapshot.getLevel(PipelineMetrics.Gauge.FRAMES_IN_FLIGHT),
+            usedHeapMb,
+            runtime.maxMemory() / BYTES_PER_MB,
+            previewSize != null ? previewSize : "-"));
+
+    this.lastSnapshot = snapshot;
+    lastSnapshotTimeMs = nowMs;
+    postDelayed(updater, UPDATE_INTERVAL_MS);
+  }
+
+  private static long getLostFrameCount(PipelineMetrics.Snapshot snapshot) {
+    return snapshot.getCount(PipelineMetrics.Counter.FRAME_DROPPED)
+        + snapshot.getCount(PipelineMetrics.Counter.FRAME_OVERWRITTEN);
+  }
+}
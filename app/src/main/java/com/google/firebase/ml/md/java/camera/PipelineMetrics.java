@@ -0,0 +1,193 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.java.camera;
+
+import android.os.Trace;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Registry of the metrics of the camera pipeline: a histogram of the time each frame spends in
+ * every stage it goes through, counters of the frames lost along the way, and gauges of the frames
+ * in the pipeline.
+ *
+ * <p>Recording is lock-free and doesn't allocate, so the metrics are always on. A {@link
+ * #snapshot()} copies a few hundred numbers, cheap enough to poll every second. The stages that run
+ * on a single thread are also traced as {@link Trace} sections, to line them up with the rest of
+ * the system in a system trace.
+ */
+public final class PipelineMetrics {
+
+  /** The stages of the pipeline that a frame spends time in, in the order it goes through them. */
+  public enum Stage {
+    /** From the camera delivering a frame to the frame waiting for the processing loop. */
+    CAMERA_TO_PENDING,
+    /** The frame waiting for the processing loop to pick it up. */
+    QUEUE_WAIT,
+    /** Building the {@code FirebaseVisionImage} the detector takes. */
+    IMAGE_BUILD,
+    /** The detector working on the image, up to its results coming back. */
+    DETECTION,
+    /** Post-processing the results on the post-processing executor. */
+    POST_PROCESSING,
+    /** Publishing the post-processed results on the main thread. */
+    PUBLISH,
+    /** Drawing the graphics of the overlay. */
+    OVERLAY_DRAW,
+    /**
+     * From the processor getting a frame up to the results of the frame being published, across
+     * the stages in between rather than one of its own.
+     */
+    FRAME_TO_RESULT,
+    /**
+     * The first detection of a detector of the {@link DetectorPool}, on a blank frame rather than a
+     * camera one, which loads the model of the detector.
+     */
+    DETECTOR_WARM_UP;
+
+    /** Allocated once, so that tracing a section doesn't allocate. */
+    private final String traceSectionName = "Pipeline." + name();
+  }
+
+  /** The places a frame can be lost at before it's detected. */
+  public enum Counter {
+    /** The camera delivered a frame before the processing loop picked up the previous one. */
+    FRAME_DROPPED,
+    /** The processor got a frame before the detection of the previous one started. */
+    FRAME_OVERWRITTEN
+  }
+
+  /** The levels of the pipeline, which go up and down rather than only up. */
+  public enum Gauge {
+    /** Frames the detectors are working on. */
+    FRAMES_IN_FLIGHT
+  }
+
+  private static final PipelineMetrics INSTANCE = new PipelineMetrics();
+
+  private final AtomicHistogram[] histograms = new AtomicHistogram[Stage.values().length];
+  private final AtomicLongArray counters = new AtomicLongArray(Counter.values().length);
+  private final AtomicLongArray gauges = new AtomicLongArray(Gauge.values().length);
+
+  private PipelineMetrics() {
+    for (int i = 0; i < histograms.length; i++) {
+      histograms[i] = new AtomicHistogram();
+    }
+  }
+
+  public static PipelineMetrics getInstance() {
+    return INSTANCE;
+  }
+
+  /** Records the time a frame spent in the given stage. */
+  void recordDuration(Stage stage, long durationNs) {
+    histograms[stage.ordinal()].record(durationNs);
+  }
+
+  void increment(Counter counter) {
+    counters.incrementAndGet(counter.ordinal());
+  }
+
+  void adjust(Gauge gauge, long delta) {
+    gauges.addAndGet(gauge.ordinal(), delta);
+  }
+
+  /**
+   * Starts the trace section of the given stage on the calling thread, which has to end it with
+   * {@link #endTrace()} before starting another one or returning to its looper.
+   */
+  static void beginTrace(Stage stage) {
+    Trace.beginSection(stage.traceSectionName);
+  }
+
+  static void endTrace() {
+    Trace.endSection();
+  }
+
+  /** Returns a copy of all the metrics recorded since the app started. */
+  public Snapshot snapshot() {
+    AtomicHistogram.Snapshot[] histogramSnapshots =
+        new AtomicHistogram.Snapshot[histograms.length];
+    for (int i = 0; i < histograms.length; i++) {
+      histogramSnapshots[i] = histograms[i].snapshot();
+    }
+    long[] counts = new long[counters.length()];
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = counters.get(i);
+    }
+    long[] levels = new long[gauges.length()];
+    for (int i = 0; i < levels.length; i++) {
+      levels[i] = gauges.get(i);
+    }
+    return new Snapshot(histogramSnapshots, counts, levels);
+  }
+
+  /** A point in time copy of the pipeline metrics. */
+  public static final class Snapshot {
+    private final AtomicHistogram.Snapshot[] histograms;
+    private final long[] counts;
+    private final long[] levels;
+
+    private Snapshot(AtomicHistogram.Snapshot[] histograms, long[] counts, long[] levels) {
+      this.histograms = histograms;
+      this.counts = counts;
+      this.levels = levels;
+    }
+
+    public AtomicHistogram.Snapshot getHistogram(Stage stage) {
+      return histograms[stage.ordinal()];
+    }
+
+    public long getCount(Counter counter) {
+      return counts[counter.ordinal()];
+    }
+
+    public long getLevel(Gauge gauge) {
+      return levels[gauge.ordinal()];
+    }
+
+    /**
+     * Returns the durations and counts recorded since the given earlier snapshot, along with the
+     * current levels.
+     */
+    public Snapshot since(Snapshot earlier) {
+      AtomicHistogram.Snapshot[] histogramsSince = new AtomicHistogram.Snapshot[histograms.length];
+      for (int i = 0; i < histograms.length; i++) {
+        histogramsSince[i] = histograms[i].since(earlier.histograms[i]);
+      }
+      long[] countsSince = new long[counts.length];
+      for (int i = 0; i < counts.length; i++) {
+        countsSince[i] = counts[i] - earlier.counts[i];
+      }
+      return new Snapshot(histogramsSince, countsSince, levels);
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder builder = new StringBuilder();
+      for (Stage stage : Stage.values()) {
+        builder.append(stage).append(": ").append(getHistogram(stage)).append('\n');
+      }
+      for (Counter counter : Counter.values()) {
+        builder.append(counter).append(": ").append(getCount(counter)).append('\n');
+      }
+      for (Gauge gauge : Gauge.values()) {
+        builder.append(gauge).append(": ").append(getLevel(gauge)).append('\n');
+      }
+      return builder.toString();
+    }
+  }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.java.camera;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import com.google.android.gms.common.images.Size;
+import com.google.firebase.ml.md.java.Utils;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Picks the preview size from the measured throughput of the detector rather than from the display
+ * alone. Calibration restarts the camera several times, so it only runs once switched on in the
+ * settings: the next time a frame processor runs on a camera backend it wasn't calibrated on,
+ * {@link CameraSource} runs the camera at each candidate size for a few seconds, counts the
+ * detections the processor completes, and keeps the best size for that processor and backend.
+ *
+ * <p>The best size is the largest one the detector keeps up with at {@link #MIN_FRAMES_PER_SECOND}
+ * within a 95th percentile latency of {@link #MAX_P95_LATENCY_MS}, or the fastest one if none does.
+ * Like the camera capabilities, the results are measured again once the device or OS build changes.
+ */
+final class PreviewCalibration {
+
+  private static final String TAG = "PreviewCalibration";
+
+  private static final String PREFERENCES_NAME = "preview_calibration";
+  private static final String KEY_BUILD_FINGERPRINT = "build_fingerprint";
+
+  /** Preview sizes outside of these widths aren't worth the time to calibrate. */
+  private static final int MIN_CANDIDATE_WIDTH = 320;
+
+  private static final int MAX_CANDIDATE_WIDTH = 1920;
+
+  /** Each candidate takes a few seconds and a camera restart, so only a handful are tried. */
+  private static final int MAX_CANDIDATE_COUNT = 4;
+
+  private static final float MIN_FRAMES_PER_SECOND = 10f;
+
+  private static final long MAX_P95_LATENCY_MS = 200;
+
+  /** The measured performance of the detector at one preview size. */
+  static class Result {
+    final CameraSizePair sizePair;
+    /** Detections completed per second at the size, at most the camera frame rate. */
+    final float framesPerSecond;
+
+    final long p95LatencyMs;
+
+    Result(CameraSizePair sizePair, float framesPerSecond, long p95LatencyMs) {
+      this.sizePair = sizePair;
+      this.framesPerSecond = framesPerSecond;
+      this.p95LatencyMs = p95LatencyMs;
+    }
+
+    /** Returns the interval between frames the detector keeps up with, or 0 if it is unknown. */
+    long getFrameIntervalMs() {
+      return framesPerSecond > 0 ? Math.round(1000 / framesPerSecond) : 0;
+    }
+
+    private boolean meetsTarget() {
+      return framesPerSecond >= MIN_FRAMES_PER_SECOND && p95LatencyMs <= MAX_P95_LATENCY_MS;
+    }
+
+    private JSONObject toJson() throws JSONException {
+      JSONObject json =
+          new JSONObject()
+              .put("preview", sizePair.preview.toString())
+              .put("framesPerSecond", framesPerSecond)
+              .put("p95LatencyMs", p95LatencyMs);
+      if (sizePair.picture != null) {
+        json.put("picture", sizePair.picture.toString());
+      }
+      return json;
+    }
+
+    private static Result fromJson(JSONObject json) throws JSONException {
+      CameraSizePair sizePair =
+          new CameraSizePair(
+              Size.parseSize(json.getString("preview")),
+              json.has("picture") ? Size.parseSize(json.getString("picture")) : null);
+      return new Result(
+          sizePair, (float) json.getDouble("framesPerSecond"), json.getLong("p95LatencyMs"));
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          Locale.US,
+          "preview=%s, fps=%.1f, p95LatencyMs=%d",
+          sizePair.preview,
+          framesPerSecond,
+          p95LatencyMs);
+    }
+  }
+
+  private PreviewCalibration() {}
+
+  /**
+   * Returns the preview sizes worth calibrating, from the smallest one to the largest: the ones
+   * with the aspect ratio of the size that would be picked for the display, spread over the widths.
+   */
+  static List<CameraSizePair> selectCandidates(
+      List<CameraSizePair> sizePairs, float displayAspectRatioInLandscape) {
+    CameraSizePair reference =
+        CameraSource.selectSizePair(sizePairs, displayAspectRatioInLandscape);
+    if (reference == null) {
+      return Collections.emptyList();
+    }
+    float referenceAspectRatio =
+        (float) reference.preview.getWidth() / reference.preview.getHeight();
+
+    List<CameraSizePair> sizePairsInRange = new ArrayList<>();
+    for (CameraSizePair sizePair : sizePairs) {
+      Size previewSize = sizePair.preview;
+      float aspectRatio = (float) previewSize.getWidth() / previewSize.getHeight();
+      if (previewSize.getWidth() >= MIN_CANDIDATE_WIDTH
+          && previewSize.getWidth() <= MAX_CANDIDATE_WIDTH
+          && Math.abs(aspectRatio - referenceAspectRatio) < Utils.ASPECT_RATIO_TOLERANCE) {
+        sizePairsInRange.add(sizePair);
+      }
+    }
+    Collections.sort(
+        sizePairsInRange, (a, b) -> Integer.compare(a.preview.getWidth(), b.preview.getWidth()));
+    if (sizePairsInRange.size() <= MAX_CANDIDATE_COUNT) {
+      return sizePairsInRange;
+    }
+
+    List<CameraSizePair> candidates = new ArrayList<>();
+    int lastIndex = sizePairsInRange.size() - 1;
+    for (int i = 0; i < MAX_CANDIDATE_COUNT; i++) {
+      candidates.add(
+          sizePairsInRange.get(Math.round((float) i * lastIndex / (MAX_CANDIDATE_COUNT - 1))));
+    }
+    return candidates;
+  }
+
+  /**
+   * Returns the best of the measured sizes, or null if the detector didn't complete enough
+   * detections at any of them to tell.
+   */
+  @Nullable
+  static Result selectBest(List<Result> results) {
+    Result best = null;
+    for (Result result : results) {
+      if (best == null || isBetter(result, best)) {
+        best = result;
+      }
+    }
+    return best != null && best.framesPerSecond > 0 ? best : null;
+  }
+
+  private static boolean isBetter(Result result, Result other) {
+    if (result.meetsTarget() != other.meetsTarget()) {
+      return result.meetsTarget();
+    }
+    if (result.meetsTarget()) {
+      return getArea(result.sizePair.preview) > getArea(other.sizePair.preview);
+    }
+    return result.framesPerSecond > other.framesPerSecond;
+  }
+
+  private static int getArea(Size size) {
+    return size.getWidth() * size.getHeight();
+  }
+
+  /** Returns the calibrated size for the given processor and backend, if it has been calibrated. */
+  @Nullable
+  static Result load(Context context, String key) {
+    SharedPreferences preferences = getPreferences(context);
+    String json = preferences.getString(key, null);
+    String buildFingerprint = preferences.getString(KEY_BUILD_FINGERPRINT, null);
+    if (json == null || !Build.FINGERPRINT.equals(buildFingerprint)) {
+      return null;
+    }
+    try {
+      return Result.fromJson(new JSONObject(json));
+    } catch (JSONException | IllegalArgumentException e) {
+      Log.w(TAG, "Discarding unreadable preview calibration.", e);
+      return null;
+    }
+  }
+
+  static void save(Context context, String key, Result result) {
+    SharedPreferences preferences = getPreferences(context);
+    SharedPreferences.Editor editor = preferences.edit();
+    if (!Build.FINGERPRINT.equals(preferences.getString(KEY_BUILD_FINGERPRINT, null))) {
+      // The results of the other processors were measured on another build.
+      editor.clear();
+    }
+    try {
+      editor
+          .putString(KEY_BUILD_FINGERPRINT, Build.FINGERPRINT)
+          .putString(key, result.toJson().toString())
+          .apply();
+    } catch (JSONException e) {
+      Log.w(TAG, "Failed to persist the preview calibration.", e);
+    }
+  }
+
+  private static SharedPreferences getPreferences(Context context) {
+    return context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+  }
+}
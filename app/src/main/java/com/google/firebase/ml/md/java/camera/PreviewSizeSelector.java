@@ -0,0 +1,137 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.java.camera;
+
+import java.util.List;
+
+/**
+ * Selects the preview size of the camera among the sizes it supports. It works on the size type of
+ * whichever camera API lists the sizes through a {@link SizeReader}, so that it doesn't depend on
+ * Android and can be benchmarked on the host.
+ */
+public final class PreviewSizeSelector {
+
+  /**
+   * If the absolute difference between aspect ratios is less than this tolerance, they are
+   * considered to be the same aspect ratio.
+   */
+  public static final float ASPECT_RATIO_TOLERANCE = 0.01f;
+
+  private static final int MIN_CAMERA_PREVIEW_WIDTH = 400;
+  private static final int MAX_CAMERA_PREVIEW_WIDTH = 1300;
+  private static final int DEFAULT_REQUESTED_CAMERA_PREVIEW_WIDTH = 640;
+  private static final int DEFAULT_REQUESTED_CAMERA_PREVIEW_HEIGHT = 360;
+
+  /** Reads the dimensions of the size type of a camera API. */
+  public interface SizeReader<S> {
+    int getWidth(S size);
+
+    int getHeight(S size);
+  }
+
+  private PreviewSizeSelector() {}
+
+  /**
+   * Pairs each preview size with the first picture size of the same aspect ratio, which is the
+   * largest one as the cameras list their sizes from the largest.
+   *
+   * @return for each preview size the index of its picture size, or -1 if there's none.
+   */
+  public static <S> int[] matchPictureSizes(
+      List<S> previewSizes, List<S> pictureSizes, SizeReader<S> reader) {
+    // The aspect ratios of the picture sizes are computed once rather than for every preview size.
+    float[] pictureAspectRatios = new float[pictureSizes.size()];
+    for (int i = 0; i < pictureAspectRatios.length; i++) {
+      S pictureSize = pictureSizes.get(i);
+      pictureAspectRatios[i] = (float) reader.getWidth(pictureSize) / reader.getHeight(pictureSize);
+    }
+
+    int[] pictureSizeIndices = new int[previewSizes.size()];
+    for (int i = 0; i < pictureSizeIndices.length; i++) {
+      S previewSize = previewSizes.get(i);
+      float previewAspectRatio =
+          (float) reader.getWidth(previewSize) / reader.getHeight(previewSize);
+      pictureSizeIndices[i] = -1;
+      for (int j = 0; j < pictureAspectRatios.length; j++) {
+        if (Math.abs(previewAspectRatio - pictureAspectRatios[j]) < ASPECT_RATIO_TOLERANCE) {
+          pictureSizeIndices[i] = j;
+          break;
+        }
+      }
+    }
+    return pictureSizeIndices;
+  }
+
+  /**
+   * Selects the most suitable preview size, given the display aspect ratio in landscape mode.
+   *
+   * <p>It's firstly trying to pick the one that has closest aspect ratio to display view with its
+   * width be in the specified range [{@link #MIN_CAMERA_PREVIEW_WIDTH}, {@link
+   * #MAX_CAMERA_PREVIEW_WIDTH}]. If there're multiple candidates, choose the one having longest
+   * width.
+   *
+   * <p>If the above looking up failed, chooses the one that has the minimum sum of the differences
+   * between the desired values and the actual values for width and height.
+   *
+   * @return the index of the selected preview size, or -1 if there's no preview size.
+   */
+  static <S> int selectPreviewSize(
+      List<S> previewSizes, SizeReader<S> reader, float displayAspectRatioInLandscape) {
+    int selectedIndex = -1;
+    int selectedWidth = 0;
+    // Picks the preview size that has closest aspect ratio to display view.
+    float minAspectRatioDiff = Float.MAX_VALUE;
+    for (int i = 0; i < previewSizes.size(); i++) {
+      S previewSize = previewSizes.get(i);
+      int width = reader.getWidth(previewSize);
+      if (width < MIN_CAMERA_PREVIEW_WIDTH || width > MAX_CAMERA_PREVIEW_WIDTH) {
+        continue;
+      }
+
+      float previewAspectRatio = (float) width / reader.getHeight(previewSize);
+      float aspectRatioDiff = Math.abs(displayAspectRatioInLandscape - previewAspectRatio);
+      if (Math.abs(aspectRatioDiff - minAspectRatioDiff) < ASPECT_RATIO_TOLERANCE) {
+        if (selectedIndex < 0 || selectedWidth < width) {
+          selectedIndex = i;
+          selectedWidth = width;
+        }
+      } else if (aspectRatioDiff < minAspectRatioDiff) {
+        minAspectRatioDiff = aspectRatioDiff;
+        selectedIndex = i;
+        selectedWidth = width;
+      }
+    }
+
+    if (selectedIndex < 0) {
+      // Picks the one that has the minimum sum of the differences between the desired values and
+      // the actual values for width and height.
+      int minDiff = Integer.MAX_VALUE;
+      for (int i = 0; i < previewSizes.size(); i++) {
+        S size = previewSizes.get(i);
+        int diff =
+            Math.abs(reader.getWidth(size) - DEFAULT_REQUESTED_CAMERA_PREVIEW_WIDTH)
+                + Math.abs(reader.getHeight(size) - DEFAULT_REQUESTED_CAMERA_PREVIEW_HEIGHT);
+        if (diff < minDiff) {
+          selectedIndex = i;
+          minDiff = diff;
+        }
+      }
+    }
+
+    return selectedIndex;
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.java.camera;
+
+import android.content.Context;
+import android.graphics.Rect;
+import android.util.Log;
+import android.view.SurfaceHolder;
+import androidx.annotation.Nullable;
+import com.google.android.gms.common.images.Size;
+import com.google.firebase.ml.md.java.camera.FrameReplayer.Pacing;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams the frames of a {@link FrameRecording} in a loop instead of those of a camera, so the
+ * detection pipeline sees the same input on every run. The recording is read from {@link
+ * #RECORDING_FILE_NAME} in the app's external files directory, the preview itself stays blank.
+ */
+class ReplayCameraBackend implements CameraBackend {
+
+  static final String RECORDING_FILE_NAME = "frames.mdfr";
+
+  private static final String TAG = "ReplayCameraBackend";
+
+  private final Context context;
+  private final Pacing pacing;
+
+  @Nullable private FrameRecording recording;
+  @Nullable private FrameReplayer replayer;
+  @Nullable private Thread replayThread;
+  @Nullable private Size previewSize;
+
+  ReplayCameraBackend(Context context, Pacing pacing) {
+    this.context = context;
+    this.pacing = pacing;
+  }
+
+  @Override
+  public synchronized void start(SurfaceHolder surfaceHolder, FrameListener listener)
+      throws IOException {
+    if (replayThread != null) {
+      return;
+    }
+
+    File recordingFile = new File(context.getExternalFilesDir(null), RECORDING_FILE_NAME);
+    if (!recordingFile.exists()) {
+      throw new IOException("There is no frame recording at " + recordingFile);
+    }
+    FrameRecording recording = FrameRecording.open(recordingFile);
+    if (recording.getFrameCount() == 0) {
+      recording.close();
+      throw new IOException("The frame recording at " + recordingFile + " has no frames.");
+    }
+    this.recording = recording;
+    FrameMetadata firstFrameMetadata = recording.getMetadata(0);
+    previewSize = new Size(firstFrameMetadata.width, firstFrameMetadata.height);
+
+    long frameIntervalUs = recording.getAverageFrameIntervalUs();
+    listener.onFrameRateChanged(
+        frameIntervalUs > 0
+            ? TimeUnit.SECONDS.toMicros(1) / (float) frameIntervalUs
+            : CameraSource.REQUESTED_CAMERA_FPS);
+
+    FrameReplayer replayer = new FrameReplayer(recording, pacing, /* looping= */ true);
+    this.replayer = replayer;
+    replayThread =
+        new Thread(
+            () ->
+                replayer.replay(
+                    frame -> {
+                      if (listener.admitFrame()) {
+                        listener.onFrame(frame.retain());
+                      }
+                    }),
+            TAG);
+    replayThread.start();
+  }
+
+  @Override
+  public synchronized void stop() {
+    if (replayThread != null) {
+      replayer.stop();
+      replayThread.interrupt();
+      try {
+        replayThread.join();
+      } catch (InterruptedException e) {
+        Log.e(TAG, "Replay thread interrupted on stop.");
+      }
+      replayThread = null;
+      Log.d(TAG, "Replay stats: " + replayer.getStats());
+      replayer = null;
+    }
+    if (recording != null) {
+      try {
+        recording.close();
+      } catch (IOException e) {
+        Log.e(TAG, "Failed to close the frame recording: " + e);
+      }
+      recording = null;
+    }
+  }
+
+  @Nullable
+  @Override
+  public synchronized Size getPreviewSize() {
+    return previewSize;
+  }
+
+  /** The recording plays at the rate it was recorded with, the frame scheduler drops the rest. */
+  @Override
+  public void requestFrameRate(float frameRate) {}
+
+  @Override
+  public void setTorchEnabled(boolean enabled) {}
+
+  /** The frames are views of the mapped recording, there are no frame buffers to size. */
+  @Override
+  public void setFrameBufferDepth(int minDepth, int maxDepth) {}
+
+  /** The frames come in the size they were recorded with. */
+  @Override
+  public void setPreviewSizePair(@Nullable CameraSizePair sizePair) {}
+
+  /** The frames are replayed the way they were recorded, focus and zoom included. */
+  @Override
+  public void setFocusRegion(@Nullable Rect uprightRegion) {}
+
+  @Override
+  public float setZoomRatio(float zoomRatio) {
+    return 1f;
+  }
+
+  @Override
+  public float getMaxZoomRatio() {
+    return 1f;
+  }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.ml.md.java.camera;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Tells whether a camera frame shows a different scene than a reference frame, by comparing
+ * down-sampled signatures of their luma planes.
+ *
+ * <p>The signature holds the mean luma of each cell of a coarse grid laid over the frame, each
+ * mean taken from a few evenly spaced samples of the Y plane of the NV21 frame. Computing it reads
+ * a small fraction of the frame and never allocates. The scene counts as changed once enough cells
+ * got noticeably brighter or darker, which sensor noise alone doesn't do.
+ *
+ * <p>Not thread safe, the owner is expected to guard it with its own lock.
+ */
+class SceneChangeDetector {
+
+  private static final int GRID_COLUMNS = 32;
+  private static final int GRID_ROWS = 24;
+  private static final int CELL_COUNT = GRID_COLUMNS * GRID_ROWS;
+
+  /** Each cell mean is taken from a square of this many samples per side. */
+  private static final int SAMPLES_PER_CELL_SIDE = 4;
+
+  /** Difference of a cell mean, in luma levels, from which the cell counts as changed. */
+  private static final int CELL_CHANGE_THRESHOLD = 12;
+
+  /** Number of changed cells from which the scene counts as changed, about half a percent. */
+  private static final int MIN_CHANGED_CELL_COUNT = 4;
+
+  // The cells hold sums of samples rather than means, so are compared in units of samples.
+  private static final int SAMPLES_PER_CELL = SAMPLES_PER_CELL_SIDE * SAMPLES_PER_CELL_SIDE;
+
+  private final int[] signature = new int[CELL_COUNT];
+  private final int[] referenceSignature = new int[CELL_COUNT];
+  private boolean hasReference;
+
+  /**
+   * Computes the signature of the given frame and returns whether it differs from the reference,
+   * which it always does if there's no reference yet.
+   */
+  boolean hasChanged(ByteBuffer data, FrameMetadata metadata) {
+    computeSignature(data, metadata.width, metadata.height);
+    if (!hasReference) {
+      return true;
+    }
+    int changedCellCount = 0;
+    for (int cell = 0; cell < CELL_COUNT; cell++) {
+      if (Math.abs(signature[cell] - referenceSignature[cell])
+          > CELL_CHANGE_THRESHOLD * SAMPLES_PER_CELL) {
+        if (++changedCellCount >= MIN_CHANGED_CELL_COUNT) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /** Makes the frame last passed to {@link #hasChanged} the reference for the frames to come. */
+  void markReference() {
+    System.arraycopy(signature, 0, referenceSignature, 0, CELL_COUNT);
+    hasReference = true;
+  }
+
+  /** Forgets the reference, the next frame counts as changed. */
+  void reset() {
+    hasReference = false;
+  }
+
+  private void computeSignature(ByteBuffer data, int width, int height) {
+    // Samples sit at the centers of the sample grid, so they stay clear of the frame edges.
+    int sampleRowCount = GRID_ROWS * SAMPLES_PER_CELL_SIDE;
+    int sampleColumnCount = GRID_COLUMNS * SAMPLES_PER_CELL_SIDE;
+    int cell = 0;
+    for (int row = 0; row < GRID_ROWS; row++) {
+      for (int column = 0; column < GRID_COLUMNS; column++) {
+        int sum = 0;
+        for (int i = 0; i < SAMPLES_PER_CELL_SIDE; i++) {
+          int sampleRow = row * SAMPLES_PER_CELL_SIDE + i;
+          int y = (2 * sampleRow + 1) * height / (2 * sampleRowCount);
+          int rowOffset = y * width;
+          for (int j = 0; j < SAMPLES_PER_CELL_SIDE; j++) {
+            int sampleColumn = column * SAMPLES_PER_CELL_SIDE + j;
+            int x = (2 * sampleColumn + 1) * width / (2 * sampleColumnCount);
+            sum += data.get(rowOffset + x) & 0xFF;
+          }
+        }
+        signature[cell++] = sum;
+      }
+    }
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.ml.md.java.camera;
+
+import androidx.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A camera frame that can be shared between several frame processors.
+ *
+ * <p>The frame starts out with a single reference, held by whoever delivers it for the duration of
+ * {@link FrameProcessor#process}. A processor that holds onto the frame beyond that call retains
+ * it, and releases it once it is done with the data. The underlying buffer is recycled when the
+ * last reference is released.
+ */
+class SharedFrame {
+
+  final ByteBuffer data;
+  final FrameMetadata metadata;
+
+  @Nullable private final Runnable onRecycled;
+  private final AtomicInteger refCount = new AtomicInteger(1);
+
+  /** @param onRecycled called once the last reference to the frame is released. */
+  SharedFrame(ByteBuffer data, FrameMetadata metadata, @Nullable Runnable onRecycled) {
+    this.data = data;
+    this.metadata = metadata;
+    this.onRecycled = onRecycled;
+  }
+
+  /** Adds a reference to the frame, which keeps its buffer from being recycled. */
+  SharedFrame retain() {
+    if (refCount.getAndIncrement() <= 0) {
+      throw new IllegalStateException("Frame has been recycled already.");
+    }
+    return this;
+  }
+
+  /** Removes a reference to the frame, and recycles its buffer if it was the last one. */
+  void release() {
+    int remaining = refCount.decrementAndGet();
+    if (remaining < 0) {
+      throw new IllegalStateException("Frame has been released more often than retained.");
+    }
+    if (remaining == 0 && onRecycled != null) {
+      onRecycled.run();
+    }
+  }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.java.camera;
+
+import android.content.Context;
+import android.graphics.Rect;
+import android.util.Log;
+import android.view.SurfaceHolder;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import com.google.android.gms.common.images.Size;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams generated frames instead of those of a camera, so the detection pipeline can be run and
+ * measured on devices and emulators without one. The frames show a bright square bouncing across a
+ * gradient, the preview itself stays blank.
+ *
+ * <p>The frames are paced on {@link System#nanoTime()} rather than on {@link
+ * android.os.SystemClock}, so they keep coming in real time under the paused clock of Robolectric.
+ */
+class SyntheticCameraBackend implements CameraBackend {
+
+  private static final String TAG = "SyntheticCameraBackend";
+
+  private static final int FRAME_WIDTH = 640;
+  private static final int FRAME_HEIGHT = 480;
+  /** The frames are generated the way the usual back camera sensor is mounted. */
+  private static final int SENSOR_ORIENTATION = 90;
+
+  private static final int SQUARE_SIZE = 160;
+  private static final int SQUARE_STEP = 6;
+  private static final byte SQUARE_LUMA = (byte) 235;
+  private static final byte NEUTRAL_CHROMA = (byte) 128;
+
+  private static final float MIN_FRAME_RATE = 1f;
+
+  private final Context context;
+  private final FrameBufferRecycler frameBuffers;
+
+  @Nullable private Thread frameThread;
+  @Nullable private Size previewSize;
+  private int minFrameBufferDepth = CameraSource.DEFAULT_MIN_FRAME_BUFFER_DEPTH;
+  private int maxFrameBufferDepth = CameraSource.DEFAULT_MAX_FRAME_BUFFER_DEPTH;
+
+  private volatile boolean streaming;
+  private volatile float frameRate = CameraSource.REQUESTED_CAMERA_FPS;
+
+  SyntheticCameraBackend(Context context) {
+    this(context, new FrameBufferRecycler());
+  }
+
+  @VisibleForTesting
+  SyntheticCameraBackend(Context context, FrameBufferRecycler frameBuffers) {
+    this.context = context;
+    this.frameBuffers = frameBuffers;
+  }
+
+  @Override
+  public synchronized void start(SurfaceHolder surfaceHolder, FrameListener listener) {
+    if (frameThread != null) {
+      return;
+    }
+
+    previewSize = new Size(FRAME_WIDTH, FRAME_HEIGHT);
+    int angle = CameraSource.getFrameRotationDegrees(context, SENSOR_ORIENTATION);
+    // This corresponds to the rotation constants in FirebaseVisionImageMetadata.
+    FrameMetadata metadata = new FrameMetadata(FRAME_WIDTH, FRAME_HEIGHT, angle / 90);
+    frameBuffers.reset(
+        FRAME_WIDTH * FRAME_HEIGHT * 3 / 2, minFrameBufferDepth, maxFrameBufferDepth);
+
+    frameRate = CameraSource.REQUESTED_CAMERA_FPS;
+    listener.onFrameRateChanged(frameRate);
+    streaming = true;
+    frameThread = new Thread(() -> streamFrames(listener, metadata), TAG);
+    frameThread.start();
+  }
+
+  @Override
+  public synchronized void stop() {
+    streaming = false;
+    if (frameThread != null) {
+      try {
+        frameThread.join();
+      } catch (InterruptedException e) {
+        Log.e(TAG, "Frame thread interrupted on stop.");
+      }
+      frameThread = null;
+    }
+    frameBuffers.clear();
+  }
+
+  @Nullable
+  @Override
+  public synchronized Size getPreviewSize() {
+    return previewSize;
+  }
+
+  /** Called on the frame thread only, through {@link FrameListener#admitFrame()}. */
+  @Override
+  public void requestFrameRate(float frameRate) {
+    this.frameRate =
+        Math.max(MIN_FRAME_RATE, Math.min(CameraSource.REQUESTED_CAMERA_FPS, frameRate));
+  }
+
+  @Override
+  public void setTorchEnabled(boolean enabled) {}
+
+  @Override
+  public synchronized void setFrameBufferDepth(int minDepth, int maxDepth) {
+    minFrameBufferDepth = minDepth;
+    maxFrameBufferDepth = maxDepth;
+  }
+
+  /** The frames are always generated in the same size. */
+  @Override
+  public void setPreviewSizePair(@Nullable CameraSizePair sizePair) {}
+
+  /** The generated frames have no camera behind them to focus or zoom. */
+  @Override
+  public void setFocusRegion(@Nullable Rect uprightRegion) {}
+
+  @Override
+  public float setZoomRatio(float zoomRatio) {
+    return 1f;
+  }
+
+  @Override
+  public float getMaxZoomRatio() {
+    return 1f;
+  }
+
+  private void streamFrames(FrameListener listener, FrameMetadata metadata) {
+    long frameIndex = 0;
+    float streamedFrameRate = frameRate;
+    long nextFrameNs = System.nanoTime();
+    while (streaming) {
+      long delayMs = TimeUnit.NANOSECONDS.toMillis(nextFrameNs - System.nanoTime());
+      if (delayMs > 0) {
+        try {
+          Thread.sleep(delayMs);
+        } catch (InterruptedException e) {
+          Log.e(TAG, "Frame thread interrupted.");
+          return;
+        }
+      }
+      nextFrameNs += (long) (TimeUnit.SECONDS.toNanos(1) / frameRate);
+      frameIndex++;
+
+      boolean admitted = listener.admitFrame();
+      if (frameRate != streamedFrameRate) {
+        streamedFrameRate = frameRate;
+        listener.onFrameRateChanged(streamedFrameRate);
+      }
+      if (!admitted) {
+        continue;
+      }
+      SharedFrame frame = frameBuffers.obtainFrame(metadata);
+      if (frame == null) {
+        Log.d(TAG, "Skipping frame. The pipeline holds all the frame buffers.");
+        continue;
+      }
+      drawFrame(frame.data.array(), frameIndex);
+      listener.onFrame(frame);
+    }
+  }
+
+  /** Draws the given frame of the animation into an NV21 array. */
+  private static void drawFrame(byte[] nv21, long frameIndex) {
+    for (int y = 0; y < FRAME_HEIGHT; y++) {
+      int rowStart = y * FRAME_WIDTH;
+      Arrays.fill(nv21, rowStart, rowStart + FRAME_WIDTH, (byte) (16 + y * 160 / FRAME_HEIGHT));
+    }
+
+    int squareLeft = bounce(frameIndex * SQUARE_STEP, FRAME_WIDTH - SQUARE_SIZE);
+    int squareTop = bounce(frameIndex * SQUARE_STEP / 2, FRAME_HEIGHT - SQUARE_SIZE);
+    for (int y = squareTop; y < squareTop + SQUARE_SIZE; y++) {
+      int rowStart = y * FRAME_WIDTH + squareLeft;
+      Arrays.fill(nv21, rowStart, rowStart + SQUARE_SIZE, SQUARE_LUMA);
+    }
+
+    int ySize = FRAME_WIDTH * FRAME_HEIGHT;
+    Arrays.fill(nv21, ySize, ySize + ySize / 2, NEUTRAL_CHROMA);
+  }
+
+  /** Maps a distance travelled onto a position moving back and forth between 0 and the range. */
+  private static int bounce(long distance, int range) {
+    int position = (int) (distance % (2 * range));
+    return position <= range ? position : 2 * range - position;
+  }
+}
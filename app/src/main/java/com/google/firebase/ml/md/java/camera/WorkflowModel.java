@@ -26,24 +26,26 @@ import androidx.lifecycle.AndroidViewModel;
 import androidx.lifecycle.MutableLiveData;
 import com.google.firebase.ml.vision.barcode.FirebaseVisionBarcode;
 import com.google.firebase.ml.md.java.objectdetection.DetectedObject;
+import com.google.firebase.ml.md.java.objectdetection.TrackingIdMap;
 import com.google.firebase.ml.md.java.productsearch.Product;
 import com.google.firebase.ml.md.java.productsearch.SearchEngine.SearchResultListener;
 import com.google.firebase.ml.md.java.productsearch.SearchedObject;
 import com.google.firebase.ml.md.java.settings.PreferenceUtils;
-import java.util.HashSet;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
 
 /** View model for handling application workflow based on camera preview. */
 public class WorkflowModel extends AndroidViewModel implements SearchResultListener {
 
   /**
-   * State set of the application workflow.
+   * State set of the application workflow, in the order the workflow goes through them, which
+   * ranks the states the frame processors propose.
    */
   public enum WorkflowState {
     NOT_STARTED,
     DETECTING,
     DETECTED,
+    ZOOMING,
     CONFIRMING,
     CONFIRMED,
     SEARCHING,
@@ -56,17 +58,67 @@ public class WorkflowModel extends AndroidViewModel implements SearchResultListe
 
   public final MutableLiveData<FirebaseVisionBarcode> detectedBarcode = new MutableLiveData<>();
 
-  private final Set<Integer> objectIdsToSearch = new HashSet<>();
+  // The objects in search by their tracking ids, keyed without boxing them.
+  private final TrackingIdMap<DetectedObject> objectsInSearch = new TrackingIdMap<>();
 
-  private boolean isCameraLive = false;
+  // Read by the processors on the post-processing executor, before they drive the camera.
+  private volatile boolean isCameraLive = false;
   @Nullable private DetectedObject confirmedObject;
 
+  // The state each frame processor proposed last since the screen last set one, kept along with
+  // the processor rather than in a map so that proposing doesn't allocate. Only used on the main
+  // thread.
+  private final List<Proposal> proposals = new ArrayList<>();
+
+  private static final class Proposal {
+    final FrameProcessor processor;
+    WorkflowState state;
+
+    Proposal(FrameProcessor processor, WorkflowState state) {
+      this.processor = processor;
+      this.state = state;
+    }
+  }
+
   public WorkflowModel(Application application) {
     super(application);
   }
 
+  /** Sets the state of the workflow for the screen, over whatever its frame processors proposed. */
   @MainThread
   public void setWorkflowState(WorkflowState workflowState) {
+    proposals.clear();
+    applyWorkflowState(workflowState);
+  }
+
+  /**
+   * Proposes the state of the workflow the given frame processor is at. A screen may run several
+   * processors at once, see {@link CompositeFrameProcessor}, so the state set is the one furthest
+   * along the workflow of those its processors proposed last, and a processor with nothing in view
+   * doesn't reset what another one is confirming. With a single processor, that's the state it
+   * proposed.
+   */
+  @MainThread
+  public void proposeWorkflowState(FrameProcessor processor, WorkflowState workflowState) {
+    WorkflowState arbitratedState = workflowState;
+    boolean hasProposed = false;
+    for (int i = 0; i < proposals.size(); i++) {
+      Proposal proposal = proposals.get(i);
+      if (proposal.processor == processor) {
+        proposal.state = workflowState;
+        hasProposed = true;
+      } else if (proposal.state.compareTo(arbitratedState) > 0) {
+        arbitratedState = proposal.state;
+      }
+    }
+    if (!hasProposed) {
+      proposals.add(new Proposal(processor, workflowState));
+    }
+    applyWorkflowState(arbitratedState);
+  }
+
+  @MainThread
+  private void applyWorkflowState(WorkflowState workflowState) {
     if (!workflowState.equals(WorkflowState.CONFIRMED)
         && !workflowState.equals(WorkflowState.SEARCHING)
         && !workflowState.equals(WorkflowState.SEARCHED)) {
@@ -75,19 +127,20 @@ public class WorkflowModel extends AndroidViewModel implements SearchResultListe
     this.workflowState.setValue(workflowState);
   }
 
+  /** Proposes the state of the given frame processor confirming the given object. */
   @MainThread
-  public void confirmingObject(DetectedObject object, float progress) {
+  public void confirmingObject(FrameProcessor processor, DetectedObject object, float progress) {
     boolean isConfirmed = (Float.compare(progress, 1f) == 0);
     if (isConfirmed) {
       confirmedObject = object;
       if (PreferenceUtils.isAutoSearchEnabled(getContext())) {
-        setWorkflowState(WorkflowState.SEARCHING);
+        proposeWorkflowState(processor, WorkflowState.SEARCHING);
         triggerSearch(object);
       } else {
-        setWorkflowState(WorkflowState.CONFIRMED);
+        proposeWorkflowState(processor, WorkflowState.CONFIRMED);
       }
     } else {
-      setWorkflowState(WorkflowState.CONFIRMING);
+      proposeWorkflowState(processor, WorkflowState.CONFIRMING);
     }
   }
 
@@ -102,19 +155,19 @@ public class WorkflowModel extends AndroidViewModel implements SearchResultListe
   }
 
   private void triggerSearch(DetectedObject object) {
-    Integer objectId = checkNotNull(object.getObjectId());
-    if (objectIdsToSearch.contains(objectId)) {
+    int objectId = checkNotNull(object.getObjectId());
+    if (objectsInSearch.get(objectId) != null) {
       // Already in searching.
       return;
     }
 
-    objectIdsToSearch.add(objectId);
+    objectsInSearch.put(objectId, object);
     objectToSearch.setValue(object);
   }
 
   public void markCameraLive() {
     isCameraLive = true;
-    objectIdsToSearch.clear();
+    objectsInSearch.clear();
   }
 
   public void markCameraFrozen() {
@@ -132,7 +185,10 @@ public class WorkflowModel extends AndroidViewModel implements SearchResultListe
       return;
     }
 
-    objectIdsToSearch.remove(object.getObjectId());
+    Integer objectId = object.getObjectId();
+    if (objectId != null) {
+      objectsInSearch.remove(objectId);
+    }
     setWorkflowState(WorkflowState.SEARCHED);
     searchedObject.setValue(
         new SearchedObject(getContext().getResources(), confirmedObject, products));
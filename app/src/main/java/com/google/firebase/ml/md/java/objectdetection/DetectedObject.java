@@ -18,35 +18,55 @@ package com.google.firebase.ml.md.java.objectdetection;
 
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
+import android.graphics.BitmapFactory;
+import android.graphics.ImageFormat;
 import android.graphics.Rect;
+import android.graphics.YuvImage;
 import android.util.Log;
 import androidx.annotation.Nullable;
+import com.google.firebase.ml.md.java.camera.FrameCrop;
 import com.google.firebase.ml.vision.common.FirebaseVisionImage;
 import com.google.firebase.ml.vision.objects.FirebaseVisionObject;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 
 /**
  * Holds the detected object and its related image info.
+ *
+ * <p>An object detected in a camera frame comes with a {@link FrameCrop} of its box, copied out
+ * before the frame went back to the camera. The crop is encoded to JPEG as it is and the bitmap of
+ * the object decoded from that JPEG, rather than the whole frame converted to a bitmap to cut the
+ * object out of. Only an object detected in a still image is cut out of the image itself.
  */
 public class DetectedObject {
 
   private static final String TAG = "DetectedObject";
-  private static final int MAX_IMAGE_WIDTH = 640;
 
   private final FirebaseVisionObject object;
   private final int objectIndex;
-  private final FirebaseVisionImage image;
+  // Either the still image the object was detected in, or the crop of a camera frame.
+  @Nullable private final FirebaseVisionImage image;
+  @Nullable private final FrameCrop crop;
 
   @Nullable
   private Bitmap bitmap = null;
   @Nullable
   private byte[] jpegBytes = null;
 
+  /** Wraps an object detected in a still image, which is kept to cut the object out of. */
   public DetectedObject(FirebaseVisionObject object, int objectIndex, FirebaseVisionImage image) {
     this.object = object;
     this.objectIndex = objectIndex;
     this.image = image;
+    this.crop = null;
+  }
+
+  /** Wraps an object detected in a camera frame, along with its box copied out of the frame. */
+  public DetectedObject(FirebaseVisionObject object, int objectIndex, FrameCrop crop) {
+    this.object = object;
+    this.objectIndex = objectIndex;
+    this.image = null;
+    this.crop = crop;
   }
 
   @Nullable
@@ -62,31 +82,29 @@ public class DetectedObject {
     return object.getBoundingBox();
   }
 
+  /** Returns the bitmap of the object, or null if the crop of a camera frame failed to encode. */
+  @Nullable
   public synchronized Bitmap getBitmap() {
     if (bitmap == null) {
-      Rect boundingBox = object.getBoundingBox();
-      bitmap =
-          Bitmap.createBitmap(
-              image.getBitmap(),
-              boundingBox.left,
-              boundingBox.top,
-              boundingBox.width(),
-              boundingBox.height());
-      if (bitmap.getWidth() > MAX_IMAGE_WIDTH) {
-        int dstHeight = (int) ((float) MAX_IMAGE_WIDTH / bitmap.getWidth() * bitmap.getHeight());
-        bitmap = Bitmap.createScaledBitmap(bitmap, MAX_IMAGE_WIDTH, dstHeight, /* filter= */ false);
-      }
+      bitmap = crop != null ? decodeCrop() : cropImage();
     }
-
     return bitmap;
   }
 
   @Nullable
   public synchronized byte[] getImageData() {
     if (jpegBytes == null) {
-      try (ByteArrayOutputStream stream = new ByteArrayOutputStream()) {
-        getBitmap().compress(CompressFormat.JPEG, /* quality= */ 100, stream);
-        jpegBytes = stream.toByteArray();
+      try {
+        if (crop != null) {
+          jpegBytes = JpegPayload.encode(crop.getWidth(), crop.getHeight(), this::compressCrop);
+        } else {
+          Bitmap objectBitmap = getBitmap();
+          jpegBytes =
+              JpegPayload.encode(
+                  objectBitmap.getWidth(),
+                  objectBitmap.getHeight(),
+                  stream -> objectBitmap.compress(CompressFormat.JPEG, /* quality= */ 100, stream));
+        }
       } catch (IOException e) {
         Log.e(TAG, "Error getting object image data!");
       }
@@ -94,4 +112,39 @@ public class DetectedObject {
 
     return jpegBytes;
   }
+
+  @Nullable
+  private Bitmap decodeCrop() {
+    byte[] imageData = getImageData();
+    return imageData != null ? BitmapFactory.decodeByteArray(imageData, 0, imageData.length) : null;
+  }
+
+  private Bitmap cropImage() {
+    Rect boundingBox = object.getBoundingBox();
+    Bitmap objectBitmap =
+        Bitmap.createBitmap(
+            image.getBitmap(),
+            boundingBox.left,
+            boundingBox.top,
+            boundingBox.width(),
+            boundingBox.height());
+    if (objectBitmap.getWidth() > JpegPayload.MAX_IMAGE_WIDTH) {
+      int dstHeight =
+          JpegPayload.getScaledHeight(objectBitmap.getWidth(), objectBitmap.getHeight());
+      objectBitmap =
+          Bitmap.createScaledBitmap(
+              objectBitmap, JpegPayload.MAX_IMAGE_WIDTH, dstHeight, /* filter= */ false);
+    }
+    return objectBitmap;
+  }
+
+  private void compressCrop(OutputStream stream) throws IOException {
+    int width = crop.getWidth();
+    int height = crop.getHeight();
+    YuvImage yuvImage =
+        new YuvImage(crop.getData(), ImageFormat.NV21, width, height, /* strides= */ null);
+    if (!yuvImage.compressToJpeg(new Rect(0, 0, width, height), /* quality= */ 100, stream)) {
+      throw new IOException("Failed to compress the object crop.");
+    }
+  }
 }
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.java.objectdetection;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Prepares the JPEG image of a detected object that the product search uploads. The encoding is
+ * left to an {@link Encoder}, the bitmap compression of Android in the app, so that the rest of
+ * the preparation can be benchmarked on the host.
+ */
+final class JpegPayload {
+
+  /** Images wider than this are scaled down before they're encoded. */
+  static final int MAX_IMAGE_WIDTH = 640;
+
+  /** Roughly what camera images take at the maximum JPEG quality, erring on the large side. */
+  private static final float ESTIMATED_BYTES_PER_PIXEL = 0.75f;
+
+  /** Writes an encoded image to a stream. */
+  interface Encoder {
+    void encode(OutputStream stream) throws IOException;
+  }
+
+  private JpegPayload() {}
+
+  /** Returns the height of an image of the given size once scaled down to the maximum width. */
+  static int getScaledHeight(int width, int height) {
+    return width > MAX_IMAGE_WIDTH ? (int) ((float) MAX_IMAGE_WIDTH / width * height) : height;
+  }
+
+  /**
+   * Returns the bytes the encoder writes for an image of the given size. They're collected in a
+   * buffer sized for the image up front, rather than one that starts at a few bytes and copies all
+   * of them every time it doubles.
+   */
+  static byte[] encode(int width, int height, Encoder encoder) throws IOException {
+    ByteArrayOutputStream stream =
+        new ByteArrayOutputStream((int) (width * height * ESTIMATED_BYTES_PER_PIXEL));
+    encoder.encode(stream);
+    return stream.toByteArray();
+  }
+}
@@ -16,174 +16,321 @@
 
 package com.google.firebase.ml.md.java.objectdetection;
 
-import android.graphics.PointF;
+import android.graphics.Rect;
 import android.graphics.RectF;
 import android.util.Log;
+import androidx.annotation.GuardedBy;
 import androidx.annotation.MainThread;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
 import com.google.android.gms.tasks.Task;
-import com.google.firebase.ml.vision.FirebaseVision;
 import com.google.firebase.ml.vision.common.FirebaseVisionImage;
 import com.google.firebase.ml.vision.objects.FirebaseVisionObject;
 import com.google.firebase.ml.vision.objects.FirebaseVisionObjectDetector;
 import com.google.firebase.ml.vision.objects.FirebaseVisionObjectDetectorOptions;
 import com.google.firebase.ml.md.java.camera.CameraReticleAnimator;
+import com.google.firebase.ml.md.java.camera.DetectorPool;
+import com.google.firebase.ml.md.java.camera.FrameCrop;
 import com.google.firebase.ml.md.java.camera.GraphicOverlay;
 import com.google.firebase.ml.md.R;
 import com.google.firebase.ml.md.java.camera.WorkflowModel;
 import com.google.firebase.ml.md.java.camera.FrameProcessorBase;
 import com.google.firebase.ml.md.java.settings.PreferenceUtils;
-import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
 
 /** A processor to run object detector in multi-objects mode. */
 public class MultiObjectProcessor extends FrameProcessorBase<List<FirebaseVisionObject>> {
 
   private static final String TAG = "MultiObjectProcessor";
 
+  // Stands in for the id of objects the detector didn't assign one to.
+  private static final int UNTRACKED_ID = -1;
+
   private final WorkflowModel workflowModel;
   private final ObjectConfirmationController confirmationController;
   private final CameraReticleAnimator cameraReticleAnimator;
   private final int objectSelectionDistanceThreshold;
-  private final FirebaseVisionObjectDetector detector;
+  private final DetectorPool.Lease<FirebaseVisionObjectDetector> detector;
   // Each new tracked object plays appearing animation exactly once.
-  private final Map<Integer, ObjectDotAnimator> objectDotAnimatorMap = new HashMap<>();
+  private final TrackingIdMap<ObjectDotAnimator> objectDotAnimators = new TrackingIdMap<>();
+  private final TrackingIdMap.ExpiryListener<ObjectDotAnimator> animatorCanceller =
+      (trackingId, animator) -> animator.cancel();
+
+  // The graphics are kept and updated in place for every frame rather than recreated, and so are
+  // the lists and rects used to lay them out, so rendering the live view doesn't allocate.
+  private final ObjectConfirmationGraphic confirmationGraphic;
+  private final ObjectGraphicInMultiMode selectedObjectGraphic;
+  private final ObjectReticleGraphic reticleGraphic;
+  private final List<ObjectDotGraphic> objectDotGraphics = new ArrayList<>();
+  // Only used on the post-processing executor.
+  private final RectF objectBox = new RectF();
+  // The layer of the overlay this processor draws on, next to those of any other processors.
+  private final GraphicOverlay.Layer layer;
+  // Only used on the main thread.
+  private final List<GraphicOverlay.Graphic> graphics = new ArrayList<>();
+  private final TrackingIdSet trackedIds = new TrackingIdSet();
+  // The selected object as handed to the workflow, wrapped once for as long as it stays confirmed.
+  @Nullable private DetectedObject confirmedObject;
+  private final ObjectMotionTracker tracker = new ObjectMotionTracker();
+  private final boolean classificationEnabled;
+  // The publishers that ran, kept along with their boxes for the results of the next frames.
+  @GuardedBy("idlePublishers")
+  private final ArrayDeque<ResultsPublisher> idlePublishers = new ArrayDeque<>();
+
+  /**
+   * Publishes the results of a frame on the main thread, and is recycled once it did. Several of
+   * them may be waiting to run while the next results are post-processed, so each copies the
+   * objects into boxes of its own.
+   */
+  private class ResultsPublisher implements Runnable {
+    final ObjectBoxes boxes = new ObjectBoxes();
+    // Only kept to be wrapped for the workflow once it's confirmed.
+    @Nullable FirebaseVisionObject selectedObject;
+    int selectedObjectIndex;
+    long frameTimeNs;
+    @Nullable GraphicOverlay graphicOverlay;
+
+    @MainThread
+    @Override
+    public void run() {
+      if (publishResults(boxes, selectedObjectIndex, frameTimeNs, graphicOverlay)) {
+        confirmObject(selectedObject, selectedObjectIndex);
+      }
+      selectedObject = null;
+      graphicOverlay = null;
+      synchronized (idlePublishers) {
+        idlePublishers.add(this);
+      }
+    }
+  }
 
   public MultiObjectProcessor(GraphicOverlay graphicOverlay, WorkflowModel workflowModel) {
+    super(
+        graphicOverlay.getContext(),
+        PreferenceUtils.getObjectFramesPerDetection(graphicOverlay.getContext()));
     this.workflowModel = workflowModel;
+    this.layer = graphicOverlay.addLayer();
     this.confirmationController = new ObjectConfirmationController(graphicOverlay);
     this.cameraReticleAnimator = new CameraReticleAnimator(graphicOverlay);
     this.objectSelectionDistanceThreshold =
         graphicOverlay
             .getResources()
             .getDimensionPixelOffset(R.dimen.object_selection_distance_threshold);
+    this.confirmationGraphic =
+        new ObjectConfirmationGraphic(graphicOverlay, confirmationController);
+    this.selectedObjectGraphic =
+        new ObjectGraphicInMultiMode(graphicOverlay, confirmationController, tracker);
+    this.reticleGraphic = new ObjectReticleGraphic(graphicOverlay, cameraReticleAnimator);
+    this.classificationEnabled =
+        PreferenceUtils.isClassificationEnabled(graphicOverlay.getContext());
 
-    FirebaseVisionObjectDetectorOptions.Builder optionsBuilder =
-        new FirebaseVisionObjectDetectorOptions.Builder()
-            .setDetectorMode(FirebaseVisionObjectDetectorOptions.STREAM_MODE)
-            .enableMultipleObjects();
-    if (PreferenceUtils.isClassificationEnabled(graphicOverlay.getContext())) {
-      optionsBuilder.enableClassification();
-    }
-    this.detector = FirebaseVision.getInstance().getOnDeviceObjectDetector(optionsBuilder.build());
+    this.detector =
+        DetectorPool.getInstance()
+            .acquireObjectDetector(
+                graphicOverlay.getContext(),
+                FirebaseVisionObjectDetectorOptions.STREAM_MODE,
+                /* multipleObjects= */ true,
+                classificationEnabled);
   }
 
   @Override
   public void stop() {
-    try {
-      detector.close();
-    } catch (IOException e) {
-      Log.e(TAG, "Failed to close object detector!", e);
-    }
+    super.stop();
+    Log.i(TAG, "Tracking error: " + tracker);
+    detector.release();
+    layer.remove();
   }
 
   @Override
   protected Task<List<FirebaseVisionObject>> detectInImage(FirebaseVisionImage image) {
-    return detector.processImage(image);
+    return detector.get().processImage(image);
   }
 
-  @MainThread
+  @WorkerThread
+  @Nullable
   @Override
-  protected void onSuccess(
+  protected Runnable onResults(
       FirebaseVisionImage image,
       List<FirebaseVisionObject> objects,
+      @Nullable Rect detectionRegion,
+      long frameTimeNs,
       GraphicOverlay graphicOverlay) {
     if (!workflowModel.isCameraLive()) {
-      return;
+      return null;
     }
 
-    if (PreferenceUtils.isClassificationEnabled(graphicOverlay.getContext())) {
-      List<FirebaseVisionObject> qualifiedObjects = new ArrayList<>();
-      for (FirebaseVisionObject object : objects) {
-        if (object.getClassificationCategory() != FirebaseVisionObject.CATEGORY_UNKNOWN) {
-          qualifiedObjects.add(object);
-        }
+    ResultsPublisher publisher;
+    synchronized (idlePublishers) {
+      publisher = idlePublishers.poll();
+    }
+    if (publisher == null) {
+      publisher = new ResultsPublisher();
+    }
+    publisher.boxes.clear();
+    publisher.selectedObject = null;
+    publisher.selectedObjectIndex = -1;
+    for (int i = 0; i < objects.size(); i++) {
+      FirebaseVisionObject object = objects.get(i);
+      if (classificationEnabled
+          && object.getClassificationCategory() == FirebaseVisionObject.CATEGORY_UNKNOWN) {
+        continue;
       }
-      objects = qualifiedObjects;
+      // The first object the camera reticle touches is the one selected.
+      if (publisher.selectedObject == null && shouldSelectObject(graphicOverlay, object)) {
+        publisher.selectedObject = object;
+        publisher.selectedObjectIndex = publisher.boxes.size();
+      }
+      publisher.boxes.add(getTrackingId(object), object.getBoundingBox());
     }
+    publisher.frameTimeNs = frameTimeNs;
+    publisher.graphicOverlay = graphicOverlay;
+    return publisher;
+  }
 
-    removeAnimatorsFromUntrackedObjects(objects);
+  /**
+   * Publishes the boxes of the objects detected in a frame, which the tests drive the processor
+   * through, as only the detector makes ML Kit objects.
+   *
+   * @param selectedObjectIndex the index of the box the camera reticle touches, or -1.
+   * @return whether the selected object is confirmed, for the caller to hand it to the workflow.
+   */
+  @VisibleForTesting
+  @MainThread
+  boolean publishResults(
+      ObjectBoxes boxes, int selectedObjectIndex, long frameTimeNs, GraphicOverlay graphicOverlay) {
+    if (!workflowModel.isCameraLive()) {
+      return false;
+    }
 
-    graphicOverlay.clear();
+    removeAnimatorsFromUntrackedObjects(boxes);
+    updateTracker(boxes, frameTimeNs);
 
-    DetectedObject selectedObject = null;
-    for (int i = 0; i < objects.size(); i++) {
-      FirebaseVisionObject object = objects.get(i);
-      if (selectedObject == null && shouldSelectObject(graphicOverlay, object)) {
-        selectedObject = new DetectedObject(object, i, image);
-        // Starts the object confirmation once an object is regarded as selected.
-        confirmationController.confirming(object.getTrackingId());
-        graphicOverlay.add(new ObjectConfirmationGraphic(graphicOverlay, confirmationController));
-
-        graphicOverlay.add(
-            new ObjectGraphicInMultiMode(
-                graphicOverlay, selectedObject, confirmationController));
-      } else {
-        if (confirmationController.isConfirmed()) {
-          // Don't render other objects when an object is in confirmed state.
-          continue;
-        }
-
-        ObjectDotAnimator objectDotAnimator = objectDotAnimatorMap.get(object.getTrackingId());
-        if (objectDotAnimator == null) {
-          objectDotAnimator = new ObjectDotAnimator(graphicOverlay);
-          objectDotAnimator.start();
-          objectDotAnimatorMap.put(object.getTrackingId(), objectDotAnimator);
-        }
-        graphicOverlay.add(
-            new ObjectDotGraphic(
-                graphicOverlay, new DetectedObject(object, i, image), objectDotAnimator));
+    graphics.clear();
+
+    boolean hasSelectedObject = selectedObjectIndex >= 0;
+    if (hasSelectedObject) {
+      int trackingId = boxes.getTrackingId(selectedObjectIndex);
+      // Starts the object confirmation once an object is regarded as selected.
+      confirmationController.confirming(trackingId);
+      graphics.add(confirmationGraphic);
+
+      selectedObjectGraphic.update(trackingId, boxes.getBox(selectedObjectIndex));
+      graphics.add(selectedObjectGraphic);
+    }
+
+    int objectDotCount = 0;
+    // Don't render other objects when an object is in confirmed state.
+    boolean showObjectDots = !hasSelectedObject || !confirmationController.isConfirmed();
+    for (int i = 0; i < boxes.size() && showObjectDots; i++) {
+      if (i == selectedObjectIndex) {
+        continue;
+      }
+      int trackingId = boxes.getTrackingId(i);
+      ObjectDotAnimator objectDotAnimator = objectDotAnimators.get(trackingId);
+      if (objectDotAnimator == null) {
+        objectDotAnimator = new ObjectDotAnimator(graphicOverlay);
+        objectDotAnimator.start();
+        objectDotAnimators.put(trackingId, objectDotAnimator);
+      }
+      if (objectDotCount == objectDotGraphics.size()) {
+        objectDotGraphics.add(new ObjectDotGraphic(graphicOverlay, tracker));
       }
+      ObjectDotGraphic objectDotGraphic = objectDotGraphics.get(objectDotCount++);
+      objectDotGraphic.update(trackingId, boxes.getBox(i), objectDotAnimator);
+      graphics.add(objectDotGraphic);
     }
 
-    if (selectedObject == null) {
+    if (!hasSelectedObject) {
       confirmationController.reset();
-      graphicOverlay.add(new ObjectReticleGraphic(graphicOverlay, cameraReticleAnimator));
+      graphics.add(reticleGraphic);
       cameraReticleAnimator.start();
     } else {
       cameraReticleAnimator.cancel();
     }
 
-    graphicOverlay.invalidate();
+    layer.setGraphics(graphics);
 
-    if (selectedObject != null) {
-      workflowModel.confirmingObject(selectedObject, confirmationController.getProgress());
-    } else {
-      workflowModel.setWorkflowState(
-          objects.isEmpty()
+    boolean isConfirmed = hasSelectedObject && confirmationController.isConfirmed();
+    if (!isConfirmed) {
+      // The confirmation starts over, and so does the object handed to the workflow.
+      confirmedObject = null;
+    }
+    if (!hasSelectedObject) {
+      workflowModel.proposeWorkflowState(
+          this,
+          boxes.isEmpty()
               ? WorkflowModel.WorkflowState.DETECTING
               : WorkflowModel.WorkflowState.DETECTED);
+    } else if (!isConfirmed) {
+      // The workflow only keeps the object once it's confirmed, so it isn't wrapped before.
+      workflowModel.proposeWorkflowState(this, WorkflowModel.WorkflowState.CONFIRMING);
     }
+    return isConfirmed;
   }
 
-  private void removeAnimatorsFromUntrackedObjects(List<FirebaseVisionObject> detectedObjects) {
-    List<Integer> trackingIds = new ArrayList<>();
-    for (FirebaseVisionObject object : detectedObjects) {
-      trackingIds.add(object.getTrackingId());
+  /**
+   * Hands the confirmed object to the workflow. The object and its crop are made at the first frame
+   * it's confirmed in, and handed again as they are for the frames it stays confirmed in.
+   */
+  @MainThread
+  private void confirmObject(FirebaseVisionObject object, int objectIndex) {
+    if (confirmedObject == null) {
+      FrameCrop crop = cropPublishedFrame(object.getBoundingBox(), JpegPayload.MAX_IMAGE_WIDTH);
+      // The frame is recycled once published, so a box too small to crop can't be searched for.
+      if (crop == null) {
+        return;
+      }
+      confirmedObject = new DetectedObject(object, objectIndex, crop);
+    }
+    workflowModel.confirmingObject(this, confirmedObject, confirmationController.getProgress());
+  }
+
+  private void removeAnimatorsFromUntrackedObjects(ObjectBoxes boxes) {
+    objectDotAnimators.nextGeneration();
+    trackedIds.clear();
+    for (int i = 0; i < boxes.size(); i++) {
+      int trackingId = boxes.getTrackingId(i);
+      trackedIds.add(trackingId);
+      objectDotAnimators.markSeen(trackingId);
     }
     // Stop and remove animators from the objects that have lost tracking.
-    List<Integer> removedTrackingIds = new ArrayList<>();
-    for (Entry<Integer, ObjectDotAnimator> entry : objectDotAnimatorMap.entrySet()) {
-      if (!trackingIds.contains(entry.getKey())) {
-        entry.getValue().cancel();
-        removedTrackingIds.add(entry.getKey());
+    objectDotAnimators.expire(/* maxUnseenGenerations= */ 0, animatorCanceller);
+  }
+
+  /**
+   * Corrects the tracker by the objects detected in the frame the processor got at the given time,
+   * after {@link #removeAnimatorsFromUntrackedObjects} collected their tracking ids.
+   */
+  private void updateTracker(ObjectBoxes boxes, long frameTimeNs) {
+    tracker.retainOnly(trackedIds);
+    for (int i = 0; i < boxes.size(); i++) {
+      int trackingId = boxes.getTrackingId(i);
+      if (trackingId != UNTRACKED_ID) {
+        Rect box = boxes.getBox(i);
+        tracker.update(trackingId, box.left, box.top, box.right, box.bottom, frameTimeNs);
       }
     }
-    objectDotAnimatorMap.keySet().removeAll(removedTrackingIds);
+  }
+
+  private static int getTrackingId(FirebaseVisionObject object) {
+    Integer trackingId = object.getTrackingId();
+    return trackingId != null ? trackingId : UNTRACKED_ID;
   }
 
   private boolean shouldSelectObject(GraphicOverlay graphicOverlay, FirebaseVisionObject object) {
     // Considers an object as selected when the camera reticle touches the object dot.
-    RectF box = graphicOverlay.translateRect(object.getBoundingBox());
-    PointF objectCenter = new PointF((box.left + box.right) / 2f, (box.top + box.bottom) / 2f);
-    PointF reticleCenter =
-        new PointF(graphicOverlay.getWidth() / 2f, graphicOverlay.getHeight() / 2f);
-    double distance =
-        Math.hypot(objectCenter.x - reticleCenter.x, objectCenter.y - reticleCenter.y);
-    return distance < objectSelectionDistanceThreshold;
+    RectF box = graphicOverlay.translateRect(object.getBoundingBox(), objectBox);
+    return ReticleHitTest.isBoxCenterNearReticle(
+        box.left,
+        box.top,
+        box.right,
+        box.bottom,
+        graphicOverlay.getWidth() / 2f,
+        graphicOverlay.getHeight() / 2f,
+        objectSelectionDistanceThreshold);
   }
 
   @Override
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.java.objectdetection;
+
+import android.graphics.Rect;
+import java.util.Arrays;
+
+/**
+ * The tracking ids and boxes of the objects detected in a frame, copied out of the results of the
+ * detector so that they get published as plain boxes. It's refilled for every frame rather than
+ * recreated, and so are its boxes, so publishing doesn't allocate.
+ */
+final class ObjectBoxes {
+
+  private int[] trackingIds = new int[8];
+  private Rect[] boxes = new Rect[8];
+  private int size;
+
+  void clear() {
+    size = 0;
+  }
+
+  /** Adds the object with the given tracking id, whose box is copied. */
+  void add(int trackingId, Rect box) {
+    add(trackingId, box.left, box.top, box.right, box.bottom);
+  }
+
+  void add(int trackingId, int left, int top, int right, int bottom) {
+    if (size == trackingIds.length) {
+      trackingIds = Arrays.copyOf(trackingIds, size * 2);
+      boxes = Arrays.copyOf(boxes, size * 2);
+    }
+    if (boxes[size] == null) {
+      boxes[size] = new Rect();
+    }
+    trackingIds[size] = trackingId;
+    boxes[size].set(left, top, right, bottom);
+    size++;
+  }
+
+  int size() {
+    return size;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  int getTrackingId(int index) {
+    return trackingIds[index];
+  }
+
+  /** Returns the box of the object at the given index, which is overwritten once refilled. */
+  Rect getBox(int index) {
+    return boxes[index];
+  }
+}
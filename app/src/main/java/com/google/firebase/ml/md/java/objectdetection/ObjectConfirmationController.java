@@ -17,7 +17,7 @@
 package com.google.firebase.ml.md.java.objectdetection;
 
 import android.os.CountDownTimer;
-import androidx.annotation.Nullable;
+import android.os.SystemClock;
 import com.google.firebase.ml.md.java.camera.GraphicOverlay;
 import com.google.firebase.ml.md.java.settings.PreferenceUtils;
 
@@ -28,21 +28,24 @@ import com.google.firebase.ml.md.java.settings.PreferenceUtils;
 class ObjectConfirmationController {
 
   private final CountDownTimer countDownTimer;
+  private final long confirmationTimeMs;
 
-  @Nullable
-  private Integer objectId = null;
+  // The tracking id of the object in confirmation, if there's one.
+  private boolean confirming;
+  private int objectId;
+  private long startTimeMs;
   private float progress = 0;
 
   /**
    * @param graphicOverlay Used to refresh camera overlay when the confirmation progress updates.
    */
   ObjectConfirmationController(GraphicOverlay graphicOverlay) {
-    long confirmationTimeMs = PreferenceUtils.getConfirmationTimeMs(graphicOverlay.getContext());
+    confirmationTimeMs = PreferenceUtils.getConfirmationTimeMs(graphicOverlay.getContext());
     countDownTimer =
         new CountDownTimer(confirmationTimeMs, /* countDownInterval= */ 20) {
           @Override
           public void onTick(long millisUntilFinished) {
-            progress = (float) (confirmationTimeMs - millisUntilFinished) / confirmationTimeMs;
+            updateProgress();
             graphicOverlay.invalidate();
           }
 
@@ -53,24 +56,38 @@ class ObjectConfirmationController {
         };
   }
 
-  void confirming(Integer objectId) {
-    if (objectId.equals(this.objectId)) {
-      // Do nothing if it's already in confirming.
+  /**
+   * Starts the confirmation of the given object, or brings its progress up to date if it's in
+   * confirmation already. The progress is measured from the time the confirmation started, so it
+   * doesn't depend on the ticks of the timer getting delivered in time.
+   */
+  void confirming(int objectId) {
+    if (confirming && objectId == this.objectId) {
+      updateProgress();
       return;
     }
 
     reset();
+    confirming = true;
     this.objectId = objectId;
+    startTimeMs = SystemClock.elapsedRealtime();
     countDownTimer.start();
   }
 
+  private void updateProgress() {
+    if (confirming) {
+      long elapsedMs = SystemClock.elapsedRealtime() - startTimeMs;
+      progress = Math.min(1, (float) elapsedMs / confirmationTimeMs);
+    }
+  }
+
   boolean isConfirmed() {
     return Float.compare(progress, 1) == 0;
   }
 
   void reset() {
     countDownTimer.cancel();
-    objectId = null;
+    confirming = false;
     progress = 0;
   }
 
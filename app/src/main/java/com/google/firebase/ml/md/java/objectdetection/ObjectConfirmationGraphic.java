@@ -43,6 +43,7 @@ public class ObjectConfirmationGraphic extends Graphic {
   private final int outerRingFillRadius;
   private final int outerRingStrokeRadius;
   private final int innerRingStrokeRadius;
+  private final RectF progressRect = new RectF();
 
   ObjectConfirmationGraphic(
       GraphicOverlay overlay, ObjectConfirmationController confirmationController) {
@@ -100,12 +101,11 @@ public class ObjectConfirmationGraphic extends Graphic {
     canvas.drawCircle(cx, cy, outerRingStrokeRadius, outerRingStrokePaint);
     canvas.drawCircle(cx, cy, innerRingStrokeRadius, innerRingPaint);
 
-    RectF progressRect =
-        new RectF(
-            cx - outerRingStrokeRadius,
-            cy - outerRingStrokeRadius,
-            cx + outerRingStrokeRadius,
-            cy + outerRingStrokeRadius);
+    progressRect.set(
+        cx - outerRingStrokeRadius,
+        cy - outerRingStrokeRadius,
+        cx + outerRingStrokeRadius,
+        cy + outerRingStrokeRadius);
     float sweepAngle = confirmationController.getProgress() * 360;
     canvas.drawArc(
         progressRect,
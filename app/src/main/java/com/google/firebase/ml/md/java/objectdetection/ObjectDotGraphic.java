@@ -20,31 +20,31 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Paint.Style;
-import android.graphics.PointF;
 import android.graphics.Rect;
+import android.graphics.RectF;
+import androidx.annotation.Nullable;
 import com.google.firebase.ml.md.java.camera.GraphicOverlay;
 import com.google.firebase.ml.md.java.camera.GraphicOverlay.Graphic;
 import com.google.firebase.ml.md.R;
 
-/** A dot to indicate a detected object used by multiple objects detection mode. */
+/**
+ * A dot to indicate a detected object used by multiple objects detection mode. Kept and moved
+ * onto a new object by {@link #update} rather than recreated for every frame.
+ */
 class ObjectDotGraphic extends Graphic {
 
-  private final ObjectDotAnimator animator;
   private final Paint paint;
-  private final PointF center;
   private final int dotRadius;
   private final int dotAlpha;
 
-  ObjectDotGraphic(GraphicOverlay overlay, DetectedObject object, ObjectDotAnimator animator) {
-    super(overlay);
+  private final TrackedBox box;
+  private final RectF rect = new RectF();
+  @Nullable private ObjectDotAnimator animator;
 
-    this.animator = animator;
+  ObjectDotGraphic(GraphicOverlay overlay, ObjectMotionTracker tracker) {
+    super(overlay);
 
-    Rect box = object.getBoundingBox();
-    center =
-        new PointF(
-            overlay.translateX((box.left + box.right) / 2f),
-            overlay.translateY((box.top + box.bottom) / 2f));
+    box = new TrackedBox(tracker);
 
     paint = new Paint();
     paint.setStyle(Style.FILL);
@@ -54,9 +54,23 @@ class ObjectDotGraphic extends Graphic {
     dotAlpha = paint.getAlpha();
   }
 
+  /**
+   * Places the dot at the center of the box of the object with the given tracking id, animated by
+   * the given animator.
+   */
+  void update(int trackingId, Rect box, ObjectDotAnimator animator) {
+    this.animator = animator;
+    this.box.update(trackingId, box);
+  }
+
   @Override
   public void draw(Canvas canvas) {
+    if (animator == null) {
+      return;
+    }
+    box.translate(overlay, rect);
     paint.setAlpha((int) (dotAlpha * animator.getAlphaScale()));
-    canvas.drawCircle(center.x, center.y, dotRadius * animator.getRadiusScale(), paint);
+    canvas.drawCircle(
+        rect.centerX(), rect.centerY(), dotRadius * animator.getRadiusScale(), paint);
   }
 }
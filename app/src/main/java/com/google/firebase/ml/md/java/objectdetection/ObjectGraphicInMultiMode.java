@@ -20,10 +20,12 @@ import android.content.res.Resources;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.LinearGradient;
+import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Paint.Style;
 import android.graphics.PorterDuff;
 import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.Shader.TileMode;
 import androidx.annotation.ColorInt;
@@ -34,55 +36,67 @@ import com.google.firebase.ml.md.R;
 
 /**
  * Draws the detected object info over the camera preview for multiple objects detection mode.
+ * Kept and moved onto the selected object by {@link #update} rather than recreated for every frame,
+ * so drawing it doesn't allocate.
  */
 class ObjectGraphicInMultiMode extends Graphic {
 
-  private final DetectedObject object;
   private final ObjectConfirmationController confirmationController;
 
   private final Paint boxPaint;
   private final Paint scrimPaint;
   private final Paint eraserPaint;
+  // Spans a unit square and is stretched over the box by a local matrix.
+  private final LinearGradient boxGradient;
+  private final Matrix boxGradientMatrix = new Matrix();
   @ColorInt
-  private final int boxGradientStartColor;
+  private final int scrimGradientStartColor;
   @ColorInt
-  private final int boxGradientEndColor;
+  private final int scrimGradientEndColor;
+  private final int boxStrokeWidth;
+  private final int boxConfirmedStrokeWidth;
   private final int boxCornerRadius;
   private final int minBoxLen;
 
+  private final TrackedBox boundingBox;
+  private final RectF rect = new RectF();
+  // Overlay size the scrim gradient was made for.
+  private int scrimWidth;
+  private int scrimHeight;
+
   ObjectGraphicInMultiMode(
       GraphicOverlay overlay,
-      DetectedObject object,
-      ObjectConfirmationController confirmationController) {
+      ObjectConfirmationController confirmationController,
+      ObjectMotionTracker tracker) {
     super(overlay);
 
-    this.object = object;
     this.confirmationController = confirmationController;
+    this.boundingBox = new TrackedBox(tracker);
 
     Resources resources = context.getResources();
     boxPaint = new Paint();
     boxPaint.setStyle(Style.STROKE);
-    boxPaint.setStrokeWidth(
-        resources.getDimensionPixelOffset(
-            confirmationController.isConfirmed()
-                ? R.dimen.bounding_box_confirmed_stroke_width
-                : R.dimen.bounding_box_stroke_width));
     boxPaint.setColor(Color.WHITE);
+    boxStrokeWidth = resources.getDimensionPixelOffset(R.dimen.bounding_box_stroke_width);
+    boxConfirmedStrokeWidth =
+        resources.getDimensionPixelOffset(R.dimen.bounding_box_confirmed_stroke_width);
 
-    boxGradientStartColor = ContextCompat.getColor(context, R.color.bounding_box_gradient_start);
-    boxGradientEndColor = ContextCompat.getColor(context, R.color.bounding_box_gradient_end);
-    boxCornerRadius = resources.getDimensionPixelOffset(R.dimen.bounding_box_corner_radius);
-
-    scrimPaint = new Paint();
-    scrimPaint.setShader(
+    boxGradient =
         new LinearGradient(
             0,
             0,
-            overlay.getWidth(),
-            overlay.getHeight(),
-            ContextCompat.getColor(context, R.color.object_confirmed_bg_gradient_start),
-            ContextCompat.getColor(context, R.color.object_confirmed_bg_gradient_end),
-            TileMode.MIRROR));
+            0,
+            1,
+            ContextCompat.getColor(context, R.color.bounding_box_gradient_start),
+            ContextCompat.getColor(context, R.color.bounding_box_gradient_end),
+            TileMode.MIRROR);
+    boxCornerRadius = resources.getDimensionPixelOffset(R.dimen.bounding_box_corner_radius);
+
+    scrimPaint = new Paint();
+    scrimGradientStartColor =
+        ContextCompat.getColor(context, R.color.object_confirmed_bg_gradient_start);
+    scrimGradientEndColor =
+        ContextCompat.getColor(context, R.color.object_confirmed_bg_gradient_end);
 
     eraserPaint = new Paint();
     eraserPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.CLEAR));
@@ -91,9 +105,14 @@ class ObjectGraphicInMultiMode extends Graphic {
         resources.getDimensionPixelOffset(R.dimen.object_reticle_outer_ring_stroke_radius) * 2;
   }
 
+  /** Moves the graphic onto the object with the given tracking id and bounding box. */
+  void update(int trackingId, Rect boundingBox) {
+    this.boundingBox.update(trackingId, boundingBox);
+  }
+
   @Override
   public void draw(Canvas canvas) {
-    RectF rect = overlay.translateRect(object.getBoundingBox());
+    boundingBox.translate(overlay, rect);
 
     float boxWidth = rect.width() * confirmationController.getProgress();
     float boxHeight = rect.height() * confirmationController.getProgress();
@@ -105,26 +124,39 @@ class ObjectGraphicInMultiMode extends Graphic {
 
     float cx = (rect.left + rect.right) / 2;
     float cy = (rect.top + rect.bottom) / 2;
-    rect =
-        new RectF(cx - boxWidth / 2f, cy - boxHeight / 2f, cx + boxWidth / 2f, cy + boxHeight / 2f);
+    rect.set(cx - boxWidth / 2f, cy - boxHeight / 2f, cx + boxWidth / 2f, cy + boxHeight / 2f);
 
     if (confirmationController.isConfirmed()) {
       // Draws the dark background scrim and leaves the object area clear.
+      updateScrimShader();
       canvas.drawRect(0, 0, canvas.getWidth(), canvas.getHeight(), scrimPaint);
       canvas.drawRoundRect(rect, boxCornerRadius, boxCornerRadius, eraserPaint);
+      boxPaint.setShader(null);
+      boxPaint.setStrokeWidth(boxConfirmedStrokeWidth);
+    } else {
+      boxGradientMatrix.setScale(1, rect.height());
+      boxGradientMatrix.postTranslate(rect.left, rect.top);
+      boxGradient.setLocalMatrix(boxGradientMatrix);
+      boxPaint.setShader(boxGradient);
+      boxPaint.setStrokeWidth(boxStrokeWidth);
     }
-
-    boxPaint.setShader(
-        confirmationController.isConfirmed()
-            ? null
-            : new LinearGradient(
-                rect.left,
-                rect.top,
-                rect.left,
-                rect.bottom,
-                boxGradientStartColor,
-                boxGradientEndColor,
-                TileMode.MIRROR));
     canvas.drawRoundRect(rect, boxCornerRadius, boxCornerRadius, boxPaint);
   }
+
+  private void updateScrimShader() {
+    if (scrimWidth == overlay.getWidth() && scrimHeight == overlay.getHeight()) {
+      return;
+    }
+    scrimWidth = overlay.getWidth();
+    scrimHeight = overlay.getHeight();
+    scrimPaint.setShader(
+        new LinearGradient(
+            0,
+            0,
+            scrimWidth,
+            scrimHeight,
+            scrimGradientStartColor,
+            scrimGradientEndColor,
+            TileMode.MIRROR));
+  }
 }
@@ -19,109 +19,137 @@ package com.google.firebase.ml.md.java.objectdetection;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.LinearGradient;
+import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Paint.Style;
 import android.graphics.PorterDuff;
 import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.Shader.TileMode;
-import androidx.annotation.ColorInt;
+import androidx.annotation.Nullable;
 import androidx.core.content.ContextCompat;
-import com.google.firebase.ml.vision.objects.FirebaseVisionObject;
 import com.google.firebase.ml.md.java.camera.GraphicOverlay;
 import com.google.firebase.ml.md.java.camera.GraphicOverlay.Graphic;
 import com.google.firebase.ml.md.R;
 
 /**
  * Draws the detected object info over the camera preview for prominent object detection mode.
+ * Kept and moved onto the detected object by {@link #update} rather than recreated for every
+ * frame, so drawing it doesn't allocate.
  */
 class ObjectGraphicInProminentMode extends Graphic {
 
-  private final FirebaseVisionObject object;
   private final ObjectConfirmationController confirmationController;
 
   private final Paint scrimPaint;
   private final Paint eraserPaint;
   private final Paint boxPaint;
-  @ColorInt
-  private final int boxGradientStartColor;
-  @ColorInt
-  private final int boxGradientEndColor;
+  // Spans a unit square and is stretched over the box by a local matrix.
+  private final LinearGradient boxGradient;
+  private final Matrix boxGradientMatrix = new Matrix();
+  private final int boxStrokeWidth;
+  private final int boxConfirmedStrokeWidth;
   private final int boxCornerRadius;
 
+  private final TrackedBox boundingBox;
+  private final RectF rect = new RectF();
+  // Gradient background colors at vertical, made for the current overlay size.
+  @Nullable private LinearGradient confirmedScrimGradient;
+  @Nullable private LinearGradient detectedScrimGradient;
+  private int scrimWidth;
+  private int scrimHeight;
+
   ObjectGraphicInProminentMode(
       GraphicOverlay overlay,
-      FirebaseVisionObject object,
-      ObjectConfirmationController confirmationController) {
+      ObjectConfirmationController confirmationController,
+      ObjectMotionTracker tracker) {
     super(overlay);
 
-    this.object = object;
     this.confirmationController = confirmationController;
+    this.boundingBox = new TrackedBox(tracker);
 
     scrimPaint = new Paint();
-    // Sets up a gradient background color at vertical.
-    if (confirmationController.isConfirmed()) {
-      scrimPaint.setShader(
-          new LinearGradient(
-              0,
-              0,
-              overlay.getWidth(),
-              overlay.getHeight(),
-              ContextCompat.getColor(context, R.color.object_confirmed_bg_gradient_start),
-              ContextCompat.getColor(context, R.color.object_confirmed_bg_gradient_end),
-              TileMode.CLAMP));
-    } else {
-      scrimPaint.setShader(
-          new LinearGradient(
-              0,
-              0,
-              overlay.getWidth(),
-              overlay.getHeight(),
-              ContextCompat.getColor(context, R.color.object_detected_bg_gradient_start),
-              ContextCompat.getColor(context, R.color.object_detected_bg_gradient_end),
-              TileMode.CLAMP));
-    }
 
     eraserPaint = new Paint();
     eraserPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.CLEAR));
 
     boxPaint = new Paint();
     boxPaint.setStyle(Style.STROKE);
-    boxPaint.setStrokeWidth(
-        context
-            .getResources()
-            .getDimensionPixelOffset(
-                confirmationController.isConfirmed()
-                    ? R.dimen.bounding_box_confirmed_stroke_width
-                    : R.dimen.bounding_box_stroke_width));
     boxPaint.setColor(Color.WHITE);
+    boxStrokeWidth =
+        context.getResources().getDimensionPixelOffset(R.dimen.bounding_box_stroke_width);
+    boxConfirmedStrokeWidth =
+        context.getResources().getDimensionPixelOffset(R.dimen.bounding_box_confirmed_stroke_width);
 
-    boxGradientStartColor = ContextCompat.getColor(context, R.color.bounding_box_gradient_start);
-    boxGradientEndColor = ContextCompat.getColor(context, R.color.bounding_box_gradient_end);
+    boxGradient =
+        new LinearGradient(
+            0,
+            0,
+            0,
+            1,
+            ContextCompat.getColor(context, R.color.bounding_box_gradient_start),
+            ContextCompat.getColor(context, R.color.bounding_box_gradient_end),
+            TileMode.CLAMP);
     boxCornerRadius =
         context.getResources().getDimensionPixelOffset(R.dimen.bounding_box_corner_radius);
   }
 
+  /** Moves the graphic onto the object with the given tracking id and bounding box. */
+  void update(int trackingId, Rect boundingBox) {
+    this.boundingBox.update(trackingId, boundingBox);
+  }
+
   @Override
   public void draw(Canvas canvas) {
-    RectF rect = overlay.translateRect(object.getBoundingBox());
+    boundingBox.translate(overlay, rect);
 
     // Draws the dark background scrim and leaves the object area clear.
+    updateScrimGradients();
+    scrimPaint.setShader(
+        confirmationController.isConfirmed() ? confirmedScrimGradient : detectedScrimGradient);
     canvas.drawRect(0, 0, canvas.getWidth(), canvas.getHeight(), scrimPaint);
     canvas.drawRoundRect(rect, boxCornerRadius, boxCornerRadius, eraserPaint);
 
     // Draws the bounding box with a gradient border color at vertical.
-    boxPaint.setShader(
-        confirmationController.isConfirmed()
-            ? null
-            : new LinearGradient(
-                rect.left,
-                rect.top,
-                rect.left,
-                rect.bottom,
-                boxGradientStartColor,
-                boxGradientEndColor,
-                TileMode.CLAMP));
+    if (confirmationController.isConfirmed()) {
+      boxPaint.setShader(null);
+      boxPaint.setStrokeWidth(boxConfirmedStrokeWidth);
+    } else {
+      boxGradientMatrix.setScale(1, rect.height());
+      boxGradientMatrix.postTranslate(rect.left, rect.top);
+      boxGradient.setLocalMatrix(boxGradientMatrix);
+      boxPaint.setShader(boxGradient);
+      boxPaint.setStrokeWidth(boxStrokeWidth);
+    }
     canvas.drawRoundRect(rect, boxCornerRadius, boxCornerRadius, boxPaint);
   }
+
+  private void updateScrimGradients() {
+    if (confirmedScrimGradient != null
+        && scrimWidth == overlay.getWidth()
+        && scrimHeight == overlay.getHeight()) {
+      return;
+    }
+    scrimWidth = overlay.getWidth();
+    scrimHeight = overlay.getHeight();
+    confirmedScrimGradient =
+        new LinearGradient(
+            0,
+            0,
+            scrimWidth,
+            scrimHeight,
+            ContextCompat.getColor(context, R.color.object_confirmed_bg_gradient_start),
+            ContextCompat.getColor(context, R.color.object_confirmed_bg_gradient_end),
+            TileMode.CLAMP);
+    detectedScrimGradient =
+        new LinearGradient(
+            0,
+            0,
+            scrimWidth,
+            scrimHeight,
+            ContextCompat.getColor(context, R.color.object_detected_bg_gradient_start),
+            ContextCompat.getColor(context, R.color.object_detected_bg_gradient_end),
+            TileMode.CLAMP);
+  }
 }
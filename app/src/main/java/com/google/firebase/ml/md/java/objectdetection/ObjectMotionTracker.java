@@ -0,0 +1,252 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.java.objectdetection;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Follows the detected objects from one detection to the next by their tracking ids, so their
+ * boxes can be drawn where the objects are by now rather than where they were in the frame last
+ * detected, and keep moving in between detections.
+ *
+ * <p>Each object is modeled as moving at a constant velocity, corrected by every detection with an
+ * alpha-beta filter, a steady state Kalman filter for the position and velocity of the center of
+ * its box. The size of the box isn't modeled, it's taken from the latest detection.
+ *
+ * <p>Every detection of an object is also compared to where it was predicted to be, which measures
+ * the tracking error, along with the error of showing the box of the previous detection in place as
+ * the overlay did before. Both grow with the time between detections, which is what detecting only
+ * some of the frames trades for a detector that's idle more often.
+ *
+ * <p>The boxes are given by their edges in frame coordinates rather than as Android rects, so that
+ * the tracker can be benchmarked on the host. Only used on the main thread.
+ */
+final class ObjectMotionTracker {
+
+  /**
+   * The boxes stop moving this long after the latest detection of their object, so that an object
+   * the detector loses track of doesn't drift off.
+   */
+  private static final long MAX_EXTRAPOLATION_NS = 500_000_000L;
+
+  // Critically damped gains, the velocity gain is the square of the position one over 2 minus it.
+  private static final float POSITION_GAIN = 0.6f;
+  private static final float VELOCITY_GAIN = 0.26f;
+
+  private static final float NS_PER_S = 1e9f;
+
+  private int[] trackingIds = new int[8];
+  // The state of the tracked objects, at the same index as their tracking ids.
+  private long[] updateTimesNs = new long[8];
+  private float[] centerXs = new float[8];
+  private float[] centerYs = new float[8];
+  private float[] velocityXs = new float[8];
+  private float[] velocityYs = new float[8];
+  private float[] widths = new float[8];
+  private float[] heights = new float[8];
+  // Where the latest detections put the centers, which is what the overlay used to show.
+  private float[] detectedCenterXs = new float[8];
+  private float[] detectedCenterYs = new float[8];
+  private int size;
+
+  private long errorSampleCount;
+  private double predictedErrorSum;
+  private double heldErrorSum;
+
+  /**
+   * Corrects the model of the object with the given tracking id by its box detected in the frame
+   * the processor got at the given time, or starts tracking the object.
+   */
+  void update(int trackingId, float left, float top, float right, float bottom, long frameTimeNs) {
+    float centerX = (left + right) / 2;
+    float centerY = (top + bottom) / 2;
+    int index = indexOf(trackingId);
+    if (index < 0) {
+      index = add(trackingId);
+      velocityXs[index] = 0;
+      velocityYs[index] = 0;
+      centerXs[index] = centerX;
+      centerYs[index] = centerY;
+    } else if (frameTimeNs > updateTimesNs[index]) {
+      long elapsedNs = frameTimeNs - updateTimesNs[index];
+      float predictedX = predictCenterX(index, frameTimeNs);
+      float predictedY = predictCenterY(index, frameTimeNs);
+      float residualX = centerX - predictedX;
+      float residualY = centerY - predictedY;
+      recordError(
+          residualX,
+          residualY,
+          centerX - detectedCenterXs[index],
+          centerY - detectedCenterYs[index]);
+      if (elapsedNs > MAX_EXTRAPOLATION_NS) {
+        // Lost for too long for the velocity to still hold, tracks it anew from here.
+        velocityXs[index] = 0;
+        velocityYs[index] = 0;
+        centerXs[index] = centerX;
+        centerYs[index] = centerY;
+      } else {
+        float elapsedS = elapsedNs / NS_PER_S;
+        centerXs[index] = predictedX + POSITION_GAIN * residualX;
+        centerYs[index] = predictedY + POSITION_GAIN * residualY;
+        velocityXs[index] += VELOCITY_GAIN * residualX / elapsedS;
+        velocityYs[index] += VELOCITY_GAIN * residualY / elapsedS;
+      }
+    }
+    updateTimesNs[index] = frameTimeNs;
+    detectedCenterXs[index] = centerX;
+    detectedCenterYs[index] = centerY;
+    widths[index] = right - left;
+    heights[index] = bottom - top;
+  }
+
+  /**
+   * Writes the left, top, right and bottom edges of the box the object with the given tracking id
+   * is predicted to have at the given time into {@code outEdges}, and returns whether the object is
+   * tracked at all.
+   */
+  boolean predict(int trackingId, long timeNs, float[] outEdges) {
+    int index = indexOf(trackingId);
+    if (index < 0) {
+      return false;
+    }
+    float centerX = predictCenterX(index, timeNs);
+    float centerY = predictCenterY(index, timeNs);
+    outEdges[0] = centerX - widths[index] / 2;
+    outEdges[1] = centerY - heights[index] / 2;
+    outEdges[2] = centerX + widths[index] / 2;
+    outEdges[3] = centerY + heights[index] / 2;
+    return true;
+  }
+
+  /** Returns whether any of the predicted boxes still moves at the given time. */
+  boolean isExtrapolating(long timeNs) {
+    for (int i = 0; i < size; i++) {
+      if (timeNs - updateTimesNs[i] < MAX_EXTRAPOLATION_NS
+          && (velocityXs[i] != 0 || velocityYs[i] != 0)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Stops tracking the objects whose tracking ids aren't in the given set. */
+  void retainOnly(TrackingIdSet trackedIds) {
+    // Walks backwards, so moving the last object into the place of a removed one doesn't skip it.
+    for (int i = size - 1; i >= 0; i--) {
+      if (!trackedIds.contains(trackingIds[i])) {
+        remove(i);
+      }
+    }
+  }
+
+  void clear() {
+    size = 0;
+  }
+
+  /** Number of detections of an object already tracked, compared to their prediction. */
+  long getErrorSampleCount() {
+    return errorSampleCount;
+  }
+
+  /**
+   * Average distance in frame pixels from where the objects were predicted to be to where they
+   * were detected.
+   */
+  float getMeanPredictedErrorPx() {
+    return errorSampleCount > 0 ? (float) (predictedErrorSum / errorSampleCount) : 0;
+  }
+
+  /**
+   * Average distance in frame pixels that the objects moved from one detection to the next, which
+   * is how far off a box held in place until the next detection ends up.
+   */
+  float getMeanHeldErrorPx() {
+    return errorSampleCount > 0 ? (float) (heldErrorSum / errorSampleCount) : 0;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        Locale.US,
+        "detections=%d, predictedErrorPx=%.1f, heldErrorPx=%.1f",
+        errorSampleCount,
+        getMeanPredictedErrorPx(),
+        getMeanHeldErrorPx());
+  }
+
+  private float predictCenterX(int index, long timeNs) {
+    return centerXs[index] + velocityXs[index] * getExtrapolationS(index, timeNs);
+  }
+
+  private float predictCenterY(int index, long timeNs) {
+    return centerYs[index] + velocityYs[index] * getExtrapolationS(index, timeNs);
+  }
+
+  private float getExtrapolationS(int index, long timeNs) {
+    long elapsedNs = Math.min(Math.max(timeNs - updateTimesNs[index], 0), MAX_EXTRAPOLATION_NS);
+    return elapsedNs / NS_PER_S;
+  }
+
+  private void recordError(float predictedDx, float predictedDy, float heldDx, float heldDy) {
+    errorSampleCount++;
+    predictedErrorSum += Math.sqrt(predictedDx * predictedDx + predictedDy * predictedDy);
+    heldErrorSum += Math.sqrt(heldDx * heldDx + heldDy * heldDy);
+  }
+
+  /** Scans the ids, which beats hashing for the handful of objects a frame has. */
+  private int indexOf(int trackingId) {
+    for (int i = 0; i < size; i++) {
+      if (trackingIds[i] == trackingId) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private int add(int trackingId) {
+    if (size == trackingIds.length) {
+      int capacity = size * 2;
+      trackingIds = Arrays.copyOf(trackingIds, capacity);
+      updateTimesNs = Arrays.copyOf(updateTimesNs, capacity);
+      centerXs = Arrays.copyOf(centerXs, capacity);
+      centerYs = Arrays.copyOf(centerYs, capacity);
+      velocityXs = Arrays.copyOf(velocityXs, capacity);
+      velocityYs = Arrays.copyOf(velocityYs, capacity);
+      widths = Arrays.copyOf(widths, capacity);
+      heights = Arrays.copyOf(heights, capacity);
+      detectedCenterXs = Arrays.copyOf(detectedCenterXs, capacity);
+      detectedCenterYs = Arrays.copyOf(detectedCenterYs, capacity);
+    }
+    trackingIds[size] = trackingId;
+    return size++;
+  }
+
+  private void remove(int index) {
+    int last = --size;
+    trackingIds[index] = trackingIds[last];
+    updateTimesNs[index] = updateTimesNs[last];
+    centerXs[index] = centerXs[last];
+    centerYs[index] = centerYs[last];
+    velocityXs[index] = velocityXs[last];
+    velocityYs[index] = velocityYs[last];
+    widths[index] = widths[last];
+    heights[index] = heights[last];
+    detectedCenterXs[index] = detectedCenterXs[last];
+    detectedCenterYs[index] = detectedCenterYs[last];
+  }
+}
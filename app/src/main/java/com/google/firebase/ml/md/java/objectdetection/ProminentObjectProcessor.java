@@ -16,23 +16,30 @@
 
 package com.google.firebase.ml.md.java.objectdetection;
 
+import android.graphics.Rect;
 import android.graphics.RectF;
 import android.util.Log;
+import androidx.annotation.GuardedBy;
 import androidx.annotation.MainThread;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
 import com.google.android.gms.tasks.Task;
-import com.google.firebase.ml.vision.FirebaseVision;
 import com.google.firebase.ml.vision.common.FirebaseVisionImage;
 import com.google.firebase.ml.vision.objects.FirebaseVisionObject;
 import com.google.firebase.ml.vision.objects.FirebaseVisionObjectDetector;
 import com.google.firebase.ml.vision.objects.FirebaseVisionObjectDetectorOptions;
 import com.google.firebase.ml.md.java.camera.CameraReticleAnimator;
+import com.google.firebase.ml.md.java.camera.DetectorPool;
+import com.google.firebase.ml.md.java.camera.CameraSource;
+import com.google.firebase.ml.md.java.camera.FrameCrop;
 import com.google.firebase.ml.md.java.camera.GraphicOverlay;
 import com.google.firebase.ml.md.R;
 import com.google.firebase.ml.md.java.camera.WorkflowModel;
 import com.google.firebase.ml.md.java.camera.WorkflowModel.WorkflowState;
 import com.google.firebase.ml.md.java.camera.FrameProcessorBase;
 import com.google.firebase.ml.md.java.settings.PreferenceUtils;
-import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -41,57 +48,119 @@ public class ProminentObjectProcessor extends FrameProcessorBase<List<FirebaseVi
 
   private static final String TAG = "ProminentObjProcessor";
 
-  private final FirebaseVisionObjectDetector detector;
+  // Stands in for the id of objects the detector didn't assign one to.
+  private static final int UNTRACKED_ID = -1;
+
+  private final DetectorPool.Lease<FirebaseVisionObjectDetector> detector;
   private final WorkflowModel workflowModel;
+  private final CameraSource cameraSource;
   private final ObjectConfirmationController confirmationController;
   private final CameraReticleAnimator cameraReticleAnimator;
   private final int reticleOuterRingRadius;
 
-  public ProminentObjectProcessor(GraphicOverlay graphicOverlay, WorkflowModel workflowModel) {
+  // The graphics are kept and updated in place for every frame rather than recreated, and so are
+  // the lists and rects used to lay them out, so rendering the live view doesn't allocate.
+  private final ObjectGraphicInProminentMode objectGraphic;
+  private final ObjectConfirmationGraphic confirmationGraphic;
+  private final ObjectReticleGraphic reticleGraphic;
+  private final List<FirebaseVisionObject> qualifiedObjects = new ArrayList<>();
+  private final RectF objectBox = new RectF();
+  // The layer of the overlay this processor draws on, next to those of any other processors.
+  private final GraphicOverlay.Layer layer;
+  // Only used on the main thread.
+  private final List<GraphicOverlay.Graphic> graphics = new ArrayList<>();
+  private final TrackingIdSet trackedIds = new TrackingIdSet();
+  // The object as handed to the workflow, wrapped once for as long as it stays confirmed.
+  @Nullable private DetectedObject confirmedObject;
+  private final ObjectMotionTracker tracker = new ObjectMotionTracker();
+  private final boolean classificationEnabled;
+  // The publishers that ran, kept along with their boxes for the results of the next frames.
+  @GuardedBy("idlePublishers")
+  private final ArrayDeque<ResultsPublisher> idlePublishers = new ArrayDeque<>();
+
+  /** Publishes the results of a frame on the main thread, and is recycled once it did. */
+  private class ResultsPublisher implements Runnable {
+    // The box of the prominent object, if there's one.
+    final ObjectBoxes boxes = new ObjectBoxes();
+    // Only kept to be wrapped for the workflow once it's confirmed.
+    @Nullable FirebaseVisionObject object;
+    boolean overlapsReticle;
+    long frameTimeNs;
+    @Nullable GraphicOverlay graphicOverlay;
+
+    @MainThread
+    @Override
+    public void run() {
+      if (publishResults(boxes, overlapsReticle, frameTimeNs, graphicOverlay)) {
+        confirmObject(object);
+      }
+      object = null;
+      graphicOverlay = null;
+      synchronized (idlePublishers) {
+        idlePublishers.add(this);
+      }
+    }
+  }
+
+  public ProminentObjectProcessor(
+      GraphicOverlay graphicOverlay, WorkflowModel workflowModel, CameraSource cameraSource) {
+    super(
+        graphicOverlay.getContext(),
+        PreferenceUtils.getObjectFramesPerDetection(graphicOverlay.getContext()));
     this.workflowModel = workflowModel;
+    this.cameraSource = cameraSource;
+    layer = graphicOverlay.addLayer();
     confirmationController = new ObjectConfirmationController(graphicOverlay);
     cameraReticleAnimator = new CameraReticleAnimator(graphicOverlay);
     reticleOuterRingRadius =
         graphicOverlay
             .getResources()
             .getDimensionPixelOffset(R.dimen.object_reticle_outer_ring_stroke_radius);
+    objectGraphic =
+        new ObjectGraphicInProminentMode(graphicOverlay, confirmationController, tracker);
+    confirmationGraphic = new ObjectConfirmationGraphic(graphicOverlay, confirmationController);
+    reticleGraphic = new ObjectReticleGraphic(graphicOverlay, cameraReticleAnimator);
+    classificationEnabled = PreferenceUtils.isClassificationEnabled(graphicOverlay.getContext());
 
-    FirebaseVisionObjectDetectorOptions.Builder optionsBuilder =
-        new FirebaseVisionObjectDetectorOptions.Builder()
-            .setDetectorMode(FirebaseVisionObjectDetectorOptions.STREAM_MODE);
-    if (PreferenceUtils.isClassificationEnabled(graphicOverlay.getContext())) {
-      optionsBuilder.enableClassification();
-    }
-    this.detector = FirebaseVision.getInstance().getOnDeviceObjectDetector(optionsBuilder.build());
+    this.detector =
+        DetectorPool.getInstance()
+            .acquireObjectDetector(
+                graphicOverlay.getContext(),
+                FirebaseVisionObjectDetectorOptions.STREAM_MODE,
+                /* multipleObjects= */ false,
+                classificationEnabled);
   }
 
   @Override
   public void stop() {
-    try {
-      detector.close();
-    } catch (IOException e) {
-      Log.e(TAG, "Failed to close object detector!", e);
-    }
+    super.stop();
+    Log.i(TAG, "Tracking error: " + tracker);
+    detector.release();
+    layer.remove();
   }
 
   @Override
   protected Task<List<FirebaseVisionObject>> detectInImage(FirebaseVisionImage image) {
-    return detector.processImage(image);
+    return detector.get().processImage(image);
   }
 
-  @MainThread
+  @WorkerThread
+  @Nullable
   @Override
-  protected void onSuccess(
+  protected Runnable onResults(
       FirebaseVisionImage image,
       List<FirebaseVisionObject> objects,
+      @Nullable Rect detectionRegion,
+      long frameTimeNs,
       GraphicOverlay graphicOverlay) {
     if (!workflowModel.isCameraLive()) {
-      return;
+      return null;
     }
 
-    if (PreferenceUtils.isClassificationEnabled(graphicOverlay.getContext())) {
-      List<FirebaseVisionObject> qualifiedObjects = new ArrayList<>();
-      for (FirebaseVisionObject object : objects) {
+    if (classificationEnabled) {
+      qualifiedObjects.clear();
+      for (int i = 0; i < objects.size(); i++) {
+        FirebaseVisionObject object = objects.get(i);
         if (object.getClassificationCategory() != FirebaseVisionObject.CATEGORY_UNKNOWN) {
           qualifiedObjects.add(object);
         }
@@ -99,65 +168,142 @@ public class ProminentObjectProcessor extends FrameProcessorBase<List<FirebaseVi
       objects = qualifiedObjects;
     }
 
-    if (objects.isEmpty()) {
+    FirebaseVisionObject object = objects.isEmpty() ? null : objects.get(0);
+    boolean overlapsReticle =
+        object != null && objectBoxOverlapsConfirmationReticle(graphicOverlay, object);
+
+    cameraSource.setFocusRegion(object != null ? object.getBoundingBox() : null);
+
+    ResultsPublisher publisher;
+    synchronized (idlePublishers) {
+      publisher = idlePublishers.poll();
+    }
+    if (publisher == null) {
+      publisher = new ResultsPublisher();
+    }
+    publisher.boxes.clear();
+    if (object != null) {
+      Integer trackingId = object.getTrackingId();
+      publisher.boxes.add(trackingId != null ? trackingId : UNTRACKED_ID, object.getBoundingBox());
+    }
+    publisher.object = object;
+    publisher.overlapsReticle = overlapsReticle;
+    publisher.frameTimeNs = frameTimeNs;
+    publisher.graphicOverlay = graphicOverlay;
+    return publisher;
+  }
+
+  /**
+   * Publishes the box of the object detected in a frame, which the tests drive the processor
+   * through, as only the detector makes ML Kit objects.
+   *
+   * @param boxes the box of the prominent object, or none.
+   * @return whether the object is confirmed, for the caller to hand it to the workflow.
+   */
+  @VisibleForTesting
+  @MainThread
+  boolean publishResults(
+      ObjectBoxes boxes, boolean overlapsReticle, long frameTimeNs, GraphicOverlay graphicOverlay) {
+    if (!workflowModel.isCameraLive()) {
+      return false;
+    }
+
+    updateTracker(boxes, frameTimeNs);
+
+    boolean hasObject = !boxes.isEmpty();
+    boolean isConfirmed = false;
+    if (!hasObject) {
       confirmationController.reset();
-      workflowModel.setWorkflowState(WorkflowState.DETECTING);
-    } else {
-      int objectIndex = 0;
-      FirebaseVisionObject object = objects.get(objectIndex);
-      if (objectBoxOverlapsConfirmationReticle(graphicOverlay, object)) {
-        // User is confirming the object selection.
-        confirmationController.confirming(object.getTrackingId());
-        workflowModel.confirmingObject(
-            new DetectedObject(object, objectIndex, image), confirmationController.getProgress());
-      } else {
-        // Object detected but user doesn't want to pick this one.
-        confirmationController.reset();
-        workflowModel.setWorkflowState(WorkflowState.DETECTED);
+      workflowModel.proposeWorkflowState(this, WorkflowState.DETECTING);
+    } else if (overlapsReticle) {
+      // User is confirming the object selection.
+      confirmationController.confirming(boxes.getTrackingId(0));
+      isConfirmed = confirmationController.isConfirmed();
+      if (!isConfirmed) {
+        // The workflow only keeps the object once it's confirmed, so it isn't wrapped before.
+        workflowModel.proposeWorkflowState(this, WorkflowState.CONFIRMING);
       }
+    } else {
+      // Object detected but user doesn't want to pick this one.
+      confirmationController.reset();
+      workflowModel.proposeWorkflowState(this, WorkflowState.DETECTED);
+    }
+    if (!isConfirmed) {
+      // The confirmation starts over, and so does the object handed to the workflow.
+      confirmedObject = null;
     }
 
-    graphicOverlay.clear();
-    if (objects.isEmpty()) {
-      graphicOverlay.add(new ObjectReticleGraphic(graphicOverlay, cameraReticleAnimator));
+    graphics.clear();
+    if (!hasObject) {
+      graphics.add(reticleGraphic);
       cameraReticleAnimator.start();
     } else {
-      if (objectBoxOverlapsConfirmationReticle(graphicOverlay, objects.get(0))) {
+      objectGraphic.update(boxes.getTrackingId(0), boxes.getBox(0));
+      graphics.add(objectGraphic);
+      if (overlapsReticle) {
         // User is confirming the object selection.
         cameraReticleAnimator.cancel();
-        graphicOverlay.add(
-            new ObjectGraphicInProminentMode(
-                graphicOverlay, objects.get(0), confirmationController));
         if (!confirmationController.isConfirmed()
             && PreferenceUtils.isAutoSearchEnabled(graphicOverlay.getContext())) {
           // Shows a loading indicator to visualize the confirming progress if in auto search mode.
-          graphicOverlay.add(new ObjectConfirmationGraphic(graphicOverlay, confirmationController));
+          graphics.add(confirmationGraphic);
         }
       } else {
         // Object is detected but the confirmation reticle is moved off the object box, which
         // indicates user is not trying to pick this object.
-        graphicOverlay.add(
-            new ObjectGraphicInProminentMode(
-                graphicOverlay, objects.get(0), confirmationController));
-        graphicOverlay.add(new ObjectReticleGraphic(graphicOverlay, cameraReticleAnimator));
+        graphics.add(reticleGraphic);
         cameraReticleAnimator.start();
       }
     }
-    graphicOverlay.invalidate();
+    layer.setGraphics(graphics);
+    return isConfirmed;
+  }
+
+  /**
+   * Hands the confirmed object to the workflow. The object and its crop are made at the first frame
+   * it's confirmed in, and handed again as they are for the frames it stays confirmed in.
+   */
+  @MainThread
+  private void confirmObject(FirebaseVisionObject object) {
+    if (confirmedObject == null) {
+      FrameCrop crop = cropPublishedFrame(object.getBoundingBox(), JpegPayload.MAX_IMAGE_WIDTH);
+      // The frame is recycled once published, so a box too small to crop can't be searched for.
+      if (crop == null) {
+        return;
+      }
+      confirmedObject = new DetectedObject(object, /* objectIndex= */ 0, crop);
+    }
+    workflowModel.confirmingObject(this, confirmedObject, confirmationController.getProgress());
+  }
+
+  /**
+   * Corrects the tracker by the object detected in the frame the processor got at the given time,
+   * and stops tracking any other.
+   */
+  private void updateTracker(ObjectBoxes boxes, long frameTimeNs) {
+    trackedIds.clear();
+    int trackingId = boxes.isEmpty() ? UNTRACKED_ID : boxes.getTrackingId(0);
+    if (trackingId != UNTRACKED_ID) {
+      trackedIds.add(trackingId);
+    }
+    tracker.retainOnly(trackedIds);
+    if (trackingId != UNTRACKED_ID) {
+      Rect box = boxes.getBox(0);
+      tracker.update(trackingId, box.left, box.top, box.right, box.bottom, frameTimeNs);
+    }
   }
 
   private boolean objectBoxOverlapsConfirmationReticle(
       GraphicOverlay graphicOverlay, FirebaseVisionObject object) {
-    RectF boxRect = graphicOverlay.translateRect(object.getBoundingBox());
-    float reticleCenterX = graphicOverlay.getWidth() / 2f;
-    float reticleCenterY = graphicOverlay.getHeight() / 2f;
-    RectF reticleRect =
-        new RectF(
-            reticleCenterX - reticleOuterRingRadius,
-            reticleCenterY - reticleOuterRingRadius,
-            reticleCenterX + reticleOuterRingRadius,
-            reticleCenterY + reticleOuterRingRadius);
-    return reticleRect.intersect(boxRect);
+    RectF boxRect = graphicOverlay.translateRect(object.getBoundingBox(), objectBox);
+    return ReticleHitTest.overlapsReticle(
+        boxRect.left,
+        boxRect.top,
+        boxRect.right,
+        boxRect.bottom,
+        graphicOverlay.getWidth() / 2f,
+        graphicOverlay.getHeight() / 2f,
+        reticleOuterRingRadius);
   }
 
   @Override
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.java.objectdetection;
+
+/**
+ * Tests whether the camera reticle selects a detected object. They take the edges of the object
+ * box in view coordinates rather than Android rects, so that they can be benchmarked on the host.
+ */
+final class ReticleHitTest {
+
+  private ReticleHitTest() {}
+
+  /** Returns whether the center of the box is closer than the given distance to the reticle. */
+  static boolean isBoxCenterNearReticle(
+      float left,
+      float top,
+      float right,
+      float bottom,
+      float reticleCenterX,
+      float reticleCenterY,
+      float distance) {
+    float dx = (left + right) / 2 - reticleCenterX;
+    float dy = (top + bottom) / 2 - reticleCenterY;
+    // Compares the squares, which saves the overflow-safe square root of Math.hypot.
+    return dx * dx + dy * dy < distance * distance;
+  }
+
+  /**
+   * Returns whether the box overlaps the square around the outer ring of the reticle. Boxes that
+   * only share an edge with it don't overlap, as with {@code RectF.intersects}.
+   */
+  static boolean overlapsReticle(
+      float left,
+      float top,
+      float right,
+      float bottom,
+      float reticleCenterX,
+      float reticleCenterY,
+      float reticleRadius) {
+    return left < reticleCenterX + reticleRadius
+        && reticleCenterX - reticleRadius < right
+        && top < reticleCenterY + reticleRadius
+        && reticleCenterY - reticleRadius < bottom;
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.java.objectdetection;
+
+import android.graphics.Rect;
+import android.graphics.RectF;
+import com.google.firebase.ml.md.java.camera.GraphicOverlay;
+
+/**
+ * The box of a detected object as a graphic draws it: where the {@link ObjectMotionTracker}
+ * predicts the object to be at the time of drawing, or where it was detected if it isn't tracked.
+ * Only used on the main thread.
+ */
+final class TrackedBox {
+
+  private final ObjectMotionTracker tracker;
+  private final Rect detectedBox = new Rect();
+  private final float[] predictedEdges = new float[4];
+  private int trackingId;
+
+  TrackedBox(ObjectMotionTracker tracker) {
+    this.tracker = tracker;
+  }
+
+  /** Moves the box onto the object with the given tracking id, detected with the given box. */
+  void update(int trackingId, Rect detectedBox) {
+    this.trackingId = trackingId;
+    this.detectedBox.set(detectedBox);
+  }
+
+  /**
+   * Writes the box in view coordinates into {@code out} and returns it. Keeps the overlay redrawing
+   * at the display rate while any of the tracked objects is predicted to move.
+   */
+  RectF translate(GraphicOverlay overlay, RectF out) {
+    long nowNs = System.nanoTime();
+    if (!tracker.predict(trackingId, nowNs, predictedEdges)) {
+      return overlay.translateRect(detectedBox, out);
+    }
+    if (tracker.isExtrapolating(nowNs)) {
+      overlay.postInvalidateOnAnimation();
+    }
+    return overlay.translateRect(
+        predictedEdges[0], predictedEdges[1], predictedEdges[2], predictedEdges[3], out);
+  }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.java.objectdetection;
+
+import androidx.annotation.Nullable;
+
+/**
+ * State kept for each tracked object, keyed by the tracking id the detector gave the object. The
+ * ids are kept unboxed in an open addressing table, so lookups and updates allocate nothing, only
+ * growing past the largest number of objects seen so far does.
+ *
+ * <p>Every entry remembers the generation it was last seen in. Callers that refresh the state once
+ * per frame start a new generation with {@link #nextGeneration()}, mark the objects of the frame
+ * with {@link #markSeen(int)}, and then drop the objects lost for more than a few generations with
+ * {@link #expire}.
+ *
+ * <p>Not thread-safe, each instance is meant to be used on a single thread.
+ */
+public final class TrackingIdMap<V> {
+
+  /** Told about every entry {@link #expire} drops, to release what it holds. */
+  public interface ExpiryListener<V> {
+    void onExpired(int trackingId, V value);
+  }
+
+  private static final int INITIAL_CAPACITY = 16;
+
+  // A slot is free when its value is null, the table is at most half full so probes stay short.
+  private int[] keys = new int[INITIAL_CAPACITY];
+  private Object[] values = new Object[INITIAL_CAPACITY];
+  private int[] seenGenerations = new int[INITIAL_CAPACITY];
+  private int size;
+  private int generation;
+
+  /** Returns the state of the given object, or null if there's none. */
+  @Nullable
+  public V get(int trackingId) {
+    int slot = findSlot(trackingId);
+    return slot >= 0 ? valueAt(slot) : null;
+  }
+
+  /** Sets the state of the given object, which is seen in the current generation. */
+  public void put(int trackingId, V value) {
+    if (value == null) {
+      throw new NullPointerException("The value of " + trackingId + " is null.");
+    }
+    int slot = findSlot(trackingId);
+    if (slot < 0) {
+      if (size + 1 > keys.length / 2) {
+        resize(keys.length * 2);
+      }
+      slot = insertionSlot(trackingId);
+      keys[slot] = trackingId;
+      size++;
+    }
+    values[slot] = value;
+    seenGenerations[slot] = generation;
+  }
+
+  /**
+   * Marks the given object as seen in the current generation, and returns whether there's any
+   * state for it.
+   */
+  public boolean markSeen(int trackingId) {
+    int slot = findSlot(trackingId);
+    if (slot < 0) {
+      return false;
+    }
+    seenGenerations[slot] = generation;
+    return true;
+  }
+
+  /** Removes the state of the given object, and returns it, or null if there was none. */
+  @Nullable
+  public V remove(int trackingId) {
+    int slot = findSlot(trackingId);
+    if (slot < 0) {
+      return null;
+    }
+    V value = valueAt(slot);
+    removeAt(slot);
+    return value;
+  }
+
+  public void clear() {
+    for (int i = 0; i < values.length; i++) {
+      values[i] = null;
+    }
+    size = 0;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /** Starts a new generation, the objects seen from now on are seen in it. */
+  public void nextGeneration() {
+    generation++;
+  }
+
+  /**
+   * Removes the objects that weren't seen in the current generation nor in the given number of
+   * generations before it, and tells the listener about each of them.
+   */
+  public void expire(int maxUnseenGenerations, ExpiryListener<? super V> listener) {
+    int slot = 0;
+    while (slot < values.length) {
+      // Compares the difference rather than the generations, which is safe from overflow.
+      if (values[slot] != null && generation - seenGenerations[slot] > maxUnseenGenerations) {
+        int trackingId = keys[slot];
+        V value = valueAt(slot);
+        removeAt(slot);
+        listener.onExpired(trackingId, value);
+        // Another entry may have been shifted into the slot, so it's looked at again.
+      } else {
+        slot++;
+      }
+    }
+  }
+
+  private int findSlot(int trackingId) {
+    int mask = keys.length - 1;
+    for (int slot = hash(trackingId) & mask; values[slot] != null; slot = (slot + 1) & mask) {
+      if (keys[slot] == trackingId) {
+        return slot;
+      }
+    }
+    return -1;
+  }
+
+  private int insertionSlot(int trackingId) {
+    int mask = keys.length - 1;
+    int slot = hash(trackingId) & mask;
+    while (values[slot] != null) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  /**
+   * Frees the given slot, and shifts back the entries after it that would no longer be found past
+   * the free slot, rather than leaving a tombstone behind.
+   */
+  private void removeAt(int slot) {
+    int mask = keys.length - 1;
+    int free = slot;
+    int next = (free + 1) & mask;
+    while (values[next] != null) {
+      int home = hash(keys[next]) & mask;
+      // Moves the entry unless its home slot lies cyclically after the free slot, up to itself.
+      if (((next - home) & mask) >= ((next - free) & mask)) {
+        keys[free] = keys[next];
+        values[free] = values[next];
+        seenGenerations[free] = seenGenerations[next];
+        free = next;
+      }
+      next = (next + 1) & mask;
+    }
+    values[free] = null;
+    size--;
+  }
+
+  private void resize(int capacity) {
+    int[] oldKeys = keys;
+    Object[] oldValues = values;
+    int[] oldSeenGenerations = seenGenerations;
+    keys = new int[capacity];
+    values = new Object[capacity];
+    seenGenerations = new int[capacity];
+    for (int i = 0; i < oldValues.length; i++) {
+      if (oldValues[i] != null) {
+        int slot = insertionSlot(oldKeys[i]);
+        keys[slot] = oldKeys[i];
+        values[slot] = oldValues[i];
+        seenGenerations[slot] = oldSeenGenerations[i];
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private V valueAt(int slot) {
+    return (V) values[slot];
+  }
+
+  /** Spreads the consecutive ids the detector hands out over the table. */
+  private static int hash(int trackingId) {
+    int hash = trackingId * 0x9E3779B9;
+    return hash ^ (hash >>> 16);
+  }
+}
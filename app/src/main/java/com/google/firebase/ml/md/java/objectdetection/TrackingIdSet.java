@@ -0,0 +1,51 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.java.objectdetection;
+
+import java.util.Arrays;
+
+/**
+ * The tracking ids of the objects detected in a frame, to tell which of the objects of the earlier
+ * frames are still tracked. It's refilled for every frame rather than recreated, and the ids are
+ * kept unboxed, so the lookups don't allocate.
+ */
+final class TrackingIdSet {
+
+  private int[] ids = new int[8];
+  private int size;
+
+  void clear() {
+    size = 0;
+  }
+
+  void add(int id) {
+    if (size == ids.length) {
+      ids = Arrays.copyOf(ids, size * 2);
+    }
+    ids[size++] = id;
+  }
+
+  /** Scans the ids, which beats hashing for the handful of objects a frame has. */
+  boolean contains(int id) {
+    for (int i = 0; i < size; i++) {
+      if (ids[i] == id) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -54,10 +54,14 @@ public class SearchedObject {
     return object.getBoundingBox();
   }
 
+  /** Returns the thumbnail of the object, or null if the object has no bitmap. */
+  @Nullable
   public synchronized Bitmap getObjectThumbnail() {
     if (objectThumbnail == null) {
-      objectThumbnail =
-          Utils.getCornerRoundedBitmap(object.getBitmap(), objectThumbnailCornerRadius);
+      Bitmap objectBitmap = object.getBitmap();
+      if (objectBitmap != null) {
+        objectThumbnail = Utils.getCornerRoundedBitmap(objectBitmap, objectThumbnailCornerRadius);
+      }
     }
     return objectThumbnail;
   }
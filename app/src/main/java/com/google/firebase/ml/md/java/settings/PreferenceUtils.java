@@ -45,6 +45,42 @@ public class PreferenceUtils {
         context, R.string.pref_key_object_detector_enable_classification, false);
   }
 
+  public static boolean isBarcodeScanningWithObjectsEnabled(Context context) {
+    return getBooleanPref(context, R.string.pref_key_object_detector_scan_barcodes, false);
+  }
+
+  public static int getObjectFramesPerDetection(Context context) {
+    return getIntPref(context, R.string.pref_key_object_frames_per_detection, 1);
+  }
+
+  public static boolean isDirectFrameBufferEnabled(Context context) {
+    return getBooleanPref(context, R.string.pref_key_use_direct_frame_buffers, false);
+  }
+
+  public static int getMaxDetectionsInFlight(Context context) {
+    return getIntPref(context, R.string.pref_key_max_detections_in_flight, 1);
+  }
+
+  public static boolean isSceneChangeGatingEnabled(Context context) {
+    return getBooleanPref(context, R.string.pref_key_skip_unchanged_frames, false);
+  }
+
+  public static boolean isPreviewSizeCalibrationEnabled(Context context) {
+    return getBooleanPref(context, R.string.pref_key_calibrate_preview_size, false);
+  }
+
+  public static boolean isPerformanceHudEnabled(Context context) {
+    return getBooleanPref(context, R.string.pref_key_show_performance_hud, false);
+  }
+
+  /** Returns the camera backend to use, one of the values of the camera backend setting. */
+  public static String getCameraBackend(Context context) {
+    SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+    String prefKey = context.getString(R.string.pref_key_camera_backend);
+    return sharedPreferences.getString(
+        prefKey, context.getString(R.string.pref_entry_value_camera_backend_legacy));
+  }
+
   public static void saveStringPreference(
       Context context, @StringRes int prefKeyId, @Nullable String value) {
     PreferenceManager.getDefaultSharedPreferences(context)
@@ -90,6 +126,10 @@ public class PreferenceUtils {
     return new RectF(cx - boxWidth / 2, cy - boxHeight / 2, cx + boxWidth / 2, cy + boxHeight / 2);
   }
 
+  public static boolean isBarcodeDetectionRegionEnabled(Context context) {
+    return getBooleanPref(context, R.string.pref_key_limit_barcode_detection_to_reticle, true);
+  }
+
   public static boolean shouldDelayLoadingBarcodeResult(Context context) {
     return getBooleanPref(context, R.string.pref_key_delay_loading_barcode_result, true);
   }
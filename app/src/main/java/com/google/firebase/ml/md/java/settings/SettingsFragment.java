@@ -16,14 +16,12 @@
 
 package com.google.firebase.ml.md.java.settings;
 
-import android.hardware.Camera;
 import android.os.Bundle;
 import androidx.preference.ListPreference;
 import androidx.preference.PreferenceFragmentCompat;
+import com.google.firebase.ml.md.java.camera.CameraCapabilityStore;
 import com.google.firebase.ml.md.java.camera.CameraSizePair;
-import com.google.firebase.ml.md.java.camera.CameraSource;
 import com.google.firebase.ml.md.R;
-import com.google.firebase.ml.md.java.Utils;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -44,43 +42,54 @@ public class SettingsFragment extends PreferenceFragmentCompat {
       return;
     }
 
-    Camera camera = null;
-    try {
-      camera = Camera.open(CameraSource.CAMERA_FACING_BACK);
-      List<CameraSizePair> previewSizeList = Utils.generateValidPreviewSizeList(camera);
-      String[] previewSizeStringValues = new String[previewSizeList.size()];
-      Map<String, String> previewToPictureSizeStringMap = new HashMap<>();
-      for (int i = 0; i < previewSizeList.size(); i++) {
-        CameraSizePair sizePair = previewSizeList.get(i);
-        previewSizeStringValues[i] = sizePair.preview.toString();
-        if (sizePair.picture != null) {
-          previewToPictureSizeStringMap.put(
-              sizePair.preview.toString(), sizePair.picture.toString());
-        }
-      }
-      previewSizePreference.setEntries(previewSizeStringValues);
-      previewSizePreference.setEntryValues(previewSizeStringValues);
-      previewSizePreference.setSummary(previewSizePreference.getEntry());
-      previewSizePreference.setOnPreferenceChangeListener(
-          (preference, newValue) -> {
-            String newPreviewSizeStringValue = (String) newValue;
-            previewSizePreference.setSummary(newPreviewSizeStringValue);
-            PreferenceUtils.saveStringPreference(
-                getActivity(),
-                R.string.pref_key_rear_camera_picture_size,
-                previewToPictureSizeStringMap.get(newPreviewSizeStringValue));
-            return true;
-          });
+    // The sizes come from the capability store, which only opens the camera, in the background, the
+    // first time around.
+    previewSizePreference.setEnabled(false);
+    CameraCapabilityStore.load(requireContext())
+        .addOnSuccessListener(
+            requireActivity(),
+            capabilities -> {
+              populatePreviewSizePreference(previewSizePreference, capabilities.previewSizePairs);
+              previewSizePreference.setEnabled(true);
+            })
+        .addOnFailureListener(
+            requireActivity(),
+            e -> {
+              // If there's no back camera, hide the corresponding preference.
+              if (previewSizePreference.getParent() != null) {
+                previewSizePreference.getParent().removePreference(previewSizePreference);
+              }
+            });
+  }
 
-    } catch (Exception e) {
-      // If there's no camera for the given camera id, hide the corresponding preference.
-      if (previewSizePreference.getParent() != null) {
-        previewSizePreference.getParent().removePreference(previewSizePreference);
-      }
-    } finally {
-      if (camera != null) {
-        camera.release();
+  private void populatePreviewSizePreference(
+      ListPreference previewSizePreference, List<CameraSizePair> previewSizeList) {
+    String[] previewSizeStringValues = new String[previewSizeList.size()];
+    Map<String, String> previewToPictureSizeStringMap = new HashMap<>();
+    for (int i = 0; i < previewSizeList.size(); i++) {
+      CameraSizePair sizePair = previewSizeList.get(i);
+      previewSizeStringValues[i] = sizePair.preview.toString();
+      if (sizePair.picture != null) {
+        previewToPictureSizeStringMap.put(
+            sizePair.preview.toString(), sizePair.picture.toString());
       }
     }
+    previewSizePreference.setEntries(previewSizeStringValues);
+    previewSizePreference.setEntryValues(previewSizeStringValues);
+    // The size the camera picks on its own isn't stored in the preference.
+    previewSizePreference.setSummary(
+        previewSizePreference.getEntry() != null
+            ? previewSizePreference.getEntry()
+            : getString(R.string.pref_summary_rear_camera_preview_size_automatic));
+    previewSizePreference.setOnPreferenceChangeListener(
+        (preference, newValue) -> {
+          String newPreviewSizeStringValue = (String) newValue;
+          previewSizePreference.setSummary(newPreviewSizeStringValue);
+          PreferenceUtils.saveStringPreference(
+              getActivity(),
+              R.string.pref_key_rear_camera_picture_size,
+              previewToPictureSizeStringMap.get(newPreviewSizeStringValue));
+          return true;
+        });
   }
 }
@@ -38,6 +38,7 @@ import com.google.firebase.ml.md.kotlin.barcodedetection.BarcodeProcessor
 import com.google.firebase.ml.md.kotlin.barcodedetection.BarcodeResultFragment
 import com.google.firebase.ml.md.kotlin.camera.CameraSource
 import com.google.firebase.ml.md.kotlin.camera.CameraSourcePreview
+import com.google.firebase.ml.md.kotlin.camera.PerformanceHudView
 import com.google.firebase.ml.md.kotlin.settings.SettingsActivity
 import java.io.IOException
 import java.util.ArrayList
@@ -48,6 +49,7 @@ class LiveBarcodeScanningActivity : AppCompatActivity(), OnClickListener {
     private var cameraSource: CameraSource? = null
     private var preview: CameraSourcePreview? = null
     private var graphicOverlay: GraphicOverlay? = null
+    private var performanceHud: PerformanceHudView? = null
     private var settingsButton: View? = null
     private var flashButton: View? = null
     private var promptChip: Chip? = null
@@ -64,6 +66,7 @@ class LiveBarcodeScanningActivity : AppCompatActivity(), OnClickListener {
             setOnClickListener(this@LiveBarcodeScanningActivity)
             cameraSource = CameraSource(this)
         }
+        performanceHud = findViewById(R.id.performance_hud)
 
         promptChip = findViewById(R.id.bottom_prompt_chip)
         promptChipAnimator =
@@ -88,8 +91,9 @@ class LiveBarcodeScanningActivity : AppCompatActivity(), OnClickListener {
         workflowModel?.markCameraFrozen()
         settingsButton?.isEnabled = true
         currentWorkflowState = WorkflowState.NOT_STARTED
-        cameraSource?.setFrameProcessor(BarcodeProcessor(graphicOverlay!!, workflowModel!!))
+        cameraSource?.let { it.setFrameProcessor(BarcodeProcessor(graphicOverlay!!, workflowModel!!, it)) }
         workflowModel?.setWorkflowState(WorkflowState.DETECTING)
+        cameraSource?.let { performanceHud?.start(it) }
     }
 
     override fun onPostResume() {
@@ -99,6 +103,7 @@ class LiveBarcodeScanningActivity : AppCompatActivity(), OnClickListener {
 
     override fun onPause() {
         super.onPause()
+        performanceHud?.stop()
         currentWorkflowState = WorkflowState.NOT_STARTED
         stopCameraPreview()
     }
@@ -175,6 +180,11 @@ class LiveBarcodeScanningActivity : AppCompatActivity(), OnClickListener {
                     promptChip?.setText(R.string.prompt_point_at_a_barcode)
                     startCameraPreview()
                 }
+                WorkflowState.ZOOMING -> {
+                    promptChip?.visibility = View.VISIBLE
+                    promptChip?.setText(R.string.prompt_hold_camera_steady)
+                    startCameraPreview()
+                }
                 WorkflowState.CONFIRMING -> {
                     promptChip?.visibility = View.VISIBLE
                     promptChip?.setText(R.string.prompt_move_camera_closer)
@@ -39,11 +39,17 @@ import com.google.android.material.floatingactionbutton.ExtendedFloatingActionBu
 import com.google.common.base.Objects
 import com.google.common.collect.ImmutableList
 import com.google.firebase.ml.md.R
+import com.google.firebase.ml.md.kotlin.barcodedetection.BarcodeField
+import com.google.firebase.ml.md.kotlin.barcodedetection.BarcodeProcessor
+import com.google.firebase.ml.md.kotlin.barcodedetection.BarcodeResultFragment
+import com.google.firebase.ml.md.kotlin.camera.CompositeFrameProcessor
+import com.google.firebase.ml.md.kotlin.camera.FrameProcessor
 import com.google.firebase.ml.md.kotlin.camera.GraphicOverlay
 import com.google.firebase.ml.md.kotlin.camera.WorkflowModel
 import com.google.firebase.ml.md.kotlin.camera.WorkflowModel.WorkflowState
 import com.google.firebase.ml.md.kotlin.camera.CameraSource
 import com.google.firebase.ml.md.kotlin.camera.CameraSourcePreview
+import com.google.firebase.ml.md.kotlin.camera.PerformanceHudView
 import com.google.firebase.ml.md.kotlin.objectdetection.MultiObjectProcessor
 import com.google.firebase.ml.md.kotlin.objectdetection.ProminentObjectProcessor
 import com.google.firebase.ml.md.kotlin.productsearch.BottomSheetScrimView
@@ -52,6 +58,7 @@ import com.google.firebase.ml.md.kotlin.productsearch.SearchEngine
 import com.google.firebase.ml.md.kotlin.settings.PreferenceUtils
 import com.google.firebase.ml.md.kotlin.settings.SettingsActivity
 import java.io.IOException
+import java.util.ArrayList
 
 /** Demonstrates the object detection and visual search workflow using camera preview.  */
 class LiveObjectDetectionActivity : AppCompatActivity(), OnClickListener {
@@ -59,6 +66,7 @@ class LiveObjectDetectionActivity : AppCompatActivity(), OnClickListener {
     private var cameraSource: CameraSource? = null
     private var preview: CameraSourcePreview? = null
     private var graphicOverlay: GraphicOverlay? = null
+    private var performanceHud: PerformanceHudView? = null
     private var settingsButton: View? = null
     private var flashButton: View? = null
     private var promptChip: Chip? = null
@@ -88,6 +96,7 @@ class LiveObjectDetectionActivity : AppCompatActivity(), OnClickListener {
             setOnClickListener(this@LiveObjectDetectionActivity)
             cameraSource = CameraSource(this)
         }
+        performanceHud = findViewById(R.id.performance_hud)
         promptChip = findViewById(R.id.bottom_prompt_chip)
         promptChipAnimator =
             (AnimatorInflater.loadAnimator(this, R.animator.bottom_prompt_chip_enter) as AnimatorSet).apply {
@@ -119,18 +128,30 @@ class LiveObjectDetectionActivity : AppCompatActivity(), OnClickListener {
         settingsButton?.isEnabled = true
         bottomSheetBehavior?.state = BottomSheetBehavior.STATE_HIDDEN
         currentWorkflowState = WorkflowState.NOT_STARTED
-        cameraSource?.setFrameProcessor(
-                if (PreferenceUtils.isMultipleObjectsMode(this)) {
-                    MultiObjectProcessor(graphicOverlay!!, workflowModel!!)
-                } else {
-                    ProminentObjectProcessor(graphicOverlay!!, workflowModel!!)
-                }
-        )
+        cameraSource?.let { it.setFrameProcessor(createFrameProcessor(it)) }
         workflowModel?.setWorkflowState(WorkflowState.DETECTING)
+        cameraSource?.let { performanceHud?.start(it) }
+    }
+
+    private fun createFrameProcessor(cameraSource: CameraSource): FrameProcessor {
+        if (!PreferenceUtils.isMultipleObjectsMode(this)) {
+            return ProminentObjectProcessor(graphicOverlay!!, workflowModel!!, cameraSource)
+        }
+        val objectProcessor = MultiObjectProcessor(graphicOverlay!!, workflowModel!!)
+        if (!PreferenceUtils.isBarcodeScanningWithObjectsEnabled(this)) {
+            return objectProcessor
+        }
+        // Scans barcodes out of the same frames, which the multi-object processor leaves the focus and zoom of the
+        // camera to, unlike the prominent one that focuses on its object.
+        return CompositeFrameProcessor(
+            objectProcessor,
+            BarcodeProcessor(graphicOverlay!!, workflowModel!!, cameraSource)
+        )
     }
 
     override fun onPause() {
         super.onPause()
+        performanceHud?.stop()
         currentWorkflowState = WorkflowState.NOT_STARTED
         stopCameraPreview()
     }
@@ -294,6 +315,17 @@ class LiveObjectDetectionActivity : AppCompatActivity(), OnClickListener {
                     preview?.height?.div(2) ?: BottomSheetBehavior.PEEK_HEIGHT_AUTO
                 bottomSheetBehavior?.state = BottomSheetBehavior.STATE_COLLAPSED
             })
+
+            // Observes the barcode scanned along with the objects, if happens, show it over the frozen preview, which
+            // the dismissal of the result restarts.
+            detectedBarcode.observe(this@LiveObjectDetectionActivity, Observer { barcode ->
+                if (barcode != null) {
+                    stopCameraPreview()
+                    val barcodeFieldList = ArrayList<BarcodeField>()
+                    barcodeFieldList.add(BarcodeField("Raw Value", barcode.rawValue ?: ""))
+                    BarcodeResultFragment.show(supportFragmentManager, barcodeFieldList)
+                }
+            })
         }
     }
 
@@ -303,7 +335,7 @@ class LiveObjectDetectionActivity : AppCompatActivity(), OnClickListener {
         searchButton?.visibility = View.GONE
         searchProgressBar?.visibility = View.GONE
         when (workflowState) {
-            WorkflowState.DETECTING, WorkflowState.DETECTED, WorkflowState.CONFIRMING -> {
+            WorkflowState.DETECTING, WorkflowState.DETECTED, WorkflowState.ZOOMING, WorkflowState.CONFIRMING -> {
                 promptChip?.visibility = View.VISIBLE
                 promptChip?.setText(
                         if (workflowState == WorkflowState.CONFIRMING)
@@ -342,7 +374,7 @@ class LiveObjectDetectionActivity : AppCompatActivity(), OnClickListener {
 
         searchProgressBar?.visibility = View.GONE
         when (workflowState) {
-            WorkflowState.DETECTING, WorkflowState.DETECTED, WorkflowState.CONFIRMING -> {
+            WorkflowState.DETECTING, WorkflowState.DETECTED, WorkflowState.ZOOMING, WorkflowState.CONFIRMING -> {
                 promptChip?.visibility = View.VISIBLE
                 promptChip?.setText(R.string.prompt_point_at_an_object)
                 searchButton?.visibility = View.GONE
@@ -28,6 +28,8 @@ import androidx.appcompat.app.AppCompatDelegate
 import androidx.recyclerview.widget.LinearLayoutManager
 import androidx.recyclerview.widget.RecyclerView
 import com.google.firebase.ml.md.R
+import com.google.firebase.ml.md.kotlin.camera.CameraCapabilityStore
+import com.google.firebase.ml.md.kotlin.camera.DetectorPool
 
 /** Entry activity to select the detection mode.  */
 class MainActivity : AppCompatActivity() {
@@ -54,6 +56,11 @@ class MainActivity : AppCompatActivity() {
         super.onResume()
         if (!Utils.allPermissionsGranted(this)) {
             Utils.requestRuntimePermissions(this)
+        } else {
+            // Probes the camera ahead of the first camera start, while nothing else uses the camera.
+            CameraCapabilityStore.load(this)
+            // Loads the detector models ahead of the first detection, so the live screens start detecting right away.
+            DetectorPool.warmUp(this)
         }
     }
 
@@ -41,8 +41,8 @@ import com.google.android.material.bottomsheet.BottomSheetBehavior
 import com.google.android.material.chip.Chip
 import com.google.common.collect.ImmutableList
 import com.google.firebase.ml.md.R
+import com.google.firebase.ml.md.kotlin.camera.DetectorPool
 import com.google.firebase.ml.md.kotlin.productsearch.BottomSheetScrimView
-import com.google.firebase.ml.vision.FirebaseVision
 import com.google.firebase.ml.vision.common.FirebaseVisionImage
 import com.google.firebase.ml.vision.objects.FirebaseVisionObject
 import com.google.firebase.ml.vision.objects.FirebaseVisionObjectDetector
@@ -80,7 +80,7 @@ class StaticObjectDetectionActivity : AppCompatActivity(), View.OnClickListener
     private var detectedObjectNum = 0
     private var currentSelectedObjectIndex = 0
 
-    private var detector: FirebaseVisionObjectDetector? = null
+    private var detector: DetectorPool.Lease<FirebaseVisionObjectDetector>? = null
     private var searchEngine: SearchEngine? = null
 
     override fun onCreate(savedInstanceState: Bundle?) {
@@ -111,23 +111,18 @@ class StaticObjectDetectionActivity : AppCompatActivity(), View.OnClickListener
         findViewById<View>(R.id.close_button).setOnClickListener(this)
         findViewById<View>(R.id.photo_library_button).setOnClickListener(this)
 
-        detector = FirebaseVision.getInstance()
-                .getOnDeviceObjectDetector(
-                        FirebaseVisionObjectDetectorOptions.Builder()
-                                .setDetectorMode(FirebaseVisionObjectDetectorOptions.SINGLE_IMAGE_MODE)
-                                .enableMultipleObjects()
-                                .build()
-                )
+        detector = DetectorPool.acquireObjectDetector(
+                this,
+                FirebaseVisionObjectDetectorOptions.SINGLE_IMAGE_MODE,
+                /* multipleObjects= */ true,
+                /* classification= */ false
+        )
         intent.data?.let(::detectObjects)
     }
 
     override fun onDestroy() {
         super.onDestroy()
-        try {
-            detector?.close()
-        } catch (e: IOException) {
-            Log.e(TAG, "Failed to close the detector!", e)
-        }
+        detector?.release()
 
         searchEngine?.shutdown()
     }
@@ -184,10 +179,10 @@ class StaticObjectDetectionActivity : AppCompatActivity(), View.OnClickListener
                             }
 
                             val collapsedStateHeight = bottomSheetBehavior!!.peekHeight.coerceAtMost(bottomSheet.height)
-                            val searchedObjectForBottomSheet = searchedObjectForBottomSheet
+                            val objectThumbnail = searchedObjectForBottomSheet?.getObjectThumbnail()
                                     ?: return
                             bottomSheetScrimView?.updateWithThumbnailTranslate(
-                                    searchedObjectForBottomSheet.getObjectThumbnail(),
+                                    objectThumbnail,
                                     collapsedStateHeight,
                                     slideOffset,
                                     bottomSheet)
@@ -228,7 +223,7 @@ class StaticObjectDetectionActivity : AppCompatActivity(), View.OnClickListener
         inputImageView?.setImageBitmap(inputBitmap)
         loadingView?.visibility = View.VISIBLE
         val image = FirebaseVisionImage.fromBitmap(inputBitmap!!)
-        detector?.processImage(image)
+        detector?.get()?.processImage(image)
                 ?.addOnSuccessListener { objects -> onObjectsDetected(image, objects) }
                 ?.addOnFailureListener { onObjectsDetected(image, ImmutableList.of()) }
     }
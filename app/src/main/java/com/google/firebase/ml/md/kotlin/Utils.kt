@@ -38,10 +38,10 @@ import android.util.Log
 import androidx.core.app.ActivityCompat
 import androidx.exifinterface.media.ExifInterface
 import com.google.firebase.ml.md.kotlin.camera.CameraSizePair
+import com.google.firebase.ml.md.kotlin.camera.PreviewSizeSelector
 import java.io.IOException
 import java.io.InputStream
 import java.util.ArrayList
-import kotlin.math.abs
 
 /** Utility class to provide helper methods.  */
 object Utils {
@@ -50,12 +50,18 @@ object Utils {
      * If the absolute difference between aspect ratios is less than this tolerance, they are
      * considered to be the same aspect ratio.
      */
-    const val ASPECT_RATIO_TOLERANCE = 0.01f
+    const val ASPECT_RATIO_TOLERANCE = PreviewSizeSelector.ASPECT_RATIO_TOLERANCE
 
     internal const val REQUEST_CODE_PHOTO_LIBRARY = 1
 
     private const val TAG = "Utils"
 
+    private val CAMERA_SIZE_READER = object : PreviewSizeSelector.SizeReader<Camera.Size> {
+        override fun getWidth(size: Camera.Size): Int = size.width
+
+        override fun getHeight(size: Camera.Size): Int = size.height
+    }
+
     internal fun requestRuntimePermissions(activity: Activity) {
 
         val allNeededPermissions = getRequiredPermissions(activity).filter {
@@ -94,23 +100,20 @@ object Utils {
      * be set to a size that is the same aspect ratio as the preview size we choose. Otherwise, the
      * preview images may be distorted on some devices.
      */
-    fun generateValidPreviewSizeList(camera: Camera): List<CameraSizePair> {
-        val parameters = camera.parameters
+    fun generateValidPreviewSizeList(parameters: Camera.Parameters): List<CameraSizePair> {
         val supportedPreviewSizes = parameters.supportedPreviewSizes
         val supportedPictureSizes = parameters.supportedPictureSizes
+        // By pairing with the first picture size of the same aspect ratio, we favor the higher
+        // resolutions. We choose the highest resolution in order to support taking the full resolution
+        // picture later.
+        val pictureSizeIndices =
+            PreviewSizeSelector.matchPictureSizes(supportedPreviewSizes, supportedPictureSizes, CAMERA_SIZE_READER)
         val validPreviewSizes = ArrayList<CameraSizePair>()
-        for (previewSize in supportedPreviewSizes) {
-            val previewAspectRatio = previewSize.width.toFloat() / previewSize.height.toFloat()
-
-            // By looping through the picture sizes in order, we favor the higher resolutions.
-            // We choose the highest resolution in order to support taking the full resolution
-            // picture later.
-            for (pictureSize in supportedPictureSizes) {
-                val pictureAspectRatio = pictureSize.width.toFloat() / pictureSize.height.toFloat()
-                if (abs(previewAspectRatio - pictureAspectRatio) < ASPECT_RATIO_TOLERANCE) {
-                    validPreviewSizes.add(CameraSizePair(previewSize, pictureSize))
-                    break
-                }
+        for (i in pictureSizeIndices.indices) {
+            if (pictureSizeIndices[i] >= 0) {
+                validPreviewSizes.add(
+                    CameraSizePair(supportedPreviewSizes[i], supportedPictureSizes[pictureSizeIndices[i]])
+                )
             }
         }
 
@@ -17,11 +17,16 @@
 package com.google.firebase.ml.md.kotlin.barcodedetection
 
 import android.animation.ValueAnimator
+import android.graphics.Rect
+import android.os.SystemClock
 import android.util.Log
+import androidx.annotation.GuardedBy
 import androidx.annotation.MainThread
+import androidx.annotation.WorkerThread
 import com.google.android.gms.tasks.Task
 import com.google.firebase.ml.md.kotlin.camera.CameraReticleAnimator
-import com.google.firebase.ml.vision.FirebaseVision
+import com.google.firebase.ml.md.kotlin.camera.CameraSource
+import com.google.firebase.ml.md.kotlin.camera.DetectorPool
 import com.google.firebase.ml.vision.barcode.FirebaseVisionBarcode
 import com.google.firebase.ml.vision.common.FirebaseVisionImage
 import com.google.firebase.ml.md.kotlin.camera.GraphicOverlay
@@ -29,73 +34,204 @@ import com.google.firebase.ml.md.kotlin.camera.WorkflowModel
 import com.google.firebase.ml.md.kotlin.camera.WorkflowModel.WorkflowState
 import com.google.firebase.ml.md.kotlin.camera.FrameProcessorBase
 import com.google.firebase.ml.md.kotlin.settings.PreferenceUtils
-import java.io.IOException
+import java.util.ArrayDeque
+import java.util.ArrayList
 
 /** A processor to run the barcode detector.  */
-class BarcodeProcessor(graphicOverlay: GraphicOverlay, private val workflowModel: WorkflowModel) :
-    FrameProcessorBase<List<FirebaseVisionBarcode>>() {
+class BarcodeProcessor(
+    graphicOverlay: GraphicOverlay,
+    private val workflowModel: WorkflowModel,
+    private val cameraSource: CameraSource
+) : FrameProcessorBase<List<FirebaseVisionBarcode>>(graphicOverlay.context) {
 
-    private val detector = FirebaseVision.getInstance().visionBarcodeDetector
+    private val detector = DetectorPool.acquireBarcodeDetector(graphicOverlay.context)
     private val cameraReticleAnimator: CameraReticleAnimator = CameraReticleAnimator(graphicOverlay)
+    // Kept for every frame without a barcode rather than recreated, made once the overlay is laid out
+    // as it sizes itself to the reticle box.
+    private var reticleGraphic: BarcodeReticleGraphic? = null
+    // The layer of the overlay this processor draws on, next to those of any other processors.
+    private val layer = graphicOverlay.addLayer()
+    // Only used on the main thread, to lay out the graphics of a frame before they replace the last.
+    private val graphics = ArrayList<GraphicOverlay.Graphic>()
+
+    private val detectionRegionEnabled = PreferenceUtils.isBarcodeDetectionRegionEnabled(graphicOverlay.context)
+    // Computed on the first frame after every layout of the overlay, rather than for every frame.
+    @Volatile
+    private var reticleRegions: ReticleRegions? = null
+
+    // The publishers that ran, kept for the results of the next frames.
+    @GuardedBy("idlePublishers")
+    private val idlePublishers = ArrayDeque<ResultsPublisher>()
+
+    private var lastZoomStepMs = 0L
+    private var lastBarcodeMs = 0L
+
+    /** Publishes the results of a frame on the main thread, and is recycled once it did.  */
+    private inner class ResultsPublisher : Runnable {
+        var barcodeInCenter: FirebaseVisionBarcode? = null
+        var sizeProgress = 0f
+        var zooming = false
+        var graphicOverlay: GraphicOverlay? = null
+
+        @MainThread
+        override fun run() {
+            publishResults(barcodeInCenter, sizeProgress, zooming, graphicOverlay!!)
+            barcodeInCenter = null
+            graphicOverlay = null
+            synchronized(idlePublishers) {
+                idlePublishers.add(this)
+            }
+        }
+    }
+
+    /** The regions of the preview that the reticle box covers, for one layout of the overlay.  */
+    private class ReticleRegions(graphicOverlay: GraphicOverlay, val layoutVersion: Int) {
+        // Null as long as the preview size isn't known yet.
+        val focusRegion: Rect?
+        val detectionRegion: Rect?
+
+        init {
+            val box = PreferenceUtils.getBarcodeReticleBox(graphicOverlay)
+            focusRegion = graphicOverlay.translateRectToPreview(box)
+            box.inset(-box.width() * DETECTION_REGION_PADDING, -box.height() * DETECTION_REGION_PADDING)
+            detectionRegion = graphicOverlay.translateRectToPreview(box)
+        }
+    }
+
+    /** Limits the detection to the reticle box, only a barcode covering its center gets picked.  */
+    override fun getDetectionRegion(graphicOverlay: GraphicOverlay): Rect? =
+        if (detectionRegionEnabled) getReticleRegions(graphicOverlay).detectionRegion else null
+
+    private fun getReticleRegions(graphicOverlay: GraphicOverlay): ReticleRegions {
+        val layoutVersion = graphicOverlay.layoutVersion
+        reticleRegions?.let { if (it.layoutVersion == layoutVersion) return it }
+        return ReticleRegions(graphicOverlay, layoutVersion).also { reticleRegions = it }
+    }
 
     override fun detectInImage(image: FirebaseVisionImage): Task<List<FirebaseVisionBarcode>> =
-        detector.detectInImage(image)
+        detector.get().detectInImage(image)
 
-    @MainThread
-    override fun onSuccess(
+    @WorkerThread
+    override fun onResults(
         image: FirebaseVisionImage,
         results: List<FirebaseVisionBarcode>,
+        detectionRegion: Rect?,
         graphicOverlay: GraphicOverlay
-    ) {
+    ): Runnable? {
 
-        if (!workflowModel.isCameraLive) return
+        if (!workflowModel.isCameraLive) return null
 
         Log.d(TAG, "Barcode result size: ${results.size}")
 
-        // Picks the barcode, if exists, that covers the center of graphic overlay.
+        // Focuses and meters on the reticle rather than on whatever fills most of the frame, so the
+        // barcode the user points at is sharp and readable from the first frames on.
+        cameraSource.setFocusRegion(getReticleRegions(graphicOverlay).focusRegion)
 
-        val barcodeInCenter = results.firstOrNull { barcode ->
-            val boundingBox = barcode.boundingBox ?: return@firstOrNull false
-            val box = graphicOverlay.translateRect(boundingBox)
-            box.contains(graphicOverlay.width / 2f, graphicOverlay.height / 2f)
+        val barcodeInCenter = findBarcodeInCenter(results, detectionRegion, graphicOverlay)
+        val sizeProgress = barcodeInCenter?.let {
+            PreferenceUtils.getProgressToMeetBarcodeSizeRequirement(graphicOverlay, it)
+        } ?: 0f
+        // Barcode in the camera view is too small, so zoom in on it as long as the camera can.
+        val zooming = barcodeInCenter != null && sizeProgress < 1 && zoomIn(sizeProgress)
+        if (barcodeInCenter != null) {
+            lastBarcodeMs = SystemClock.elapsedRealtime()
+        } else if (cameraSource.zoomRatio > 1f && SystemClock.elapsedRealtime() - lastBarcodeMs > ZOOM_RESET_DELAY_MS) {
+            // The barcode is gone, so the next one may not fit the zoomed in view.
+            cameraSource.setZoomRatio(1f)
         }
+        val publisher = synchronized(idlePublishers) { idlePublishers.poll() } ?: ResultsPublisher()
+        publisher.barcodeInCenter = barcodeInCenter
+        publisher.sizeProgress = sizeProgress
+        publisher.zooming = zooming
+        publisher.graphicOverlay = graphicOverlay
+        return publisher
+    }
 
-        graphicOverlay.clear()
+    /** Picks the barcode, if exists, that covers the center of graphic overlay.  */
+    private fun findBarcodeInCenter(
+        results: List<FirebaseVisionBarcode>,
+        detectionRegion: Rect?,
+        graphicOverlay: GraphicOverlay
+    ): FirebaseVisionBarcode? = results.firstOrNull { barcode ->
+        val boundingBox = barcode.boundingBox ?: return@firstOrNull false
+        val box = graphicOverlay.translateRect(toFrameCoordinates(boundingBox, detectionRegion))
+        box.contains(graphicOverlay.width / 2f, graphicOverlay.height / 2f)
+    }
+
+    @MainThread
+    private fun publishResults(
+        barcodeInCenter: FirebaseVisionBarcode?,
+        sizeProgress: Float,
+        zooming: Boolean,
+        graphicOverlay: GraphicOverlay
+    ) {
+        if (!workflowModel.isCameraLive) return
+
+        graphics.clear()
         if (barcodeInCenter == null) {
             cameraReticleAnimator.start()
-            graphicOverlay.add(BarcodeReticleGraphic(graphicOverlay, cameraReticleAnimator))
-            workflowModel.setWorkflowState(WorkflowState.DETECTING)
+            val reticleGraphic = reticleGraphic ?: BarcodeReticleGraphic(graphicOverlay, cameraReticleAnimator)
+            this.reticleGraphic = reticleGraphic
+            graphics.add(reticleGraphic)
+            workflowModel.proposeWorkflowState(this, WorkflowState.DETECTING)
         } else {
             cameraReticleAnimator.cancel()
-            val sizeProgress = PreferenceUtils.getProgressToMeetBarcodeSizeRequirement(graphicOverlay, barcodeInCenter)
             if (sizeProgress < 1) {
-                // Barcode in the camera view is too small, so prompt user to move camera closer.
-                graphicOverlay.add(BarcodeConfirmingGraphic(graphicOverlay, barcodeInCenter))
-                workflowModel.setWorkflowState(WorkflowState.CONFIRMING)
+                // Barcode in the camera view is too small, so prompt user to move camera closer once the camera
+                // can't zoom in any further.
+                graphics.add(BarcodeConfirmingGraphic(graphicOverlay, barcodeInCenter))
+                workflowModel.proposeWorkflowState(
+                    this,
+                    if (zooming) WorkflowState.ZOOMING else WorkflowState.CONFIRMING
+                )
             } else {
                 // Barcode size in the camera view is sufficient.
                 if (PreferenceUtils.shouldDelayLoadingBarcodeResult(graphicOverlay.context)) {
                     val loadingAnimator = createLoadingAnimator(graphicOverlay, barcodeInCenter)
                     loadingAnimator.start()
-                    graphicOverlay.add(BarcodeLoadingGraphic(graphicOverlay, loadingAnimator))
-                    workflowModel.setWorkflowState(WorkflowState.SEARCHING)
+                    graphics.add(BarcodeLoadingGraphic(graphicOverlay, loadingAnimator))
+                    workflowModel.proposeWorkflowState(this, WorkflowState.SEARCHING)
                 } else {
-                    workflowModel.setWorkflowState(WorkflowState.DETECTED)
+                    workflowModel.proposeWorkflowState(this, WorkflowState.DETECTED)
                     workflowModel.detectedBarcode.setValue(barcodeInCenter)
                 }
             }
         }
-        graphicOverlay.invalidate()
+        layer.setGraphics(graphics)
     }
 
+    /**
+     * Zooms in on a barcode that is too small by a step, or waits for the last step to settle.
+     *
+     * @return false if the camera can't zoom in any further.
+     */
+    private fun zoomIn(sizeProgress: Float): Boolean {
+        val zoomRatio = cameraSource.zoomRatio
+        val maxZoomRatio = minOf(MAX_ZOOM_RATIO, cameraSource.maxZoomRatio)
+        if (zoomRatio >= maxZoomRatio) return false
+        val nowMs = SystemClock.elapsedRealtime()
+        if (nowMs - lastZoomStepMs < ZOOM_STEP_INTERVAL_MS) return true
+
+        // The barcode grows along with the zoom, so zooming in by the inverse of the progress makes it just
+        // large enough.
+        val zoomStep = minOf(MAX_ZOOM_STEP, 1f / maxOf(sizeProgress, 1f / MAX_ZOOM_STEP))
+        val newZoomRatio = cameraSource.setZoomRatio(minOf(maxZoomRatio, zoomRatio * zoomStep))
+        lastZoomStepMs = nowMs
+        return newZoomRatio > zoomRatio
+    }
+
+    /** Maps a box relative to the detection region back to the coordinates of the whole frame.  */
+    private fun toFrameCoordinates(box: Rect, detectionRegion: Rect?): Rect =
+        detectionRegion?.let { Rect(box).apply { offset(it.left, it.top) } } ?: box
+
     private fun createLoadingAnimator(graphicOverlay: GraphicOverlay, barcode: FirebaseVisionBarcode): ValueAnimator {
         val endProgress = 1.1f
         return ValueAnimator.ofFloat(0f, endProgress).apply {
             duration = 2000
             addUpdateListener {
                 if ((animatedValue as Float).compareTo(endProgress) >= 0) {
-                    graphicOverlay.clear()
-                    workflowModel.setWorkflowState(WorkflowState.SEARCHED)
+                    layer.clear()
+                    workflowModel.proposeWorkflowState(this@BarcodeProcessor, WorkflowState.SEARCHED)
                     workflowModel.detectedBarcode.setValue(barcode)
                 } else {
                     graphicOverlay.invalidate()
@@ -109,14 +245,27 @@ class BarcodeProcessor(graphicOverlay: GraphicOverlay, private val workflowModel
     }
 
     override fun stop() {
-        try {
-            detector.close()
-        } catch (e: IOException) {
-            Log.e(TAG, "Failed to close barcode detector!", e)
-        }
+        super.stop()
+        detector.release()
+        layer.remove()
     }
 
     companion object {
         private const val TAG = "BarcodeProcessor"
+
+        /** Fraction of the reticle box size added on each side, so barcodes sticking out get read too.  */
+        private const val DETECTION_REGION_PADDING = 0.1f
+
+        /** Farthest the camera zooms in on a barcode that is too small, beyond that it loses detail.  */
+        private const val MAX_ZOOM_RATIO = 3f
+
+        /** Most a single zoom step scales the barcode by, so it doesn't leave the reticle or focus.  */
+        private const val MAX_ZOOM_STEP = 1.5f
+
+        /** Time the focus gets to settle after a zoom step, before the barcode is measured again.  */
+        private const val ZOOM_STEP_INTERVAL_MS = 400L
+
+        /** Time without a barcode in the reticle after which the camera zooms back out.  */
+        private const val ZOOM_RESET_DELAY_MS = 2000L
     }
 }
@@ -36,6 +36,7 @@ internal class BarcodeReticleGraphic(overlay: GraphicOverlay, private val animat
     private val rippleSizeOffset: Int
     private val rippleStrokeWidth: Int
     private val rippleAlpha: Int
+    private val rippleRect = RectF()
 
     init {
         val resources = overlay.resources
@@ -53,7 +54,7 @@ internal class BarcodeReticleGraphic(overlay: GraphicOverlay, private val animat
         ripplePaint.alpha = (rippleAlpha * animator.rippleAlphaScale).toInt()
         ripplePaint.strokeWidth = rippleStrokeWidth * animator.rippleStrokeWidthScale
         val offset = rippleSizeOffset * animator.rippleSizeScale
-        val rippleRect = RectF(
+        rippleRect.set(
                 boxRect.left - offset,
                 boxRect.top - offset,
                 boxRect.right + offset,
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.ml.md.kotlin.camera
+
+import java.util.Locale
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+import kotlin.math.ceil
+
+/**
+ * Histogram of durations in buckets of powers of two microseconds, which any number of threads
+ * record into at once without locking or allocating.
+ *
+ * Unlike [LatencyHistogram], it counts every sample since it was created rather than a window of
+ * the recent ones, so readers compare two snapshots to get the samples in between.
+ */
+class AtomicHistogram internal constructor() {
+
+    private val bucketCounts = AtomicLongArray(BUCKET_COUNT)
+    private val totalNs = AtomicLong()
+    private val maxNs = AtomicLong()
+
+    internal fun record(durationNs: Long) {
+        val clampedNs = durationNs.coerceAtLeast(0)
+        val bucket = minOf(64 - java.lang.Long.numberOfLeadingZeros(clampedNs / 1000), BUCKET_COUNT - 1)
+        bucketCounts.incrementAndGet(bucket)
+        totalNs.addAndGet(clampedNs)
+        var max = maxNs.get()
+        while (clampedNs > max && !maxNs.compareAndSet(max, clampedNs)) {
+            max = maxNs.get()
+        }
+    }
+
+    /**
+     * Returns a copy of the counts. Samples recorded while it's taken may be in some of its numbers
+     * but not in the others yet.
+     */
+    internal fun snapshot() = Snapshot(LongArray(BUCKET_COUNT) { bucketCounts.get(it) }, totalNs.get(), maxNs.get())
+
+    /** A point in time copy of the counts of a histogram.  */
+    class Snapshot internal constructor(
+        private val bucketCounts: LongArray,
+        private val totalNs: Long,
+        private val maxNs: Long
+    ) {
+
+        /** Number of samples recorded.  */
+        val count: Long = bucketCounts.sum()
+
+        /** Sum of the samples in milliseconds.  */
+        val totalMs: Float
+            get() = totalNs / 1e6f
+
+        /** Average of the samples in milliseconds, or 0 if there's none.  */
+        val meanMs: Float
+            get() = if (count > 0) totalNs / 1e6f / count else 0f
+
+        /** Longest sample in milliseconds.  */
+        val maxMs: Float
+            get() = maxNs / 1e6f
+
+        /**
+         * Returns the duration in milliseconds that the given fraction of the samples stay within,
+         * rounded up to the upper bound of its bucket, or 0 if there's no sample.
+         */
+        fun getPercentileMs(fraction: Float): Float {
+            if (count == 0L) return 0f
+            val rank = ceil(fraction * count.toDouble()).toLong().coerceAtLeast(1)
+            var cumulativeCount = 0L
+            for (bucket in 0 until BUCKET_COUNT - 1) {
+                cumulativeCount += bucketCounts[bucket]
+                if (cumulativeCount >= rank) {
+                    return (1L shl bucket) / 1e3f
+                }
+            }
+            return maxMs
+        }
+
+        /**
+         * Returns the samples recorded since the given earlier snapshot of the same histogram. Its
+         * longest sample is still the longest of all the samples.
+         */
+        fun since(earlier: Snapshot) = Snapshot(
+                LongArray(BUCKET_COUNT) { bucketCounts[it] - earlier.bucketCounts[it] },
+                totalNs - earlier.totalNs,
+                maxNs
+        )
+
+        override fun toString(): String = String.format(
+                Locale.US,
+                "count=%d, meanMs=%.2f, p50Ms=%.2f, p90Ms=%.2f, p99Ms=%.2f, maxMs=%.2f",
+                count, meanMs, getPercentileMs(0.5f), getPercentileMs(0.9f), getPercentileMs(0.99f), maxMs
+        )
+    }
+
+    companion object {
+        /**
+         * Bucket `i` counts the durations under `2^i` microseconds that don't fit a lower bucket, the
+         * last one counts everything from about 8 seconds on.
+         */
+        internal const val BUCKET_COUNT = 25
+    }
+}
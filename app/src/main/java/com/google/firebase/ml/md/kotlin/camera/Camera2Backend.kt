@@ -0,0 +1,589 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.kotlin.camera
+
+import android.annotation.SuppressLint
+import android.content.Context
+import android.graphics.ImageFormat
+import android.graphics.Rect
+import android.hardware.camera2.CameraAccessException
+import android.hardware.camera2.CameraCaptureSession
+import android.hardware.camera2.CameraCharacteristics
+import android.hardware.camera2.CameraDevice
+import android.hardware.camera2.CameraManager
+import android.hardware.camera2.CameraMetadata
+import android.hardware.camera2.CaptureRequest
+import android.hardware.camera2.params.MeteringRectangle
+import android.hardware.camera2.params.StreamConfigurationMap
+import android.media.Image
+import android.media.ImageReader
+import android.os.Build
+import android.os.Handler
+import android.os.HandlerThread
+import android.os.SystemClock
+import android.util.Log
+import android.util.Range
+import android.view.Surface
+import android.view.SurfaceHolder
+import androidx.annotation.RequiresApi
+import com.google.android.gms.common.images.Size
+import com.google.firebase.ml.md.kotlin.settings.PreferenceUtils
+import java.io.IOException
+import java.nio.ReadOnlyBufferException
+import kotlin.math.abs
+import kotlin.math.roundToInt
+
+/**
+ * Streams the preview frames of the back camera through the camera2 API.
+ *
+ * The camera renders the preview straight to the display surface and writes the frames for
+ * detection into an [ImageReader]. The only copy of a frame is the one from the image into an NV21
+ * buffer, after which the image goes straight back to the camera, so the detection pipeline never
+ * holds up the preview.
+ */
+@RequiresApi(Build.VERSION_CODES.LOLLIPOP)
+internal class Camera2Backend(private val graphicOverlay: GraphicOverlay) : CameraBackend {
+
+    private val context: Context = graphicOverlay.context
+    private val cameraManager = context.getSystemService(Context.CAMERA_SERVICE) as CameraManager
+    private val frameBuffers = FrameBufferRecycler()
+
+    private var cameraThread: HandlerThread? = null
+    private var cameraHandler: Handler? = null
+    private var cameraDevice: CameraDevice? = null
+    private var captureSession: CameraCaptureSession? = null
+    private var imageReader: ImageReader? = null
+    private var requestBuilder: CaptureRequest.Builder? = null
+    private var fpsRanges: Array<Range<Int>>? = null
+    private var fpsRange: Range<Int>? = null
+    private var minFrameBufferDepth = CameraSource.DEFAULT_MIN_FRAME_BUFFER_DEPTH
+    private var maxFrameBufferDepth = CameraSource.DEFAULT_MAX_FRAME_BUFFER_DEPTH
+    private var requestedSizePair: CameraSizePair? = null
+
+    /** The size of the active pixel array of the sensor, which zoom and regions are relative to.  */
+    private var activeArraySize: Rect? = null
+    private var focusRegionsSupported = false
+    private var meteringRegionsSupported = false
+    private var zoomRatio = 1f
+
+    /** Kept to be mapped again onto the sensor when the zoom changes.  */
+    private var focusRegion: Rect? = null
+
+    /** Read on the camera thread, which only runs once the fields above have been set up.  */
+    @Volatile
+    private var listener: CameraBackend.FrameListener? = null
+    @Volatile
+    private var frameMetadata: FrameMetadata? = null
+
+    @get:Synchronized
+    override var previewSize: Size? = null
+        private set
+
+    @get:Synchronized
+    override var maxZoomRatio = 1f
+        private set
+
+    @Synchronized
+    @Throws(IOException::class)
+    override fun start(surfaceHolder: SurfaceHolder, listener: CameraBackend.FrameListener) {
+        if (cameraDevice != null) return
+
+        val cameraThread = HandlerThread(TAG).apply { start() }
+        this.cameraThread = cameraThread
+        cameraHandler = Handler(cameraThread.looper)
+        try {
+            openCamera(surfaceHolder, listener)
+        } catch (e: IOException) {
+            stop()
+            throw e
+        } catch (e: CameraAccessException) {
+            stop()
+            throw IOException("Failed to start the camera.", e)
+        } catch (e: RuntimeException) {
+            stop()
+            throw IOException("Failed to start the camera.", e)
+        }
+    }
+
+    @Throws(CameraAccessException::class, IOException::class)
+    private fun openCamera(surfaceHolder: SurfaceHolder, listener: CameraBackend.FrameListener) {
+        val cameraId = findBackCameraId()
+        val characteristics = cameraManager.getCameraCharacteristics(cameraId)
+        val sizePair = selectSizePair(characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP))
+                ?: throw IOException("Could not find suitable preview size.")
+        val previewSize = sizePair.preview
+        this.previewSize = previewSize
+        Log.v(TAG, "Camera preview size: $previewSize")
+
+        val sensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION) ?: 0
+        val angle = CameraSource.getFrameRotationDegrees(context, sensorOrientation)
+        // This corresponds to the rotation constants in FirebaseVisionImageMetadata.
+        frameMetadata = FrameMetadata(previewSize.width, previewSize.height, angle / 90)
+        frameBuffers.reset(previewSize.width * previewSize.height * 3 / 2, minFrameBufferDepth, maxFrameBufferDepth)
+
+        val fpsRanges = characteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES)
+        this.fpsRanges = fpsRanges
+        val fpsRange = selectFpsRange(fpsRanges, CameraSource.REQUESTED_CAMERA_FPS)
+                ?: throw IOException("Could not find suitable preview frames per second range.")
+        this.fpsRange = fpsRange
+
+        val imageReader = ImageReader.newInstance(
+                previewSize.width, previewSize.height, ImageFormat.YUV_420_888, MAX_READER_IMAGES
+        )
+        this.imageReader = imageReader
+        imageReader.setOnImageAvailableListener(this::onImageAvailable, cameraHandler)
+        surfaceHolder.setFixedSize(previewSize.width, previewSize.height)
+        val previewSurface = surfaceHolder.surface
+        val frameSurface = imageReader.surface
+
+        val cameraDevice = awaitCameraDevice(cameraId)
+        this.cameraDevice = cameraDevice
+        val captureSession = awaitCaptureSession(cameraDevice, listOf(previewSurface, frameSurface))
+        this.captureSession = captureSession
+
+        val requestBuilder = cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW).apply {
+            addTarget(previewSurface)
+            addTarget(frameSurface)
+            val afModes = characteristics.get(CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES)
+            if (afModes?.contains(CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_VIDEO) == true) {
+                set(CaptureRequest.CONTROL_AF_MODE, CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_VIDEO)
+            } else {
+                Log.i(TAG, "Camera auto focus is not supported on this device.")
+            }
+            set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, fpsRange)
+        }
+        this.requestBuilder = requestBuilder
+
+        val activeArraySize = characteristics.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE)
+        this.activeArraySize = activeArraySize
+        val maxDigitalZoom = characteristics.get(CameraCharacteristics.SCALER_AVAILABLE_MAX_DIGITAL_ZOOM)
+        maxZoomRatio = if (activeArraySize != null && maxDigitalZoom != null) maxDigitalZoom else 1f
+        zoomRatio = 1f
+        focusRegion = null
+        val maxFocusRegions = characteristics.get(CameraCharacteristics.CONTROL_MAX_REGIONS_AF) ?: 0
+        focusRegionsSupported = activeArraySize != null && maxFocusRegions > 0
+        val maxMeteringRegions = characteristics.get(CameraCharacteristics.CONTROL_MAX_REGIONS_AE) ?: 0
+        meteringRegionsSupported = activeArraySize != null && maxMeteringRegions > 0
+
+        this.listener = listener
+        captureSession.setRepeatingRequest(requestBuilder.build(), null, cameraHandler)
+        listener.onFrameRateChanged(fpsRange.upper.toFloat())
+    }
+
+    override fun stop() {
+        val cameraThread = synchronized(this) {
+            listener = null
+            captureSession?.close()
+            captureSession = null
+            cameraDevice?.close()
+            cameraDevice = null
+            imageReader?.close()
+            imageReader = null
+            requestBuilder = null
+            fpsRanges = null
+            fpsRange = null
+            maxZoomRatio = 1f
+            cameraHandler = null
+            this.cameraThread.also { this.cameraThread = null }
+        }
+
+        // The camera thread may be waiting for the lock in requestFrameRate(), so lets it finish up
+        // on its own rather than joining it.
+        cameraThread?.quitSafely()
+        frameBuffers.clear()
+    }
+
+    @Synchronized
+    override fun requestFrameRate(frameRate: Float) {
+        val requestBuilder = requestBuilder ?: return
+        val listener = listener ?: return
+        val range = selectFpsRange(fpsRanges, frameRate) ?: return
+        if (range == fpsRange) return
+
+        requestBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, range)
+        if (!updateRepeatingRequest()) {
+            requestBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, fpsRange)
+            return
+        }
+        fpsRange = range
+        Log.d(TAG, "Updated the preview fps range to $range")
+        listener.onFrameRateChanged(range.upper.toFloat())
+    }
+
+    @Synchronized
+    override fun setTorchEnabled(enabled: Boolean) {
+        val requestBuilder = requestBuilder ?: return
+        requestBuilder.set(
+                CaptureRequest.FLASH_MODE,
+                if (enabled) CameraMetadata.FLASH_MODE_TORCH else CameraMetadata.FLASH_MODE_OFF
+        )
+        updateRepeatingRequest()
+    }
+
+    @Synchronized
+    override fun setFrameBufferDepth(minDepth: Int, maxDepth: Int) {
+        minFrameBufferDepth = minDepth
+        maxFrameBufferDepth = maxDepth
+    }
+
+    @Synchronized
+    override fun setPreviewSizePair(sizePair: CameraSizePair?) {
+        requestedSizePair = sizePair
+    }
+
+    @Synchronized
+    override fun setFocusRegion(uprightRegion: Rect?) {
+        val requestBuilder = requestBuilder ?: return
+        if (!focusRegionsSupported && !meteringRegionsSupported) return
+
+        focusRegion = uprightRegion
+        setRegions(requestBuilder, uprightRegion)
+        updateRepeatingRequest()
+    }
+
+    /** Sets the focus and metering regions of the requests, without updating the running one.  */
+    private fun setRegions(requestBuilder: CaptureRequest.Builder, uprightRegion: Rect?) {
+        val metadata = frameMetadata
+        val regions = if (uprightRegion != null && metadata != null) {
+            CropRegion.fromUprightRegion(uprightRegion, metadata)?.let {
+                arrayOf(MeteringRectangle(toSensorRect(it, metadata), MeteringRectangle.METERING_WEIGHT_MAX))
+            }
+        } else {
+            null
+        }
+        if (focusRegionsSupported) {
+            requestBuilder.set(CaptureRequest.CONTROL_AF_REGIONS, regions)
+        }
+        if (meteringRegionsSupported) {
+            requestBuilder.set(CaptureRequest.CONTROL_AE_REGIONS, regions)
+        }
+    }
+
+    /**
+     * Maps a region of the frame onto the active array of the sensor. The frames are the zoomed in crop of the
+     * sensor scaled down to the frame size, and cropped to its aspect ratio.
+     */
+    private fun toSensorRect(frameRegion: CropRegion, metadata: FrameMetadata): Rect {
+        val cropRegion = getCropRegion(zoomRatio)
+        val scale = minOf(
+                cropRegion.width().toFloat() / metadata.width,
+                cropRegion.height().toFloat() / metadata.height
+        )
+        val left = cropRegion.left + (cropRegion.width() - metadata.width * scale) / 2
+        val top = cropRegion.top + (cropRegion.height() - metadata.height * scale) / 2
+        return Rect(
+                (left + frameRegion.left * scale).roundToInt(),
+                (top + frameRegion.top * scale).roundToInt(),
+                (left + (frameRegion.left + frameRegion.width) * scale).roundToInt(),
+                (top + (frameRegion.top + frameRegion.height) * scale).roundToInt()
+        )
+    }
+
+    /** Returns the centered crop of the active array the sensor is zoomed in to.  */
+    private fun getCropRegion(zoomRatio: Float): Rect {
+        val activeArraySize = activeArraySize!!
+        val width = (activeArraySize.width() / zoomRatio).roundToInt()
+        val height = (activeArraySize.height() / zoomRatio).roundToInt()
+        val left = (activeArraySize.width() - width) / 2
+        val top = (activeArraySize.height() - height) / 2
+        return Rect(left, top, left + width, top + height)
+    }
+
+    @Synchronized
+    override fun setZoomRatio(zoomRatio: Float): Float {
+        val requestBuilder = requestBuilder ?: return 1f
+        if (activeArraySize == null) return 1f
+
+        val newZoomRatio = zoomRatio.coerceIn(1f, maxOf(1f, maxZoomRatio))
+        if (newZoomRatio == this.zoomRatio) return newZoomRatio
+
+        val oldZoomRatio = this.zoomRatio
+        this.zoomRatio = newZoomRatio
+        requestBuilder.set(CaptureRequest.SCALER_CROP_REGION, getCropRegion(newZoomRatio))
+        // The regions are relative to the sensor, so they move along with the crop.
+        setRegions(requestBuilder, focusRegion)
+        if (!updateRepeatingRequest()) {
+            this.zoomRatio = oldZoomRatio
+            requestBuilder.set(CaptureRequest.SCALER_CROP_REGION, getCropRegion(oldZoomRatio))
+            setRegions(requestBuilder, focusRegion)
+        }
+        return this.zoomRatio
+    }
+
+    private fun updateRepeatingRequest(): Boolean {
+        val captureSession = captureSession ?: return false
+        val requestBuilder = requestBuilder ?: return false
+        return try {
+            captureSession.setRepeatingRequest(requestBuilder.build(), null, cameraHandler)
+            true
+        } catch (e: CameraAccessException) {
+            Log.w(TAG, "Failed to update the capture request", e)
+            false
+        } catch (e: IllegalStateException) {
+            Log.w(TAG, "Failed to update the capture request", e)
+            false
+        }
+    }
+
+    @Throws(CameraAccessException::class, IOException::class)
+    private fun findBackCameraId(): String =
+        cameraManager.cameraIdList.firstOrNull {
+            cameraManager.getCameraCharacteristics(it).get(CameraCharacteristics.LENS_FACING) ==
+                    CameraMetadata.LENS_FACING_BACK
+        } ?: throw IOException("There is no back-facing camera.")
+
+    @SuppressLint("MissingPermission")
+    @Throws(CameraAccessException::class, IOException::class)
+    private fun awaitCameraDevice(cameraId: String): CameraDevice {
+        val result = PendingResult<CameraDevice>()
+        cameraManager.openCamera(cameraId, object : CameraDevice.StateCallback() {
+            override fun onOpened(camera: CameraDevice) {
+                if (!result.set(camera)) {
+                    camera.close()
+                }
+            }
+
+            override fun onDisconnected(camera: CameraDevice) {
+                camera.close()
+                result.set(null)
+            }
+
+            override fun onError(camera: CameraDevice, error: Int) {
+                Log.e(TAG, "Camera error: $error")
+                camera.close()
+                result.set(null)
+            }
+        }, cameraHandler)
+        return result.await("open the camera") ?: throw IOException("Failed to open the camera.")
+    }
+
+    @Throws(CameraAccessException::class, IOException::class)
+    private fun awaitCaptureSession(camera: CameraDevice, outputs: List<Surface>): CameraCaptureSession {
+        val result = PendingResult<CameraCaptureSession>()
+        camera.createCaptureSession(outputs, object : CameraCaptureSession.StateCallback() {
+            override fun onConfigured(session: CameraCaptureSession) {
+                if (!result.set(session)) {
+                    session.close()
+                }
+            }
+
+            override fun onConfigureFailed(session: CameraCaptureSession) {
+                result.set(null)
+            }
+        }, cameraHandler)
+        return result.await("configure the camera") ?: throw IOException("Failed to configure the camera.")
+    }
+
+    /**
+     * Selects the preview size among the ones both the display surface and the image reader support,
+     * giving priority to the one specified by the user and then to the requested one.
+     */
+    private fun selectSizePair(configurationMap: StreamConfigurationMap?): CameraSizePair? {
+        configurationMap ?: return null
+        val previewSizes = configurationMap.getOutputSizes(SurfaceHolder::class.java).toSet()
+        val validSizes = configurationMap.getOutputSizes(ImageFormat.YUV_420_888)
+                .filter { it in previewSizes }
+                .map { CameraSizePair(Size(it.width, it.height), null) }
+
+        return CameraSource.findSizePair(validSizes, PreferenceUtils.getUserSpecifiedPreviewSize(context))
+                ?: CameraSource.findSizePair(validSizes, requestedSizePair)
+                ?: CameraSource.selectSizePair(
+                        validSizes, CameraSource.getDisplayAspectRatioInLandscape(graphicOverlay)
+                )
+    }
+
+    /** Copies the latest image into a frame buffer and hands it over, on the camera thread.  */
+    private fun onImageAvailable(reader: ImageReader) {
+        val latestImage = try {
+            reader.acquireLatestImage()
+        } catch (e: IllegalStateException) {
+            // The reader has been closed by stop().
+            null
+        }
+        val image = latestImage ?: return
+        val listener = listener
+        val frame = try {
+            if (listener != null && listener.admitFrame()) copyFrame(image) else null
+        } finally {
+            image.close()
+        }
+        frame?.let { listener?.onFrame(it) }
+    }
+
+    /** Copies the image into a free frame buffer, or returns null if the frame has to be skipped.  */
+    private fun copyFrame(image: Image): SharedFrame? {
+        val metadata = frameMetadata ?: return null
+        val frame = frameBuffers.obtainFrame(metadata) ?: let {
+            Log.d(TAG, "Skipping frame. The pipeline holds all the frame buffers.")
+            return null
+        }
+        return try {
+            copyToNv21(image, frame.data.array())
+            frame
+        } catch (e: IllegalStateException) {
+            // The image has been closed along with the reader.
+            Log.d(TAG, "Skipping frame. The camera has been closed.")
+            frame.release()
+            null
+        }
+    }
+
+    /** Hands the result of an asynchronous camera call over to the thread waiting for it.  */
+    private class PendingResult<T> {
+
+        private var result: T? = null
+        private var done = false
+        private var abandoned = false
+        private val lock = Object()
+
+        /**
+         * Sets the result, unless the waiting thread has given up on it already, in which case the
+         * caller disposes of it.
+         *
+         * @return whether the result has been handed over.
+         */
+        fun set(result: T?): Boolean = synchronized(lock) {
+            if (abandoned || done) return false
+            this.result = result
+            done = true
+            lock.notifyAll()
+            true
+        }
+
+        @Throws(IOException::class)
+        fun await(operation: String): T? = synchronized(lock) {
+            val deadlineMs = SystemClock.elapsedRealtime() + CAMERA_TIMEOUT_MS
+            while (!done) {
+                val remainingMs = deadlineMs - SystemClock.elapsedRealtime()
+                if (remainingMs <= 0) {
+                    abandoned = true
+                    throw IOException("Timed out waiting to $operation.")
+                }
+                try {
+                    lock.wait(remainingMs)
+                } catch (e: InterruptedException) {
+                    abandoned = true
+                    Thread.currentThread().interrupt()
+                    throw IOException("Interrupted while waiting to $operation.", e)
+                }
+            }
+            result
+        }
+    }
+
+    companion object {
+        private const val TAG = "Camera2Backend"
+
+        /**
+         * Images the reader holds, the one being copied out and the one the camera fills next.
+         * [ImageReader.acquireLatestImage] needs at least two.
+         */
+        private const val MAX_READER_IMAGES = 2
+
+        private const val CAMERA_TIMEOUT_MS = 2500L
+
+        /**
+         * Selects the most suitable frames per second range, the same way as the legacy camera does: by
+         * minimizing the sum of the differences between the desired value and the bounds of the range.
+         */
+        private fun selectFpsRange(ranges: Array<Range<Int>>?, desiredFps: Float): Range<Int>? =
+            ranges?.minBy { abs(desiredFps - it.lower) + abs(desiredFps - it.upper) }
+
+        /** Copies a YUV_420_888 image into an NV21 array, with the rows packed tight.  */
+        private fun copyToNv21(image: Image, nv21: ByteArray) {
+            val width = image.width
+            val height = image.height
+            val planes = image.planes
+            val ySize = width * height
+
+            if (areUvPlanesNv21(planes, width, height)) {
+                // The camera already wrote the frame in NV21, so the planes can be copied in bulk: all of
+                // the Y plane, then the first V value followed by the whole U plane, which the V plane
+                // overlaps one byte ahead of.
+                planes[0].buffer.get(nv21, 0, ySize)
+                planes[2].buffer.get(nv21, ySize, 1)
+                planes[1].buffer.get(nv21, ySize + 1, 2 * ySize / 4 - 1)
+                return
+            }
+
+            copyPlane(planes[0], width, height, nv21, 0, 1)
+            copyPlane(planes[1], width / 2, height / 2, nv21, ySize + 1, 2)
+            copyPlane(planes[2], width / 2, height / 2, nv21, ySize, 2)
+        }
+
+        /** Checks whether the U and V planes are laid out as the interleaved chroma plane of NV21.  */
+        private fun areUvPlanesNv21(planes: Array<Image.Plane>, width: Int, height: Int): Boolean {
+            if (planes[0].rowStride != width ||
+                    planes[1].rowStride != width ||
+                    planes[2].rowStride != width ||
+                    planes[1].pixelStride != 2 ||
+                    planes[2].pixelStride != 2) {
+                return false
+            }
+            val imageSize = width * height
+            val uBuffer = planes[1].buffer
+            val vBuffer = planes[2].buffer
+            if (uBuffer.remaining() < imageSize / 2 - 1 || vBuffer.remaining() < 1) return false
+
+            // Checks whether the V plane starts one byte before the U plane, by writing through the V
+            // plane into the U plane and restoring the byte afterwards.
+            val vBufferSecondPixel = vBuffer.get(vBuffer.position() + 1)
+            val changed = vBufferSecondPixel.toInt().inv().toByte()
+            try {
+                vBuffer.put(vBuffer.position() + 1, changed)
+            } catch (e: ReadOnlyBufferException) {
+                return false
+            }
+            val overlapping = uBuffer.get(uBuffer.position()) == changed
+            vBuffer.put(vBuffer.position() + 1, vBufferSecondPixel)
+            return overlapping
+        }
+
+        /**
+         * Copies a plane honoring its row and pixel strides, writing a value every `outputStride` bytes
+         * from `offset` on.
+         */
+        private fun copyPlane(
+            plane: Image.Plane,
+            width: Int,
+            height: Int,
+            out: ByteArray,
+            offset: Int,
+            outputStride: Int
+        ) {
+            val buffer = plane.buffer
+            val start = buffer.position()
+            val rowStride = plane.rowStride
+            val pixelStride = plane.pixelStride
+            var outputIndex = offset
+            for (row in 0 until height) {
+                var inputIndex = start + row * rowStride
+                if (pixelStride == 1 && outputStride == 1) {
+                    buffer.position(inputIndex)
+                    buffer.get(out, outputIndex, width)
+                    outputIndex += width
+                } else {
+                    for (col in 0 until width) {
+                        out[outputIndex] = buffer.get(inputIndex)
+                        inputIndex += pixelStride
+                        outputIndex += outputStride
+                    }
+                }
+            }
+        }
+    }
+}
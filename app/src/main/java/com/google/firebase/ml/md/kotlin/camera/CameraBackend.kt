@@ -0,0 +1,94 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.kotlin.camera
+
+import android.graphics.Rect
+import android.view.SurfaceHolder
+import com.google.android.gms.common.images.Size
+import java.io.IOException
+
+/**
+ * The source of the preview frames of a [CameraSource], one per camera API.
+ *
+ * A backend owns the camera and the frame buffers. It hands frames over as NV21 [SharedFrame]s,
+ * and takes the buffer of a frame back once its last reference is released.
+ */
+internal interface CameraBackend {
+
+    /** Returns the size of the frames, or null if the backend hasn't been started yet.  */
+    val previewSize: Size?
+
+    /** The largest ratio the running camera zooms to, 1 if it isn't running or can't zoom.  */
+    val maxZoomRatio: Float
+
+    /** Receives the frames of a started backend, on a thread of the backend.  */
+    interface FrameListener {
+
+        /**
+         * Returns whether the frame the camera just delivered is wanted, asked before any work is spent
+         * on it.
+         */
+        fun admitFrame(): Boolean
+
+        /** Hands an admitted frame over, along with the reference to it.  */
+        fun onFrame(frame: SharedFrame)
+
+        /** Called once the camera streams at a new frame rate, including when it starts streaming.  */
+        fun onFrameRateChanged(frameRate: Float)
+    }
+
+    /**
+     * Opens the camera, shows its preview on the given surface and starts streaming frames to the
+     * listener.
+     *
+     * @throws IOException if the camera can't be opened or configured.
+     */
+    @Throws(IOException::class)
+    fun start(surfaceHolder: SurfaceHolder, listener: FrameListener)
+
+    /** Stops streaming and closes the camera, the backend may be started again afterwards.  */
+    fun stop()
+
+    /** Switches the camera to the supported frame rate closest to the given one, if any.  */
+    fun requestFrameRate(frameRate: Float)
+
+    fun setTorchEnabled(enabled: Boolean)
+
+    /** See [CameraSource.setFrameBufferDepth], takes effect on the next start.  */
+    fun setFrameBufferDepth(minDepth: Int, maxDepth: Int)
+
+    /**
+     * Sets the preview size to use instead of the one the backend would pick, if the camera supports it,
+     * or null to let the backend pick. The size the user specified in the settings still takes priority.
+     * Takes effect on the next start.
+     */
+    fun setPreviewSizePair(sizePair: CameraSizePair?)
+
+    /**
+     * Makes the running camera focus and meter on the given region of the upright frame, or across the whole
+     * frame if null, as far as the camera supports regions.
+     */
+    fun setFocusRegion(uprightRegion: Rect?)
+
+    /**
+     * Zooms the running camera to the supported ratio closest to the given one without going over it, 1 being
+     * the full field of view.
+     *
+     * @return the ratio the camera zoomed to, 1 if it isn't running or can't zoom.
+     */
+    fun setZoomRatio(zoomRatio: Float): Float
+}
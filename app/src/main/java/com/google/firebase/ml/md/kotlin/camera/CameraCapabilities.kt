@@ -0,0 +1,103 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.kotlin.camera
+
+import android.hardware.Camera
+import com.google.android.gms.common.images.Size
+import com.google.firebase.ml.md.kotlin.Utils
+import org.json.JSONArray
+import org.json.JSONException
+import org.json.JSONObject
+
+/**
+ * The capabilities of the back camera that the app picks its camera settings from, as probed once
+ * and then served from [CameraCapabilityStore].
+ */
+class CameraCapabilities private constructor(
+    /** The preview sizes, each with a picture size of the same aspect ratio if there's one.  */
+    val previewSizePairs: List<CameraSizePair>,
+    /** The supported preview frames per second ranges, scaled by 1000 as the camera API has them.  */
+    internal val previewFpsRanges: List<IntArray>,
+    internal val focusModes: List<String>,
+    /** The clockwise angle the camera sensor is mounted at, relative to the natural orientation.  */
+    internal val sensorOrientation: Int
+) {
+
+    @Throws(JSONException::class)
+    internal fun toJson(): JSONObject {
+        val sizePairsJson = JSONArray()
+        for (sizePair in previewSizePairs) {
+            val sizePairJson = JSONObject().put("preview", sizePair.preview.toString())
+            sizePair.picture?.let { sizePairJson.put("picture", it.toString()) }
+            sizePairsJson.put(sizePairJson)
+        }
+
+        val fpsRangesJson = JSONArray()
+        for (fpsRange in previewFpsRanges) {
+            fpsRangesJson.put(
+                    JSONArray()
+                            .put(fpsRange[Camera.Parameters.PREVIEW_FPS_MIN_INDEX])
+                            .put(fpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX])
+            )
+        }
+
+        return JSONObject()
+                .put("previewSizePairs", sizePairsJson)
+                .put("previewFpsRanges", fpsRangesJson)
+                .put("focusModes", JSONArray(focusModes))
+                .put("sensorOrientation", sensorOrientation)
+    }
+
+    companion object {
+
+        /** Reads the capabilities of the given open back camera from its parameters.  */
+        @Suppress("DEPRECATION")
+        internal fun fromCamera(parameters: Camera.Parameters): CameraCapabilities {
+            val cameraInfo = Camera.CameraInfo()
+            Camera.getCameraInfo(CameraSource.CAMERA_FACING_BACK, cameraInfo)
+            return CameraCapabilities(
+                    Utils.generateValidPreviewSizeList(parameters),
+                    parameters.supportedPreviewFpsRange.toList(),
+                    parameters.supportedFocusModes.toList(),
+                    cameraInfo.orientation
+            )
+        }
+
+        @Throws(JSONException::class)
+        internal fun fromJson(json: JSONObject): CameraCapabilities {
+            val sizePairsJson = json.getJSONArray("previewSizePairs")
+            val previewSizePairs = (0 until sizePairsJson.length()).map { i ->
+                val sizePairJson = sizePairsJson.getJSONObject(i)
+                CameraSizePair(
+                        Size.parseSize(sizePairJson.getString("preview")),
+                        if (sizePairJson.has("picture")) Size.parseSize(sizePairJson.getString("picture")) else null
+                )
+            }
+
+            val fpsRangesJson = json.getJSONArray("previewFpsRanges")
+            val previewFpsRanges = (0 until fpsRangesJson.length()).map { i ->
+                val fpsRangeJson = fpsRangesJson.getJSONArray(i)
+                intArrayOf(fpsRangeJson.getInt(0), fpsRangeJson.getInt(1))
+            }
+
+            val focusModesJson = json.getJSONArray("focusModes")
+            val focusModes = (0 until focusModesJson.length()).map { focusModesJson.getString(it) }
+
+            return CameraCapabilities(previewSizePairs, previewFpsRanges, focusModes, json.getInt("sensorOrientation"))
+        }
+    }
+}
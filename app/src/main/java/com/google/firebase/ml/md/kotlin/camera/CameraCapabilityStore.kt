@@ -0,0 +1,126 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.kotlin.camera
+
+import android.content.Context
+import android.content.SharedPreferences
+import android.hardware.Camera
+import android.os.Build
+import android.util.Log
+import com.google.android.gms.tasks.Task
+import com.google.android.gms.tasks.Tasks
+import java.io.IOException
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import org.json.JSONException
+import org.json.JSONObject
+
+/**
+ * Keeps the [CameraCapabilities] of the device, so that the camera is probed once rather than on
+ * every camera start and every time the settings are opened.
+ *
+ * The capabilities are persisted along with the fingerprint of the device and OS build they were
+ * probed on, and probed again once that changes. Probing opens the camera, so it happens in the
+ * background, and the camera is opened through [openBackCamera] so that a camera start waits for a
+ * probe in progress rather than failing to connect.
+ */
+@Suppress("DEPRECATION")
+object CameraCapabilityStore {
+
+    private const val TAG = "CameraCapabilityStore"
+
+    private const val PREFERENCES_NAME = "camera_capabilities"
+    private const val KEY_BUILD_FINGERPRINT = "build_fingerprint"
+    private const val KEY_CAPABILITIES = "capabilities"
+
+    /** Only one client of the app can have the camera open at a time.  */
+    private val cameraLock = Any()
+
+    private val probeExecutor = Executors.newSingleThreadExecutor()
+
+    @Volatile
+    private var capabilities: CameraCapabilities? = null
+
+    /**
+     * Returns the capabilities of the back camera, probing the camera in the background if they
+     * aren't known yet. The task fails if there's no back camera or it can't be opened.
+     */
+    fun load(context: Context): Task<CameraCapabilities> {
+        val appContext = context.applicationContext
+        getCached(appContext)?.let { return Tasks.forResult(it) }
+        return Tasks.call(probeExecutor, Callable { probe(appContext) })
+    }
+
+    /** Returns the capabilities of the back camera if they are known, without touching the camera.  */
+    internal fun getCached(context: Context): CameraCapabilities? {
+        capabilities?.let { return it }
+        val preferences = getPreferences(context)
+        val json = preferences.getString(KEY_CAPABILITIES, null)
+        val buildFingerprint = preferences.getString(KEY_BUILD_FINGERPRINT, null)
+        if (json == null || Build.FINGERPRINT != buildFingerprint) return null
+        return try {
+            CameraCapabilities.fromJson(JSONObject(json)).also { capabilities = it }
+        } catch (e: JSONException) {
+            Log.w(TAG, "Discarding unreadable camera capabilities.", e)
+            null
+        }
+    }
+
+    /**
+     * Returns the capabilities of the given back camera, from the store if they are known already or
+     * else read from the parameters of the camera and stored.
+     */
+    internal fun getOrCreate(context: Context, parameters: Camera.Parameters): CameraCapabilities =
+            getCached(context) ?: CameraCapabilities.fromCamera(parameters).also { save(context, it) }
+
+    /**
+     * Opens the back camera, after waiting for a probe in progress to release it.
+     *
+     * @throws IOException if there's no back camera.
+     */
+    @Throws(IOException::class)
+    internal fun openBackCamera(): Camera =
+            synchronized(cameraLock) { Camera.open() } ?: throw IOException("There is no back-facing camera.")
+
+    @Throws(IOException::class)
+    private fun probe(context: Context): CameraCapabilities = synchronized(cameraLock) {
+        // Another caller may have probed the camera while this one waited.
+        getCached(context)?.let { return it }
+        val camera = Camera.open() ?: throw IOException("There is no back-facing camera.")
+        try {
+            CameraCapabilities.fromCamera(camera.parameters).also { save(context, it) }
+        } finally {
+            camera.release()
+        }
+    }
+
+    private fun save(context: Context, probed: CameraCapabilities) {
+        capabilities = probed
+        try {
+            getPreferences(context)
+                    .edit()
+                    .putString(KEY_BUILD_FINGERPRINT, Build.FINGERPRINT)
+                    .putString(KEY_CAPABILITIES, probed.toJson().toString())
+                    .apply()
+        } catch (e: JSONException) {
+            Log.w(TAG, "Failed to persist the camera capabilities.", e)
+        }
+    }
+
+    private fun getPreferences(context: Context): SharedPreferences =
+            context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE)
+}
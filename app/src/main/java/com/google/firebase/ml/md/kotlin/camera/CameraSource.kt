@@ -17,10 +17,13 @@
 package com.google.firebase.ml.md.kotlin.camera
 
 import android.content.Context
-import android.graphics.ImageFormat
+import android.graphics.Rect
 import android.hardware.Camera
 import android.hardware.Camera.CameraInfo
-import android.hardware.Camera.Parameters
+import android.os.Build
+import android.os.Handler
+import android.os.Looper
+import android.os.SystemClock
 import android.util.Log
 import android.view.Surface
 import android.view.SurfaceHolder
@@ -29,12 +32,8 @@ import com.google.android.gms.common.images.Size
 import com.google.firebase.ml.md.R
 import com.google.firebase.ml.md.kotlin.Utils
 import com.google.firebase.ml.md.kotlin.settings.PreferenceUtils
-import com.google.firebase.ml.vision.common.FirebaseVisionImageMetadata
+import java.io.File
 import java.io.IOException
-import java.nio.ByteBuffer
-import java.util.IdentityHashMap
-import kotlin.math.abs
-import kotlin.math.ceil
 
 /**
  * Manages the camera and allows UI updates on top of it (e.g. overlaying extra Graphics). This
@@ -47,15 +46,28 @@ import kotlin.math.ceil
  * is unable to keep up with the rate of frames generated by the camera.
  */
 @Suppress("DEPRECATION")
-class CameraSource(private val graphicOverlay: GraphicOverlay) {
+class CameraSource internal constructor(
+    private val graphicOverlay: GraphicOverlay,
+    /** Streams from this backend rather than from the one picked in the settings, if it's set.  */
+    private val backendOverride: CameraBackend?
+) {
 
-    private var camera: Camera? = null
-    @FirebaseVisionImageMetadata.Rotation
-    private var rotation: Int = 0
+    constructor(graphicOverlay: GraphicOverlay) : this(graphicOverlay, backendOverride = null)
+
+    /** The backend of the running camera, a new one is created from the settings on every start.  */
+    @Volatile
+    private var backend: CameraBackend? = null
 
     /** Returns the preview size that is currently in use by the underlying camera.  */
-    internal var previewSize: Size? = null
-        private set
+    internal val previewSize: Size?
+        get() = backend?.previewSize
+
+    /** The zoom ratio of the running camera, which is back to 1 on every start.  */
+    val zoomRatio: Float
+        @Synchronized get() = currentZoomRatio
+
+    val maxZoomRatio: Float
+        get() = backend?.maxZoomRatio ?: 1f
 
     /**
      * Dedicated thread and associated runnable for calling into the detector with frames, as the
@@ -67,19 +79,41 @@ class CameraSource(private val graphicOverlay: GraphicOverlay) {
     private val processorLock = Object()
     private var frameProcessor: FrameProcessor? = null
 
-    /**
-     * Map to convert between a byte array, received from the camera, and its associated byte buffer.
-     * We use byte buffers internally because this is a more efficient way to call into native code
-     * later (avoids a potential copy).
-     *
-     *
-     * **Note:** uses IdentityHashMap here instead of HashMap because the behavior of an array's
-     * equals, hashCode and toString methods is both useless and unexpected. IdentityHashMap enforces
-     * identity ('==') check on the keys.
-     */
-    private val bytesToByteBuffer = IdentityHashMap<ByteArray, ByteBuffer>()
+    /** Names the type of the frame processor, read without the processor lock.  */
+    @Volatile
+    private var frameProcessorName: String? = null
+
+    private var minFrameBufferDepth = DEFAULT_MIN_FRAME_BUFFER_DEPTH
+    private var maxFrameBufferDepth = DEFAULT_MAX_FRAME_BUFFER_DEPTH
+
+    /** Paces the preview frame rate and the frames handed to the processor to its latency.  */
+    private val frameScheduler = FrameScheduler(REQUESTED_CAMERA_FPS)
     private val context: Context = graphicOverlay.context
 
+    // To restart the camera at each candidate preview size while calibrating, on the main thread.
+    private val mainHandler = Handler(Looper.getMainLooper())
+    private var surfaceHolder: SurfaceHolder? = null
+    private var calibrationRun: CalibrationRun? = null
+
+    // The focus region and zoom of the running camera, both reset on every start.
+    private var focusRegion: Rect? = null
+    private var focusRegionUpdateMs = 0L
+    private var currentZoomRatio = 1f
+
+    init {
+        // Kept where it can be pulled off a device without root, when there's external storage.
+        val flightRecorderDir = File(context.getExternalFilesDir(null) ?: context.filesDir, FLIGHT_RECORDER_DIR_NAME)
+        FlightRecorder.setDumpDirectory(flightRecorderDir, object : FlightRecorder.DumpListener {
+            override fun onDumpWritten(indexFile: File) {
+                Log.w(TAG, "Wrote the flight recorder dump $indexFile")
+            }
+
+            override fun onDumpFailed(e: IOException) {
+                Log.e(TAG, "Failed to write the flight recorder dump.", e)
+            }
+        })
+    }
+
     /**
      * Opens the camera and starts sending preview frames to the underlying detector. The supplied
      * surface holder is used for the preview so frames can be displayed to the user.
@@ -90,17 +124,42 @@ class CameraSource(private val graphicOverlay: GraphicOverlay) {
     @Synchronized
     @Throws(IOException::class)
     internal fun start(surfaceHolder: SurfaceHolder) {
-        if (camera != null) return
+        if (backend != null) return
 
-        camera = createCamera().apply {
-            setPreviewDisplay(surfaceHolder)
-            startPreview()
-        }
+        startBackend(surfaceHolder)
+        startCalibrationIfNeeded()
+    }
 
-        processingThread = Thread(processingRunnable).apply {
-            processingRunnable.setActive(true)
-            start()
+    @Synchronized
+    @Throws(IOException::class)
+    private fun startBackend(surfaceHolder: SurfaceHolder) {
+        val backend = createBackend()
+        backend.setFrameBufferDepth(minFrameBufferDepth, maxFrameBufferDepth)
+        val calibrationRun = calibrationRun
+        if (calibrationRun != null) {
+            backend.setPreviewSizePair(calibrationRun.sizePair)
+            frameScheduler.setInitialFrameIntervalMs(0)
+        } else {
+            val calibration = getCalibrationKey()?.let { PreviewCalibration.load(context, it) }
+            backend.setPreviewSizePair(calibration?.sizePair)
+            frameScheduler.setInitialFrameIntervalMs(calibration?.frameIntervalMs ?: 0)
+        }
+        frameScheduler.reset(REQUESTED_CAMERA_FPS)
+        focusRegion = null
+        focusRegionUpdateMs = 0
+        currentZoomRatio = 1f
+        processingRunnable.setActive(true)
+        this.backend = backend
+        try {
+            backend.start(surfaceHolder, processingRunnable)
+        } catch (e: Exception) {
+            this.backend = null
+            processingRunnable.setActive(false)
+            throw e
         }
+
+        processingThread = Thread(processingRunnable).apply { start() }
+        this.surfaceHolder = surfaceHolder
     }
 
     /**
@@ -115,6 +174,17 @@ class CameraSource(private val graphicOverlay: GraphicOverlay) {
      */
     @Synchronized
     internal fun stop() {
+        calibrationRun?.let {
+            Log.i(TAG, "Preview size calibration interrupted, it starts over on the next start.")
+            mainHandler.removeCallbacks(it)
+            calibrationRun = null
+        }
+        stopBackend()
+    }
+
+    @Synchronized
+    private fun stopBackend() {
+        surfaceHolder = null
         processingRunnable.setActive(false)
         processingThread?.let {
             try {
@@ -127,20 +197,11 @@ class CameraSource(private val graphicOverlay: GraphicOverlay) {
             processingThread = null
         }
 
-        camera?.let {
-            it.stopPreview()
-            it.setPreviewCallbackWithBuffer(null)
-            try {
-                it.setPreviewDisplay(null)
-            } catch (e: Exception) {
-                Log.e(TAG, "Failed to clear camera preview: $e")
-            }
-            it.release()
-            camera = null
+        backend?.let {
+            it.stop()
+            backend = null
         }
-
-        // Release the reference to any image buffers, since these will no longer be in use.
-        bytesToByteBuffer.clear()
+        processingRunnable.clearPendingFrame()
     }
 
     /** Stops the camera and releases the resources of the camera and underlying detector.  */
@@ -158,147 +219,221 @@ class CameraSource(private val graphicOverlay: GraphicOverlay) {
             frameProcessor?.stop()
             frameProcessor = processor
         }
-    }
-
-    fun updateFlashMode(flashMode: String) {
-        val parameters = camera?.parameters
-        parameters?.flashMode = flashMode
-        camera?.parameters = parameters
+        frameProcessorName = processor.javaClass.name
     }
 
     /**
-     * Opens the camera and applies the user settings.
+     * Sets the range the number of preview buffers adapts within, based on how long the frame
+     * processor holds onto frames. Takes effect the next time the camera is started.
      *
-     * @throws IOException if camera cannot be found or preview cannot be processed.
+     * @param minDepth the number of buffers allocated up front, must be at least 3.
+     * @param maxDepth the number of buffers the pool never grows beyond, must be at most 255.
      */
-    @Throws(IOException::class)
-    private fun createCamera(): Camera {
-        val camera = Camera.open() ?: throw IOException("There is no back-facing camera.")
-        val parameters = camera.parameters
-        setPreviewAndPictureSize(camera, parameters)
-        setRotation(camera, parameters)
-
-        val previewFpsRange = selectPreviewFpsRange(camera)
-                ?: throw IOException("Could not find suitable preview frames per second range.")
-        parameters.setPreviewFpsRange(
-                previewFpsRange[Parameters.PREVIEW_FPS_MIN_INDEX],
-                previewFpsRange[Parameters.PREVIEW_FPS_MAX_INDEX]
-        )
-
-        parameters.previewFormat = IMAGE_FORMAT
-
-        if (parameters.supportedFocusModes.contains(Parameters.FOCUS_MODE_CONTINUOUS_VIDEO)) {
-            parameters.focusMode = Parameters.FOCUS_MODE_CONTINUOUS_VIDEO
-        } else {
-            Log.i(TAG, "Camera auto focus is not supported on this device.")
-        }
+    @Synchronized
+    fun setFrameBufferDepth(minDepth: Int, maxDepth: Int) {
+        FrameBufferPool.checkDepthRange(minDepth, maxDepth)
+        minFrameBufferDepth = minDepth
+        maxFrameBufferDepth = maxDepth
+    }
 
-        camera.parameters = parameters
-
-        camera.setPreviewCallbackWithBuffer(processingRunnable::setNextFrame)
-
-        // Four frame buffers are needed for working with the camera:
-        //
-        //   one for the frame that is currently being executed upon in doing detection
-        //   one for the next pending frame to process immediately upon completing detection
-        //   two for the frames that the camera uses to populate future preview images
-        //
-        // Through trial and error it appears that two free buffers, in addition to the two buffers
-        // used in this code, are needed for the camera to work properly. Perhaps the camera has one
-        // thread for acquiring images, and another thread for calling into user code. If only three
-        // buffers are used, then the camera will spew thousands of warning messages when detection
-        // takes a non-trivial amount of time.
-        previewSize?.let {
-            camera.addCallbackBuffer(createPreviewBuffer(it))
-            camera.addCallbackBuffer(createPreviewBuffer(it))
-            camera.addCallbackBuffer(createPreviewBuffer(it))
-            camera.addCallbackBuffer(createPreviewBuffer(it))
-        }
+    fun updateFlashMode(flashMode: String) {
+        backend?.setTorchEnabled(flashMode == Camera.Parameters.FLASH_MODE_TORCH)
+    }
 
-        return camera
+    /**
+     * Makes the camera focus and meter on the given region of the upright preview frame, or across the whole
+     * frame if null, as far as the camera supports regions. Updates that come sooner than
+     * [FOCUS_REGION_UPDATE_INTERVAL_MS] after the last one are dropped, so the region of a tracked object can be
+     * passed in for every frame.
+     */
+    @Synchronized
+    fun setFocusRegion(uprightRegion: Rect?) {
+        val backend = backend ?: return
+        if (uprightRegion == focusRegion) return
+        val nowMs = SystemClock.elapsedRealtime()
+        if (nowMs - focusRegionUpdateMs < FOCUS_REGION_UPDATE_INTERVAL_MS) return
+
+        val focusRegion = uprightRegion?.let { Rect(it) }
+        this.focusRegion = focusRegion
+        focusRegionUpdateMs = nowMs
+        backend.setFocusRegion(focusRegion)
     }
 
-    @Throws(IOException::class)
-    private fun setPreviewAndPictureSize(camera: Camera, parameters: Parameters) {
-
-        // Gives priority to the preview size specified by the user if exists.
-        val sizePair: CameraSizePair = PreferenceUtils.getUserSpecifiedPreviewSize(context) ?: run {
-            // Camera preview size is based on the landscape mode, so we need to also use the aspect
-            // ration of display in the same mode for comparison.
-            val displayAspectRatioInLandscape: Float =
-                    if (Utils.isPortraitMode(graphicOverlay.context)) {
-                        graphicOverlay.height.toFloat() / graphicOverlay.width
-                    } else {
-                        graphicOverlay.width.toFloat() / graphicOverlay.height
-                    }
-            selectSizePair(camera, displayAspectRatioInLandscape)
-        } ?: throw IOException("Could not find suitable preview size.")
+    /**
+     * Zooms the camera to the supported ratio closest to the given one without going over it, 1 being the full
+     * field of view, and returns the ratio it zoomed to.
+     */
+    @Synchronized
+    fun setZoomRatio(zoomRatio: Float): Float {
+        backend?.let { currentZoomRatio = it.setZoomRatio(zoomRatio) }
+        return currentZoomRatio
+    }
 
-        previewSize = sizePair.preview.also {
-            Log.v(TAG, "Camera preview size: $it")
-            parameters.setPreviewSize(it.width, it.height)
-            PreferenceUtils.saveStringPreference(context, R.string.pref_key_rear_camera_preview_size, it.toString())
+    /**
+     * Starts calibrating the preview size if the running frame processor hasn't been calibrated on the
+     * running camera backend yet, and the preview size is up to the app to pick.
+     */
+    @Synchronized
+    private fun startCalibrationIfNeeded() {
+        val backend = backend
+        val calibrationKey = getCalibrationKey()
+        if (calibrationRun != null ||
+                calibrationKey == null ||
+                !(backend is LegacyCameraBackend || backend is Camera2Backend) ||
+                !PreferenceUtils.isPreviewSizeCalibrationEnabled(context) ||
+                PreferenceUtils.getUserSpecifiedPreviewSize(context) != null ||
+                PreviewCalibration.load(context, calibrationKey) != null) {
+            return
         }
+        // Probed when the camera first opened, or in the background by the main screen.
+        val capabilities = CameraCapabilityStore.getCached(context) ?: return
+        val candidates = PreviewCalibration.selectCandidates(
+                capabilities.previewSizePairs, getDisplayAspectRatioInLandscape(graphicOverlay))
+        if (candidates.size < 2) return
+        Log.i(TAG, "Calibrating the preview size for $calibrationKey among $candidates")
+        val calibrationRun = CalibrationRun(calibrationKey, candidates)
+        this.calibrationRun = calibrationRun
+        // The size picked for the display runs first, which warms the detector up.
+        mainHandler.postDelayed(calibrationRun, CALIBRATION_STEP_MS)
+    }
 
-        sizePair.picture?.let { pictureSize ->
-            Log.v(TAG, "Camera picture size: $pictureSize")
-            parameters.setPictureSize(pictureSize.width, pictureSize.height)
-            PreferenceUtils.saveStringPreference(
-                    context, R.string.pref_key_rear_camera_picture_size, pictureSize.toString())
-        }
+    /** Returns the key the calibration of the current processor and backend is kept under.  */
+    private fun getCalibrationKey(): String? {
+        val processorName = frameProcessorName ?: return null
+        return "$processorName/${PreferenceUtils.getCameraBackend(context)}"
     }
 
     /**
-     * Calculates the correct rotation for the given camera id and sets the rotation in the
-     * parameters. It also sets the camera's display orientation and rotation.
-     *
-     * @param parameters the camera parameters for which to set the rotation.
+     * Returns the backend override if there's one, or else creates the backend picked in the settings, falling
+     * back to the legacy one where needed.
      */
-    private fun setRotation(camera: Camera, parameters: Parameters) {
-        val windowManager = context.getSystemService(Context.WINDOW_SERVICE) as WindowManager
-        val degrees = when (val deviceRotation = windowManager.defaultDisplay.rotation) {
-            Surface.ROTATION_0 -> 0
-            Surface.ROTATION_90 -> 90
-            Surface.ROTATION_180 -> 180
-            Surface.ROTATION_270 -> 270
-            else -> {
-                Log.e(TAG, "Bad device rotation value: $deviceRotation")
-                0
+    private fun createBackend(): CameraBackend = backendOverride ?: when (PreferenceUtils.getCameraBackend(context)) {
+        context.getString(R.string.pref_entry_value_camera_backend_camera2) ->
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                Camera2Backend(graphicOverlay)
+            } else {
+                Log.w(TAG, "Camera2 is not available on this device, using the legacy camera instead.")
+                LegacyCameraBackend(graphicOverlay)
             }
-        }
-
-        val cameraInfo = CameraInfo()
-        Camera.getCameraInfo(CAMERA_FACING_BACK, cameraInfo)
-        val angle = (cameraInfo.orientation - degrees + 360) % 360
-        // This corresponds to the rotation constants in FirebaseVisionImageMetadata.
-        this.rotation = angle / 90
-        camera.setDisplayOrientation(angle)
-        parameters.setRotation(angle)
+        context.getString(R.string.pref_entry_value_camera_backend_synthetic) -> SyntheticCameraBackend(context)
+        context.getString(R.string.pref_entry_value_camera_backend_replay) ->
+            ReplayCameraBackend(context, FrameReplayer.Pacing.REAL_TIME)
+        context.getString(R.string.pref_entry_value_camera_backend_replay_unpaced) ->
+            ReplayCameraBackend(context, FrameReplayer.Pacing.AS_FAST_AS_POSSIBLE)
+        else -> LegacyCameraBackend(graphicOverlay)
     }
 
     /**
-     * Creates one buffer for the camera preview callback. The size of the buffer is based off of the
-     * camera preview size and the format of the camera image.
-     *
-     * @return a new preview buffer of the appropriate size for the current camera settings.
+     * Runs the camera at each candidate preview size in turn, measures how the frame processor does at
+     * each one, and keeps the best size for the processor, see [PreviewCalibration]. Runs on the main
+     * thread, like the starts and stops of the camera source.
      */
-    private fun createPreviewBuffer(previewSize: Size): ByteArray {
-        val bitsPerPixel = ImageFormat.getBitsPerPixel(IMAGE_FORMAT)
-        val sizeInBits = previewSize.height.toLong() * previewSize.width.toLong() * bitsPerPixel.toLong()
-        val bufferSize = ceil(sizeInBits / 8.0).toInt() + 1
-
-        // Creating the byte array this way and wrapping it, as opposed to using .allocate(),
-        // should guarantee that there will be an array to work with.
-        val byteArray = ByteArray(bufferSize)
-        val byteBuffer = ByteBuffer.wrap(byteArray)
-        check(!(!byteBuffer.hasArray() || !byteBuffer.array()!!.contentEquals(byteArray))) {
-            // This should never happen. If it does, then we wouldn't be passing the preview content to
-            // the underlying detector later.
-            "Failed to create valid buffer for camera source."
+    private inner class CalibrationRun(
+        private val key: String,
+        private val candidates: List<CameraSizePair>
+    ) : Runnable {
+
+        private val results = ArrayList<PreviewCalibration.Result>()
+
+        /** The candidate the camera runs at, -1 while it still runs at the size picked at first.  */
+        private var candidateIndex = -1
+
+        // Whether the detections at the current candidate are being counted, and from when on.
+        private var isWindowOpen = false
+        private var windowStartMs = 0L
+        private var windowStartDetectionCount = 0L
+
+        val sizePair: CameraSizePair?
+            get() = candidates.getOrNull(candidateIndex)
+
+        override fun run() {
+            if (candidateIndex >= 0 && !isWindowOpen) {
+                openWindow()
+                mainHandler.postDelayed(this, CALIBRATION_STEP_MS - CALIBRATION_SETTLE_MS)
+                return
+            }
+            // Measured before taking the camera source lock, as releasing the camera source takes the
+            // processor lock first.
+            val result = if (candidateIndex >= 0) measure() else null
+            synchronized(this@CameraSource) {
+                if (calibrationRun !== this) return
+                result?.let {
+                    Log.i(TAG, "Preview size calibration step: $it")
+                    results.add(it)
+                }
+                candidateIndex++
+                isWindowOpen = false
+                if (candidateIndex < candidates.size) {
+                    mainHandler.postDelayed(this, CALIBRATION_SETTLE_MS)
+                } else {
+                    finish()
+                }
+                restartBackend()
+            }
         }
 
-        bytesToByteBuffer[byteArray] = byteBuffer
-        return byteArray
+        /** Starts counting the detections once the camera runs at the candidate.  */
+        private fun openWindow() {
+            synchronized(processorLock) {
+                windowStartDetectionCount = frameProcessor?.getCompletedDetectionCount() ?: 0
+            }
+            windowStartMs = SystemClock.elapsedRealtime()
+            isWindowOpen = true
+        }
+
+        /** Measures the detections completed since the window opened, rather than an estimate.  */
+        private fun measure(): PreviewCalibration.Result {
+            var detectionCount = 0L
+            var latencyMs = 0L
+            synchronized(processorLock) {
+                frameProcessor?.let {
+                    detectionCount = it.getCompletedDetectionCount() - windowStartDetectionCount
+                    latencyMs = it.getLatencyPercentileMs(CALIBRATION_LATENCY_PERCENTILE)
+                }
+            }
+            val windowMs = SystemClock.elapsedRealtime() - windowStartMs
+            val framesPerSecond = if (detectionCount > 0 && windowMs > 0) {
+                minOf(REQUESTED_CAMERA_FPS, detectionCount * 1000f / windowMs)
+            } else {
+                0f
+            }
+            // The backend falls back to a size of its own if the camera doesn't support the candidate.
+            val candidate = candidates[candidateIndex]
+            val previewSize = previewSize
+            val sizePair = if (previewSize == null || previewSize == candidate.preview) {
+                candidate
+            } else {
+                CameraSizePair(previewSize, null)
+            }
+            return PreviewCalibration.Result(sizePair, framesPerSecond, latencyMs)
+        }
+
+        private fun finish() {
+            calibrationRun = null
+            val best = PreviewCalibration.selectBest(results)
+            if (best == null) {
+                Log.w(TAG, "Preview size calibration got no estimate, it starts over on the next start.")
+                return
+            }
+            Log.i(TAG, "Calibrated the preview size for $key: $best")
+            PreviewCalibration.save(context, key, best)
+        }
+
+        /** Restarts the camera at the current candidate, or at the calibrated size once finished.  */
+        private fun restartBackend() {
+            val surfaceHolder = surfaceHolder ?: return
+            stopBackend()
+            try {
+                startBackend(surfaceHolder)
+            } catch (e: Exception) {
+                Log.e(TAG, "Failed to restart the camera while calibrating the preview size.", e)
+                mainHandler.removeCallbacks(this)
+                calibrationRun = null
+                return
+            }
+            graphicOverlay.setCameraInfo(this@CameraSource)
+            graphicOverlay.clear()
+        }
     }
 
     /**
@@ -312,14 +447,22 @@ class CameraSource(private val graphicOverlay: GraphicOverlay) {
      * associated processing is done for the previous frame, detection on the mostly recently received
      * frame will immediately start on the same thread.
      */
-    private inner class FrameProcessingRunnable internal constructor() : Runnable {
+    private inner class FrameProcessingRunnable internal constructor() : Runnable, CameraBackend.FrameListener {
 
         // This lock guards all of the member variables below.
         private val lock = Object()
         private var active = true
 
         // These pending variables hold the state associated with the new frame awaiting processing.
-        private var pendingFrameData: ByteBuffer? = null
+        private var pendingFrame: SharedFrame? = null
+        private var pendingFrameNumber = 0L
+        private var pendingFrameTimeNs = 0L
+
+        // When the camera started on its latest frame, only touched on the thread frames come in on.
+        private var admittedFrameTimeNs = 0L
+
+        private var droppedFrameCount = 0L
+        private var receivedFrameCount = 0L
 
         /** Marks the runnable as active/not active. Signals any blocked threads to continue.  */
         internal fun setActive(active: Boolean) {
@@ -329,26 +472,52 @@ class CameraSource(private val graphicOverlay: GraphicOverlay) {
             }
         }
 
+        /** Releases the frame left pending when the camera stopped, and logs the frames dropped.  */
+        internal fun clearPendingFrame() {
+            synchronized(lock) {
+                pendingFrame?.release()
+                pendingFrame = null
+                Log.d(TAG, "Dropped $droppedFrameCount frames the processor couldn't keep up with")
+                Log.d(TAG, "Pipeline metrics so far:\n${PipelineMetrics.snapshot()}")
+                droppedFrameCount = 0
+            }
+        }
+
+        override fun admitFrame(): Boolean {
+            admittedFrameTimeNs = System.nanoTime()
+            val previewFps = frameScheduler.pollPreviewFrameRateChange(SystemClock.elapsedRealtime())
+            if (previewFps > 0) {
+                backend?.requestFrameRate(previewFps)
+            }
+            return frameScheduler.admitFrame()
+        }
+
+        override fun onFrameRateChanged(frameRate: Float) {
+            frameScheduler.onCameraFrameRateChanged(frameRate)
+        }
+
         /**
-         * Sets the frame data received from the camera. This adds the previous unused frame buffer (if
-         * present) back to the camera, and keeps a pending reference to the frame data for future use.
+         * Sets the frame received from the camera. This releases the previous unused frame (if present)
+         * back to the camera, and keeps a pending reference to the frame for future use.
          */
-        internal fun setNextFrame(data: ByteArray, camera: Camera) {
+        override fun onFrame(frame: SharedFrame) {
             synchronized(lock) {
-                pendingFrameData?.let {
-                    camera.addCallbackBuffer(it.array())
-                    pendingFrameData = null
-                }
-
-                if (!bytesToByteBuffer.containsKey(data)) {
-                    Log.d(
-                            TAG,
-                            "Skipping frame. Could not find ByteBuffer associated with the image data from the camera."
-                    )
+                if (!active) {
+                    frame.release()
                     return
                 }
-
-                pendingFrameData = bytesToByteBuffer[data]
+                pendingFrame?.let {
+                    it.release()
+                    droppedFrameCount++
+                    PipelineMetrics.increment(PipelineMetrics.Counter.FRAME_DROPPED)
+                    FlightRecorder.recordEvent(FlightRecorder.Stage.FRAME_DROPPED, pendingFrameNumber, /* value= */ 0)
+                }
+                pendingFrame = frame
+                pendingFrameNumber = receivedFrameCount++
+                pendingFrameTimeNs = System.nanoTime()
+                PipelineMetrics.recordDuration(
+                        PipelineMetrics.Stage.CAMERA_TO_PENDING, pendingFrameTimeNs - admittedFrameTimeNs)
+                FlightRecorder.recordEvent(FlightRecorder.Stage.FRAME_RECEIVED, pendingFrameNumber, /* value= */ 0)
 
                 // Notify the processor thread if it is waiting on the next frame (see below).
                 lock.notifyAll()
@@ -371,11 +540,12 @@ class CameraSource(private val graphicOverlay: GraphicOverlay) {
          * FPS setting above to allow for some idle time in between frames.
          */
         override fun run() {
-            var data: ByteBuffer?
+            var data: SharedFrame?
+            var frameNumber: Long
 
             while (true) {
                 synchronized(lock) {
-                    while (active && pendingFrameData == null) {
+                    while (active && pendingFrame == null) {
                         try {
                             // Wait for the next frame to be received from the camera, since we don't have it yet.
                             lock.wait()
@@ -392,26 +562,35 @@ class CameraSource(private val graphicOverlay: GraphicOverlay) {
                         return
                     }
 
-                    // Hold onto the frame data locally, so that we can use this for detection
-                    // below.  We need to clear pendingFrameData to ensure that this buffer isn't
-                    // recycled back to the camera before we are done using that data.
-                    data = pendingFrameData
-                    pendingFrameData = null
+                    // Hold onto the frame locally, so that we can use this for detection below.  We need to
+                    // clear pendingFrame to ensure that this frame isn't released back to the camera before
+                    // we are done using that data.
+                    data = pendingFrame
+                    frameNumber = pendingFrameNumber
+                    pendingFrame = null
+                    PipelineMetrics.recordDuration(
+                            PipelineMetrics.Stage.QUEUE_WAIT, System.nanoTime() - pendingFrameTimeNs)
                 }
 
+                // The buffer goes back to the camera once the processor releases the frame as well, which
+                // may be long after this iteration if it retains the frame for detection.
+                val frame = data ?: continue
                 try {
+                    FlightRecorder.recordFrame(frame, frameNumber)
+                    FlightRecorder.recordEvent(FlightRecorder.Stage.PROCESS_STARTED, frameNumber, /* value= */ 0)
+                    val startMs = SystemClock.elapsedRealtime()
                     synchronized(processorLock) {
-                        val frameMetadata = FrameMetadata(previewSize!!.width, previewSize!!.height, rotation)
-                        data?.let {
-                            frameProcessor?.process(it, frameMetadata, graphicOverlay)
+                        frameProcessor?.let {
+                            it.process(frame, graphicOverlay)
+                            frameScheduler.update(it.getSustainableFrameIntervalMs())
                         }
                     }
+                    FlightRecorder.recordLatency(
+                            FlightRecorder.Stage.PROCESS_FINISHED, frameNumber, SystemClock.elapsedRealtime() - startMs)
                 } catch (t: Exception) {
                     Log.e(TAG, "Exception thrown from receiver.", t)
                 } finally {
-                    data?.let {
-                        camera?.addCallbackBuffer(it.array())
-                    }
+                    frame.release()
                 }
             }
         }
@@ -423,107 +602,84 @@ class CameraSource(private val graphicOverlay: GraphicOverlay) {
 
         private const val TAG = "CameraSource"
 
-        private const val IMAGE_FORMAT = ImageFormat.NV21
-        private const val MIN_CAMERA_PREVIEW_WIDTH = 400
-        private const val MAX_CAMERA_PREVIEW_WIDTH = 1300
-        private const val DEFAULT_REQUESTED_CAMERA_PREVIEW_WIDTH = 640
-        private const val DEFAULT_REQUESTED_CAMERA_PREVIEW_HEIGHT = 360
-        private const val REQUESTED_CAMERA_FPS = 30.0f
+        private val PREVIEW_SIZE_READER = object : PreviewSizeSelector.SizeReader<CameraSizePair> {
+            override fun getWidth(size: CameraSizePair): Int = size.preview.width
 
-        /**
-         * Selects the most suitable preview and picture size, given the display aspect ratio in landscape
-         * mode.
-         *
-         *
-         * It's firstly trying to pick the one that has closest aspect ratio to display view with its
-         * width be in the specified range [[.MIN_CAMERA_PREVIEW_WIDTH], [ ][.MAX_CAMERA_PREVIEW_WIDTH]]. If there're multiple candidates, choose the one having longest
-         * width.
-         *
-         *
-         * If the above looking up failed, chooses the one that has the minimum sum of the differences
-         * between the desired values and the actual values for width and height.
-         *
-         *
-         * Even though we only need to find the preview size, it's necessary to find both the preview
-         * size and the picture size of the camera together, because these need to have the same aspect
-         * ratio. On some hardware, if you would only set the preview size, you will get a distorted
-         * image.
-         *
-         * @param camera the camera to select a preview size from
-         * @return the selected preview and picture size pair
-         */
-        private fun selectSizePair(camera: Camera, displayAspectRatioInLandscape: Float): CameraSizePair? {
-            val validPreviewSizes = Utils.generateValidPreviewSizeList(camera)
+            override fun getHeight(size: CameraSizePair): Int = size.preview.height
+        }
+        internal const val REQUESTED_CAMERA_FPS = 30.0f
+        internal const val DEFAULT_MIN_FRAME_BUFFER_DEPTH = 4
+        internal const val DEFAULT_MAX_FRAME_BUFFER_DEPTH = 8
+        private const val FLIGHT_RECORDER_DIR_NAME = "flight_recorder"
 
-            var selectedPair: CameraSizePair? = null
-            // Picks the preview size that has closest aspect ratio to display view.
-            var minAspectRatioDiff = Float.MAX_VALUE
+        /** Time the camera runs at each preview size while calibrating, long enough for the estimates.  */
+        private const val CALIBRATION_STEP_MS = 4000L
 
-            for (sizePair in validPreviewSizes) {
-                val previewSize = sizePair.preview
-                if (previewSize.width < MIN_CAMERA_PREVIEW_WIDTH || previewSize.width > MAX_CAMERA_PREVIEW_WIDTH) {
-                    continue
-                }
+        /** Time at the start of each step the detections aren't counted in, as the camera restarts.  */
+        private const val CALIBRATION_SETTLE_MS = 1000L
 
-                val previewAspectRatio = previewSize.width.toFloat() / previewSize.height.toFloat()
-                val aspectRatioDiff = abs(displayAspectRatioInLandscape - previewAspectRatio)
-                if (abs(aspectRatioDiff - minAspectRatioDiff) < Utils.ASPECT_RATIO_TOLERANCE) {
-                    if (selectedPair == null || selectedPair.preview.width < sizePair.preview.width) {
-                        selectedPair = sizePair
-                    }
-                } else if (aspectRatioDiff < minAspectRatioDiff) {
-                    minAspectRatioDiff = aspectRatioDiff
-                    selectedPair = sizePair
+        private const val CALIBRATION_LATENCY_PERCENTILE = 0.95f
+
+        /**
+         * Shortest time between two updates of the focus region, as every update restarts the focus sweep on
+         * some cameras.
+         */
+        private const val FOCUS_REGION_UPDATE_INTERVAL_MS = 500L
+
+        /**
+         * Returns the clockwise angle in degrees the frames of a camera with the given sensor orientation
+         * need to be rotated by to appear upright on the display.
+         */
+        internal fun getFrameRotationDegrees(context: Context, sensorOrientation: Int): Int {
+            val windowManager = context.getSystemService(Context.WINDOW_SERVICE) as WindowManager
+            val degrees = when (val deviceRotation = windowManager.defaultDisplay.rotation) {
+                Surface.ROTATION_0 -> 0
+                Surface.ROTATION_90 -> 90
+                Surface.ROTATION_180 -> 180
+                Surface.ROTATION_270 -> 270
+                else -> {
+                    Log.e(TAG, "Bad device rotation value: $deviceRotation")
+                    0
                 }
             }
+            return (sensorOrientation - degrees + 360) % 360
+        }
 
-            if (selectedPair == null) {
-                // Picks the one that has the minimum sum of the differences between the desired values and
-                // the actual values for width and height.
-                var minDiff = Integer.MAX_VALUE
-                for (sizePair in validPreviewSizes) {
-                    val size = sizePair.preview
-                    val diff =
-                            abs(size.width - DEFAULT_REQUESTED_CAMERA_PREVIEW_WIDTH) +
-                                    abs(size.height - DEFAULT_REQUESTED_CAMERA_PREVIEW_HEIGHT)
-                    if (diff < minDiff) {
-                        selectedPair = sizePair
-                        minDiff = diff
-                    }
-                }
+        /**
+         * Returns the aspect ratio of the overlay in landscape mode, the one camera preview sizes are
+         * given in.
+         */
+        internal fun getDisplayAspectRatioInLandscape(graphicOverlay: GraphicOverlay): Float =
+            if (Utils.isPortraitMode(graphicOverlay.context)) {
+                graphicOverlay.height.toFloat() / graphicOverlay.width
+            } else {
+                graphicOverlay.width.toFloat() / graphicOverlay.height
             }
 
-            return selectedPair
-        }
+        /** Returns the size pair with the same preview size as the given one among the given pairs.  */
+        internal fun findSizePair(sizePairs: List<CameraSizePair>, sizePair: CameraSizePair?): CameraSizePair? =
+            sizePair?.let { requested -> sizePairs.firstOrNull { it.preview == requested.preview } }
 
         /**
-         * Selects the most suitable preview frames per second range.
+         * Selects the most suitable preview and picture size, given the display aspect ratio in landscape
+         * mode, see [PreviewSizeSelector.selectPreviewSize].
          *
-         * @param camera the camera to select a frames per second range from
-         * @return the selected preview frames per second range
+         * Even though we only need to find the preview size, it's necessary to find both the preview
+         * size and the picture size of the camera together, because these need to have the same aspect
+         * ratio. On some hardware, if you would only set the preview size, you will get a distorted
+         * image.
+         *
+         * @param validPreviewSizes the size pairs supported by the camera
+         * @return the selected preview and picture size pair
          */
-        private fun selectPreviewFpsRange(camera: Camera): IntArray? {
-            // The camera API uses integers scaled by a factor of 1000 instead of floating-point frame
-            // rates.
-            val desiredPreviewFpsScaled = (REQUESTED_CAMERA_FPS * 1000f).toInt()
-
-            // The method for selecting the best range is to minimize the sum of the differences between
-            // the desired value and the upper and lower bounds of the range.  This may select a range
-            // that the desired value is outside of, but this is often preferred.  For example, if the
-            // desired frame rate is 29.97, the range (30, 30) is probably more desirable than the
-            // range (15, 30).
-            var selectedFpsRange: IntArray? = null
-            var minDiff = Integer.MAX_VALUE
-            for (range in camera.parameters.supportedPreviewFpsRange) {
-                val deltaMin = desiredPreviewFpsScaled - range[Parameters.PREVIEW_FPS_MIN_INDEX]
-                val deltaMax = desiredPreviewFpsScaled - range[Parameters.PREVIEW_FPS_MAX_INDEX]
-                val diff = abs(deltaMin) + abs(deltaMax)
-                if (diff < minDiff) {
-                    selectedFpsRange = range
-                    minDiff = diff
-                }
-            }
-            return selectedFpsRange
+        internal fun selectSizePair(
+            validPreviewSizes: List<CameraSizePair>,
+            displayAspectRatioInLandscape: Float
+        ): CameraSizePair? {
+            val selectedIndex = PreviewSizeSelector.selectPreviewSize(
+                validPreviewSizes, PREVIEW_SIZE_READER, displayAspectRatioInLandscape
+            )
+            return validPreviewSizes.getOrNull(selectedIndex)
         }
     }
 }
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.ml.md.kotlin.camera
+
+import android.util.Log
+
+/**
+ * Shares every camera frame between several frame processors, e.g. to scan barcodes and detect
+ * objects out of a single camera session instead of reopening the camera to switch between them.
+ *
+ * Each child keeps its own in-flight detection and drops the frames it cannot keep up with on
+ * its own, so a slow detector does not hold back a fast one. Children retain the frames they hold
+ * onto, and the camera gets a buffer back only once every child is done with it.
+ *
+ * The children are handed the same [GraphicOverlay], and each draws on a [GraphicOverlay.Layer] of its own, so one
+ * child replacing its graphics leaves those of the others. They share the [WorkflowModel] as well, and propose their
+ * states to it rather than set them, so the state of the child furthest along the workflow is the one shown.
+ */
+class CompositeFrameProcessor(vararg processors: FrameProcessor) : FrameProcessor {
+
+    private val processors = processors.toList()
+
+    override fun process(frame: SharedFrame, graphicOverlay: GraphicOverlay) {
+        for (i in processors.indices) {
+            val processor = processors[i]
+            try {
+                processor.process(frame, graphicOverlay)
+            } catch (e: RuntimeException) {
+                // Keeps feeding the other processors, one failing detector shouldn't starve the rest.
+                Log.e(TAG, "Exception thrown from ${processor.javaClass.simpleName}", e)
+            }
+        }
+    }
+
+    /** Paced by the slowest processor, the faster ones drop the frames they don't need.  */
+    override fun getSustainableFrameIntervalMs(): Long {
+        var frameIntervalMs = 0L
+        for (i in processors.indices) {
+            frameIntervalMs = maxOf(frameIntervalMs, processors[i].getSustainableFrameIntervalMs())
+        }
+        return frameIntervalMs
+    }
+
+    /** The results of a frame are complete once the slowest processor is done with it.  */
+    override fun getLatencyPercentileMs(fraction: Float): Long {
+        var latencyMs = 0L
+        for (i in processors.indices) {
+            latencyMs = maxOf(latencyMs, processors[i].getLatencyPercentileMs(fraction))
+        }
+        return latencyMs
+    }
+
+    /** The composite completes a detection each time its slowest processor does.  */
+    override fun getCompletedDetectionCount(): Long {
+        var detectionCount = Long.MAX_VALUE
+        for (i in processors.indices) {
+            detectionCount = minOf(detectionCount, processors[i].getCompletedDetectionCount())
+        }
+        return if (processors.isEmpty()) 0 else detectionCount
+    }
+
+    override fun stop() {
+        for (i in processors.indices) {
+            processors[i].stop()
+        }
+    }
+
+    companion object {
+        private const val TAG = "CompositeProcessor"
+    }
+}
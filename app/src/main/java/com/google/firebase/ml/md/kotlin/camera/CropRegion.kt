@@ -0,0 +1,96 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.ml.md.kotlin.camera
+
+import android.graphics.Rect
+import com.google.firebase.ml.vision.common.FirebaseVisionImageMetadata
+
+/**
+ * A region of a camera frame that detection is limited to, both in the coordinates of the frame
+ * as the camera delivers it and in the coordinates of the upright image the detector reports its
+ * results in.
+ */
+internal class CropRegion private constructor(
+    /** Left edge of the region in the camera frame.  */
+    val left: Int,
+    /** Top edge of the region in the camera frame.  */
+    val top: Int,
+    val width: Int,
+    val height: Int,
+    /** The region in the upright image, results of the cropped frame are relative to its corner.  */
+    val uprightRegion: Rect
+) {
+
+    companion object {
+
+        /**
+         * Maps a region of the upright image into the camera frame, widened to the even coordinates the
+         * NV21 format needs to be cropped at.
+         *
+         * @return the region, or null if it doesn't overlap the frame.
+         */
+        fun fromUprightRegion(region: Rect, metadata: FrameMetadata): CropRegion? {
+            val frameWidth = metadata.width
+            val frameHeight = metadata.height
+            val frameRegion = when (metadata.rotation) {
+                FirebaseVisionImageMetadata.ROTATION_90 ->
+                    Rect(region.top, frameHeight - region.right, region.bottom, frameHeight - region.left)
+                FirebaseVisionImageMetadata.ROTATION_180 -> Rect(
+                        frameWidth - region.right,
+                        frameHeight - region.bottom,
+                        frameWidth - region.left,
+                        frameHeight - region.top
+                )
+                FirebaseVisionImageMetadata.ROTATION_270 ->
+                    Rect(frameWidth - region.bottom, region.left, frameWidth - region.top, region.right)
+                else -> Rect(region)
+            }
+
+            // The chroma plane is subsampled in both dimensions, so the region can only start and end at
+            // even coordinates.
+            frameRegion.left = frameRegion.left and 1.inv()
+            frameRegion.top = frameRegion.top and 1.inv()
+            frameRegion.right = (frameRegion.right + 1) and 1.inv()
+            frameRegion.bottom = (frameRegion.bottom + 1) and 1.inv()
+            if (!frameRegion.intersect(0, 0, frameWidth and 1.inv(), frameHeight and 1.inv())) return null
+
+            val uprightRegion = when (metadata.rotation) {
+                FirebaseVisionImageMetadata.ROTATION_90 -> Rect(
+                        frameHeight - frameRegion.bottom,
+                        frameRegion.left,
+                        frameHeight - frameRegion.top,
+                        frameRegion.right
+                )
+                FirebaseVisionImageMetadata.ROTATION_180 -> Rect(
+                        frameWidth - frameRegion.right,
+                        frameHeight - frameRegion.bottom,
+                        frameWidth - frameRegion.left,
+                        frameHeight - frameRegion.top
+                )
+                FirebaseVisionImageMetadata.ROTATION_270 -> Rect(
+                        frameRegion.top,
+                        frameWidth - frameRegion.right,
+                        frameRegion.bottom,
+                        frameWidth - frameRegion.left
+                )
+                else -> Rect(frameRegion)
+            }
+            return CropRegion(
+                    frameRegion.left, frameRegion.top, frameRegion.width(), frameRegion.height(), uprightRegion
+            )
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.kotlin.camera
+
+import android.content.ComponentCallbacks2
+import android.content.Context
+import android.content.res.Configuration
+import android.util.Log
+import android.util.SparseArray
+import android.util.SparseBooleanArray
+import com.google.android.gms.tasks.Task
+import com.google.android.gms.tasks.Tasks
+import com.google.firebase.ml.md.kotlin.settings.PreferenceUtils
+import com.google.firebase.ml.vision.FirebaseVision
+import com.google.firebase.ml.vision.barcode.FirebaseVisionBarcodeDetector
+import com.google.firebase.ml.vision.common.FirebaseVisionImage
+import com.google.firebase.ml.vision.common.FirebaseVisionImageMetadata
+import com.google.firebase.ml.vision.objects.FirebaseVisionObjectDetector
+import com.google.firebase.ml.vision.objects.FirebaseVisionObjectDetectorOptions
+import java.io.Closeable
+import java.io.IOException
+import java.util.Locale
+import java.util.concurrent.Executors
+
+/**
+ * Keeps the detectors of the app for as long as the process lives, one for each set of options, so
+ * that the model of a detector is loaded once rather than every time a processor is created, as
+ * happens on every return to a live camera screen.
+ *
+ * Detectors are leased rather than created and closed: a detector stays open while it has leases,
+ * and once idle it's kept until the system runs low on memory. [warmUp] loads the detectors the live
+ * screens are going to use ahead of time, by running a detection on a blank frame in the
+ * background, and records how long that first detection takes as
+ * [PipelineMetrics.Stage.DETECTOR_WARM_UP], to compare with the steady
+ * [PipelineMetrics.Stage.DETECTION] latency.
+ *
+ * An object detector in [FirebaseVisionObjectDetectorOptions.STREAM_MODE] tracks objects from one
+ * frame to the next, so the blank frame isn't run through the pooled one that the live screen
+ * leases later, but through a throwaway detector of the same options. That still loads the model
+ * and the native code ahead of time, and leaves the pooled detector's tracker untouched.
+ */
+object DetectorPool {
+
+    private const val TAG = "DetectorPool"
+
+    private const val BARCODE_DETECTOR_KEY = -1
+
+    /** Size of the blank frame the detectors are warmed up on, the smallest usual preview size.  */
+    private const val WARM_UP_FRAME_WIDTH = 640
+    private const val WARM_UP_FRAME_HEIGHT = 480
+
+    private val warmUpExecutor = Executors.newSingleThreadExecutor()
+    // Guarded by this.
+    private val entries = SparseArray<Entry>()
+    // The keys of the detector options warmed up already, guarded by this.
+    private val warmedUpKeys = SparseBooleanArray()
+    private var isRegisteredForMemoryTrims = false
+
+    private val memoryTrimCallbacks = object : ComponentCallbacks2 {
+        override fun onTrimMemory(level: Int) {
+            // Closes the idle detectors once the app is in the background list or the system runs low on memory,
+            // but not merely when the app's UI gets hidden.
+            if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND ||
+                    level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW ||
+                    level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+                evictIdleDetectors()
+            }
+        }
+
+        override fun onLowMemory() = evictIdleDetectors()
+
+        override fun onConfigurationChanged(newConfig: Configuration) {}
+    }
+
+    /**
+     * Leases the object detector of the given options, creating it if there's none yet.
+     *
+     * @param detectorMode either [FirebaseVisionObjectDetectorOptions.STREAM_MODE] or
+     * [FirebaseVisionObjectDetectorOptions.SINGLE_IMAGE_MODE].
+     */
+    @Synchronized
+    fun acquireObjectDetector(
+        context: Context,
+        detectorMode: Int,
+        multipleObjects: Boolean,
+        classification: Boolean
+    ): Lease<FirebaseVisionObjectDetector> {
+        registerForMemoryTrims(context)
+        val key = getObjectDetectorKey(detectorMode, multipleObjects, classification)
+        val entry = entries[key] ?: Entry(createObjectDetector(detectorMode, multipleObjects, classification))
+                .also { entries.put(key, it) }
+        return Lease(entry)
+    }
+
+    /** Leases the barcode detector, creating it if there's none yet.  */
+    @Synchronized
+    fun acquireBarcodeDetector(context: Context): Lease<FirebaseVisionBarcodeDetector> {
+        registerForMemoryTrims(context)
+        val entry = entries[BARCODE_DETECTOR_KEY] ?: Entry(FirebaseVision.getInstance().visionBarcodeDetector)
+                .also { entries.put(BARCODE_DETECTOR_KEY, it) }
+        return Lease(entry)
+    }
+
+    /**
+     * Loads the detectors the live camera screens use with the current settings in the background,
+     * unless they are loaded already.
+     */
+    fun warmUp(context: Context) {
+        val appContext = context.applicationContext
+        val multipleObjects = PreferenceUtils.isMultipleObjectsMode(appContext)
+        val classification = PreferenceUtils.isClassificationEnabled(appContext)
+        warmUpExecutor.execute {
+            val image = createBlankImage()
+            val streamMode = FirebaseVisionObjectDetectorOptions.STREAM_MODE
+            val objectDetectorKey = getObjectDetectorKey(streamMode, multipleObjects, classification)
+            if (!isWarmedUp(objectDetectorKey)) {
+                // Tracks objects across frames, so only a throwaway detector sees the blank frame.
+                val objectDetector = createObjectDetector(streamMode, multipleObjects, classification)
+                warmUp("object detector", objectDetectorKey) { objectDetector.processImage(image) }
+                close(objectDetector)
+            }
+            if (!isWarmedUp(BARCODE_DETECTOR_KEY)) {
+                // Keeps no state from one frame to the next, so the pooled detector is warmed up.
+                val barcodeDetector = acquireBarcodeDetector(appContext)
+                warmUp("barcode detector", BARCODE_DETECTOR_KEY) { barcodeDetector.get().detectInImage(image) }
+                barcodeDetector.release()
+            }
+        }
+    }
+
+    @Synchronized
+    private fun isWarmedUp(key: Int) = warmedUpKeys[key]
+
+    /** Runs the first detection of a detector, and records how long it took.  */
+    private fun warmUp(name: String, key: Int, detection: () -> Task<*>) {
+        try {
+            val startNs = System.nanoTime()
+            Tasks.await(detection())
+            val durationNs = System.nanoTime() - startNs
+            synchronized(this) { warmedUpKeys.put(key, true) }
+            PipelineMetrics.recordDuration(PipelineMetrics.Stage.DETECTOR_WARM_UP, durationNs)
+            Log.i(TAG, String.format(Locale.US, "Warmed up the %s in %.1f ms.", name, durationNs / 1e6f))
+        } catch (e: Exception) {
+            Log.w(TAG, "Failed to warm up the $name.", e)
+        }
+    }
+
+    private fun getObjectDetectorKey(detectorMode: Int, multipleObjects: Boolean, classification: Boolean) =
+            (detectorMode shl 2) or (if (multipleObjects) 2 else 0) or (if (classification) 1 else 0)
+
+    private fun createObjectDetector(
+        detectorMode: Int,
+        multipleObjects: Boolean,
+        classification: Boolean
+    ): FirebaseVisionObjectDetector {
+        val optionsBuilder = FirebaseVisionObjectDetectorOptions.Builder().setDetectorMode(detectorMode)
+        if (multipleObjects) {
+            optionsBuilder.enableMultipleObjects()
+        }
+        if (classification) {
+            optionsBuilder.enableClassification()
+        }
+        return FirebaseVision.getInstance().getOnDeviceObjectDetector(optionsBuilder.build())
+    }
+
+    @Synchronized
+    private fun evictIdleDetectors() {
+        for (i in entries.size() - 1 downTo 0) {
+            val entry = entries.valueAt(i)
+            if (entry.leaseCount == 0) {
+                entries.removeAt(i)
+                close(entry.detector)
+            }
+        }
+    }
+
+    private fun close(detector: Closeable) {
+        try {
+            detector.close()
+        } catch (e: IOException) {
+            Log.e(TAG, "Failed to close a detector!", e)
+        }
+    }
+
+    @Synchronized
+    private fun releaseLease(entry: Entry) {
+        entry.leaseCount--
+    }
+
+    private fun registerForMemoryTrims(context: Context) {
+        if (!isRegisteredForMemoryTrims) {
+            context.applicationContext.registerComponentCallbacks(memoryTrimCallbacks)
+            isRegisteredForMemoryTrims = true
+        }
+    }
+
+    /** A mid-gray NV21 frame, which the detectors process like any camera frame.  */
+    private fun createBlankImage(): FirebaseVisionImage {
+        val data = ByteArray(WARM_UP_FRAME_WIDTH * WARM_UP_FRAME_HEIGHT * 3 / 2) { 0x80.toByte() }
+        return FirebaseVisionImage.fromByteArray(
+                data,
+                FirebaseVisionImageMetadata.Builder()
+                        .setFormat(FirebaseVisionImageMetadata.IMAGE_FORMAT_NV21)
+                        .setWidth(WARM_UP_FRAME_WIDTH)
+                        .setHeight(WARM_UP_FRAME_HEIGHT)
+                        .setRotation(FirebaseVisionImageMetadata.ROTATION_0)
+                        .build()
+        )
+    }
+
+    /** A detector of the pool along with the number of its leases.  */
+    internal class Entry(val detector: Closeable) {
+        var leaseCount = 0
+    }
+
+    /**
+     * A detector leased from the pool, which the holder gives back with [release] once done with it
+     * rather than closing it.
+     */
+    class Lease<D : Closeable> internal constructor(internal val entry: Entry) {
+
+        private var isReleased = false
+
+        init {
+            entry.leaseCount++
+        }
+
+        /** Returns the detector, which may be closed once the lease is released.  */
+        @Suppress("UNCHECKED_CAST")
+        fun get(): D = entry.detector as D
+
+        /** Gives back the detector, only the first call has any effect.  */
+        fun release() {
+            if (!isReleased) {
+                isReleased = true
+                releaseLease(entry)
+            }
+        }
+    }
+}
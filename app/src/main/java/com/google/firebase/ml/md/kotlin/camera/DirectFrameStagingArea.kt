@@ -0,0 +1,102 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.kotlin.camera
+
+import androidx.annotation.GuardedBy
+import java.nio.ByteBuffer
+import java.util.ArrayDeque
+
+/**
+ * Reusable direct buffers a frame processor stages its frames in, one for the latest frame
+ * delivered by the camera and one for each frame being detected.
+ *
+ * The legacy camera API only fills heap arrays, and the detector has to copy a heap buffer
+ * before native code can read it. Staging the frame off-heap moves that copy onto the camera
+ * processing thread, into memory that is allocated once instead of per detection, and releases
+ * the camera buffer as soon as the copy is done.
+ *
+ * A processor that only detects in a region of the frame stages just that region, which makes
+ * the copy as well as the detection cheaper.
+ */
+internal class DirectFrameStagingArea {
+
+    @GuardedBy("this")
+    private val freeSlots = ArrayDeque<ByteBuffer>()
+
+    /**
+     * Copies the remaining bytes of the given frame into a free slot, and returns the slot ready to
+     * be read from. The slot stays out of use until it is recycled.
+     */
+    @Synchronized
+    fun stage(frame: ByteBuffer): ByteBuffer {
+        val slot = obtainSlot(frame.remaining())
+        slot.put(frame.duplicate())
+        slot.flip()
+        return slot
+    }
+
+    /**
+     * Copies a region of the given NV21 frame into a free slot, and returns the slot ready to be read
+     * from as an NV21 frame of the size of the region. The chroma plane is subsampled in both
+     * dimensions, so the region has to start at even coordinates and have an even size.
+     */
+    @Synchronized
+    fun stageCrop(
+        frame: ByteBuffer,
+        frameWidth: Int,
+        frameHeight: Int,
+        left: Int,
+        top: Int,
+        width: Int,
+        height: Int
+    ): ByteBuffer {
+        val slot = obtainSlot(width * height * 3 / 2)
+        val source = frame.duplicate()
+        val lumaStart = frame.position()
+        for (row in 0 until height) {
+            copyRow(source, (top + row) * frameWidth + lumaStart + left, width, slot)
+        }
+        // The interleaved VU rows follow the luma plane, at half its height.
+        val chromaStart = lumaStart + frameWidth * frameHeight
+        for (row in 0 until height / 2) {
+            copyRow(source, (top / 2 + row) * frameWidth + chromaStart + left, width, slot)
+        }
+        slot.flip()
+        return slot
+    }
+
+    /** Makes a slot returned by [stage] available to the next frames.  */
+    @Synchronized
+    fun recycle(slot: ByteBuffer) {
+        freeSlots.offerFirst(slot)
+    }
+
+    @GuardedBy("this")
+    private fun obtainSlot(sizeInBytes: Int): ByteBuffer {
+        // Slots sized for a smaller preview are left to the garbage collector.
+        val slot = freeSlots.pollFirst()?.takeIf { it.capacity() >= sizeInBytes }
+            ?: ByteBuffer.allocateDirect(sizeInBytes)
+        slot.clear()
+        return slot
+    }
+
+    private fun copyRow(source: ByteBuffer, offset: Int, length: Int, slot: ByteBuffer) {
+        source.limit(offset + length)
+        source.position(offset)
+        slot.put(source)
+    }
+}
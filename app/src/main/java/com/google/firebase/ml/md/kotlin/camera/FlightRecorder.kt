@@ -0,0 +1,382 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.kotlin.camera
+
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.util.Locale
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+/**
+ * Always-on record of the recent history of the camera pipeline, to find out after the fact what led
+ * up to a stall or a failure.
+ *
+ * The recorder keeps the last few frames, down-sampled, and the last few hundred timestamped pipeline
+ * events in fixed rings, so recording never allocates. When a latency goes over [SPIKE_THRESHOLD_MS]
+ * or a detection fails, it writes the rings to the dump directory: the frames as raw NV21 one after
+ * the other through a memory-mapped file, and a JSON index next to it with where each frame starts,
+ * and the events. Dumps are written on a background thread and spaced out, and only the most recent
+ * ones are kept.
+ */
+internal object FlightRecorder {
+
+    /**
+     * The pipeline stages that events are recorded for. The events of the processing loop refer to
+     * frames by the order the camera delivered them in, those of the processor by the order the
+     * processor got them in.
+     */
+    enum class Stage {
+        /** The camera delivered a frame to the processing loop.  */
+        FRAME_RECEIVED,
+        /** A frame was replaced by a newer one before the processing loop got to it.  */
+        FRAME_DROPPED,
+        /** The processing loop handed a frame to the processor.  */
+        PROCESS_STARTED,
+        /** The processor returned, with the time it took in milliseconds.  */
+        PROCESS_FINISHED,
+        /** A detection started, with the number of times the frame was retried before.  */
+        DETECTION_STARTED,
+        /** A detection completed, with its latency in milliseconds.  */
+        DETECTION_SUCCEEDED,
+        /** A detection failed, with the time it took in milliseconds.  */
+        DETECTION_FAILED,
+        /** A detection was abandoned, with the deadline it missed in milliseconds.  */
+        DETECTION_TIMED_OUT,
+        /** A frame skipped detection, the results of an unchanged scene were reused.  */
+        RESULTS_REUSED,
+        /** A result arrived after the result of a newer frame and was dropped, with its latency.  */
+        RESULTS_STALE,
+        /** Detection paused after a failure, with the pause in milliseconds.  */
+        BACKOFF_STARTED,
+        /** Publishing results took the main thread longer than its budget, with the time it took.  */
+        PUBLISH_OVER_BUDGET
+    }
+
+    /** Gets told about the dumps written, on the dump thread.  */
+    interface DumpListener {
+        fun onDumpWritten(indexFile: File)
+
+        fun onDumpFailed(e: IOException)
+    }
+
+    /** Latency from which the recorder dumps its history.  */
+    const val SPIKE_THRESHOLD_MS = 500L
+
+    private const val FRAME_CAPACITY = 8
+    private const val EVENT_CAPACITY = 512
+
+    /** Frames are down-sampled by whole steps until they fit in a square of this side.  */
+    private const val THUMBNAIL_MAX_SIDE = 160
+
+    private const val THUMBNAIL_CAPACITY = THUMBNAIL_MAX_SIDE * THUMBNAIL_MAX_SIDE * 3 / 2
+
+    private const val MIN_DUMP_INTERVAL_MS = 30_000L
+    private const val MAX_DUMP_COUNT = 4
+    private const val DUMP_FILE_PREFIX = "flight-"
+    private const val INDEX_FILE_SUFFIX = ".json"
+    private const val FRAMES_FILE_SUFFIX = ".nv21"
+
+    // The ring of the most recent frames.
+    private val thumbnails = Array(FRAME_CAPACITY) { ByteArray(THUMBNAIL_CAPACITY) }
+    private val thumbnailWidths = IntArray(FRAME_CAPACITY)
+    private val thumbnailHeights = IntArray(FRAME_CAPACITY)
+    private val thumbnailRotations = IntArray(FRAME_CAPACITY)
+    private val thumbnailFrameNumbers = LongArray(FRAME_CAPACITY)
+    private val thumbnailTimesNs = LongArray(FRAME_CAPACITY)
+    private var recordedFrameCount = 0L
+
+    // The ring of the most recent events.
+    private val eventTimesNs = LongArray(EVENT_CAPACITY)
+    private val eventStages = arrayOfNulls<Stage>(EVENT_CAPACITY)
+    private val eventFrames = LongArray(EVENT_CAPACITY)
+    private val eventValues = LongArray(EVENT_CAPACITY)
+    private var recordedEventCount = 0L
+
+    // To write the dumps.
+    private var dumpDirectory: File? = null
+    private var dumpListener: DumpListener? = null
+    private var dumpExecutor: ExecutorService? = null
+    private var lastDumpTimeNs = 0L
+    private var dumped = false
+
+    /** Sets where the dumps go, no dumps are written until it is set.  */
+    @Synchronized
+    fun setDumpDirectory(dumpDirectory: File, dumpListener: DumpListener?) {
+        this.dumpDirectory = dumpDirectory
+        this.dumpListener = dumpListener
+    }
+
+    @Synchronized
+    fun recordEvent(stage: Stage, frame: Long, value: Long) {
+        val index = (recordedEventCount++ % EVENT_CAPACITY).toInt()
+        eventTimesNs[index] = System.nanoTime()
+        eventStages[index] = stage
+        eventFrames[index] = frame
+        eventValues[index] = value
+    }
+
+    /** Records an event with a latency, and dumps the history if the latency is a spike.  */
+    fun recordLatency(stage: Stage, frame: Long, latencyMs: Long) {
+        recordEvent(stage, frame, latencyMs)
+        if (latencyMs > SPIKE_THRESHOLD_MS) {
+            dump("${stage.name.toLowerCase(Locale.US)} took $latencyMs ms")
+        }
+    }
+
+    /** Keeps a down-sampled copy of the given NV21 frame, which replaces the oldest one kept.  */
+    @Synchronized
+    fun recordFrame(frame: SharedFrame, frameNumber: Long) {
+        val metadata = frame.metadata
+        val step = maxOf(ceilDiv(metadata.width, THUMBNAIL_MAX_SIDE), ceilDiv(metadata.height, THUMBNAIL_MAX_SIDE))
+        // NV21 needs an even size, the chroma plane is subsampled in both dimensions.
+        val width = metadata.width / step and 1.inv()
+        val height = metadata.height / step and 1.inv()
+        val index = (recordedFrameCount++ % FRAME_CAPACITY).toInt()
+        downsample(frame.data, metadata.width, metadata.height, step, width, height, thumbnails[index])
+        thumbnailWidths[index] = width
+        thumbnailHeights[index] = height
+        thumbnailRotations[index] = metadata.rotation
+        thumbnailFrameNumbers[index] = frameNumber
+        thumbnailTimesNs[index] = System.nanoTime()
+    }
+
+    /**
+     * Writes the recorded history to the dump directory in the background, unless a dump was written
+     * shortly before.
+     */
+    @Synchronized
+    fun dump(reason: String) {
+        val nowNs = System.nanoTime()
+        val directory = dumpDirectory ?: return
+        if (dumped && nowNs - lastDumpTimeNs < TimeUnit.MILLISECONDS.toNanos(MIN_DUMP_INTERVAL_MS)) return
+        dumped = true
+        lastDumpTimeNs = nowNs
+
+        val snapshot = takeSnapshot(reason)
+        val listener = dumpListener
+        val executor = dumpExecutor ?: Executors.newSingleThreadExecutor { runnable ->
+            Thread(runnable, "FlightRecorder").apply { isDaemon = true }
+        }.also { dumpExecutor = it }
+        executor.execute {
+            try {
+                val indexFile = snapshot.writeTo(directory)
+                deleteOldDumps(directory)
+                listener?.onDumpWritten(indexFile)
+            } catch (e: IOException) {
+                listener?.onDumpFailed(e)
+            }
+        }
+    }
+
+    private fun takeSnapshot(reason: String): Snapshot {
+        val frameCount = minOf(recordedFrameCount, FRAME_CAPACITY.toLong()).toInt()
+        val eventCount = minOf(recordedEventCount, EVENT_CAPACITY.toLong()).toInt()
+        val snapshot = Snapshot(reason, frameCount, eventCount)
+        for (i in 0 until frameCount) {
+            // Oldest first.
+            val index = ((recordedFrameCount - frameCount + i) % FRAME_CAPACITY).toInt()
+            val length = thumbnailWidths[index] * thumbnailHeights[index] * 3 / 2
+            snapshot.thumbnails[i] = thumbnails[index].copyOf(length)
+            snapshot.thumbnailWidths[i] = thumbnailWidths[index]
+            snapshot.thumbnailHeights[i] = thumbnailHeights[index]
+            snapshot.thumbnailRotations[i] = thumbnailRotations[index]
+            snapshot.thumbnailFrameNumbers[i] = thumbnailFrameNumbers[index]
+            snapshot.thumbnailTimesNs[i] = thumbnailTimesNs[index]
+        }
+        for (i in 0 until eventCount) {
+            val index = ((recordedEventCount - eventCount + i) % EVENT_CAPACITY).toInt()
+            snapshot.eventTimesNs[i] = eventTimesNs[index]
+            snapshot.eventStages[i] = eventStages[index]
+            snapshot.eventFrames[i] = eventFrames[index]
+            snapshot.eventValues[i] = eventValues[index]
+        }
+        return snapshot
+    }
+
+    /** Samples every step-th pixel of both planes of an NV21 frame into a smaller NV21 frame.  */
+    private fun downsample(
+        source: ByteBuffer,
+        sourceWidth: Int,
+        sourceHeight: Int,
+        step: Int,
+        width: Int,
+        height: Int,
+        thumbnail: ByteArray
+    ) {
+        if (source.hasArray()) {
+            // Skips the bounds checks of the buffer accessors, most frames come from heap buffers.
+            downsample(source.array(), source.arrayOffset(), sourceWidth, sourceHeight, step, width, height, thumbnail)
+            return
+        }
+        var position = 0
+        for (y in 0 until height) {
+            val rowStart = y * step * sourceWidth
+            for (x in 0 until width) {
+                thumbnail[position++] = source.get(rowStart + x * step)
+            }
+        }
+        val chromaStart = sourceWidth * sourceHeight
+        for (y in 0 until height / 2) {
+            val rowStart = chromaStart + y * step * sourceWidth
+            for (x in 0 until width / 2) {
+                val pairStart = rowStart + x * step * 2
+                thumbnail[position++] = source.get(pairStart)
+                thumbnail[position++] = source.get(pairStart + 1)
+            }
+        }
+    }
+
+    private fun downsample(
+        source: ByteArray,
+        sourceOffset: Int,
+        sourceWidth: Int,
+        sourceHeight: Int,
+        step: Int,
+        width: Int,
+        height: Int,
+        thumbnail: ByteArray
+    ) {
+        var position = 0
+        for (y in 0 until height) {
+            var sourcePosition = sourceOffset + y * step * sourceWidth
+            for (x in 0 until width) {
+                thumbnail[position++] = source[sourcePosition]
+                sourcePosition += step
+            }
+        }
+        val chromaStart = sourceOffset + sourceWidth * sourceHeight
+        for (y in 0 until height / 2) {
+            var sourcePosition = chromaStart + y * step * sourceWidth
+            for (x in 0 until width / 2) {
+                thumbnail[position++] = source[sourcePosition]
+                thumbnail[position++] = source[sourcePosition + 1]
+                sourcePosition += step * 2
+            }
+        }
+    }
+
+    private fun ceilDiv(dividend: Int, divisor: Int): Int = (dividend + divisor - 1) / divisor
+
+    private fun deleteOldDumps(directory: File) {
+        val indexFiles = directory.listFiles { _, name ->
+            name.startsWith(DUMP_FILE_PREFIX) && name.endsWith(INDEX_FILE_SUFFIX)
+        }
+        if (indexFiles == null || indexFiles.size <= MAX_DUMP_COUNT) return
+        // The names start with the time of the dump, so they sort oldest first.
+        indexFiles.sort()
+        for (i in 0 until indexFiles.size - MAX_DUMP_COUNT) {
+            val baseName = indexFiles[i].name.removeSuffix(INDEX_FILE_SUFFIX)
+            File(directory, baseName + FRAMES_FILE_SUFFIX).delete()
+            indexFiles[i].delete()
+        }
+    }
+
+    /** A copy of the rings taken when a dump is triggered, oldest entries first.  */
+    private class Snapshot(val reason: String, frameCount: Int, eventCount: Int) {
+        val timeMs = System.currentTimeMillis()
+        val timeNs = System.nanoTime()
+
+        val thumbnails = arrayOfNulls<ByteArray>(frameCount)
+        val thumbnailWidths = IntArray(frameCount)
+        val thumbnailHeights = IntArray(frameCount)
+        val thumbnailRotations = IntArray(frameCount)
+        val thumbnailFrameNumbers = LongArray(frameCount)
+        val thumbnailTimesNs = LongArray(frameCount)
+
+        val eventTimesNs = LongArray(eventCount)
+        val eventStages = arrayOfNulls<Stage>(eventCount)
+        val eventFrames = LongArray(eventCount)
+        val eventValues = LongArray(eventCount)
+
+        /** Writes the frames file and the index file of the dump, and returns the index file.  */
+        @Throws(IOException::class)
+        fun writeTo(directory: File): File {
+            if (!directory.isDirectory && !directory.mkdirs()) {
+                throw IOException("Could not create the dump directory $directory")
+            }
+            val baseName = DUMP_FILE_PREFIX + timeMs
+            val framesFile = File(directory, baseName + FRAMES_FILE_SUFFIX)
+            val indexFile = File(directory, baseName + INDEX_FILE_SUFFIX)
+
+            val framesSize = thumbnails.sumBy { it?.size ?: 0 }
+            RandomAccessFile(framesFile, "rw").use { file ->
+                file.setLength(framesSize.toLong())
+                val frames = file.channel.map(FileChannel.MapMode.READ_WRITE, 0, framesSize.toLong())
+                thumbnails.forEach { frames.put(it) }
+                frames.force()
+            }
+
+            indexFile.writeText(toJson(framesFile.name), Charsets.UTF_8)
+            return indexFile
+        }
+
+        /** Times are relative to the dump, in microseconds, negative for everything recorded.  */
+        private fun toJson(framesFileName: String): String {
+            val json = StringBuilder()
+            json.append("{\"reason\":\"").append(escape(reason)).append('"')
+            json.append(",\"timeMs\":").append(timeMs)
+            json.append(",\"format\":\"NV21\"")
+            json.append(",\"framesFile\":\"").append(escape(framesFileName)).append('"')
+            json.append(",\"frames\":[")
+            var offset = 0
+            for (i in thumbnails.indices) {
+                if (i > 0) json.append(',')
+                val length = thumbnails[i]?.size ?: 0
+                json.append("{\"frame\":").append(thumbnailFrameNumbers[i])
+                json.append(",\"timeUs\":").append(toRelativeTimeUs(thumbnailTimesNs[i]))
+                json.append(",\"offset\":").append(offset)
+                json.append(",\"length\":").append(length)
+                json.append(",\"width\":").append(thumbnailWidths[i])
+                json.append(",\"height\":").append(thumbnailHeights[i])
+                json.append(",\"rotation\":").append(thumbnailRotations[i])
+                json.append('}')
+                offset += length
+            }
+            json.append("],\"events\":[")
+            for (i in eventStages.indices) {
+                if (i > 0) json.append(',')
+                json.append("{\"timeUs\":").append(toRelativeTimeUs(eventTimesNs[i]))
+                json.append(",\"stage\":\"").append(eventStages[i]?.name).append('"')
+                json.append(",\"frame\":").append(eventFrames[i])
+                json.append(",\"value\":").append(eventValues[i])
+                json.append('}')
+            }
+            json.append("]}")
+            return json.toString()
+        }
+
+        private fun toRelativeTimeUs(recordedTimeNs: Long): Long =
+                TimeUnit.NANOSECONDS.toMicros(recordedTimeNs - timeNs)
+
+        private fun escape(value: String): String {
+            val escaped = StringBuilder(value.length)
+            for (c in value) {
+                when {
+                    c == '"' || c == '\\' -> escaped.append('\\').append(c)
+                    c < ' ' -> escaped.append(' ')
+                    else -> escaped.append(c)
+                }
+            }
+            return escaped.toString()
+        }
+    }
+}
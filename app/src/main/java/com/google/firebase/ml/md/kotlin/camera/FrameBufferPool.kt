@@ -0,0 +1,285 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.kotlin.camera
+
+import android.graphics.ImageFormat
+import android.hardware.Camera
+import android.os.SystemClock
+import android.util.Log
+import com.google.android.gms.common.images.Size
+import java.nio.ByteBuffer
+import java.util.Locale
+import kotlin.math.ceil
+
+/**
+ * Owns the preview buffers handed to the camera through [Camera.addCallbackBuffer].
+ *
+ * Every buffer is allocated one byte larger than a preview frame, and that trailing byte stores
+ * the buffer's slot index. Mapping the array received in a preview callback back to its [FrameBuffer]
+ * is therefore a single array read instead of a map lookup.
+ *
+ * The pool keeps track of which buffers are queued in the camera and which are leased to the
+ * processing pipeline. Its depth adapts between the configured minimum and maximum: it grows when
+ * the camera runs out of free buffers or when buffers are held for several frame intervals, and
+ * shrinks back once the pipeline returns them quickly again.
+ */
+@Suppress("DEPRECATION")
+internal class FrameBufferPool(minDepth: Int, maxDepth: Int) {
+
+    /** A preview buffer and the state the pool tracks for it.  */
+    internal class FrameBuffer(val index: Int, frameSizeInBytes: Int) {
+        // Creating the byte array this way and wrapping it, as opposed to using .allocate(),
+        // should guarantee that there will be an array to work with.
+        val array = ByteArray(frameSizeInBytes + 1).apply { this[frameSizeInBytes] = index.toByte() }
+        val byteBuffer: ByteBuffer = ByteBuffer.wrap(array)
+
+        internal var leased = false
+        internal var leasedAtMs = 0L
+
+        init {
+            check(byteBuffer.hasArray() && byteBuffer.array() === array) {
+                // This should never happen. If it does, then we wouldn't be passing the preview content to
+                // the underlying detector later.
+                "Failed to create valid buffer for camera source."
+            }
+        }
+    }
+
+    /** A point in time snapshot of the pool accounting.  */
+    internal class Stats(
+        /** Number of buffers currently owned by the pool.  */
+        val depth: Int,
+        /** Number of buffers currently leased to the processing pipeline.  */
+        val leased: Int,
+        /** Total number of frames leased since the pool was attached to a camera.  */
+        val leaseCount: Long,
+        /** Number of times the camera was left without any free buffer to fill.  */
+        val starvationCount: Long,
+        /** Number of frames that were returned to the camera without even being leased.  */
+        val skippedFrameCount: Long,
+        /** Smoothed time in milliseconds a buffer stays leased before it gets returned.  */
+        val averageLeaseTimeMs: Float
+    ) {
+        override fun toString(): String = String.format(
+                Locale.US,
+                "depth=%d, leased=%d, leases=%d, starvations=%d, skips=%d, avgLeaseMs=%.1f",
+                depth, leased, leaseCount, starvationCount, skippedFrameCount, averageLeaseTimeMs
+        )
+    }
+
+    private var minDepth = 0
+    private var maxDepth = 0
+    private var slots = arrayOfNulls<FrameBuffer>(0)
+    private var camera: Camera? = null
+    private var frameSizeInBytes = 0
+    private var frameIntervalMs = 0f
+    private var depth = 0
+    private var targetDepth = 0
+    private var leased = 0
+    private var leaseCount = 0L
+    private var starvationCount = 0L
+    private var skippedFrameCount = 0L
+    private var averageLeaseTimeMs = 0f
+
+    init {
+        setDepthRange(minDepth, maxDepth)
+    }
+
+    /**
+     * Sets the range the depth of the pool adapts within. Takes effect the next time the pool is
+     * attached to a camera.
+     *
+     * @param minDepth the number of buffers allocated up front, also the floor the pool shrinks to.
+     * @param maxDepth the number of buffers the pool never grows beyond.
+     */
+    @Synchronized
+    fun setDepthRange(minDepth: Int, maxDepth: Int) {
+        checkDepthRange(minDepth, maxDepth)
+        this.minDepth = minDepth
+        this.maxDepth = maxDepth
+    }
+
+    /**
+     * Allocates the initial buffers for frames of the given preview size and queues them into the
+     * camera.
+     *
+     * @param previewFps the maximum preview frame rate, used to express lease times in frames.
+     */
+    @Synchronized
+    fun attach(camera: Camera, previewSize: Size, previewFps: Float) {
+        clear()
+        slots = arrayOfNulls(maxDepth)
+        val bitsPerPixel = ImageFormat.getBitsPerPixel(ImageFormat.NV21)
+        val sizeInBits = previewSize.height.toLong() * previewSize.width.toLong() * bitsPerPixel.toLong()
+        this.camera = camera
+        this.frameSizeInBytes = ceil(sizeInBits / 8.0).toInt()
+        this.targetDepth = minDepth
+        setFrameRate(previewFps)
+        while (depth < minDepth) {
+            if (!addBufferToCamera()) break
+        }
+    }
+
+    /**
+     * Leases the buffer the camera just filled with the given preview data.
+     *
+     * @return the leased buffer, or null if the data was not allocated by this pool.
+     */
+    @Synchronized
+    fun lease(data: ByteArray): FrameBuffer? {
+        val buffer = findBuffer(data)
+        if (buffer == null || buffer.leased) return null
+
+        buffer.leased = true
+        buffer.leasedAtMs = SystemClock.elapsedRealtime()
+        leased++
+        leaseCount++
+        if (depth == leased) {
+            // The camera has no buffer left to write the next frame into, so it drops frames until one
+            // is returned. Grows the pool right away instead of waiting for the lease time to catch up.
+            starvationCount++
+            if (depth < maxDepth) {
+                addBufferToCamera()
+            }
+        }
+        return buffer
+    }
+
+    /** Hands the buffer the camera just filled straight back to it, skipping the frame.  */
+    @Synchronized
+    fun skip(data: ByteArray) {
+        val buffer = findBuffer(data)
+        if (buffer == null || buffer.leased) return
+        val camera = camera ?: return
+        skippedFrameCount++
+        camera.addCallbackBuffer(buffer.array)
+    }
+
+    /** Updates the preview frame rate, used to express lease times in frames.  */
+    @Synchronized
+    fun setFrameRate(previewFps: Float) {
+        frameIntervalMs = 1000f / previewFps
+    }
+
+    /** Returns a leased buffer to the camera once the last reference to its frame is released.  */
+    @Synchronized
+    fun release(buffer: FrameBuffer) {
+        returnToCamera(buffer)
+    }
+
+    /** Returns a snapshot of the current pool accounting.  */
+    @Synchronized
+    fun getStats() = Stats(
+            depth, leased, leaseCount, starvationCount, skippedFrameCount, averageLeaseTimeMs
+    )
+
+    /** Releases all the buffers and resets the accounting.  */
+    @Synchronized
+    fun clear() {
+        slots.fill(null)
+        camera = null
+        depth = 0
+        leased = 0
+        leaseCount = 0
+        starvationCount = 0
+        skippedFrameCount = 0
+        averageLeaseTimeMs = 0f
+    }
+
+    private fun returnToCamera(buffer: FrameBuffer) {
+        if (!buffer.leased || slots.getOrNull(buffer.index) !== buffer) {
+            // The buffer belongs to a camera session that has been closed already.
+            return
+        }
+
+        buffer.leased = false
+        leased--
+        val leaseTimeMs = SystemClock.elapsedRealtime() - buffer.leasedAtMs
+        averageLeaseTimeMs += LEASE_TIME_SMOOTHING_FACTOR * (leaseTimeMs - averageLeaseTimeMs)
+        updateTargetDepth()
+
+        if (depth > targetDepth) {
+            // Retires the buffer instead of handing it back, the camera keeps enough of the others.
+            slots[buffer.index] = null
+            depth--
+            Log.d(TAG, "Shrunk frame buffer pool to $depth")
+            return
+        }
+
+        camera?.addCallbackBuffer(buffer.array)
+        while (depth < targetDepth) {
+            if (!addBufferToCamera()) break
+        }
+    }
+
+    /**
+     * Sizes the pool so that the camera keeps [CAMERA_QUEUE_DEPTH] free buffers while the
+     * pipeline holds onto frames for the measured lease time, plus one for the pending frame.
+     */
+    private fun updateTargetDepth() {
+        val framesInPipeline = ceil(averageLeaseTimeMs / frameIntervalMs).toInt().coerceAtLeast(1)
+        val desiredDepth = maxOf(CAMERA_QUEUE_DEPTH + 1 + framesInPipeline, CAMERA_QUEUE_DEPTH + leased)
+        targetDepth = desiredDepth.coerceIn(minDepth, maxDepth)
+    }
+
+    private fun findBuffer(data: ByteArray): FrameBuffer? {
+        if (data.size != frameSizeInBytes + 1) return null
+        val index = data[frameSizeInBytes].toInt() and 0xFF
+        // The camera should never write past the frame, but falls back to an identity scan rather
+        // than losing the buffer if it ever does.
+        return slots.getOrNull(index)?.takeIf { it.array === data } ?: findByIdentity(data)
+    }
+
+    private fun findByIdentity(data: ByteArray): FrameBuffer? =
+        slots.firstOrNull { it?.array === data }?.also { data[frameSizeInBytes] = it.index.toByte() }
+
+    private fun addBufferToCamera(): Boolean {
+        val camera = camera ?: return false
+        val index = slots.indexOfFirst { it == null }
+        if (index < 0) return false
+
+        val buffer = FrameBuffer(index, frameSizeInBytes)
+        slots[index] = buffer
+        depth++
+        camera.addCallbackBuffer(buffer.array)
+        return true
+    }
+
+    companion object {
+        private const val TAG = "FrameBufferPool"
+
+        /**
+         * Number of buffers the camera needs queued on its side to keep delivering frames. Through trial
+         * and error it appears that the camera has one thread acquiring images and another one calling
+         * into user code, and spews warnings when it has fewer than two buffers to work with.
+         */
+        private const val CAMERA_QUEUE_DEPTH = 2
+
+        /** The slot index is stored in a single trailing byte, which bounds the depth of the pool.  */
+        private const val MAX_SUPPORTED_DEPTH = 0xFF
+
+        /** Weight of the latest sample in the exponential moving average of the lease time.  */
+        private const val LEASE_TIME_SMOOTHING_FACTOR = 0.1f
+
+        /** Throws if the pool can't keep the camera supplied within the given depth range.  */
+        fun checkDepthRange(minDepth: Int, maxDepth: Int) {
+            require(minDepth > CAMERA_QUEUE_DEPTH && maxDepth >= minDepth && maxDepth <= MAX_SUPPORTED_DEPTH) {
+                "Invalid frame buffer pool depth range: [$minDepth, $maxDepth]"
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.kotlin.camera
+
+import android.util.Log
+import androidx.annotation.VisibleForTesting
+import java.nio.ByteBuffer
+import java.util.ArrayDeque
+
+/**
+ * Frame buffers for the backends that copy frames out of the camera, rather than have the camera
+ * write into buffers of their own as [FrameBufferPool] does.
+ *
+ * A buffer is recycled once the last reference to its frame is released. No more than the maximum
+ * depth is ever allocated, so a pipeline holding onto frames makes the backend skip frames rather
+ * than allocate.
+ */
+internal class FrameBufferRecycler {
+
+    private val freeBuffers = ArrayDeque<ByteBuffer>()
+    private var frameSizeInBytes = 0
+    private var maxDepth = 0
+
+    /** Tells the buffers of the current session from those of a session that has been cleared.  */
+    private var generation = 0
+    private var exhaustedCount = 0L
+
+    /** The number of frames obtained that haven't been released yet, of every session.  */
+    @get:Synchronized
+    @get:VisibleForTesting
+    var heldFrameCount = 0
+        private set
+
+    /** The number of buffers allocated in the current session.  */
+    @get:Synchronized
+    @get:VisibleForTesting
+    var depth = 0
+        private set
+
+    /** Starts over with buffers for frames of the given size, allocating the minimum up front.  */
+    @Synchronized
+    fun reset(frameSizeInBytes: Int, minDepth: Int, maxDepth: Int) {
+        clear()
+        this.frameSizeInBytes = frameSizeInBytes
+        this.maxDepth = maxDepth
+        while (depth < minDepth) {
+            freeBuffers.add(allocate())
+        }
+    }
+
+    /** Returns a frame backed by a free buffer, or null if the pipeline holds all of them.  */
+    @Synchronized
+    fun obtainFrame(metadata: FrameMetadata): SharedFrame? {
+        val buffer = freeBuffers.poll() ?: if (depth < maxDepth) {
+            allocate()
+        } else {
+            exhaustedCount++
+            return null
+        }
+        buffer.clear()
+        heldFrameCount++
+        val frameGeneration = generation
+        return SharedFrame(buffer, metadata) { recycle(buffer, frameGeneration) }
+    }
+
+    /** Drops all the buffers, those still held by the pipeline are dropped once released.  */
+    @Synchronized
+    fun clear() {
+        if (depth > 0) {
+            Log.d(TAG, "Used $depth frame buffers, ran out of them $exhaustedCount times")
+        }
+        freeBuffers.clear()
+        depth = 0
+        exhaustedCount = 0
+        generation++
+    }
+
+    @Synchronized
+    private fun recycle(buffer: ByteBuffer, bufferGeneration: Int) {
+        heldFrameCount--
+        if (bufferGeneration == generation) {
+            freeBuffers.add(buffer)
+        }
+    }
+
+    private fun allocate(): ByteBuffer {
+        depth++
+        // Wraps an array rather than allocating directly, so the frame can be filled through it.
+        return ByteBuffer.wrap(ByteArray(frameSizeInBytes))
+    }
+
+    companion object {
+        private const val TAG = "FrameBufferRecycler"
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.kotlin.camera
+
+import java.nio.ByteBuffer
+
+/**
+ * A box of a camera frame copied out as an upright NV21 image of its own, scaled down to a maximum
+ * width, so that only the pixels of an object are kept and encoded rather than the whole frame
+ * converted to a bitmap first.
+ *
+ * The frame is sampled by nearest neighbor, as the bitmap scaling without filtering did, and
+ * rotated along the way, so the crop comes out the way the detector saw the object.
+ *
+ * @property data the NV21 bytes of the crop, a luma plane followed by an interleaved chroma plane.
+ * @property width width of the crop, always even.
+ * @property height height of the crop, always even.
+ */
+class FrameCrop private constructor(val data: ByteArray, val width: Int, val height: Int) {
+
+    companion object {
+
+        // The rotations of a frame in quarter turns, the values of the rotation constants of
+        // FirebaseVisionImageMetadata.
+        private const val ROTATION_90 = 1
+        private const val ROTATION_180 = 2
+        private const val ROTATION_270 = 3
+
+        /**
+         * Copies the given box of the upright image out of the given NV21 frame.
+         *
+         * @return the crop, or null if the box covers less than a 2x2 block of the frame.
+         */
+        internal fun crop(
+            frame: ByteBuffer,
+            metadata: FrameMetadata,
+            left: Int,
+            top: Int,
+            right: Int,
+            bottom: Int,
+            maxWidth: Int
+        ): FrameCrop? {
+            val frameWidth = metadata.width
+            val frameHeight = metadata.height
+            val isSideways = metadata.rotation == ROTATION_90 || metadata.rotation == ROTATION_270
+            val uprightWidth = if (isSideways) frameHeight else frameWidth
+            val uprightHeight = if (isSideways) frameWidth else frameHeight
+            val boxLeft = left.coerceAtLeast(0)
+            val boxTop = top.coerceAtLeast(0)
+            val boxWidth = right.coerceAtMost(uprightWidth) - boxLeft
+            val boxHeight = bottom.coerceAtMost(uprightHeight) - boxTop
+            var width = boxWidth
+            var height = boxHeight
+            if (width > maxWidth) {
+                width = maxWidth
+                height = (maxWidth.toFloat() / boxWidth * boxHeight).toInt()
+            }
+            // The chroma plane is subsampled in both dimensions, so the crop is cut to even sizes.
+            width = width and 1.inv()
+            height = height and 1.inv()
+            if (width < 2 || height < 2) return null
+
+            // Where a pixel of the upright image is in the frame splits into a part that only depends on its column
+            // and one that only depends on its row, so both are worked out once per column and row rather than for
+            // every pixel.
+            val lumaColumnOffsets = IntArray(width)
+            val chromaColumnOffsets = IntArray(width / 2)
+            for (column in 0 until width) {
+                val x = boxLeft + (column.toLong() * boxWidth / width).toInt()
+                lumaColumnOffsets[column] = lumaOffsetOfColumn(x, metadata)
+                if (column % 2 == 0) {
+                    chromaColumnOffsets[column / 2] = chromaOffsetOfColumn(x, metadata)
+                }
+            }
+            val lumaRowOffsets = IntArray(height)
+            val chromaRowOffsets = IntArray(height / 2)
+            for (row in 0 until height) {
+                val y = boxTop + (row.toLong() * boxHeight / height).toInt()
+                lumaRowOffsets[row] = lumaOffsetOfRow(y, metadata)
+                if (row % 2 == 0) {
+                    chromaRowOffsets[row / 2] = chromaOffsetOfRow(y, metadata)
+                }
+            }
+
+            val data = ByteArray(width * height * 3 / 2)
+            val lumaStart = frame.position()
+            var index = 0
+            for (row in 0 until height) {
+                val rowStart = lumaStart + lumaRowOffsets[row]
+                for (column in 0 until width) {
+                    data[index++] = frame.get(rowStart + lumaColumnOffsets[column])
+                }
+            }
+            // The chroma plane holds a V and a U byte for every 2x2 block of the luma plane.
+            val chromaStart = lumaStart + frameWidth * frameHeight
+            for (row in 0 until height / 2) {
+                val rowStart = chromaStart + chromaRowOffsets[row]
+                for (column in 0 until width / 2) {
+                    val offset = rowStart + chromaColumnOffsets[column]
+                    data[index++] = frame.get(offset)
+                    data[index++] = frame.get(offset + 1)
+                }
+            }
+            return FrameCrop(data, width, height)
+        }
+
+        /** Part of the offset in the luma plane of a pixel of the upright image set by its column.  */
+        private fun lumaOffsetOfColumn(x: Int, metadata: FrameMetadata): Int = when (metadata.rotation) {
+            ROTATION_90 -> (metadata.height - 1 - x) * metadata.width
+            ROTATION_180 -> metadata.width - 1 - x
+            ROTATION_270 -> x * metadata.width
+            else -> x
+        }
+
+        /** Part of the offset in the luma plane of a pixel of the upright image set by its row.  */
+        private fun lumaOffsetOfRow(y: Int, metadata: FrameMetadata): Int = when (metadata.rotation) {
+            ROTATION_90 -> y
+            ROTATION_180 -> (metadata.height - 1 - y) * metadata.width
+            ROTATION_270 -> metadata.width - 1 - y
+            else -> y * metadata.width
+        }
+
+        /** Part of the offset in the chroma plane of a pixel of the upright image set by its column.  */
+        private fun chromaOffsetOfColumn(x: Int, metadata: FrameMetadata): Int = when (metadata.rotation) {
+            ROTATION_90 -> (metadata.height - 1 - x) / 2 * metadata.width
+            ROTATION_180 -> (metadata.width - 1 - x) and 1.inv()
+            ROTATION_270 -> x / 2 * metadata.width
+            else -> x and 1.inv()
+        }
+
+        /** Part of the offset in the chroma plane of a pixel of the upright image set by its row.  */
+        private fun chromaOffsetOfRow(y: Int, metadata: FrameMetadata): Int = when (metadata.rotation) {
+            ROTATION_90 -> y and 1.inv()
+            ROTATION_180 -> (metadata.height - 1 - y) / 2 * metadata.width
+            ROTATION_270 -> (metadata.width - 1 - y) and 1.inv()
+            else -> y / 2 * metadata.width
+        }
+    }
+}
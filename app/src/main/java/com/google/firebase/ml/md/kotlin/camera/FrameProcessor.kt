@@ -16,13 +16,29 @@
 
 package com.google.firebase.ml.md.kotlin.camera
 
-import java.nio.ByteBuffer
-
 /** An interface to process the input camera frame and perform detection on it.  */
 interface FrameProcessor {
 
-    /** Processes the input frame with the underlying detector.  */
-    fun process(data: ByteBuffer, frameMetadata: FrameMetadata, graphicOverlay: GraphicOverlay)
+    /**
+     * Processes the input frame with the underlying detector. The frame may only be used beyond this
+     * call if the processor retains it, in which case it has to release the frame once it is done.
+     */
+    fun process(frame: SharedFrame, graphicOverlay: GraphicOverlay)
+
+    /**
+     * Returns the shortest interval between frames that the processor can keep up with, estimated
+     * from its recent detections, or 0 if it has no estimate yet.
+     */
+    fun getSustainableFrameIntervalMs(): Long
+
+    /**
+     * Returns the latency within which the given fraction of the recent detections completed, or 0 if
+     * there's no detection yet.
+     */
+    fun getLatencyPercentileMs(fraction: Float): Long
+
+    /** Returns the number of detections the processor completed, which only ever goes up.  */
+    fun getCompletedDetectionCount(): Long
 
     /** Stops the underlying detector and release resources.  */
     fun stop()
@@ -16,81 +16,823 @@
 
 package com.google.firebase.ml.md.kotlin.camera
 
+import android.content.Context
+import android.graphics.Rect
+import android.os.Handler
+import android.os.Looper
 import android.os.SystemClock
 import android.util.Log
 import androidx.annotation.GuardedBy
+import androidx.annotation.MainThread
+import androidx.annotation.WorkerThread
+import com.google.android.gms.tasks.OnFailureListener
+import com.google.android.gms.tasks.OnSuccessListener
 import com.google.android.gms.tasks.Task
+import com.google.firebase.ml.md.kotlin.settings.PreferenceUtils
 import com.google.firebase.ml.vision.common.FirebaseVisionImage
 import com.google.firebase.ml.vision.common.FirebaseVisionImageMetadata
-import java.nio.ByteBuffer
+import java.util.ArrayDeque
+import java.util.Locale
+import java.util.concurrent.Executor
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
 
-/** Abstract base class of [FrameProcessor].  */
-abstract class FrameProcessorBase<T> : FrameProcessor {
+/**
+ * Abstract base class of [FrameProcessor].
+ *
+ * Frames go through two stages: the latest frame waits in the pending stage, which only ever
+ * holds the most recent one, until the in-flight stage has room for it. Up to the configured
+ * number of frames are in flight at once, so the detector can start on the next frame while the
+ * results of the previous one are post-processed and drawn. Results are delivered in frame order: a
+ * result that completes after the one of a newer frame is stale and gets dropped.
+ *
+ * Results are post-processed on a background executor by [onResults], and only what it leaves to
+ * publish them runs on the main thread. The publishers queued up run one after the other until the
+ * main thread used up its budget for the frame, and the rest wait for the next message, so that the
+ * main thread gets to draw in between however many results come in.
+ *
+ * A detection that fails, or that misses its deadline and gets abandoned, pauses the pipeline
+ * for a backoff that grows with consecutive failures. Detection then resumes with the newest
+ * frame, the failed frame itself is only retried a few times if no newer frame came in since.
+ *
+ * When scene change gating is enabled, frames that show the same scene as the frame of the
+ * latest results skip detection entirely, and get the results of that frame delivered instead.
+ * Results are only reused for a limited time, so that a detection missed on a still scene, like a
+ * barcode read while the camera was still focusing, gets another chance.
+ *
+ * A processor that only cares about part of the frame returns that part from [getDetectionRegion],
+ * and then only that region of each frame is detected. One that keeps its graphics moving in between detections
+ * passes to the constructor in how many frames one is detected, and the others are skipped.
+ *
+ * The pipeline settings are read once when the processor is created, which happens every time the camera starts,
+ * rather than for every frame on the camera thread.
+ *
+ * @param framesPerDetection in how many frames one is detected, 1 to detect every frame. Processors that keep their
+ * graphics moving in between detections can detect less often, and leave the detector idle for the rest.
+ */
+abstract class FrameProcessorBase<T>(context: Context, framesPerDetection: Int = 1) : FrameProcessor {
+
+    /** A point in time snapshot of the pipeline accounting.  */
+    class PipelineStats internal constructor(
+        /** Number of frames waiting for a detection to start, at most one.  */
+        val pendingDepth: Int,
+        /** Number of frames being detected.  */
+        val inFlightDepth: Int,
+        /** Number of results delivered to [onSuccess].  */
+        val deliveredResultCount: Long,
+        /** Number of results dropped because the result of a newer frame was delivered first.  */
+        val staleResultCount: Long,
+        /** Number of frames given up on after their detection failed or timed out.  */
+        val lostFrameCount: Long,
+        /** Number of detections abandoned because they missed their deadline.  */
+        val timedOutDetectionCount: Long,
+        /** Number of times a failed frame was submitted again.  */
+        val retryCount: Long,
+        /** Number of frames that skipped detection, the results of an unchanged scene were reused.  */
+        val reusedResultCount: Long,
+        /** Number of results whose publishing took the main thread longer than its budget.  */
+        val overBudgetPublishCount: Long,
+        /** Number of frames skipped because only one in every few frames is detected.  */
+        val skippedFrameCount: Long
+    ) {
+        override fun toString(): String = String.format(
+                Locale.US,
+                "pending=%d, inFlight=%d, delivered=%d, stale=%d, lost=%d, timedOut=%d, retries=%d, reused=%d, " +
+                        "overBudgetPublishes=%d, skipped=%d",
+                pendingDepth, inFlightDepth, deliveredResultCount, staleResultCount, lostFrameCount,
+                timedOutDetectionCount, retryCount, reusedResultCount, overBudgetPublishCount, skippedFrameCount
+        )
+    }
+
+    /** A frame submitted to the detector, along with the state needed to recover if it fails.  */
+    private inner class Detection(
+        val frame: SharedFrame,
+        val frameSequence: Long,
+        val frameTimeNs: Long,
+        val detectionRegion: Rect?,
+        graphicOverlay: GraphicOverlay
+    ) {
+        val watchdog = Runnable { onDetectionTimedOut(this, graphicOverlay) }
+        var retryCount = 0
+
+        @GuardedBy("this@FrameProcessorBase")
+        var completed = false
+
+        @GuardedBy("this@FrameProcessorBase")
+        var abandoned = false
+    }
+
+    /**
+     * Publishes the post-processed results of a frame on the main thread, recycled once it ran so that delivering
+     * results doesn't allocate.
+     */
+    private class Publication {
+        var frameSequence = 0L
+        var frameTimeNs = 0L
+        var frame: SharedFrame? = null
+        var publisher: Runnable? = null
+    }
 
     // To keep the latest frame and its metadata.
     @GuardedBy("this")
-    private var latestFrame: ByteBuffer? = null
+    private var latestFrame: SharedFrame? = null
+
+    @GuardedBy("this")
+    private var latestFrameSequence = 0L
+
+    // When the processor got the latest frame, to measure the time up to its results.
+    @GuardedBy("this")
+    private var latestFrameTimeNs = 0L
+
+    @GuardedBy("this")
+    private var latestFrameDetectionRegion: Rect? = null
+
+    // To keep track of the frames in process and of the order their results are delivered in.
+    @GuardedBy("this")
+    private var framesInFlight = 0
+
+    @GuardedBy("this")
+    private var nextFrameSequence = 0L
+
+    @GuardedBy("this")
+    private var lastDeliveredFrameSequence = -1L
+
+    // The pipeline settings, as they were when the processor was created.
+    private val maxFramesInFlight = PreferenceUtils.getMaxDetectionsInFlight(context)
+    private val framesPerDetection = framesPerDetection.coerceAtLeast(1)
+    private val directFrameBufferEnabled = PreferenceUtils.isDirectFrameBufferEnabled(context)
+    private val sceneChangeGatingEnabled = PreferenceUtils.isSceneChangeGatingEnabled(context)
+
+    @GuardedBy("this")
+    private val latencyHistogram = LatencyHistogram(LATENCY_WINDOW_SIZE)
+
+    // To tell when the camera switches to frames of another size, which the latencies don't carry to.
+    @GuardedBy("this")
+    private var latencyFrameWidth = 0
+
+    @GuardedBy("this")
+    private var latencyFrameHeight = 0
+
+    @GuardedBy("this")
+    private var deliveredResultCount = 0L
+
+    @GuardedBy("this")
+    private var staleResultCount = 0L
+
+    // To recover from failed or hung detections.
+    private val mainHandler = Handler(Looper.getMainLooper())
 
     @GuardedBy("this")
-    private var latestFrameMetaData: FrameMetadata? = null
+    private var consecutiveFailureCount = 0
 
-    // To keep the frame and metadata in process.
     @GuardedBy("this")
-    private var processingFrame: ByteBuffer? = null
+    private var backingOff = false
 
+    // To keep the failed detection during the backoff, in case it gets retried.
     @GuardedBy("this")
-    private var processingFrameMetaData: FrameMetadata? = null
+    private var failedDetection: Detection? = null
+
+    @GuardedBy("this")
+    private var stopped = false
+
+    @GuardedBy("this")
+    private var lostFrameCount = 0L
+
+    @GuardedBy("this")
+    private var timedOutDetectionCount = 0L
+
+    @GuardedBy("this")
+    private var retryCount = 0L
+
+    // To skip the detection of frames that show the same scene as the frame of the latest results.
+    @GuardedBy("this")
+    private val sceneChangeDetector = SceneChangeDetector()
+
+    @GuardedBy("this")
+    private var referenceFrameSequence = Long.MAX_VALUE
+
+    @GuardedBy("this")
+    private var reusableResults: T? = null
+
+    @GuardedBy("this")
+    private var reusableResultsDetectionRegion: Rect? = null
+
+    @GuardedBy("this")
+    private var reusableResultsTimeMs = 0L
+
+    // To keep the newest frame whose reused results wait to be posted to the main thread.
+    @GuardedBy("this")
+    private var reusedFrame: SharedFrame? = null
+
+    @GuardedBy("this")
+    private var reusedFrameSequence = 0L
+
+    @GuardedBy("this")
+    private var reusedFrameTimeNs = 0L
+
+    @GuardedBy("this")
+    private var reusedResultCount = 0L
+
+    @Volatile
+    private var postProcessingExecutor: Executor = defaultPostProcessingExecutor
+
+    // To publish the post-processed results on the main thread, in frame order.
+    @GuardedBy("this")
+    private val pendingPublications = ArrayDeque<Publication>()
+
+    @GuardedBy("this")
+    private val idlePublications = ArrayDeque<Publication>()
+
+    @GuardedBy("this")
+    private var publishingPosted = false
+
+    private val publicationsRunner = Runnable { runPublications() }
+
+    @GuardedBy("this")
+    private var overBudgetPublishCount = 0L
+
+    @GuardedBy("this")
+    private var skippedFrameCount = 0L
+
+    // Only used on the main thread, the frame of the publisher that is running.
+    private var publishingFrame: SharedFrame? = null
+
+    // To keep off-heap copies of the frames when direct frame buffers are enabled.
+    private val directStagingArea = DirectFrameStagingArea()
+
+    @Synchronized
+    override fun process(frame: SharedFrame, graphicOverlay: GraphicOverlay) {
+        val frameTimeNs = System.nanoTime()
+        val frameSequence = nextFrameSequence++
+        if (frame.metadata.width != latencyFrameWidth || frame.metadata.height != latencyFrameHeight) {
+            latencyHistogram.reset()
+            latencyFrameWidth = frame.metadata.width
+            latencyFrameHeight = frame.metadata.height
+        }
+        if (frameSequence % framesPerDetection != 0L) {
+            skippedFrameCount++
+            return
+        }
+        if (isSceneUnchanged(frame, frameSequence)) {
+            reuseResults(frame, frameSequence, frameTimeNs, graphicOverlay)
+            return
+        }
+        // The latest frame is superseded before its detection even started.
+        latestFrame?.let {
+            it.release()
+            PipelineMetrics.increment(PipelineMetrics.Counter.FRAME_OVERWRITTEN)
+        }
+        val cropRegion = getDetectionRegion(graphicOverlay)?.let { CropRegion.fromUprightRegion(it, frame.metadata) }
+        latestFrame = if (cropRegion != null) {
+            // Copies only the region to detect in, which also gets the camera its buffer back right away.
+            val stagedData = directStagingArea.stageCrop(
+                    frame.data, frame.metadata.width, frame.metadata.height,
+                    cropRegion.left, cropRegion.top, cropRegion.width, cropRegion.height
+            )
+            SharedFrame(stagedData, FrameMetadata(cropRegion.width, cropRegion.height, frame.metadata.rotation)) {
+                directStagingArea.recycle(stagedData)
+            }
+        } else if (directFrameBufferEnabled) {
+            // Copies the frame rather than retaining it, so the camera gets its buffer back right away.
+            val stagedData = directStagingArea.stage(frame.data)
+            SharedFrame(stagedData, frame.metadata) { directStagingArea.recycle(stagedData) }
+        } else {
+            frame.retain()
+        }
+        latestFrameSequence = frameSequence
+        latestFrameTimeNs = frameTimeNs
+        latestFrameDetectionRegion = cropRegion?.uprightRegion
+        if (framesInFlight < maxFramesInFlight) {
+            processLatestFrame(graphicOverlay)
+        }
+    }
+
+    /** Releases the frames held by the processor, subclasses have to call through when stopped.  */
+    @Synchronized
+    override fun stop() {
+        stopped = true
+        mainHandler.removeCallbacksAndMessages(null)
+        failedDetection?.takeUnless { it.abandoned }?.frame?.release()
+        failedDetection = null
+        latestFrame?.release()
+        latestFrame = null
+        reusedFrame?.release()
+        reusedFrame = null
+        pendingPublications.forEach {
+            it.frame?.release()
+            recycle(it)
+        }
+        pendingPublications.clear()
+        publishingPosted = false
+    }
+
+    /**
+     * Sets the executor the results are post-processed on, which has to run its tasks one after the
+     * other and in order. The main thread executor brings all of the result handling back onto it.
+     */
+    fun setPostProcessingExecutor(executor: Executor) {
+        postProcessingExecutor = executor
+    }
+
+    /**
+     * Estimated from the latency of the recent detections: with several frames in flight, the
+     * detector works through them one after the other, so each takes a fraction of the latency.
+     */
+    @Synchronized
+    override fun getSustainableFrameIntervalMs(): Long {
+        if (latencyHistogram.sampleCount < MIN_LATENCY_SAMPLE_COUNT) return 0
+        return latencyHistogram.getPercentileMs(LATENCY_PERCENTILE) / maxFramesInFlight
+    }
 
     @Synchronized
-    override fun process(
-        data: ByteBuffer,
-        frameMetadata: FrameMetadata,
+    override fun getLatencyPercentileMs(fraction: Float): Long = latencyHistogram.getPercentileMs(fraction)
+
+    /** Counts the stale results along with the delivered ones, as their detections completed too.  */
+    @Synchronized
+    override fun getCompletedDetectionCount(): Long = deliveredResultCount + staleResultCount
+
+    /** Returns a snapshot of the current pipeline accounting.  */
+    @Synchronized
+    fun getPipelineStats() = PipelineStats(
+            if (latestFrame != null) 1 else 0, framesInFlight, deliveredResultCount, staleResultCount,
+            lostFrameCount, timedOutDetectionCount, retryCount, reusedResultCount, overBudgetPublishCount,
+            skippedFrameCount
+    )
+
+    /**
+     * Runs the frame through the scene change gate, and returns whether the frame can skip detection
+     * because results of the same scene are at hand.
+     */
+    @GuardedBy("this")
+    private fun isSceneUnchanged(frame: SharedFrame, frameSequence: Long): Boolean {
+        if (!sceneChangeGatingEnabled) {
+            return false
+        }
+        if (sceneChangeDetector.hasChanged(frame.data, frame.metadata)) {
+            // Only the results of this frame or a later one describe the new scene.
+            sceneChangeDetector.markReference()
+            referenceFrameSequence = frameSequence
+            reusableResults = null
+            return false
+        }
+        return reusableResults != null &&
+                SystemClock.elapsedRealtime() - reusableResultsTimeMs < MAX_REUSED_RESULTS_AGE_MS
+    }
+
+    /** Posts the reusable results for the given frame, instead of detecting it.  */
+    @GuardedBy("this")
+    private fun reuseResults(
+        frame: SharedFrame,
+        frameSequence: Long,
+        frameTimeNs: Long,
         graphicOverlay: GraphicOverlay
     ) {
-        latestFrame = data
-        latestFrameMetaData = frameMetadata
-        if (processingFrame == null && processingFrameMetaData == null) {
-            processLatestFrame(graphicOverlay)
+        // The pending frame shows the same scene, its detection is no longer needed either.
+        latestFrame?.let {
+            it.release()
+            PipelineMetrics.increment(PipelineMetrics.Counter.FRAME_OVERWRITTEN)
+        }
+        latestFrame = null
+        val deliveryPosted = reusedFrame != null
+        // Superseded before the main thread got to it.
+        reusedFrame?.release()
+        reusedFrame = frame.retain()
+        reusedFrameSequence = frameSequence
+        reusedFrameTimeNs = frameTimeNs
+        FlightRecorder.recordEvent(FlightRecorder.Stage.RESULTS_REUSED, frameSequence, /* value= */ 0)
+        if (!deliveryPosted) {
+            postProcessingExecutor.execute { deliverReusedResults(graphicOverlay) }
+        }
+    }
+
+    @WorkerThread
+    private fun deliverReusedResults(graphicOverlay: GraphicOverlay) {
+        val frame: SharedFrame
+        val frameSequence: Long
+        val frameTimeNs: Long
+        val results: T
+        val detectionRegion: Rect?
+        synchronized(this) {
+            frame = reusedFrame ?: return
+            reusedFrame = null
+            val reusable = reusableResults
+            if (stopped || reusable == null || reusedFrameSequence < lastDeliveredFrameSequence) {
+                // The scene changed in the meantime, or a newer frame got its results delivered already.
+                frame.release()
+                return
+            }
+            results = reusable
+            detectionRegion = reusableResultsDetectionRegion
+            frameSequence = reusedFrameSequence
+            frameTimeNs = reusedFrameTimeNs
+            lastDeliveredFrameSequence = frameSequence
+            reusedResultCount++
+        }
+        publish(
+                frameSequence,
+                frameTimeNs,
+                frame,
+                postProcess(toImage(frame), results, detectionRegion, frameTimeNs, graphicOverlay)
+        )
+    }
+
+    /** Keeps the results of the given frame for reuse, if they describe the current scene.  */
+    @Synchronized
+    private fun keepForReuse(frameSequence: Long, results: T, detectionRegion: Rect?) {
+        if (frameSequence >= referenceFrameSequence) {
+            reusableResults = results
+            reusableResultsDetectionRegion = detectionRegion
+            reusableResultsTimeMs = SystemClock.elapsedRealtime()
         }
     }
 
     @Synchronized
     private fun processLatestFrame(graphicOverlay: GraphicOverlay) {
-        processingFrame = latestFrame
-        processingFrameMetaData = latestFrameMetaData
+        // Resumes with the latest frame once the backoff is over.
+        if (backingOff || stopped) return
+        val frame = latestFrame ?: return
         latestFrame = null
-        latestFrameMetaData = null
-        val frame = processingFrame ?: return
-        val frameMetaData = processingFrameMetaData ?: return
-        val metadata = FirebaseVisionImageMetadata.Builder()
-                .setFormat(FirebaseVisionImageMetadata.IMAGE_FORMAT_NV21)
-                .setWidth(frameMetaData.width)
-                .setHeight(frameMetaData.height)
-                .setRotation(frameMetaData.rotation)
-                .build()
-        val image = FirebaseVisionImage.fromByteBuffer(frame, metadata)
+        val detection = Detection(
+                frame, latestFrameSequence, latestFrameTimeNs, latestFrameDetectionRegion, graphicOverlay)
+        startDetection(detection, graphicOverlay)
+    }
+
+    @GuardedBy("this")
+    private fun startDetection(detection: Detection, graphicOverlay: GraphicOverlay) {
+        framesInFlight++
+        PipelineMetrics.adjust(PipelineMetrics.Gauge.FRAMES_IN_FLIGHT, 1)
+        detection.completed = false
+        val frame = detection.frame
+        val image = toImage(frame)
         val startMs = SystemClock.elapsedRealtime()
+        val startNs = System.nanoTime()
+        mainHandler.postDelayed(detection.watchdog, DETECTION_DEADLINE_MS)
+        FlightRecorder.recordEvent(
+                FlightRecorder.Stage.DETECTION_STARTED, detection.frameSequence, detection.retryCount.toLong())
+        val executor = postProcessingExecutor
         detectInImage(image)
-                .addOnSuccessListener { results ->
-                    Log.d(TAG, "Latency is: ${SystemClock.elapsedRealtime() - startMs}")
-                    this@FrameProcessorBase.onSuccess(image, results, graphicOverlay)
-                    processLatestFrame(graphicOverlay)
+                .addOnSuccessListener(executor, OnSuccessListener<T> { results ->
+                    if (!markCompleted(detection)) {
+                        // The watchdog gave up on this detection already.
+                        frame.release()
+                        return@OnSuccessListener
+                    }
+                    PipelineMetrics.recordDuration(PipelineMetrics.Stage.DETECTION, System.nanoTime() - startNs)
+                    val latencyMs = SystemClock.elapsedRealtime() - startMs
+                    FlightRecorder.recordLatency(
+                            FlightRecorder.Stage.DETECTION_SUCCEEDED, detection.frameSequence, latencyMs)
+                    val delivered = markDelivered(detection.frameSequence, latencyMs)
+                    if (delivered) {
+                        keepForReuse(detection.frameSequence, results, detection.detectionRegion)
+                    }
+                    // Starts on the next frame before post-processing the results of this one.
+                    onDetectionSucceeded(graphicOverlay)
+                    if (delivered) {
+                        publish(
+                                detection.frameSequence,
+                                detection.frameTimeNs,
+                                frame,
+                                postProcess(
+                                        image,
+                                        results,
+                                        detection.detectionRegion,
+                                        detection.frameTimeNs,
+                                        graphicOverlay
+                                )
+                        )
+                    } else {
+                        frame.release()
+                    }
+                })
+                .addOnFailureListener(executor, OnFailureListener {
+                    if (!markCompleted(detection)) {
+                        frame.release()
+                        return@OnFailureListener
+                    }
+                    FlightRecorder.recordEvent(
+                            FlightRecorder.Stage.DETECTION_FAILED,
+                            detection.frameSequence,
+                            SystemClock.elapsedRealtime() - startMs
+                    )
+                    FlightRecorder.dump("detection failed: $it")
+                    this@FrameProcessorBase.onFailure(it)
+                    onDetectionFailed(detection, graphicOverlay)
+                })
+    }
+
+    private fun toImage(frame: SharedFrame): FirebaseVisionImage {
+        PipelineMetrics.beginTrace(PipelineMetrics.Stage.IMAGE_BUILD)
+        val startNs = System.nanoTime()
+        try {
+            val metadata = FirebaseVisionImageMetadata.Builder()
+                    .setFormat(FirebaseVisionImageMetadata.IMAGE_FORMAT_NV21)
+                    .setWidth(frame.metadata.width)
+                    .setHeight(frame.metadata.height)
+                    .setRotation(frame.metadata.rotation)
+                    .build()
+            return FirebaseVisionImage.fromByteBuffer(frame.data, metadata)
+        } finally {
+            PipelineMetrics.recordDuration(PipelineMetrics.Stage.IMAGE_BUILD, System.nanoTime() - startNs)
+            PipelineMetrics.endTrace()
+        }
+    }
+
+    @WorkerThread
+    private fun postProcess(
+        image: FirebaseVisionImage,
+        results: T,
+        detectionRegion: Rect?,
+        frameTimeNs: Long,
+        graphicOverlay: GraphicOverlay
+    ): Runnable? {
+        PipelineMetrics.beginTrace(PipelineMetrics.Stage.POST_PROCESSING)
+        val startNs = System.nanoTime()
+        try {
+            return onResults(image, results, detectionRegion, frameTimeNs, graphicOverlay)
+        } finally {
+            PipelineMetrics.recordDuration(PipelineMetrics.Stage.POST_PROCESSING, System.nanoTime() - startNs)
+            PipelineMetrics.endTrace()
+        }
+    }
+
+    /**
+     * Queues the publisher of the results of the given frame to run on the main thread, the frame is
+     * released once it ran.
+     */
+    private fun publish(frameSequence: Long, frameTimeNs: Long, frame: SharedFrame, publisher: Runnable?) {
+        synchronized(this) {
+            if (!stopped && publisher != null) {
+                val publication = idlePublications.poll() ?: Publication()
+                publication.frameSequence = frameSequence
+                publication.frameTimeNs = frameTimeNs
+                publication.frame = frame
+                publication.publisher = publisher
+                pendingPublications.add(publication)
+                if (!publishingPosted) {
+                    publishingPosted = true
+                    mainHandler.post(publicationsRunner)
                 }
-                .addOnFailureListener { this@FrameProcessorBase.onFailure(it) }
+                return
+            }
+        }
+        frame.release()
+    }
+
+    /** Runs the queued publishers until the budget is used up, the rest wait for the next message.  */
+    @MainThread
+    private fun runPublications() {
+        val deadlineNs = System.nanoTime() + PUBLISH_BUDGET_NS
+        while (true) {
+            val frame: SharedFrame
+            val publisher: Runnable
+            val frameSequence: Long
+            val frameTimeNs: Long
+            synchronized(this) {
+                if (pendingPublications.isEmpty()) {
+                    publishingPosted = false
+                    return
+                }
+                if (System.nanoTime() >= deadlineNs) {
+                    mainHandler.post(publicationsRunner)
+                    return
+                }
+                val publication = pendingPublications.poll()!!
+                frame = publication.frame!!
+                publisher = publication.publisher!!
+                frameSequence = publication.frameSequence
+                frameTimeNs = publication.frameTimeNs
+                recycle(publication)
+            }
+            PipelineMetrics.beginTrace(PipelineMetrics.Stage.PUBLISH)
+            val startNs = System.nanoTime()
+            publishingFrame = frame
+            publisher.run()
+            publishingFrame = null
+            frame.release()
+            val endNs = System.nanoTime()
+            val publishTimeNs = endNs - startNs
+            PipelineMetrics.endTrace()
+            PipelineMetrics.recordDuration(PipelineMetrics.Stage.PUBLISH, publishTimeNs)
+            PipelineMetrics.recordDuration(PipelineMetrics.Stage.FRAME_TO_RESULT, endNs - frameTimeNs)
+            if (publishTimeNs > PUBLISH_BUDGET_NS) {
+                recordOverBudgetPublish(frameSequence, publishTimeNs)
+            }
+        }
+    }
+
+    @GuardedBy("this")
+    private fun recycle(publication: Publication) {
+        publication.frame = null
+        publication.publisher = null
+        idlePublications.add(publication)
+    }
+
+    @Synchronized
+    private fun recordOverBudgetPublish(frameSequence: Long, publishTimeNs: Long) {
+        overBudgetPublishCount++
+        FlightRecorder.recordEvent(
+                FlightRecorder.Stage.PUBLISH_OVER_BUDGET, frameSequence, TimeUnit.NANOSECONDS.toMillis(publishTimeNs))
+    }
+
+    /** Returns whether the detection completed before the watchdog abandoned it.  */
+    @Synchronized
+    private fun markCompleted(detection: Detection): Boolean {
+        if (detection.abandoned) return false
+        detection.completed = true
+        mainHandler.removeCallbacks(detection.watchdog)
+        return true
     }
 
+    private fun onDetectionTimedOut(detection: Detection, graphicOverlay: GraphicOverlay) {
+        synchronized(this) {
+            if (detection.completed) return
+            // Native code may still be reading the frame, so the frame is only released once the task
+            // completes after all, if ever.
+            detection.abandoned = true
+            timedOutDetectionCount++
+        }
+        FlightRecorder.recordEvent(
+                FlightRecorder.Stage.DETECTION_TIMED_OUT, detection.frameSequence, DETECTION_DEADLINE_MS)
+        FlightRecorder.dump("detection timed out")
+        onFailure(TimeoutException("Detection didn't complete within $DETECTION_DEADLINE_MS ms, abandoned it."))
+        onDetectionFailed(detection, graphicOverlay)
+    }
+
+    @Synchronized
+    private fun onDetectionSucceeded(graphicOverlay: GraphicOverlay) {
+        framesInFlight--
+        PipelineMetrics.adjust(PipelineMetrics.Gauge.FRAMES_IN_FLIGHT, -1)
+        consecutiveFailureCount = 0
+        processLatestFrame(graphicOverlay)
+    }
+
+    /** Frees the in-flight slot of the failed detection, and backs off before detecting again.  */
+    @Synchronized
+    private fun onDetectionFailed(detection: Detection, graphicOverlay: GraphicOverlay) {
+        framesInFlight--
+        PipelineMetrics.adjust(PipelineMetrics.Gauge.FRAMES_IN_FLIGHT, -1)
+        consecutiveFailureCount++
+        if (backingOff) {
+            // Backing off from another failure already, only that one gets a chance to be retried.
+            giveUp(detection)
+            return
+        }
+        val backoffMs = minOf(INITIAL_BACKOFF_MS shl minOf(consecutiveFailureCount - 1, 16), MAX_BACKOFF_MS)
+        backingOff = true
+        failedDetection = detection
+        FlightRecorder.recordEvent(FlightRecorder.Stage.BACKOFF_STARTED, detection.frameSequence, backoffMs)
+        Log.w(TAG, "Detection failed $consecutiveFailureCount times in a row, backing off for $backoffMs ms.")
+        mainHandler.postDelayed({ resumeAfterBackoff(graphicOverlay) }, backoffMs)
+    }
+
+    @Synchronized
+    private fun resumeAfterBackoff(graphicOverlay: GraphicOverlay) {
+        val detection = failedDetection
+        backingOff = false
+        failedDetection = null
+        detection ?: return
+        if (!detection.abandoned && detection.retryCount < MAX_RETRY_COUNT && latestFrame == null) {
+            detection.retryCount++
+            retryCount++
+            startDetection(detection, graphicOverlay)
+            return
+        }
+
+        giveUp(detection)
+        processLatestFrame(graphicOverlay)
+    }
+
+    @GuardedBy("this")
+    private fun giveUp(detection: Detection) {
+        lostFrameCount++
+        if (!detection.abandoned) {
+            detection.frame.release()
+        }
+    }
+
+    /** Returns whether the result of the given frame is still newer than any delivered so far.  */
+    @Synchronized
+    private fun markDelivered(frameSequence: Long, latencyMs: Long): Boolean {
+        latencyHistogram.record(latencyMs)
+        if (frameSequence < lastDeliveredFrameSequence) {
+            staleResultCount++
+            FlightRecorder.recordEvent(FlightRecorder.Stage.RESULTS_STALE, frameSequence, latencyMs)
+            return false
+        }
+        lastDeliveredFrameSequence = frameSequence
+        deliveredResultCount++
+        return true
+    }
+
+    /**
+     * Returns the region of the upright frame that detection can be limited to, or null to detect in
+     * the whole frame. Called on the camera thread for every frame.
+     */
+    protected open fun getDetectionRegion(graphicOverlay: GraphicOverlay): Rect? = null
+
     protected abstract fun detectInImage(image: FirebaseVisionImage): Task<T>
 
-    /** Be called when the detection succeeds.  */
-    protected abstract fun onSuccess(
+    /**
+     * Be called on the post-processing executor when the detection succeeds, with the region the
+     * detection was limited to, the results are then relative to the top left corner of the region.
+     * Does the work on the results that doesn't need the main thread, and returns the rest, which
+     * publishes them on the main thread, or null if there's nothing to publish. The image can be used
+     * up to when the publisher ran.
+     *
+     * By default, all of the work is left to [onSuccess] on the main thread.
+     */
+    @WorkerThread
+    protected open fun onResults(
         image: FirebaseVisionImage,
         results: T,
+        detectionRegion: Rect?,
         graphicOverlay: GraphicOverlay
-    )
+    ): Runnable? = Runnable { onSuccess(image, results, detectionRegion, graphicOverlay) }
 
+    /**
+     * Same as the other [onResults], along with the [System.nanoTime] the processor got the frame at,
+     * for processors that need to know how old the results are by the time they're drawn.
+     */
+    @WorkerThread
+    protected open fun onResults(
+        image: FirebaseVisionImage,
+        results: T,
+        detectionRegion: Rect?,
+        frameTimeNs: Long,
+        graphicOverlay: GraphicOverlay
+    ): Runnable? = onResults(image, results, detectionRegion, graphicOverlay)
+
+    /** Be called on the main thread when the detection succeeds, unless [onResults] is.  */
+    @MainThread
+    protected open fun onSuccess(
+        image: FirebaseVisionImage,
+        results: T,
+        graphicOverlay: GraphicOverlay
+    ) {
+    }
+
+    /**
+     * Be called on the main thread when the detection succeeds, with the region the detection was
+     * limited to, unless [onResults] is. The results are then relative to the top left corner of the
+     * region.
+     */
+    @MainThread
+    protected open fun onSuccess(
+        image: FirebaseVisionImage,
+        results: T,
+        detectionRegion: Rect?,
+        graphicOverlay: GraphicOverlay
+    ) = onSuccess(image, results, graphicOverlay)
+
+    /**
+     * Copies the given box of the upright image out of the frame whose results are being published,
+     * scaled down to the given width at most, for the results that outlive the frame. Only the
+     * publishers returned by [onResults] can call it, the frame is recycled once they ran.
+     *
+     * @return the crop, or null if the box covers less than a 2x2 block of the frame.
+     */
+    @MainThread
+    protected fun cropPublishedFrame(box: Rect, maxWidth: Int): FrameCrop? {
+        val frame = publishingFrame ?: throw IllegalStateException("No frame is being published.")
+        return FrameCrop.crop(frame.data, frame.metadata, box.left, box.top, box.right, box.bottom, maxWidth)
+    }
+
+    /**
+     * Be called when the detection fails, on the post-processing executor, or on the main thread if
+     * the detection timed out.
+     */
     protected abstract fun onFailure(e: Exception)
 
     companion object {
         private const val TAG = "FrameProcessorBase"
+
+        /** Time after which a detection that hasn't completed is abandoned.  */
+        private const val DETECTION_DEADLINE_MS = 2000L
+
+        /** Number of times a failed frame is retried at most.  */
+        private const val MAX_RETRY_COUNT = 2
+
+        /** Pause after the first failure, doubled for every consecutive one up to the maximum.  */
+        private const val INITIAL_BACKOFF_MS = 100L
+
+        private const val MAX_BACKOFF_MS = 3200L
+
+        /** Number of most recent detections the latency estimate is based on.  */
+        private const val LATENCY_WINDOW_SIZE = 30
+
+        /** Number of detections needed before the latency estimate is trusted.  */
+        private const val MIN_LATENCY_SAMPLE_COUNT = 5
+
+        private const val LATENCY_PERCENTILE = 0.75f
+
+        /** Time after which the results of an unchanged scene are detected again rather than reused.  */
+        private const val MAX_REUSED_RESULTS_AGE_MS = 500L
+
+        /** Main thread time the publishers get in a row, half a frame at 60 frames per second.  */
+        private val PUBLISH_BUDGET_NS = TimeUnit.MILLISECONDS.toNanos(8)
+
+        /** Post-processes the results of all the processors by default, one after the other.  */
+        private val defaultPostProcessingExecutor: Executor = Executors.newSingleThreadExecutor()
     }
 }
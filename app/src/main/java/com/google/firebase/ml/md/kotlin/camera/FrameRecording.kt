@@ -0,0 +1,162 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.kotlin.camera
+
+import java.io.BufferedOutputStream
+import java.io.Closeable
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+
+/**
+ * A recorded sequence of NV21 frames, read through a memory mapping of the recording file so that
+ * replaying a frame doesn't copy it.
+ *
+ * The file starts with a magic number and a format version, followed by the frames one after the
+ * other. Each frame has a header with its timestamp in microseconds, its width, height and rotation,
+ * and the length of its data, followed by the data itself.
+ */
+internal class FrameRecording private constructor(
+    private val file: RandomAccessFile,
+    private val frameData: Array<ByteBuffer>,
+    private val frameMetadata: Array<FrameMetadata>,
+    private val timestampsUs: LongArray
+) : Closeable {
+
+    val frameCount: Int
+        get() = frameData.size
+
+    /** The average interval between the frames, or 0 if there are fewer than two.  */
+    val averageFrameIntervalUs: Long
+        get() = if (frameCount < 2) 0 else (timestampsUs[frameCount - 1] - timestampsUs[0]) / (frameCount - 1)
+
+    /** Returns the data of a frame, a read-only view of the mapping that starts at position 0.  */
+    fun getData(index: Int): ByteBuffer = frameData[index].duplicate()
+
+    fun getMetadata(index: Int): FrameMetadata = frameMetadata[index]
+
+    fun getTimestampUs(index: Int): Long = timestampsUs[index]
+
+    /** The frames stay readable after closing, the mapping is released once they are unreachable.  */
+    override fun close() {
+        file.close()
+    }
+
+    /** Writes a recording frame by frame, in the format [FrameRecording] reads.  */
+    internal class Writer(recordingFile: File) : Closeable {
+
+        private val output = DataOutputStream(BufferedOutputStream(FileOutputStream(recordingFile)))
+        private var scratch = ByteArray(0)
+
+        init {
+            output.writeInt(MAGIC)
+            output.writeInt(VERSION)
+        }
+
+        /** Appends an NV21 frame, reading its data from position 0 without moving the position.  */
+        @Throws(IOException::class)
+        fun write(timestampUs: Long, metadata: FrameMetadata, data: ByteBuffer) {
+            val dataLength = metadata.width * metadata.height * 3 / 2
+            output.writeLong(timestampUs)
+            output.writeInt(metadata.width)
+            output.writeInt(metadata.height)
+            output.writeInt(metadata.rotation)
+            output.writeInt(dataLength)
+            if (data.hasArray()) {
+                output.write(data.array(), data.arrayOffset(), dataLength)
+            } else {
+                if (scratch.size < dataLength) {
+                    scratch = ByteArray(dataLength)
+                }
+                val source = data.duplicate()
+                source.position(0)
+                source.get(scratch, 0, dataLength)
+                output.write(scratch, 0, dataLength)
+            }
+        }
+
+        override fun close() {
+            output.close()
+        }
+    }
+
+    companion object {
+        /** "MDFR", for Material Design frame recording.  */
+        private const val MAGIC = 0x4D444652
+
+        private const val VERSION = 1
+        private const val FILE_HEADER_SIZE = 8
+        private const val FRAME_HEADER_SIZE = 24
+
+        /**
+         * Maps the given recording file and indexes its frames.
+         *
+         * @throws IOException if the file can't be read or isn't a valid recording.
+         */
+        @Throws(IOException::class)
+        fun open(recordingFile: File): FrameRecording {
+            val file = RandomAccessFile(recordingFile, "r")
+            try {
+                val length = file.length()
+                if (length > Int.MAX_VALUE) {
+                    throw IOException("Frame recording is too large to be mapped: $recordingFile")
+                }
+                val buffer = file.channel.map(FileChannel.MapMode.READ_ONLY, 0, length)
+                if (length < FILE_HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+                    throw IOException("Not a frame recording: $recordingFile")
+                }
+                if (buffer.getInt(4) != VERSION) {
+                    throw IOException("Unsupported frame recording version: ${buffer.getInt(4)}")
+                }
+
+                val frameData = ArrayList<ByteBuffer>()
+                val frameMetadata = ArrayList<FrameMetadata>()
+                val timestampsUs = ArrayList<Long>()
+                var offset = FILE_HEADER_SIZE
+                while (offset + FRAME_HEADER_SIZE <= length) {
+                    val timestampUs = buffer.getLong(offset)
+                    val width = buffer.getInt(offset + 8)
+                    val height = buffer.getInt(offset + 12)
+                    val rotation = buffer.getInt(offset + 16)
+                    val dataLength = buffer.getInt(offset + 20)
+                    val dataOffset = offset + FRAME_HEADER_SIZE
+                    if (dataLength < width * height * 3 / 2 || dataOffset + dataLength.toLong() > length) {
+                        throw IOException("Truncated frame recording: $recordingFile")
+                    }
+
+                    val data = buffer.duplicate()
+                    data.limit(dataOffset + dataLength)
+                    data.position(dataOffset)
+                    frameData.add(data.slice().asReadOnlyBuffer())
+                    frameMetadata.add(FrameMetadata(width, height, rotation))
+                    timestampsUs.add(timestampUs)
+                    offset = dataOffset + dataLength
+                }
+
+                return FrameRecording(
+                        file, frameData.toTypedArray(), frameMetadata.toTypedArray(), timestampsUs.toLongArray())
+            } catch (e: Exception) {
+                file.close()
+                throw e
+            }
+        }
+    }
+}
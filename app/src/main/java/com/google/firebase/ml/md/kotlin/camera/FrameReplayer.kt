@@ -0,0 +1,148 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.kotlin.camera
+
+import java.util.Locale
+import java.util.concurrent.TimeUnit
+
+/**
+ * Replays a [FrameRecording] into a frame sink, either paced by the timestamps of the recording or
+ * as fast as the sink takes the frames, and once or in a loop.
+ *
+ * The frames are views of the mapped recording, so replaying copies nothing and the same input comes
+ * out the same on every run. The replayer keeps count of the frames and of the time the sink spent on
+ * them, which gives repeatable throughput and latency numbers for whatever is behind it.
+ */
+internal class FrameReplayer(
+    private val recording: FrameRecording,
+    private val pacing: Pacing,
+    private val looping: Boolean
+) {
+
+    /** How the frames are spaced in time.  */
+    enum class Pacing {
+        /** The frames are replayed with the intervals they were recorded with.  */
+        REAL_TIME,
+        /** Each frame is replayed as soon as the sink returns from the previous one.  */
+        AS_FAST_AS_POSSIBLE
+    }
+
+    /** Receives the replayed frames, on the thread that called [replay].  */
+    interface FrameSink {
+        /**
+         * Called for every replayed frame. The replayer releases its reference once this returns, so a
+         * sink that holds onto the frame retains it first.
+         */
+        fun onFrame(frame: SharedFrame)
+    }
+
+    @Volatile
+    private var stopped = false
+
+    private var frameCount = 0L
+    private var replayTimeNs = 0L
+    private var totalSinkTimeNs = 0L
+    private var maxSinkTimeNs = 0L
+
+    /**
+     * Replays the recording into the sink on the calling thread, until the recording ends, or until
+     * [stop] is called or the thread is interrupted when looping.
+     */
+    fun replay(sink: FrameSink) {
+        val recordedFrameCount = recording.frameCount
+        if (recordedFrameCount == 0) return
+        val firstTimestampUs = recording.getTimestampUs(0)
+        // A loop lasts as long as the recording plus one frame interval, so the last frame of a loop
+        // stays up as long as the others before the first one comes around again.
+        val loopDurationUs =
+                recording.getTimestampUs(recordedFrameCount - 1) - firstTimestampUs + recording.averageFrameIntervalUs
+
+        stopped = false
+        val startNs = System.nanoTime()
+        var loopStartNs = startNs
+        try {
+            do {
+                var i = 0
+                while (i < recordedFrameCount && !stopped) {
+                    if (pacing == Pacing.REAL_TIME) {
+                        val frameOffsetNs =
+                                TimeUnit.MICROSECONDS.toNanos(recording.getTimestampUs(i) - firstTimestampUs)
+                        val delayNs = loopStartNs + frameOffsetNs - System.nanoTime()
+                        if (delayNs > 0) {
+                            TimeUnit.NANOSECONDS.sleep(delayNs)
+                        }
+                    }
+
+                    val frame = SharedFrame(recording.getData(i), recording.getMetadata(i), null)
+                    val sinkStartNs = System.nanoTime()
+                    try {
+                        sink.onFrame(frame)
+                    } finally {
+                        frame.release()
+                    }
+                    recordSinkTime(System.nanoTime() - sinkStartNs)
+                    i++
+                }
+                loopStartNs += TimeUnit.MICROSECONDS.toNanos(loopDurationUs)
+            } while (looping && !stopped)
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+        } finally {
+            synchronized(this) {
+                replayTimeNs += System.nanoTime() - startNs
+            }
+        }
+    }
+
+    /** Makes an ongoing [replay] return after the frame it is currently replaying.  */
+    fun stop() {
+        stopped = true
+    }
+
+    @Synchronized
+    private fun recordSinkTime(sinkTimeNs: Long) {
+        frameCount++
+        totalSinkTimeNs += sinkTimeNs
+        maxSinkTimeNs = maxOf(maxSinkTimeNs, sinkTimeNs)
+    }
+
+    @Synchronized
+    fun getStats(): Stats = Stats(frameCount, replayTimeNs, totalSinkTimeNs, maxSinkTimeNs)
+
+    /** Snapshot of the replay counters, accumulated over all the replays so far.  */
+    internal class Stats(
+        /** Number of frames handed to the sink.  */
+        val frameCount: Long,
+        replayTimeNs: Long,
+        totalSinkTimeNs: Long,
+        maxSinkTimeNs: Long
+    ) {
+        /** Frames replayed per second of wall clock time, pacing included.  */
+        val framesPerSecond =
+                if (replayTimeNs > 0) frameCount * TimeUnit.SECONDS.toNanos(1).toFloat() / replayTimeNs else 0f
+        /** Average time in milliseconds the sink took per frame.  */
+        val averageFrameTimeMs = if (frameCount > 0) totalSinkTimeNs / 1e6f / frameCount else 0f
+        /** Longest time in milliseconds the sink took for a single frame.  */
+        val maxFrameTimeMs = maxSinkTimeNs / 1e6f
+
+        override fun toString(): String = String.format(
+                Locale.US,
+                "frames=%d, fps=%.1f, avgFrameMs=%.2f, maxFrameMs=%.2f",
+                frameCount, framesPerSecond, averageFrameTimeMs, maxFrameTimeMs
+        )
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.ml.md.kotlin.camera
+
+import androidx.annotation.GuardedBy
+import kotlin.math.abs
+
+/**
+ * Paces the camera frames to the rate the frame processor can sustain, so that frames it would
+ * drop anyway are neither converted nor delivered.
+ *
+ * Two knobs are turned from the processor's latency: the preview frame rate requested from the
+ * camera, which is kept high enough for the preview to stay smooth, and an admission stride that
+ * only lets every n-th camera frame through to the processor to make up for the rest.
+ *
+ * @param maxFrameRate the frame rate the camera is asked for when the processor keeps up.
+ */
+internal class FrameScheduler(private val maxFrameRate: Float) {
+
+    @GuardedBy("this")
+    private var initialFrameIntervalMs = 0L
+
+    @GuardedBy("this")
+    private var cameraFrameRate = maxFrameRate
+
+    @GuardedBy("this")
+    private var targetFrameRate = maxFrameRate
+
+    @GuardedBy("this")
+    private var requestedPreviewFrameRate = maxFrameRate
+
+    @GuardedBy("this")
+    private var lastFrameRateChangeMs = 0L
+
+    @GuardedBy("this")
+    private var admissionStride = 1
+
+    @GuardedBy("this")
+    private var framesSinceAdmission = 0
+
+    /** Starts over for a camera that has just been configured to the given frame rate.  */
+    @Synchronized
+    fun reset(cameraFrameRate: Float) {
+        this.cameraFrameRate = cameraFrameRate
+        targetFrameRate = maxFrameRate
+        requestedPreviewFrameRate = maxFrameRate
+        lastFrameRateChangeMs = 0
+        admissionStride = 1
+        framesSinceAdmission = 0
+    }
+
+    /**
+     * Sets the frame interval to pace by until the processor has an estimate of its own, like one it was
+     * calibrated with on an earlier run, or 0 to start at the maximum frame rate.
+     */
+    @Synchronized
+    fun setInitialFrameIntervalMs(frameIntervalMs: Long) {
+        initialFrameIntervalMs = frameIntervalMs
+    }
+
+    /** Returns whether the frame the camera just delivered should be handed to the processor.  */
+    @Synchronized
+    fun admitFrame(): Boolean {
+        if (++framesSinceAdmission < admissionStride) return false
+        framesSinceAdmission = 0
+        return true
+    }
+
+    /**
+     * Updates the pacing from the processor's latest estimate.
+     *
+     * @param sustainableFrameIntervalMs see [FrameProcessor.getSustainableFrameIntervalMs].
+     */
+    @Synchronized
+    fun update(sustainableFrameIntervalMs: Long) {
+        val frameIntervalMs = if (sustainableFrameIntervalMs > 0) sustainableFrameIntervalMs else initialFrameIntervalMs
+        targetFrameRate = if (frameIntervalMs > 0) {
+            minOf(maxFrameRate, FRAME_RATE_HEADROOM * 1000f / frameIntervalMs)
+        } else {
+            maxFrameRate
+        }
+        updateAdmissionStride()
+    }
+
+    /**
+     * Returns the preview frame rate to switch the camera to, or 0 if it should stay as it is. A
+     * returned rate counts as requested, whether the camera manages to switch to it or not.
+     */
+    @Synchronized
+    fun pollPreviewFrameRateChange(nowMs: Long): Float {
+        val previewFrameRate = maxOf(MIN_PREVIEW_FRAME_RATE, targetFrameRate)
+        val changeRatio = abs(previewFrameRate - requestedPreviewFrameRate) / requestedPreviewFrameRate
+        if (changeRatio < MIN_FRAME_RATE_CHANGE_RATIO ||
+            nowMs - lastFrameRateChangeMs < MIN_FRAME_RATE_CHANGE_INTERVAL_MS) {
+            return 0f
+        }
+        requestedPreviewFrameRate = previewFrameRate
+        lastFrameRateChangeMs = nowMs
+        return previewFrameRate
+    }
+
+    /** Takes the frame rate the camera has been switched to into account.  */
+    @Synchronized
+    fun onCameraFrameRateChanged(cameraFrameRate: Float) {
+        this.cameraFrameRate = cameraFrameRate
+        updateAdmissionStride()
+    }
+
+    @GuardedBy("this")
+    private fun updateAdmissionStride() {
+        admissionStride = (cameraFrameRate / targetFrameRate).toInt().coerceIn(1, MAX_ADMISSION_STRIDE)
+    }
+
+    companion object {
+        /** Frames are admitted a bit faster than the processor can sustain so it never waits long.  */
+        private const val FRAME_RATE_HEADROOM = 1.25f
+
+        /** The preview is displayed at the camera frame rate, so it is never lowered below this.  */
+        private const val MIN_PREVIEW_FRAME_RATE = 15f
+
+        private const val MAX_ADMISSION_STRIDE = 8
+
+        /** Changing the preview frame rate reconfigures the camera, so it is done sparingly.  */
+        private const val MIN_FRAME_RATE_CHANGE_INTERVAL_MS = 5000L
+
+        private const val MIN_FRAME_RATE_CHANGE_RATIO = 0.2f
+    }
+}
@@ -21,9 +21,13 @@ import android.graphics.Canvas
 import android.graphics.Rect
 import android.graphics.RectF
 import android.util.AttributeSet
+import android.view.Choreographer
 import android.view.View
+import androidx.annotation.GuardedBy
+import androidx.annotation.VisibleForTesting
 import com.google.firebase.ml.md.kotlin.Utils
 import java.util.ArrayList
+import java.util.concurrent.atomic.AtomicBoolean
 
 /**
  * A view which renders a series of custom graphics to be overlaid on top of an associated preview
@@ -45,12 +49,40 @@ class GraphicOverlay(context: Context, attrs: AttributeSet) : View(context, attr
     private var widthScaleFactor = 1.0f
     private var previewHeight: Int = 0
     private var heightScaleFactor = 1.0f
-    private val graphics = ArrayList<Graphic>()
+
+    /**
+     * A number that changes whenever the overlay is laid out to another size or gets another preview size, so the
+     * regions computed from them can be kept until it does.
+     */
+    @Volatile
+    var layoutVersion = 0
+        private set
+
+    // The graphics are double buffered: callers replace the pending graphics of their layers while
+    // the view keeps drawing the last published snapshot, which is never modified and so is read
+    // without taking the lock.
+    @GuardedBy("lock")
+    private val layers = ArrayList<Layer>()
+
+    // The graphics the overlay itself is given, below those of the layers added to it.
+    private val baseLayer = Layer()
+
+    // The pending graphics of all the layers in the order they're drawn, gathered for every publish.
+    @GuardedBy("lock")
+    private val pendingGraphics = ArrayList<Graphic>()
+
+    @Volatile
+    private var graphics: Array<Graphic> = emptyArray()
+
+    // Changes to the list are published and drawn once per vsync, however many happened in between.
+    private val choreographer = Choreographer.getInstance()
+    private val frameScheduled = AtomicBoolean()
+    private val frameCallback = Choreographer.FrameCallback { publishGraphics() }
 
     /**
      * Base class for a custom graphics object to be rendered within the graphic overlay. Subclass
-     * this and implement the [Graphic.draw] method to define the graphics element. Add
-     * instances to the overlay using [GraphicOverlay.add].
+     * this and implement the [Graphic.draw] method to define the graphics element. Show
+     * instances on the overlay using [GraphicOverlay.setGraphics].
      */
     abstract class Graphic protected constructor(protected val overlay: GraphicOverlay) {
         protected val context: Context = overlay.context
@@ -59,19 +91,129 @@ class GraphicOverlay(context: Context, attrs: AttributeSet) : View(context, attr
         abstract fun draw(canvas: Canvas)
     }
 
-    /** Removes all graphics from the overlay.  */
+    /**
+     * A group of graphics of the overlay that is replaced on its own, so that several frame processors can draw on the
+     * same overlay without wiping out each other's graphics. The layers are drawn in the order they were added, above
+     * the graphics of the overlay itself.
+     */
+    inner class Layer internal constructor() {
+
+        @GuardedBy("lock")
+        internal val graphics = ArrayList<Graphic>()
+
+        init {
+            synchronized(lock) {
+                layers.add(this)
+            }
+        }
+
+        /** Removes the graphics of the layer, and leaves those of the other layers.  */
+        fun clear() {
+            synchronized(lock) {
+                graphics.clear()
+            }
+            scheduleFrame()
+        }
+
+        /**
+         * Replaces the graphics of the layer with the given ones in one step, from any thread. The list is copied, so
+         * the caller can reuse it to build the graphics of the next frame.
+         */
+        fun setGraphics(graphics: List<Graphic>) {
+            synchronized(lock) {
+                this.graphics.clear()
+                // Copies element by element, as addAll() would copy the list into a new array first.
+                for (i in graphics.indices) {
+                    this.graphics.add(graphics[i])
+                }
+            }
+            scheduleFrame()
+        }
+
+        /** Removes the layer along with its graphics from the overlay for good.  */
+        fun remove() {
+            synchronized(lock) {
+                layers.remove(this)
+            }
+            scheduleFrame()
+        }
+    }
+
+    /** Adds a layer of graphics on top of the ones the overlay has, see [Layer].  */
+    fun addLayer() = Layer()
+
+    /** Removes all graphics from the overlay, those of every layer.  */
     fun clear() {
         synchronized(lock) {
-            graphics.clear()
+            for (i in layers.indices) {
+                layers[i].graphics.clear()
+            }
         }
-        postInvalidate()
+        scheduleFrame()
     }
 
-    /** Adds a graphic to the overlay.  */
+    /**
+     * Adds a graphic to the overlay. Every call can be published on its own, so to replace the graphics use
+     * [setGraphics] instead, which no vsync can catch halfway through.
+     */
     fun add(graphic: Graphic) {
         synchronized(lock) {
-            graphics.add(graphic)
+            baseLayer.graphics.add(graphic)
+        }
+        scheduleFrame()
+    }
+
+    /**
+     * Replaces the graphics of the overlay with the given ones in one step, from any thread, and leaves those of the
+     * layers added to it. The list is copied, so the caller can reuse it to build the graphics of the next frame.
+     */
+    fun setGraphics(graphics: List<Graphic>) = baseLayer.setGraphics(graphics)
+
+    /** The graphics drawn since the last vsync, for the tests to check what got published.  */
+    @get:VisibleForTesting
+    val publishedGraphics: List<Graphic>
+        get() = graphics.asList()
+
+    private fun scheduleFrame() {
+        if (frameScheduled.compareAndSet(false, true)) {
+            choreographer.postFrameCallback(frameCallback)
+        }
+    }
+
+    /** Makes the pending graphics the ones drawn, and redraws the overlay.  */
+    private fun publishGraphics() {
+        frameScheduled.set(false)
+        synchronized(lock) {
+            pendingGraphics.clear()
+            for (i in layers.indices) {
+                val layerGraphics = layers[i].graphics
+                for (j in layerGraphics.indices) {
+                    pendingGraphics.add(layerGraphics[j])
+                }
+            }
+            // The graphics are mostly kept and updated in place, so the published list is only replaced
+            // if a different set of graphics is to be shown.
+            if (!isPublished()) {
+                graphics = pendingGraphics.toTypedArray()
+            }
+        }
+        invalidate()
+    }
+
+    @GuardedBy("lock")
+    private fun isPublished(): Boolean {
+        val publishedGraphics = graphics
+        if (publishedGraphics.size != pendingGraphics.size) return false
+        for (i in publishedGraphics.indices) {
+            if (publishedGraphics[i] !== pendingGraphics[i]) return false
         }
+        return true
+    }
+
+    override fun onDetachedFromWindow() {
+        super.onDetachedFromWindow()
+        choreographer.removeFrameCallback(frameCallback)
+        frameScheduled.set(false)
     }
 
     /**
@@ -88,6 +230,12 @@ class GraphicOverlay(context: Context, attrs: AttributeSet) : View(context, attr
             previewWidth = previewSize.width
             previewHeight = previewSize.height
         }
+        layoutVersion++
+    }
+
+    override fun onSizeChanged(width: Int, height: Int, oldWidth: Int, oldHeight: Int) {
+        super.onSizeChanged(width, height, oldWidth, oldHeight)
+        layoutVersion++
     }
 
     fun translateX(x: Float): Float = x * widthScaleFactor
@@ -97,12 +245,34 @@ class GraphicOverlay(context: Context, attrs: AttributeSet) : View(context, attr
      * Adjusts the `rect`'s coordinate from the preview's coordinate system to the view
      * coordinate system.
      */
-    fun translateRect(rect: Rect) = RectF(
-            translateX(rect.left.toFloat()),
-            translateY(rect.top.toFloat()),
-            translateX(rect.right.toFloat()),
-            translateY(rect.bottom.toFloat())
-    )
+    fun translateRect(rect: Rect) = translateRect(rect, RectF())
+
+    /**
+     * Same as [translateRect] but writes into `out`, so graphics redrawn every frame can reuse a
+     * rect of their own. Returns `out`.
+     */
+    fun translateRect(rect: Rect, out: RectF) =
+            translateRect(rect.left.toFloat(), rect.top.toFloat(), rect.right.toFloat(), rect.bottom.toFloat(), out)
+
+    /** Same as [translateRect] for a rect given by its edges.  */
+    fun translateRect(left: Float, top: Float, right: Float, bottom: Float, out: RectF): RectF {
+        out.set(translateX(left), translateY(top), translateX(right), translateY(bottom))
+        return out
+    }
+
+    /**
+     * Adjusts the `rect`'s coordinate from the view coordinate system back to the preview's
+     * coordinate system, rounded outwards, or returns null if the preview size isn't known yet.
+     */
+    fun translateRectToPreview(rect: RectF): Rect? {
+        if (previewWidth <= 0 || previewHeight <= 0 || width <= 0 || height <= 0) return null
+        val xScale = previewWidth.toFloat() / width
+        val yScale = previewHeight.toFloat() / height
+        val previewRect = Rect()
+        RectF(rect.left * xScale, rect.top * yScale, rect.right * xScale, rect.bottom * yScale)
+                .roundOut(previewRect)
+        return previewRect
+    }
 
     /** Draws the overlay with its associated graphic objects.  */
     override fun onDraw(canvas: Canvas) {
@@ -113,8 +283,12 @@ class GraphicOverlay(context: Context, attrs: AttributeSet) : View(context, attr
             heightScaleFactor = height.toFloat() / previewHeight
         }
 
-        synchronized(lock) {
-            graphics.forEach { it.draw(canvas) }
+        PipelineMetrics.beginTrace(PipelineMetrics.Stage.OVERLAY_DRAW)
+        val startNs = System.nanoTime()
+        for (graphic in graphics) {
+            graphic.draw(canvas)
         }
+        PipelineMetrics.recordDuration(PipelineMetrics.Stage.OVERLAY_DRAW, System.nanoTime() - startNs)
+        PipelineMetrics.endTrace()
     }
 }
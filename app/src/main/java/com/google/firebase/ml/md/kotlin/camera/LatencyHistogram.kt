@@ -0,0 +1,83 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.ml.md.kotlin.camera
+
+import kotlin.math.ceil
+
+/**
+ * Histogram of the most recent latency samples, bucketed in fixed-width buckets so that recording
+ * a sample and reading a percentile never allocate.
+ *
+ * Not thread safe, the owner is expected to guard it with its own lock.
+ *
+ * @param windowSize the number of most recent samples the histogram keeps track of.
+ */
+internal class LatencyHistogram(windowSize: Int) {
+
+    private val bucketCounts = IntArray(BUCKET_COUNT)
+
+    /** Ring of the bucket indices of the samples in the window, oldest one first.  */
+    private val windowBuckets = IntArray(windowSize)
+
+    private var nextWindowIndex = 0
+
+    var sampleCount = 0
+        private set
+
+    fun record(latencyMs: Long) {
+        val bucket = (latencyMs.coerceAtLeast(0) / BUCKET_WIDTH_MS).coerceAtMost(BUCKET_COUNT - 1L).toInt()
+        if (sampleCount == windowBuckets.size) {
+            // Evicts the oldest sample from the window.
+            bucketCounts[windowBuckets[nextWindowIndex]]--
+        } else {
+            sampleCount++
+        }
+        windowBuckets[nextWindowIndex] = bucket
+        bucketCounts[bucket]++
+        nextWindowIndex = (nextWindowIndex + 1) % windowBuckets.size
+    }
+
+    /** Drops all the samples.  */
+    fun reset() {
+        bucketCounts.fill(0)
+        nextWindowIndex = 0
+        sampleCount = 0
+    }
+
+    /**
+     * Returns the latency that the given fraction of the samples in the window stay within, rounded
+     * up to the bucket width, or 0 if there's no sample.
+     */
+    fun getPercentileMs(fraction: Float): Long {
+        if (sampleCount == 0) return 0
+        val rank = ceil(fraction * sampleCount).toInt().coerceAtLeast(1)
+        var cumulativeCount = 0
+        for (bucket in 0 until BUCKET_COUNT) {
+            cumulativeCount += bucketCounts[bucket]
+            if (cumulativeCount >= rank) {
+                return (bucket + 1L) * BUCKET_WIDTH_MS
+            }
+        }
+        return BUCKET_COUNT.toLong() * BUCKET_WIDTH_MS
+    }
+
+    companion object {
+        private const val BUCKET_WIDTH_MS = 5
+
+        /** Covers latencies up to a second, the last bucket also counts everything slower.  */
+        private const val BUCKET_COUNT = 200
+    }
+}
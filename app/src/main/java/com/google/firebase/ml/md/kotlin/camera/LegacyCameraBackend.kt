@@ -0,0 +1,370 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.kotlin.camera
+
+import android.content.Context
+import android.graphics.ImageFormat
+import android.graphics.Rect
+import android.hardware.Camera
+import android.hardware.Camera.Parameters
+import android.util.Log
+import android.view.SurfaceHolder
+import com.google.android.gms.common.images.Size
+import com.google.firebase.ml.md.kotlin.settings.PreferenceUtils
+import java.io.IOException
+import java.util.Arrays
+import kotlin.math.abs
+import kotlin.math.roundToInt
+
+/**
+ * Streams the preview frames of the back camera through the [Camera] API, which the camera writes
+ * straight into the buffers of a [FrameBufferPool].
+ */
+@Suppress("DEPRECATION")
+internal class LegacyCameraBackend(private val graphicOverlay: GraphicOverlay) : CameraBackend {
+
+    private val context: Context = graphicOverlay.context
+    private var camera: Camera? = null
+    private var listener: CameraBackend.FrameListener? = null
+    private lateinit var frameMetadata: FrameMetadata
+    private lateinit var capabilities: CameraCapabilities
+    private var requestedSizePair: CameraSizePair? = null
+
+    @get:Synchronized
+    override var previewSize: Size? = null
+        private set
+
+    @get:Synchronized
+    override var maxZoomRatio = 1f
+        private set
+
+    /**
+     * Pool of the preview buffers handed to the camera, each one wrapped in a byte buffer. We use byte
+     * buffers internally because this is a more efficient way to call into native code later (avoids
+     * a potential copy).
+     */
+    private val frameBufferPool = FrameBufferPool(
+            CameraSource.DEFAULT_MIN_FRAME_BUFFER_DEPTH, CameraSource.DEFAULT_MAX_FRAME_BUFFER_DEPTH
+    )
+
+    @Synchronized
+    @Throws(IOException::class)
+    override fun start(surfaceHolder: SurfaceHolder, listener: CameraBackend.FrameListener) {
+        if (camera != null) return
+
+        this.listener = listener
+        val camera = createCamera(listener)
+        this.camera = camera
+        try {
+            camera.setPreviewDisplay(surfaceHolder)
+            camera.startPreview()
+        } catch (e: Exception) {
+            stop()
+            throw e
+        }
+    }
+
+    @Synchronized
+    override fun stop() {
+        camera?.let {
+            it.stopPreview()
+            it.setPreviewCallbackWithBuffer(null)
+            try {
+                it.setPreviewDisplay(null)
+            } catch (e: Exception) {
+                Log.e(TAG, "Failed to clear camera preview: $e")
+            }
+            it.release()
+            camera = null
+        }
+        listener = null
+        maxZoomRatio = 1f
+
+        // Release the reference to any image buffers, since these will no longer be in use.
+        Log.d(TAG, "Frame buffer pool stats: ${frameBufferPool.getStats()}")
+        frameBufferPool.clear()
+    }
+
+    /**
+     * Switches the running preview to the frames per second range closest to the given rate, the
+     * frame scheduler makes up for the difference between the two.
+     */
+    @Synchronized
+    override fun requestFrameRate(frameRate: Float) {
+        val camera = camera ?: return
+        val listener = listener ?: return
+        val previewFpsRange = selectPreviewFpsRange(capabilities, frameRate) ?: return
+        val parameters = camera.parameters
+        val currentPreviewFpsRange = IntArray(2)
+        parameters.getPreviewFpsRange(currentPreviewFpsRange)
+        if (Arrays.equals(previewFpsRange, currentPreviewFpsRange)) return
+
+        parameters.setPreviewFpsRange(
+                previewFpsRange[Parameters.PREVIEW_FPS_MIN_INDEX],
+                previewFpsRange[Parameters.PREVIEW_FPS_MAX_INDEX]
+        )
+        try {
+            camera.parameters = parameters
+        } catch (e: RuntimeException) {
+            Log.w(TAG, "Failed to update the preview fps range to $frameRate", e)
+            return
+        }
+        val previewFps = previewFpsRange[Parameters.PREVIEW_FPS_MAX_INDEX] / 1000f
+        Log.d(TAG, "Updated the preview fps range to ${Arrays.toString(previewFpsRange)}")
+        frameBufferPool.setFrameRate(previewFps)
+        listener.onFrameRateChanged(previewFps)
+    }
+
+    @Synchronized
+    override fun setTorchEnabled(enabled: Boolean) {
+        val camera = camera ?: return
+        val parameters = camera.parameters
+        parameters.flashMode = if (enabled) Parameters.FLASH_MODE_TORCH else Parameters.FLASH_MODE_OFF
+        camera.parameters = parameters
+    }
+
+    override fun setFrameBufferDepth(minDepth: Int, maxDepth: Int) {
+        frameBufferPool.setDepthRange(minDepth, maxDepth)
+    }
+
+    @Synchronized
+    override fun setPreviewSizePair(sizePair: CameraSizePair?) {
+        requestedSizePair = sizePair
+    }
+
+    @Synchronized
+    override fun setFocusRegion(uprightRegion: Rect?) {
+        val camera = camera ?: return
+        val parameters = camera.parameters
+        val focusAreasSupported = parameters.maxNumFocusAreas > 0
+        val meteringAreasSupported = parameters.maxNumMeteringAreas > 0
+        if (!focusAreasSupported && !meteringAreasSupported) return
+
+        val areas = uprightRegion
+                ?.let { CropRegion.fromUprightRegion(it, frameMetadata) }
+                ?.let { listOf(Camera.Area(toAreaRect(it), AREA_WEIGHT)) }
+        if (focusAreasSupported) {
+            parameters.focusAreas = areas
+        }
+        if (meteringAreasSupported) {
+            parameters.meteringAreas = areas
+        }
+        try {
+            camera.parameters = parameters
+        } catch (e: RuntimeException) {
+            Log.w(TAG, "Failed to update the focus region to $uprightRegion", e)
+        }
+    }
+
+    /** Maps a region of the frame to the coordinates of the camera areas.  */
+    private fun toAreaRect(frameRegion: CropRegion): Rect {
+        val areaRect = Rect(
+                frameRegion.left * 2 * AREA_BOUND / frameMetadata.width - AREA_BOUND,
+                frameRegion.top * 2 * AREA_BOUND / frameMetadata.height - AREA_BOUND,
+                (frameRegion.left + frameRegion.width) * 2 * AREA_BOUND / frameMetadata.width - AREA_BOUND,
+                (frameRegion.top + frameRegion.height) * 2 * AREA_BOUND / frameMetadata.height - AREA_BOUND
+        )
+        areaRect.intersect(-AREA_BOUND, -AREA_BOUND, AREA_BOUND, AREA_BOUND)
+        return areaRect
+    }
+
+    /** The zoom ratios of the camera are in hundredths, from no zoom up to the largest one.  */
+    @Synchronized
+    override fun setZoomRatio(zoomRatio: Float): Float {
+        val camera = camera ?: return 1f
+        val parameters = camera.parameters
+        if (!parameters.isZoomSupported) return 1f
+
+        val zoomRatios = parameters.zoomRatios
+        val requestedZoomRatio = (zoomRatio * 100).roundToInt()
+        var zoom = 0
+        while (zoom < zoomRatios.size - 1 && zoomRatios[zoom + 1] <= requestedZoomRatio) {
+            zoom++
+        }
+        if (zoom != parameters.zoom) {
+            parameters.zoom = zoom
+            try {
+                camera.parameters = parameters
+            } catch (e: RuntimeException) {
+                Log.w(TAG, "Failed to update the zoom ratio to $zoomRatio", e)
+                return zoomRatios[camera.parameters.zoom] / 100f
+            }
+        }
+        return zoomRatios[zoom] / 100f
+    }
+
+    /**
+     * Opens the camera and applies the user settings.
+     *
+     * @throws IOException if camera cannot be found or preview cannot be processed.
+     */
+    @Throws(IOException::class)
+    private fun createCamera(listener: CameraBackend.FrameListener): Camera {
+        val camera = CameraCapabilityStore.openBackCamera()
+        try {
+            configureCamera(camera, listener)
+        } catch (e: Exception) {
+            camera.release()
+            throw e
+        }
+        return camera
+    }
+
+    @Throws(IOException::class)
+    private fun configureCamera(camera: Camera, listener: CameraBackend.FrameListener) {
+        val parameters = camera.parameters
+        // Served from the store after the first start, which saves scanning the sizes on every start.
+        val capabilities = CameraCapabilityStore.getOrCreate(context, parameters)
+        this.capabilities = capabilities
+        val previewSize = setPreviewAndPictureSize(parameters)
+        val rotation = setRotation(camera, parameters)
+        frameMetadata = FrameMetadata(previewSize.width, previewSize.height, rotation)
+
+        val previewFpsRange = selectPreviewFpsRange(capabilities, CameraSource.REQUESTED_CAMERA_FPS)
+                ?: throw IOException("Could not find suitable preview frames per second range.")
+        parameters.setPreviewFpsRange(
+                previewFpsRange[Parameters.PREVIEW_FPS_MIN_INDEX],
+                previewFpsRange[Parameters.PREVIEW_FPS_MAX_INDEX]
+        )
+
+        parameters.previewFormat = IMAGE_FORMAT
+
+        maxZoomRatio = if (parameters.isZoomSupported) parameters.zoomRatios[parameters.maxZoom] / 100f else 1f
+
+        if (capabilities.focusModes.contains(Parameters.FOCUS_MODE_CONTINUOUS_VIDEO)) {
+            parameters.focusMode = Parameters.FOCUS_MODE_CONTINUOUS_VIDEO
+        } else {
+            Log.i(TAG, "Camera auto focus is not supported on this device.")
+        }
+
+        camera.parameters = parameters
+
+        camera.setPreviewCallbackWithBuffer(this::onPreviewFrame)
+
+        // At least four frame buffers are needed for working with the camera:
+        //
+        //   one for the frame that is currently being executed upon in doing detection
+        //   one for the next pending frame to process immediately upon completing detection
+        //   two for the frames that the camera uses to populate future preview images
+        //
+        // The pool grows beyond that when frames are held for longer than the camera takes to fill
+        // its two free buffers, see FrameBufferPool.
+        val previewFps = previewFpsRange[Parameters.PREVIEW_FPS_MAX_INDEX] / 1000f
+        frameBufferPool.attach(camera, previewSize, previewFps)
+        listener.onFrameRateChanged(previewFps)
+    }
+
+    @Throws(IOException::class)
+    private fun setPreviewAndPictureSize(parameters: Parameters): Size {
+
+        // Gives priority to the preview size specified by the user if exists, then the requested one.
+        val sizePair: CameraSizePair = PreferenceUtils.getUserSpecifiedPreviewSize(context)
+                ?: CameraSource.findSizePair(capabilities.previewSizePairs, requestedSizePair)
+                ?: CameraSource.selectSizePair(
+                        capabilities.previewSizePairs,
+                        CameraSource.getDisplayAspectRatioInLandscape(graphicOverlay)
+                )
+                ?: throw IOException("Could not find suitable preview size.")
+
+        val previewSize = sizePair.preview.also {
+            Log.v(TAG, "Camera preview size: $it")
+            parameters.setPreviewSize(it.width, it.height)
+        }
+        this.previewSize = previewSize
+
+        sizePair.picture?.let { pictureSize ->
+            Log.v(TAG, "Camera picture size: $pictureSize")
+            parameters.setPictureSize(pictureSize.width, pictureSize.height)
+        }
+        return previewSize
+    }
+
+    /**
+     * Calculates the correct rotation for the back camera and sets the rotation in the parameters. It
+     * also sets the camera's display orientation and rotation.
+     *
+     * @param parameters the camera parameters for which to set the rotation.
+     * @return the rotation of the frames, one of the rotation constants in FirebaseVisionImageMetadata.
+     */
+    private fun setRotation(camera: Camera, parameters: Parameters): Int {
+        val angle = CameraSource.getFrameRotationDegrees(context, capabilities.sensorOrientation)
+        camera.setDisplayOrientation(angle)
+        parameters.setRotation(angle)
+        // This corresponds to the rotation constants in FirebaseVisionImageMetadata.
+        return angle / 90
+    }
+
+    /** Hands the frame the camera just filled to the listener, or straight back to the camera.  */
+    private fun onPreviewFrame(data: ByteArray, @Suppress("UNUSED_PARAMETER") camera: Camera) {
+        val listener = synchronized(this) { listener } ?: return
+        if (!listener.admitFrame()) {
+            // Skips the frame before any work is spent on it, the processor couldn't keep up anyway.
+            frameBufferPool.skip(data)
+            return
+        }
+
+        val frameBuffer = frameBufferPool.lease(data) ?: let {
+            Log.d(TAG, "Skipping frame. Could not find ByteBuffer associated with the image data from the camera.")
+            return
+        }
+        // The buffer goes back to the camera once the last reference to the frame is released, which
+        // may be long after the listener returns if the processor retains the frame for detection.
+        listener.onFrame(SharedFrame(frameBuffer.byteBuffer, frameMetadata) { frameBufferPool.release(frameBuffer) })
+    }
+
+    companion object {
+        private const val TAG = "LegacyCameraBackend"
+
+        private const val IMAGE_FORMAT = ImageFormat.NV21
+
+        /** Camera areas span from -1000 to 1000 across the field of view on either axis.  */
+        private const val AREA_BOUND = 1000
+
+        private const val AREA_WEIGHT = 1000
+
+        /**
+         * Selects the most suitable preview frames per second range.
+         *
+         * @param capabilities the capabilities of the camera to select a frames per second range from
+         * @param desiredPreviewFps the desired frames per second for the camera preview frames
+         * @return the selected preview frames per second range
+         */
+        private fun selectPreviewFpsRange(capabilities: CameraCapabilities, desiredPreviewFps: Float): IntArray? {
+            // The camera API uses integers scaled by a factor of 1000 instead of floating-point frame
+            // rates.
+            val desiredPreviewFpsScaled = (desiredPreviewFps * 1000f).toInt()
+
+            // The method for selecting the best range is to minimize the sum of the differences between
+            // the desired value and the upper and lower bounds of the range.  This may select a range
+            // that the desired value is outside of, but this is often preferred.  For example, if the
+            // desired frame rate is 29.97, the range (30, 30) is probably more desirable than the
+            // range (15, 30).
+            var selectedFpsRange: IntArray? = null
+            var minDiff = Integer.MAX_VALUE
+            for (range in capabilities.previewFpsRanges) {
+                val deltaMin = desiredPreviewFpsScaled - range[Parameters.PREVIEW_FPS_MIN_INDEX]
+                val deltaMax = desiredPreviewFpsScaled - range[Parameters.PREVIEW_FPS_MAX_INDEX]
+                val diff = abs(deltaMin) + abs(deltaMax)
+                if (diff < minDiff) {
+                    selectedFpsRange = range
+                    minDiff = diff
+                }
+            }
+            return selectedFpsRange
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.ml.md.kotlin.camera
+
+import android.content.Context
+import android.os.SystemClock
+import android.util.AttributeSet
+import android.view.View
+import androidx.appcompat.widget.AppCompatTextView
+import com.google.firebase.ml.md.kotlin.settings.PreferenceUtils
+import java.util.Locale
+
+/**
+ * Debug overlay that shows the health of the camera pipeline over the live camera view, so it can
+ * be checked without a computer attached: the frame rates of the camera and the detector, the
+ * detection latency, the share of the frames dropped, the frames in flight, the heap in use and the
+ * preview size.
+ *
+ * The numbers are read from [PipelineMetrics] once a second, over the second before. The overlay is
+ * only shown when it's enabled in the settings, and does nothing at all otherwise.
+ */
+class PerformanceHudView(context: Context, attrs: AttributeSet) : AppCompatTextView(context, attrs) {
+
+    private val updater = Runnable { update() }
+
+    private var cameraSource: CameraSource? = null
+    private var lastSnapshot: PipelineMetrics.Snapshot? = null
+    private var lastSnapshotTimeMs = 0L
+
+    /** Starts showing the pipeline of the given camera source, if the overlay is enabled.  */
+    fun start(cameraSource: CameraSource) {
+        stop()
+        if (!PreferenceUtils.isPerformanceHudEnabled(context)) {
+            visibility = View.GONE
+            return
+        }
+        this.cameraSource = cameraSource
+        lastSnapshot = PipelineMetrics.snapshot()
+        lastSnapshotTimeMs = SystemClock.elapsedRealtime()
+        text = null
+        visibility = View.VISIBLE
+        postDelayed(updater, UPDATE_INTERVAL_MS)
+    }
+
+    /** Stops updating the overlay, until it is started again.  */
+    fun stop() {
+        removeCallbacks(updater)
+        cameraSource = null
+        lastSnapshot = null
+    }
+
+    override fun onDetachedFromWindow() {
+        super.onDetachedFromWindow()
+        stop()
+    }
+
+    private fun update() {
+        val cameraSource = cameraSource ?: return
+        val lastSnapshot = lastSnapshot ?: return
+        val snapshot = PipelineMetrics.snapshot()
+        val nowMs = SystemClock.elapsedRealtime()
+        val seconds = maxOf(nowMs - lastSnapshotTimeMs, 1L) / 1000f
+
+        val receivedFrameCount = snapshot.getHistogram(PipelineMetrics.Stage.CAMERA_TO_PENDING).count -
+                lastSnapshot.getHistogram(PipelineMetrics.Stage.CAMERA_TO_PENDING).count
+        val lostFrameCount = getLostFrameCount(snapshot) - getLostFrameCount(lastSnapshot)
+        val detections = snapshot.getHistogram(PipelineMetrics.Stage.DETECTION)
+                .since(lastSnapshot.getHistogram(PipelineMetrics.Stage.DETECTION))
+        val runtime = Runtime.getRuntime()
+        val usedHeapMb = (runtime.totalMemory() - runtime.freeMemory()) / BYTES_PER_MB
+
+        text = String.format(
+                Locale.US,
+                "camera %.1f fps, detector %.1f fps\n" +
+                        "latency p50 %.0f, p95 %.0f, p99 %.0f ms\n" +
+                        "dropped %.0f%%, in flight %d\n" +
+                        "heap %d/%d MB, preview %s",
+                receivedFrameCount / seconds,
+                detections.count / seconds,
+                detections.getPercentileMs(0.5f),
+                detections.getPercentileMs(0.95f),
+                detections.getPercentileMs(0.99f),
+                if (receivedFrameCount > 0) 100f * lostFrameCount / receivedFrameCount else 0f,
+                snapshot.getLevel(PipelineMetrics.Gauge.FRAMES_IN_FLIGHT),
+                usedHeapMb,
+                runtime.maxMemory() / BYTES_PER_MB,
+                cameraSource.previewSize ?: "-"
+        )
+
+        this.lastSnapshot = snapshot
+        lastSnapshotTimeMs = nowMs
+        postDelayed(updater, UPDATE_INTERVAL_MS)
+    }
+
+    companion object {
+        private const val UPDATE_INTERVAL_MS = 1000L
+        private const val BYTES_PER_MB = 1024L * 1024
+
+        private fun getLostFrameCount(snapshot: PipelineMetrics.Snapshot) =
+            snapshot.getCount(PipelineMetrics.Counter.FRAME_DROPPED) +
+                    snapshot.getCount(PipelineMetrics.Counter.FRAME_OVERWRITTEN)
+    }
+}
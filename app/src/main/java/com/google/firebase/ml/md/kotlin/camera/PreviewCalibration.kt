@@ -0,0 +1,186 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.kotlin.camera
+
+import android.content.Context
+import android.content.SharedPreferences
+import android.os.Build
+import android.util.Log
+import com.google.android.gms.common.images.Size
+import com.google.firebase.ml.md.kotlin.Utils
+import java.util.Locale
+import kotlin.math.abs
+import kotlin.math.roundToInt
+import kotlin.math.roundToLong
+import org.json.JSONException
+import org.json.JSONObject
+
+/**
+ * Picks the preview size from the measured throughput of the detector rather than from the display
+ * alone. Calibration restarts the camera several times, so it only runs once switched on in the settings:
+ * the next time a frame processor runs on a camera backend it wasn't calibrated on, [CameraSource] runs the
+ * camera at each candidate size for a few seconds, counts the detections the processor completes, and keeps
+ * the best size for that processor and backend.
+ *
+ * The best size is the largest one the detector keeps up with at [MIN_FRAMES_PER_SECOND] within a 95th
+ * percentile latency of [MAX_P95_LATENCY_MS], or the fastest one if none does. Like the camera
+ * capabilities, the results are measured again once the device or OS build changes.
+ */
+internal object PreviewCalibration {
+
+    private const val TAG = "PreviewCalibration"
+
+    private const val PREFERENCES_NAME = "preview_calibration"
+    private const val KEY_BUILD_FINGERPRINT = "build_fingerprint"
+
+    /** Preview sizes outside of these widths aren't worth the time to calibrate.  */
+    private const val MIN_CANDIDATE_WIDTH = 320
+
+    private const val MAX_CANDIDATE_WIDTH = 1920
+
+    /** Each candidate takes a few seconds and a camera restart, so only a handful are tried.  */
+    private const val MAX_CANDIDATE_COUNT = 4
+
+    private const val MIN_FRAMES_PER_SECOND = 10f
+
+    private const val MAX_P95_LATENCY_MS = 200L
+
+    /** The measured performance of the detector at one preview size.  */
+    class Result(
+        val sizePair: CameraSizePair,
+        /** Detections completed per second at the size, at most the camera frame rate.  */
+        val framesPerSecond: Float,
+        val p95LatencyMs: Long
+    ) {
+
+        /** The interval between frames the detector keeps up with, or 0 if it is unknown.  */
+        val frameIntervalMs: Long
+            get() = if (framesPerSecond > 0) (1000 / framesPerSecond).roundToLong() else 0
+
+        internal val meetsTarget: Boolean
+            get() = framesPerSecond >= MIN_FRAMES_PER_SECOND && p95LatencyMs <= MAX_P95_LATENCY_MS
+
+        @Throws(JSONException::class)
+        internal fun toJson(): JSONObject {
+            val json = JSONObject()
+                    .put("preview", sizePair.preview.toString())
+                    .put("framesPerSecond", framesPerSecond.toDouble())
+                    .put("p95LatencyMs", p95LatencyMs)
+            sizePair.picture?.let { json.put("picture", it.toString()) }
+            return json
+        }
+
+        override fun toString(): String =
+            String.format(
+                    Locale.US, "preview=%s, fps=%.1f, p95LatencyMs=%d", sizePair.preview, framesPerSecond, p95LatencyMs
+            )
+
+        companion object {
+            @Throws(JSONException::class)
+            internal fun fromJson(json: JSONObject): Result {
+                val sizePair = CameraSizePair(
+                        Size.parseSize(json.getString("preview")),
+                        if (json.has("picture")) Size.parseSize(json.getString("picture")) else null
+                )
+                return Result(sizePair, json.getDouble("framesPerSecond").toFloat(), json.getLong("p95LatencyMs"))
+            }
+        }
+    }
+
+    /**
+     * Returns the preview sizes worth calibrating, from the smallest one to the largest: the ones with the
+     * aspect ratio of the size that would be picked for the display, spread over the widths.
+     */
+    fun selectCandidates(sizePairs: List<CameraSizePair>, displayAspectRatioInLandscape: Float): List<CameraSizePair> {
+        val reference = CameraSource.selectSizePair(sizePairs, displayAspectRatioInLandscape) ?: return emptyList()
+        val referenceAspectRatio = reference.preview.width.toFloat() / reference.preview.height
+
+        val sizePairsInRange = sizePairs
+                .filter {
+                    val previewSize = it.preview
+                    val aspectRatio = previewSize.width.toFloat() / previewSize.height
+                    previewSize.width in MIN_CANDIDATE_WIDTH..MAX_CANDIDATE_WIDTH &&
+                            abs(aspectRatio - referenceAspectRatio) < Utils.ASPECT_RATIO_TOLERANCE
+                }
+                .sortedBy { it.preview.width }
+        if (sizePairsInRange.size <= MAX_CANDIDATE_COUNT) return sizePairsInRange
+
+        val lastIndex = sizePairsInRange.size - 1
+        return (0 until MAX_CANDIDATE_COUNT).map {
+            sizePairsInRange[(it.toFloat() * lastIndex / (MAX_CANDIDATE_COUNT - 1)).roundToInt()]
+        }
+    }
+
+    /**
+     * Returns the best of the measured sizes, or null if the detector didn't complete enough detections at
+     * any of them to tell.
+     */
+    fun selectBest(results: List<Result>): Result? {
+        var best: Result? = null
+        for (result in results) {
+            if (best == null || isBetter(result, best)) {
+                best = result
+            }
+        }
+        return best?.takeIf { it.framesPerSecond > 0 }
+    }
+
+    private fun isBetter(result: Result, other: Result): Boolean = when {
+        result.meetsTarget != other.meetsTarget -> result.meetsTarget
+        result.meetsTarget -> getArea(result.sizePair.preview) > getArea(other.sizePair.preview)
+        else -> result.framesPerSecond > other.framesPerSecond
+    }
+
+    private fun getArea(size: Size): Int = size.width * size.height
+
+    /** Returns the calibrated size for the given processor and backend, if it has been calibrated.  */
+    fun load(context: Context, key: String): Result? {
+        val preferences = getPreferences(context)
+        val json = preferences.getString(key, null)
+        val buildFingerprint = preferences.getString(KEY_BUILD_FINGERPRINT, null)
+        if (json == null || Build.FINGERPRINT != buildFingerprint) return null
+        return try {
+            Result.fromJson(JSONObject(json))
+        } catch (e: JSONException) {
+            Log.w(TAG, "Discarding unreadable preview calibration.", e)
+            null
+        } catch (e: IllegalArgumentException) {
+            Log.w(TAG, "Discarding unreadable preview calibration.", e)
+            null
+        }
+    }
+
+    fun save(context: Context, key: String, result: Result) {
+        val preferences = getPreferences(context)
+        val editor = preferences.edit()
+        if (Build.FINGERPRINT != preferences.getString(KEY_BUILD_FINGERPRINT, null)) {
+            // The results of the other processors were measured on another build.
+            editor.clear()
+        }
+        try {
+            editor
+                    .putString(KEY_BUILD_FINGERPRINT, Build.FINGERPRINT)
+                    .putString(key, result.toJson().toString())
+                    .apply()
+        } catch (e: JSONException) {
+            Log.w(TAG, "Failed to persist the preview calibration.", e)
+        }
+    }
+
+    private fun getPreferences(context: Context): SharedPreferences =
+        context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE)
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.kotlin.camera
+
+import kotlin.math.abs
+
+/**
+ * Selects the preview size of the camera among the sizes it supports. It works on the size type of
+ * whichever camera API lists the sizes through a [SizeReader], so that it doesn't depend on Android.
+ */
+object PreviewSizeSelector {
+
+    /**
+     * If the absolute difference between aspect ratios is less than this tolerance, they are
+     * considered to be the same aspect ratio.
+     */
+    const val ASPECT_RATIO_TOLERANCE = 0.01f
+
+    private const val MIN_CAMERA_PREVIEW_WIDTH = 400
+    private const val MAX_CAMERA_PREVIEW_WIDTH = 1300
+    private const val DEFAULT_REQUESTED_CAMERA_PREVIEW_WIDTH = 640
+    private const val DEFAULT_REQUESTED_CAMERA_PREVIEW_HEIGHT = 360
+
+    /** Reads the dimensions of the size type of a camera API.  */
+    interface SizeReader<S> {
+        fun getWidth(size: S): Int
+
+        fun getHeight(size: S): Int
+    }
+
+    /**
+     * Pairs each preview size with the first picture size of the same aspect ratio, which is the
+     * largest one as the cameras list their sizes from the largest.
+     *
+     * @return for each preview size the index of its picture size, or -1 if there's none.
+     */
+    fun <S> matchPictureSizes(previewSizes: List<S>, pictureSizes: List<S>, reader: SizeReader<S>): IntArray {
+        // The aspect ratios of the picture sizes are computed once rather than for every preview size.
+        val pictureAspectRatios = FloatArray(pictureSizes.size) { i ->
+            reader.getWidth(pictureSizes[i]).toFloat() / reader.getHeight(pictureSizes[i])
+        }
+
+        return IntArray(previewSizes.size) { i ->
+            val previewAspectRatio = reader.getWidth(previewSizes[i]).toFloat() / reader.getHeight(previewSizes[i])
+            pictureAspectRatios.indexOfFirst { abs(previewAspectRatio - it) < ASPECT_RATIO_TOLERANCE }
+        }
+    }
+
+    /**
+     * Selects the most suitable preview size, given the display aspect ratio in landscape mode.
+     *
+     * It's firstly trying to pick the one that has closest aspect ratio to display view with its
+     * width be in the specified range [[MIN_CAMERA_PREVIEW_WIDTH], [MAX_CAMERA_PREVIEW_WIDTH]]. If
+     * there're multiple candidates, choose the one having longest width.
+     *
+     * If the above looking up failed, chooses the one that has the minimum sum of the differences
+     * between the desired values and the actual values for width and height.
+     *
+     * @return the index of the selected preview size, or -1 if there's no preview size.
+     */
+    internal fun <S> selectPreviewSize(
+        previewSizes: List<S>,
+        reader: SizeReader<S>,
+        displayAspectRatioInLandscape: Float
+    ): Int {
+        var selectedIndex = -1
+        var selectedWidth = 0
+        // Picks the preview size that has closest aspect ratio to display view.
+        var minAspectRatioDiff = Float.MAX_VALUE
+        for (i in previewSizes.indices) {
+            val width = reader.getWidth(previewSizes[i])
+            if (width < MIN_CAMERA_PREVIEW_WIDTH || width > MAX_CAMERA_PREVIEW_WIDTH) {
+                continue
+            }
+
+            val previewAspectRatio = width.toFloat() / reader.getHeight(previewSizes[i])
+            val aspectRatioDiff = abs(displayAspectRatioInLandscape - previewAspectRatio)
+            if (abs(aspectRatioDiff - minAspectRatioDiff) < ASPECT_RATIO_TOLERANCE) {
+                if (selectedIndex < 0 || selectedWidth < width) {
+                    selectedIndex = i
+                    selectedWidth = width
+                }
+            } else if (aspectRatioDiff < minAspectRatioDiff) {
+                minAspectRatioDiff = aspectRatioDiff
+                selectedIndex = i
+                selectedWidth = width
+            }
+        }
+
+        if (selectedIndex < 0) {
+            // Picks the one that has the minimum sum of the differences between the desired values and
+            // the actual values for width and height.
+            var minDiff = Integer.MAX_VALUE
+            for (i in previewSizes.indices) {
+                val size = previewSizes[i]
+                val diff =
+                        abs(reader.getWidth(size) - DEFAULT_REQUESTED_CAMERA_PREVIEW_WIDTH) +
+                                abs(reader.getHeight(size) - DEFAULT_REQUESTED_CAMERA_PREVIEW_HEIGHT)
+                if (diff < minDiff) {
+                    selectedIndex = i
+                    minDiff = diff
+                }
+            }
+        }
+
+        return selectedIndex
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.kotlin.camera
+
+import android.content.Context
+import android.graphics.Rect
+import android.util.Log
+import android.view.SurfaceHolder
+import com.google.android.gms.common.images.Size
+import java.io.File
+import java.io.IOException
+import java.util.concurrent.TimeUnit
+
+/**
+ * Streams the frames of a [FrameRecording] in a loop instead of those of a camera, so the detection
+ * pipeline sees the same input on every run. The recording is read from [RECORDING_FILE_NAME] in the
+ * app's external files directory, the preview itself stays blank.
+ */
+internal class ReplayCameraBackend(
+    private val context: Context,
+    private val pacing: FrameReplayer.Pacing
+) : CameraBackend {
+
+    private var recording: FrameRecording? = null
+    private var replayer: FrameReplayer? = null
+    private var replayThread: Thread? = null
+
+    @get:Synchronized
+    override var previewSize: Size? = null
+        private set
+
+    override val maxZoomRatio: Float = 1f
+
+    @Synchronized
+    @Throws(IOException::class)
+    override fun start(surfaceHolder: SurfaceHolder, listener: CameraBackend.FrameListener) {
+        if (replayThread != null) return
+
+        val recordingFile = File(context.getExternalFilesDir(null), RECORDING_FILE_NAME)
+        if (!recordingFile.exists()) {
+            throw IOException("There is no frame recording at $recordingFile")
+        }
+        val recording = FrameRecording.open(recordingFile)
+        if (recording.frameCount == 0) {
+            recording.close()
+            throw IOException("The frame recording at $recordingFile has no frames.")
+        }
+        this.recording = recording
+        val firstFrameMetadata = recording.getMetadata(0)
+        previewSize = Size(firstFrameMetadata.width, firstFrameMetadata.height)
+
+        val frameIntervalUs = recording.averageFrameIntervalUs
+        listener.onFrameRateChanged(
+                if (frameIntervalUs > 0) TimeUnit.SECONDS.toMicros(1) / frameIntervalUs.toFloat()
+                else CameraSource.REQUESTED_CAMERA_FPS
+        )
+
+        val replayer = FrameReplayer(recording, pacing, /* looping= */ true)
+        this.replayer = replayer
+        val sink = object : FrameReplayer.FrameSink {
+            override fun onFrame(frame: SharedFrame) {
+                if (listener.admitFrame()) {
+                    listener.onFrame(frame.retain())
+                }
+            }
+        }
+        replayThread = Thread({ replayer.replay(sink) }, TAG).apply { start() }
+    }
+
+    @Synchronized
+    override fun stop() {
+        replayThread?.let {
+            replayer?.stop()
+            it.interrupt()
+            try {
+                it.join()
+            } catch (e: InterruptedException) {
+                Log.e(TAG, "Replay thread interrupted on stop.")
+            }
+            replayThread = null
+            Log.d(TAG, "Replay stats: ${replayer?.getStats()}")
+            replayer = null
+        }
+        recording?.let {
+            try {
+                it.close()
+            } catch (e: IOException) {
+                Log.e(TAG, "Failed to close the frame recording: $e")
+            }
+            recording = null
+        }
+    }
+
+    /** The recording plays at the rate it was recorded with, the frame scheduler drops the rest.  */
+    override fun requestFrameRate(frameRate: Float) {}
+
+    override fun setTorchEnabled(enabled: Boolean) {}
+
+    /** The frames are views of the mapped recording, there are no frame buffers to size.  */
+    override fun setFrameBufferDepth(minDepth: Int, maxDepth: Int) {}
+
+    /** The frames come in the size they were recorded with.  */
+    override fun setPreviewSizePair(sizePair: CameraSizePair?) {}
+
+    /** The frames are replayed the way they were recorded, focus and zoom included.  */
+    override fun setFocusRegion(uprightRegion: Rect?) {}
+
+    override fun setZoomRatio(zoomRatio: Float): Float = 1f
+
+    companion object {
+        const val RECORDING_FILE_NAME = "frames.mdfr"
+
+        private const val TAG = "ReplayCameraBackend"
+    }
+}
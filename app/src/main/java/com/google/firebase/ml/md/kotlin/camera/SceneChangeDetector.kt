@@ -0,0 +1,106 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.ml.md.kotlin.camera
+
+import java.nio.ByteBuffer
+import kotlin.math.abs
+
+/**
+ * Tells whether a camera frame shows a different scene than a reference frame, by comparing
+ * down-sampled signatures of their luma planes.
+ *
+ * The signature holds the mean luma of each cell of a coarse grid laid over the frame, each
+ * mean taken from a few evenly spaced samples of the Y plane of the NV21 frame. Computing it reads
+ * a small fraction of the frame and never allocates. The scene counts as changed once enough cells
+ * got noticeably brighter or darker, which sensor noise alone doesn't do.
+ *
+ * Not thread safe, the owner is expected to guard it with its own lock.
+ */
+internal class SceneChangeDetector {
+
+    private val signature = IntArray(CELL_COUNT)
+    private val referenceSignature = IntArray(CELL_COUNT)
+    private var hasReference = false
+
+    /**
+     * Computes the signature of the given frame and returns whether it differs from the reference,
+     * which it always does if there's no reference yet.
+     */
+    fun hasChanged(data: ByteBuffer, metadata: FrameMetadata): Boolean {
+        computeSignature(data, metadata.width, metadata.height)
+        if (!hasReference) return true
+
+        var changedCellCount = 0
+        for (cell in 0 until CELL_COUNT) {
+            if (abs(signature[cell] - referenceSignature[cell]) > CELL_CHANGE_THRESHOLD * SAMPLES_PER_CELL) {
+                if (++changedCellCount >= MIN_CHANGED_CELL_COUNT) return true
+            }
+        }
+        return false
+    }
+
+    /** Makes the frame last passed to [hasChanged] the reference for the frames to come.  */
+    fun markReference() {
+        System.arraycopy(signature, 0, referenceSignature, 0, CELL_COUNT)
+        hasReference = true
+    }
+
+    /** Forgets the reference, the next frame counts as changed.  */
+    fun reset() {
+        hasReference = false
+    }
+
+    private fun computeSignature(data: ByteBuffer, width: Int, height: Int) {
+        // Samples sit at the centers of the sample grid, so they stay clear of the frame edges.
+        val sampleRowCount = GRID_ROWS * SAMPLES_PER_CELL_SIDE
+        val sampleColumnCount = GRID_COLUMNS * SAMPLES_PER_CELL_SIDE
+        var cell = 0
+        for (row in 0 until GRID_ROWS) {
+            for (column in 0 until GRID_COLUMNS) {
+                var sum = 0
+                for (i in 0 until SAMPLES_PER_CELL_SIDE) {
+                    val sampleRow = row * SAMPLES_PER_CELL_SIDE + i
+                    val y = (2 * sampleRow + 1) * height / (2 * sampleRowCount)
+                    val rowOffset = y * width
+                    for (j in 0 until SAMPLES_PER_CELL_SIDE) {
+                        val sampleColumn = column * SAMPLES_PER_CELL_SIDE + j
+                        val x = (2 * sampleColumn + 1) * width / (2 * sampleColumnCount)
+                        sum += data.get(rowOffset + x).toInt() and 0xFF
+                    }
+                }
+                signature[cell++] = sum
+            }
+        }
+    }
+
+    companion object {
+        private const val GRID_COLUMNS = 32
+        private const val GRID_ROWS = 24
+        private const val CELL_COUNT = GRID_COLUMNS * GRID_ROWS
+
+        /** Each cell mean is taken from a square of this many samples per side.  */
+        private const val SAMPLES_PER_CELL_SIDE = 4
+
+        /** Difference of a cell mean, in luma levels, from which the cell counts as changed.  */
+        private const val CELL_CHANGE_THRESHOLD = 12
+
+        /** Number of changed cells from which the scene counts as changed, about half a percent.  */
+        private const val MIN_CHANGED_CELL_COUNT = 4
+
+        // The cells hold sums of samples rather than means, so are compared in units of samples.
+        private const val SAMPLES_PER_CELL = SAMPLES_PER_CELL_SIDE * SAMPLES_PER_CELL_SIDE
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.kotlin.camera
+
+import android.content.Context
+import android.graphics.Rect
+import android.util.Log
+import android.view.SurfaceHolder
+import androidx.annotation.VisibleForTesting
+import com.google.android.gms.common.images.Size
+import java.util.Arrays
+import java.util.concurrent.TimeUnit
+
+/**
+ * Streams generated frames instead of those of a camera, so the detection pipeline can be run and
+ * measured on devices and emulators without one. The frames show a bright square bouncing across a
+ * gradient, the preview itself stays blank.
+ *
+ * The frames are paced on [System.nanoTime] rather than on [android.os.SystemClock], so they keep coming in real
+ * time under the paused clock of Robolectric.
+ */
+internal class SyntheticCameraBackend @VisibleForTesting constructor(
+    private val context: Context,
+    private val frameBuffers: FrameBufferRecycler
+) : CameraBackend {
+
+    constructor(context: Context) : this(context, FrameBufferRecycler())
+
+    private var frameThread: Thread? = null
+    private var minFrameBufferDepth = CameraSource.DEFAULT_MIN_FRAME_BUFFER_DEPTH
+    private var maxFrameBufferDepth = CameraSource.DEFAULT_MAX_FRAME_BUFFER_DEPTH
+
+    @Volatile
+    private var streaming = false
+    @Volatile
+    private var frameRate = CameraSource.REQUESTED_CAMERA_FPS
+
+    @get:Synchronized
+    override var previewSize: Size? = null
+        private set
+
+    override val maxZoomRatio: Float = 1f
+
+    @Synchronized
+    override fun start(surfaceHolder: SurfaceHolder, listener: CameraBackend.FrameListener) {
+        if (frameThread != null) return
+
+        previewSize = Size(FRAME_WIDTH, FRAME_HEIGHT)
+        val angle = CameraSource.getFrameRotationDegrees(context, SENSOR_ORIENTATION)
+        // This corresponds to the rotation constants in FirebaseVisionImageMetadata.
+        val metadata = FrameMetadata(FRAME_WIDTH, FRAME_HEIGHT, angle / 90)
+        frameBuffers.reset(FRAME_WIDTH * FRAME_HEIGHT * 3 / 2, minFrameBufferDepth, maxFrameBufferDepth)
+
+        frameRate = CameraSource.REQUESTED_CAMERA_FPS
+        listener.onFrameRateChanged(frameRate)
+        streaming = true
+        frameThread = Thread({ streamFrames(listener, metadata) }, TAG).apply { start() }
+    }
+
+    @Synchronized
+    override fun stop() {
+        streaming = false
+        frameThread?.let {
+            try {
+                it.join()
+            } catch (e: InterruptedException) {
+                Log.e(TAG, "Frame thread interrupted on stop.")
+            }
+            frameThread = null
+        }
+        frameBuffers.clear()
+    }
+
+    /** Called on the frame thread only, through [CameraBackend.FrameListener.admitFrame].  */
+    override fun requestFrameRate(frameRate: Float) {
+        this.frameRate = frameRate.coerceIn(MIN_FRAME_RATE, CameraSource.REQUESTED_CAMERA_FPS)
+    }
+
+    override fun setTorchEnabled(enabled: Boolean) {}
+
+    @Synchronized
+    override fun setFrameBufferDepth(minDepth: Int, maxDepth: Int) {
+        minFrameBufferDepth = minDepth
+        maxFrameBufferDepth = maxDepth
+    }
+
+    /** The frames are always generated in the same size.  */
+    override fun setPreviewSizePair(sizePair: CameraSizePair?) {}
+
+    /** The generated frames have no camera behind them to focus or zoom.  */
+    override fun setFocusRegion(uprightRegion: Rect?) {}
+
+    override fun setZoomRatio(zoomRatio: Float): Float = 1f
+
+    private fun streamFrames(listener: CameraBackend.FrameListener, metadata: FrameMetadata) {
+        var frameIndex = 0L
+        var streamedFrameRate = frameRate
+        var nextFrameNs = System.nanoTime()
+        while (streaming) {
+            val delayMs = TimeUnit.NANOSECONDS.toMillis(nextFrameNs - System.nanoTime())
+            if (delayMs > 0) {
+                try {
+                    Thread.sleep(delayMs)
+                } catch (e: InterruptedException) {
+                    Log.e(TAG, "Frame thread interrupted.")
+                    return
+                }
+            }
+            nextFrameNs += (TimeUnit.SECONDS.toNanos(1) / frameRate).toLong()
+            frameIndex++
+
+            val admitted = listener.admitFrame()
+            if (frameRate != streamedFrameRate) {
+                streamedFrameRate = frameRate
+                listener.onFrameRateChanged(streamedFrameRate)
+            }
+            if (!admitted) continue
+            val frame = frameBuffers.obtainFrame(metadata)
+            if (frame == null) {
+                Log.d(TAG, "Skipping frame. The pipeline holds all the frame buffers.")
+                continue
+            }
+            drawFrame(frame.data.array(), frameIndex)
+            listener.onFrame(frame)
+        }
+    }
+
+    companion object {
+        private const val TAG = "SyntheticCameraBackend"
+
+        private const val FRAME_WIDTH = 640
+        private const val FRAME_HEIGHT = 480
+        /** The frames are generated the way the usual back camera sensor is mounted.  */
+        private const val SENSOR_ORIENTATION = 90
+
+        private const val SQUARE_SIZE = 160
+        private const val SQUARE_STEP = 6
+        private const val SQUARE_LUMA = 235.toByte()
+        private const val NEUTRAL_CHROMA = 128.toByte()
+
+        private const val MIN_FRAME_RATE = 1f
+
+        /** Draws the given frame of the animation into an NV21 array.  */
+        private fun drawFrame(nv21: ByteArray, frameIndex: Long) {
+            for (y in 0 until FRAME_HEIGHT) {
+                val rowStart = y * FRAME_WIDTH
+                Arrays.fill(nv21, rowStart, rowStart + FRAME_WIDTH, (16 + y * 160 / FRAME_HEIGHT).toByte())
+            }
+
+            val squareLeft = bounce(frameIndex * SQUARE_STEP, FRAME_WIDTH - SQUARE_SIZE)
+            val squareTop = bounce(frameIndex * SQUARE_STEP / 2, FRAME_HEIGHT - SQUARE_SIZE)
+            for (y in squareTop until squareTop + SQUARE_SIZE) {
+                val rowStart = y * FRAME_WIDTH + squareLeft
+                Arrays.fill(nv21, rowStart, rowStart + SQUARE_SIZE, SQUARE_LUMA)
+            }
+
+            val ySize = FRAME_WIDTH * FRAME_HEIGHT
+            Arrays.fill(nv21, ySize, ySize + ySize / 2, NEUTRAL_CHROMA)
+        }
+
+        /** Maps a distance travelled onto a position moving back and forth between 0 and the range.  */
+        private fun bounce(distance: Long, range: Int): Int {
+            val position = (distance % (2 * range)).toInt()
+            return if (position <= range) position else 2 * range - position
+        }
+    }
+}
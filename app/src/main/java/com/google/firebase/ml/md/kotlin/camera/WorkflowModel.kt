@@ -23,10 +23,10 @@ import androidx.lifecycle.AndroidViewModel
 import androidx.lifecycle.MutableLiveData
 import com.google.firebase.ml.vision.barcode.FirebaseVisionBarcode
 import com.google.firebase.ml.md.kotlin.objectdetection.DetectedObject
+import com.google.firebase.ml.md.kotlin.objectdetection.TrackingIdMap
 import com.google.firebase.ml.md.kotlin.productsearch.Product
 import com.google.firebase.ml.md.kotlin.productsearch.SearchedObject
 import com.google.firebase.ml.md.kotlin.settings.PreferenceUtils
-import java.util.HashSet
 
 /** View model for handling application workflow based on camera preview.  */
 class WorkflowModel(application: Application) : AndroidViewModel(application) {
@@ -36,31 +36,74 @@ class WorkflowModel(application: Application) : AndroidViewModel(application) {
     val searchedObject = MutableLiveData<SearchedObject>()
     val detectedBarcode = MutableLiveData<FirebaseVisionBarcode>()
 
-    private val objectIdsToSearch = HashSet<Int>()
+    // The objects in search by their tracking ids, keyed without boxing them.
+    private val objectsInSearch = TrackingIdMap<DetectedObject>()
 
+    // Read by the processors on the post-processing executor, before they drive the camera.
+    @Volatile
     var isCameraLive = false
         private set
 
     private var confirmedObject: DetectedObject? = null
 
+    // The state each frame processor proposed last since the screen last set one, kept along with the processor
+    // rather than in a map so that proposing doesn't allocate. Only used on the main thread.
+    private val proposals = ArrayList<Proposal>()
+
+    private class Proposal(val processor: FrameProcessor, var state: WorkflowState)
+
     private val context: Context
         get() = getApplication<Application>().applicationContext
 
     /**
-     * State set of the application workflow.
+     * State set of the application workflow, in the order the workflow goes through them, which ranks the states the
+     * frame processors propose.
      */
     enum class WorkflowState {
         NOT_STARTED,
         DETECTING,
         DETECTED,
+        ZOOMING,
         CONFIRMING,
         CONFIRMED,
         SEARCHING,
         SEARCHED
     }
 
+    /** Sets the state of the workflow for the screen, over whatever its frame processors proposed.  */
     @MainThread
     fun setWorkflowState(workflowState: WorkflowState) {
+        proposals.clear()
+        applyWorkflowState(workflowState)
+    }
+
+    /**
+     * Proposes the state of the workflow the given frame processor is at. A screen may run several processors at
+     * once, see [CompositeFrameProcessor], so the state set is the one furthest along the workflow of those its
+     * processors proposed last, and a processor with nothing in view doesn't reset what another one is confirming.
+     * With a single processor, that's the state it proposed.
+     */
+    @MainThread
+    fun proposeWorkflowState(processor: FrameProcessor, workflowState: WorkflowState) {
+        var arbitratedState = workflowState
+        var hasProposed = false
+        for (i in proposals.indices) {
+            val proposal = proposals[i]
+            if (proposal.processor === processor) {
+                proposal.state = workflowState
+                hasProposed = true
+            } else if (proposal.state > arbitratedState) {
+                arbitratedState = proposal.state
+            }
+        }
+        if (!hasProposed) {
+            proposals.add(Proposal(processor, workflowState))
+        }
+        applyWorkflowState(arbitratedState)
+    }
+
+    @MainThread
+    private fun applyWorkflowState(workflowState: WorkflowState) {
         if (workflowState != WorkflowState.CONFIRMED &&
                 workflowState != WorkflowState.SEARCHING &&
                 workflowState != WorkflowState.SEARCHED) {
@@ -69,19 +112,20 @@ class WorkflowModel(application: Application) : AndroidViewModel(application) {
         this.workflowState.value = workflowState
     }
 
+    /** Proposes the state of the given frame processor confirming the given object.  */
     @MainThread
-    fun confirmingObject(confirmingObject: DetectedObject, progress: Float) {
+    fun confirmingObject(processor: FrameProcessor, confirmingObject: DetectedObject, progress: Float) {
         val isConfirmed = progress.compareTo(1f) == 0
         if (isConfirmed) {
             confirmedObject = confirmingObject
             if (PreferenceUtils.isAutoSearchEnabled(context)) {
-                setWorkflowState(WorkflowState.SEARCHING)
+                proposeWorkflowState(processor, WorkflowState.SEARCHING)
                 triggerSearch(confirmingObject)
             } else {
-                setWorkflowState(WorkflowState.CONFIRMED)
+                proposeWorkflowState(processor, WorkflowState.CONFIRMED)
             }
         } else {
-            setWorkflowState(WorkflowState.CONFIRMING)
+            proposeWorkflowState(processor, WorkflowState.CONFIRMING)
         }
     }
 
@@ -95,18 +139,18 @@ class WorkflowModel(application: Application) : AndroidViewModel(application) {
 
     private fun triggerSearch(detectedObject: DetectedObject) {
         val objectId = detectedObject.objectId ?: throw NullPointerException()
-        if (objectIdsToSearch.contains(objectId)) {
+        if (objectsInSearch[objectId] != null) {
             // Already in searching.
             return
         }
 
-        objectIdsToSearch.add(objectId)
+        objectsInSearch[objectId] = detectedObject
         objectToSearch.value = detectedObject
     }
 
     fun markCameraLive() {
         isCameraLive = true
-        objectIdsToSearch.clear()
+        objectsInSearch.clear()
     }
 
     fun markCameraFrozen() {
@@ -120,7 +164,7 @@ class WorkflowModel(application: Application) : AndroidViewModel(application) {
             return
         }
 
-        objectIdsToSearch.remove(detectedObject.objectId)
+        detectedObject.objectId?.let { objectsInSearch.remove(it) }
         setWorkflowState(WorkflowState.SEARCHED)
 
         searchedObject.value = SearchedObject(context.resources, lConfirmedObject, products)
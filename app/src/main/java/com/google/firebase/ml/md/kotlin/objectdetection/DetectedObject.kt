@@ -18,22 +18,41 @@ package com.google.firebase.ml.md.kotlin.objectdetection
 
 import android.graphics.Bitmap
 import android.graphics.Bitmap.CompressFormat
+import android.graphics.BitmapFactory
+import android.graphics.ImageFormat
 import android.graphics.Rect
+import android.graphics.YuvImage
 import android.util.Log
+import com.google.firebase.ml.md.kotlin.camera.FrameCrop
 import com.google.firebase.ml.vision.common.FirebaseVisionImage
 import com.google.firebase.ml.vision.objects.FirebaseVisionObject
-import java.io.ByteArrayOutputStream
 import java.io.IOException
+import java.io.OutputStream
 
 /**
  * Holds the detected object and its related image info.
+ *
+ * An object detected in a camera frame comes with a [FrameCrop] of its box, copied out before the
+ * frame went back to the camera. The crop is encoded to JPEG as it is and the bitmap of the object
+ * decoded from that JPEG, rather than the whole frame converted to a bitmap to cut the object out
+ * of. Only an object detected in a still image is cut out of the image itself.
  */
-class DetectedObject(
+class DetectedObject private constructor(
     private val visionObject: FirebaseVisionObject,
     val objectIndex: Int,
-    private val image: FirebaseVisionImage
+    // Either the still image the object was detected in, or the crop of a camera frame.
+    private val image: FirebaseVisionImage?,
+    private val crop: FrameCrop?
 ) {
 
+    /** Wraps an object detected in a still image, which is kept to cut the object out of.  */
+    constructor(visionObject: FirebaseVisionObject, objectIndex: Int, image: FirebaseVisionImage) :
+            this(visionObject, objectIndex, image, null)
+
+    /** Wraps an object detected in a camera frame, along with its box copied out of the frame.  */
+    constructor(visionObject: FirebaseVisionObject, objectIndex: Int, crop: FrameCrop) :
+            this(visionObject, objectIndex, null, crop)
+
     private var bitmap: Bitmap? = null
     private var jpegBytes: ByteArray? = null
 
@@ -44,9 +63,20 @@ class DetectedObject(
         @Synchronized get() {
             if (jpegBytes == null) {
                 try {
-                    ByteArrayOutputStream().use { stream ->
-                        getBitmap().compress(CompressFormat.JPEG, /* quality= */ 100, stream)
-                        jpegBytes = stream.toByteArray()
+                    val crop = crop
+                    jpegBytes = if (crop != null) {
+                        val encoder = object : JpegPayload.Encoder {
+                            override fun encode(stream: OutputStream) = compressCrop(crop, stream)
+                        }
+                        JpegPayload.encode(crop.width, crop.height, encoder)
+                    } else {
+                        val objectBitmap = bitmap ?: cropImage().also { bitmap = it }
+                        val encoder = object : JpegPayload.Encoder {
+                            override fun encode(stream: OutputStream) {
+                                objectBitmap.compress(CompressFormat.JPEG, /* quality= */ 100, stream)
+                            }
+                        }
+                        JpegPayload.encode(objectBitmap.width, objectBitmap.height, encoder)
                     }
                 } catch (e: IOException) {
                     Log.e(TAG, "Error getting object image data!")
@@ -55,27 +85,41 @@ class DetectedObject(
             return jpegBytes
         }
 
+    /** Returns the bitmap of the object, or null if the crop of a camera frame failed to encode.  */
     @Synchronized
-    fun getBitmap(): Bitmap {
-        return bitmap ?: let {
-            val boundingBox = visionObject.boundingBox
-            val createdBitmap = Bitmap.createBitmap(
-                    image.bitmap,
-                    boundingBox.left,
-                    boundingBox.top,
-                    boundingBox.width(),
-                    boundingBox.height()
+    fun getBitmap(): Bitmap? {
+        bitmap?.let { return it }
+        return (if (crop != null) decodeCrop() else cropImage()).also { bitmap = it }
+    }
+
+    private fun decodeCrop(): Bitmap? = imageData?.let { BitmapFactory.decodeByteArray(it, 0, it.size) }
+
+    private fun cropImage(): Bitmap {
+        val boundingBox = visionObject.boundingBox
+        val createdBitmap = Bitmap.createBitmap(
+                image!!.bitmap,
+                boundingBox.left,
+                boundingBox.top,
+                boundingBox.width(),
+                boundingBox.height()
+        )
+        if (createdBitmap.width > JpegPayload.MAX_IMAGE_WIDTH) {
+            val dstHeight = JpegPayload.getScaledHeight(createdBitmap.width, createdBitmap.height)
+            return Bitmap.createScaledBitmap(
+                createdBitmap, JpegPayload.MAX_IMAGE_WIDTH, dstHeight, /* filter= */ false
             )
-            if (createdBitmap.width > MAX_IMAGE_WIDTH) {
-                val dstHeight = (MAX_IMAGE_WIDTH.toFloat() / createdBitmap.width * createdBitmap.height).toInt()
-                bitmap = Bitmap.createScaledBitmap(createdBitmap, MAX_IMAGE_WIDTH, dstHeight, /* filter= */ false)
-            }
-            createdBitmap
+        }
+        return createdBitmap
+    }
+
+    private fun compressCrop(crop: FrameCrop, stream: OutputStream) {
+        val yuvImage = YuvImage(crop.data, ImageFormat.NV21, crop.width, crop.height, /* strides= */ null)
+        if (!yuvImage.compressToJpeg(Rect(0, 0, crop.width, crop.height), /* quality= */ 100, stream)) {
+            throw IOException("Failed to compress the object crop.")
         }
     }
 
     companion object {
         private const val TAG = "DetectedObject"
-        private const val MAX_IMAGE_WIDTH = 640
     }
 }
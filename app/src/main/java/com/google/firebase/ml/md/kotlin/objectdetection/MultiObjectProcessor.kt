@@ -16,166 +16,287 @@
 
 package com.google.firebase.ml.md.kotlin.objectdetection
 
-import android.graphics.PointF
+import android.graphics.Rect
+import android.graphics.RectF
 import android.util.Log
-import android.util.SparseArray
+import androidx.annotation.GuardedBy
 import androidx.annotation.MainThread
-import androidx.core.util.forEach
-import androidx.core.util.set
+import androidx.annotation.VisibleForTesting
+import androidx.annotation.WorkerThread
 import com.google.android.gms.tasks.Task
-import com.google.firebase.ml.vision.FirebaseVision
 import com.google.firebase.ml.vision.common.FirebaseVisionImage
 import com.google.firebase.ml.vision.objects.FirebaseVisionObject
-import com.google.firebase.ml.vision.objects.FirebaseVisionObjectDetector
 import com.google.firebase.ml.vision.objects.FirebaseVisionObjectDetectorOptions
 import com.google.firebase.ml.md.kotlin.camera.CameraReticleAnimator
+import com.google.firebase.ml.md.kotlin.camera.DetectorPool
 import com.google.firebase.ml.md.kotlin.camera.GraphicOverlay
 import com.google.firebase.ml.md.R
 import com.google.firebase.ml.md.kotlin.camera.WorkflowModel
 import com.google.firebase.ml.md.kotlin.camera.FrameProcessorBase
 import com.google.firebase.ml.md.kotlin.settings.PreferenceUtils
-import java.io.IOException
+import java.util.ArrayDeque
 import java.util.ArrayList
-import kotlin.math.hypot
 
 /** A processor to run object detector in multi-objects mode.  */
 class MultiObjectProcessor(graphicOverlay: GraphicOverlay, private val workflowModel: WorkflowModel) :
-    FrameProcessorBase<List<FirebaseVisionObject>>() {
+    FrameProcessorBase<List<FirebaseVisionObject>>(
+        graphicOverlay.context,
+        PreferenceUtils.getObjectFramesPerDetection(graphicOverlay.context)
+    ) {
     private val confirmationController: ObjectConfirmationController = ObjectConfirmationController(graphicOverlay)
     private val cameraReticleAnimator: CameraReticleAnimator = CameraReticleAnimator(graphicOverlay)
     private val objectSelectionDistanceThreshold: Int = graphicOverlay
             .resources
             .getDimensionPixelOffset(R.dimen.object_selection_distance_threshold)
-    private val detector: FirebaseVisionObjectDetector
+    private val classificationEnabled = PreferenceUtils.isClassificationEnabled(graphicOverlay.context)
+    private val detector = DetectorPool.acquireObjectDetector(
+            graphicOverlay.context,
+            FirebaseVisionObjectDetectorOptions.STREAM_MODE,
+            /* multipleObjects= */ true,
+            classificationEnabled
+    )
     // Each new tracked object plays appearing animation exactly once.
-    private val objectDotAnimatorArray = SparseArray<ObjectDotAnimator>()
-
-    init {
-        val optionsBuilder = FirebaseVisionObjectDetectorOptions.Builder()
-                .setDetectorMode(FirebaseVisionObjectDetectorOptions.STREAM_MODE)
-                .enableMultipleObjects()
-        if (PreferenceUtils.isClassificationEnabled(graphicOverlay.context)) {
-            optionsBuilder.enableClassification()
+    private val objectDotAnimators = TrackingIdMap<ObjectDotAnimator>()
+    private val animatorCanceller = { _: Int, animator: ObjectDotAnimator -> animator.cancel() }
+    // Only used on the main thread, and by the graphics below to move the boxes in between detections.
+    private val tracker = ObjectMotionTracker()
+
+    // The graphics are kept and updated in place for every frame rather than recreated, and so are
+    // the lists and rects used to lay them out, so rendering the live view doesn't allocate.
+    private val confirmationGraphic = ObjectConfirmationGraphic(graphicOverlay, confirmationController)
+    private val selectedObjectGraphic = ObjectGraphicInMultiMode(graphicOverlay, confirmationController, tracker)
+    private val reticleGraphic = ObjectReticleGraphic(graphicOverlay, cameraReticleAnimator)
+    private val objectDotGraphics = ArrayList<ObjectDotGraphic>()
+    // Only used on the post-processing executor.
+    private val objectBox = RectF()
+    // The layer of the overlay this processor draws on, next to those of any other processors.
+    private val layer = graphicOverlay.addLayer()
+    // Only used on the main thread.
+    private val graphics = ArrayList<GraphicOverlay.Graphic>()
+    private val trackedIds = TrackingIdSet()
+    // The selected object as handed to the workflow, wrapped once for as long as it stays confirmed.
+    private var confirmedObject: DetectedObject? = null
+    // The publishers that ran, kept along with their boxes for the results of the next frames.
+    @GuardedBy("idlePublishers")
+    private val idlePublishers = ArrayDeque<ResultsPublisher>()
+
+    /**
+     * Publishes the results of a frame on the main thread, and is recycled once it did. Several of them may be
+     * waiting to run while the next results are post-processed, so each copies the objects into boxes of its own.
+     */
+    private inner class ResultsPublisher : Runnable {
+        val boxes = ObjectBoxes()
+        // Only kept to be wrapped for the workflow once it's confirmed.
+        var selectedObject: FirebaseVisionObject? = null
+        var selectedObjectIndex = -1
+        var frameTimeNs = 0L
+        var graphicOverlay: GraphicOverlay? = null
+
+        @MainThread
+        override fun run() {
+            if (publishResults(boxes, selectedObjectIndex, frameTimeNs, graphicOverlay!!)) {
+                confirmObject(selectedObject!!, selectedObjectIndex)
+            }
+            selectedObject = null
+            graphicOverlay = null
+            synchronized(idlePublishers) {
+                idlePublishers.add(this)
+            }
         }
-        this.detector = FirebaseVision.getInstance().getOnDeviceObjectDetector(optionsBuilder.build())
     }
 
     override fun stop() {
-        try {
-            detector.close()
-        } catch (e: IOException) {
-            Log.e(TAG, "Failed to close object detector!", e)
-        }
+        super.stop()
+        Log.i(TAG, "Tracking error: $tracker")
+        detector.release()
+        layer.remove()
     }
 
     override fun detectInImage(image: FirebaseVisionImage): Task<List<FirebaseVisionObject>> {
-        return detector.processImage(image)
+        return detector.get().processImage(image)
     }
 
-    @MainThread
-    override fun onSuccess(
+    @WorkerThread
+    override fun onResults(
         image: FirebaseVisionImage,
         results: List<FirebaseVisionObject>,
+        detectionRegion: Rect?,
+        frameTimeNs: Long,
         graphicOverlay: GraphicOverlay
-    ) {
-        var objects = results
+    ): Runnable? {
         if (!workflowModel.isCameraLive) {
-            return
+            return null
         }
 
-        if (PreferenceUtils.isClassificationEnabled(graphicOverlay.context)) {
-            val qualifiedObjects = ArrayList<FirebaseVisionObject>()
-            for (result in objects) {
-                if (result.classificationCategory != FirebaseVisionObject.CATEGORY_UNKNOWN) {
-                    qualifiedObjects.add(result)
-                }
+        val publisher = synchronized(idlePublishers) { idlePublishers.poll() } ?: ResultsPublisher()
+        publisher.boxes.clear()
+        publisher.selectedObject = null
+        publisher.selectedObjectIndex = -1
+        for (i in results.indices) {
+            val result = results[i]
+            if (classificationEnabled && result.classificationCategory == FirebaseVisionObject.CATEGORY_UNKNOWN) {
+                continue
+            }
+            // The first object the camera reticle touches is the one selected.
+            if (publisher.selectedObject == null && shouldSelectObject(graphicOverlay, result)) {
+                publisher.selectedObject = result
+                publisher.selectedObjectIndex = publisher.boxes.size
             }
-            objects = qualifiedObjects
+            publisher.boxes.add(result.trackingId ?: UNTRACKED_ID, result.boundingBox)
         }
+        publisher.frameTimeNs = frameTimeNs
+        publisher.graphicOverlay = graphicOverlay
+        return publisher
+    }
 
-        removeAnimatorsFromUntrackedObjects(objects)
-
-        graphicOverlay.clear()
-
-        var selectedObject: DetectedObject? = null
-        for (i in objects.indices) {
-            val result = objects[i]
-            if (selectedObject == null && shouldSelectObject(graphicOverlay, result)) {
-                selectedObject = DetectedObject(result, i, image)
-                // Starts the object confirmation once an object is regarded as selected.
-                confirmationController.confirming(result.trackingId)
-                graphicOverlay.add(ObjectConfirmationGraphic(graphicOverlay, confirmationController))
-
-                graphicOverlay.add(
-                        ObjectGraphicInMultiMode(
-                                graphicOverlay, selectedObject, confirmationController))
-            } else {
-                if (confirmationController.isConfirmed) {
-                    // Don't render other objects when an object is in confirmed state.
-                    continue
-                }
+    /**
+     * Publishes the boxes of the objects detected in a frame, which the tests drive the processor through, as only
+     * the detector makes ML Kit objects.
+     *
+     * @param selectedObjectIndex the index of the box the camera reticle touches, or -1.
+     * @return whether the selected object is confirmed, for the caller to hand it to the workflow.
+     */
+    @VisibleForTesting
+    @MainThread
+    internal fun publishResults(
+        boxes: ObjectBoxes,
+        selectedObjectIndex: Int,
+        frameTimeNs: Long,
+        graphicOverlay: GraphicOverlay
+    ): Boolean {
+        if (!workflowModel.isCameraLive) {
+            return false
+        }
+
+        removeAnimatorsFromUntrackedObjects(boxes)
+        updateTracker(boxes, frameTimeNs)
 
-                val trackingId = result.trackingId ?: return
-                val objectDotAnimator = objectDotAnimatorArray.get(trackingId) ?: let {
+        graphics.clear()
+
+        val hasSelectedObject = selectedObjectIndex >= 0
+        if (hasSelectedObject) {
+            val trackingId = boxes.getTrackingId(selectedObjectIndex)
+            // Starts the object confirmation once an object is regarded as selected.
+            confirmationController.confirming(trackingId)
+            graphics.add(confirmationGraphic)
+
+            selectedObjectGraphic.update(trackingId, boxes.getBox(selectedObjectIndex))
+            graphics.add(selectedObjectGraphic)
+        }
+
+        // Don't render other objects when an object is in confirmed state.
+        if (!hasSelectedObject || !confirmationController.isConfirmed) {
+            var objectDotCount = 0
+            for (i in 0 until boxes.size) {
+                if (i == selectedObjectIndex) continue
+                val trackingId = boxes.getTrackingId(i)
+                if (trackingId == UNTRACKED_ID) continue
+                val objectDotAnimator = objectDotAnimators[trackingId] ?: let {
                     ObjectDotAnimator(graphicOverlay).apply {
                         start()
-                        objectDotAnimatorArray[trackingId] = this
+                        objectDotAnimators[trackingId] = this
                     }
                 }
-                graphicOverlay.add(
-                        ObjectDotGraphic(
-                                graphicOverlay, DetectedObject(result, i, image), objectDotAnimator
-                        )
-                )
+                if (objectDotCount == objectDotGraphics.size) {
+                    objectDotGraphics.add(ObjectDotGraphic(graphicOverlay, tracker))
+                }
+                val objectDotGraphic = objectDotGraphics[objectDotCount++]
+                objectDotGraphic.update(trackingId, boxes.getBox(i), objectDotAnimator)
+                graphics.add(objectDotGraphic)
             }
         }
 
-        if (selectedObject == null) {
+        if (!hasSelectedObject) {
             confirmationController.reset()
-            graphicOverlay.add(ObjectReticleGraphic(graphicOverlay, cameraReticleAnimator))
+            graphics.add(reticleGraphic)
             cameraReticleAnimator.start()
         } else {
             cameraReticleAnimator.cancel()
         }
 
-        graphicOverlay.invalidate()
+        layer.setGraphics(graphics)
 
-        if (selectedObject != null) {
-            workflowModel.confirmingObject(selectedObject, confirmationController.progress)
-        } else {
-            workflowModel.setWorkflowState(
-                    if (objects.isEmpty()) {
+        val isConfirmed = hasSelectedObject && confirmationController.isConfirmed
+        if (!isConfirmed) {
+            // The confirmation starts over, and so does the object handed to the workflow.
+            confirmedObject = null
+        }
+        when {
+            !hasSelectedObject -> workflowModel.proposeWorkflowState(
+                    this,
+                    if (boxes.isEmpty) {
                         WorkflowModel.WorkflowState.DETECTING
                     } else {
                         WorkflowModel.WorkflowState.DETECTED
                     }
             )
+            // The workflow only keeps the object once it's confirmed, so it isn't wrapped before.
+            !isConfirmed -> workflowModel.proposeWorkflowState(this, WorkflowModel.WorkflowState.CONFIRMING)
         }
+        return isConfirmed
     }
 
-    private fun removeAnimatorsFromUntrackedObjects(detectedObjects: List<FirebaseVisionObject>) {
-        val trackingIds = detectedObjects.mapNotNull { it.trackingId }
-        // Stop and remove animators from the objects that have lost tracking.
-        val removedTrackingIds = ArrayList<Int>()
-        objectDotAnimatorArray.forEach { key, value ->
-            if (!trackingIds.contains(key)) {
-                value.cancel()
-                removedTrackingIds.add(key)
+    /**
+     * Hands the confirmed object to the workflow. The object and its crop are made at the first frame it's confirmed
+     * in, and handed again as they are for the frames it stays confirmed in.
+     */
+    @MainThread
+    private fun confirmObject(selectedObject: FirebaseVisionObject, selectedObjectIndex: Int) {
+        val detectedObject = confirmedObject ?: run {
+            // The frame is recycled once published, so a box too small to crop can't be searched for.
+            val crop = cropPublishedFrame(selectedObject.boundingBox, JpegPayload.MAX_IMAGE_WIDTH) ?: return
+            DetectedObject(selectedObject, selectedObjectIndex, crop).also { confirmedObject = it }
+        }
+        workflowModel.confirmingObject(this, detectedObject, confirmationController.progress)
+    }
+
+    private fun removeAnimatorsFromUntrackedObjects(boxes: ObjectBoxes) {
+        objectDotAnimators.nextGeneration()
+        trackedIds.clear()
+        for (i in 0 until boxes.size) {
+            val trackingId = boxes.getTrackingId(i)
+            if (trackingId != UNTRACKED_ID) {
+                trackedIds.add(trackingId)
+                objectDotAnimators.markSeen(trackingId)
             }
         }
-        removedTrackingIds.forEach {
-            objectDotAnimatorArray.remove(it)
+        // Stop and remove animators from the objects that have lost tracking.
+        objectDotAnimators.expire(/* maxUnseenGenerations= */ 0, animatorCanceller)
+    }
+
+    /**
+     * Corrects the tracker by the objects detected in the frame the processor got at the given time,
+     * after [removeAnimatorsFromUntrackedObjects] collected their tracking ids.
+     */
+    private fun updateTracker(boxes: ObjectBoxes, frameTimeNs: Long) {
+        tracker.retainOnly(trackedIds)
+        for (i in 0 until boxes.size) {
+            val trackingId = boxes.getTrackingId(i)
+            if (trackingId == UNTRACKED_ID) continue
+            val box = boxes.getBox(i)
+            tracker.update(
+                    trackingId,
+                    box.left.toFloat(),
+                    box.top.toFloat(),
+                    box.right.toFloat(),
+                    box.bottom.toFloat(),
+                    frameTimeNs
+            )
         }
     }
 
     private fun shouldSelectObject(graphicOverlay: GraphicOverlay, visionObject: FirebaseVisionObject): Boolean {
         // Considers an object as selected when the camera reticle touches the object dot.
-        val box = graphicOverlay.translateRect(visionObject.boundingBox)
-        val objectCenter = PointF((box.left + box.right) / 2f, (box.top + box.bottom) / 2f)
-        val reticleCenter = PointF(graphicOverlay.width / 2f, graphicOverlay.height / 2f)
-        val distance =
-            hypot((objectCenter.x - reticleCenter.x).toDouble(), (objectCenter.y - reticleCenter.y).toDouble())
-        return distance < objectSelectionDistanceThreshold
+        val box = graphicOverlay.translateRect(visionObject.boundingBox, objectBox)
+        return ReticleHitTest.isBoxCenterNearReticle(
+            box.left,
+            box.top,
+            box.right,
+            box.bottom,
+            graphicOverlay.width / 2f,
+            graphicOverlay.height / 2f,
+            objectSelectionDistanceThreshold.toFloat()
+        )
     }
 
     override fun onFailure(e: Exception) {
@@ -185,5 +306,8 @@ class MultiObjectProcessor(graphicOverlay: GraphicOverlay, private val workflowM
     companion object {
 
         private const val TAG = "MultiObjectProcessor"
+
+        // Stands in for the id of objects the detector didn't assign one to.
+        private const val UNTRACKED_ID = -1
     }
 }
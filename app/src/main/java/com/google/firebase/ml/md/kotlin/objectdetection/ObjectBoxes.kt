@@ -0,0 +1,59 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.kotlin.objectdetection
+
+import android.graphics.Rect
+
+/**
+ * The tracking ids and boxes of the objects detected in a frame, copied out of the results of the
+ * detector so that they get published as plain boxes. It's refilled for every frame rather than
+ * recreated, and so are its boxes, so publishing doesn't allocate.
+ */
+internal class ObjectBoxes {
+
+    private var trackingIds = IntArray(8)
+    private var boxes = arrayOfNulls<Rect>(8)
+
+    var size = 0
+        private set
+
+    val isEmpty: Boolean
+        get() = size == 0
+
+    fun clear() {
+        size = 0
+    }
+
+    /** Adds the object with the given tracking id, whose box is copied.  */
+    fun add(trackingId: Int, box: Rect) = add(trackingId, box.left, box.top, box.right, box.bottom)
+
+    fun add(trackingId: Int, left: Int, top: Int, right: Int, bottom: Int) {
+        if (size == trackingIds.size) {
+            trackingIds = trackingIds.copyOf(size * 2)
+            boxes = boxes.copyOf(size * 2)
+        }
+        val box = boxes[size] ?: Rect().also { boxes[size] = it }
+        trackingIds[size] = trackingId
+        box.set(left, top, right, bottom)
+        size++
+    }
+
+    fun getTrackingId(index: Int): Int = trackingIds[index]
+
+    /** Returns the box of the object at the given index, which is overwritten once refilled.  */
+    fun getBox(index: Int): Rect = boxes[index]!!
+}
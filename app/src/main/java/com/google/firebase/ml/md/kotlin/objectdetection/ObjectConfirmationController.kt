@@ -17,6 +17,7 @@
 package com.google.firebase.ml.md.kotlin.objectdetection
 
 import android.os.CountDownTimer
+import android.os.SystemClock
 import com.google.firebase.ml.md.kotlin.camera.GraphicOverlay
 import com.google.firebase.ml.md.kotlin.settings.PreferenceUtils
 
@@ -31,8 +32,12 @@ internal class ObjectConfirmationController
 (graphicOverlay: GraphicOverlay) {
 
     private val countDownTimer: CountDownTimer
+    private val confirmationTimeMs: Long
 
-    private var objectId: Int? = null
+    // The tracking id of the object in confirmation, if there's one.
+    private var confirming = false
+    private var objectId = 0
+    private var startTimeMs = 0L
     /** Returns the confirmation progress described as a float value in the range of [0, 1].  */
     var progress = 0f
         private set
@@ -41,10 +46,10 @@ internal class ObjectConfirmationController
         get() = progress.compareTo(1f) == 0
 
     init {
-        val confirmationTimeMs = PreferenceUtils.getConfirmationTimeMs(graphicOverlay.context).toLong()
+        confirmationTimeMs = PreferenceUtils.getConfirmationTimeMs(graphicOverlay.context).toLong()
         countDownTimer = object : CountDownTimer(confirmationTimeMs, /* countDownInterval= */ 20) {
             override fun onTick(millisUntilFinished: Long) {
-                progress = (confirmationTimeMs - millisUntilFinished).toFloat() / confirmationTimeMs
+                updateProgress()
                 graphicOverlay.invalidate()
             }
 
@@ -54,20 +59,34 @@ internal class ObjectConfirmationController
         }
     }
 
-    fun confirming(objectId: Int?) {
-        if (objectId == this.objectId) {
-            // Do nothing if it's already in confirming.
+    /**
+     * Starts the confirmation of the given object, or brings its progress up to date if it's in confirmation already.
+     * The progress is measured from the time the confirmation started, so it doesn't depend on the ticks of the timer
+     * getting delivered in time.
+     */
+    fun confirming(objectId: Int) {
+        if (confirming && objectId == this.objectId) {
+            updateProgress()
             return
         }
 
         reset()
+        confirming = true
         this.objectId = objectId
+        startTimeMs = SystemClock.elapsedRealtime()
         countDownTimer.start()
     }
 
+    private fun updateProgress() {
+        if (confirming) {
+            val elapsedMs = SystemClock.elapsedRealtime() - startTimeMs
+            progress = minOf(1f, elapsedMs.toFloat() / confirmationTimeMs)
+        }
+    }
+
     fun reset() {
         countDownTimer.cancel()
-        objectId = null
+        confirming = false
         progress = 0f
     }
 }
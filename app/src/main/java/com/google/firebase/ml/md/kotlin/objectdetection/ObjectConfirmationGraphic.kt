@@ -43,6 +43,7 @@ class ObjectConfirmationGraphic internal constructor(
     private val outerRingFillRadius: Int
     private val outerRingStrokeRadius: Int
     private val innerRingStrokeRadius: Int
+    private val progressRect = RectF()
 
     init {
 
@@ -90,7 +91,7 @@ class ObjectConfirmationGraphic internal constructor(
         canvas.drawCircle(cx, cy, outerRingStrokeRadius.toFloat(), outerRingStrokePaint)
         canvas.drawCircle(cx, cy, innerRingStrokeRadius.toFloat(), innerRingPaint)
 
-        val progressRect = RectF(
+        progressRect.set(
                 cx - outerRingStrokeRadius,
                 cy - outerRingStrokeRadius,
                 cx + outerRingStrokeRadius,
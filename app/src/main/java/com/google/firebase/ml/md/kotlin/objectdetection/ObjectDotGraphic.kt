@@ -20,41 +20,41 @@ import android.graphics.Canvas
 import android.graphics.Color
 import android.graphics.Paint
 import android.graphics.Paint.Style
-import android.graphics.PointF
+import android.graphics.Rect
+import android.graphics.RectF
 import com.google.firebase.ml.md.kotlin.camera.GraphicOverlay
 import com.google.firebase.ml.md.kotlin.camera.GraphicOverlay.Graphic
 import com.google.firebase.ml.md.R
 
-/** A dot to indicate a detected object used by multiple objects detection mode.  */
-internal class ObjectDotGraphic(
-    overlay: GraphicOverlay,
-    detectedObject: DetectedObject,
-    private val animator: ObjectDotAnimator
-) : Graphic(overlay) {
-    private val paint: Paint
-    private val center: PointF
-    private val dotRadius: Int
-    private val dotAlpha: Int
-
-    init {
-
-        val box = detectedObject.boundingBox
-        center = PointF(
-                overlay.translateX((box.left + box.right) / 2f),
-                overlay.translateY((box.top + box.bottom) / 2f)
-        )
-
-        paint = Paint().apply {
-            style = Style.FILL
-            color = Color.WHITE
-        }
-
-        dotRadius = context.resources.getDimensionPixelOffset(R.dimen.object_dot_radius)
-        dotAlpha = paint.alpha
+/**
+ * A dot to indicate a detected object used by multiple objects detection mode. Kept and moved
+ * onto a new object by [update] rather than recreated for every frame.
+ */
+internal class ObjectDotGraphic(overlay: GraphicOverlay, tracker: ObjectMotionTracker) : Graphic(overlay) {
+    private val paint: Paint = Paint().apply {
+        style = Style.FILL
+        color = Color.WHITE
+    }
+    private val dotRadius: Int = context.resources.getDimensionPixelOffset(R.dimen.object_dot_radius)
+    private val dotAlpha: Int = paint.alpha
+
+    private val box = TrackedBox(tracker)
+    private val rect = RectF()
+    private var animator: ObjectDotAnimator? = null
+
+    /**
+     * Places the dot at the center of the box of the object with the given tracking id, animated by
+     * the given animator.
+     */
+    fun update(trackingId: Int, box: Rect, animator: ObjectDotAnimator) {
+        this.animator = animator
+        this.box.update(trackingId, box)
     }
 
     override fun draw(canvas: Canvas) {
+        val animator = animator ?: return
+        box.translate(overlay, rect)
         paint.alpha = (dotAlpha * animator.alphaScale).toInt()
-        canvas.drawCircle(center.x, center.y, dotRadius * animator.radiusScale, paint)
+        canvas.drawCircle(rect.centerX(), rect.centerY(), dotRadius * animator.radiusScale, paint)
     }
 }
@@ -19,10 +19,12 @@ package com.google.firebase.ml.md.kotlin.objectdetection
 import android.graphics.Canvas
 import android.graphics.Color
 import android.graphics.LinearGradient
+import android.graphics.Matrix
 import android.graphics.Paint
 import android.graphics.Paint.Style
 import android.graphics.PorterDuff
 import android.graphics.PorterDuffXfermode
+import android.graphics.Rect
 import android.graphics.RectF
 import android.graphics.Shader.TileMode
 import androidx.annotation.ColorInt
@@ -32,53 +34,59 @@ import com.google.firebase.ml.md.kotlin.camera.GraphicOverlay.Graphic
 import com.google.firebase.ml.md.R
 
 /**
- * Draws the detected detectedObject info over the camera preview for multiple objects detection mode.
+ * Draws the detected object info over the camera preview for multiple objects detection mode.
+ * Kept and moved onto the selected object by [update] rather than recreated for every frame,
+ * so drawing it doesn't allocate.
  */
 internal class ObjectGraphicInMultiMode(
     overlay: GraphicOverlay,
-    private val detectedObject: DetectedObject,
-    private val confirmationController: ObjectConfirmationController
+    private val confirmationController: ObjectConfirmationController,
+    tracker: ObjectMotionTracker
 ) : Graphic(overlay) {
 
     private val boxPaint: Paint
-    private val scrimPaint: Paint
+    private val scrimPaint: Paint = Paint()
     private val eraserPaint: Paint
+    // Spans a unit square and is stretched over the box by a local matrix.
+    private val boxGradient: LinearGradient
+    private val boxGradientMatrix = Matrix()
     @ColorInt
-    private val boxGradientStartColor: Int
+    private val scrimGradientStartColor: Int
     @ColorInt
-    private val boxGradientEndColor: Int
+    private val scrimGradientEndColor: Int
+    private val boxStrokeWidth: Int
+    private val boxConfirmedStrokeWidth: Int
     private val boxCornerRadius: Int
     private val minBoxLen: Int
 
+    private val boundingBox = TrackedBox(tracker)
+    private val rect = RectF()
+    // Overlay size the scrim gradient was made for.
+    private var scrimWidth = 0
+    private var scrimHeight = 0
+
     init {
         val resources = context.resources
         boxPaint = Paint().apply {
             style = Style.STROKE
-            strokeWidth = resources.getDimensionPixelOffset(
-                    if (confirmationController.isConfirmed) {
-                        R.dimen.bounding_box_confirmed_stroke_width
-                    } else {
-                        R.dimen.bounding_box_stroke_width
-                    }
-            ).toFloat()
             color = Color.WHITE
         }
+        boxStrokeWidth = resources.getDimensionPixelOffset(R.dimen.bounding_box_stroke_width)
+        boxConfirmedStrokeWidth = resources.getDimensionPixelOffset(R.dimen.bounding_box_confirmed_stroke_width)
 
-        boxGradientStartColor = ContextCompat.getColor(context, R.color.bounding_box_gradient_start)
-        boxGradientEndColor = ContextCompat.getColor(context, R.color.bounding_box_gradient_end)
+        boxGradient = LinearGradient(
+                0f,
+                0f,
+                0f,
+                1f,
+                ContextCompat.getColor(context, R.color.bounding_box_gradient_start),
+                ContextCompat.getColor(context, R.color.bounding_box_gradient_end),
+                TileMode.MIRROR
+        )
         boxCornerRadius = resources.getDimensionPixelOffset(R.dimen.bounding_box_corner_radius)
 
-        scrimPaint = Paint().apply {
-            shader = LinearGradient(
-                    0f,
-                    0f,
-                    overlay.width.toFloat(),
-                    overlay.height.toFloat(),
-                    ContextCompat.getColor(context, R.color.object_confirmed_bg_gradient_start),
-                    ContextCompat.getColor(context, R.color.object_confirmed_bg_gradient_end),
-                    TileMode.MIRROR
-            )
-        }
+        scrimGradientStartColor = ContextCompat.getColor(context, R.color.object_confirmed_bg_gradient_start)
+        scrimGradientEndColor = ContextCompat.getColor(context, R.color.object_confirmed_bg_gradient_end)
 
         eraserPaint = Paint().apply {
             xfermode = PorterDuffXfermode(PorterDuff.Mode.CLEAR)
@@ -87,8 +95,13 @@ internal class ObjectGraphicInMultiMode(
         minBoxLen = resources.getDimensionPixelOffset(R.dimen.object_reticle_outer_ring_stroke_radius) * 2
     }
 
+    /** Moves the graphic onto the object with the given tracking id and bounding box.  */
+    fun update(trackingId: Int, boundingBox: Rect) {
+        this.boundingBox.update(trackingId, boundingBox)
+    }
+
     override fun draw(canvas: Canvas) {
-        var rect = overlay.translateRect(detectedObject.boundingBox)
+        boundingBox.translate(overlay, rect)
 
         val boxWidth = rect.width() * confirmationController.progress
         val boxHeight = rect.height() * confirmationController.progress
@@ -100,32 +113,37 @@ internal class ObjectGraphicInMultiMode(
 
         val cx = (rect.left + rect.right) / 2
         val cy = (rect.top + rect.bottom) / 2
-        rect = RectF(
-                cx - boxWidth / 2f,
-                cy - boxHeight / 2f,
-                cx + boxWidth / 2f,
-                cy + boxHeight / 2f
-        )
+        rect.set(cx - boxWidth / 2f, cy - boxHeight / 2f, cx + boxWidth / 2f, cy + boxHeight / 2f)
 
         if (confirmationController.isConfirmed) {
             // Draws the dark background scrim and leaves the detectedObject area clear.
+            updateScrimShader()
             canvas.drawRect(0f, 0f, canvas.width.toFloat(), canvas.height.toFloat(), scrimPaint)
             canvas.drawRoundRect(rect, boxCornerRadius.toFloat(), boxCornerRadius.toFloat(), eraserPaint)
-        }
-
-        boxPaint.shader = if (confirmationController.isConfirmed) {
-            null
+            boxPaint.shader = null
+            boxPaint.strokeWidth = boxConfirmedStrokeWidth.toFloat()
         } else {
-            LinearGradient(
-                    rect.left,
-                    rect.top,
-                    rect.left,
-                    rect.bottom,
-                    boxGradientStartColor,
-                    boxGradientEndColor,
-                    TileMode.MIRROR
-            )
+            boxGradientMatrix.setScale(1f, rect.height())
+            boxGradientMatrix.postTranslate(rect.left, rect.top)
+            boxGradient.setLocalMatrix(boxGradientMatrix)
+            boxPaint.shader = boxGradient
+            boxPaint.strokeWidth = boxStrokeWidth.toFloat()
         }
         canvas.drawRoundRect(rect, boxCornerRadius.toFloat(), boxCornerRadius.toFloat(), boxPaint)
     }
+
+    private fun updateScrimShader() {
+        if (scrimWidth == overlay.width && scrimHeight == overlay.height) return
+        scrimWidth = overlay.width
+        scrimHeight = overlay.height
+        scrimPaint.shader = LinearGradient(
+                0f,
+                0f,
+                scrimWidth.toFloat(),
+                scrimHeight.toFloat(),
+                scrimGradientStartColor,
+                scrimGradientEndColor,
+                TileMode.MIRROR
+        )
+    }
 }
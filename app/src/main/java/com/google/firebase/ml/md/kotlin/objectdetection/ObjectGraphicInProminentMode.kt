@@ -19,103 +19,124 @@ package com.google.firebase.ml.md.kotlin.objectdetection
 import android.graphics.Canvas
 import android.graphics.Color
 import android.graphics.LinearGradient
+import android.graphics.Matrix
 import android.graphics.Paint
 import android.graphics.Paint.Style
 import android.graphics.PorterDuff
 import android.graphics.PorterDuffXfermode
+import android.graphics.Rect
+import android.graphics.RectF
 import android.graphics.Shader.TileMode
-import androidx.annotation.ColorInt
 import androidx.core.content.ContextCompat
-import com.google.firebase.ml.vision.objects.FirebaseVisionObject
 import com.google.firebase.ml.md.kotlin.camera.GraphicOverlay
 import com.google.firebase.ml.md.kotlin.camera.GraphicOverlay.Graphic
 import com.google.firebase.ml.md.R
 
 /**
  * Draws the detected visionObject info over the camera preview for prominent visionObject detection mode.
+ * Kept and moved onto the detected object by [update] rather than recreated for every frame, so
+ * drawing it doesn't allocate.
  */
 internal class ObjectGraphicInProminentMode(
     overlay: GraphicOverlay,
-    private val visionObject: FirebaseVisionObject,
-    private val confirmationController: ObjectConfirmationController
+    private val confirmationController: ObjectConfirmationController,
+    tracker: ObjectMotionTracker
 ) : Graphic(overlay) {
 
     private val scrimPaint: Paint = Paint()
     private val eraserPaint: Paint
     private val boxPaint: Paint
-    @ColorInt
-    private val boxGradientStartColor: Int
-    @ColorInt
-    private val boxGradientEndColor: Int
+    // Spans a unit square and is stretched over the box by a local matrix.
+    private val boxGradient: LinearGradient
+    private val boxGradientMatrix = Matrix()
+    private val boxStrokeWidth: Int
+    private val boxConfirmedStrokeWidth: Int
     private val boxCornerRadius: Int
 
-    init {
-        // Sets up a gradient background color at vertical.
-        scrimPaint.shader = if (confirmationController.isConfirmed) {
-            LinearGradient(
-                    0f,
-                    0f,
-                    overlay.width.toFloat(),
-                    overlay.height.toFloat(),
-                    ContextCompat.getColor(context, R.color.object_confirmed_bg_gradient_start),
-                    ContextCompat.getColor(context, R.color.object_confirmed_bg_gradient_end),
-                    TileMode.CLAMP
-            )
-        } else {
-            LinearGradient(
-                    0f,
-                    0f,
-                    overlay.width.toFloat(),
-                    overlay.height.toFloat(),
-                    ContextCompat.getColor(context, R.color.object_detected_bg_gradient_start),
-                    ContextCompat.getColor(context, R.color.object_detected_bg_gradient_end),
-                    TileMode.CLAMP
-            )
-        }
+    private val boundingBox = TrackedBox(tracker)
+    private val rect = RectF()
+    // Gradient background colors at vertical, made for the current overlay size.
+    private var confirmedScrimGradient: LinearGradient? = null
+    private var detectedScrimGradient: LinearGradient? = null
+    private var scrimWidth = 0
+    private var scrimHeight = 0
 
+    init {
         eraserPaint = Paint().apply {
             xfermode = PorterDuffXfermode(PorterDuff.Mode.CLEAR)
         }
 
         boxPaint = Paint().apply {
             style = Style.STROKE
-            strokeWidth = context
-                    .resources
-                    .getDimensionPixelOffset(
-                            if (confirmationController.isConfirmed) {
-                                R.dimen.bounding_box_confirmed_stroke_width
-                            } else {
-                                R.dimen.bounding_box_stroke_width
-                            }
-                    ).toFloat()
             color = Color.WHITE
         }
+        boxStrokeWidth = context.resources.getDimensionPixelOffset(R.dimen.bounding_box_stroke_width)
+        boxConfirmedStrokeWidth =
+                context.resources.getDimensionPixelOffset(R.dimen.bounding_box_confirmed_stroke_width)
 
-        boxGradientStartColor = ContextCompat.getColor(context, R.color.bounding_box_gradient_start)
-        boxGradientEndColor = ContextCompat.getColor(context, R.color.bounding_box_gradient_end)
+        boxGradient = LinearGradient(
+                0f,
+                0f,
+                0f,
+                1f,
+                ContextCompat.getColor(context, R.color.bounding_box_gradient_start),
+                ContextCompat.getColor(context, R.color.bounding_box_gradient_end),
+                TileMode.CLAMP
+        )
         boxCornerRadius = context.resources.getDimensionPixelOffset(R.dimen.bounding_box_corner_radius)
     }
 
+    /** Moves the graphic onto the object with the given tracking id and bounding box.  */
+    fun update(trackingId: Int, boundingBox: Rect) {
+        this.boundingBox.update(trackingId, boundingBox)
+    }
+
     override fun draw(canvas: Canvas) {
-        val rect = overlay.translateRect(visionObject.boundingBox)
+        boundingBox.translate(overlay, rect)
 
         // Draws the dark background scrim and leaves the visionObject area clear.
+        updateScrimGradients()
+        scrimPaint.shader = if (confirmationController.isConfirmed) confirmedScrimGradient else detectedScrimGradient
         canvas.drawRect(0f, 0f, canvas.width.toFloat(), canvas.height.toFloat(), scrimPaint)
         canvas.drawRoundRect(rect, boxCornerRadius.toFloat(), boxCornerRadius.toFloat(), eraserPaint)
 
         // Draws the bounding box with a gradient border color at vertical.
-        boxPaint.shader = if (confirmationController.isConfirmed) {
-            null
+        if (confirmationController.isConfirmed) {
+            boxPaint.shader = null
+            boxPaint.strokeWidth = boxConfirmedStrokeWidth.toFloat()
         } else {
-            LinearGradient(
-                    rect.left,
-                    rect.top,
-                    rect.left,
-                    rect.bottom,
-                    boxGradientStartColor,
-                    boxGradientEndColor,
-                    TileMode.CLAMP)
+            boxGradientMatrix.setScale(1f, rect.height())
+            boxGradientMatrix.postTranslate(rect.left, rect.top)
+            boxGradient.setLocalMatrix(boxGradientMatrix)
+            boxPaint.shader = boxGradient
+            boxPaint.strokeWidth = boxStrokeWidth.toFloat()
         }
         canvas.drawRoundRect(rect, boxCornerRadius.toFloat(), boxCornerRadius.toFloat(), boxPaint)
     }
+
+    private fun updateScrimGradients() {
+        if (confirmedScrimGradient != null && scrimWidth == overlay.width && scrimHeight == overlay.height) {
+            return
+        }
+        scrimWidth = overlay.width
+        scrimHeight = overlay.height
+        confirmedScrimGradient = LinearGradient(
+                0f,
+                0f,
+                scrimWidth.toFloat(),
+                scrimHeight.toFloat(),
+                ContextCompat.getColor(context, R.color.object_confirmed_bg_gradient_start),
+                ContextCompat.getColor(context, R.color.object_confirmed_bg_gradient_end),
+                TileMode.CLAMP
+        )
+        detectedScrimGradient = LinearGradient(
+                0f,
+                0f,
+                scrimWidth.toFloat(),
+                scrimHeight.toFloat(),
+                ContextCompat.getColor(context, R.color.object_detected_bg_gradient_start),
+                ContextCompat.getColor(context, R.color.object_detected_bg_gradient_end),
+                TileMode.CLAMP
+        )
+    }
 }
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.kotlin.objectdetection
+
+import java.util.Locale
+import kotlin.math.sqrt
+
+/**
+ * Follows the detected objects from one detection to the next by their tracking ids, so their
+ * boxes can be drawn where the objects are by now rather than where they were in the frame last
+ * detected, and keep moving in between detections.
+ *
+ * Each object is modeled as moving at a constant velocity, corrected by every detection with an
+ * alpha-beta filter, a steady state Kalman filter for the position and velocity of the center of
+ * its box. The size of the box isn't modeled, it's taken from the latest detection.
+ *
+ * Every detection of an object is also compared to where it was predicted to be, which measures
+ * the tracking error, along with the error of showing the box of the previous detection in place as
+ * the overlay did before. Both grow with the time between detections, which is what detecting only
+ * some of the frames trades for a detector that's idle more often.
+ *
+ * The boxes are given by their edges in frame coordinates rather than as Android rects, so that
+ * the tracker can be benchmarked on the host. Only used on the main thread.
+ */
+internal class ObjectMotionTracker {
+
+    private var trackingIds = IntArray(8)
+    // The state of the tracked objects, at the same index as their tracking ids.
+    private var updateTimesNs = LongArray(8)
+    private var centerXs = FloatArray(8)
+    private var centerYs = FloatArray(8)
+    private var velocityXs = FloatArray(8)
+    private var velocityYs = FloatArray(8)
+    private var widths = FloatArray(8)
+    private var heights = FloatArray(8)
+    // Where the latest detections put the centers, which is what the overlay used to show.
+    private var detectedCenterXs = FloatArray(8)
+    private var detectedCenterYs = FloatArray(8)
+    private var size = 0
+
+    /** Number of detections of an object already tracked, compared to their prediction.  */
+    var errorSampleCount = 0L
+        private set
+    private var predictedErrorSum = 0.0
+    private var heldErrorSum = 0.0
+
+    /**
+     * Average distance in frame pixels from where the objects were predicted to be to where they
+     * were detected.
+     */
+    val meanPredictedErrorPx: Float
+        get() = if (errorSampleCount > 0) (predictedErrorSum / errorSampleCount).toFloat() else 0f
+
+    /**
+     * Average distance in frame pixels that the objects moved from one detection to the next, which
+     * is how far off a box held in place until the next detection ends up.
+     */
+    val meanHeldErrorPx: Float
+        get() = if (errorSampleCount > 0) (heldErrorSum / errorSampleCount).toFloat() else 0f
+
+    /**
+     * Corrects the model of the object with the given tracking id by its box detected in the frame
+     * the processor got at the given time, or starts tracking the object.
+     */
+    fun update(trackingId: Int, left: Float, top: Float, right: Float, bottom: Float, frameTimeNs: Long) {
+        val centerX = (left + right) / 2
+        val centerY = (top + bottom) / 2
+        var index = indexOf(trackingId)
+        if (index < 0) {
+            index = add(trackingId)
+            velocityXs[index] = 0f
+            velocityYs[index] = 0f
+            centerXs[index] = centerX
+            centerYs[index] = centerY
+        } else if (frameTimeNs > updateTimesNs[index]) {
+            val elapsedNs = frameTimeNs - updateTimesNs[index]
+            val predictedX = predictCenterX(index, frameTimeNs)
+            val predictedY = predictCenterY(index, frameTimeNs)
+            val residualX = centerX - predictedX
+            val residualY = centerY - predictedY
+            recordError(residualX, residualY, centerX - detectedCenterXs[index], centerY - detectedCenterYs[index])
+            if (elapsedNs > MAX_EXTRAPOLATION_NS) {
+                // Lost for too long for the velocity to still hold, tracks it anew from here.
+                velocityXs[index] = 0f
+                velocityYs[index] = 0f
+                centerXs[index] = centerX
+                centerYs[index] = centerY
+            } else {
+                val elapsedS = elapsedNs / NS_PER_S
+                centerXs[index] = predictedX + POSITION_GAIN * residualX
+                centerYs[index] = predictedY + POSITION_GAIN * residualY
+                velocityXs[index] += VELOCITY_GAIN * residualX / elapsedS
+                velocityYs[index] += VELOCITY_GAIN * residualY / elapsedS
+            }
+        }
+        updateTimesNs[index] = frameTimeNs
+        detectedCenterXs[index] = centerX
+        detectedCenterYs[index] = centerY
+        widths[index] = right - left
+        heights[index] = bottom - top
+    }
+
+    /**
+     * Writes the left, top, right and bottom edges of the box the object with the given tracking id
+     * is predicted to have at the given time into [outEdges], and returns whether the object is
+     * tracked at all.
+     */
+    fun predict(trackingId: Int, timeNs: Long, outEdges: FloatArray): Boolean {
+        val index = indexOf(trackingId)
+        if (index < 0) return false
+        val centerX = predictCenterX(index, timeNs)
+        val centerY = predictCenterY(index, timeNs)
+        outEdges[0] = centerX - widths[index] / 2
+        outEdges[1] = centerY - heights[index] / 2
+        outEdges[2] = centerX + widths[index] / 2
+        outEdges[3] = centerY + heights[index] / 2
+        return true
+    }
+
+    /** Returns whether any of the predicted boxes still moves at the given time.  */
+    fun isExtrapolating(timeNs: Long): Boolean {
+        for (i in 0 until size) {
+            if (timeNs - updateTimesNs[i] < MAX_EXTRAPOLATION_NS && (velocityXs[i] != 0f || velocityYs[i] != 0f)) {
+                return true
+            }
+        }
+        return false
+    }
+
+    /** Stops tracking the objects whose tracking ids aren't in the given set.  */
+    fun retainOnly(trackedIds: TrackingIdSet) {
+        // Walks backwards, so moving the last object into the place of a removed one doesn't skip it.
+        for (i in size - 1 downTo 0) {
+            if (trackingIds[i] !in trackedIds) {
+                remove(i)
+            }
+        }
+    }
+
+    fun clear() {
+        size = 0
+    }
+
+    override fun toString(): String = String.format(
+            Locale.US,
+            "detections=%d, predictedErrorPx=%.1f, heldErrorPx=%.1f",
+            errorSampleCount, meanPredictedErrorPx, meanHeldErrorPx
+    )
+
+    private fun predictCenterX(index: Int, timeNs: Long) =
+            centerXs[index] + velocityXs[index] * getExtrapolationS(index, timeNs)
+
+    private fun predictCenterY(index: Int, timeNs: Long) =
+            centerYs[index] + velocityYs[index] * getExtrapolationS(index, timeNs)
+
+    private fun getExtrapolationS(index: Int, timeNs: Long): Float =
+            (timeNs - updateTimesNs[index]).coerceIn(0, MAX_EXTRAPOLATION_NS) / NS_PER_S
+
+    private fun recordError(predictedDx: Float, predictedDy: Float, heldDx: Float, heldDy: Float) {
+        errorSampleCount++
+        predictedErrorSum += sqrt(predictedDx * predictedDx + predictedDy * predictedDy)
+        heldErrorSum += sqrt(heldDx * heldDx + heldDy * heldDy)
+    }
+
+    /** Scans the ids, which beats hashing for the handful of objects a frame has.  */
+    private fun indexOf(trackingId: Int): Int {
+        for (i in 0 until size) {
+            if (trackingIds[i] == trackingId) return i
+        }
+        return -1
+    }
+
+    private fun add(trackingId: Int): Int {
+        if (size == trackingIds.size) {
+            val capacity = size * 2
+            trackingIds = trackingIds.copyOf(capacity)
+            updateTimesNs = updateTimesNs.copyOf(capacity)
+            centerXs = centerXs.copyOf(capacity)
+            centerYs = centerYs.copyOf(capacity)
+            velocityXs = velocityXs.copyOf(capacity)
+            velocityYs = velocityYs.copyOf(capacity)
+            widths = widths.copyOf(capacity)
+            heights = heights.copyOf(capacity)
+            detectedCenterXs = detectedCenterXs.copyOf(capacity)
+            detectedCenterYs = detectedCenterYs.copyOf(capacity)
+        }
+        trackingIds[size] = trackingId
+        return size++
+    }
+
+    private fun remove(index: Int) {
+        val last = --size
+        trackingIds[index] = trackingIds[last]
+        updateTimesNs[index] = updateTimesNs[last]
+        centerXs[index] = centerXs[last]
+        centerYs[index] = centerYs[last]
+        velocityXs[index] = velocityXs[last]
+        velocityYs[index] = velocityYs[last]
+        widths[index] = widths[last]
+        heights[index] = heights[last]
+        detectedCenterXs[index] = detectedCenterXs[last]
+        detectedCenterYs[index] = detectedCenterYs[last]
+    }
+
+    companion object {
+        /**
+         * The boxes stop moving this long after the latest detection of their object, so that an object
+         * the detector loses track of doesn't drift off.
+         */
+        private const val MAX_EXTRAPOLATION_NS = 500_000_000L
+
+        // Critically damped gains, the velocity gain is the square of the position one over 2 minus it.
+        private const val POSITION_GAIN = 0.6f
+        private const val VELOCITY_GAIN = 0.26f
+
+        private const val NS_PER_S = 1e9f
+    }
+}
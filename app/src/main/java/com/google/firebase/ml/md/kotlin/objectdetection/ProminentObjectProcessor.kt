@@ -16,143 +16,266 @@
 
 package com.google.firebase.ml.md.kotlin.objectdetection
 
+import android.graphics.Rect
 import android.graphics.RectF
 import android.util.Log
+import androidx.annotation.GuardedBy
 import androidx.annotation.MainThread
+import androidx.annotation.VisibleForTesting
+import androidx.annotation.WorkerThread
 import com.google.android.gms.tasks.Task
-import com.google.firebase.ml.vision.FirebaseVision
 import com.google.firebase.ml.vision.common.FirebaseVisionImage
 import com.google.firebase.ml.vision.objects.FirebaseVisionObject
-import com.google.firebase.ml.vision.objects.FirebaseVisionObjectDetector
 import com.google.firebase.ml.vision.objects.FirebaseVisionObjectDetectorOptions
 import com.google.firebase.ml.md.kotlin.camera.CameraReticleAnimator
+import com.google.firebase.ml.md.kotlin.camera.DetectorPool
+import com.google.firebase.ml.md.kotlin.camera.CameraSource
 import com.google.firebase.ml.md.kotlin.camera.GraphicOverlay
 import com.google.firebase.ml.md.R
 import com.google.firebase.ml.md.kotlin.camera.WorkflowModel
 import com.google.firebase.ml.md.kotlin.camera.WorkflowModel.WorkflowState
 import com.google.firebase.ml.md.kotlin.camera.FrameProcessorBase
 import com.google.firebase.ml.md.kotlin.settings.PreferenceUtils
-import java.io.IOException
+import java.util.ArrayDeque
 import java.util.ArrayList
 
 /** A processor to run object detector in prominent object only mode.  */
-class ProminentObjectProcessor(graphicOverlay: GraphicOverlay, private val workflowModel: WorkflowModel) :
-    FrameProcessorBase<List<FirebaseVisionObject>>() {
+class ProminentObjectProcessor(
+    graphicOverlay: GraphicOverlay,
+    private val workflowModel: WorkflowModel,
+    private val cameraSource: CameraSource
+) : FrameProcessorBase<List<FirebaseVisionObject>>(
+    graphicOverlay.context,
+    PreferenceUtils.getObjectFramesPerDetection(graphicOverlay.context)
+) {
 
-    private val detector: FirebaseVisionObjectDetector
+    private val classificationEnabled = PreferenceUtils.isClassificationEnabled(graphicOverlay.context)
+    private val detector = DetectorPool.acquireObjectDetector(
+            graphicOverlay.context,
+            FirebaseVisionObjectDetectorOptions.STREAM_MODE,
+            /* multipleObjects= */ false,
+            classificationEnabled
+    )
     private val confirmationController: ObjectConfirmationController = ObjectConfirmationController(graphicOverlay)
     private val cameraReticleAnimator: CameraReticleAnimator = CameraReticleAnimator(graphicOverlay)
     private val reticleOuterRingRadius: Int = graphicOverlay
             .resources
             .getDimensionPixelOffset(R.dimen.object_reticle_outer_ring_stroke_radius)
+    // The layer of the overlay this processor draws on, next to those of any other processors.
+    private val layer = graphicOverlay.addLayer()
+    // Only used on the main thread.
+    private val graphics = ArrayList<GraphicOverlay.Graphic>()
+    private val trackedIds = TrackingIdSet()
+    // The object as handed to the workflow, wrapped once for as long as it stays confirmed.
+    private var confirmedObject: DetectedObject? = null
+    private val tracker = ObjectMotionTracker()
 
-    init {
+    // The graphics are kept and updated in place for every frame rather than recreated, and so are
+    // the lists and rects used to lay them out, so rendering the live view doesn't allocate.
+    private val objectGraphic = ObjectGraphicInProminentMode(graphicOverlay, confirmationController, tracker)
+    private val confirmationGraphic = ObjectConfirmationGraphic(graphicOverlay, confirmationController)
+    private val reticleGraphic = ObjectReticleGraphic(graphicOverlay, cameraReticleAnimator)
+    private val qualifiedObjects = ArrayList<FirebaseVisionObject>()
+    private val objectBox = RectF()
+    // The publishers that ran, kept along with their boxes for the results of the next frames.
+    @GuardedBy("idlePublishers")
+    private val idlePublishers = ArrayDeque<ResultsPublisher>()
 
-        val optionsBuilder = FirebaseVisionObjectDetectorOptions.Builder()
-                .setDetectorMode(FirebaseVisionObjectDetectorOptions.STREAM_MODE)
-        if (PreferenceUtils.isClassificationEnabled(graphicOverlay.context)) {
-            optionsBuilder.enableClassification()
+    /** Publishes the results of a frame on the main thread, and is recycled once it did.  */
+    private inner class ResultsPublisher : Runnable {
+        // The box of the prominent object, if there's one.
+        val boxes = ObjectBoxes()
+        // Only kept to be wrapped for the workflow once it's confirmed.
+        var visionObject: FirebaseVisionObject? = null
+        var overlapsReticle = false
+        var frameTimeNs = 0L
+        var graphicOverlay: GraphicOverlay? = null
+
+        @MainThread
+        override fun run() {
+            if (publishResults(boxes, overlapsReticle, frameTimeNs, graphicOverlay!!)) {
+                confirmObject(visionObject!!)
+            }
+            visionObject = null
+            graphicOverlay = null
+            synchronized(idlePublishers) {
+                idlePublishers.add(this)
+            }
         }
-        this.detector = FirebaseVision.getInstance().getOnDeviceObjectDetector(optionsBuilder.build())
     }
 
     override fun stop() {
-        try {
-            detector.close()
-        } catch (e: IOException) {
-            Log.e(TAG, "Failed to close object detector!", e)
-        }
+        super.stop()
+        Log.i(TAG, "Tracking error: $tracker")
+        detector.release()
+        layer.remove()
     }
 
     override fun detectInImage(image: FirebaseVisionImage): Task<List<FirebaseVisionObject>> {
-        return detector.processImage(image)
+        return detector.get().processImage(image)
     }
 
-    @MainThread
-    override fun onSuccess(
+    @WorkerThread
+    override fun onResults(
         image: FirebaseVisionImage,
         results: List<FirebaseVisionObject>,
+        detectionRegion: Rect?,
+        frameTimeNs: Long,
         graphicOverlay: GraphicOverlay
-    ) {
+    ): Runnable? {
         var objects = results
         if (!workflowModel.isCameraLive) {
-            return
+            return null
         }
 
-        if (PreferenceUtils.isClassificationEnabled(graphicOverlay.context)) {
-            val qualifiedObjects = ArrayList<FirebaseVisionObject>()
-            qualifiedObjects.addAll(objects
-                    .filter { it.classificationCategory != FirebaseVisionObject.CATEGORY_UNKNOWN }
-            )
+        if (classificationEnabled) {
+            qualifiedObjects.clear()
+            for (i in objects.indices) {
+                val result = objects[i]
+                if (result.classificationCategory != FirebaseVisionObject.CATEGORY_UNKNOWN) {
+                    qualifiedObjects.add(result)
+                }
+            }
             objects = qualifiedObjects
         }
 
-        if (objects.isEmpty()) {
+        val visionObject = objects.firstOrNull()
+        val overlapsReticle = visionObject != null && objectBoxOverlapsConfirmationReticle(graphicOverlay, visionObject)
+
+        // Focuses and meters on the tracked object, so it stays sharp and well exposed for the search
+        // whatever is around it, and goes back to the whole frame once the object is gone.
+        cameraSource.setFocusRegion(visionObject?.boundingBox)
+
+        val publisher = synchronized(idlePublishers) { idlePublishers.poll() } ?: ResultsPublisher()
+        publisher.boxes.clear()
+        visionObject?.let { publisher.boxes.add(it.trackingId ?: UNTRACKED_ID, it.boundingBox) }
+        publisher.visionObject = visionObject
+        publisher.overlapsReticle = overlapsReticle
+        publisher.frameTimeNs = frameTimeNs
+        publisher.graphicOverlay = graphicOverlay
+        return publisher
+    }
+
+    /**
+     * Publishes the box of the object detected in a frame, which the tests drive the processor through, as only the
+     * detector makes ML Kit objects.
+     *
+     * @param boxes the box of the prominent object, or none.
+     * @return whether the object is confirmed, for the caller to hand it to the workflow.
+     */
+    @VisibleForTesting
+    @MainThread
+    internal fun publishResults(
+        boxes: ObjectBoxes,
+        overlapsReticle: Boolean,
+        frameTimeNs: Long,
+        graphicOverlay: GraphicOverlay
+    ): Boolean {
+        if (!workflowModel.isCameraLive) {
+            return false
+        }
+
+        updateTracker(boxes, frameTimeNs)
+
+        val hasObject = !boxes.isEmpty
+        var isConfirmed = false
+        if (!hasObject) {
             confirmationController.reset()
-            workflowModel.setWorkflowState(WorkflowState.DETECTING)
-        } else {
-            val objectIndex = 0
-            val visionObject = objects[objectIndex]
-            if (objectBoxOverlapsConfirmationReticle(graphicOverlay, visionObject)) {
-                // User is confirming the object selection.
-                confirmationController.confirming(visionObject.trackingId)
-                workflowModel.confirmingObject(
-                        DetectedObject(visionObject, objectIndex, image), confirmationController.progress
-                )
-            } else {
-                // Object detected but user doesn't want to pick this one.
-                confirmationController.reset()
-                workflowModel.setWorkflowState(WorkflowState.DETECTED)
+            workflowModel.proposeWorkflowState(this, WorkflowState.DETECTING)
+        } else if (overlapsReticle) {
+            // User is confirming the object selection.
+            confirmationController.confirming(boxes.getTrackingId(0))
+            isConfirmed = confirmationController.isConfirmed
+            if (!isConfirmed) {
+                // The workflow only keeps the object once it's confirmed, so it isn't wrapped before.
+                workflowModel.proposeWorkflowState(this, WorkflowState.CONFIRMING)
             }
+        } else {
+            // Object detected but user doesn't want to pick this one.
+            confirmationController.reset()
+            workflowModel.proposeWorkflowState(this, WorkflowState.DETECTED)
+        }
+        if (!isConfirmed) {
+            // The confirmation starts over, and so does the object handed to the workflow.
+            confirmedObject = null
         }
 
-        graphicOverlay.clear()
-        if (objects.isEmpty()) {
-            graphicOverlay.add(ObjectReticleGraphic(graphicOverlay, cameraReticleAnimator))
+        graphics.clear()
+        if (!hasObject) {
+            graphics.add(reticleGraphic)
             cameraReticleAnimator.start()
         } else {
-            if (objectBoxOverlapsConfirmationReticle(graphicOverlay, objects[0])) {
+            objectGraphic.update(boxes.getTrackingId(0), boxes.getBox(0))
+            graphics.add(objectGraphic)
+            if (overlapsReticle) {
                 // User is confirming the object selection.
                 cameraReticleAnimator.cancel()
-                graphicOverlay.add(
-                        ObjectGraphicInProminentMode(
-                                graphicOverlay, objects[0], confirmationController
-                        )
-                )
                 if (!confirmationController.isConfirmed &&
                     PreferenceUtils.isAutoSearchEnabled(graphicOverlay.context)) {
                     // Shows a loading indicator to visualize the confirming progress if in auto search mode.
-                    graphicOverlay.add(ObjectConfirmationGraphic(graphicOverlay, confirmationController))
+                    graphics.add(confirmationGraphic)
                 }
             } else {
                 // Object is detected but the confirmation reticle is moved off the object box, which
                 // indicates user is not trying to pick this object.
-                graphicOverlay.add(
-                        ObjectGraphicInProminentMode(
-                                graphicOverlay, objects[0], confirmationController
-                        )
-                )
-                graphicOverlay.add(ObjectReticleGraphic(graphicOverlay, cameraReticleAnimator))
+                graphics.add(reticleGraphic)
                 cameraReticleAnimator.start()
             }
         }
-        graphicOverlay.invalidate()
+        layer.setGraphics(graphics)
+        return isConfirmed
+    }
+
+    /**
+     * Hands the confirmed object to the workflow. The object and its crop are made at the first frame it's confirmed
+     * in, and handed again as they are for the frames it stays confirmed in.
+     */
+    @MainThread
+    private fun confirmObject(visionObject: FirebaseVisionObject) {
+        val detectedObject = confirmedObject ?: run {
+            // The frame is recycled once published, so a box too small to crop can't be searched for.
+            val crop = cropPublishedFrame(visionObject.boundingBox, JpegPayload.MAX_IMAGE_WIDTH) ?: return
+            DetectedObject(visionObject, /* objectIndex= */ 0, crop).also { confirmedObject = it }
+        }
+        workflowModel.confirmingObject(this, detectedObject, confirmationController.progress)
+    }
+
+    /**
+     * Corrects the tracker by the object detected in the frame the processor got at the given time,
+     * and stops tracking any other.
+     */
+    private fun updateTracker(boxes: ObjectBoxes, frameTimeNs: Long) {
+        trackedIds.clear()
+        val trackingId = if (boxes.isEmpty) UNTRACKED_ID else boxes.getTrackingId(0)
+        if (trackingId != UNTRACKED_ID) trackedIds.add(trackingId)
+        tracker.retainOnly(trackedIds)
+        if (trackingId != UNTRACKED_ID) {
+            val box = boxes.getBox(0)
+            tracker.update(
+                    trackingId,
+                    box.left.toFloat(),
+                    box.top.toFloat(),
+                    box.right.toFloat(),
+                    box.bottom.toFloat(),
+                    frameTimeNs
+            )
+        }
     }
 
     private fun objectBoxOverlapsConfirmationReticle(
         graphicOverlay: GraphicOverlay,
         visionObject: FirebaseVisionObject
     ): Boolean {
-        val boxRect = graphicOverlay.translateRect(visionObject.boundingBox)
-        val reticleCenterX = graphicOverlay.width / 2f
-        val reticleCenterY = graphicOverlay.height / 2f
-        val reticleRect = RectF(
-                reticleCenterX - reticleOuterRingRadius,
-                reticleCenterY - reticleOuterRingRadius,
-                reticleCenterX + reticleOuterRingRadius,
-                reticleCenterY + reticleOuterRingRadius
+        val boxRect = graphicOverlay.translateRect(visionObject.boundingBox, objectBox)
+        return ReticleHitTest.overlapsReticle(
+            boxRect.left,
+            boxRect.top,
+            boxRect.right,
+            boxRect.bottom,
+            graphicOverlay.width / 2f,
+            graphicOverlay.height / 2f,
+            reticleOuterRingRadius.toFloat()
         )
-        return reticleRect.intersect(boxRect)
     }
 
     override fun onFailure(e: Exception) {
@@ -161,5 +284,8 @@ class ProminentObjectProcessor(graphicOverlay: GraphicOverlay, private val workf
 
     companion object {
         private const val TAG = "ProminentObjProcessor"
+
+        // Stands in for the id of objects the detector didn't assign one to.
+        private const val UNTRACKED_ID = -1
     }
 }
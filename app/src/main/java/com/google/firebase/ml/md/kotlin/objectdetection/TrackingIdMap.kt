@@ -0,0 +1,189 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.kotlin.objectdetection
+
+/**
+ * State kept for each tracked object, keyed by the tracking id the detector gave the object. The
+ * ids are kept unboxed in an open addressing table, so lookups and updates allocate nothing, only
+ * growing past the largest number of objects seen so far does.
+ *
+ * Every entry remembers the generation it was last seen in. Callers that refresh the state once
+ * per frame start a new generation with [nextGeneration], mark the objects of the frame with
+ * [markSeen], and then drop the objects lost for more than a few generations with [expire].
+ *
+ * Not thread-safe, each instance is meant to be used on a single thread.
+ */
+class TrackingIdMap<V : Any> {
+
+    // A slot is free when its value is null, the table is at most half full so probes stay short.
+    private var keys = IntArray(INITIAL_CAPACITY)
+    private var values = arrayOfNulls<Any>(INITIAL_CAPACITY)
+    private var seenGenerations = IntArray(INITIAL_CAPACITY)
+    private var generation = 0
+
+    var size = 0
+        private set
+
+    /** Returns the state of the given object, or null if there's none.  */
+    operator fun get(trackingId: Int): V? {
+        val slot = findSlot(trackingId)
+        return if (slot >= 0) valueAt(slot) else null
+    }
+
+    /** Sets the state of the given object, which is seen in the current generation.  */
+    operator fun set(trackingId: Int, value: V) {
+        var slot = findSlot(trackingId)
+        if (slot < 0) {
+            if (size + 1 > keys.size / 2) {
+                resize(keys.size * 2)
+            }
+            slot = insertionSlot(trackingId)
+            keys[slot] = trackingId
+            size++
+        }
+        values[slot] = value
+        seenGenerations[slot] = generation
+    }
+
+    /**
+     * Marks the given object as seen in the current generation, and returns whether there's any
+     * state for it.
+     */
+    fun markSeen(trackingId: Int): Boolean {
+        val slot = findSlot(trackingId)
+        if (slot < 0) {
+            return false
+        }
+        seenGenerations[slot] = generation
+        return true
+    }
+
+    /** Removes the state of the given object, and returns it, or null if there was none.  */
+    fun remove(trackingId: Int): V? {
+        val slot = findSlot(trackingId)
+        if (slot < 0) {
+            return null
+        }
+        val value = valueAt(slot)
+        removeAt(slot)
+        return value
+    }
+
+    fun clear() {
+        values.fill(null)
+        size = 0
+    }
+
+    /** Starts a new generation, the objects seen from now on are seen in it.  */
+    fun nextGeneration() {
+        generation++
+    }
+
+    /**
+     * Removes the objects that weren't seen in the current generation nor in the given number of
+     * generations before it, and tells the listener about each of them.
+     */
+    fun expire(maxUnseenGenerations: Int, listener: (trackingId: Int, value: V) -> Unit) {
+        var slot = 0
+        while (slot < values.size) {
+            // Compares the difference rather than the generations, which is safe from overflow.
+            if (values[slot] != null && generation - seenGenerations[slot] > maxUnseenGenerations) {
+                val trackingId = keys[slot]
+                val value = valueAt(slot)
+                removeAt(slot)
+                listener(trackingId, value)
+                // Another entry may have been shifted into the slot, so it's looked at again.
+            } else {
+                slot++
+            }
+        }
+    }
+
+    private fun findSlot(trackingId: Int): Int {
+        val mask = keys.size - 1
+        var slot = hash(trackingId) and mask
+        while (values[slot] != null) {
+            if (keys[slot] == trackingId) {
+                return slot
+            }
+            slot = (slot + 1) and mask
+        }
+        return -1
+    }
+
+    private fun insertionSlot(trackingId: Int): Int {
+        val mask = keys.size - 1
+        var slot = hash(trackingId) and mask
+        while (values[slot] != null) {
+            slot = (slot + 1) and mask
+        }
+        return slot
+    }
+
+    /**
+     * Frees the given slot, and shifts back the entries after it that would no longer be found past
+     * the free slot, rather than leaving a tombstone behind.
+     */
+    private fun removeAt(slot: Int) {
+        val mask = keys.size - 1
+        var free = slot
+        var next = (free + 1) and mask
+        while (values[next] != null) {
+            val home = hash(keys[next]) and mask
+            // Moves the entry unless its home slot lies cyclically after the free slot, up to itself.
+            if (((next - home) and mask) >= ((next - free) and mask)) {
+                keys[free] = keys[next]
+                values[free] = values[next]
+                seenGenerations[free] = seenGenerations[next]
+                free = next
+            }
+            next = (next + 1) and mask
+        }
+        values[free] = null
+        size--
+    }
+
+    private fun resize(capacity: Int) {
+        val oldKeys = keys
+        val oldValues = values
+        val oldSeenGenerations = seenGenerations
+        keys = IntArray(capacity)
+        values = arrayOfNulls(capacity)
+        seenGenerations = IntArray(capacity)
+        for (i in oldValues.indices) {
+            if (oldValues[i] != null) {
+                val slot = insertionSlot(oldKeys[i])
+                keys[slot] = oldKeys[i]
+                values[slot] = oldValues[i]
+                seenGenerations[slot] = oldSeenGenerations[i]
+            }
+        }
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    private fun valueAt(slot: Int): V = values[slot] as V
+
+    companion object {
+        private const val INITIAL_CAPACITY = 16
+
+        /** Spreads the consecutive ids the detector hands out over the table.  */
+        private fun hash(trackingId: Int): Int {
+            val hash = trackingId * -0x61c88647
+            return hash xor (hash ushr 16)
+        }
+    }
+}
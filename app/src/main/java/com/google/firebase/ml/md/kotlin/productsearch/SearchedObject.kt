@@ -35,9 +35,9 @@ class SearchedObject(resources: Resources, private val detectedObject: DetectedO
     val boundingBox: Rect
         get() = detectedObject.boundingBox
 
+    /** Returns the thumbnail of the object, or null if the object has no bitmap.  */
     @Synchronized
-    fun getObjectThumbnail(): Bitmap = objectThumbnail ?: let {
-        Utils.getCornerRoundedBitmap(detectedObject.getBitmap(), objectThumbnailCornerRadius)
-                .also { objectThumbnail = it }
+    fun getObjectThumbnail(): Bitmap? = objectThumbnail ?: detectedObject.getBitmap()?.let { objectBitmap ->
+        Utils.getCornerRoundedBitmap(objectBitmap, objectThumbnailCornerRadius).also { objectThumbnail = it }
     }
 }
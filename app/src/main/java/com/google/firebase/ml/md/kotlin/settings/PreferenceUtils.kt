@@ -38,6 +38,35 @@ object PreferenceUtils {
     fun isClassificationEnabled(context: Context): Boolean =
         getBooleanPref(context, R.string.pref_key_object_detector_enable_classification, false)
 
+    fun isBarcodeScanningWithObjectsEnabled(context: Context): Boolean =
+        getBooleanPref(context, R.string.pref_key_object_detector_scan_barcodes, false)
+
+    fun getObjectFramesPerDetection(context: Context): Int =
+        getIntPref(context, R.string.pref_key_object_frames_per_detection, 1)
+
+    fun isDirectFrameBufferEnabled(context: Context): Boolean =
+        getBooleanPref(context, R.string.pref_key_use_direct_frame_buffers, false)
+
+    fun getMaxDetectionsInFlight(context: Context): Int =
+        getIntPref(context, R.string.pref_key_max_detections_in_flight, 1)
+
+    fun isSceneChangeGatingEnabled(context: Context): Boolean =
+        getBooleanPref(context, R.string.pref_key_skip_unchanged_frames, false)
+
+    fun isPreviewSizeCalibrationEnabled(context: Context): Boolean =
+        getBooleanPref(context, R.string.pref_key_calibrate_preview_size, false)
+
+    fun isPerformanceHudEnabled(context: Context): Boolean =
+        getBooleanPref(context, R.string.pref_key_show_performance_hud, false)
+
+    /** Returns the camera backend to use, one of the values of the camera backend setting.  */
+    fun getCameraBackend(context: Context): String {
+        val sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context)
+        val prefKey = context.getString(R.string.pref_key_camera_backend)
+        return sharedPreferences.getString(prefKey, null)
+                ?: context.getString(R.string.pref_entry_value_camera_backend_legacy)
+    }
+
     fun saveStringPreference(context: Context, @StringRes prefKeyId: Int, value: String?) {
         PreferenceManager.getDefaultSharedPreferences(context)
                 .edit()
@@ -77,6 +106,9 @@ object PreferenceUtils {
         return RectF(cx - boxWidth / 2, cy - boxHeight / 2, cx + boxWidth / 2, cy + boxHeight / 2)
     }
 
+    fun isBarcodeDetectionRegionEnabled(context: Context): Boolean =
+        getBooleanPref(context, R.string.pref_key_limit_barcode_detection_to_reticle, true)
+
     fun shouldDelayLoadingBarcodeResult(context: Context): Boolean =
         getBooleanPref(context, R.string.pref_key_delay_loading_barcode_result, true)
 
@@ -16,13 +16,15 @@
 
 package com.google.firebase.ml.md.kotlin.settings
 
-import android.hardware.Camera
 import android.os.Bundle
 import androidx.preference.ListPreference
 import androidx.preference.PreferenceFragmentCompat
-import com.google.firebase.ml.md.kotlin.camera.CameraSource
+import com.google.android.gms.tasks.OnFailureListener
+import com.google.android.gms.tasks.OnSuccessListener
 import com.google.firebase.ml.md.R
-import com.google.firebase.ml.md.kotlin.Utils
+import com.google.firebase.ml.md.kotlin.camera.CameraCapabilities
+import com.google.firebase.ml.md.kotlin.camera.CameraCapabilityStore
+import com.google.firebase.ml.md.kotlin.camera.CameraSizePair
 import java.util.HashMap
 
 /** Configures App settings.  */
@@ -35,40 +37,49 @@ class SettingsFragment : PreferenceFragmentCompat() {
 
     private fun setUpRearCameraPreviewSizePreference() {
         val previewSizePreference =
-                findPreference<ListPreference>(getString(R.string.pref_key_rear_camera_preview_size))!!
+                findPreference<ListPreference>(getString(R.string.pref_key_rear_camera_preview_size)) ?: return
 
-        var camera: Camera? = null
+        // The sizes come from the capability store, which only opens the camera, in the background, the
+        // first time around.
+        previewSizePreference.isEnabled = false
+        CameraCapabilityStore.load(requireContext())
+                .addOnSuccessListener(requireActivity(), OnSuccessListener<CameraCapabilities> { capabilities ->
+                    populatePreviewSizePreference(previewSizePreference, capabilities.previewSizePairs)
+                    previewSizePreference.isEnabled = true
+                })
+                .addOnFailureListener(requireActivity(), OnFailureListener {
+                    // If there's no back camera, hide the corresponding preference.
+                    previewSizePreference.parent?.removePreference(previewSizePreference)
+                })
+    }
 
-        try {
-            camera = Camera.open(CameraSource.CAMERA_FACING_BACK)
-            val previewSizeList = Utils.generateValidPreviewSizeList(camera!!)
-            val previewSizeStringValues = arrayOfNulls<String>(previewSizeList.size)
-            val previewToPictureSizeStringMap = HashMap<String, String>()
-            for (i in previewSizeList.indices) {
-                val sizePair = previewSizeList[i]
-                previewSizeStringValues[i] = sizePair.preview.toString()
-                if (sizePair.picture != null) {
-                    previewToPictureSizeStringMap[sizePair.preview.toString()] = sizePair.picture.toString()
-                }
-            }
-            previewSizePreference.entries = previewSizeStringValues
-            previewSizePreference.entryValues = previewSizeStringValues
-            previewSizePreference.summary = previewSizePreference.entry
-            previewSizePreference.setOnPreferenceChangeListener { _, newValue ->
-                val newPreviewSizeStringValue = newValue as String
-                val context = activity ?: return@setOnPreferenceChangeListener false
-                previewSizePreference.summary = newPreviewSizeStringValue
-                PreferenceUtils.saveStringPreference(
-                        context,
-                        R.string.pref_key_rear_camera_picture_size,
-                        previewToPictureSizeStringMap[newPreviewSizeStringValue])
-                true
+    private fun populatePreviewSizePreference(
+        previewSizePreference: ListPreference,
+        previewSizeList: List<CameraSizePair>
+    ) {
+        val previewSizeStringValues = arrayOfNulls<String>(previewSizeList.size)
+        val previewToPictureSizeStringMap = HashMap<String, String>()
+        for (i in previewSizeList.indices) {
+            val sizePair = previewSizeList[i]
+            previewSizeStringValues[i] = sizePair.preview.toString()
+            if (sizePair.picture != null) {
+                previewToPictureSizeStringMap[sizePair.preview.toString()] = sizePair.picture.toString()
             }
-        } catch (e: Exception) {
-            // If there's no camera for the given camera id, hide the corresponding preference.
-            previewSizePreference.parent?.removePreference(previewSizePreference)
-        } finally {
-            camera?.release()
+        }
+        previewSizePreference.entries = previewSizeStringValues
+        previewSizePreference.entryValues = previewSizeStringValues
+        // The size the camera picks on its own isn't stored in the preference.
+        previewSizePreference.summary =
+                previewSizePreference.entry ?: getString(R.string.pref_summary_rear_camera_preview_size_automatic)
+        previewSizePreference.setOnPreferenceChangeListener { _, newValue ->
+            val newPreviewSizeStringValue = newValue as String
+            val context = activity ?: return@setOnPreferenceChangeListener false
+            previewSizePreference.summary = newPreviewSizeStringValue
+            PreferenceUtils.saveStringPreference(
+                    context,
+                    R.string.pref_key_rear_camera_picture_size,
+                    previewToPictureSizeStringMap[newPreviewSizeStringValue])
+            true
         }
     }
 }
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.java.camera;
+
+import android.graphics.Rect;
+import androidx.annotation.MainThread;
+import androidx.annotation.Nullable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Runs the detection pipeline of the app from end to end without a camera or ML Kit, so that
+ * changes to it, like to the scheduling of {@link FrameProcessorBase}, can be compared by numbers.
+ *
+ * <p>Frames of a {@link SyntheticCameraBackend} go through the processing loop of a {@link
+ * CameraSource} into a {@link StandInFrameProcessor}, whose detections take the latencies of the
+ * given distribution, and the results get drawn on the given overlay. Nothing of it needs a camera,
+ * a display or the detector models, so it runs on the JVM under Robolectric, as long as the main
+ * looper is left to run. See {@link PipelineHarnessTest}.
+ *
+ * <p>The pipeline metrics are shared by the whole app, so nothing else should run the pipeline
+ * while the harness does.
+ */
+public final class PipelineHarness {
+
+  /** A box in the middle of the synthetic frames, which is what every stand-in detection finds. */
+  private static final List<Rect> STAND_IN_RESULTS =
+      Collections.singletonList(new Rect(240, 160, 400, 320));
+
+  private final CameraSource cameraSource;
+  private final StandInFrameProcessor processor;
+  private final PipelineMetrics metrics = PipelineMetrics.getInstance();
+
+  @Nullable private PipelineMetrics.Snapshot startSnapshot;
+  private long startTimeNs;
+
+  /**
+   * @param failureRate the fraction of the detections that fail, from 0 to 1, to measure the
+   *     backoff and retries as well.
+   */
+  public PipelineHarness(
+      GraphicOverlay graphicOverlay,
+      StandInDetector.LatencyDistribution latencyDistribution,
+      float failureRate) {
+    cameraSource =
+        new CameraSource(graphicOverlay, new SyntheticCameraBackend(graphicOverlay.getContext()));
+    processor =
+        new StandInFrameProcessor(
+            graphicOverlay,
+            new StandInDetector<>(STAND_IN_RESULTS, latencyDistribution, failureRate));
+    cameraSource.setFrameProcessor(processor);
+  }
+
+  /** Starts streaming frames through the pipeline. */
+  @MainThread
+  public void start() throws IOException {
+    startSnapshot = metrics.snapshot();
+    startTimeNs = System.nanoTime();
+    // The synthetic frames aren't previewed.
+    cameraSource.start(/* surfaceHolder= */ null);
+  }
+
+  /** Stops the pipeline for good, and returns what it measured since it was started. */
+  @MainThread
+  public Report stop() {
+    if (startSnapshot == null) {
+      throw new IllegalStateException("The harness hasn't been started.");
+    }
+    FrameProcessorBase.PipelineStats processorStats = processor.getPipelineStats();
+    cameraSource.release();
+    return new Report(
+        metrics.snapshot().since(startSnapshot), System.nanoTime() - startTimeNs, processorStats);
+  }
+
+  /** What the pipeline did while the harness ran. */
+  public static final class Report {
+
+    public final float durationS;
+    /** Frames the camera delivered per second. */
+    public final float cameraFramesPerSecond;
+    /** Results published per second. */
+    public final float resultsPerSecond;
+    /** Fraction of the frames delivered that were dropped before their detection started. */
+    public final float dropRate;
+    /** Time from the processor getting a frame up to its results being published. */
+    public final AtomicHistogram.Snapshot frameToResult;
+    /** Fraction of the time the main thread spent publishing results and drawing the overlay. */
+    public final float mainThreadOccupancy;
+    /** The accounting of the processor, of failures and retries among others. */
+    public final FrameProcessorBase.PipelineStats processorStats;
+
+    private Report(
+        PipelineMetrics.Snapshot metrics,
+        long durationNs,
+        FrameProcessorBase.PipelineStats processorStats) {
+      durationS = durationNs / 1e9f;
+      long receivedFrameCount =
+          metrics.getHistogram(PipelineMetrics.Stage.CAMERA_TO_PENDING).getCount();
+      long lostFrameCount =
+          metrics.getCount(PipelineMetrics.Counter.FRAME_DROPPED)
+              + metrics.getCount(PipelineMetrics.Counter.FRAME_OVERWRITTEN);
+      frameToResult = metrics.getHistogram(PipelineMetrics.Stage.FRAME_TO_RESULT);
+      cameraFramesPerSecond = receivedFrameCount / durationS;
+      resultsPerSecond = frameToResult.getCount() / durationS;
+      dropRate = receivedFrameCount > 0 ? (float) lostFrameCount / receivedFrameCount : 0;
+      float mainThreadMs =
+          metrics.getHistogram(PipelineMetrics.Stage.PUBLISH).getTotalMs()
+              + metrics.getHistogram(PipelineMetrics.Stage.OVERLAY_DRAW).getTotalMs();
+      mainThreadOccupancy = mainThreadMs / (durationS * 1000);
+      this.processorStats = processorStats;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          Locale.US,
+          "duration=%.1fs, camera=%.1ffps, results=%.1f/s, dropped=%.1f%%, frameToResult p50=%.1fms"
+              + " p95=%.1fms p99=%.1fms, mainThread=%.1f%%, processor: %s",
+          durationS,
+          cameraFramesPerSecond,
+          resultsPerSecond,
+          dropRate * 100,
+          frameToResult.getPercentileMs(0.5f),
+          frameToResult.getPercentileMs(0.95f),
+          frameToResult.getPercentileMs(0.99f),
+          mainThreadOccupancy * 100,
+          processorStats);
+    }
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.java.camera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.content.Context;
+import android.os.Looper;
+import androidx.test.core.app.ApplicationProvider;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.LooperMode;
+
+/** Runs the {@link PipelineHarness} for a while and checks what it reports. */
+@RunWith(RobolectricTestRunner.class)
+@LooperMode(LooperMode.Mode.PAUSED)
+public class PipelineHarnessTest {
+
+  private static final long RUN_TIME_MS = 2_000;
+  private static final long DETECTION_LATENCY_MS = 30;
+
+  @Test
+  public void reportsThePipelineRun() throws Exception {
+    Context context = ApplicationProvider.getApplicationContext();
+    PipelineHarness harness =
+        new PipelineHarness(
+            new GraphicOverlay(context, /* attrs= */ null),
+            StandInDetector.fixed(DETECTION_LATENCY_MS),
+            /* failureRate= */ 0);
+
+    harness.start();
+    runMainLooperFor(RUN_TIME_MS);
+    PipelineHarness.Report report = harness.stop();
+
+    assertTrue(report.toString(), report.durationS * 1000 >= RUN_TIME_MS);
+    assertTrue(report.toString(), report.cameraFramesPerSecond > 0);
+    assertTrue(report.toString(), report.resultsPerSecond > 0);
+    assertTrue(report.toString(), report.resultsPerSecond <= report.cameraFramesPerSecond);
+    assertTrue(report.toString(), report.dropRate >= 0 && report.dropRate < 1);
+    // Every result waits on its detection at the least.
+    assertTrue(report.toString(), report.frameToResult.getCount() > 0);
+    assertTrue(
+        report.toString(), report.frameToResult.getPercentileMs(0.5f) >= DETECTION_LATENCY_MS);
+    assertTrue(report.toString(), report.mainThreadOccupancy > 0 && report.mainThreadOccupancy < 1);
+    assertEquals(report.toString(), 0, report.processorStats.lostFrameCount);
+  }
+
+  /** Lets the pipeline run for the given time, with the main looper publishing its results. */
+  private static void runMainLooperFor(long timeMs) throws InterruptedException {
+    long endNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeMs);
+    while (System.nanoTime() < endNs) {
+      shadowOf(Looper.getMainLooper()).idle();
+      Thread.sleep(5);
+    }
+    shadowOf(Looper.getMainLooper()).idle();
+  }
+}
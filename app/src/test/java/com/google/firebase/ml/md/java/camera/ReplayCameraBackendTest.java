@@ -0,0 +1,139 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.java.camera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.content.Context;
+import android.graphics.Rect;
+import android.os.Looper;
+import androidx.test.core.app.ApplicationProvider;
+import com.google.android.gms.common.images.Size;
+import com.google.firebase.ml.md.java.camera.FrameReplayer.Pacing;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.LooperMode;
+
+/**
+ * Replays a recording through a {@link CameraSource} into a {@link FrameProcessorBase}, the whole
+ * way the recorded frames take on a device but for the detector, which is a stand-in.
+ */
+@RunWith(RobolectricTestRunner.class)
+@LooperMode(LooperMode.Mode.PAUSED)
+public class ReplayCameraBackendTest {
+
+  private static final long TIMEOUT_MS = 10_000;
+  private static final int WIDTH = 640;
+  private static final int HEIGHT = 480;
+  private static final int FRAME_COUNT = 30;
+  private static final long FRAME_INTERVAL_US = 33_333;
+  private static final int SQUARE_SIZE = 96;
+  private static final int SQUARE_STEP = 24;
+  private static final long DETECTION_LATENCY_MS = 5;
+
+  private File recordingFile;
+  private CameraSource cameraSource;
+  private StandInFrameProcessor processor;
+
+  @Before
+  public void setUp() throws IOException {
+    Context context = ApplicationProvider.getApplicationContext();
+    recordingFile =
+        new File(context.getExternalFilesDir(null), ReplayCameraBackend.RECORDING_FILE_NAME);
+    writeRecording(recordingFile);
+
+    GraphicOverlay graphicOverlay = new GraphicOverlay(context, /* attrs= */ null);
+    cameraSource =
+        new CameraSource(graphicOverlay, new ReplayCameraBackend(context, Pacing.REAL_TIME));
+    processor =
+        new StandInFrameProcessor(
+            graphicOverlay,
+            new StandInDetector<>(
+                Collections.singletonList(new Rect(0, 0, SQUARE_SIZE, SQUARE_SIZE)),
+                StandInDetector.fixed(DETECTION_LATENCY_MS),
+                /* failureRate= */ 0));
+    cameraSource.setFrameProcessor(processor);
+  }
+
+  @After
+  public void tearDown() {
+    cameraSource.release();
+    recordingFile.delete();
+  }
+
+  @Test
+  public void replaysTheRecordingThroughTheProcessor() throws Exception {
+    // The replayed frames aren't previewed.
+    cameraSource.start(/* surfaceHolder= */ null);
+    assertEquals(new Size(WIDTH, HEIGHT), cameraSource.getPreviewSize());
+
+    // The detections are much faster than the frames come, so all of the recording gets detected,
+    // and then some as the replay loops.
+    runMainLooperUntil(() -> processor.getPipelineStats().deliveredResultCount > FRAME_COUNT);
+    FrameProcessorBase.PipelineStats stats = processor.getPipelineStats();
+
+    assertEquals(stats.toString(), 0, stats.lostFrameCount);
+    assertEquals(stats.toString(), 0, stats.timedOutDetectionCount);
+  }
+
+  /** Records a dark scene with a bright square that moves by a step every frame. */
+  private static void writeRecording(File recordingFile) throws IOException {
+    FrameMetadata metadata = new FrameMetadata(WIDTH, HEIGHT, /* rotation= */ 1);
+    byte[] nv21 = new byte[WIDTH * HEIGHT * 3 / 2];
+    int ySize = WIDTH * HEIGHT;
+    try (FrameRecording.Writer writer = new FrameRecording.Writer(recordingFile)) {
+      for (int i = 0; i < FRAME_COUNT; i++) {
+        Arrays.fill(nv21, 0, ySize, (byte) 16);
+        int squareLeft = (i * SQUARE_STEP) % (WIDTH - SQUARE_SIZE);
+        int squareTop = (i * SQUARE_STEP) % (HEIGHT - SQUARE_SIZE);
+        for (int y = squareTop; y < squareTop + SQUARE_SIZE; y++) {
+          int rowStart = y * WIDTH + squareLeft;
+          Arrays.fill(nv21, rowStart, rowStart + SQUARE_SIZE, (byte) 235);
+        }
+        Arrays.fill(nv21, ySize, nv21.length, (byte) 128);
+        writer.write(i * FRAME_INTERVAL_US, metadata, ByteBuffer.wrap(nv21));
+      }
+    }
+  }
+
+  /** Runs the main looper as the pipeline goes, until the condition holds or the time is up. */
+  private static void runMainLooperUntil(Condition condition) throws InterruptedException {
+    long deadlineNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+    while (!condition.holds()) {
+      if (System.nanoTime() > deadlineNs) {
+        throw new AssertionError("Timed out waiting on the pipeline.");
+      }
+      shadowOf(Looper.getMainLooper()).idle();
+      Thread.sleep(5);
+    }
+  }
+
+  private interface Condition {
+    boolean holds();
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.java.camera;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Stands in for an ML Kit detector, so the pipeline can be measured apart from it. Each detection
+ * completes with the same results, or fails at the given rate, after a latency drawn from a {@link
+ * LatencyDistribution}. The detections run one after the other on a thread of their own, the way
+ * the detectors work through the frames in flight.
+ */
+public final class StandInDetector<T> {
+
+  /** The latencies of the detections. */
+  public interface LatencyDistribution {
+    /** Returns the latency of the next detection, only called on the thread of the detector. */
+    long nextLatencyMs(Random random);
+  }
+
+  private final T results;
+  private final LatencyDistribution latencyDistribution;
+  private final float failureRate;
+  // Seeded, so the same distribution gives the same sequence of latencies on every run.
+  private final Random random = new Random(/* seed= */ 0);
+  private final ExecutorService executor =
+      Executors.newSingleThreadExecutor(
+          runnable -> {
+            Thread thread = new Thread(runnable, "StandInDetector");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  /** @param failureRate the fraction of the detections that fail, from 0 to 1. */
+  StandInDetector(T results, LatencyDistribution latencyDistribution, float failureRate) {
+    this.results = results;
+    this.latencyDistribution = latencyDistribution;
+    this.failureRate = failureRate;
+  }
+
+  /** Returns a distribution of the given latency every time. */
+  public static LatencyDistribution fixed(long latencyMs) {
+    return random -> latencyMs;
+  }
+
+  /** Returns a distribution of latencies spread evenly between the given bounds. */
+  public static LatencyDistribution uniform(long minLatencyMs, long maxLatencyMs) {
+    return random -> minLatencyMs + (long) (random.nextDouble() * (maxLatencyMs - minLatencyMs));
+  }
+
+  /**
+   * Returns a distribution of latencies around the given median with a long tail of slow ones, as
+   * detectors have when the device throttles or other apps compete for it. The larger the spread,
+   * the longer the tail: with 0.5, one detection in twenty takes over 2.3 times the median.
+   */
+  public static LatencyDistribution logNormal(long medianLatencyMs, double spread) {
+    return random -> Math.round(medianLatencyMs * Math.exp(spread * random.nextGaussian()));
+  }
+
+  Task<T> detect() {
+    return Tasks.call(
+        executor,
+        () -> {
+          Thread.sleep(latencyDistribution.nextLatencyMs(random));
+          if (random.nextFloat() < failureRate) {
+            throw new IOException("Stand-in detection failure.");
+          }
+          return results;
+        });
+  }
+
+  /** Stops the thread of the detector once the detections started already are done. */
+  void close() {
+    executor.shutdown();
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.java.camera;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Paint.Style;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.util.Log;
+import androidx.annotation.MainThread;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+import com.google.android.gms.tasks.Task;
+import com.google.firebase.ml.vision.common.FirebaseVisionImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A processor that detects with a {@link StandInDetector} rather than ML Kit, and handles the boxes
+ * it returns the way the object processors do: mapped into the view off the main thread, then
+ * drawn on the overlay.
+ */
+class StandInFrameProcessor extends FrameProcessorBase<List<Rect>> {
+
+  private static final String TAG = "StandInFrameProcessor";
+
+  private final StandInDetector<List<Rect>> detector;
+  // Only used on the main thread.
+  private final BoxGraphic boxGraphic;
+
+  StandInFrameProcessor(GraphicOverlay graphicOverlay, StandInDetector<List<Rect>> detector) {
+    super(graphicOverlay.getContext());
+    this.detector = detector;
+    this.boxGraphic = new BoxGraphic(graphicOverlay);
+  }
+
+  @Override
+  public void stop() {
+    super.stop();
+    detector.close();
+  }
+
+  @Override
+  protected Task<List<Rect>> detectInImage(FirebaseVisionImage image) {
+    return detector.detect();
+  }
+
+  @WorkerThread
+  @Nullable
+  @Override
+  protected Runnable onResults(
+      FirebaseVisionImage image,
+      List<Rect> results,
+      @Nullable Rect detectionRegion,
+      GraphicOverlay graphicOverlay) {
+    List<RectF> boxes = new ArrayList<>(results.size());
+    for (int i = 0; i < results.size(); i++) {
+      boxes.add(graphicOverlay.translateRect(results.get(i)));
+    }
+    return () -> publishResults(boxes, graphicOverlay);
+  }
+
+  @MainThread
+  private void publishResults(List<RectF> boxes, GraphicOverlay graphicOverlay) {
+    boxGraphic.update(boxes);
+    graphicOverlay.setGraphics(Collections.singletonList(boxGraphic));
+  }
+
+  @Override
+  protected void onFailure(Exception e) {
+    Log.w(TAG, "Stand-in detection failed.", e);
+  }
+
+  /** Outlines the detected boxes. */
+  private static class BoxGraphic extends GraphicOverlay.Graphic {
+
+    private final Paint boxPaint = new Paint();
+    private List<RectF> boxes = Collections.emptyList();
+
+    BoxGraphic(GraphicOverlay overlay) {
+      super(overlay);
+      boxPaint.setStyle(Style.STROKE);
+      boxPaint.setColor(Color.WHITE);
+    }
+
+    void update(List<RectF> boxes) {
+      this.boxes = boxes;
+    }
+
+    @Override
+    protected void draw(Canvas canvas) {
+      for (int i = 0; i < boxes.size(); i++) {
+        canvas.drawRect(boxes.get(i), boxPaint);
+      }
+    }
+  }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.java.camera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.content.Context;
+import android.os.Looper;
+import android.util.Log;
+import androidx.test.core.app.ApplicationProvider;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.ml.vision.common.FirebaseVisionImage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.LooperMode;
+
+/** Streams the frames of a {@link SyntheticCameraBackend} through a {@link CameraSource}. */
+@RunWith(RobolectricTestRunner.class)
+@LooperMode(LooperMode.Mode.PAUSED)
+public class SyntheticCameraBackendTest {
+
+  private static final long TIMEOUT_MS = 10_000;
+
+  /** More than the backend ever allocates buffers for, so the buffers have to be recycled. */
+  private static final int FRAME_COUNT = 3 * CameraSource.DEFAULT_MAX_FRAME_BUFFER_DEPTH;
+
+  private final FrameBufferRecycler frameBuffers = new FrameBufferRecycler();
+  private CameraSource cameraSource;
+  private CountingFrameProcessor processor;
+
+  @Before
+  public void setUp() {
+    Context context = ApplicationProvider.getApplicationContext();
+    GraphicOverlay graphicOverlay = new GraphicOverlay(context, /* attrs= */ null);
+    cameraSource =
+        new CameraSource(graphicOverlay, new SyntheticCameraBackend(context, frameBuffers));
+    processor = new CountingFrameProcessor(context);
+    // Delivers the results right as the detection completes, the main thread publishes them.
+    processor.setPostProcessingExecutor(Runnable::run);
+    cameraSource.setFrameProcessor(processor);
+  }
+
+  @Test
+  public void framesReachTheProcessor() throws Exception {
+    cameraSource.start(/* surfaceHolder= */ null);
+    runMainLooperUntil(() -> processor.publishedResultCount.get() >= FRAME_COUNT);
+    cameraSource.release();
+
+    assertTrue(processor.processedFrameCount.get() >= FRAME_COUNT);
+    assertTrue(processor.publishedResultCount.get() >= FRAME_COUNT);
+  }
+
+  @Test
+  public void releasedFramesGoBackToTheRecycler() throws Exception {
+    cameraSource.start(/* surfaceHolder= */ null);
+    runMainLooperUntil(() -> processor.publishedResultCount.get() >= FRAME_COUNT);
+
+    assertTrue(frameBuffers.getDepth() <= CameraSource.DEFAULT_MAX_FRAME_BUFFER_DEPTH);
+    // Releases the frames in the processor as well, those of the results left to publish too.
+    cameraSource.release();
+    assertEquals(0, frameBuffers.getHeldFrameCount());
+  }
+
+  @Test
+  public void stopJoinsTheFrameThreads() throws Exception {
+    cameraSource.start(/* surfaceHolder= */ null);
+    runMainLooperUntil(() -> processor.processedFrameCount.get() > 0);
+
+    long stopStartNs = System.nanoTime();
+    cameraSource.stop();
+    long stopTimeMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - stopStartNs);
+    int processedFrameCount = processor.processedFrameCount.get();
+    Thread.sleep(100);
+
+    // Both the frame thread and the processing thread are gone once stop returns.
+    assertTrue("Stopping took " + stopTimeMs + " ms", stopTimeMs < 1000);
+    assertEquals(processedFrameCount, processor.processedFrameCount.get());
+    cameraSource.release();
+  }
+
+  /** Runs the main looper as the pipeline goes, until the condition holds or the time is up. */
+  private static void runMainLooperUntil(Condition condition) throws InterruptedException {
+    long deadlineNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+    while (!condition.holds()) {
+      if (System.nanoTime() > deadlineNs) {
+        throw new AssertionError("Timed out waiting on the pipeline.");
+      }
+      shadowOf(Looper.getMainLooper()).idle();
+      Thread.sleep(5);
+    }
+  }
+
+  private interface Condition {
+    boolean holds();
+  }
+
+  /** Counts the frames it gets and the results it publishes, which are detected right away. */
+  private static class CountingFrameProcessor extends FrameProcessorBase<Integer> {
+
+    final AtomicInteger processedFrameCount = new AtomicInteger();
+    final AtomicInteger publishedResultCount = new AtomicInteger();
+
+    CountingFrameProcessor(Context context) {
+      super(context);
+    }
+
+    @Override
+    public void process(SharedFrame frame, GraphicOverlay graphicOverlay) {
+      processedFrameCount.incrementAndGet();
+      super.process(frame, graphicOverlay);
+    }
+
+    @Override
+    protected Task<Integer> detectInImage(FirebaseVisionImage image) {
+      return Tasks.forResult(0);
+    }
+
+    @Override
+    protected void onSuccess(
+        FirebaseVisionImage image, Integer results, GraphicOverlay graphicOverlay) {
+      publishedResultCount.incrementAndGet();
+    }
+
+    @Override
+    protected void onFailure(Exception e) {
+      Log.e("CountingFrameProcessor", "Detection failed.", e);
+    }
+  }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.java.objectdetection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.app.Application;
+import android.os.Looper;
+import androidx.test.core.app.ApplicationProvider;
+import com.google.firebase.FirebaseApp;
+import com.google.firebase.FirebaseOptions;
+import com.google.firebase.ml.md.java.camera.CameraSource;
+import com.google.firebase.ml.md.java.camera.CompositeFrameProcessor;
+import com.google.firebase.ml.md.java.camera.GraphicOverlay;
+import com.google.firebase.ml.md.java.camera.WorkflowModel;
+import com.google.firebase.ml.md.java.camera.WorkflowModel.WorkflowState;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.LooperMode;
+
+/**
+ * Publishes boxes through the object processors, frame after frame, and checks that the overlay
+ * keeps showing the same graphics, updated in place rather than recreated, so that rendering the
+ * live view doesn't allocate.
+ */
+@RunWith(RobolectricTestRunner.class)
+@LooperMode(LooperMode.Mode.PAUSED)
+public class ObjectProcessorGraphicsTest {
+
+  /** Enough frames at the frame interval for the longest confirmation time to pass. */
+  private static final int FRAME_COUNT = 150;
+  private static final long FRAME_INTERVAL_MS = 16;
+  private static final int OVERLAY_WIDTH = 1080;
+  private static final int OVERLAY_HEIGHT = 1920;
+  private static final int OBJECT_COUNT = 5;
+  private static final int OBJECT_SIZE = 240;
+
+  private final ObjectBoxes boxes = new ObjectBoxes();
+  private Application application;
+  private GraphicOverlay overlay;
+  private WorkflowModel workflowModel;
+
+  @Before
+  public void setUp() {
+    application = ApplicationProvider.getApplicationContext();
+    // The processors lease their detectors from ML Kit, whose models only load once they detect.
+    if (FirebaseApp.getApps(application).isEmpty()) {
+      FirebaseApp.initializeApp(
+          application,
+          new FirebaseOptions.Builder()
+              .setApplicationId("1:1:android:1")
+              .setApiKey("test")
+              .setProjectId("test")
+              .build());
+    }
+    overlay = new GraphicOverlay(application, /* attrs= */ null);
+    overlay.layout(0, 0, OVERLAY_WIDTH, OVERLAY_HEIGHT);
+    workflowModel = new WorkflowModel(application);
+    workflowModel.markCameraLive();
+  }
+
+  @Test
+  public void multiModeFramesKeepTheirGraphics() {
+    MultiObjectProcessor processor = new MultiObjectProcessor(overlay, workflowModel);
+    try {
+      List<GraphicOverlay.Graphic> firstGraphics = null;
+      for (int frame = 0; frame < FRAME_COUNT; frame++) {
+        long frameTimeNs = moveObjects(frame);
+        assertFalse(
+            processor.publishResults(boxes, /* selectedObjectIndex= */ -1, frameTimeNs, overlay));
+        List<GraphicOverlay.Graphic> graphics = runFrame();
+        if (firstGraphics == null) {
+          firstGraphics = graphics;
+        }
+        assertSameGraphics(firstGraphics, graphics);
+      }
+      // A dot on each object, and the reticle.
+      assertEquals(OBJECT_COUNT + 1, firstGraphics.size());
+    } finally {
+      processor.stop();
+    }
+  }
+
+  @Test
+  public void multiModeConfirmationKeepsTheGraphicsOfTheSelectedObject() {
+    MultiObjectProcessor processor = new MultiObjectProcessor(overlay, workflowModel);
+    try {
+      List<GraphicOverlay.Graphic> confirmingGraphics = null;
+      List<GraphicOverlay.Graphic> confirmedGraphics = null;
+      for (int frame = 0; frame < FRAME_COUNT; frame++) {
+        long frameTimeNs = moveObjects(frame);
+        boolean isConfirmed =
+            processor.publishResults(boxes, /* selectedObjectIndex= */ 0, frameTimeNs, overlay);
+        List<GraphicOverlay.Graphic> graphics = runFrame();
+        if (!isConfirmed) {
+          assertNull("The confirmation of the same object went back.", confirmedGraphics);
+          if (confirmingGraphics == null) {
+            confirmingGraphics = graphics;
+          }
+          assertSameGraphics(confirmingGraphics, graphics);
+        } else {
+          if (confirmedGraphics == null) {
+            confirmedGraphics = graphics;
+          }
+          assertSameGraphics(confirmedGraphics, graphics);
+        }
+      }
+
+      assertNotNull(confirmingGraphics);
+      assertNotNull("The selected object never got confirmed.", confirmedGraphics);
+      // The confirmation progress, the box of the selected object, and a dot on each other one.
+      assertEquals(OBJECT_COUNT + 1, confirmingGraphics.size());
+      // The dots are hidden once the object is confirmed.
+      assertSameGraphics(confirmingGraphics.subList(0, 2), confirmedGraphics);
+    } finally {
+      processor.stop();
+    }
+  }
+
+  @Test
+  public void prominentModeFramesKeepTheirGraphics() {
+    ProminentObjectProcessor processor =
+        new ProminentObjectProcessor(overlay, workflowModel, new CameraSource(overlay));
+    try {
+      List<GraphicOverlay.Graphic> firstGraphics = null;
+      for (int frame = 0; frame < FRAME_COUNT; frame++) {
+        long frameTimeNs = moveObjects(frame, /* objectCount= */ 1);
+        assertFalse(
+            processor.publishResults(boxes, /* overlapsReticle= */ false, frameTimeNs, overlay));
+        List<GraphicOverlay.Graphic> graphics = runFrame();
+        if (firstGraphics == null) {
+          firstGraphics = graphics;
+        }
+        assertSameGraphics(firstGraphics, graphics);
+      }
+      // The box of the object, and the reticle off it.
+      assertEquals(2, firstGraphics.size());
+    } finally {
+      processor.stop();
+    }
+  }
+
+  @Test
+  public void compositeProcessorsKeepEachOthersGraphicsAndStates() {
+    MultiObjectProcessor multiProcessor = new MultiObjectProcessor(overlay, workflowModel);
+    ProminentObjectProcessor prominentProcessor =
+        new ProminentObjectProcessor(overlay, workflowModel, new CameraSource(overlay));
+    CompositeFrameProcessor compositeProcessor =
+        new CompositeFrameProcessor(multiProcessor, prominentProcessor);
+    ObjectBoxes noBoxes = new ObjectBoxes();
+    try {
+      long frameTimeNs = moveObjects(/* frame= */ 0);
+      multiProcessor.publishResults(boxes, /* selectedObjectIndex= */ 0, frameTimeNs, overlay);
+      prominentProcessor.publishResults(
+          noBoxes, /* overlapsReticle= */ false, frameTimeNs, overlay);
+      List<GraphicOverlay.Graphic> confirmingGraphics = runFrame();
+      // The graphics of the multi-mode processor, then the reticle of the prominent one with
+      // nothing in view, which doesn't reset the confirmation either.
+      assertEquals(OBJECT_COUNT + 2, confirmingGraphics.size());
+      assertEquals(WorkflowState.CONFIRMING, workflowModel.workflowState.getValue());
+
+      frameTimeNs = moveObjects(/* frame= */ 1);
+      multiProcessor.publishResults(boxes, /* selectedObjectIndex= */ -1, frameTimeNs, overlay);
+      List<GraphicOverlay.Graphic> detectedGraphics = runFrame();
+      // A dot on each object and the reticle, then the reticle the prominent one left as it was.
+      assertEquals(OBJECT_COUNT + 2, detectedGraphics.size());
+      assertSame(
+          confirmingGraphics.get(OBJECT_COUNT + 1), detectedGraphics.get(OBJECT_COUNT + 1));
+      assertEquals(WorkflowState.DETECTED, workflowModel.workflowState.getValue());
+    } finally {
+      compositeProcessor.stop();
+    }
+    // The graphics go along with their processors.
+    assertTrue(runFrame().isEmpty());
+  }
+
+  private long moveObjects(int frame) {
+    return moveObjects(frame, OBJECT_COUNT);
+  }
+
+  /** Moves the objects a bit further across the overlay, and returns the time of the frame. */
+  private long moveObjects(int frame, int objectCount) {
+    boxes.clear();
+    int offset = (frame % 100) * 4;
+    for (int i = 0; i < objectCount; i++) {
+      int left = offset + i * 100;
+      int top = offset + i * 300;
+      boxes.add(/* trackingId= */ i, left, top, left + OBJECT_SIZE, top + OBJECT_SIZE);
+    }
+    return System.nanoTime();
+  }
+
+  /** Lets the main looper run up to the next frame, and returns the graphics it published. */
+  private List<GraphicOverlay.Graphic> runFrame() {
+    shadowOf(Looper.getMainLooper()).idleFor(FRAME_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    return overlay.getPublishedGraphics();
+  }
+
+  private static void assertSameGraphics(
+      List<GraphicOverlay.Graphic> expected, List<GraphicOverlay.Graphic> actual) {
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertSame("Graphic " + i + " got replaced.", expected.get(i), actual.get(i));
+    }
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.kotlin.camera
+
+import android.graphics.Rect
+import android.view.SurfaceView
+import androidx.annotation.MainThread
+import java.io.IOException
+import java.util.Locale
+
+/**
+ * Runs the detection pipeline of the app from end to end without a camera or ML Kit, so that
+ * changes to it, like to the scheduling of [FrameProcessorBase], can be compared by numbers.
+ *
+ * Frames of a [SyntheticCameraBackend] go through the processing loop of a [CameraSource] into a
+ * [StandInFrameProcessor], whose detections take the latencies of the given distribution, and the
+ * results get drawn on the given overlay. Nothing of it needs a camera, a display or the detector
+ * models, so it runs on the JVM under Robolectric, as long as the main looper is left to run. See
+ * [PipelineHarnessTest].
+ *
+ * The pipeline metrics are shared by the whole app, so nothing else should run the pipeline while
+ * the harness does.
+ *
+ * @param failureRate the fraction of the detections that fail, from 0 to 1, to measure the backoff
+ * and retries as well.
+ */
+class PipelineHarness(
+    private val graphicOverlay: GraphicOverlay,
+    latencyDistribution: StandInDetector.LatencyDistribution,
+    failureRate: Float
+) {
+
+    private val cameraSource = CameraSource(graphicOverlay, SyntheticCameraBackend(graphicOverlay.context))
+    private val processor = StandInFrameProcessor(
+            graphicOverlay,
+            StandInDetector(STAND_IN_RESULTS, latencyDistribution, failureRate)
+    )
+
+    private var startSnapshot: PipelineMetrics.Snapshot? = null
+    private var startTimeNs = 0L
+
+    init {
+        cameraSource.setFrameProcessor(processor)
+    }
+
+    /** Starts streaming frames through the pipeline.  */
+    @MainThread
+    @Throws(IOException::class)
+    fun start() {
+        startSnapshot = PipelineMetrics.snapshot()
+        startTimeNs = System.nanoTime()
+        // The synthetic frames aren't previewed, the surface is never created.
+        cameraSource.start(SurfaceView(graphicOverlay.context).holder)
+    }
+
+    /** Stops the pipeline for good, and returns what it measured since it was started.  */
+    @MainThread
+    fun stop(): Report {
+        val startSnapshot = checkNotNull(startSnapshot) { "The harness hasn't been started." }
+        val processorStats = processor.getPipelineStats()
+        cameraSource.release()
+        return Report(PipelineMetrics.snapshot().since(startSnapshot), System.nanoTime() - startTimeNs, processorStats)
+    }
+
+    /** What the pipeline did while the harness ran.  */
+    class Report internal constructor(
+        metrics: PipelineMetrics.Snapshot,
+        durationNs: Long,
+        /** The accounting of the processor, of failures and retries among others.  */
+        val processorStats: FrameProcessorBase.PipelineStats
+    ) {
+
+        val durationS = durationNs / 1e9f
+
+        /** Time from the processor getting a frame up to its results being published.  */
+        val frameToResult: AtomicHistogram.Snapshot = metrics.getHistogram(PipelineMetrics.Stage.FRAME_TO_RESULT)
+
+        private val receivedFrameCount = metrics.getHistogram(PipelineMetrics.Stage.CAMERA_TO_PENDING).count
+
+        /** Frames the camera delivered per second.  */
+        val cameraFramesPerSecond = receivedFrameCount / durationS
+
+        /** Results published per second.  */
+        val resultsPerSecond = frameToResult.count / durationS
+
+        /** Fraction of the frames delivered that were dropped before their detection started.  */
+        val dropRate = if (receivedFrameCount > 0) {
+            (metrics.getCount(PipelineMetrics.Counter.FRAME_DROPPED) +
+                    metrics.getCount(PipelineMetrics.Counter.FRAME_OVERWRITTEN)).toFloat() / receivedFrameCount
+        } else {
+            0f
+        }
+
+        /** Fraction of the time the main thread spent publishing results and drawing the overlay.  */
+        val mainThreadOccupancy = (metrics.getHistogram(PipelineMetrics.Stage.PUBLISH).totalMs +
+                metrics.getHistogram(PipelineMetrics.Stage.OVERLAY_DRAW).totalMs) / (durationS * 1000)
+
+        override fun toString(): String = String.format(
+                Locale.US,
+                "duration=%.1fs, camera=%.1ffps, results=%.1f/s, dropped=%.1f%%, frameToResult p50=%.1fms " +
+                        "p95=%.1fms p99=%.1fms, mainThread=%.1f%%, processor: %s",
+                durationS, cameraFramesPerSecond, resultsPerSecond, dropRate * 100,
+                frameToResult.getPercentileMs(0.5f), frameToResult.getPercentileMs(0.95f),
+                frameToResult.getPercentileMs(0.99f), mainThreadOccupancy * 100, processorStats
+        )
+    }
+
+    companion object {
+        /** A box in the middle of the synthetic frames, which is what every stand-in detection finds.  */
+        private val STAND_IN_RESULTS = listOf(Rect(240, 160, 400, 320))
+    }
+}
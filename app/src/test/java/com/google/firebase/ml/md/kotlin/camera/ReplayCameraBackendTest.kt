@@ -0,0 +1,133 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.kotlin.camera
+
+import android.content.Context
+import android.graphics.Rect
+import android.os.Looper
+import android.view.SurfaceView
+import androidx.test.core.app.ApplicationProvider
+import com.google.android.gms.common.images.Size
+import java.io.File
+import java.nio.ByteBuffer
+import java.util.concurrent.TimeUnit
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.Robolectric
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.Shadows.shadowOf
+import org.robolectric.annotation.LooperMode
+
+/**
+ * Replays a recording through a [CameraSource] into a [FrameProcessorBase], the whole way the recorded frames
+ * take on a device but for the detector, which is a stand-in.
+ */
+@RunWith(RobolectricTestRunner::class)
+@LooperMode(LooperMode.Mode.PAUSED)
+class ReplayCameraBackendTest {
+
+    private lateinit var context: Context
+    private lateinit var recordingFile: File
+    private lateinit var cameraSource: CameraSource
+    private lateinit var processor: StandInFrameProcessor
+
+    @Before
+    fun setUp() {
+        context = ApplicationProvider.getApplicationContext()
+        recordingFile = File(context.getExternalFilesDir(null), ReplayCameraBackend.RECORDING_FILE_NAME)
+        writeRecording(recordingFile)
+
+        val graphicOverlay = GraphicOverlay(context, Robolectric.buildAttributeSet().build())
+        cameraSource = CameraSource(graphicOverlay, ReplayCameraBackend(context, FrameReplayer.Pacing.REAL_TIME))
+        processor = StandInFrameProcessor(
+                graphicOverlay,
+                StandInDetector(
+                        listOf(Rect(0, 0, SQUARE_SIZE, SQUARE_SIZE)),
+                        StandInDetector.fixed(DETECTION_LATENCY_MS),
+                        failureRate = 0f
+                )
+        )
+        cameraSource.setFrameProcessor(processor)
+    }
+
+    @After
+    fun tearDown() {
+        cameraSource.release()
+        recordingFile.delete()
+    }
+
+    @Test
+    fun replaysTheRecordingThroughTheProcessor() {
+        // The replayed frames aren't previewed, the surface is never created.
+        cameraSource.start(SurfaceView(context).holder)
+        assertEquals(Size(WIDTH, HEIGHT), cameraSource.previewSize)
+
+        // The detections are much faster than the frames come, so all of the recording gets detected, and then
+        // some as the replay loops.
+        runMainLooperUntil { processor.getPipelineStats().deliveredResultCount > FRAME_COUNT }
+        val stats = processor.getPipelineStats()
+
+        assertEquals(stats.toString(), 0L, stats.lostFrameCount)
+        assertEquals(stats.toString(), 0L, stats.timedOutDetectionCount)
+    }
+
+    companion object {
+        private const val TIMEOUT_MS = 10_000L
+        private const val WIDTH = 640
+        private const val HEIGHT = 480
+        private const val FRAME_COUNT = 30
+        private const val FRAME_INTERVAL_US = 33_333L
+        private const val SQUARE_SIZE = 96
+        private const val SQUARE_STEP = 24
+        private const val DETECTION_LATENCY_MS = 5L
+
+        /** Records a dark scene with a bright square that moves by a step every frame.  */
+        private fun writeRecording(recordingFile: File) {
+            val metadata = FrameMetadata(WIDTH, HEIGHT, rotation = 1)
+            val nv21 = ByteArray(WIDTH * HEIGHT * 3 / 2)
+            val ySize = WIDTH * HEIGHT
+            FrameRecording.Writer(recordingFile).use { writer ->
+                for (i in 0 until FRAME_COUNT) {
+                    nv21.fill(16, 0, ySize)
+                    val squareLeft = (i * SQUARE_STEP) % (WIDTH - SQUARE_SIZE)
+                    val squareTop = (i * SQUARE_STEP) % (HEIGHT - SQUARE_SIZE)
+                    for (y in squareTop until squareTop + SQUARE_SIZE) {
+                        val rowStart = y * WIDTH + squareLeft
+                        nv21.fill(235.toByte(), rowStart, rowStart + SQUARE_SIZE)
+                    }
+                    nv21.fill(128.toByte(), ySize, nv21.size)
+                    writer.write(i * FRAME_INTERVAL_US, metadata, ByteBuffer.wrap(nv21))
+                }
+            }
+        }
+
+        /** Runs the main looper as the pipeline goes, until the condition holds or the time is up.  */
+        private fun runMainLooperUntil(condition: () -> Boolean) {
+            val deadlineNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS)
+            while (!condition()) {
+                if (System.nanoTime() > deadlineNs) {
+                    throw AssertionError("Timed out waiting on the pipeline.")
+                }
+                shadowOf(Looper.getMainLooper()).idle()
+                Thread.sleep(5)
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.kotlin.camera
+
+import android.graphics.Canvas
+import android.graphics.Color
+import android.graphics.Paint
+import android.graphics.Rect
+import android.graphics.RectF
+import android.util.Log
+import androidx.annotation.MainThread
+import androidx.annotation.WorkerThread
+import com.google.android.gms.tasks.Task
+import com.google.firebase.ml.vision.common.FirebaseVisionImage
+
+/**
+ * A processor that detects with a [StandInDetector] rather than ML Kit, and handles the boxes it
+ * returns the way the object processors do: mapped into the view off the main thread, then drawn on
+ * the overlay.
+ */
+internal class StandInFrameProcessor(
+    graphicOverlay: GraphicOverlay,
+    private val detector: StandInDetector<List<Rect>>
+) : FrameProcessorBase<List<Rect>>(graphicOverlay.context) {
+
+    // Only used on the main thread.
+    private val boxGraphic = BoxGraphic(graphicOverlay)
+
+    override fun stop() {
+        super.stop()
+        detector.close()
+    }
+
+    override fun detectInImage(image: FirebaseVisionImage): Task<List<Rect>> = detector.detect()
+
+    @WorkerThread
+    override fun onResults(
+        image: FirebaseVisionImage,
+        results: List<Rect>,
+        detectionRegion: Rect?,
+        graphicOverlay: GraphicOverlay
+    ): Runnable? {
+        val boxes = results.map { graphicOverlay.translateRect(it) }
+        return Runnable { publishResults(boxes, graphicOverlay) }
+    }
+
+    @MainThread
+    private fun publishResults(boxes: List<RectF>, graphicOverlay: GraphicOverlay) {
+        boxGraphic.boxes = boxes
+        graphicOverlay.setGraphics(listOf(boxGraphic))
+    }
+
+    override fun onFailure(e: Exception) {
+        Log.w(TAG, "Stand-in detection failed.", e)
+    }
+
+    /** Outlines the detected boxes.  */
+    private class BoxGraphic(overlay: GraphicOverlay) : GraphicOverlay.Graphic(overlay) {
+
+        private val boxPaint = Paint().apply {
+            style = Paint.Style.STROKE
+            color = Color.WHITE
+        }
+
+        var boxes: List<RectF> = emptyList()
+
+        override fun draw(canvas: Canvas) {
+            boxes.forEach { canvas.drawRect(it, boxPaint) }
+        }
+    }
+
+    companion object {
+        private const val TAG = "StandInFrameProcessor"
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.kotlin.camera
+
+import android.content.Context
+import android.os.Looper
+import android.util.Log
+import android.view.SurfaceView
+import androidx.test.core.app.ApplicationProvider
+import com.google.android.gms.tasks.Task
+import com.google.android.gms.tasks.Tasks
+import com.google.firebase.ml.vision.common.FirebaseVisionImage
+import java.util.concurrent.Executor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.Robolectric
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.Shadows.shadowOf
+import org.robolectric.annotation.LooperMode
+
+/** Streams the frames of a [SyntheticCameraBackend] through a [CameraSource].  */
+@RunWith(RobolectricTestRunner::class)
+@LooperMode(LooperMode.Mode.PAUSED)
+class SyntheticCameraBackendTest {
+
+    private val frameBuffers = FrameBufferRecycler()
+    private lateinit var context: Context
+    private lateinit var cameraSource: CameraSource
+    private lateinit var processor: CountingFrameProcessor
+
+    @Before
+    fun setUp() {
+        context = ApplicationProvider.getApplicationContext()
+        val graphicOverlay = GraphicOverlay(context, Robolectric.buildAttributeSet().build())
+        cameraSource = CameraSource(graphicOverlay, SyntheticCameraBackend(context, frameBuffers))
+        processor = CountingFrameProcessor(context)
+        // Delivers the results right as the detection completes, the main thread publishes them.
+        processor.setPostProcessingExecutor(Executor { it.run() })
+        cameraSource.setFrameProcessor(processor)
+    }
+
+    @Test
+    fun framesReachTheProcessor() {
+        startCamera()
+        runMainLooperUntil { processor.publishedResultCount.get() >= FRAME_COUNT }
+        cameraSource.release()
+
+        assertTrue(processor.processedFrameCount.get() >= FRAME_COUNT)
+        assertTrue(processor.publishedResultCount.get() >= FRAME_COUNT)
+    }
+
+    @Test
+    fun releasedFramesGoBackToTheRecycler() {
+        startCamera()
+        runMainLooperUntil { processor.publishedResultCount.get() >= FRAME_COUNT }
+
+        assertTrue(frameBuffers.depth <= CameraSource.DEFAULT_MAX_FRAME_BUFFER_DEPTH)
+        // Releases the frames in the processor as well, those of the results left to publish too.
+        cameraSource.release()
+        assertEquals(0, frameBuffers.heldFrameCount)
+    }
+
+    @Test
+    fun stopJoinsTheFrameThreads() {
+        startCamera()
+        runMainLooperUntil { processor.processedFrameCount.get() > 0 }
+
+        val stopStartNs = System.nanoTime()
+        cameraSource.stop()
+        val stopTimeMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - stopStartNs)
+        val processedFrameCount = processor.processedFrameCount.get()
+        Thread.sleep(100)
+
+        // Both the frame thread and the processing thread are gone once stop returns.
+        assertTrue("Stopping took $stopTimeMs ms", stopTimeMs < 1000)
+        assertEquals(processedFrameCount, processor.processedFrameCount.get())
+        cameraSource.release()
+    }
+
+    /** The synthetic frames aren't previewed, the surface is never created.  */
+    private fun startCamera() = cameraSource.start(SurfaceView(context).holder)
+
+    /** Counts the frames it gets and the results it publishes, which are detected right away.  */
+    private class CountingFrameProcessor(context: Context) : FrameProcessorBase<Int>(context) {
+
+        val processedFrameCount = AtomicInteger()
+        val publishedResultCount = AtomicInteger()
+
+        override fun process(frame: SharedFrame, graphicOverlay: GraphicOverlay) {
+            processedFrameCount.incrementAndGet()
+            super.process(frame, graphicOverlay)
+        }
+
+        override fun detectInImage(image: FirebaseVisionImage): Task<Int> = Tasks.forResult(0)
+
+        override fun onSuccess(image: FirebaseVisionImage, results: Int, graphicOverlay: GraphicOverlay) {
+            publishedResultCount.incrementAndGet()
+        }
+
+        override fun onFailure(e: Exception) {
+            Log.e("CountingFrameProcessor", "Detection failed.", e)
+        }
+    }
+
+    companion object {
+        private const val TIMEOUT_MS = 10_000L
+
+        /** More than the backend ever allocates buffers for, so the buffers have to be recycled.  */
+        private const val FRAME_COUNT = 3 * CameraSource.DEFAULT_MAX_FRAME_BUFFER_DEPTH
+
+        /** Runs the main looper as the pipeline goes, until the condition holds or the time is up.  */
+        private fun runMainLooperUntil(condition: () -> Boolean) {
+            val deadlineNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS)
+            while (!condition()) {
+                if (System.nanoTime() > deadlineNs) {
+                    throw AssertionError("Timed out waiting on the pipeline.")
+                }
+                shadowOf(Looper.getMainLooper()).idle()
+                Thread.sleep(5)
+            }
+        }
+    }
+}
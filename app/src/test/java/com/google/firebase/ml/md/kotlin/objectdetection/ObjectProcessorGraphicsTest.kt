@@ -0,0 +1,206 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.kotlin.objectdetection
+
+import android.app.Application
+import android.os.Looper
+import androidx.test.core.app.ApplicationProvider
+import com.google.firebase.FirebaseApp
+import com.google.firebase.FirebaseOptions
+import com.google.firebase.ml.md.kotlin.camera.CameraSource
+import com.google.firebase.ml.md.kotlin.camera.CompositeFrameProcessor
+import com.google.firebase.ml.md.kotlin.camera.GraphicOverlay
+import com.google.firebase.ml.md.kotlin.camera.WorkflowModel
+import com.google.firebase.ml.md.kotlin.camera.WorkflowModel.WorkflowState
+import java.util.concurrent.TimeUnit
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.Robolectric
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.Shadows.shadowOf
+import org.robolectric.annotation.LooperMode
+
+/**
+ * Publishes boxes through the object processors, frame after frame, and checks that the overlay keeps showing the
+ * same graphics, updated in place rather than recreated, so that rendering the live view doesn't allocate.
+ */
+@RunWith(RobolectricTestRunner::class)
+@LooperMode(LooperMode.Mode.PAUSED)
+class ObjectProcessorGraphicsTest {
+
+    private val boxes = ObjectBoxes()
+    private lateinit var overlay: GraphicOverlay
+    private lateinit var workflowModel: WorkflowModel
+
+    @Before
+    fun setUp() {
+        val application = ApplicationProvider.getApplicationContext<Application>()
+        // The processors lease their detectors from ML Kit, whose models only load once they detect.
+        if (FirebaseApp.getApps(application).isEmpty()) {
+            FirebaseApp.initializeApp(
+                    application,
+                    FirebaseOptions.Builder()
+                            .setApplicationId("1:1:android:1")
+                            .setApiKey("test")
+                            .setProjectId("test")
+                            .build()
+            )
+        }
+        overlay = GraphicOverlay(application, Robolectric.buildAttributeSet().build()).apply {
+            layout(0, 0, OVERLAY_WIDTH, OVERLAY_HEIGHT)
+        }
+        workflowModel = WorkflowModel(application)
+        workflowModel.markCameraLive()
+    }
+
+    @Test
+    fun multiModeFramesKeepTheirGraphics() {
+        val processor = MultiObjectProcessor(overlay, workflowModel)
+        try {
+            var firstGraphics: List<GraphicOverlay.Graphic>? = null
+            for (frame in 0 until FRAME_COUNT) {
+                val frameTimeNs = moveObjects(frame)
+                assertFalse(processor.publishResults(boxes, /* selectedObjectIndex= */ -1, frameTimeNs, overlay))
+                val graphics = runFrame()
+                assertSameGraphics(firstGraphics ?: graphics.also { firstGraphics = it }, graphics)
+            }
+            // A dot on each object, and the reticle.
+            assertEquals(OBJECT_COUNT + 1, firstGraphics!!.size)
+        } finally {
+            processor.stop()
+        }
+    }
+
+    @Test
+    fun multiModeConfirmationKeepsTheGraphicsOfTheSelectedObject() {
+        val processor = MultiObjectProcessor(overlay, workflowModel)
+        try {
+            var confirmingGraphics: List<GraphicOverlay.Graphic>? = null
+            var confirmedGraphics: List<GraphicOverlay.Graphic>? = null
+            for (frame in 0 until FRAME_COUNT) {
+                val frameTimeNs = moveObjects(frame)
+                val isConfirmed = processor.publishResults(boxes, /* selectedObjectIndex= */ 0, frameTimeNs, overlay)
+                val graphics = runFrame()
+                if (!isConfirmed) {
+                    assertNull("The confirmation of the same object went back.", confirmedGraphics)
+                    assertSameGraphics(confirmingGraphics ?: graphics.also { confirmingGraphics = it }, graphics)
+                } else {
+                    assertSameGraphics(confirmedGraphics ?: graphics.also { confirmedGraphics = it }, graphics)
+                }
+            }
+
+            assertNotNull(confirmingGraphics)
+            assertNotNull("The selected object never got confirmed.", confirmedGraphics)
+            // The confirmation progress, the box of the selected object, and a dot on each other one.
+            assertEquals(OBJECT_COUNT + 1, confirmingGraphics!!.size)
+            // The dots are hidden once the object is confirmed.
+            assertSameGraphics(confirmingGraphics!!.subList(0, 2), confirmedGraphics!!)
+        } finally {
+            processor.stop()
+        }
+    }
+
+    @Test
+    fun prominentModeFramesKeepTheirGraphics() {
+        val processor = ProminentObjectProcessor(overlay, workflowModel, CameraSource(overlay))
+        try {
+            var firstGraphics: List<GraphicOverlay.Graphic>? = null
+            for (frame in 0 until FRAME_COUNT) {
+                val frameTimeNs = moveObjects(frame, objectCount = 1)
+                assertFalse(processor.publishResults(boxes, /* overlapsReticle= */ false, frameTimeNs, overlay))
+                val graphics = runFrame()
+                assertSameGraphics(firstGraphics ?: graphics.also { firstGraphics = it }, graphics)
+            }
+            // The box of the object, and the reticle off it.
+            assertEquals(2, firstGraphics!!.size)
+        } finally {
+            processor.stop()
+        }
+    }
+
+    @Test
+    fun compositeProcessorsKeepEachOthersGraphicsAndStates() {
+        val multiProcessor = MultiObjectProcessor(overlay, workflowModel)
+        val prominentProcessor = ProminentObjectProcessor(overlay, workflowModel, CameraSource(overlay))
+        val compositeProcessor = CompositeFrameProcessor(multiProcessor, prominentProcessor)
+        val noBoxes = ObjectBoxes()
+        try {
+            var frameTimeNs = moveObjects(frame = 0)
+            multiProcessor.publishResults(boxes, /* selectedObjectIndex= */ 0, frameTimeNs, overlay)
+            prominentProcessor.publishResults(noBoxes, /* overlapsReticle= */ false, frameTimeNs, overlay)
+            val confirmingGraphics = runFrame()
+            // The graphics of the multi-mode processor, then the reticle of the prominent one with nothing in view,
+            // which doesn't reset the confirmation either.
+            assertEquals(OBJECT_COUNT + 2, confirmingGraphics.size)
+            assertEquals(WorkflowState.CONFIRMING, workflowModel.workflowState.value)
+
+            frameTimeNs = moveObjects(frame = 1)
+            multiProcessor.publishResults(boxes, /* selectedObjectIndex= */ -1, frameTimeNs, overlay)
+            val detectedGraphics = runFrame()
+            // A dot on each object and the reticle, then the reticle the prominent one left as it was.
+            assertEquals(OBJECT_COUNT + 2, detectedGraphics.size)
+            assertSame(confirmingGraphics[OBJECT_COUNT + 1], detectedGraphics[OBJECT_COUNT + 1])
+            assertEquals(WorkflowState.DETECTED, workflowModel.workflowState.value)
+        } finally {
+            compositeProcessor.stop()
+        }
+        // The graphics go along with their processors.
+        assertTrue(runFrame().isEmpty())
+    }
+
+    /** Moves the objects a bit further across the overlay, and returns the time of the frame.  */
+    private fun moveObjects(frame: Int, objectCount: Int = OBJECT_COUNT): Long {
+        boxes.clear()
+        val offset = (frame % 100) * 4
+        for (i in 0 until objectCount) {
+            val left = offset + i * 100
+            val top = offset + i * 300
+            boxes.add(/* trackingId= */ i, left, top, left + OBJECT_SIZE, top + OBJECT_SIZE)
+        }
+        return System.nanoTime()
+    }
+
+    /** Lets the main looper run up to the next frame, and returns the graphics it published.  */
+    private fun runFrame(): List<GraphicOverlay.Graphic> {
+        shadowOf(Looper.getMainLooper()).idleFor(FRAME_INTERVAL_MS, TimeUnit.MILLISECONDS)
+        return overlay.publishedGraphics
+    }
+
+    companion object {
+        /** Enough frames at the frame interval for the longest confirmation time to pass.  */
+        private const val FRAME_COUNT = 150
+        private const val FRAME_INTERVAL_MS = 16L
+        private const val OVERLAY_WIDTH = 1080
+        private const val OVERLAY_HEIGHT = 1920
+        private const val OBJECT_COUNT = 5
+        private const val OBJECT_SIZE = 240
+
+        private fun assertSameGraphics(expected: List<GraphicOverlay.Graphic>, actual: List<GraphicOverlay.Graphic>) {
+            assertEquals(expected.size, actual.size)
+            for (i in expected.indices) {
+                assertSame("Graphic $i got replaced.", expected[i], actual[i])
+            }
+        }
+    }
+}
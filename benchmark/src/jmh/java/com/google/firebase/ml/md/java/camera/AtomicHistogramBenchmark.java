@@ -0,0 +1,57 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.java.camera;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Measures the cost of the always-on pipeline metrics, which record into an {@link
+ * AtomicHistogram} several times per frame from the camera, processing and main threads.
+ *
+ * <ul>
+ *   <li>{@link #record()} records a duration from a single thread.
+ *   <li>{@link #recordContended()} records from four threads into the same histogram at once.
+ *   <li>{@link #snapshot()} copies the histogram, as polling the metrics does for every stage.
+ * </ul>
+ */
+@State(Scope.Benchmark)
+public class AtomicHistogramBenchmark {
+
+  private final AtomicHistogram histogram = new AtomicHistogram();
+  private long durationNs;
+
+  @Benchmark
+  public void record() {
+    // Spreads the samples over the buckets up to about a second.
+    durationNs = (durationNs + 7_919_993) & ((1L << 30) - 1);
+    histogram.record(durationNs);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public void recordContended() {
+    histogram.record(40_000_000);
+  }
+
+  @Benchmark
+  public AtomicHistogram.Snapshot snapshot() {
+    return histogram.snapshot();
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.java.camera;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Compares the per-frame cost of getting an NV21 preview frame into memory native code can read.
+ *
+ * <ul>
+ *   <li>{@link #heapCopyPerDetection()} is what the heap frame path costs: a fresh native copy of
+ *       the camera buffer for every frame handed to the detector.
+ *   <li>{@link #directStaging()} is what the direct frame path costs: a copy into one of the
+ *       reusable direct buffers of {@link DirectFrameStagingArea}.
+ *   <li>{@link #directStagingOfReticleRegion()} is what the barcode processor costs when it limits
+ *       detection to the region around its reticle, about 40% of the frame in portrait.
+ *   <li>{@link #heapWrap()} is the baseline of wrapping the camera buffer without copying it.
+ * </ul>
+ */
+@State(Scope.Thread)
+public class FrameCopyBenchmark {
+
+  @Param({"640x360", "1280x720", "1920x1080"})
+  public String previewSize;
+
+  private int width;
+  private int height;
+  private byte[] cameraBuffer;
+  private DirectFrameStagingArea stagingArea;
+
+  @Setup
+  public void setUp() {
+    String[] dimensions = previewSize.split("x");
+    width = Integer.parseInt(dimensions[0]);
+    height = Integer.parseInt(dimensions[1]);
+    // NV21 has a full resolution luma plane followed by an interleaved chroma plane at half
+    // resolution in both dimensions.
+    cameraBuffer = new byte[width * height * 3 / 2];
+    new Random(/* seed= */ 0).nextBytes(cameraBuffer);
+    stagingArea = new DirectFrameStagingArea();
+  }
+
+  @Benchmark
+  public ByteBuffer heapWrap() {
+    return ByteBuffer.wrap(cameraBuffer);
+  }
+
+  @Benchmark
+  public ByteBuffer heapCopyPerDetection() {
+    ByteBuffer nativeCopy = ByteBuffer.allocateDirect(cameraBuffer.length);
+    nativeCopy.put(cameraBuffer);
+    nativeCopy.flip();
+    return nativeCopy;
+  }
+
+  @Benchmark
+  public ByteBuffer directStaging() {
+    ByteBuffer staged = stagingArea.stage(ByteBuffer.wrap(cameraBuffer));
+    stagingArea.recycle(staged);
+    return staged;
+  }
+
+  @Benchmark
+  public ByteBuffer directStagingOfReticleRegion() {
+    // The default reticle box, padded by 10% on each side, is 96% wide and 42% high in the upright
+    // portrait image. The frame is delivered in landscape, so that's 42% of its width.
+    int cropWidth = (width * 42 / 100) & ~1;
+    int cropHeight = (height * 96 / 100) & ~1;
+    int left = ((width - cropWidth) / 2) & ~1;
+    int top = ((height - cropHeight) / 2) & ~1;
+    ByteBuffer staged =
+        stagingArea.stageCrop(
+            ByteBuffer.wrap(cameraBuffer), width, height, left, top, cropWidth, cropHeight);
+    stagingArea.recycle(staged);
+    return staged;
+  }
+}
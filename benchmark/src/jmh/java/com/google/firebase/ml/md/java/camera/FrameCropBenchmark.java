@@ -0,0 +1,107 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.java.camera;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Compares the cost of getting the pixels of a detected object out of a portrait camera frame
+ * before they're encoded for the product search.
+ *
+ * <ul>
+ *   <li>{@link #cropObject()} is what the object processors do: copying the box of the object out
+ *       of the NV21 frame as an upright NV21 crop, scaled down to the width the search takes.
+ *   <li>{@link #convertFullFrame()} stands in for what converting the whole frame to a bitmap
+ *       costs first, before the object is cut out of it: an ARGB pixel for every pixel of the
+ *       frame.
+ * </ul>
+ */
+@State(Scope.Thread)
+public class FrameCropBenchmark {
+
+  /** The widest image the product search gets, as in {@code JpegPayload}. */
+  private static final int MAX_IMAGE_WIDTH = 640;
+
+  @Param({"1280x720", "1920x1080"})
+  public String previewSize;
+
+  /** How much of each side of the upright frame the object box covers, in percent. */
+  @Param({"30", "80"})
+  public int boxSizePercent;
+
+  private FrameMetadata metadata;
+  private ByteBuffer frame;
+  private int boxLeft;
+  private int boxTop;
+  private int boxRight;
+  private int boxBottom;
+  private int[] argbPixels;
+
+  @Setup
+  public void setUp() {
+    String[] dimensions = previewSize.split("x");
+    int width = Integer.parseInt(dimensions[0]);
+    int height = Integer.parseInt(dimensions[1]);
+    // The frame is delivered in landscape and turned a quarter clockwise to be upright.
+    metadata = new FrameMetadata(width, height, /* rotation= */ 1);
+    byte[] cameraBuffer = new byte[width * height * 3 / 2];
+    new Random(/* seed= */ 0).nextBytes(cameraBuffer);
+    frame = ByteBuffer.wrap(cameraBuffer);
+    int uprightWidth = height;
+    int uprightHeight = width;
+    boxLeft = uprightWidth * (100 - boxSizePercent) / 200;
+    boxTop = uprightHeight * (100 - boxSizePercent) / 200;
+    boxRight = uprightWidth - boxLeft;
+    boxBottom = uprightHeight - boxTop;
+    argbPixels = new int[width * height];
+  }
+
+  @Benchmark
+  public FrameCrop cropObject() {
+    return FrameCrop.crop(frame, metadata, boxLeft, boxTop, boxRight, boxBottom, MAX_IMAGE_WIDTH);
+  }
+
+  @Benchmark
+  public int[] convertFullFrame() {
+    int width = metadata.width;
+    int height = metadata.height;
+    int frameSize = width * height;
+    for (int y = 0; y < height; y++) {
+      int chromaRow = frameSize + (y >> 1) * width;
+      for (int x = 0; x < width; x++) {
+        int luma = frame.get(y * width + x) & 0xff;
+        int v = (frame.get(chromaRow + (x & ~1)) & 0xff) - 128;
+        int u = (frame.get(chromaRow + (x & ~1) + 1) & 0xff) - 128;
+        int r = clamp(luma + ((359 * v) >> 8));
+        int g = clamp(luma - ((88 * u + 183 * v) >> 8));
+        int b = clamp(luma + ((454 * u) >> 8));
+        argbPixels[y * width + x] = 0xff000000 | (r << 16) | (g << 8) | b;
+      }
+    }
+    return argbPixels;
+  }
+
+  private static int clamp(int channel) {
+    return Math.max(0, Math.min(255, channel));
+  }
+}
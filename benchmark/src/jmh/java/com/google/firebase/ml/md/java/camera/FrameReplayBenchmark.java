@@ -0,0 +1,122 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.java.camera;
+
+import com.google.firebase.ml.md.java.camera.FrameReplayer.Pacing;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the per-frame cost of two of the pure Java stages of {@link FrameProcessorBase} on a
+ * replayed recording: the scene change gate on every frame, and the staging of the changed frames
+ * for a stand-in detector that burns a fixed amount of CPU. The recording is generated once per
+ * trial, with a square that moves every few frames, so the gate lets through the same frames on
+ * every run.
+ *
+ * <p>The stages are called in the order the processor calls them, but this is a copy of that
+ * sequence rather than the processor itself, which needs Android. Replaying a recording through a
+ * real processor is what ReplayCameraBackendTest does, under Robolectric in the app's unit tests.
+ */
+@State(Scope.Thread)
+public class FrameReplayBenchmark {
+
+  private static final int FRAME_COUNT = 90;
+  private static final long FRAME_INTERVAL_US = 33_333;
+  private static final int FRAMES_PER_MOVE = 3;
+  private static final int SQUARE_SIZE = 96;
+  private static final int SQUARE_STEP = 24;
+
+  @Param({"640x480", "1280x720"})
+  public String previewSize;
+
+  /** Cost of the stand-in detection in JMH tokens, 0 leaves only the pipeline overhead. */
+  @Param({"0", "100000"})
+  public long detectorCostTokens;
+
+  private File recordingFile;
+  private FrameRecording recording;
+  private FrameReplayer replayer;
+  private SceneChangeDetector sceneChangeDetector;
+  private DirectFrameStagingArea stagingArea;
+
+  @Setup
+  public void setUp() throws IOException {
+    String[] dimensions = previewSize.split("x");
+    int width = Integer.parseInt(dimensions[0]);
+    int height = Integer.parseInt(dimensions[1]);
+    FrameMetadata metadata = new FrameMetadata(width, height, /* rotation= */ 1);
+    byte[] nv21 = new byte[width * height * 3 / 2];
+
+    recordingFile = File.createTempFile("replay", ".mdfr");
+    try (FrameRecording.Writer writer = new FrameRecording.Writer(recordingFile)) {
+      for (int i = 0; i < FRAME_COUNT; i++) {
+        drawFrame(nv21, width, height, (i / FRAMES_PER_MOVE) * SQUARE_STEP);
+        writer.write(i * FRAME_INTERVAL_US, metadata, ByteBuffer.wrap(nv21));
+      }
+    }
+    recording = FrameRecording.open(recordingFile);
+    replayer = new FrameReplayer(recording, Pacing.AS_FAST_AS_POSSIBLE, /* looping= */ false);
+    sceneChangeDetector = new SceneChangeDetector();
+    stagingArea = new DirectFrameStagingArea();
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    recording.close();
+    recordingFile.delete();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(FRAME_COUNT)
+  public void replay(Blackhole blackhole) {
+    sceneChangeDetector.reset();
+    replayer.replay(
+        frame -> {
+          if (!sceneChangeDetector.hasChanged(frame.data, frame.metadata)) {
+            return;
+          }
+          sceneChangeDetector.markReference();
+          ByteBuffer stagedData = stagingArea.stage(frame.data);
+          Blackhole.consumeCPU(detectorCostTokens);
+          blackhole.consume(stagedData);
+          stagingArea.recycle(stagedData);
+        });
+  }
+
+  /** Draws a dark frame with a bright square at the given distance from the top left corner. */
+  private static void drawFrame(byte[] nv21, int width, int height, int squareOffset) {
+    int ySize = width * height;
+    Arrays.fill(nv21, 0, ySize, (byte) 16);
+    int squareLeft = squareOffset % (width - SQUARE_SIZE);
+    int squareTop = squareOffset % (height - SQUARE_SIZE);
+    for (int y = squareTop; y < squareTop + SQUARE_SIZE; y++) {
+      int rowStart = y * width + squareLeft;
+      Arrays.fill(nv21, rowStart, rowStart + SQUARE_SIZE, (byte) 235);
+    }
+    Arrays.fill(nv21, ySize, nv21.length, (byte) 128);
+  }
+}
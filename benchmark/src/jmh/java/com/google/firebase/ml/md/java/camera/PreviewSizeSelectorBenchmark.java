@@ -0,0 +1,89 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.java.camera;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures the preview size selection of the camera source, which runs on every camera start and
+ * for every candidate of a preview size calibration, on size lists like the ones a phone camera
+ * reports, largest first.
+ *
+ * <ul>
+ *   <li>{@link #matchPictureSizes()} pairs the preview sizes with same aspect ratio picture sizes,
+ *       as building the list of valid sizes does.
+ *   <li>{@link #selectPreviewSize()} picks the size closest to a 19.5:9 display.
+ * </ul>
+ */
+@State(Scope.Thread)
+public class PreviewSizeSelectorBenchmark {
+
+  private static final int[][] PREVIEW_SIZES = {
+    {1920, 1080}, {1440, 1080}, {1280, 960}, {1280, 720}, {1088, 1088}, {1056, 864}, {960, 720},
+    {880, 720}, {800, 600}, {800, 480}, {720, 480}, {640, 480}, {640, 360}, {480, 360},
+    {480, 320}, {352, 288}, {320, 240}, {176, 144}
+  };
+
+  private static final int[][] PICTURE_SIZES = {
+    {4032, 3024}, {4032, 2268}, {3024, 3024}, {3984, 2988}, {3264, 2448}, {3264, 1836},
+    {2976, 2976}, {2880, 2160}, {2560, 1440}, {2160, 2160}, {2048, 1536}, {2048, 1152},
+    {1920, 1080}, {1440, 1080}, {1280, 960}, {1280, 720}, {1088, 1088}, {960, 720}, {720, 480},
+    {640, 480}, {320, 240}
+  };
+
+  private static final PreviewSizeSelector.SizeReader<int[]> SIZE_READER =
+      new PreviewSizeSelector.SizeReader<int[]>() {
+        @Override
+        public int getWidth(int[] size) {
+          return size[0];
+        }
+
+        @Override
+        public int getHeight(int[] size) {
+          return size[1];
+        }
+      };
+
+  private final List<int[]> previewSizes = new ArrayList<>();
+  private final List<int[]> pictureSizes = new ArrayList<>();
+
+  @Setup
+  public void setUp() {
+    for (int[] size : PREVIEW_SIZES) {
+      previewSizes.add(size);
+    }
+    for (int[] size : PICTURE_SIZES) {
+      pictureSizes.add(size);
+    }
+  }
+
+  @Benchmark
+  public int[] matchPictureSizes() {
+    return PreviewSizeSelector.matchPictureSizes(previewSizes, pictureSizes, SIZE_READER);
+  }
+
+  @Benchmark
+  public int selectPreviewSize() {
+    return PreviewSizeSelector.selectPreviewSize(
+        previewSizes, SIZE_READER, /* displayAspectRatioInLandscape= */ 19.5f / 9);
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.java.objectdetection;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures collecting the JPEG image of a detected object for the product search, apart from the
+ * encoding itself: the encoder stands in for the bitmap compression of Android, writing about as
+ * many bytes in chunks of the same size.
+ *
+ * <ul>
+ *   <li>{@link #encode()} collects the bytes in a buffer sized for the image up front.
+ *   <li>{@link #encodeIntoGrowingBuffer()} is the baseline of a buffer that grows as it fills up.
+ * </ul>
+ */
+@State(Scope.Thread)
+public class JpegPayloadBenchmark {
+
+  /** The encoder of Android writes through a buffer of this many bytes. */
+  private static final int ENCODER_CHUNK_SIZE = 8 * 1024;
+
+  /** Sizes of object images, before they're scaled down to the maximum width. */
+  @Param({"320x240", "640x480", "1280x960"})
+  public String imageSize;
+
+  private int width;
+  private int height;
+  private byte[] encodedImage;
+  private JpegPayload.Encoder encoder;
+
+  @Setup
+  public void setUp() {
+    String[] dimensions = imageSize.split("x");
+    width = Integer.parseInt(dimensions[0]);
+    height = JpegPayload.getScaledHeight(width, Integer.parseInt(dimensions[1]));
+    width = Math.min(width, JpegPayload.MAX_IMAGE_WIDTH);
+    // A quality 100 JPEG of a camera image takes about half a byte per pixel.
+    encodedImage = new byte[width * height / 2];
+    new Random(/* seed= */ 0).nextBytes(encodedImage);
+    encoder = this::writeEncodedImage;
+  }
+
+  @Benchmark
+  public byte[] encode() throws IOException {
+    return JpegPayload.encode(width, height, encoder);
+  }
+
+  @Benchmark
+  public byte[] encodeIntoGrowingBuffer() throws IOException {
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    encoder.encode(stream);
+    return stream.toByteArray();
+  }
+
+  private void writeEncodedImage(OutputStream stream) throws IOException {
+    for (int offset = 0; offset < encodedImage.length; offset += ENCODER_CHUNK_SIZE) {
+      stream.write(
+          encodedImage, offset, Math.min(ENCODER_CHUNK_SIZE, encodedImage.length - offset));
+    }
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.java.objectdetection;
+
+import java.util.Random;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures the object tracking of the object processors, over frames of a 30 fps camera in which
+ * the objects move in circles of 300 pixels across, once every two seconds.
+ *
+ * <p>{@link #trackFrame} does the tracking work of a frame on the main thread: correcting the
+ * tracker by the detected objects on the frames that are detected, and predicting the box of every
+ * object to draw it. Along with the time it takes, it reports the tracking error as the {@code
+ * predictedErrorPx} and {@code heldErrorPx} counters, so the number of frames per detection can be
+ * weighed against how far off the drawn boxes end up.
+ */
+@State(Scope.Thread)
+public class ObjectMotionTrackerBenchmark {
+
+  private static final long FRAME_INTERVAL_NS = 33_333_333L;
+  private static final double ORBIT_PERIOD_NS = 2e9;
+  private static final float ORBIT_RADIUS = 150;
+  private static final float BOX_SIZE = 200;
+
+  /** The multiple objects mode detects up to five objects, the prominent object mode one. */
+  @Param({"1", "5"})
+  public int objectCount;
+
+  @Param({"1", "2", "3"})
+  public int framesPerDetection;
+
+  /** The mean tracking errors in pixels, as of the end of the iteration. */
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  @State(Scope.Thread)
+  public static class TrackingError {
+    public double predictedErrorPx;
+    public double heldErrorPx;
+  }
+
+  private float[] orbitCenters;
+  private double[] orbitPhases;
+  private final float[] predictedEdges = new float[4];
+  private ObjectMotionTracker tracker;
+  private long frameIndex;
+
+  @Setup(Level.Iteration)
+  public void setUp() {
+    Random random = new Random(/* seed= */ 0);
+    orbitCenters = new float[objectCount * 2];
+    orbitPhases = new double[objectCount];
+    for (int i = 0; i < objectCount; i++) {
+      orbitCenters[i * 2] = 200 + random.nextFloat() * 600;
+      orbitCenters[i * 2 + 1] = 200 + random.nextFloat() * 1200;
+      orbitPhases[i] = random.nextDouble() * 2 * Math.PI;
+    }
+    tracker = new ObjectMotionTracker();
+    frameIndex = 0;
+  }
+
+  @Benchmark
+  public float trackFrame(TrackingError trackingError) {
+    long frameTimeNs = frameIndex * FRAME_INTERVAL_NS;
+    if (frameIndex % framesPerDetection == 0) {
+      for (int i = 0; i < objectCount; i++) {
+        double angle = orbitPhases[i] + 2 * Math.PI * frameTimeNs / ORBIT_PERIOD_NS;
+        float centerX = orbitCenters[i * 2] + ORBIT_RADIUS * (float) Math.cos(angle);
+        float centerY = orbitCenters[i * 2 + 1] + ORBIT_RADIUS * (float) Math.sin(angle);
+        tracker.update(
+            i,
+            centerX - BOX_SIZE / 2,
+            centerY - BOX_SIZE / 2,
+            centerX + BOX_SIZE / 2,
+            centerY + BOX_SIZE / 2,
+            frameTimeNs);
+      }
+    }
+    float edgeSum = 0;
+    for (int i = 0; i < objectCount; i++) {
+      tracker.predict(i, frameTimeNs, predictedEdges);
+      edgeSum += predictedEdges[0];
+    }
+    frameIndex++;
+    trackingError.predictedErrorPx = tracker.getMeanPredictedErrorPx();
+    trackingError.heldErrorPx = tracker.getMeanHeldErrorPx();
+    return edgeSum;
+  }
+}
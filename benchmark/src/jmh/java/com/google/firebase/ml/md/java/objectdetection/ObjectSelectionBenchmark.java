@@ -0,0 +1,127 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.java.objectdetection;
+
+import java.util.Random;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures the per-frame object selection of the object processors, on boxes in the view
+ * coordinates of a 1080x2280 screen.
+ *
+ * <ul>
+ *   <li>{@link #isBoxCenterNearReticle()} tests every box against the reticle, as the multiple
+ *       objects mode does to find the selected object.
+ *   <li>{@link #overlapsReticle()} tests every box against the reticle ring, as the prominent
+ *       object mode does for its object.
+ *   <li>{@link #trackingIdBookkeeping()} tells which of the tracked objects of the earlier frames
+ *       are still tracked, as the multiple objects mode does before updating its object dots.
+ * </ul>
+ */
+@State(Scope.Thread)
+public class ObjectSelectionBenchmark {
+
+  private static final float VIEW_WIDTH = 1080;
+  private static final float VIEW_HEIGHT = 2280;
+  private static final float SELECTION_DISTANCE = 60;
+  private static final float RETICLE_RADIUS = 110;
+
+  /** The multiple objects mode detects up to five objects, the prominent object mode one. */
+  @Param({"1", "5"})
+  public int objectCount;
+
+  private float[] boxes;
+  private int[] frameTrackingIds;
+  private int[] trackedIds;
+  private final TrackingIdSet trackingIdSet = new TrackingIdSet();
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(/* seed= */ 0);
+    boxes = new float[objectCount * 4];
+    for (int i = 0; i < objectCount; i++) {
+      float left = random.nextFloat() * VIEW_WIDTH * 3 / 4;
+      float top = random.nextFloat() * VIEW_HEIGHT * 3 / 4;
+      boxes[i * 4] = left;
+      boxes[i * 4 + 1] = top;
+      boxes[i * 4 + 2] = left + VIEW_WIDTH / 4;
+      boxes[i * 4 + 3] = top + VIEW_HEIGHT / 4;
+    }
+    // Half of the objects tracked so far are lost in the frame, and as many new ones show up.
+    frameTrackingIds = new int[objectCount];
+    trackedIds = new int[objectCount];
+    for (int i = 0; i < objectCount; i++) {
+      trackedIds[i] = i;
+      frameTrackingIds[i] = i + objectCount / 2;
+    }
+  }
+
+  @Benchmark
+  public int isBoxCenterNearReticle() {
+    int selectedIndex = -1;
+    for (int i = 0; i < objectCount; i++) {
+      if (ReticleHitTest.isBoxCenterNearReticle(
+          boxes[i * 4],
+          boxes[i * 4 + 1],
+          boxes[i * 4 + 2],
+          boxes[i * 4 + 3],
+          VIEW_WIDTH / 2,
+          VIEW_HEIGHT / 2,
+          SELECTION_DISTANCE)) {
+        selectedIndex = i;
+      }
+    }
+    return selectedIndex;
+  }
+
+  @Benchmark
+  public int overlapsReticle() {
+    int overlapCount = 0;
+    for (int i = 0; i < objectCount; i++) {
+      if (ReticleHitTest.overlapsReticle(
+          boxes[i * 4],
+          boxes[i * 4 + 1],
+          boxes[i * 4 + 2],
+          boxes[i * 4 + 3],
+          VIEW_WIDTH / 2,
+          VIEW_HEIGHT / 2,
+          RETICLE_RADIUS)) {
+        overlapCount++;
+      }
+    }
+    return overlapCount;
+  }
+
+  @Benchmark
+  public int trackingIdBookkeeping() {
+    trackingIdSet.clear();
+    for (int trackingId : frameTrackingIds) {
+      trackingIdSet.add(trackingId);
+    }
+    int lostCount = 0;
+    for (int i = trackedIds.length - 1; i >= 0; i--) {
+      if (!trackingIdSet.contains(trackedIds[i])) {
+        lostCount++;
+      }
+    }
+    return lostCount;
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.firebase.ml.md.java.objectdetection;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures the per frame bookkeeping of the state kept for each tracked object, in a scene where
+ * one of the objects is lost and a new one shows up every few frames, so the tracking ids keep
+ * growing the way the detector hands them out.
+ *
+ * <p>{@link #trackingIdMap} is what the processors do: marking the objects of the frame as seen
+ * and expiring the others. {@link #boxedHashMap} does the same with a map and a set keyed by
+ * boxed ids, which allocates for every id past the small integer cache.
+ */
+@State(Scope.Thread)
+public class TrackingIdMapBenchmark {
+
+  private static final int FRAMES_PER_NEW_OBJECT = 10;
+
+  /** The multiple objects mode detects up to five objects, the prominent object mode one. */
+  @Param({"1", "5"})
+  public int objectCount;
+
+  private final Object state = new Object();
+  private final TrackingIdMap.ExpiryListener<Object> expiryListener = (trackingId, value) -> {};
+  private TrackingIdMap<Object> map;
+  private Map<Integer, Object> boxedMap;
+  private Set<Integer> boxedSeenIds;
+  private long frameIndex;
+
+  @Setup(Level.Iteration)
+  public void setUp() {
+    map = new TrackingIdMap<>();
+    boxedMap = new HashMap<>();
+    boxedSeenIds = new HashSet<>();
+    frameIndex = 0;
+  }
+
+  @Benchmark
+  public int trackingIdMap() {
+    int firstId = firstIdOfFrame();
+    map.nextGeneration();
+    for (int id = firstId; id < firstId + objectCount; id++) {
+      if (!map.markSeen(id)) {
+        map.put(id, state);
+      }
+    }
+    map.expire(/* maxUnseenGenerations= */ 0, expiryListener);
+    return map.size();
+  }
+
+  @Benchmark
+  public int boxedHashMap() {
+    int firstId = firstIdOfFrame();
+    boxedSeenIds.clear();
+    for (int id = firstId; id < firstId + objectCount; id++) {
+      boxedSeenIds.add(id);
+      if (!boxedMap.containsKey(id)) {
+        boxedMap.put(id, state);
+      }
+    }
+    for (Iterator<Integer> it = boxedMap.keySet().iterator(); it.hasNext(); ) {
+      if (!boxedSeenIds.contains(it.next())) {
+        it.remove();
+      }
+    }
+    return boxedMap.size();
+  }
+
+  /** The objects of a frame have consecutive ids, the oldest one is replaced every few frames. */
+  private int firstIdOfFrame() {
+    // Starts past the small integer cache, as the ids of a long session are.
+    return 1000 + (int) (frameIndex++ / FRAMES_PER_NEW_OBJECT);
+  }
+}